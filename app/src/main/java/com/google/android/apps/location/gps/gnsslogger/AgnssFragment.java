@@ -16,22 +16,17 @@
 
 package com.google.android.apps.location.gps.gnsslogger;
 
-import android.app.Activity;
 import android.app.Fragment;
 import android.content.Intent;
 import android.location.LocationManager;
 import android.os.Bundle;
-import android.text.Editable;
-import android.text.SpannableStringBuilder;
-import android.text.style.ForegroundColorSpan;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.Button;
-import android.widget.ScrollView;
-import android.widget.TextView;
+import android.widget.ListView;
 
 /**
  * The UI fragment that hosts a logging view.
@@ -39,9 +34,13 @@ import android.widget.TextView;
 public class AgnssFragment extends Fragment {
 
     public static final String TAG = ":AgnssFragment";
+    /**
+     * The number of log entries kept in the logging view
+     */
+    private static final int LOG_CAPACITY = 200;
+    private final LogConsole mConsole = new LogConsole(LOG_CAPACITY, false /* followsAutoScroll */);
     private final AgnssUIFragmentComponent mUiComponent = new AgnssUIFragmentComponent();
-    private TextView mLogView;
-    private ScrollView mScrollView;
+    private ListView mLogView;
     private GnssContainer mGpsContainer;
     private AgnssUiLogger mUiLogger;
 
@@ -58,7 +57,7 @@ public class AgnssFragment extends Fragment {
             LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View newView = inflater.inflate(R.layout.fragment_agnss, container, false /* attachToRoot */);
         mLogView = newView.findViewById(R.id.log_view);
-        mScrollView = newView.findViewById(R.id.log_scroll);
+        mConsole.attach(mLogView);
 
         if (mUiLogger != null) {
             mUiLogger.setUiFragmentComponent(mUiComponent);
@@ -129,46 +128,26 @@ public class AgnssFragment extends Fragment {
                 new OnClickListener() {
                     @Override
                     public void onClick(View view) {
-                        mLogView.setText("");
+                        mConsole.clear();
                     }
                 });
 
         return newView;
     }
 
+    @Override
+    public void onDestroyView() {
+        mConsole.detach();
+        super.onDestroyView();
+    }
+
     /**
      * A facade for Agnss UI related operations.
      */
     public class AgnssUIFragmentComponent {
 
-        private static final int MAX_LENGTH = 12000;
-        private static final int LOWER_THRESHOLD = (int) (MAX_LENGTH * 0.5);
-
-        public synchronized void logTextFragment(final String tag, final String text, int color) {
-            final SpannableStringBuilder builder = new SpannableStringBuilder();
-            builder.append(tag).append(" | ").append(text).append("\n");
-            builder.setSpan(
-                    new ForegroundColorSpan(color),
-                    0 /* start */,
-                    builder.length(),
-                    SpannableStringBuilder.SPAN_INCLUSIVE_EXCLUSIVE);
-
-            Activity activity = getActivity();
-            if (activity == null) {
-                return;
-            }
-            activity.runOnUiThread(
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            mLogView.append(builder);
-                            Editable editable = mLogView.getEditableText();
-                            int length = editable.length();
-                            if (length > MAX_LENGTH) {
-                                editable.delete(0, length - LOWER_THRESHOLD);
-                            }
-                        }
-                    });
+        public void logTextFragment(String tag, String text, int color) {
+            mConsole.log(tag, text, color);
         }
 
         public void startActivity(Intent intent) {
@@ -25,6 +25,7 @@ import android.os.Bundle;
 import android.util.Log;
 
 import com.google.android.apps.location.gps.gnsslogger.AgnssFragment.AgnssUIFragmentComponent;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssEpochSnapshot;
 
 import java.util.concurrent.TimeUnit;
 
@@ -76,6 +77,10 @@ public class AgnssUiLogger implements GnssListener {
     public void onGnssMeasurementsReceived(GnssMeasurementsEvent event, boolean isGpsOnly) {
     }
 
+    @Override
+    public void onGnssEpochReceived(GnssEpochSnapshot epoch, boolean isGpsOnly) {
+    }
+
     @Override
     public void onGnssMeasurementsStatusChanged(int status) {
     }
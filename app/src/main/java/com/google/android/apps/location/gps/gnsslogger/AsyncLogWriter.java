@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Single producer, single consumer ring of preallocated log records, written to a file by a
+ * dedicated thread.
+ *
+ * <p>The producer copies the fields of a record into the slot returned by {@link #claim()} and
+ * makes it visible with {@link #publish()}; neither call allocates nor does any I/O. The writer
+ * thread drains the published records in batches and hands them to the {@link RecordWriter}.
+ * Calls to {@link #claim()} and {@link #publish()} must not run concurrently, loggers receiving
+ * callbacks on several threads serialize them with their own lock.
+ *
+ * @param <R> The type of the records held by the slots
+ */
+class AsyncLogWriter<R> {
+
+    /** What {@link #claim()} does when all the slots hold records not written yet. */
+    enum OverflowPolicy {
+        /** The new record is dropped and counted, the callback thread is never blocked */
+        DROP_NEWEST,
+        /** The callback thread waits for the writer thread, no record is lost */
+        BLOCK
+    }
+
+    /** Writes the records on the writer thread. */
+    interface RecordWriter<R> {
+        void write(R record) throws IOException;
+
+        /**
+         * Called after each batch of records, and every {@link #IDLE_PARK_NANOS} while no record
+         * arrives, for writers that make the records durable periodically.
+         */
+        void onDrained() throws IOException;
+
+        void flush() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private static final String TAG = "AsyncLogWriter";
+    /** How long the writer thread sleeps before checking for records it was not woken up for */
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+    /** How long a blocked producer sleeps before checking again for a free slot */
+    private static final long BLOCKED_PARK_NANOS = 100_000L;
+
+    private final R[] mSlots;
+    private final int mMask;
+    private final OverflowPolicy mOverflowPolicy;
+    private final RecordWriter<R> mRecordWriter;
+    private final Thread mWriterThread;
+
+    /** Sequence of the next slot to publish, only written by the producer */
+    private volatile long mPublished;
+    /** Sequence of the next slot to write, only written by the writer thread */
+    private volatile long mConsumed;
+    private volatile boolean mWriterParked;
+    private volatile boolean mClosing;
+    private boolean mClaimed;
+
+    private volatile long mDroppedRecordCount;
+    private volatile long mMaxLag;
+    private volatile IOException mWriteError;
+
+    /**
+     * Creates the slots and starts the writer thread.
+     *
+     * @param capacity The number of slots, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    AsyncLogWriter(
+            String name,
+            int capacity,
+            OverflowPolicy overflowPolicy,
+            Supplier<R> slotFactory,
+            RecordWriter<R> recordWriter) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = (R[]) new Object[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = slotFactory.get();
+        }
+        mMask = size - 1;
+        mOverflowPolicy = overflowPolicy;
+        mRecordWriter = recordWriter;
+        mWriterThread = new Thread(this::drain, name);
+        mWriterThread.start();
+    }
+
+    /**
+     * Returns the slot to fill with the next record, or {@code null} if the record is dropped.
+     * The slot still holds the fields of an older record.
+     */
+    R claim() {
+        if (mClosing) {
+            return null;
+        }
+        long sequence = mPublished;
+        while (sequence - mConsumed > mMask) {
+            if (mOverflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                mDroppedRecordCount++;
+                return null;
+            }
+            LockSupport.unpark(mWriterThread);
+            LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+        }
+        mClaimed = true;
+        return mSlots[(int) (sequence & mMask)];
+    }
+
+    /** Hands the slot returned by the last call to {@link #claim()} to the writer thread. */
+    void publish() {
+        if (!mClaimed) {
+            throw new IllegalStateException("No claimed slot");
+        }
+        mClaimed = false;
+        long published = mPublished + 1;
+        mPublished = published;
+        long lag = published - mConsumed;
+        if (lag > mMaxLag) {
+            mMaxLag = lag;
+        }
+        if (mWriterParked) {
+            LockSupport.unpark(mWriterThread);
+        }
+    }
+
+    /** Returns the number of records dropped because all the slots were in use. */
+    long getDroppedRecordCount() {
+        return mDroppedRecordCount;
+    }
+
+    /** Returns the largest number of records that were waiting for the writer thread. */
+    long getMaxLag() {
+        return mMaxLag;
+    }
+
+    /** Returns the number of records handed to the {@link RecordWriter}. */
+    long getWrittenRecordCount() {
+        return mConsumed;
+    }
+
+    /**
+     * Writes the pending records, flushes and closes the {@link RecordWriter} and stops the
+     * writer thread. Records claimed afterwards are dropped.
+     *
+     * @throws IOException The first error raised by the {@link RecordWriter}
+     */
+    void close() throws IOException {
+        mClosing = true;
+        LockSupport.unpark(mWriterThread);
+        boolean interrupted = false;
+        while (mWriterThread.isAlive()) {
+            try {
+                mWriterThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mWriteError != null) {
+            throw mWriteError;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            // Read before the records, so that none published before closing is missed
+            boolean closing = mClosing;
+            long published = mPublished;
+            long consumed = mConsumed;
+            if (consumed == published) {
+                if (closing) {
+                    break;
+                }
+                mWriterParked = true;
+                // Checked again once the producer can see the flag, it may have missed it
+                if (mPublished == consumed && !mClosing) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                mWriterParked = false;
+                onDrained();
+                continue;
+            }
+            for (; consumed < published; consumed++) {
+                write(mSlots[(int) (consumed & mMask)]);
+                // Releases the slot as soon as it is written, for a blocked producer
+                mConsumed = consumed + 1;
+            }
+            onDrained();
+        }
+        try {
+            mRecordWriter.flush();
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+        try {
+            mRecordWriter.close();
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    private void write(R record) {
+        if (mWriteError != null) {
+            // The file is unusable, the remaining records are discarded
+            return;
+        }
+        try {
+            mRecordWriter.write(record);
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    private void onDrained() {
+        if (mWriteError != null) {
+            return;
+        }
+        try {
+            mRecordWriter.onDrained();
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    private void onWriteError(IOException e) {
+        Log.e(GnssContainer.TAG + TAG, "Unable to write log record", e);
+        if (mWriteError == null) {
+            mWriteError = e;
+        }
+    }
+}
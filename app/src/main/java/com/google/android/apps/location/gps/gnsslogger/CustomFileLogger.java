@@ -6,8 +6,6 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.location.GnssClock;
-import android.location.GnssMeasurement;
 import android.location.GnssMeasurementsEvent;
 import android.location.GnssNavigationMessage;
 import android.location.GnssStatus;
@@ -21,6 +19,10 @@ import android.support.v4.content.FileProvider;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.google.android.apps.location.gps.gnsslogger.AsyncLogWriter.OverflowPolicy;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssEpochSnapshot;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssLogCsvFormat;
+
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
@@ -35,11 +37,13 @@ public class CustomFileLogger implements GnssListener {
     private static final String FILE_PREFIX = "custom_log";
     private static final String COMMENT_START = "# ";
     private static final String VERSION_TAG = "Version: ";
+    /** Number of measurements that may wait for the writer thread */
+    private static final int RECORD_CAPACITY = 4096;
 
     private final Context mContext;
 
     private final Object mFileLock = new Object();
-    private BufferedWriter mFileWriter;
+    private AsyncLogWriter<MeasurementRecord> mLogWriter;
     private File mFile;
 
     private LoggerFragment.UIFragmentComponent mUiComponent;
@@ -171,17 +175,18 @@ public class CustomFileLogger implements GnssListener {
                 return;
             }
 
-            if (mFileWriter != null) {
-                try {
-                    mFileWriter.close();
-                } catch (IOException e) {
-                    logException("Unable to close all file streams.", e);
-                    return;
-                }
+            if (!closeLogWriter()) {
+                return;
             }
 
             mFile = currentFile;
-            mFileWriter = currentFileWriter;
+            mLogWriter =
+                    new AsyncLogWriter<>(
+                            TAG,
+                            RECORD_CAPACITY,
+                            OverflowPolicy.DROP_NEWEST,
+                            MeasurementRecord::new,
+                            new MeasurementRecordWriter(currentFileWriter));
             Toast.makeText(mContext, "File opened: " + currentFilePath, Toast.LENGTH_SHORT).show();
         }
     }
@@ -191,6 +196,13 @@ public class CustomFileLogger implements GnssListener {
             return;
         }
 
+        // The records still waiting for the writer thread are written before the file is shared
+        synchronized (mFileLock) {
+            if (!closeLogWriter()) {
+                return;
+            }
+        }
+
         Intent emailIntent = new Intent(Intent.ACTION_SEND);
         emailIntent.setType("*/*");
         emailIntent.putExtra(Intent.EXTRA_SUBJECT, "SensorLog");
@@ -200,16 +212,28 @@ public class CustomFileLogger implements GnssListener {
                 FileProvider.getUriForFile(mContext, BuildConfig.APPLICATION_ID + ".provider", mFile);
         emailIntent.putExtra(Intent.EXTRA_STREAM, fileURI);
         mUiComponent.startActivity(Intent.createChooser(emailIntent, "Send log.."));
-        if (mFileWriter != null) {
-            try {
-                mFileWriter.flush();
-                mFileWriter.close();
-                mFileWriter = null;
-            } catch (IOException e) {
-                logException("Unable to close all file streams.", e);
-                return;
-            }
+    }
+
+    /**
+     * Writes the pending records and closes the current file, if any. Returns {@code false} if the
+     * file could not be written completely.
+     */
+    private boolean closeLogWriter() {
+        if (mLogWriter == null) {
+            return true;
         }
+        AsyncLogWriter<MeasurementRecord> logWriter = mLogWriter;
+        mLogWriter = null;
+        try {
+            logWriter.close();
+        } catch (IOException e) {
+            logException("Unable to close all file streams.", e);
+            return false;
+        }
+        if (logWriter.getDroppedRecordCount() > 0) {
+            logError(logWriter.getDroppedRecordCount() + " records dropped, storage too slow.");
+        }
+        return true;
     }
 
     private void logException(String errorMessage, Exception e) {
@@ -234,25 +258,24 @@ public class CustomFileLogger implements GnssListener {
         mOrientationAngles[2] *= RAD_TO_DEG_FACTOR;
     }
 
-    private void writeGnssMeasurementToFile(GnssClock clock, GnssMeasurement measurement)
-            throws IOException {
+    private void writeGnssMeasurementToFile(GnssEpochSnapshot epoch, int index) {
+        MeasurementRecord record = mLogWriter.claim();
+        if (record == null) {
+            return;
+        }
         updateOrientationAngles();
 
-        long UtcTimeMillis = (clock.getTimeNanos() - clock.getFullBiasNanos()) / 1000000;
-        UtcTimeMillis -= clock.hasLeapSecond() ? clock.getLeapSecond() * 1000 : 0;
-
-        mFileWriter.write(String.format(
-                "%s,%s,%s,%s,%s,%s,%s",
-                SystemClock.elapsedRealtime(),
-                UtcTimeMillis,
-                measurement.getSvid(),
-                measurement.getCn0DbHz(),
-                mOrientationAngles[0],
-                mOrientationAngles[1],
-                mOrientationAngles[2]
-        ));
-
-        mFileWriter.newLine();
+        long UtcTimeMillis = epoch.getGpsTimeNanos() / 1000000;
+        UtcTimeMillis -= epoch.hasLeapSecond ? epoch.leapSecond * 1000 : 0;
+
+        record.elapsedRealtimeMillis = SystemClock.elapsedRealtime();
+        record.utcTimeMillis = UtcTimeMillis;
+        record.svid = epoch.getSvid(index);
+        record.cn0DbHz = epoch.getCn0DbHz(index);
+        record.angleZ = mOrientationAngles[0];
+        record.angleX = mOrientationAngles[1];
+        record.angleY = mOrientationAngles[2];
+        mLogWriter.publish();
     }
 
     @Override
@@ -273,8 +296,12 @@ public class CustomFileLogger implements GnssListener {
 
     @Override
     public void onGnssMeasurementsReceived(GnssMeasurementsEvent event, boolean isGpsOnly) {
+    }
+
+    @Override
+    public void onGnssEpochReceived(GnssEpochSnapshot epoch, boolean isGpsOnly) {
         synchronized (mFileLock) {
-            if (mFileWriter == null) {
+            if (mLogWriter == null) {
                 return;
             }
             // Orientation Log Test
@@ -289,16 +316,11 @@ public class CustomFileLogger implements GnssListener {
             }catch (IOException e) {
                 logException("Problem writing to file.", e);
             }*/
-            GnssClock gnssClock = event.getClock();
-            for (GnssMeasurement measurement : event.getMeasurements()) {
-                if (isGpsOnly && measurement.getConstellationType() != GnssStatus.CONSTELLATION_GPS) {
+            for (int i = 0; i < epoch.getMeasurementCount(); i++) {
+                if (isGpsOnly && epoch.getConstellationType(i) != GnssStatus.CONSTELLATION_GPS) {
                     continue;
                 }
-                try {
-                    writeGnssMeasurementToFile(gnssClock, measurement);
-                } catch (IOException e) {
-                    logException("Problem writing to file.", e);
-                }
+                writeGnssMeasurementToFile(epoch, i);
             }
         }
     }
@@ -330,4 +352,54 @@ public class CustomFileLogger implements GnssListener {
     @Override
     public void onTTFFReceived(long l) {
     }
+
+    /** A slot of the {@link AsyncLogWriter}, holding a line of the log. */
+    private static class MeasurementRecord {
+        long elapsedRealtimeMillis;
+        long utcTimeMillis;
+        int svid;
+        double cn0DbHz;
+        float angleZ;
+        float angleX;
+        float angleY;
+    }
+
+    /** Formats the records to the log. */
+    private static class MeasurementRecordWriter
+            implements AsyncLogWriter.RecordWriter<MeasurementRecord> {
+        private final BufferedWriter mFileWriter;
+        private final GnssLogCsvFormat mFormat = new GnssLogCsvFormat();
+
+        MeasurementRecordWriter(BufferedWriter fileWriter) {
+            mFileWriter = fileWriter;
+        }
+
+        @Override
+        public void write(MeasurementRecord record) throws IOException {
+            mFormat.clear();
+            mFormat.appendValue(record.elapsedRealtimeMillis);
+            mFormat.appendValue(record.utcTimeMillis);
+            mFormat.appendValue(record.svid);
+            mFormat.appendValue(record.cn0DbHz);
+            mFormat.appendValue(record.angleZ);
+            mFormat.appendValue(record.angleX);
+            mFormat.appendValue(record.angleY);
+            mFormat.writeTo(mFileWriter);
+            mFileWriter.newLine();
+        }
+
+        @Override
+        public void onDrained() {
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mFileWriter.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFileWriter.close();
+        }
+    }
 }
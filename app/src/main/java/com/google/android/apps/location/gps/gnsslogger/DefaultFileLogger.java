@@ -18,8 +18,6 @@ package com.google.android.apps.location.gps.gnsslogger;
 
 import android.content.Context;
 import android.content.Intent;
-import android.location.GnssClock;
-import android.location.GnssMeasurement;
 import android.location.GnssMeasurementsEvent;
 import android.location.GnssNavigationMessage;
 import android.location.GnssStatus;
@@ -29,44 +27,75 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.SystemClock;
 import android.support.v4.content.FileProvider;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.google.android.apps.location.gps.gnsslogger.AsyncLogWriter.OverflowPolicy;
 import com.google.android.apps.location.gps.gnsslogger.LoggerFragment.UIFragmentComponent;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssBinaryLogWriter;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssEpochSnapshot;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssLogCsvFormat;
+import com.google.location.lbs.gnss.gps.pseudorange.LoggedGnssClock;
+import com.google.location.lbs.gnss.gps.pseudorange.LoggedGnssMeasurement;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 /**
  * A GNSS logger to store information to a file.
+ *
+ * <p>The file is either the text log, or when {@link #setBinaryFormat} is enabled the compact
+ * binary log of {@link GnssBinaryLogWriter}, which converts losslessly back to the text log.
+ *
+ * <p>The callbacks only copy the fields of the records into the preallocated slots of an
+ * {@link AsyncLogWriter}, the records are formatted and written by its writer thread.
+ *
+ * <p>While a log is written, it is a directory of segments committed periodically by a
+ * {@link SegmentedLogOutputStream}, joined into the log file when the log is closed. A session
+ * interrupted before that is recovered up to its last commit when the next log is started.
  */
 public class DefaultFileLogger implements GnssListener {
 
     private static final String TAG = "DefaultFileLogger";
     private static final String FILE_PREFIX = "gnss_log";
-    private static final String ERROR_WRITING_FILE = "Problem writing to file.";
     private static final String COMMENT_START = "# ";
-    private static final char RECORD_DELIMITER = ',';
     private static final String VERSION_TAG = "Version: ";
+    private static final String TEXT_FILE_EXTENSION = "txt";
+    private static final String BINARY_FILE_EXTENSION = "bin";
+    private static final String LINE_SEPARATOR = "\n";
 
     private static final int MAX_FILES_STORED = 100;
     private static final int MINIMUM_USABLE_FILE_SIZE_BYTES = 1000;
 
+    /** Number of records that may wait for the writer thread, a few minutes of measurements */
+    private static final int RECORD_CAPACITY = 1024;
+    /** The callbacks are never blocked by the storage, the records dropped are counted */
+    private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.DROP_NEWEST;
+
+    private static final int SEGMENT_SIZE_BYTES = 16 * 1024 * 1024;
+    /** At most a second of records is lost on a crash, for a sync per second */
+    private static final long COMMIT_INTERVAL_MILLIS = 1000;
+    private static final long COMMIT_BYTES = 1024 * 1024;
+
+    private static final int RECORD_RAW = 0;
+    private static final int RECORD_NAV = 1;
+    private static final int RECORD_FIX = 2;
+    private static final int RECORD_NMEA = 3;
+
     private final Context mContext;
 
     private final Object mFileLock = new Object();
-    private BufferedWriter mFileWriter;
+    private AsyncLogWriter<LogRecord> mLogWriter;
     private File mFile;
+    private boolean mBinaryFormat;
 
     private UIFragmentComponent mUiComponent;
 
@@ -78,6 +107,15 @@ public class DefaultFileLogger implements GnssListener {
         mUiComponent = value;
     }
 
+    /**
+     * Sets whether the next log started by {@link #startNewLog()} is written in the binary format.
+     */
+    public void setBinaryFormat(boolean binaryFormat) {
+        synchronized (mFileLock) {
+            mBinaryFormat = binaryFormat;
+        }
+    }
+
     /**
      * Start a new file logging process.
      */
@@ -98,100 +136,81 @@ public class DefaultFileLogger implements GnssListener {
 
             SimpleDateFormat formatter = new SimpleDateFormat("yyy_MM_dd_HH_mm_ss");
             Date now = new Date();
-            String fileName = String.format("%s_%s.txt", FILE_PREFIX, formatter.format(now));
+            String fileName =
+                    String.format(
+                            "%s_%s.%s",
+                            FILE_PREFIX,
+                            formatter.format(now),
+                            mBinaryFormat ? BINARY_FILE_EXTENSION : TEXT_FILE_EXTENSION);
             File currentFile = new File(baseDirectory, fileName);
             String currentFilePath = currentFile.getAbsolutePath();
-            BufferedWriter currentFileWriter;
+            AsyncLogWriter.RecordWriter<LogRecord> currentRecordWriter;
             try {
-                currentFileWriter = new BufferedWriter(new FileWriter(currentFile));
+                SegmentedLogOutputStream currentOutputStream =
+                        new SegmentedLogOutputStream(
+                                currentFile,
+                                SEGMENT_SIZE_BYTES,
+                                COMMIT_INTERVAL_MILLIS,
+                                COMMIT_BYTES);
+                if (mBinaryFormat) {
+                    currentRecordWriter =
+                            new BinaryRecordWriter(
+                                    new GnssBinaryLogWriter(currentOutputStream, getFileHeader()),
+                                    currentOutputStream);
+                } else {
+                    BufferedWriter currentFileWriter =
+                            new BufferedWriter(new OutputStreamWriter(currentOutputStream));
+                    // initialize the contents of the file
+                    currentFileWriter.write(getFileHeader());
+                    currentRecordWriter =
+                            new TextRecordWriter(currentFileWriter, currentOutputStream);
+                }
             } catch (IOException e) {
                 logException("Could not open file: " + currentFilePath, e);
                 return;
             }
 
-            // initialize the contents of the file
-            try {
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.write("Header Description:");
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.write(VERSION_TAG);
-                String manufacturer = Build.MANUFACTURER;
-                String model = Build.MODEL;
-                String fileVersion =
-                        mContext.getString(R.string.app_version)
-                                + " Platform: "
-                                + Build.VERSION.RELEASE
-                                + " "
-                                + "Manufacturer: "
-                                + manufacturer
-                                + " "
-                                + "Model: "
-                                + model;
-                currentFileWriter.write(fileVersion);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.write(
-                        "Raw,ElapsedRealtimeMillis,TimeNanos,LeapSecond,TimeUncertaintyNanos,FullBiasNanos,"
-                                + "BiasNanos,BiasUncertaintyNanos,DriftNanosPerSecond,DriftUncertaintyNanosPerSecond,"
-                                + "HardwareClockDiscontinuityCount,Svid,TimeOffsetNanos,State,ReceivedSvTimeNanos,"
-                                + "ReceivedSvTimeUncertaintyNanos,Cn0DbHz,PseudorangeRateMetersPerSecond,"
-                                + "PseudorangeRateUncertaintyMetersPerSecond,"
-                                + "AccumulatedDeltaRangeState,AccumulatedDeltaRangeMeters,"
-                                + "AccumulatedDeltaRangeUncertaintyMeters,CarrierFrequencyHz,CarrierCycles,"
-                                + "CarrierPhase,CarrierPhaseUncertainty,MultipathIndicator,SnrInDb,"
-                                + "ConstellationType,AgcDb,CarrierFrequencyHz");
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.write(
-                        "Fix,Provider,Latitude,Longitude,Altitude,Speed,Accuracy,(UTC)TimeInMs");
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.write("Nav,Svid,Type,Status,MessageId,Sub-messageId,Data(Bytes)");
-                currentFileWriter.newLine();
-                currentFileWriter.write(COMMENT_START);
-                currentFileWriter.newLine();
-            } catch (IOException e) {
-                logException("Count not initialize file: " + currentFilePath, e);
+            if (!closeLogWriter()) {
                 return;
             }
 
-            if (mFileWriter != null) {
-                try {
-                    mFileWriter.close();
-                } catch (IOException e) {
-                    logException("Unable to close all file streams.", e);
-                    return;
-                }
-            }
-
             mFile = currentFile;
-            mFileWriter = currentFileWriter;
+            mLogWriter =
+                    new AsyncLogWriter<>(
+                            TAG,
+                            RECORD_CAPACITY,
+                            OVERFLOW_POLICY,
+                            LogRecord::new,
+                            currentRecordWriter);
             Toast.makeText(mContext, "File opened: " + currentFilePath, Toast.LENGTH_SHORT).show();
 
+            // Join the logs of the sessions interrupted before their log was closed
+            for (File segmentDirectory :
+                    SegmentedLogOutputStream.findInterruptedLogs(baseDirectory, mFile)) {
+                recoverLog(segmentDirectory);
+            }
+
             // To make sure that files do not fill up the external storage:
             // - Remove all empty files
             FileFilter filter = new FileToDeleteFilter(mFile);
             for (File existingFile : baseDirectory.listFiles(filter)) {
                 existingFile.delete();
             }
-            // - Trim the number of files with data
+            // - Trim the number of sessions with data, a log being written is a directory
+            File currentSegmentDirectory = SegmentedLogOutputStream.getSegmentDirectory(mFile);
             File[] existingFiles = baseDirectory.listFiles();
             int filesToDeleteCount = existingFiles.length - MAX_FILES_STORED;
             if (filesToDeleteCount > 0) {
                 Arrays.sort(existingFiles);
                 for (int i = 0; i < filesToDeleteCount; ++i) {
-                    existingFiles[i].delete();
+                    if (existingFiles[i].equals(currentSegmentDirectory)) {
+                        continue;
+                    }
+                    if (existingFiles[i].isDirectory()) {
+                        SegmentedLogOutputStream.deleteSegments(existingFiles[i]);
+                    } else {
+                        existingFiles[i].delete();
+                    }
                 }
             }
         }
@@ -206,6 +225,13 @@ public class DefaultFileLogger implements GnssListener {
             return;
         }
 
+        // The records still waiting for the writer thread are written before the file is shared
+        synchronized (mFileLock) {
+            if (!closeLogWriter()) {
+                return;
+            }
+        }
+
         Intent emailIntent = new Intent(Intent.ACTION_SEND);
         emailIntent.setType("*/*");
         emailIntent.putExtra(Intent.EXTRA_SUBJECT, "SensorLog");
@@ -215,16 +241,88 @@ public class DefaultFileLogger implements GnssListener {
                 FileProvider.getUriForFile(mContext, BuildConfig.APPLICATION_ID + ".provider", mFile);
         emailIntent.putExtra(Intent.EXTRA_STREAM, fileURI);
         mUiComponent.startActivity(Intent.createChooser(emailIntent, "Send log.."));
-        if (mFileWriter != null) {
-            try {
-                mFileWriter.flush();
-                mFileWriter.close();
-                mFileWriter = null;
-            } catch (IOException e) {
-                logException("Unable to close all file streams.", e);
-                return;
-            }
+    }
+
+    /**
+     * Returns the comment lines describing the records, written at the start of the text log and
+     * kept verbatim in the header of the binary log.
+     */
+    private String getFileHeader() {
+        String manufacturer = Build.MANUFACTURER;
+        String model = Build.MODEL;
+        String fileVersion =
+                mContext.getString(R.string.app_version)
+                        + " Platform: "
+                        + Build.VERSION.RELEASE
+                        + " "
+                        + "Manufacturer: "
+                        + manufacturer
+                        + " "
+                        + "Model: "
+                        + model;
+        return COMMENT_START + LINE_SEPARATOR
+                + COMMENT_START + "Header Description:" + LINE_SEPARATOR
+                + COMMENT_START + LINE_SEPARATOR
+                + COMMENT_START + VERSION_TAG + fileVersion + LINE_SEPARATOR
+                + COMMENT_START + LINE_SEPARATOR
+                + COMMENT_START
+                + "Raw,ElapsedRealtimeMillis,TimeNanos,LeapSecond,TimeUncertaintyNanos,FullBiasNanos,"
+                + "BiasNanos,BiasUncertaintyNanos,DriftNanosPerSecond,DriftUncertaintyNanosPerSecond,"
+                + "HardwareClockDiscontinuityCount,Svid,TimeOffsetNanos,State,ReceivedSvTimeNanos,"
+                + "ReceivedSvTimeUncertaintyNanos,Cn0DbHz,PseudorangeRateMetersPerSecond,"
+                + "PseudorangeRateUncertaintyMetersPerSecond,"
+                + "AccumulatedDeltaRangeState,AccumulatedDeltaRangeMeters,"
+                + "AccumulatedDeltaRangeUncertaintyMeters,CarrierFrequencyHz,CarrierCycles,"
+                + "CarrierPhase,CarrierPhaseUncertainty,MultipathIndicator,SnrInDb,"
+                + "ConstellationType,AgcDb,CarrierFrequencyHz"
+                + LINE_SEPARATOR
+                + COMMENT_START + LINE_SEPARATOR
+                + COMMENT_START
+                + "Fix,Provider,Latitude,Longitude,Altitude,Speed,Accuracy,(UTC)TimeInMs"
+                + LINE_SEPARATOR
+                + COMMENT_START + LINE_SEPARATOR
+                + COMMENT_START + "Nav,Svid,Type,Status,MessageId,Sub-messageId,Data(Bytes)"
+                + LINE_SEPARATOR
+                + COMMENT_START + LINE_SEPARATOR;
+    }
+
+    /** Joins the segments of a session that was interrupted into its log file. */
+    private void recoverLog(File segmentDirectory) {
+        try {
+            File logFile = SegmentedLogOutputStream.recover(segmentDirectory);
+            Log.i(GnssContainer.TAG + TAG, "Recovered interrupted log: " + logFile.getName());
+        } catch (IOException e) {
+            logException("Could not recover log: " + segmentDirectory.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Writes the pending records and closes the current file, if any. Returns {@code false} if the
+     * file could not be written completely.
+     */
+    private boolean closeLogWriter() {
+        if (mLogWriter == null) {
+            return true;
         }
+        AsyncLogWriter<LogRecord> logWriter = mLogWriter;
+        mLogWriter = null;
+        try {
+            logWriter.close();
+        } catch (IOException e) {
+            logException("Unable to close all file streams.", e);
+            return false;
+        }
+        Log.i(
+                GnssContainer.TAG + TAG,
+                String.format(
+                        "Log closed: %d records written, %d dropped, at most %d pending",
+                        logWriter.getWrittenRecordCount(),
+                        logWriter.getDroppedRecordCount(),
+                        logWriter.getMaxLag()));
+        if (logWriter.getDroppedRecordCount() > 0) {
+            logError(logWriter.getDroppedRecordCount() + " records dropped, storage too slow.");
+        }
+        return true;
     }
 
     @Override
@@ -239,26 +337,19 @@ public class DefaultFileLogger implements GnssListener {
     public void onLocationChanged(Location location) {
         if (location.getProvider().equals(LocationManager.GPS_PROVIDER)) {
             synchronized (mFileLock) {
-                if (mFileWriter == null) {
+                LogRecord record = claimRecord();
+                if (record == null) {
                     return;
                 }
-                String locationStream =
-                        String.format(
-                                Locale.US,
-                                "Fix,%s,%f,%f,%f,%f,%f,%d",
-                                location.getProvider(),
-                                location.getLatitude(),
-                                location.getLongitude(),
-                                location.getAltitude(),
-                                location.getSpeed(),
-                                location.getAccuracy(),
-                                location.getTime());
-                try {
-                    mFileWriter.write(locationStream);
-                    mFileWriter.newLine();
-                } catch (IOException e) {
-                    logException(ERROR_WRITING_FILE, e);
-                }
+                record.type = RECORD_FIX;
+                record.provider = location.getProvider();
+                record.latitudeDegrees = location.getLatitude();
+                record.longitudeDegrees = location.getLongitude();
+                record.altitudeMeters = location.getAltitude();
+                record.speedMps = location.getSpeed();
+                record.accuracyMeters = location.getAccuracy();
+                record.timeMillis = location.getTime();
+                mLogWriter.publish();
             }
         }
     }
@@ -269,21 +360,33 @@ public class DefaultFileLogger implements GnssListener {
 
     @Override
     public void onGnssMeasurementsReceived(GnssMeasurementsEvent event, boolean isGpsOnly) {
+    }
+
+    @Override
+    public void onGnssEpochReceived(GnssEpochSnapshot epoch, boolean isGpsOnly) {
         synchronized (mFileLock) {
-            if (mFileWriter == null) {
+            int measurementCount =
+                    isGpsOnly
+                            ? epoch.getMeasurementCount(GnssStatus.CONSTELLATION_GPS)
+                            : epoch.getMeasurementCount();
+            if (measurementCount == 0) {
                 return;
             }
-            GnssClock gnssClock = event.getClock();
-            for (GnssMeasurement measurement : event.getMeasurements()) {
-                if(isGpsOnly && measurement.getConstellationType() != GnssStatus.CONSTELLATION_GPS) {
+            LogRecord record = claimRecord();
+            if (record == null) {
+                return;
+            }
+            record.type = RECORD_RAW;
+            epoch.copyClockTo(record.clock);
+            record.ensureMeasurementCapacity(measurementCount);
+            record.measurementCount = 0;
+            for (int i = 0; i < epoch.getMeasurementCount(); i++) {
+                if (isGpsOnly && epoch.getConstellationType(i) != GnssStatus.CONSTELLATION_GPS) {
                     continue;
                 }
-                try {
-                    writeGnssMeasurementToFile(gnssClock, measurement);
-                } catch (IOException e) {
-                    logException(ERROR_WRITING_FILE, e);
-                }
+                epoch.copyMeasurementTo(i, record.measurements[record.measurementCount++]);
             }
+            mLogWriter.publish();
         }
     }
 
@@ -294,33 +397,21 @@ public class DefaultFileLogger implements GnssListener {
     @Override
     public void onGnssNavigationMessageReceived(GnssNavigationMessage navigationMessage) {
         synchronized (mFileLock) {
-            if (mFileWriter == null) {
+            LogRecord record = claimRecord();
+            if (record == null) {
                 return;
             }
-            StringBuilder builder = new StringBuilder("Nav");
-            builder.append(RECORD_DELIMITER);
-            builder.append(navigationMessage.getSvid());
-            builder.append(RECORD_DELIMITER);
-            builder.append(navigationMessage.getType());
-            builder.append(RECORD_DELIMITER);
-
-            int status = navigationMessage.getStatus();
-            builder.append(status);
-            builder.append(RECORD_DELIMITER);
-            builder.append(navigationMessage.getMessageId());
-            builder.append(RECORD_DELIMITER);
-            builder.append(navigationMessage.getSubmessageId());
+            record.type = RECORD_NAV;
+            record.svid = navigationMessage.getSvid();
+            record.navigationMessageType = navigationMessage.getType();
+            record.status = navigationMessage.getStatus();
+            record.messageId = navigationMessage.getMessageId();
+            record.subMessageId = navigationMessage.getSubmessageId();
             byte[] data = navigationMessage.getData();
-            for (byte word : data) {
-                builder.append(RECORD_DELIMITER);
-                builder.append(word);
-            }
-            try {
-                mFileWriter.write(builder.toString());
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                logException(ERROR_WRITING_FILE, e);
-            }
+            record.ensureDataCapacity(data.length);
+            System.arraycopy(data, 0, record.data, 0, data.length);
+            record.dataLength = data.length;
+            mLogWriter.publish();
         }
     }
 
@@ -335,16 +426,14 @@ public class DefaultFileLogger implements GnssListener {
     @Override
     public void onNmeaReceived(long timestamp, String s) {
         synchronized (mFileLock) {
-            if (mFileWriter == null) {
+            LogRecord record = claimRecord();
+            if (record == null) {
                 return;
             }
-            String nmeaStream = String.format(Locale.US, "NMEA,%s,%d", s, timestamp);
-            try {
-                mFileWriter.write(nmeaStream);
-                mFileWriter.newLine();
-            } catch (IOException e) {
-                logException(ERROR_WRITING_FILE, e);
-            }
+            record.type = RECORD_NMEA;
+            record.sentence = s;
+            record.timestamp = timestamp;
+            mLogWriter.publish();
         }
     }
 
@@ -356,55 +445,9 @@ public class DefaultFileLogger implements GnssListener {
     public void onTTFFReceived(long l) {
     }
 
-    private void writeGnssMeasurementToFile(GnssClock clock, GnssMeasurement measurement)
-            throws IOException {
-        String clockStream =
-                String.format(
-                        "Raw,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
-                        SystemClock.elapsedRealtime(),
-                        clock.getTimeNanos(),
-                        clock.hasLeapSecond() ? clock.getLeapSecond() : "",
-                        clock.hasTimeUncertaintyNanos() ? clock.getTimeUncertaintyNanos() : "",
-                        clock.getFullBiasNanos(),
-                        clock.hasBiasNanos() ? clock.getBiasNanos() : "",
-                        clock.hasBiasUncertaintyNanos() ? clock.getBiasUncertaintyNanos() : "",
-                        clock.hasDriftNanosPerSecond() ? clock.getDriftNanosPerSecond() : "",
-                        clock.hasDriftUncertaintyNanosPerSecond()
-                                ? clock.getDriftUncertaintyNanosPerSecond()
-                                : "",
-                        clock.getHardwareClockDiscontinuityCount() + ",");
-        mFileWriter.write(clockStream);
-
-        String measurementStream =
-                String.format(
-                        "%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
-                        measurement.getSvid(),
-                        measurement.getTimeOffsetNanos(),
-                        measurement.getState(),
-                        measurement.getReceivedSvTimeNanos(),
-                        measurement.getReceivedSvTimeUncertaintyNanos(),
-                        measurement.getCn0DbHz(),
-                        measurement.getPseudorangeRateMetersPerSecond(),
-                        measurement.getPseudorangeRateUncertaintyMetersPerSecond(),
-                        measurement.getAccumulatedDeltaRangeState(),
-                        measurement.getAccumulatedDeltaRangeMeters(),
-                        measurement.getAccumulatedDeltaRangeUncertaintyMeters(),
-                        measurement.hasCarrierFrequencyHz() ? measurement.getCarrierFrequencyHz() : "",
-                        measurement.hasCarrierCycles() ? measurement.getCarrierCycles() : "",
-                        measurement.hasCarrierPhase() ? measurement.getCarrierPhase() : "",
-                        measurement.hasCarrierPhaseUncertainty()
-                                ? measurement.getCarrierPhaseUncertainty()
-                                : "",
-                        measurement.getMultipathIndicator(),
-                        measurement.hasSnrInDb() ? measurement.getSnrInDb() : "",
-                        measurement.getConstellationType(),
-                        Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
-                                && measurement.hasAutomaticGainControlLevelDb()
-                                ? measurement.getAutomaticGainControlLevelDb()
-                                : "",
-                        measurement.hasCarrierFrequencyHz() ? measurement.getCarrierFrequencyHz() : "");
-        mFileWriter.write(measurementStream);
-        mFileWriter.newLine();
+    /** Returns the slot of the next record, or {@code null} if the record is not logged. */
+    private LogRecord claimRecord() {
+        return mLogWriter == null ? null : mLogWriter.claim();
     }
 
     private void logException(String errorMessage, Exception e) {
@@ -417,6 +460,203 @@ public class DefaultFileLogger implements GnssListener {
         Toast.makeText(mContext, errorMessage, Toast.LENGTH_LONG).show();
     }
 
+    /**
+     * A slot of the {@link AsyncLogWriter}, holding any of the records of the log. A {@code Raw}
+     * record holds all the measurements of an epoch.
+     */
+    private static class LogRecord {
+        int type;
+
+        final LoggedGnssClock clock = new LoggedGnssClock();
+        LoggedGnssMeasurement[] measurements = new LoggedGnssMeasurement[0];
+        int measurementCount;
+
+        int svid;
+        int navigationMessageType;
+        int status;
+        int messageId;
+        int subMessageId;
+        byte[] data = new byte[0];
+        int dataLength;
+
+        String provider;
+        double latitudeDegrees;
+        double longitudeDegrees;
+        double altitudeMeters;
+        float speedMps;
+        float accuracyMeters;
+        long timeMillis;
+
+        String sentence;
+        long timestamp;
+
+        /** Grows the measurements of the slot, which only allocates until the largest epoch */
+        void ensureMeasurementCapacity(int count) {
+            if (measurements.length >= count) {
+                return;
+            }
+            int previousLength = measurements.length;
+            measurements = Arrays.copyOf(measurements, count);
+            for (int i = previousLength; i < count; i++) {
+                measurements[i] = new LoggedGnssMeasurement();
+            }
+        }
+
+        void ensureDataCapacity(int length) {
+            if (data.length < length) {
+                data = new byte[length];
+            }
+        }
+    }
+
+    /** Formats the records to the text log. */
+    private static class TextRecordWriter implements AsyncLogWriter.RecordWriter<LogRecord> {
+        private final BufferedWriter mFileWriter;
+        private final SegmentedLogOutputStream mOutputStream;
+        private final GnssLogCsvFormat mFormat = new GnssLogCsvFormat();
+        private boolean mUncommitted;
+
+        TextRecordWriter(BufferedWriter fileWriter, SegmentedLogOutputStream outputStream) {
+            mFileWriter = fileWriter;
+            mOutputStream = outputStream;
+        }
+
+        @Override
+        public void write(LogRecord record) throws IOException {
+            mUncommitted = true;
+            switch (record.type) {
+                case RECORD_RAW:
+                    for (int i = 0; i < record.measurementCount; i++) {
+                        mFormat.formatRawRecord(record.clock, record.measurements[i]);
+                        writeLine();
+                    }
+                    break;
+                case RECORD_NAV:
+                    mFormat.formatNavRecord(
+                            record.svid,
+                            record.navigationMessageType,
+                            record.status,
+                            record.messageId,
+                            record.subMessageId,
+                            record.data,
+                            record.dataLength);
+                    writeLine();
+                    break;
+                case RECORD_FIX:
+                    mFormat.formatFixRecord(
+                            record.provider,
+                            record.latitudeDegrees,
+                            record.longitudeDegrees,
+                            record.altitudeMeters,
+                            record.speedMps,
+                            record.accuracyMeters,
+                            record.timeMillis);
+                    writeLine();
+                    break;
+                case RECORD_NMEA:
+                    mFormat.formatNmeaRecord(record.sentence, record.timestamp);
+                    writeLine();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown record type: " + record.type);
+            }
+        }
+
+        @Override
+        public void onDrained() throws IOException {
+            // Flushing commits, once all the buffered lines reached the segment
+            if (mUncommitted && mOutputStream.isCommitDue()) {
+                mFileWriter.flush();
+                mUncommitted = false;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mFileWriter.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFileWriter.close();
+        }
+
+        private void writeLine() throws IOException {
+            mFormat.writeTo(mFileWriter);
+            mFileWriter.newLine();
+        }
+    }
+
+    /** Encodes the records to the binary log. */
+    private static class BinaryRecordWriter implements AsyncLogWriter.RecordWriter<LogRecord> {
+        private final GnssBinaryLogWriter mBinaryFileWriter;
+        private final SegmentedLogOutputStream mOutputStream;
+        private boolean mUncommitted;
+
+        BinaryRecordWriter(
+                GnssBinaryLogWriter binaryFileWriter, SegmentedLogOutputStream outputStream) {
+            mBinaryFileWriter = binaryFileWriter;
+            mOutputStream = outputStream;
+        }
+
+        @Override
+        public void write(LogRecord record) throws IOException {
+            mUncommitted = true;
+            switch (record.type) {
+                case RECORD_RAW:
+                    mBinaryFileWriter.beginEpoch(record.clock, record.measurementCount);
+                    for (int i = 0; i < record.measurementCount; i++) {
+                        mBinaryFileWriter.writeMeasurement(record.measurements[i]);
+                    }
+                    break;
+                case RECORD_NAV:
+                    mBinaryFileWriter.writeNavigationMessage(
+                            record.svid,
+                            record.navigationMessageType,
+                            record.status,
+                            record.messageId,
+                            record.subMessageId,
+                            record.data,
+                            record.dataLength);
+                    break;
+                case RECORD_FIX:
+                    mBinaryFileWriter.writeFix(
+                            record.provider,
+                            record.latitudeDegrees,
+                            record.longitudeDegrees,
+                            record.altitudeMeters,
+                            record.speedMps,
+                            record.accuracyMeters,
+                            record.timeMillis);
+                    break;
+                case RECORD_NMEA:
+                    mBinaryFileWriter.writeNmea(record.sentence, record.timestamp);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown record type: " + record.type);
+            }
+        }
+
+        @Override
+        public void onDrained() throws IOException {
+            // Flushing commits, the records being complete the log is valid up to the commit
+            if (mUncommitted && mOutputStream.isCommitDue()) {
+                mBinaryFileWriter.flush();
+                mUncommitted = false;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mBinaryFileWriter.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mBinaryFileWriter.close();
+        }
+    }
+
     /**
      * Implements a {@link FileFilter} to delete files that are not in the
      * {@link FileToDeleteFilter#mRetainedFiles}.
@@ -435,7 +675,7 @@ public class DefaultFileLogger implements GnssListener {
          */
         @Override
         public boolean accept(File pathname) {
-            if (pathname == null || !pathname.exists()) {
+            if (pathname == null || !pathname.exists() || pathname.isDirectory()) {
                 return false;
             }
             if (mRetainedFiles.contains(pathname)) {
@@ -17,6 +17,8 @@
 package com.google.android.apps.location.gps.gnsslogger;
 
 import android.content.Context;
+import android.location.GnssClock;
+import android.location.GnssMeasurement;
 import android.location.GnssMeasurementsEvent;
 import android.location.GnssNavigationMessage;
 import android.location.GnssStatus;
@@ -24,11 +26,18 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.location.OnNmeaMessageListener;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.location.lbs.gnss.gps.pseudorange.GnssEpochSnapshot;
+import com.google.location.lbs.gnss.gps.pseudorange.LoggedGnssClock;
+import com.google.location.lbs.gnss.gps.pseudorange.LoggedGnssMeasurement;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -41,6 +50,35 @@ public class GnssContainer {
     private static final long LOCATION_RATE_GPS_MS = 1000;
   private static final long LOCATION_RATE_NETWORK_MS = TimeUnit.SECONDS.toMillis(60L);
 
+  /** Provider, location and location status callbacks */
+  public static final int EVENT_LOCATION = 1;
+  /** {@link GnssListener#onTTFFReceived(long)} */
+  public static final int EVENT_TTFF = 1 << 1;
+  /** Measurement and measurement status callbacks, see also {@link #EVENT_EPOCHS} */
+  public static final int EVENT_MEASUREMENTS = 1 << 2;
+  /** Navigation message and navigation message status callbacks */
+  public static final int EVENT_NAVIGATION_MESSAGES = 1 << 3;
+  /** {@link GnssListener#onGnssStatusChanged(GnssStatus)} */
+  public static final int EVENT_GNSS_STATUS = 1 << 4;
+  /** {@link GnssListener#onNmeaReceived(long, String)} */
+  public static final int EVENT_NMEA = 1 << 5;
+  /** {@link GnssListener#onListenerRegistration(String, boolean)} */
+  public static final int EVENT_REGISTRATION = 1 << 6;
+  /**
+   * {@link GnssListener#onGnssEpochReceived(GnssEpochSnapshot, boolean)} and the measurement
+   * status callbacks. The snapshot of each measurement event is only created if a listener
+   * receives these callbacks.
+   */
+  public static final int EVENT_EPOCHS = 1 << 7;
+  public static final int EVENT_ALL = (1 << 8) - 1;
+  /**
+   * Restricts the {@link #EVENT_LOCATION} and {@link #EVENT_REGISTRATION} callbacks to the ones
+   * received before the first GPS fix of the last single location request.
+   */
+  public static final int UNTIL_FIRST_FIX = 1 << 16;
+
+  private static final GnssListener[] NO_LISTENERS = new GnssListener[0];
+
   private boolean mLogLocations = true;
   private boolean mLogNavigationMessages = true;
   private boolean mLogMeasurements = true;
@@ -52,7 +90,23 @@ public class GnssContainer {
   private long ttff;
   private boolean firstTime = true;
 
-  private final List<GnssListener> mLoggers;
+  // The listeners of each type of callback, in the order they were added. The arrays are
+  // replaced, never modified, so that the callbacks iterate them without locking.
+  private volatile GnssListener[] mLocationListeners = NO_LISTENERS;
+  private volatile GnssListener[] mFirstFixLocationListeners = NO_LISTENERS;
+  private volatile GnssListener[] mTtffListeners = NO_LISTENERS;
+  private volatile GnssListener[] mMeasurementListeners = NO_LISTENERS;
+  private volatile GnssListener[] mEpochListeners = NO_LISTENERS;
+  private volatile GnssListener[] mMeasurementStatusListeners = NO_LISTENERS;
+  private volatile GnssListener[] mNavigationMessageListeners = NO_LISTENERS;
+  private volatile GnssListener[] mGnssStatusListeners = NO_LISTENERS;
+  private volatile GnssListener[] mNmeaListeners = NO_LISTENERS;
+  private volatile GnssListener[] mRegistrationListeners = NO_LISTENERS;
+  private volatile GnssListener[] mFirstFixRegistrationListeners = NO_LISTENERS;
+  private final List<GnssListenerLane> mLanes = new CopyOnWriteArrayList<>();
+
+  /** Only used by the measurement callback thread */
+  private final GnssEpochSnapshot.Builder mEpochBuilder = new GnssEpochSnapshot.Builder();
 
   private final LocationManager mLocationManager;
   private final LocationListener mLocationListener =
@@ -61,24 +115,28 @@ public class GnssContainer {
         @Override
         public void onProviderEnabled(String provider) {
           if (mLogLocations) {
-            for (GnssListener logger : mLoggers) {
-              if (logger instanceof AgnssUiLogger && !firstTime) {
-                continue;
-              }
+            for (GnssListener logger : mLocationListeners) {
               logger.onProviderEnabled(provider);
             }
+            if (firstTime) {
+              for (GnssListener logger : mFirstFixLocationListeners) {
+                logger.onProviderEnabled(provider);
+              }
+            }
           }
         }
 
         @Override
         public void onProviderDisabled(String provider) {
           if (mLogLocations) {
-            for (GnssListener logger : mLoggers) {
-              if (logger instanceof AgnssUiLogger && !firstTime) {
-                continue;
-              }
+            for (GnssListener logger : mLocationListeners) {
               logger.onProviderDisabled(provider);
             }
+            if (firstTime) {
+              for (GnssListener logger : mFirstFixLocationListeners) {
+                logger.onProviderDisabled(provider);
+              }
+            }
           }
         }
 
@@ -86,30 +144,37 @@ public class GnssContainer {
         public void onLocationChanged(Location location) {
           if (firstTime && location.getProvider().equals(LocationManager.GPS_PROVIDER)) {
             if (mLogLocations) {
-              for (GnssListener logger : mLoggers) {
-                firstLocatinTimeNanos = SystemClock.elapsedRealtimeNanos();
-                ttff = firstLocatinTimeNanos - registrationTimeNanos;
+              firstLocatinTimeNanos = SystemClock.elapsedRealtimeNanos();
+              ttff = firstLocatinTimeNanos - registrationTimeNanos;
+              for (GnssListener logger : mTtffListeners) {
                 logger.onTTFFReceived(ttff);
               }
             }
             firstTime = false;
           }
           if (mLogLocations) {
-            for (GnssListener logger : mLoggers) {
-              if (logger instanceof AgnssUiLogger && !firstTime) {
-                continue;
-              }
+            for (GnssListener logger : mLocationListeners) {
               logger.onLocationChanged(location);
             }
+            if (firstTime) {
+              for (GnssListener logger : mFirstFixLocationListeners) {
+                logger.onLocationChanged(location);
+              }
+            }
           }
         }
 
         @Override
         public void onStatusChanged(String provider, int status, Bundle extras) {
           if (mLogLocations) {
-            for (GnssListener logger : mLoggers) {
+            for (GnssListener logger : mLocationListeners) {
               logger.onLocationStatusChanged(provider, status, extras);
             }
+            if (firstTime) {
+              for (GnssListener logger : mFirstFixLocationListeners) {
+                logger.onLocationStatusChanged(provider, status, extras);
+              }
+            }
           }
         }
       };
@@ -119,8 +184,16 @@ public class GnssContainer {
         @Override
         public void onGnssMeasurementsReceived(GnssMeasurementsEvent event) {
           if (mLogMeasurements) {
-            for (GnssListener logger : mLoggers) {
-              logger.onGnssMeasurementsReceived(event, mGpsOnly);
+            boolean gpsOnly = mGpsOnly;
+            GnssListener[] epochListeners = mEpochListeners;
+            if (epochListeners.length > 0) {
+              GnssEpochSnapshot epoch = decode(event);
+              for (GnssListener logger : epochListeners) {
+                logger.onGnssEpochReceived(epoch, gpsOnly);
+              }
+            }
+            for (GnssListener logger : mMeasurementListeners) {
+              logger.onGnssMeasurementsReceived(event, gpsOnly);
             }
           }
         }
@@ -128,7 +201,7 @@ public class GnssContainer {
         @Override
         public void onStatusChanged(int status) {
           if (mLogMeasurements) {
-            for (GnssListener logger : mLoggers) {
+            for (GnssListener logger : mMeasurementStatusListeners) {
               logger.onGnssMeasurementsStatusChanged(status);
             }
           }
@@ -140,7 +213,7 @@ public class GnssContainer {
         @Override
         public void onGnssNavigationMessageReceived(GnssNavigationMessage event) {
           if (mLogNavigationMessages) {
-            for (GnssListener logger : mLoggers) {
+            for (GnssListener logger : mNavigationMessageListeners) {
               logger.onGnssNavigationMessageReceived(event);
             }
           }
@@ -149,7 +222,7 @@ public class GnssContainer {
         @Override
         public void onStatusChanged(int status) {
           if (mLogNavigationMessages) {
-            for (GnssListener logger : mLoggers) {
+            for (GnssListener logger : mNavigationMessageListeners) {
               logger.onGnssNavigationMessageStatusChanged(status);
             }
           }
@@ -169,7 +242,7 @@ public class GnssContainer {
 
         @Override
         public void onSatelliteStatusChanged(GnssStatus status) {
-          for (GnssListener logger : mLoggers) {
+          for (GnssListener logger : mGnssStatusListeners) {
             logger.onGnssStatusChanged(status);
           }
         }
@@ -180,16 +253,114 @@ public class GnssContainer {
         @Override
         public void onNmeaMessage(String s, long l) {
           if (mLogNmeas) {
-            for (GnssListener logger : mLoggers) {
+            for (GnssListener logger : mNmeaListeners) {
               logger.onNmeaReceived(l, s);
             }
           }
         }
       };
 
+  /**
+   * Creates a container dispatching all the callbacks to {@code loggers} on the callback thread,
+   * more listeners can be added with {@link #addListener} and {@link #addLaneListener}.
+   */
   public GnssContainer(Context context, GnssListener... loggers) {
-      mLoggers = Arrays.asList(loggers);
     mLocationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+    for (GnssListener logger : loggers) {
+      addListener(logger, EVENT_ALL);
+    }
+  }
+
+  /**
+   * Dispatches the callbacks selected by {@code events} to {@code listener} on the callback
+   * thread, which waits for the listener. Meant for listeners that return quickly.
+   *
+   * @param events A combination of the {@code EVENT_*} flags and {@link #UNTIL_FIRST_FIX}
+   */
+  public synchronized void addListener(GnssListener listener, int events) {
+    if ((events & EVENT_LOCATION) != 0) {
+      if ((events & UNTIL_FIRST_FIX) != 0) {
+        mFirstFixLocationListeners = append(mFirstFixLocationListeners, listener);
+      } else {
+        mLocationListeners = append(mLocationListeners, listener);
+      }
+    }
+    if ((events & EVENT_TTFF) != 0) {
+      mTtffListeners = append(mTtffListeners, listener);
+    }
+    if ((events & EVENT_MEASUREMENTS) != 0) {
+      mMeasurementListeners = append(mMeasurementListeners, listener);
+    }
+    if ((events & EVENT_EPOCHS) != 0) {
+      mEpochListeners = append(mEpochListeners, listener);
+    }
+    if ((events & (EVENT_MEASUREMENTS | EVENT_EPOCHS)) != 0) {
+      mMeasurementStatusListeners = append(mMeasurementStatusListeners, listener);
+    }
+    if ((events & EVENT_NAVIGATION_MESSAGES) != 0) {
+      mNavigationMessageListeners = append(mNavigationMessageListeners, listener);
+    }
+    if ((events & EVENT_GNSS_STATUS) != 0) {
+      mGnssStatusListeners = append(mGnssStatusListeners, listener);
+    }
+    if ((events & EVENT_NMEA) != 0) {
+      mNmeaListeners = append(mNmeaListeners, listener);
+    }
+    if ((events & EVENT_REGISTRATION) != 0) {
+      if ((events & UNTIL_FIRST_FIX) != 0) {
+        mFirstFixRegistrationListeners = append(mFirstFixRegistrationListeners, listener);
+      } else {
+        mRegistrationListeners = append(mRegistrationListeners, listener);
+      }
+    }
+  }
+
+  /**
+   * Dispatches the callbacks selected by {@code events} to {@code listener} on a lane of its own,
+   * so that neither the callback thread nor the other listeners wait for it.
+   *
+   * @param events A combination of the {@code EVENT_*} flags and {@link #UNTIL_FIRST_FIX}
+   * @param capacity The number of callbacks that can wait for the listener
+   * @param overflowPolicy What happens to a callback received while {@code capacity} are waiting
+   * @return The lane, for its queue depth, lag and drop metrics
+   */
+  GnssListenerLane addLaneListener(
+      GnssListener listener,
+      int events,
+      int capacity,
+      AsyncLogWriter.OverflowPolicy overflowPolicy) {
+    GnssListenerLane lane =
+        new GnssListenerLane(
+            listener.getClass().getSimpleName() + " lane", listener, capacity, overflowPolicy);
+    mLanes.add(lane);
+    addListener(lane, events);
+    return lane;
+  }
+
+  /** Returns the lanes added by {@link #addLaneListener}. */
+  List<GnssListenerLane> getLanes() {
+    return mLanes;
+  }
+
+  /**
+   * Stops the lanes once the callbacks already queued are delivered, and logs their metrics. The
+   * callbacks received afterwards are dropped by the lanes.
+   */
+  public void closeLanes() {
+    for (GnssListenerLane lane : mLanes) {
+      lane.close();
+      Log.i(
+          TAG,
+          String.format(
+              "%s closed: %d callbacks delivered, %d dropped, %d failed, at most %d queued, "
+                  + "at most %d ms late",
+              lane.getName(),
+              lane.getDeliveredEventCount(),
+              lane.getDroppedEventCount(),
+              lane.getFailedEventCount(),
+              lane.getMaxQueueDepth(),
+              lane.getMaxLagMillis()));
+    }
   }
 
   public LocationManager getLocationManager() {
@@ -334,11 +505,96 @@ public class GnssContainer {
   }
 
   private void logRegistration(String listener, boolean result) {
-    for (GnssListener logger : mLoggers) {
-      if (logger instanceof AgnssUiLogger && !firstTime) {
-        continue;
-      }
+    for (GnssListener logger : mRegistrationListeners) {
       logger.onListenerRegistration(listener, result);
     }
+    if (firstTime) {
+      for (GnssListener logger : mFirstFixRegistrationListeners) {
+        logger.onListenerRegistration(listener, result);
+      }
+    }
+  }
+
+  /** Decodes {@code event} into the snapshot shared by the {@link #EVENT_EPOCHS} listeners. */
+  private GnssEpochSnapshot decode(GnssMeasurementsEvent event) {
+    GnssClock clock = event.getClock();
+    copyClock(clock, mEpochBuilder.getClock());
+    mEpochBuilder.setHasFullBiasNanos(clock.hasFullBiasNanos());
+    for (GnssMeasurement measurement : event.getMeasurements()) {
+      copyMeasurement(measurement, mEpochBuilder.addMeasurement());
+    }
+    return mEpochBuilder.build();
+  }
+
+  private static void copyClock(GnssClock clock, LoggedGnssClock loggedClock) {
+    loggedClock.timeNanos = clock.getTimeNanos();
+    loggedClock.hasLeapSecond = clock.hasLeapSecond();
+    loggedClock.leapSecond = clock.hasLeapSecond() ? clock.getLeapSecond() : 0;
+    loggedClock.hasTimeUncertaintyNanos = clock.hasTimeUncertaintyNanos();
+    loggedClock.timeUncertaintyNanos =
+        clock.hasTimeUncertaintyNanos() ? clock.getTimeUncertaintyNanos() : 0;
+    loggedClock.fullBiasNanos = clock.getFullBiasNanos();
+    loggedClock.hasBiasNanos = clock.hasBiasNanos();
+    loggedClock.biasNanos = clock.hasBiasNanos() ? clock.getBiasNanos() : 0;
+    loggedClock.hasBiasUncertaintyNanos = clock.hasBiasUncertaintyNanos();
+    loggedClock.biasUncertaintyNanos =
+        clock.hasBiasUncertaintyNanos() ? clock.getBiasUncertaintyNanos() : 0;
+    loggedClock.hasDriftNanosPerSecond = clock.hasDriftNanosPerSecond();
+    loggedClock.driftNanosPerSecond =
+        clock.hasDriftNanosPerSecond() ? clock.getDriftNanosPerSecond() : 0;
+    loggedClock.hasDriftUncertaintyNanosPerSecond = clock.hasDriftUncertaintyNanosPerSecond();
+    loggedClock.driftUncertaintyNanosPerSecond =
+        clock.hasDriftUncertaintyNanosPerSecond()
+            ? clock.getDriftUncertaintyNanosPerSecond()
+            : 0;
+    loggedClock.hardwareClockDiscontinuityCount = clock.getHardwareClockDiscontinuityCount();
+  }
+
+  private static void copyMeasurement(
+      GnssMeasurement measurement, LoggedGnssMeasurement logged) {
+    // Sampled for every measurement, as the text log always did
+    logged.elapsedRealtimeMillis = SystemClock.elapsedRealtime();
+    logged.svid = measurement.getSvid();
+    logged.timeOffsetNanos = measurement.getTimeOffsetNanos();
+    logged.state = measurement.getState();
+    logged.receivedSvTimeNanos = measurement.getReceivedSvTimeNanos();
+    logged.receivedSvTimeUncertaintyNanos = measurement.getReceivedSvTimeUncertaintyNanos();
+    logged.cn0DbHz = measurement.getCn0DbHz();
+    logged.pseudorangeRateMetersPerSecond = measurement.getPseudorangeRateMetersPerSecond();
+    logged.pseudorangeRateUncertaintyMetersPerSecond =
+        measurement.getPseudorangeRateUncertaintyMetersPerSecond();
+    logged.accumulatedDeltaRangeState = measurement.getAccumulatedDeltaRangeState();
+    logged.accumulatedDeltaRangeMeters = measurement.getAccumulatedDeltaRangeMeters();
+    logged.accumulatedDeltaRangeUncertaintyMeters =
+        measurement.getAccumulatedDeltaRangeUncertaintyMeters();
+    logged.hasCarrierFrequencyHz = measurement.hasCarrierFrequencyHz();
+    logged.carrierFrequencyHz =
+        measurement.hasCarrierFrequencyHz() ? measurement.getCarrierFrequencyHz() : 0;
+    logged.hasCarrierCycles = measurement.hasCarrierCycles();
+    logged.carrierCycles = measurement.hasCarrierCycles() ? measurement.getCarrierCycles() : 0;
+    logged.hasCarrierPhase = measurement.hasCarrierPhase();
+    logged.carrierPhase = measurement.hasCarrierPhase() ? measurement.getCarrierPhase() : 0;
+    logged.hasCarrierPhaseUncertainty = measurement.hasCarrierPhaseUncertainty();
+    logged.carrierPhaseUncertainty =
+        measurement.hasCarrierPhaseUncertainty()
+            ? measurement.getCarrierPhaseUncertainty()
+            : 0;
+    logged.multipathIndicator = measurement.getMultipathIndicator();
+    logged.hasSnrInDb = measurement.hasSnrInDb();
+    logged.snrInDb = measurement.hasSnrInDb() ? measurement.getSnrInDb() : 0;
+    logged.constellationType = measurement.getConstellationType();
+    logged.hasAutomaticGainControlLevelDb =
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+            && measurement.hasAutomaticGainControlLevelDb();
+    logged.automaticGainControlLevelDb =
+        logged.hasAutomaticGainControlLevelDb
+            ? measurement.getAutomaticGainControlLevelDb()
+            : 0;
+  }
+
+  private static GnssListener[] append(GnssListener[] listeners, GnssListener listener) {
+    GnssListener[] appended = Arrays.copyOf(listeners, listeners.length + 1);
+    appended[listeners.length] = listener;
+    return appended;
   }
 }
@@ -24,6 +24,8 @@ import android.location.LocationListener;
 import android.location.OnNmeaMessageListener;
 import android.os.Bundle;
 
+import com.google.location.lbs.gnss.gps.pseudorange.GnssEpochSnapshot;
+
 /**  A class representing an interface for logging GPS information. */
 public interface GnssListener {
     /** @see LocationListener#onProviderEnabled(String) */
@@ -39,6 +41,11 @@ public interface GnssListener {
     *     onGnssMeasurementsReceived(GnssMeasurementsEvent)
     */
     void onGnssMeasurementsReceived(GnssMeasurementsEvent event, boolean isGpsOnly);
+    /**
+     * Same as {@link #onGnssMeasurementsReceived(GnssMeasurementsEvent, boolean)} for the event
+     * decoded once by the {@link GnssContainer}, the snapshot is shared with the other listeners.
+     */
+    void onGnssEpochReceived(GnssEpochSnapshot epoch, boolean isGpsOnly);
     /** @see GnssMeasurementsEvent.Callback#onStatusChanged(int) */
     void onGnssMeasurementsStatusChanged(int status);
     /** @see GnssNavigationMessage.Callback# onGnssNavigationMessageReceived(GnssNavigationMessage) */
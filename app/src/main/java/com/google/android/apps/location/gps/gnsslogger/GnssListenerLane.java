@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+import android.location.GnssMeasurementsEvent;
+import android.location.GnssNavigationMessage;
+import android.location.GnssStatus;
+import android.location.Location;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.google.location.lbs.gnss.gps.pseudorange.GnssEpochSnapshot;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link GnssListener} that delivers the callbacks to another listener on a dedicated thread,
+ * through a bounded queue, so that a slow listener delays neither the callback thread nor the
+ * listeners dispatched after it.
+ *
+ * <p>The callbacks are delivered in the order they are received. The events handed to the
+ * listener are the ones received by the callback thread, they are not copied. A callback throwing
+ * a {@link RuntimeException} is logged and counted, and the lane goes on with the next one.
+ */
+class GnssListenerLane implements GnssListener {
+
+    private static final String TAG = "GnssListenerLane";
+
+    /** A callback waiting in the queue, with the time it was received. */
+    private static final class Event {
+        final Runnable callback;
+        final long receivedNanos;
+
+        Event(Runnable callback, long receivedNanos) {
+            this.callback = callback;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    /** Makes the lane thread stop once the events queued before it are delivered */
+    private static final Event STOP = new Event(null, 0);
+
+    private final String mName;
+    private final GnssListener mListener;
+    private final BlockingQueue<Event> mQueue;
+    private final AsyncLogWriter.OverflowPolicy mOverflowPolicy;
+    private volatile boolean mClosed;
+
+    private volatile int mMaxQueueDepth;
+    private volatile long mDroppedEventCount;
+    private volatile long mDeliveredEventCount;
+    private volatile long mFailedEventCount;
+    private volatile long mLagNanos;
+    private volatile long mMaxLagNanos;
+
+    /**
+     * Starts the lane thread.
+     *
+     * @param capacity The number of callbacks that can wait for the listener
+     * @param overflowPolicy What happens to a callback received while the queue is full
+     */
+    GnssListenerLane(
+            String name,
+            GnssListener listener,
+            int capacity,
+            AsyncLogWriter.OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mName = name;
+        mListener = listener;
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        mOverflowPolicy = overflowPolicy;
+        new Thread(this::deliver, name).start();
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    GnssListener getListener() {
+        return mListener;
+    }
+
+    /** Returns the number of callbacks waiting for the listener. */
+    int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /** Returns the largest number of callbacks that were waiting for the listener. */
+    int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /** Returns the number of callbacks dropped because the queue was full. */
+    long getDroppedEventCount() {
+        return mDroppedEventCount;
+    }
+
+    /** Returns the number of callbacks delivered to the listener. */
+    long getDeliveredEventCount() {
+        return mDeliveredEventCount;
+    }
+
+    /** Returns the number of callbacks that threw an exception, which the lane skipped. */
+    long getFailedEventCount() {
+        return mFailedEventCount;
+    }
+
+    /** Returns how long the last delivered callback waited in the queue, in milliseconds. */
+    long getLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mLagNanos);
+    }
+
+    /** Returns the longest time a delivered callback waited in the queue, in milliseconds. */
+    long getMaxLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxLagNanos);
+    }
+
+    /**
+     * Stops the lane thread once the callbacks already queued are delivered, without waiting for
+     * it. Callbacks received afterwards are dropped.
+     */
+    void close() {
+        mClosed = true;
+        // If the queue is full the thread is not waiting, and sees the flag once it is empty
+        mQueue.offer(STOP);
+    }
+
+    private void post(Runnable callback) {
+        if (mClosed) {
+            mDroppedEventCount++;
+            return;
+        }
+        Event event = new Event(callback, System.nanoTime());
+        if (!mQueue.offer(event)) {
+            if (mOverflowPolicy == AsyncLogWriter.OverflowPolicy.DROP_NEWEST) {
+                mDroppedEventCount++;
+                return;
+            }
+            try {
+                mQueue.put(event);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mDroppedEventCount++;
+                return;
+            }
+        }
+        int depth = mQueue.size();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+    }
+
+    private void deliver() {
+        try {
+            while (!mClosed || !mQueue.isEmpty()) {
+                Event event = mQueue.take();
+                if (event == STOP) {
+                    break;
+                }
+                long lag = System.nanoTime() - event.receivedNanos;
+                mLagNanos = lag;
+                if (lag > mMaxLagNanos) {
+                    mMaxLagNanos = lag;
+                }
+                try {
+                    event.callback.run();
+                    mDeliveredEventCount++;
+                } catch (RuntimeException e) {
+                    // A failing callback must not stop the delivery of the following ones
+                    mFailedEventCount++;
+                    Log.e(GnssContainer.TAG + TAG, mName + " listener failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(GnssContainer.TAG + TAG, mName + " interrupted", e);
+        }
+    }
+
+    @Override
+    public void onProviderEnabled(String provider) {
+        post(() -> mListener.onProviderEnabled(provider));
+    }
+
+    @Override
+    public void onProviderDisabled(String provider) {
+        post(() -> mListener.onProviderDisabled(provider));
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        post(() -> mListener.onLocationChanged(location));
+    }
+
+    @Override
+    public void onLocationStatusChanged(String provider, int status, Bundle extras) {
+        post(() -> mListener.onLocationStatusChanged(provider, status, extras));
+    }
+
+    @Override
+    public void onGnssMeasurementsReceived(GnssMeasurementsEvent event, boolean isGpsOnly) {
+        post(() -> mListener.onGnssMeasurementsReceived(event, isGpsOnly));
+    }
+
+    @Override
+    public void onGnssEpochReceived(GnssEpochSnapshot epoch, boolean isGpsOnly) {
+        post(() -> mListener.onGnssEpochReceived(epoch, isGpsOnly));
+    }
+
+    @Override
+    public void onGnssMeasurementsStatusChanged(int status) {
+        post(() -> mListener.onGnssMeasurementsStatusChanged(status));
+    }
+
+    @Override
+    public void onGnssNavigationMessageReceived(GnssNavigationMessage event) {
+        post(() -> mListener.onGnssNavigationMessageReceived(event));
+    }
+
+    @Override
+    public void onGnssNavigationMessageStatusChanged(int status) {
+        post(() -> mListener.onGnssNavigationMessageStatusChanged(status));
+    }
+
+    @Override
+    public void onGnssStatusChanged(GnssStatus gnssStatus) {
+        post(() -> mListener.onGnssStatusChanged(gnssStatus));
+    }
+
+    @Override
+    public void onListenerRegistration(String listener, boolean result) {
+        post(() -> mListener.onListenerRegistration(listener, result));
+    }
+
+    @Override
+    public void onNmeaReceived(long l, String s) {
+        post(() -> mListener.onNmeaReceived(l, s));
+    }
+
+    @Override
+    public void onTTFFReceived(long l) {
+        post(() -> mListener.onTTFFReceived(l));
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+import android.preference.PreferenceManager;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.util.ArrayDeque;
+
+/**
+ * The log entries of a logging view, kept in a bounded ring and shown by a {@link ListView}, which
+ * only creates views for the entries on screen.
+ *
+ * <p>Entries can be logged from any thread. They are added to the ring once per frame, as a batch,
+ * and the text of an entry is only formatted when the entry is first shown. The ring and the list
+ * are only changed on the UI thread.
+ */
+class LogConsole extends BaseAdapter {
+
+    /**
+     * The text of an entry, formatted when the entry is first shown. It should only read immutable
+     * state, it is called on the UI thread at some later time.
+     */
+    interface Message {
+        String format();
+    }
+
+    private static final class Entry {
+        final String tag;
+        final int color;
+        /** A {@link String}, or the {@link Message} formatting it */
+        Object message;
+
+        Entry(String tag, Object message, int color) {
+            this.tag = tag;
+            this.message = message;
+            this.color = color;
+        }
+
+        String getText() {
+            if (message instanceof Message) {
+                message = tag + " | " + ((Message) message).format();
+            }
+            return (String) message;
+        }
+    }
+
+    private final Entry[] mEntries;
+    private final boolean mFollowsAutoScroll;
+    private int mStart;
+    private int mSize;
+
+    /** Guards the entries logged since the last frame, and the frame request */
+    private final Object mLock = new Object();
+    private final ArrayDeque<Entry> mPending = new ArrayDeque<>();
+    private final Choreographer.FrameCallback mFrameCallback = frameTimeNanos -> flush();
+    private Choreographer mChoreographer;
+    private boolean mFrameRequested;
+    private ListView mListView;
+
+    /**
+     * @param capacity The number of entries kept, older entries are dropped
+     * @param followsAutoScroll Whether the list scrolls to the new entries when the auto scroll
+     *     setting is on
+     */
+    LogConsole(int capacity, boolean followsAutoScroll) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mEntries = new Entry[capacity];
+        mFollowsAutoScroll = followsAutoScroll;
+    }
+
+    /** Shows the entries in a list. Called on the UI thread. */
+    void attach(ListView listView) {
+        listView.setAdapter(this);
+        synchronized (mLock) {
+            mListView = listView;
+            mChoreographer = Choreographer.getInstance();
+            requestFrame();
+        }
+    }
+
+    /** Stops showing the entries, they are kept until the next {@link #attach}. */
+    void detach() {
+        synchronized (mLock) {
+            if (mFrameRequested) {
+                mChoreographer.removeFrameCallback(mFrameCallback);
+                mFrameRequested = false;
+            }
+            mChoreographer = null;
+            mListView = null;
+        }
+    }
+
+    /** Logs an entry, shown at the next frame. */
+    void log(String tag, String text, int color) {
+        add(new Entry(tag, tag + " | " + text, color));
+    }
+
+    /** Logs an entry whose text is formatted when it is first shown. */
+    void log(String tag, Message message, int color) {
+        add(new Entry(tag, message, color));
+    }
+
+    /** Removes all the entries. Called on the UI thread. */
+    void clear() {
+        synchronized (mLock) {
+            mPending.clear();
+        }
+        for (int i = 0; i < mSize; i++) {
+            mEntries[(mStart + i) % mEntries.length] = null;
+        }
+        mStart = 0;
+        mSize = 0;
+        notifyDataSetChanged();
+    }
+
+    private void add(Entry entry) {
+        synchronized (mLock) {
+            if (mPending.size() == mEntries.length) {
+                // It would be dropped from the ring by this batch anyway
+                mPending.poll();
+            }
+            mPending.add(entry);
+            requestFrame();
+        }
+    }
+
+    /** Requests a frame to add the pending entries, at most one at a time. */
+    private void requestFrame() {
+        if (!mFrameRequested && mChoreographer != null && !mPending.isEmpty()) {
+            mFrameRequested = true;
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+    }
+
+    /** Adds the entries logged since the last frame to the ring, and updates the list. */
+    private void flush() {
+        ListView listView;
+        int droppedCount = 0;
+        synchronized (mLock) {
+            mFrameRequested = false;
+            listView = mListView;
+            if (mPending.isEmpty() || listView == null) {
+                return;
+            }
+            for (Entry entry = mPending.poll(); entry != null; entry = mPending.poll()) {
+                if (mSize == mEntries.length) {
+                    mEntries[mStart] = null;
+                    mStart = (mStart + 1) % mEntries.length;
+                    mSize--;
+                    droppedCount++;
+                }
+                mEntries[(mStart + mSize) % mEntries.length] = entry;
+                mSize++;
+            }
+        }
+
+        // Read once per batch, the setting can change while logging
+        boolean autoScroll = mFollowsAutoScroll
+                && PreferenceManager.getDefaultSharedPreferences(listView.getContext())
+                        .getBoolean(SettingsFragment.PREFERENCE_KEY_AUTO_SCROLL, false);
+        int firstPosition = listView.getFirstVisiblePosition();
+        View firstView = listView.getChildAt(0);
+        notifyDataSetChanged();
+        if (autoScroll) {
+            listView.setSelection(mSize - 1);
+        } else if (droppedCount > 0 && firstView != null) {
+            // Keeps the entries on screen in place while the older ones are dropped
+            listView.setSelectionFromTop(
+                    Math.max(firstPosition - droppedCount, 0), firstView.getTop());
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mSize;
+    }
+
+    @Override
+    public String getItem(int position) {
+        return mEntries[(mStart + position) % mEntries.length].getText();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view =
+                convertView instanceof TextView
+                        ? (TextView) convertView
+                        : new TextView(parent.getContext());
+        Entry entry = mEntries[(mStart + position) % mEntries.length];
+        view.setTextColor(entry.color);
+        view.setText(entry.getText());
+        return view;
+    }
+}
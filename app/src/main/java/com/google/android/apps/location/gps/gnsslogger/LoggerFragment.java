@@ -16,7 +16,6 @@
 
 package com.google.android.apps.location.gps.gnsslogger;
 
-import android.app.Activity;
 import android.app.Fragment;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -29,15 +28,12 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
-import android.text.Editable;
-import android.text.SpannableStringBuilder;
-import android.text.style.ForegroundColorSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.Button;
-import android.widget.ScrollView;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -51,9 +47,13 @@ import static com.google.common.base.Preconditions.checkArgument;
  */
 public class LoggerFragment extends Fragment implements TimerListener {
     private static final String TIMER_FRAGMENT_TAG = "timer";
+    /**
+     * The number of log entries kept in the logging view
+     */
+    private static final int LOG_CAPACITY = 500;
+    private final LogConsole mConsole = new LogConsole(LOG_CAPACITY, true /* followsAutoScroll */);
     private final UIFragmentComponent mUiComponent = new UIFragmentComponent();
-    private TextView mLogView;
-    private ScrollView mScrollView;
+    private ListView mLogView;
     private DefaultFileLogger mDefaultFileLogger;
     private CustomFileLogger mCustomFileLogger;
     private UiLogger mUiLogger;
@@ -136,7 +136,7 @@ public class LoggerFragment extends Fragment implements TimerListener {
         View newView = inflater.inflate(R.layout.fragment_log, container, false /* attachToRoot */);
 
         mLogView = newView.findViewById(R.id.log_view);
-        mScrollView = newView.findViewById(R.id.log_scroll);
+        mConsole.attach(mLogView);
 
         getActivity()
                 .bindService(
@@ -163,7 +163,7 @@ public class LoggerFragment extends Fragment implements TimerListener {
                 new OnClickListener() {
                     @Override
                     public void onClick(View view) {
-                        mScrollView.fullScroll(View.FOCUS_UP);
+                        mLogView.setSelection(0);
                     }
                 });
 
@@ -171,7 +171,7 @@ public class LoggerFragment extends Fragment implements TimerListener {
                 new OnClickListener() {
                     @Override
                     public void onClick(View view) {
-                        mScrollView.fullScroll(View.FOCUS_DOWN);
+                        mLogView.setSelection(mConsole.getCount() - 1);
                     }
                 });
 
@@ -179,7 +179,7 @@ public class LoggerFragment extends Fragment implements TimerListener {
                 new OnClickListener() {
                     @Override
                     public void onClick(View view) {
-                        mLogView.setText("");
+                        mConsole.clear();
                     }
                 });
 
@@ -202,6 +202,10 @@ public class LoggerFragment extends Fragment implements TimerListener {
 
                         if (sharedPreferences.getBoolean(
                                 SettingsFragment.PREFERENCE_KEY_DEFAULT_LOG, false /*default return value*/)) {
+                            mDefaultFileLogger.setBinaryFormat(
+                                    sharedPreferences.getBoolean(
+                                            SettingsFragment.PREFERENCE_KEY_BINARY_LOG,
+                                            false /*default return value*/));
                             mDefaultFileLogger.startNewLog();
                         }
 
@@ -235,6 +239,12 @@ public class LoggerFragment extends Fragment implements TimerListener {
         return newView;
     }
 
+    @Override
+    public void onDestroyView() {
+        mConsole.detach();
+        super.onDestroyView();
+    }
+
     void stopAndSend() {
         if (mTimer != null) {
             mTimerService.stopTimer();
@@ -297,45 +307,15 @@ public class LoggerFragment extends Fragment implements TimerListener {
      */
     public class UIFragmentComponent {
 
-        private static final int MAX_LENGTH = 42000;
-        private static final int LOWER_THRESHOLD = (int) (MAX_LENGTH * 0.5);
-
-        public synchronized void logTextFragment(final String tag, final String text, int color) {
-            final SpannableStringBuilder builder = new SpannableStringBuilder();
-            builder.append(tag).append(" | ").append(text).append("\n");
-            builder.setSpan(
-                    new ForegroundColorSpan(color),
-                    0 /* start */,
-                    builder.length(),
-                    SpannableStringBuilder.SPAN_INCLUSIVE_EXCLUSIVE);
-
-            Activity activity = getActivity();
-            if (activity == null) {
-                return;
-            }
-            activity.runOnUiThread(
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            mLogView.append(builder);
-                            SharedPreferences sharedPreferences = PreferenceManager.
-                                    getDefaultSharedPreferences(getActivity());
-                            Editable editable = mLogView.getEditableText();
-                            int length = editable.length();
-                            if (length > MAX_LENGTH) {
-                                editable.delete(0, length - LOWER_THRESHOLD);
-                            }
-                            if (sharedPreferences.getBoolean(SettingsFragment.PREFERENCE_KEY_AUTO_SCROLL,
-                                    false /*default return value*/)) {
-                                mScrollView.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        mScrollView.fullScroll(View.FOCUS_DOWN);
-                                    }
-                                });
-                            }
-                        }
-                    });
+        public void logTextFragment(String tag, String text, int color) {
+            mConsole.log(tag, text, color);
+        }
+
+        /**
+         * Logs a text formatted only when it is shown in the logging view.
+         */
+        void logTextFragment(String tag, LogConsole.Message message, int color) {
+            mConsole.log(tag, message, color);
         }
 
         public void startActivity(Intent intent) {
@@ -54,6 +54,7 @@ import com.google.android.gms.location.ActivityRecognition;
 import com.google.android.gms.location.ActivityRecognitionResult;
 import com.google.android.gms.location.DetectedActivity;
 
+import java.io.File;
 import java.util.Locale;
 
 /**
@@ -73,6 +74,9 @@ public class MainActivity extends AppCompatActivity
     private static final int FRAGMENT_INDEX_AGNSS = 4;
     private static final int FRAGMENT_INDEX_PLOT = 5;
     private static final String TAG = "MainActivity";
+    private static final String SUPL_CACHE_FILE_NAME = "supl_nav_message_cache.bin";
+    /** Callbacks that can wait for a UI logger, about 10 s of NMEA sentences */
+    private static final int UI_LANE_CAPACITY = 256;
     private final ActivityDetectionBroadcastReceiver mBroadcastReceiver =
             new ActivityDetectionBroadcastReceiver();
     private GnssContainer mGnssContainer;
@@ -128,6 +132,7 @@ public class MainActivity extends AppCompatActivity
     @Override
     protected void onDestroy() {
         mGnssContainer.unregisterAll();
+        mGnssContainer.closeLanes();
         super.onDestroy();
     }
 
@@ -197,7 +202,8 @@ public class MainActivity extends AppCompatActivity
 
     private void setupFragments() {
         mUiLogger = new UiLogger();
-        mRealTimePositionVelocityCalculator = new RealTimePositionVelocityCalculator();
+        mRealTimePositionVelocityCalculator = new RealTimePositionVelocityCalculator(
+                new File(getCacheDir(), SUPL_CACHE_FILE_NAME));
         mRealTimePositionVelocityCalculator.setMainActivity(this);
         mRealTimePositionVelocityCalculator.setResidualPlotMode(
                 RealTimePositionVelocityCalculator.RESIDUAL_MODE_DISABLED, null /* fixedGroundTruth */);
@@ -205,14 +211,34 @@ public class MainActivity extends AppCompatActivity
         mDefaultFileLogger = new DefaultFileLogger(getApplicationContext());
         mCustomFileLogger = new CustomFileLogger(getApplicationContext());
         mAgnssUiLogger = new AgnssUiLogger();
-        mGnssContainer =
-                new GnssContainer(
-                        getApplicationContext(),
-                        mUiLogger,
-                        mCustomFileLogger,
-                        mDefaultFileLogger,
-                        mRealTimePositionVelocityCalculator,
-                        mAgnssUiLogger);
+        mGnssContainer = new GnssContainer(getApplicationContext());
+        // The calculator and the file loggers hand the events to threads of their own and are
+        // dispatched first, the UI loggers format every event and get lanes of their own.
+        mGnssContainer.addListener(
+                mRealTimePositionVelocityCalculator,
+                GnssContainer.EVENT_LOCATION
+                        | GnssContainer.EVENT_EPOCHS
+                        | GnssContainer.EVENT_NAVIGATION_MESSAGES);
+        mGnssContainer.addListener(
+                mDefaultFileLogger,
+                GnssContainer.EVENT_LOCATION
+                        | GnssContainer.EVENT_EPOCHS
+                        | GnssContainer.EVENT_NAVIGATION_MESSAGES
+                        | GnssContainer.EVENT_NMEA);
+        mGnssContainer.addListener(mCustomFileLogger, GnssContainer.EVENT_EPOCHS);
+        mGnssContainer.addLaneListener(
+                mUiLogger,
+                GnssContainer.EVENT_ALL & ~GnssContainer.EVENT_MEASUREMENTS,
+                UI_LANE_CAPACITY,
+                AsyncLogWriter.OverflowPolicy.DROP_NEWEST);
+        mGnssContainer.addLaneListener(
+                mAgnssUiLogger,
+                GnssContainer.EVENT_LOCATION
+                        | GnssContainer.EVENT_TTFF
+                        | GnssContainer.EVENT_REGISTRATION
+                        | GnssContainer.UNTIL_FIRST_FIX,
+                UI_LANE_CAPACITY,
+                AsyncLogWriter.OverflowPolicy.DROP_NEWEST);
         mFragments = new Fragment[NUMBER_OF_FRAGMENTS];
         SettingsFragment settingsFragment = new SettingsFragment();
         settingsFragment.setGnssContainer(mGnssContainer);
@@ -18,7 +18,9 @@ package com.google.android.apps.location.gps.gnsslogger;
 
 import android.app.Activity;
 import android.app.Fragment;
+import android.graphics.Color;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -30,23 +32,41 @@ import com.google.android.gms.maps.MapView;
 import com.google.android.gms.maps.MapsInitializer;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
  * A map fragment to show the computed least square position and the device computed position on
- * Google map.
+ * Google map, with their tracks.
+ *
+ * <p>The tracks are kept by {@link SimplifiedTrack}s, bounded in size, and are drawn simplified to
+ * the resolution of the current zoom level, at most every {@link #TRACK_UPDATE_INTERVAL_MILLIS},
+ * so that memory and drawing costs stay flat over long sessions.
  */
 public class MapFragment extends Fragment implements OnMapReadyCallback {
     private static final float ZOOM_LEVEL = 15;
     private static final String TAG = "MapFragment";
     private static final SimpleDateFormat DATE_SDF = new SimpleDateFormat("HH:mm:ss");
+    /** The largest number of vertices kept per track */
+    private static final int TRACK_CAPACITY = 2000;
+    /** The shortest time between two updates of the tracks on the map */
+    private static final long TRACK_UPDATE_INTERVAL_MILLIS = 2000;
+    /** The largest distance between a track and its drawn simplification, in pixels */
+    private static final double TRACK_TOLERANCE_PIXELS = 1;
+    private static final float TRACK_WIDTH_PIXELS = 6;
+    /** The size of a pixel at the equator at zoom level 0, in meters */
+    private static final double EQUATOR_METERS_PER_PIXEL_AT_ZOOM_0 = 156543.03392;
     private final Set<Object> mSetOfFeatures = new HashSet<Object>();
     private RealTimePositionVelocityCalculator mPositionVelocityCalculator;
     // UI members
@@ -54,6 +74,13 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
     private MapView mMapView;
     private Marker mLastLocationMarkerRaw = null;
     private Marker mLastLocationMarkerDevice = null;
+    private final SimplifiedTrack mTrackRaw = new SimplifiedTrack(TRACK_CAPACITY);
+    private final SimplifiedTrack mTrackDevice = new SimplifiedTrack(TRACK_CAPACITY);
+    private final double[] mTrackLatDeg = new double[TRACK_CAPACITY];
+    private final double[] mTrackLngDeg = new double[TRACK_CAPACITY];
+    private Polyline mTrackPolylineRaw = null;
+    private Polyline mTrackPolylineDevice = null;
+    private long mLastTrackUpdateMillis;
 
     @Override
     public View onCreateView(
@@ -82,6 +109,9 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
         }
         mLastLocationMarkerRaw = null;
         mLastLocationMarkerDevice = null;
+        // Cleared with the map, the tracks are drawn again at the next update
+        mTrackPolylineRaw = null;
+        mTrackPolylineDevice = null;
     }
 
     @Override
@@ -103,6 +133,8 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
         mMap.getUiSettings().setZoomControlsEnabled(true);
         mMap.getUiSettings().setZoomGesturesEnabled(true);
         mMap.getUiSettings().setMapToolbarEnabled(false);
+        // The resolution of the tracks follows the zoom level
+        mMap.setOnCameraIdleListener(this::updateTracks);
     }
 
     public void setPositionVelocityCalculator(RealTimePositionVelocityCalculator value) {
@@ -126,6 +158,12 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
                         Log.i(TAG, "onLocationChanged");
                         LatLng latLngRaw = new LatLng(latDegRaw, lngDegRaw);
                         LatLng latLngDevice = new LatLng(latDegDevice, lngDegDevice);
+                        mTrackRaw.add(latDegRaw, lngDegRaw);
+                        mTrackDevice.add(latDegDevice, lngDegDevice);
+                        if (SystemClock.elapsedRealtime() - mLastTrackUpdateMillis
+                                >= TRACK_UPDATE_INTERVAL_MILLIS) {
+                            updateTracks();
+                        }
                         if (mLastLocationMarkerRaw == null && mLastLocationMarkerDevice == null) {
                             if (mMap != null) {
                                 mLastLocationMarkerDevice =
@@ -166,6 +204,40 @@ public class MapFragment extends Fragment implements OnMapReadyCallback {
                 });
     }
 
+    /**
+     * Draws the tracks simplified to the resolution of the current zoom level.
+     */
+    private void updateTracks() {
+        if (mMap == null) {
+            return;
+        }
+        mLastTrackUpdateMillis = SystemClock.elapsedRealtime();
+        CameraPosition camera = mMap.getCameraPosition();
+        double metersPerPixel =
+                EQUATOR_METERS_PER_PIXEL_AT_ZOOM_0
+                        * Math.cos(Math.toRadians(camera.target.latitude))
+                        / Math.pow(2, camera.zoom);
+        double toleranceMeters = metersPerPixel * TRACK_TOLERANCE_PIXELS;
+        mTrackPolylineRaw = updateTrack(mTrackRaw, mTrackPolylineRaw, Color.GREEN, toleranceMeters);
+        mTrackPolylineDevice =
+                updateTrack(mTrackDevice, mTrackPolylineDevice, Color.BLUE, toleranceMeters);
+    }
+
+    private Polyline updateTrack(
+            SimplifiedTrack track, Polyline polyline, int color, double toleranceMeters) {
+        int count = track.simplify(toleranceMeters, mTrackLatDeg, mTrackLngDeg);
+        List<LatLng> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            points.add(new LatLng(mTrackLatDeg[i], mTrackLngDeg[i]));
+        }
+        if (polyline == null) {
+            return mMap.addPolyline(
+                    new PolylineOptions().addAll(points).color(color).width(TRACK_WIDTH_PIXELS));
+        }
+        polyline.setPoints(points);
+        return polyline;
+    }
+
     public void clearMarkers() {
         Activity activity = getActivity();
         if (activity == null) {
@@ -20,14 +20,13 @@ import android.app.Fragment;
 import android.content.Context;
 import android.graphics.Color;
 import android.graphics.Paint.Align;
-import android.location.GnssMeasurement;
-import android.location.GnssMeasurementsEvent;
 import android.location.GnssStatus;
 import android.os.Bundle;
 import android.support.v4.util.ArrayMap;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.style.ForegroundColorSpan;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -37,6 +36,7 @@ import android.widget.LinearLayout;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import com.google.location.lbs.gnss.gps.pseudorange.GnssEpochSnapshot;
 import com.google.location.lbs.gnss.gps.pseudorange.GpsNavigationMessageStore;
 
 import org.achartengine.ChartFactory;
@@ -51,7 +51,6 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
@@ -60,6 +59,10 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * A plot fragment to show real-time Gnss analysis migrated from GnssAnalysis Tool.
+ *
+ * <p>The data is added on the thread computing it, and only marks the plot tab it belongs to as
+ * changed. The analysis text and the displayed plot are redrawn at most once per frame, while the
+ * fragment is visible, so the UI thread does not fall behind however fast the data arrives.
  */
 public class PlotFragment extends Fragment {
 
@@ -98,28 +101,65 @@ public class PlotFragment extends Fragment {
      */
     private static final int NUMBER_OF_STRONGEST_SATELLITES = 4;
 
+    /**
+     * How long the samples of a satellite are kept, the plot shows the latest minute
+     */
+    private static final double RETENTION_SECONDS = TIME_INTERVAL_SECONDS;
+
+    /**
+     * The number of samples kept per satellite, enough for the retention at 10 Hz
+     */
+    private static final int SAMPLES_PER_SATELLITE = 600;
+
+    /**
+     * The number of points drawn per satellite before the chart is laid out and has a width
+     */
+    private static final int DEFAULT_CHART_WIDTH_PIXELS = 1000;
+
     /**
      * Data format used to format the data in the text view
      */
     private static final DecimalFormat sDataFormat =
             new DecimalFormat("##.#", new DecimalFormatSymbols(Locale.US));
+    /**
+     * Guards the data and the analysis, added by the calculation thread and drawn on the UI thread
+     */
+    private final Object mLock = new Object();
     private final ColorMap mColorMap = new ColorMap();
+    private final Choreographer.FrameCallback mFrameCallback = frameTimeNanos -> render();
+    private Choreographer mChoreographer;
     private GraphicalView mChartView;
     /**
      * The average of the average of strongest satellite signal strength over history
      */
     private double mAverageCn0;
     /**
-     * Total number of {@link GnssMeasurementsEvent} has been recieved
+     * Total number of {@link GnssEpochSnapshot} has been recieved
      */
     private int mMeasurementCount;
+    /**
+     * The analysis of the latest {@link GnssEpochSnapshot}, shown at the next frame
+     */
+    private double mCurrentAverageCn0;
+    private int mCurrentMeasurementCount;
+    private int mStrongestCount;
+    private final int[] mStrongestSvids = new int[NUMBER_OF_STRONGEST_SATELLITES];
+    private final double[] mStrongestCn0DbHz = new double[NUMBER_OF_STRONGEST_SATELLITES];
     private double mInitialTimeSeconds = -1;
     private TextView mAnalysisView;
     private double mLastTimeReceivedSeconds;
-    private DataSetManager mDataSetManager;
+    private volatile DataSetManager mDataSetManager;
     private XYMultipleSeriesRenderer mCurrentRenderer;
     private LinearLayout mLayout;
     private int mCurrentTab;
+    private int mCurrentDataSetIndex = DATA_SET_INDEX_ALL;
+    /**
+     * The plot tabs with data not drawn yet, one bit per tab
+     */
+    private int mDirtyTabs;
+    private boolean mAnalysisDirty;
+    private boolean mFrameRequested;
+    private boolean mVisible = true;
 
     private static int getUniqueSatelliteIdentifier(int constellationType, int svID) {
         return constellationType * 1000 + svID;
@@ -130,8 +170,8 @@ public class PlotFragment extends Fragment {
             LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View plotView = inflater.inflate(R.layout.fragment_plot, container, false /* attachToRoot */);
 
-        mDataSetManager
-                = new DataSetManager(NUMBER_OF_TABS, NUMBER_OF_CONSTELLATIONS, getContext(), mColorMap);
+        DataSetManager dataSetManager = new DataSetManager(NUMBER_OF_TABS, NUMBER_OF_CONSTELLATIONS,
+                getContext(), mColorMap, SAMPLES_PER_SATELLITE, RETENTION_SECONDS);
 
         // Set UI elements handlers
         Spinner spinner = plotView.findViewById(R.id.constellation_spinner);
@@ -142,18 +182,22 @@ public class PlotFragment extends Fragment {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                 mCurrentTab = tabSpinner.getSelectedItemPosition();
+                mCurrentDataSetIndex = spinner.getSelectedItemPosition();
                 XYMultipleSeriesRenderer renderer
-                        = mDataSetManager.getRenderer(mCurrentTab, spinner.getSelectedItemPosition());
+                        = dataSetManager.getRenderer(mCurrentTab, mCurrentDataSetIndex);
                 XYMultipleSeriesDataset dataSet
-                        = mDataSetManager.getDataSet(mCurrentTab, spinner.getSelectedItemPosition());
-                if (mLastTimeReceivedSeconds > TIME_INTERVAL_SECONDS) {
-                    renderer.setXAxisMax(mLastTimeReceivedSeconds);
-                    renderer.setXAxisMin(mLastTimeReceivedSeconds - TIME_INTERVAL_SECONDS);
+                        = dataSetManager.getDataSet(mCurrentTab, mCurrentDataSetIndex);
+                synchronized (mLock) {
+                    if (mLastTimeReceivedSeconds > TIME_INTERVAL_SECONDS) {
+                        renderer.setXAxisMax(mLastTimeReceivedSeconds);
+                        renderer.setXAxisMin(mLastTimeReceivedSeconds - TIME_INTERVAL_SECONDS);
+                    }
+                    mCurrentRenderer = renderer;
+                    mLayout.removeAllViews();
+                    mChartView = ChartFactory.getLineChartView(getContext(), dataSet, renderer);
+                    mLayout.addView(mChartView);
+                    invalidateTab(mCurrentTab);
                 }
-                mCurrentRenderer = renderer;
-                mLayout.removeAllViews();
-                mChartView = ChartFactory.getLineChartView(getContext(), dataSet, renderer);
-                mLayout.addView(mChartView);
             }
 
             @Override
@@ -165,101 +209,99 @@ public class PlotFragment extends Fragment {
         tabSpinner.setOnItemSelectedListener(spinnerOnSelectedListener);
 
         // Set up the Graph View
-        mCurrentRenderer = mDataSetManager.getRenderer(mCurrentTab, DATA_SET_INDEX_ALL);
+        mCurrentRenderer = dataSetManager.getRenderer(mCurrentTab, DATA_SET_INDEX_ALL);
         XYMultipleSeriesDataset currentDataSet
-                = mDataSetManager.getDataSet(mCurrentTab, DATA_SET_INDEX_ALL);
+                = dataSetManager.getDataSet(mCurrentTab, DATA_SET_INDEX_ALL);
         mChartView = ChartFactory.getLineChartView(getContext(), currentDataSet, mCurrentRenderer);
         mAnalysisView = plotView.findViewById(R.id.analysis);
         mAnalysisView.setTextColor(Color.BLACK);
         mLayout = plotView.findViewById(R.id.plot);
         mLayout.addView(mChartView);
+
+        synchronized (mLock) {
+            mDataSetManager = dataSetManager;
+            mChoreographer = Choreographer.getInstance();
+            requestFrame();
+        }
         return plotView;
     }
 
-    /**
-     * Updates the CN0 versus Time plot data from a {@link GnssMeasurement}
-     */
-    protected void updateCnoTab(GnssMeasurementsEvent event, boolean isGpsOnly) {
-        long timeInSeconds =
-                TimeUnit.NANOSECONDS.toSeconds(event.getClock().getTimeNanos());
-        if (mInitialTimeSeconds < 0) {
-            mInitialTimeSeconds = timeInSeconds;
+    @Override
+    public void onDestroyView() {
+        synchronized (mLock) {
+            if (mFrameRequested) {
+                mChoreographer.removeFrameCallback(mFrameCallback);
+                mFrameRequested = false;
+            }
+            mChoreographer = null;
         }
+        super.onDestroyView();
+    }
 
-        // Building the texts message in analysis text view
-        List<GnssMeasurement> measurements =
-                sortByCarrierToNoiseRatio(new ArrayList<>(event.getMeasurements()), isGpsOnly);
-        SpannableStringBuilder builder = new SpannableStringBuilder();
-        double currentAverage = 0;
-        if (measurements.size() >= NUMBER_OF_STRONGEST_SATELLITES) {
-            mAverageCn0 =
-                    (mAverageCn0 * mMeasurementCount
-                            + (measurements.get(0).getCn0DbHz()
-                            + measurements.get(1).getCn0DbHz()
-                            + measurements.get(2).getCn0DbHz()
-                            + measurements.get(3).getCn0DbHz())
-                            / NUMBER_OF_STRONGEST_SATELLITES)
-                            / (++mMeasurementCount);
-            currentAverage =
-                    (measurements.get(0).getCn0DbHz()
-                            + measurements.get(1).getCn0DbHz()
-                            + measurements.get(2).getCn0DbHz()
-                            + measurements.get(3).getCn0DbHz())
-                            / NUMBER_OF_STRONGEST_SATELLITES;
+    @Override
+    public void setUserVisibleHint(boolean isVisibleToUser) {
+        super.setUserVisibleHint(isVisibleToUser);
+        synchronized (mLock) {
+            mVisible = isVisibleToUser;
+            requestFrame();
         }
-        builder.append(getString(R.string.history_average_hint,
-                sDataFormat.format(mAverageCn0) + "\n"));
-        builder.append(getString(R.string.current_average_hint,
-                sDataFormat.format(currentAverage) + "\n"));
-        for (int i = 0; i < NUMBER_OF_STRONGEST_SATELLITES && i < measurements.size(); i++) {
-            int start = builder.length();
-            builder.append(
-                    mDataSetManager.getConstellationPrefix(measurements.get(i).getConstellationType())
-                            + measurements.get(i).getSvid()
-                            + ": "
-                            + sDataFormat.format(measurements.get(i).getCn0DbHz())
-                            + "\n");
-            int end = builder.length();
-            builder.setSpan(
-                    new ForegroundColorSpan(
-                            mColorMap.getColor(
-                                    measurements.get(i).getSvid(), measurements.get(i).getConstellationType())),
-                    start,
-                    end,
-                    Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+    }
+
+    /**
+     * Updates the CN0 versus Time plot data from the GPS measurements of a {@link
+     * GnssEpochSnapshot}, already ranked by decreasing CN0. Can be called from any thread, the
+     * plot and the analysis are drawn at the next frame.
+     */
+    protected void updateCnoTab(GnssEpochSnapshot epoch, boolean isGpsOnly) {
+        DataSetManager dataSetManager = mDataSetManager;
+        if (dataSetManager == null) {
+            return;
         }
-        builder.append(getString(R.string.satellite_number_sum_hint, measurements.size()));
-        mAnalysisView.setText(builder);
-
-        // Adding incoming data into Dataset
-        mLastTimeReceivedSeconds = timeInSeconds - mInitialTimeSeconds;
-        for (GnssMeasurement measurement : measurements) {
-            int constellationType = measurement.getConstellationType();
-            int svID = measurement.getSvid();
-            if (constellationType != GnssStatus.CONSTELLATION_UNKNOWN) {
-                mDataSetManager.addValue(
-                        CN0_TAB,
-                        constellationType,
-                        svID,
-                        mLastTimeReceivedSeconds,
-                        measurement.getCn0DbHz());
+        long timeInSeconds = TimeUnit.NANOSECONDS.toSeconds(epoch.timeNanos);
+        int gps = GnssStatus.CONSTELLATION_GPS;
+        int measurementCount = epoch.getMeasurementCount(gps);
+        synchronized (mLock) {
+            if (mInitialTimeSeconds < 0) {
+                mInitialTimeSeconds = timeInSeconds;
             }
-        }
-
-        mDataSetManager.fillInDiscontinuity(CN0_TAB, mLastTimeReceivedSeconds);
 
-        // Checks if the plot has reached the end of frame and resize
-        if (mLastTimeReceivedSeconds > mCurrentRenderer.getXAxisMax()) {
-            mCurrentRenderer.setXAxisMax(mLastTimeReceivedSeconds);
-            mCurrentRenderer.setXAxisMin(mLastTimeReceivedSeconds - TIME_INTERVAL_SECONDS);
+            // Keeping the analysis of the epoch for the analysis text view
+            double currentAverage = 0;
+            if (measurementCount >= NUMBER_OF_STRONGEST_SATELLITES) {
+                double strongestCn0DbHz = 0;
+                for (int rank = 0; rank < NUMBER_OF_STRONGEST_SATELLITES; rank++) {
+                    strongestCn0DbHz += epoch.getCn0DbHz(epoch.getMeasurementIndex(gps, rank));
+                }
+                currentAverage = strongestCn0DbHz / NUMBER_OF_STRONGEST_SATELLITES;
+                mAverageCn0 =
+                        (mAverageCn0 * mMeasurementCount + currentAverage) / (++mMeasurementCount);
+            }
+            mCurrentAverageCn0 = currentAverage;
+            mCurrentMeasurementCount = measurementCount;
+            mStrongestCount = Math.min(NUMBER_OF_STRONGEST_SATELLITES, measurementCount);
+            for (int rank = 0; rank < mStrongestCount; rank++) {
+                int i = epoch.getMeasurementIndex(gps, rank);
+                mStrongestSvids[rank] = epoch.getSvid(i);
+                mStrongestCn0DbHz[rank] = epoch.getCn0DbHz(i);
+            }
+            mAnalysisDirty = true;
+
+            // Adding incoming data into Dataset
+            mLastTimeReceivedSeconds = timeInSeconds - mInitialTimeSeconds;
+            for (int rank = 0; rank < measurementCount; rank++) {
+                int i = epoch.getMeasurementIndex(gps, rank);
+                dataSetManager.addValue(CN0_TAB, gps, epoch.getSvid(i), mLastTimeReceivedSeconds,
+                        epoch.getCn0DbHz(i));
+            }
+            dataSetManager.endEpoch(CN0_TAB);
+            invalidateTab(CN0_TAB);
         }
-
-        mChartView.invalidate();
     }
 
     /**
      * Updates the pseudorange residual plot from residual results calculated by
-     * {@link RealTimePositionVelocityCalculator}
+     * {@link RealTimePositionVelocityCalculator}. Can be called from any thread, the plot is drawn
+     * at the next frame.
      *
      * @param residuals     An array of MAX_NUMBER_OF_SATELLITES elements where indexes of satellites was
      *                      not seen are fixed with {@code Double.NaN} and indexes of satellites what were seen
@@ -267,28 +309,106 @@ public class PlotFragment extends Fragment {
      * @param timeInSeconds the time at which measurements are received
      */
     protected void updatePseudorangeResidualTab(double[] residuals, double timeInSeconds) {
-        double timeSinceLastMeasurement = timeInSeconds - mInitialTimeSeconds;
-        for (int i = 1; i <= GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
-            if (!Double.isNaN(residuals[i - 1])) {
-                mDataSetManager.addValue(
-                        PR_RESIDUAL_TAB,
-                        GnssStatus.CONSTELLATION_GPS,
-                        i,
-                        timeSinceLastMeasurement,
-                        residuals[i - 1]);
+        DataSetManager dataSetManager = mDataSetManager;
+        if (dataSetManager == null) {
+            return;
+        }
+        synchronized (mLock) {
+            double timeSinceLastMeasurement = timeInSeconds - mInitialTimeSeconds;
+            for (int i = 1; i <= GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
+                if (!Double.isNaN(residuals[i - 1])) {
+                    dataSetManager.addValue(
+                            PR_RESIDUAL_TAB,
+                            GnssStatus.CONSTELLATION_GPS,
+                            i,
+                            timeSinceLastMeasurement,
+                            residuals[i - 1]);
+                }
             }
+            dataSetManager.endEpoch(PR_RESIDUAL_TAB);
+            invalidateTab(PR_RESIDUAL_TAB);
         }
-        mDataSetManager.fillInDiscontinuity(PR_RESIDUAL_TAB, timeSinceLastMeasurement);
     }
 
-    private List<GnssMeasurement> sortByCarrierToNoiseRatio(List<GnssMeasurement> measurements, boolean isGpsOnly) {
+    /**
+     * Marks a plot tab as changed and requests a frame to draw it. Called with {@link #mLock} held.
+     */
+    private void invalidateTab(int tab) {
+        mDirtyTabs |= 1 << tab;
+        requestFrame();
+    }
+
+    /**
+     * Requests a frame if something changed while the fragment is visible, at most one at a time.
+     * Called with {@link #mLock} held.
+     */
+    private void requestFrame() {
+        if (mFrameRequested || !mVisible || mChoreographer == null) {
+            return;
+        }
+        if (mAnalysisDirty || (mDirtyTabs & (1 << mCurrentTab)) != 0) {
+            mFrameRequested = true;
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+    }
 
-        measurements.removeIf(measurement -> measurement.getConstellationType() != GnssStatus.CONSTELLATION_GPS);
+    /**
+     * Draws the analysis and the displayed plot if they changed since the last frame, with the
+     * visible range of the series downsampled to at most one point per pixel of the chart width
+     */
+    private void render() {
+        synchronized (mLock) {
+            mFrameRequested = false;
+            if (mAnalysisDirty) {
+                mAnalysisDirty = false;
+                mAnalysisView.setText(buildAnalysis());
+            }
+            if ((mDirtyTabs & (1 << mCurrentTab)) != 0) {
+                mDirtyTabs &= ~(1 << mCurrentTab);
+                // Checks if the plot has reached the end of frame and resize
+                if (mLastTimeReceivedSeconds > mCurrentRenderer.getXAxisMax()) {
+                    mCurrentRenderer.setXAxisMax(mLastTimeReceivedSeconds);
+                    mCurrentRenderer.setXAxisMin(mLastTimeReceivedSeconds - TIME_INTERVAL_SECONDS);
+                }
+                int width = mChartView.getWidth();
+                mDataSetManager.refreshSeries(
+                        mCurrentTab,
+                        mCurrentDataSetIndex,
+                        mCurrentRenderer.getXAxisMin(),
+                        mCurrentRenderer.getXAxisMax(),
+                        width > 0 ? width : DEFAULT_CHART_WIDTH_PIXELS);
+                mChartView.invalidate();
+            }
+        }
+    }
 
-        Collections.sort(
-                measurements,
-                (o1, o2) -> Double.compare(o2.getCn0DbHz(), o1.getCn0DbHz()));
-        return measurements;
+    /**
+     * Builds the texts message in analysis text view from the analysis of the latest epoch
+     */
+    private SpannableStringBuilder buildAnalysis() {
+        int gps = GnssStatus.CONSTELLATION_GPS;
+        SpannableStringBuilder builder = new SpannableStringBuilder();
+        builder.append(getString(R.string.history_average_hint,
+                sDataFormat.format(mAverageCn0) + "\n"));
+        builder.append(getString(R.string.current_average_hint,
+                sDataFormat.format(mCurrentAverageCn0) + "\n"));
+        for (int rank = 0; rank < mStrongestCount; rank++) {
+            int start = builder.length();
+            builder.append(
+                    mDataSetManager.getConstellationPrefix(gps)
+                            + mStrongestSvids[rank]
+                            + ": "
+                            + sDataFormat.format(mStrongestCn0DbHz[rank])
+                            + "\n");
+            int end = builder.length();
+            builder.setSpan(
+                    new ForegroundColorSpan(mColorMap.getColor(mStrongestSvids[rank], gps)),
+                    start,
+                    end,
+                    Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+        }
+        builder.append(getString(R.string.satellite_number_sum_hint, mCurrentMeasurementCount));
+        return builder;
     }
 
     /**
@@ -330,7 +450,12 @@ public class PlotFragment extends Fragment {
     /**
      * An utility class stores and maintains all the data sets and corresponding renders.
      * We use 0 as the {@code dataSetIndex} of all constellations and 1 - 6 as the
-     * {@code dataSetIndex} of each satellite constellations
+     * {@code dataSetIndex} of each satellite constellations.
+     *
+     * <p>The samples of each satellite are kept in a {@link TimeSeriesRing}, the {@link XYSeries}
+     * only hold the points drawn, refilled by {@link #refreshSeries}. The series and renderers are
+     * only created and changed on the UI thread, by {@link #refreshSeries}, so that the samples can
+     * be added from another thread while the chart draws.
      */
     private static class DataSetManager {
         /**
@@ -350,36 +475,69 @@ public class PlotFragment extends Fragment {
          */
         private static final String[] CONSTELLATION_PREFIX = {"G", "S", "R", "J", "C", "E"};
 
+        /**
+         * The samples of a satellite, with the series and renderer drawing them once created
+         */
+        private static class SatelliteSamples {
+            final int constellationType;
+            final int svID;
+            final TimeSeriesRing ring;
+            XYSeries series;
+            XYSeriesRenderer renderer;
+
+            SatelliteSamples(int constellationType, int svID, TimeSeriesRing ring) {
+                this.constellationType = constellationType;
+                this.svID = svID;
+                this.ring = ring;
+            }
+        }
+
         private final List<ArrayMap<Integer, Integer>>[] mSatelliteIndex;
-        private final List<ArrayMap<Integer, Integer>>[] mSatelliteConstellationIndex;
         private final List<XYMultipleSeriesDataset>[] mDataSetList;
         private final List<XYMultipleSeriesRenderer>[] mRendererList;
+        /**
+         * The satellites of each data set, in the order of the series of the data set, which can
+         * miss the satellites seen since it was last drawn
+         */
+        private final List<List<SatelliteSamples>>[] mSamplesList;
+        /**
+         * The number of the current epoch of each tab
+         */
+        private final int[] mEpochs;
         private final Context mContext;
         private final ColorMap mColorMap;
+        private final int mSamplesPerSatellite;
+        private final double mRetentionSeconds;
+        private double[] mPointsX = new double[0];
+        private double[] mPointsY = new double[0];
 
         public DataSetManager(int numberOfTabs, int numberOfConstellations,
-                              Context context, ColorMap colorMap) {
+                              Context context, ColorMap colorMap,
+                              int samplesPerSatellite, double retentionSeconds) {
             mDataSetList = new ArrayList[numberOfTabs];
             mRendererList = new ArrayList[numberOfTabs];
             mSatelliteIndex = new ArrayList[numberOfTabs];
-            mSatelliteConstellationIndex = new ArrayList[numberOfTabs];
+            mSamplesList = new ArrayList[numberOfTabs];
+            mEpochs = new int[numberOfTabs];
             mContext = context;
             mColorMap = colorMap;
+            mSamplesPerSatellite = samplesPerSatellite;
+            mRetentionSeconds = retentionSeconds;
 
             // Preparing data sets and renderer for all six constellations
             for (int i = 0; i < numberOfTabs; i++) {
                 mDataSetList[i] = new ArrayList<>();
                 mRendererList[i] = new ArrayList<>();
                 mSatelliteIndex[i] = new ArrayList<>();
-                mSatelliteConstellationIndex[i] = new ArrayList<>();
+                mSamplesList[i] = new ArrayList<>();
                 for (int k = 0; k <= numberOfConstellations; k++) {
                     mSatelliteIndex[i].add(new ArrayMap<Integer, Integer>());
-                    mSatelliteConstellationIndex[i].add(new ArrayMap<Integer, Integer>());
                     XYMultipleSeriesRenderer tempRenderer = new XYMultipleSeriesRenderer();
                     setUpRenderer(tempRenderer, i);
                     mRendererList[i].add(tempRenderer);
                     XYMultipleSeriesDataset tempDataSet = new XYMultipleSeriesDataset();
                     mDataSetList[i].add(tempDataSet);
+                    mSamplesList[i].add(new ArrayList<SatelliteSamples>());
                 }
             }
         }
@@ -408,55 +566,88 @@ public class PlotFragment extends Fragment {
         }
 
         /**
-         * Adds a value into the both the data set containing all constellations and individual data set
-         * of the constellation of the satellite
+         * Adds a value of the current epoch of the tab into the samples of the satellite, shared by
+         * the data set containing all constellations and the data set of its constellation
          */
         private void addValue(int tab, int constellationType, int svID,
                               double timeInSeconds, double value) {
-            XYMultipleSeriesDataset dataSetAll = getDataSet(tab, DATA_SET_INDEX_ALL);
-            XYMultipleSeriesRenderer rendererAll = getRenderer(tab, DATA_SET_INDEX_ALL);
-            value = Double.parseDouble(sDataFormat.format(value));
+            List<SatelliteSamples> samplesAll = mSamplesList[tab].get(DATA_SET_INDEX_ALL);
             if (hasSeen(constellationType, svID, tab)) {
-                // If the satellite has been seen before, we retrieve the dataseries it is add and add new
-                // data
-                dataSetAll
-                        .getSeriesAt(mSatelliteIndex[tab].get(constellationType).get(svID))
-                        .add(timeInSeconds, value);
-                mDataSetList[tab]
-                        .get(constellationType)
-                        .getSeriesAt(mSatelliteConstellationIndex[tab].get(constellationType).get(svID))
-                        .add(timeInSeconds, value);
+                // If the satellite has been seen before, we retrieve its samples and add new data
+                samplesAll
+                        .get(mSatelliteIndex[tab].get(constellationType).get(svID))
+                        .ring
+                        .add(timeInSeconds, value, mEpochs[tab]);
             } else {
-                // If the satellite has not been seen before, we create new dataset and renderer before
-                // adding data
-                mSatelliteIndex[tab].get(constellationType).put(svID, dataSetAll.getSeriesCount());
-                mSatelliteConstellationIndex[tab]
-                        .get(constellationType)
-                        .put(svID, mDataSetList[tab].get(constellationType).getSeriesCount());
-                XYSeries tempSeries = new XYSeries(CONSTELLATION_PREFIX[constellationType - 1] + svID);
-                tempSeries.add(timeInSeconds, value);
-                dataSetAll.addSeries(tempSeries);
-                mDataSetList[tab].get(constellationType).addSeries(tempSeries);
-                XYSeriesRenderer tempRenderer = new XYSeriesRenderer();
-                tempRenderer.setLineWidth(5);
-                tempRenderer.setColor(mColorMap.getColor(svID, constellationType));
-                rendererAll.addSeriesRenderer(tempRenderer);
-                mRendererList[tab].get(constellationType).addSeriesRenderer(tempRenderer);
+                // If the satellite has not been seen before, we create its samples before adding
+                // data, its series and renderer are created when it is first drawn
+                mSatelliteIndex[tab].get(constellationType).put(svID, samplesAll.size());
+                SatelliteSamples tempSamples = new SatelliteSamples(constellationType, svID,
+                        new TimeSeriesRing(mSamplesPerSatellite, mRetentionSeconds));
+                tempSamples.ring.add(timeInSeconds, value, mEpochs[tab]);
+                samplesAll.add(tempSamples);
+                mSamplesList[tab].get(constellationType).add(tempSamples);
             }
         }
 
         /**
-         * Creates a discontinuity of the satellites that has been seen but not reported in this batch
-         * of measurements
+         * Ends the current epoch of the tab. The satellites that have been seen but not reported in
+         * it get a discontinuity, from the gap in the epochs of their samples.
          */
-        private void fillInDiscontinuity(int tab, double referenceTimeSeconds) {
-            for (XYMultipleSeriesDataset dataSet : mDataSetList[tab]) {
-                for (int i = 0; i < dataSet.getSeriesCount(); i++) {
-                    if (dataSet.getSeriesAt(i).getMaxX() < referenceTimeSeconds) {
-                        dataSet.getSeriesAt(i).add(referenceTimeSeconds, MathHelper.NULL_VALUE);
-                    }
+        private void endEpoch(int tab) {
+            mEpochs[tab]++;
+        }
+
+        /**
+         * Refills the series of a data set with their samples between two times, downsampled to at
+         * most {@code maxPoints} points each, so that drawing does not depend on the sample rate.
+         * Called on the UI thread.
+         */
+        private void refreshSeries(int tab, int dataSetIndex, double fromSeconds, double toSeconds,
+                                   int maxPoints) {
+            if (mPointsX.length < 2 * maxPoints) {
+                mPointsX = new double[2 * maxPoints];
+                mPointsY = new double[2 * maxPoints];
+            }
+            XYMultipleSeriesDataset dataSet = getDataSet(tab, dataSetIndex);
+            XYMultipleSeriesRenderer renderer = getRenderer(tab, dataSetIndex);
+            List<SatelliteSamples> samplesList = mSamplesList[tab].get(dataSetIndex);
+            for (int i = 0; i < samplesList.size(); i++) {
+                SatelliteSamples samples = samplesList.get(i);
+                if (i == dataSet.getSeriesCount()) {
+                    addSeries(samples, dataSet, renderer);
                 }
+                TimeSeriesRing ring = samples.ring;
+                // Keeps the samples just outside the range so the lines reach its edges
+                int from = Math.max(ring.lowerBound(fromSeconds) - 1, 0);
+                int to = Math.min(ring.lowerBound(toSeconds) + 1, ring.size());
+                int count = TimeSeriesDownsampler.largestTriangleThreeBuckets(
+                        ring, from, to, maxPoints, mPointsX, mPointsY);
+                XYSeries series = samples.series;
+                series.clear();
+                for (int k = 0; k < count; k++) {
+                    series.add(mPointsX[k],
+                            Double.isNaN(mPointsY[k]) ? MathHelper.NULL_VALUE : mPointsY[k]);
+                }
+            }
+        }
+
+        /**
+         * Adds the series and renderer of a satellite to a data set and its renderer, creating them
+         * if the satellite is drawn for the first time
+         */
+        private void addSeries(SatelliteSamples samples, XYMultipleSeriesDataset dataSet,
+                               XYMultipleSeriesRenderer renderer) {
+            if (samples.series == null) {
+                samples.series = new XYSeries(
+                        CONSTELLATION_PREFIX[samples.constellationType - 1] + samples.svID);
+                samples.renderer = new XYSeriesRenderer();
+                samples.renderer.setLineWidth(5);
+                samples.renderer.setColor(
+                        mColorMap.getColor(samples.svID, samples.constellationType));
             }
+            dataSet.addSeries(samples.series);
+            renderer.addSeriesRenderer(samples.renderer);
         }
 
         /**
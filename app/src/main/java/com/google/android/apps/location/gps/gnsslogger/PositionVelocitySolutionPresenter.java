@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+import android.location.Location;
+import android.view.Choreographer;
+
+import com.google.location.lbs.gnss.gps.pseudorange.PositionVelocitySolution;
+import com.google.location.lbs.gnss.gps.pseudorange.PositionVelocitySolutionListener;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Formats the position and velocity solutions of the {@link RealTimePositionVelocityCalculator}
+ * and shows them next to the location reported by the device.
+ *
+ * <p>Solutions are received on the calculation thread and only the latest one is kept. Rendering
+ * happens on the UI thread at most once per display frame, whatever the rate of the updates.
+ */
+class PositionVelocitySolutionPresenter
+        implements PositionVelocitySolutionListener, Choreographer.FrameCallback {
+
+    private final RealTimePositionVelocityCalculator mCalculator;
+    private final Choreographer mChoreographer;
+    private final AtomicReference<PositionVelocitySolution> mLatestSolution =
+            new AtomicReference<>(PositionVelocitySolution.NO_SOLUTION);
+    private final AtomicReference<Location> mPendingDeviceLocation = new AtomicReference<>();
+    private final AtomicBoolean mFrameScheduled = new AtomicBoolean();
+
+    // Only used on the UI thread, created once instead of for every fix
+    private final DecimalFormat mDegreesFormat = new DecimalFormat("##.######");
+    private final DecimalFormat mAltitudeFormat = new DecimalFormat("##.#");
+    private final DecimalFormat mMetersFormat = new DecimalFormat("##.###");
+
+    /**
+     * Must be created on the UI thread, the frame callbacks are run on the thread of the
+     * {@link Choreographer}.
+     */
+    PositionVelocitySolutionPresenter(RealTimePositionVelocityCalculator calculator) {
+        mCalculator = calculator;
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    @Override
+    public void onPositionVelocitySolution(PositionVelocitySolution solution) {
+        mLatestSolution.set(solution);
+    }
+
+    /**
+     * Returns the latest solution received from the solver.
+     */
+    PositionVelocitySolution getLatestSolution() {
+        return mLatestSolution.get();
+    }
+
+    /**
+     * Schedules the latest solution to be shown along with {@code deviceLocation} on the next
+     * frame. Locations received before that frame replace each other.
+     */
+    void onDeviceLocationChanged(Location deviceLocation) {
+        mPendingDeviceLocation.set(deviceLocation);
+        if (mFrameScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameScheduled.set(false);
+        Location deviceLocation = mPendingDeviceLocation.getAndSet(null);
+        if (deviceLocation != null) {
+            render(mLatestSolution.get(), deviceLocation);
+        }
+    }
+
+    private void render(PositionVelocitySolution solution, Location deviceLocation) {
+        if (!solution.hasPosition()) {
+            mCalculator.logPositionFromRawDataEvent("No Position Calculated Yet");
+            mCalculator.logPositionError("And no offset calculated yet...");
+        } else {
+            double[] velSolution = solution.getVelocitySolutionEnuMps();
+            double[] pvUncertainty = solution.getPositionVelocityUncertaintyEnu();
+            mCalculator.logPositionFromRawDataEvent(
+                    "latDegrees = "
+                            + mDegreesFormat.format(solution.getLatitudeDegrees())
+                            + " lngDegrees = "
+                            + mDegreesFormat.format(solution.getLongitudeDegrees())
+                            + "altMeters = "
+                            + mAltitudeFormat.format(solution.getAltitudeMeters()));
+            mCalculator.logVelocityFromRawDataEvent(
+                    "Velocity East = "
+                            + mMetersFormat.format(velSolution[0])
+                            + "mps"
+                            + " Velocity North = "
+                            + mMetersFormat.format(velSolution[1])
+                            + "mps"
+                            + "Velocity Up = "
+                            + mMetersFormat.format(velSolution[2])
+                            + "mps");
+            mCalculator.logPositionUncertainty(
+                    "East = "
+                            + mMetersFormat.format(pvUncertainty[0])
+                            + "m North = "
+                            + mMetersFormat.format(pvUncertainty[1])
+                            + "m Up = "
+                            + mMetersFormat.format(pvUncertainty[2])
+                            + "m");
+            mCalculator.logVelocityUncertainty(
+                    "East = "
+                            + mMetersFormat.format(pvUncertainty[3])
+                            + "mps North = "
+                            + mMetersFormat.format(pvUncertainty[4])
+                            + "mps Up = "
+                            + mMetersFormat.format(pvUncertainty[5])
+                            + "mps");
+            double offsetMeters =
+                    mCalculator.getDistanceMeters(
+                            deviceLocation.getLatitude(),
+                            deviceLocation.getLongitude(),
+                            solution.getLatitudeDegrees(),
+                            solution.getLongitudeDegrees());
+            mCalculator.logPositionError(
+                    "position offset = " + mDegreesFormat.format(offsetMeters) + " meters");
+            double speedOffsetMps =
+                    Math.abs(
+                            deviceLocation.getSpeed()
+                                    - Math.sqrt(
+                                    Math.pow(velSolution[0], 2) + Math.pow(velSolution[1], 2)));
+            mCalculator.logVelocityError(
+                    "speed offset = " + mMetersFormat.format(speedOffsetMps) + " mps");
+        }
+        mCalculator.logLocationEvent("onLocationChanged: " + deviceLocation);
+        if (solution.hasPosition()) {
+            mCalculator.updateMapViewWithPostions(
+                    solution.getLatitudeDegrees(),
+                    solution.getLongitudeDegrees(),
+                    deviceLocation.getLatitude(),
+                    deviceLocation.getLongitude(),
+                    deviceLocation.getTime());
+        } else {
+            mCalculator.clearMapMarkers();
+        }
+    }
+}
@@ -28,19 +28,21 @@ import android.os.HandlerThread;
 import android.util.Log;
 
 import com.google.android.apps.location.gps.gnsslogger.ResultFragment.UIResultComponent;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssEpochSnapshot;
 import com.google.location.lbs.gnss.gps.pseudorange.GpsMathOperations;
 import com.google.location.lbs.gnss.gps.pseudorange.GpsNavigationMessageStore;
+import com.google.location.lbs.gnss.gps.pseudorange.PositionVelocitySolution;
 import com.google.location.lbs.gnss.gps.pseudorange.PseudorangePositionVelocityFromRealTimeEvents;
 
-import java.text.DecimalFormat;
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 
 /**
  * A class that handles real time position and velocity calculation, passing {@link
- * GnssMeasurementsEvent} instances to the {@link PseudorangePositionVelocityFromRealTimeEvents}
+ * GnssEpochSnapshot} instances to the {@link PseudorangePositionVelocityFromRealTimeEvents}
  * whenever a new raw measurement is received in order to compute a new position solution. The
  * computed position and velocity solutions are passed to the {@link ResultFragment} to be
- * visualized.
+ * visualized by a {@link PositionVelocitySolutionPresenter}.
  */
 public class RealTimePositionVelocityCalculator implements GnssListener {
     /**
@@ -85,8 +87,18 @@ public class RealTimePositionVelocityCalculator implements GnssListener {
     private double[] mGroundTruth;
     private int mPositionSolutionCount;
     private UIResultComponent uiResultComponent;
+    private final PositionVelocitySolutionPresenter mSolutionPresenter;
 
     public RealTimePositionVelocityCalculator() {
+        this(null /* suplCacheFile */);
+    }
+
+    /**
+     * Creates the calculator, persisting the SUPL assistance data to {@code suplCacheFile} so that
+     * the next session in the same region can start without contacting the SUPL server.
+     */
+    public RealTimePositionVelocityCalculator(final File suplCacheFile) {
+        mSolutionPresenter = new PositionVelocitySolutionPresenter(this);
         mPositionVelocityCalculationHandlerThread =
                 new HandlerThread("Position From Realtime Pseudoranges");
         mPositionVelocityCalculationHandlerThread.start();
@@ -99,7 +111,9 @@ public class RealTimePositionVelocityCalculator implements GnssListener {
                     public void run() {
                         try {
                             mPseudorangePositionVelocityFromRealTimeEvents =
-                                    new PseudorangePositionVelocityFromRealTimeEvents();
+                                    new PseudorangePositionVelocityFromRealTimeEvents(suplCacheFile);
+                            mPseudorangePositionVelocityFromRealTimeEvents
+                                    .addPositionVelocitySolutionListener(mSolutionPresenter);
                         } catch (Exception e) {
                             Log.e(
                                     GnssContainer.TAG,
@@ -162,125 +176,32 @@ public class RealTimePositionVelocityCalculator implements GnssListener {
 
         } else if (location.getProvider().equals(LocationManager.GPS_PROVIDER)) {
             if (mAllowShowingRawResults) {
-                Runnable r =
-                        new Runnable() {
-                            @Override
-                            public void run() {
-                                if (mPseudorangePositionVelocityFromRealTimeEvents == null) {
-                                    return;
-                                }
-                                double[] posSolution =
-                                        mPseudorangePositionVelocityFromRealTimeEvents.getPositionSolutionLatLngDeg();
-                                double[] velSolution =
-                                        mPseudorangePositionVelocityFromRealTimeEvents.getVelocitySolutionEnuMps();
-                                double[] pvUncertainty =
-                                        mPseudorangePositionVelocityFromRealTimeEvents
-                                                .getPositionVelocityUncertaintyEnu();
-                                if (Double.isNaN(posSolution[0])) {
-                                    logPositionFromRawDataEvent("No Position Calculated Yet");
-                                    logPositionError("And no offset calculated yet...");
-                                } else {
-                                    if (mResidualPlotStatus != RESIDUAL_MODE_DISABLED
-                                            && mResidualPlotStatus != RESIDUAL_MODE_AT_INPUT_LOCATION) {
-                                        updateGroundTruth(posSolution);
-                                    }
-                                    String formattedLatDegree = new DecimalFormat("##.######").format(posSolution[0]);
-                                    String formattedLngDegree = new DecimalFormat("##.######").format(posSolution[1]);
-                                    String formattedAltMeters = new DecimalFormat("##.#").format(posSolution[2]);
-                                    logPositionFromRawDataEvent(
-                                            "latDegrees = "
-                                                    + formattedLatDegree
-                                                    + " lngDegrees = "
-                                                    + formattedLngDegree
-                                                    + "altMeters = "
-                                                    + formattedAltMeters);
-                                    String formattedVelocityEastMps =
-                                            new DecimalFormat("##.###").format(velSolution[0]);
-                                    String formattedVelocityNorthMps =
-                                            new DecimalFormat("##.###").format(velSolution[1]);
-                                    String formattedVelocityUpMps =
-                                            new DecimalFormat("##.###").format(velSolution[2]);
-                                    logVelocityFromRawDataEvent(
-                                            "Velocity East = "
-                                                    + formattedVelocityEastMps
-                                                    + "mps"
-                                                    + " Velocity North = "
-                                                    + formattedVelocityNorthMps
-                                                    + "mps"
-                                                    + "Velocity Up = "
-                                                    + formattedVelocityUpMps
-                                                    + "mps");
-
-                                    String formattedPosUncertaintyEastMeters =
-                                            new DecimalFormat("##.###").format(pvUncertainty[0]);
-                                    String formattedPosUncertaintyNorthMeters =
-                                            new DecimalFormat("##.###").format(pvUncertainty[1]);
-                                    String formattedPosUncertaintyUpMeters =
-                                            new DecimalFormat("##.###").format(pvUncertainty[2]);
-                                    logPositionUncertainty(
-                                            "East = "
-                                                    + formattedPosUncertaintyEastMeters
-                                                    + "m North = "
-                                                    + formattedPosUncertaintyNorthMeters
-                                                    + "m Up = "
-                                                    + formattedPosUncertaintyUpMeters
-                                                    + "m");
-                                    String formattedVelUncertaintyEastMeters =
-                                            new DecimalFormat("##.###").format(pvUncertainty[3]);
-                                    String formattedVelUncertaintyNorthMeters =
-                                            new DecimalFormat("##.###").format(pvUncertainty[4]);
-                                    String formattedVelUncertaintyUpMeters =
-                                            new DecimalFormat("##.###").format(pvUncertainty[5]);
-                                    logVelocityUncertainty(
-                                            "East = "
-                                                    + formattedVelUncertaintyEastMeters
-                                                    + "mps North = "
-                                                    + formattedVelUncertaintyNorthMeters
-                                                    + "mps Up = "
-                                                    + formattedVelUncertaintyUpMeters
-                                                    + "mps");
-                                    String formattedOffsetMeters =
-                                            new DecimalFormat("##.######")
-                                                    .format(
-                                                            getDistanceMeters(
-                                                                    location.getLatitude(),
-                                                                    location.getLongitude(),
-                                                                    posSolution[0],
-                                                                    posSolution[1]));
-                                    logPositionError("position offset = " + formattedOffsetMeters + " meters");
-                                    String formattedSpeedOffsetMps =
-                                            new DecimalFormat("##.###")
-                                                    .format(
-                                                            Math.abs(
-                                                                    location.getSpeed()
-                                                                            - Math.sqrt(
-                                                                            Math.pow(velSolution[0], 2)
-                                                                                    + Math.pow(velSolution[1], 2))));
-                                    logVelocityError("speed offset = " + formattedSpeedOffsetMps + " mps");
+                // The solution is an immutable snapshot, it can be read here without locking
+                PositionVelocitySolution solution = mSolutionPresenter.getLatestSolution();
+                if (solution.hasPosition()
+                        && mResidualPlotStatus != RESIDUAL_MODE_DISABLED
+                        && mResidualPlotStatus != RESIDUAL_MODE_AT_INPUT_LOCATION) {
+                    // The ground truth is read by the calculation of the epochs, so it is only
+                    // updated on their thread
+                    Runnable r =
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    updateGroundTruth(solution.getPositionSolutionLatLngDeg());
                                 }
-                                logLocationEvent("onLocationChanged: " + location);
-                                if (!Double.isNaN(posSolution[0])) {
-                                    updateMapViewWithPostions(
-                                            posSolution[0],
-                                            posSolution[1],
-                                            location.getLatitude(),
-                                            location.getLongitude(),
-                                            location.getTime());
-                                } else {
-                                    clearMapMarkers();
-                                }
-                            }
-                        };
-                mMyPositionVelocityCalculationHandler.post(r);
+                            };
+                    mMyPositionVelocityCalculationHandler.post(r);
+                }
+                mSolutionPresenter.onDeviceLocationChanged(location);
             }
         }
     }
 
-    private void clearMapMarkers() {
+    void clearMapMarkers() {
         mMapFragement.clearMarkers();
     }
 
-    private void updateMapViewWithPostions(
+    void updateMapViewWithPostions(
             double latDegRaw,
             double lngDegRaw,
             double latDegDevice,
@@ -296,18 +217,17 @@ public class RealTimePositionVelocityCalculator implements GnssListener {
 
     @Override
     public void onGnssMeasurementsReceived(GnssMeasurementsEvent event, boolean isGpsOnly) {
+    }
+
+    @Override
+    public void onGnssEpochReceived(GnssEpochSnapshot epoch, boolean isGpsOnly) {
         mAllowShowingRawResults = true;
         Runnable r =
                 new Runnable() {
                     @Override
                     public void run() {
-                        mMainActivity.runOnUiThread(
-                                new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        mPlotFragment.updateCnoTab(event, isGpsOnly);
-                                    }
-                                });
+                        // The plot only keeps the data here, and draws it at its next frame
+                        mPlotFragment.updateCnoTab(epoch, isGpsOnly);
                         if (mPseudorangePositionVelocityFromRealTimeEvents == null) {
                             return;
                         }
@@ -321,35 +241,23 @@ public class RealTimePositionVelocityCalculator implements GnssListener {
                                         .setCorrectedResidualComputationTruthLocationLla(mGroundTruth);
                             }
                             mPseudorangePositionVelocityFromRealTimeEvents
-                                    .computePositionVelocitySolutionsFromRawMeas(event);
+                                    .computePositionVelocitySolutionsFromRawMeas(epoch);
                             // Running on main thread instead of in parallel will improve the thread safety
                             if (mResidualPlotStatus != RESIDUAL_MODE_DISABLED) {
-                                mMainActivity.runOnUiThread(
-                                        new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                mPlotFragment.updatePseudorangeResidualTab(
-                                                        mPseudorangePositionVelocityFromRealTimeEvents
-                                                                .getPseudorangeResidualsMeters(),
-                                                        TimeUnit.NANOSECONDS.toSeconds(
-                                                                event.getClock().getTimeNanos()));
-                                            }
-                                        }
-                                );
+                                // Read on this thread, right after the computation of the epoch
+                                final double[] residualsMeters =
+                                        mPseudorangePositionVelocityFromRealTimeEvents
+                                                .getLatestSolution()
+                                                .getPseudorangeResidualsMeters();
+                                mPlotFragment.updatePseudorangeResidualTab(
+                                        residualsMeters,
+                                        TimeUnit.NANOSECONDS.toSeconds(epoch.timeNanos));
                             } else {
-                                mMainActivity.runOnUiThread(
-                                        new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                // Here we create gaps when the residual plot is disabled
-                                                mPlotFragment.updatePseudorangeResidualTab(
-                                                        GpsMathOperations.createAndFillArray(
-                                                                GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN),
-                                                        TimeUnit.NANOSECONDS.toSeconds(
-                                                                event.getClock().getTimeNanos()));
-                                            }
-                                        }
-                                );
+                                // Here we create gaps when the residual plot is disabled
+                                mPlotFragment.updatePseudorangeResidualTab(
+                                        GpsMathOperations.createAndFillArray(
+                                                GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN),
+                                        TimeUnit.NANOSECONDS.toSeconds(epoch.timeNanos));
                             }
                         } catch (Exception e) {
                             e.printStackTrace();
@@ -400,15 +308,15 @@ public class RealTimePositionVelocityCalculator implements GnssListener {
         logEvent("Location", event, mCurrentColor);
     }
 
-    private void logPositionFromRawDataEvent(String event) {
+    void logPositionFromRawDataEvent(String event) {
         logEvent("Calculated Position From Raw Data", event + "\n", mCurrentColor);
     }
 
-    private void logVelocityFromRawDataEvent(String event) {
+    void logVelocityFromRawDataEvent(String event) {
         logEvent("Calculated Velocity From Raw Data", event + "\n", mCurrentColor);
     }
 
-    private void logPositionError(String event) {
+    void logPositionError(String event) {
         logEvent(
                 "Offset between the reported position and Google's WLS position based on reported "
                         + "measurements",
@@ -416,7 +324,7 @@ public class RealTimePositionVelocityCalculator implements GnssListener {
                 mCurrentColor);
     }
 
-    private void logVelocityError(String event) {
+    void logVelocityError(String event) {
         logEvent(
                 "Offset between the reported velocity and "
                         + "Google's computed velocity based on reported measurements ",
@@ -424,11 +332,11 @@ public class RealTimePositionVelocityCalculator implements GnssListener {
                 mCurrentColor);
     }
 
-    private void logPositionUncertainty(String event) {
+    void logPositionUncertainty(String event) {
         logEvent("Uncertainty of the calculated position from Raw Data", event + "\n", mCurrentColor);
     }
 
-    private void logVelocityUncertainty(String event) {
+    void logVelocityUncertainty(String event) {
         logEvent("Uncertainty of the calculated velocity from Raw Data", event + "\n", mCurrentColor);
     }
 
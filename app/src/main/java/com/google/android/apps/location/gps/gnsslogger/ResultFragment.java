@@ -16,30 +16,27 @@
 
 package com.google.android.apps.location.gps.gnsslogger;
 
-import android.app.Activity;
 import android.app.Fragment;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
-import android.text.Editable;
-import android.text.SpannableStringBuilder;
-import android.text.style.ForegroundColorSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
-import android.widget.ScrollView;
-import android.widget.TextView;
+import android.widget.ListView;
 
 /**
  * The UI fragment that hosts a logging view.
  */
 public class ResultFragment extends Fragment {
 
+    /**
+     * The number of log entries kept in the logging view
+     */
+    private static final int LOG_CAPACITY = 200;
+    private final LogConsole mConsole = new LogConsole(LOG_CAPACITY, true /* followsAutoScroll */);
     private final UIResultComponent mUiComponent = new UIResultComponent();
-    private TextView mLogView;
-    private ScrollView mScrollView;
+    private ListView mLogView;
     private RealTimePositionVelocityCalculator mPositionVelocityCalculator;
 
     public void setPositionVelocityCalculator(RealTimePositionVelocityCalculator value) {
@@ -51,7 +48,7 @@ public class ResultFragment extends Fragment {
             LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View newView = inflater.inflate(R.layout.results_log, container, false /* attachToRoot */);
         mLogView = newView.findViewById(R.id.log_view);
-        mScrollView = newView.findViewById(R.id.log_scroll);
+        mConsole.attach(mLogView);
 
         RealTimePositionVelocityCalculator currentPositionVelocityCalculator =
                 mPositionVelocityCalculator;
@@ -61,55 +58,31 @@ public class ResultFragment extends Fragment {
 
         Button start = newView.findViewById(R.id.start_log);
         start.setOnClickListener(
-                view -> mScrollView.fullScroll(View.FOCUS_UP));
+                view -> mLogView.setSelection(0));
 
         Button end = newView.findViewById(R.id.end_log);
         end.setOnClickListener(
-                view -> mScrollView.fullScroll(View.FOCUS_DOWN));
+                view -> mLogView.setSelection(mConsole.getCount() - 1));
 
         Button clear = newView.findViewById(R.id.clear_log);
         clear.setOnClickListener(
-                view -> mLogView.setText(""));
+                view -> mConsole.clear());
         return newView;
     }
 
+    @Override
+    public void onDestroyView() {
+        mConsole.detach();
+        super.onDestroyView();
+    }
+
     /**
      * A facade for UI and Activity related operations that are required for {@link GnssListener}s.
      */
     public class UIResultComponent {
 
-        private static final int MAX_LENGTH = 12000;
-        private static final int LOWER_THRESHOLD = (int) (MAX_LENGTH * 0.5);
-
-        public synchronized void logTextResults(final String tag, final String text, int color) {
-            final SpannableStringBuilder builder = new SpannableStringBuilder();
-            builder.append(tag).append(" | ").append(text).append("\n");
-
-            builder.setSpan(
-                    new ForegroundColorSpan(color),
-                    0 /* start */,
-                    builder.length(),
-                    SpannableStringBuilder.SPAN_INCLUSIVE_EXCLUSIVE);
-
-            Activity activity = getActivity();
-            if (activity == null) {
-                return;
-            }
-            activity.runOnUiThread(
-                    () -> {
-                        mLogView.append(builder);
-                        SharedPreferences sharedPreferences = PreferenceManager.
-                                getDefaultSharedPreferences(getActivity());
-                        Editable editable = mLogView.getEditableText();
-                        int length = editable.length();
-                        if (length > MAX_LENGTH) {
-                            editable.delete(0, length - LOWER_THRESHOLD);
-                        }
-                        if (sharedPreferences.getBoolean(
-                                SettingsFragment.PREFERENCE_KEY_AUTO_SCROLL, false /*default return value*/)) {
-                            mScrollView.post(() -> mScrollView.fullScroll(View.FOCUS_DOWN));
-                        }
-                    });
+        public void logTextResults(String tag, String text, int color) {
+            mConsole.log(tag, text, color);
         }
 
         public void startActivity(Intent intent) {
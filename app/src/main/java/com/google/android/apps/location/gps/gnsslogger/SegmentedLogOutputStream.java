@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a log file as a directory of fixed size segment files, so that a session interrupted by
+ * a crash or a power loss is recovered up to its last commit.
+ *
+ * <p>A commit syncs the current segment to the storage, then appends its length and the checksum
+ * of its content to a journal. Commits are grouped: {@link #isCommitDue()} only asks for one once
+ * {@code commitIntervalMillis} have passed or {@code commitBytes} were written since the last one,
+ * trading the amount of data a crash can lose for the cost of syncing. {@link #flush()} commits.
+ * A full segment is committed before the next one is started.
+ *
+ * <p>Closing the stream joins the segments into the log file and deletes the directory. The
+ * directory of a session that was never closed is joined by {@link #recover(File)}, up to the
+ * last commit whose checksum matches, which drops any torn tail.
+ */
+class SegmentedLogOutputStream extends OutputStream {
+
+    private static final String SEGMENT_DIRECTORY_SUFFIX = ".segments";
+    private static final String SEGMENT_FILE_FORMAT = "segment_%06d";
+    private static final String JOURNAL_FILE_NAME = "journal";
+    /** Segment index, segment length, segment checksum and checksum of the entry itself */
+    private static final int JOURNAL_ENTRY_SIZE = 4 + 8 + 4 + 4;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final File mLogFile;
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final long mCommitIntervalNanos;
+    private final long mCommitBytes;
+
+    private final FileOutputStream mJournal;
+    private final ByteBuffer mJournalEntry = ByteBuffer.allocate(JOURNAL_ENTRY_SIZE);
+    private final CRC32 mEntryChecksum = new CRC32();
+    private final CRC32 mSegmentChecksum = new CRC32();
+    private final byte[] mSingleByte = new byte[1];
+
+    private FileOutputStream mSegment;
+    private int mSegmentIndex;
+    private long mSegmentLength;
+    private long mUncommittedBytes;
+    private long mLastCommitNanos;
+    private boolean mClosed;
+
+    /**
+     * Creates the directory of the segments of {@code logFile} and its first segment.
+     *
+     * @param segmentSize The size of the segment files, in bytes
+     * @param commitIntervalMillis The time after which written bytes are due for a commit
+     * @param commitBytes The number of written bytes that are due for a commit right away
+     */
+    SegmentedLogOutputStream(
+            File logFile, int segmentSize, long commitIntervalMillis, long commitBytes)
+            throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        mLogFile = logFile;
+        mDirectory = getSegmentDirectory(logFile);
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create directory: " + mDirectory.getAbsolutePath());
+        }
+        mSegmentSize = segmentSize;
+        mCommitIntervalNanos = commitIntervalMillis * 1_000_000L;
+        mCommitBytes = commitBytes;
+        mJournal = new FileOutputStream(new File(mDirectory, JOURNAL_FILE_NAME));
+        mSegment = new FileOutputStream(getSegmentFile(mDirectory, 0));
+        mLastCommitNanos = System.nanoTime();
+    }
+
+    /** Returns the directory holding the segments of {@code logFile} while it is written. */
+    static File getSegmentDirectory(File logFile) {
+        return new File(logFile.getParentFile(), logFile.getName() + SEGMENT_DIRECTORY_SUFFIX);
+    }
+
+    /** Returns whether {@code file} is the directory of the segments of a log file. */
+    static boolean isSegmentDirectory(File file) {
+        return file.isDirectory() && file.getName().endsWith(SEGMENT_DIRECTORY_SUFFIX);
+    }
+
+    /**
+     * Returns the directories of segments in {@code directory} left by the sessions interrupted
+     * before their log was closed, all but the one of {@code currentLogFile}, in name order.
+     */
+    static List<File> findInterruptedLogs(File directory, File currentLogFile) {
+        List<File> segmentDirectories = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return segmentDirectories;
+        }
+        Arrays.sort(files);
+        File currentSegmentDirectory = getSegmentDirectory(currentLogFile);
+        for (File file : files) {
+            if (isSegmentDirectory(file) && !file.equals(currentSegmentDirectory)) {
+                segmentDirectories.add(file);
+            }
+        }
+        return segmentDirectories;
+    }
+
+    /**
+     * Joins the segments of a session that was never closed into its log file, up to the last
+     * commit whose checksum matches, and deletes the directory.
+     *
+     * @return The log file
+     */
+    static File recover(File directory) throws IOException {
+        String name = directory.getName();
+        File logFile =
+                new File(
+                        directory.getParentFile(),
+                        name.substring(0, name.length() - SEGMENT_DIRECTORY_SUFFIX.length()));
+        List<long[]> entries = readJournal(new File(directory, JOURNAL_FILE_NAME));
+        List<Long> segmentLengths = new ArrayList<>();
+        int entryIndex = 0;
+        while (entryIndex < entries.size()) {
+            int segmentIndex = segmentLengths.size();
+            // The lengths committed for the segment, in the order they were committed
+            List<long[]> commits = new ArrayList<>();
+            while (entryIndex < entries.size() && entries.get(entryIndex)[0] == segmentIndex) {
+                commits.add(entries.get(entryIndex++));
+            }
+            if (commits.isEmpty()) {
+                break;
+            }
+            long length = getVerifiedLength(getSegmentFile(directory, segmentIndex), commits);
+            if (length < 0) {
+                break;
+            }
+            segmentLengths.add(length);
+            if (length != commits.get(commits.size() - 1)[1]) {
+                // Only an older commit of the segment matches, the next segments would leave a gap
+                break;
+            }
+        }
+        long[] lengths = new long[segmentLengths.size()];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = segmentLengths.get(i);
+        }
+        join(directory, logFile, lengths);
+        return logFile;
+    }
+
+    /** Deletes the directory of segments, without joining them. */
+    static void deleteSegments(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /** Returns whether the bytes written since the last commit are due for one. */
+    boolean isCommitDue() {
+        return mUncommittedBytes >= mCommitBytes
+                || System.nanoTime() - mLastCommitNanos >= mCommitIntervalNanos;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mSingleByte[0] = (byte) b;
+        write(mSingleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkNotClosed();
+        while (len > 0) {
+            if (mSegmentLength == mSegmentSize) {
+                startNextSegment();
+            }
+            int count = (int) Math.min(len, mSegmentSize - mSegmentLength);
+            mSegment.write(b, off, count);
+            mSegmentChecksum.update(b, off, count);
+            mSegmentLength += count;
+            mUncommittedBytes += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /** Commits the bytes written so far. */
+    @Override
+    public void flush() throws IOException {
+        checkNotClosed();
+        if (mUncommittedBytes > 0) {
+            commitSegment();
+        }
+        mLastCommitNanos = System.nanoTime();
+    }
+
+    /** Commits the bytes written so far and joins the segments into the log file. */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        flush();
+        mClosed = true;
+        mSegment.close();
+        mJournal.close();
+        long[] lengths = new long[mSegmentIndex + 1];
+        for (int i = 0; i < mSegmentIndex; i++) {
+            lengths[i] = mSegmentSize;
+        }
+        lengths[mSegmentIndex] = mSegmentLength;
+        join(mDirectory, mLogFile, lengths);
+    }
+
+    private void startNextSegment() throws IOException {
+        if (mUncommittedBytes > 0) {
+            commitSegment();
+        }
+        mSegment.close();
+        mSegmentIndex++;
+        mSegment = new FileOutputStream(getSegmentFile(mDirectory, mSegmentIndex));
+        mSegmentChecksum.reset();
+        mSegmentLength = 0;
+    }
+
+    /** Syncs the segment, then journals its length and checksum. */
+    private void commitSegment() throws IOException {
+        mSegment.getFD().sync();
+        mJournalEntry.clear();
+        mJournalEntry.putInt(mSegmentIndex);
+        mJournalEntry.putLong(mSegmentLength);
+        mJournalEntry.putInt((int) mSegmentChecksum.getValue());
+        mEntryChecksum.reset();
+        mEntryChecksum.update(mJournalEntry.array(), 0, mJournalEntry.position());
+        mJournalEntry.putInt((int) mEntryChecksum.getValue());
+        mJournal.write(mJournalEntry.array(), 0, JOURNAL_ENTRY_SIZE);
+        mJournal.getFD().sync();
+        mUncommittedBytes = 0;
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private static File getSegmentFile(File directory, int segmentIndex) {
+        return new File(directory, String.format(Locale.US, SEGMENT_FILE_FORMAT, segmentIndex));
+    }
+
+    /**
+     * Returns the entries of the journal as {segment index, length, checksum}, up to the first one
+     * that is torn or does not follow the previous one.
+     */
+    private static List<long[]> readJournal(File journalFile) throws IOException {
+        List<long[]> entries = new ArrayList<>();
+        if (!journalFile.isFile()) {
+            return entries;
+        }
+        byte[] entry = new byte[JOURNAL_ENTRY_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(entry);
+        CRC32 entryChecksum = new CRC32();
+        try (FileInputStream input = new FileInputStream(journalFile)) {
+            while (readFully(input, entry)) {
+                buffer.clear();
+                int segmentIndex = buffer.getInt();
+                long length = buffer.getLong();
+                int checksum = buffer.getInt();
+                entryChecksum.reset();
+                entryChecksum.update(entry, 0, buffer.position());
+                if (buffer.getInt() != (int) entryChecksum.getValue()) {
+                    break;
+                }
+                long previousSegmentIndex =
+                        entries.isEmpty() ? 0 : entries.get(entries.size() - 1)[0];
+                if (segmentIndex != previousSegmentIndex
+                        && segmentIndex != previousSegmentIndex + 1) {
+                    break;
+                }
+                entries.add(new long[] {segmentIndex, length, checksum});
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the longest of the committed lengths of {@code segmentFile} whose checksum matches,
+     * or -1 if none does.
+     */
+    private static long getVerifiedLength(File segmentFile, List<long[]> commits)
+            throws IOException {
+        if (!segmentFile.isFile()) {
+            return -1;
+        }
+        long verifiedLength = -1;
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        CRC32 checksum = new CRC32();
+        long position = 0;
+        try (FileInputStream input = new FileInputStream(segmentFile)) {
+            for (long[] commit : commits) {
+                long length = commit[1];
+                while (position < length) {
+                    int count =
+                            input.read(
+                                    buffer, 0, (int) Math.min(buffer.length, length - position));
+                    if (count < 0) {
+                        return verifiedLength;
+                    }
+                    checksum.update(buffer, 0, count);
+                    position += count;
+                }
+                if (position == length && (int) checksum.getValue() == (int) commit[2]) {
+                    verifiedLength = length;
+                }
+            }
+        }
+        return verifiedLength;
+    }
+
+    /** Copies the first bytes of each segment to {@code logFile} and deletes the directory. */
+    private static void join(File directory, File logFile, long[] segmentLengths)
+            throws IOException {
+        try (FileOutputStream output = new FileOutputStream(logFile)) {
+            FileChannel outputChannel = output.getChannel();
+            for (int i = 0; i < segmentLengths.length; i++) {
+                try (FileInputStream input = new FileInputStream(getSegmentFile(directory, i))) {
+                    FileChannel inputChannel = input.getChannel();
+                    long position = 0;
+                    while (position < segmentLengths[i]) {
+                        long count =
+                                inputChannel.transferTo(
+                                        position, segmentLengths[i] - position, outputChannel);
+                        if (count <= 0) {
+                            throw new IOException("Segment " + i + " is shorter than committed");
+                        }
+                        position += count;
+                    }
+                }
+            }
+            output.getFD().sync();
+        }
+        deleteSegments(directory);
+    }
+
+    private static boolean readFully(FileInputStream input, byte[] bytes) throws IOException {
+        int position = 0;
+        while (position < bytes.length) {
+            int count = input.read(bytes, position, bytes.length - position);
+            if (count < 0) {
+                return false;
+            }
+            position += count;
+        }
+        return true;
+    }
+}
@@ -58,6 +58,11 @@ public class SettingsFragment extends Fragment {
      * Key in the {@link SharedPreferences} indicating whether custom file logger has been enabled
      */
     protected static String PREFERENCE_KEY_CUSTOM_LOG = "customLog";
+    /**
+     * Key in the {@link SharedPreferences} indicating whether the default file logger writes the
+     * compact binary log instead of the text log
+     */
+    protected static String PREFERENCE_KEY_BINARY_LOG = "binaryLog";
     /**
      * Position in the drop down menu of the auto ground truth mode
      */
@@ -160,6 +165,21 @@ public class SettingsFragment extends Fragment {
                     }
                 });
 
+        Switch binaryLog = view.findViewById(R.id.binary_log);
+        TextView binaryLogLabel = view.findViewById(R.id.binary_log_label);
+        //set the switch to OFF
+        binaryLog.setChecked(false);
+        binaryLogLabel.setText("Switch is OFF");
+        binaryLog.setOnCheckedChangeListener(
+                (buttonView, isChecked) -> {
+                    SharedPreferences sharedPreferences =
+                            PreferenceManager.getDefaultSharedPreferences(getActivity());
+                    Editor editor = sharedPreferences.edit();
+                    editor.putBoolean(PREFERENCE_KEY_BINARY_LOG, isChecked);
+                    editor.apply();
+                    binaryLogLabel.setText(isChecked ? "Switch is ON" : "Switch is OFF");
+                });
+
         Switch gpsOnly = view.findViewById(R.id.gps_only);
         TextView gpsOnlyLabel = view.findViewById(R.id.gps_only_label);
         //set the switch to OFF
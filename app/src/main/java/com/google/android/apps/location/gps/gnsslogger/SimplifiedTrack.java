@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+import java.util.Arrays;
+
+/**
+ * A track of positions in preallocated primitive arrays, simplified as it grows so that it never
+ * holds more than a fixed number of vertices however long it is.
+ *
+ * <p>When the track is full, adding a position first drops the vertex with the smallest effective
+ * area (M. Visvalingam and J. D. Whyatt, 1993): the one whose removal changes the shape of the
+ * track the least. The first and the latest positions are always kept. {@link #simplify} then
+ * reduces the vertices further for drawing, with the Douglas-Peucker algorithm.
+ *
+ * <p>The vertices are linked in track order through the slots of the arrays, a dropped vertex
+ * leaving its slot to the next position, and the areas are kept in an indexed binary heap: adding
+ * a position costs O(log n) for a track of n vertices. {@link #simplify} is O(n log n) on
+ * typical tracks, O(n^2) at worst.
+ *
+ * <p>Distances are computed in a local equirectangular projection around the first position. The
+ * class is not thread safe.
+ */
+final class SimplifiedTrack {
+
+    private static final double EARTH_RADIUS_METERS = 6371000;
+    private static final double METERS_PER_DEGREE_LATITUDE = Math.toRadians(EARTH_RADIUS_METERS);
+    /** The first position is kept in the first slot until the track is cleared */
+    private static final int FIRST = 0;
+    private static final int NONE = -1;
+
+    private final double[] mLatDeg;
+    private final double[] mLngDeg;
+    /** The effective area of each vertex but the first and the latest, in square meters */
+    private final double[] mAreas;
+    /** The slots of the previous and next vertices of each slot, or {@link #NONE} */
+    private final int[] mPrevious;
+    private final int[] mNext;
+    /** The slots of the vertices with an area, ordered as a binary heap of their areas */
+    private final int[] mHeap;
+    /** The position of each slot in {@link #mHeap} */
+    private final int[] mHeapPositions;
+    /** The slots in track order, while the track is simplified */
+    private final int[] mOrder;
+    private final boolean[] mKept;
+    private final int[] mStack;
+    private int mSize;
+    private int mHeapSize;
+    private int mLatest;
+    /** The area of the last vertex dropped, which no vertex left gets less of */
+    private double mRemovedArea;
+    private double mMetersPerDegreeLongitude;
+
+    /** @param capacity The largest number of vertices kept, at least 3 */
+    SimplifiedTrack(int capacity) {
+        if (capacity < 3) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mLatDeg = new double[capacity];
+        mLngDeg = new double[capacity];
+        mAreas = new double[capacity];
+        mPrevious = new int[capacity];
+        mNext = new int[capacity];
+        mHeap = new int[capacity];
+        mHeapPositions = new int[capacity];
+        mOrder = new int[capacity];
+        mKept = new boolean[capacity];
+        mStack = new int[2 * capacity];
+    }
+
+    /** Adds the latest position, dropping the least significant vertex if the track is full. */
+    void add(double latDeg, double lngDeg) {
+        if (mSize == 0) {
+            mMetersPerDegreeLongitude =
+                    METERS_PER_DEGREE_LATITUDE * Math.cos(Math.toRadians(latDeg));
+            mLatDeg[FIRST] = latDeg;
+            mLngDeg[FIRST] = lngDeg;
+            mPrevious[FIRST] = NONE;
+            mNext[FIRST] = NONE;
+            mLatest = FIRST;
+            mSize = 1;
+            return;
+        }
+        int slot = mSize == mLatDeg.length ? removeSmallestArea() : mSize;
+        int previous = mLatest;
+        mLatDeg[slot] = latDeg;
+        mLngDeg[slot] = lngDeg;
+        mPrevious[slot] = previous;
+        mNext[slot] = NONE;
+        mNext[previous] = slot;
+        mLatest = slot;
+        mSize++;
+        if (previous != FIRST) {
+            mAreas[previous] = Math.max(area(mPrevious[previous], previous, slot), mRemovedArea);
+            mHeap[mHeapSize] = previous;
+            mHeapPositions[previous] = mHeapSize;
+            mHeapSize++;
+            siftUp(mHeapSize - 1);
+        }
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        mSize = 0;
+        mHeapSize = 0;
+        mRemovedArea = 0;
+    }
+
+    /**
+     * Writes the vertices that are farther than {@code toleranceMeters} from the simplified track,
+     * with the first and the latest positions, into {@code outLatDeg} and {@code outLngDeg}, which
+     * hold at least {@link #size()} values.
+     *
+     * @return The number of vertices written
+     */
+    int simplify(double toleranceMeters, double[] outLatDeg, double[] outLngDeg) {
+        int slot = FIRST;
+        for (int i = 0; i < mSize; i++) {
+            mOrder[i] = slot;
+            slot = mNext[slot];
+        }
+        if (mSize <= 2) {
+            for (int i = 0; i < mSize; i++) {
+                outLatDeg[i] = mLatDeg[mOrder[i]];
+                outLngDeg[i] = mLngDeg[mOrder[i]];
+            }
+            return mSize;
+        }
+        Arrays.fill(mKept, 0, mSize, false);
+        mKept[0] = true;
+        mKept[mSize - 1] = true;
+        int top = 0;
+        mStack[top++] = 0;
+        mStack[top++] = mSize - 1;
+        while (top > 0) {
+            int last = mStack[--top];
+            int first = mStack[--top];
+            double largestDistance = toleranceMeters;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = distanceToSegment(mOrder[i], mOrder[first], mOrder[last]);
+                if (distance > largestDistance) {
+                    largestDistance = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0) {
+                mKept[farthest] = true;
+                mStack[top++] = first;
+                mStack[top++] = farthest;
+                mStack[top++] = farthest;
+                mStack[top++] = last;
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (mKept[i]) {
+                outLatDeg[count] = mLatDeg[mOrder[i]];
+                outLngDeg[count] = mLngDeg[mOrder[i]];
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Unlinks the vertex with the smallest area, and returns its slot. */
+    private int removeSmallestArea() {
+        int smallest = mHeap[0];
+        mHeapSize--;
+        if (mHeapSize > 0) {
+            mHeap[0] = mHeap[mHeapSize];
+            mHeapPositions[mHeap[0]] = 0;
+            siftDown(0);
+        }
+        mRemovedArea = mAreas[smallest];
+        int previous = mPrevious[smallest];
+        int next = mNext[smallest];
+        mNext[previous] = next;
+        mPrevious[next] = previous;
+        mSize--;
+
+        // The neighbours never get a smaller area than the vertex removed, so that the vertices
+        // keep being removed in order of significance
+        if (previous != FIRST) {
+            updateArea(previous, area(mPrevious[previous], previous, next));
+        }
+        if (next != mLatest) {
+            updateArea(next, area(previous, next, mNext[next]));
+        }
+        return smallest;
+    }
+
+    private void updateArea(int slot, double area) {
+        mAreas[slot] = Math.max(area, mRemovedArea);
+        siftUp(mHeapPositions[slot]);
+        siftDown(mHeapPositions[slot]);
+    }
+
+    private void siftUp(int position) {
+        int slot = mHeap[position];
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (mAreas[mHeap[parent]] <= mAreas[slot]) {
+                break;
+            }
+            mHeap[position] = mHeap[parent];
+            mHeapPositions[mHeap[position]] = position;
+            position = parent;
+        }
+        mHeap[position] = slot;
+        mHeapPositions[slot] = position;
+    }
+
+    private void siftDown(int position) {
+        int slot = mHeap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= mHeapSize) {
+                break;
+            }
+            if (child + 1 < mHeapSize && mAreas[mHeap[child + 1]] < mAreas[mHeap[child]]) {
+                child++;
+            }
+            if (mAreas[slot] <= mAreas[mHeap[child]]) {
+                break;
+            }
+            mHeap[position] = mHeap[child];
+            mHeapPositions[mHeap[position]] = position;
+            position = child;
+        }
+        mHeap[position] = slot;
+        mHeapPositions[slot] = position;
+    }
+
+    private double x(int slot) {
+        return (mLngDeg[slot] - mLngDeg[FIRST]) * mMetersPerDegreeLongitude;
+    }
+
+    private double y(int slot) {
+        return (mLatDeg[slot] - mLatDeg[FIRST]) * METERS_PER_DEGREE_LATITUDE;
+    }
+
+    /** Returns the area of the triangle formed by three vertices, in square meters. */
+    private double area(int a, int b, int c) {
+        return Math.abs((x(b) - x(a)) * (y(c) - y(a)) - (x(c) - x(a)) * (y(b) - y(a))) / 2;
+    }
+
+    /** Returns the distance of a vertex to the segment between two others, in meters. */
+    private double distanceToSegment(int slot, int first, int last) {
+        double segmentX = x(last) - x(first);
+        double segmentY = y(last) - y(first);
+        double pointX = x(slot) - x(first);
+        double pointY = y(slot) - y(first);
+        double lengthSquared = segmentX * segmentX + segmentY * segmentY;
+        double t = lengthSquared == 0
+                ? 0
+                : Math.max(0, Math.min(1, (pointX * segmentX + pointY * segmentY) / lengthSquared));
+        double dx = pointX - t * segmentX;
+        double dy = pointY - t * segmentY;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
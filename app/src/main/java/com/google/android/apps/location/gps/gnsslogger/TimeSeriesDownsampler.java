@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+/**
+ * Reduces a range of a {@link TimeSeriesRing} to about as many points as the chart has pixels, so
+ * that drawing a series costs the same however many samples it holds.
+ *
+ * <p>The points are written to {@code outX} and {@code outY}, which hold at least {@code 2 *
+ * maxPoints} values. A gap between two points, see {@link TimeSeriesRing#isContinuous}, is written
+ * as an extra point with a {@link Double#NaN} value, at the time of the point before it.
+ */
+final class TimeSeriesDownsampler {
+
+    private TimeSeriesDownsampler() {}
+
+    /**
+     * Keeps the samples of the Largest-Triangle-Three-Buckets algorithm (S. Steinarsson, 2013): the
+     * first and last samples, and in each of {@code maxPoints - 2} buckets in between the sample
+     * forming the largest triangle with the previous point kept and the mean of the next bucket.
+     * The shape of the series is preserved, including its peaks.
+     *
+     * @return The number of points written
+     */
+    static int largestTriangleThreeBuckets(
+            TimeSeriesRing series, int from, int to, int maxPoints, double[] outX, double[] outY) {
+        int count = to - from;
+        if (count <= maxPoints || maxPoints < 3) {
+            return copy(series, from, to, outX, outY);
+        }
+        double bucketSize = (double) (count - 2) / (maxPoints - 2);
+        int outCount = 0;
+        int selected = from;
+        outCount = append(series, -1, selected, outX, outY, outCount);
+        for (int bucket = 0; bucket < maxPoints - 2; bucket++) {
+            int bucketStart = from + 1 + (int) (bucket * bucketSize);
+            int bucketEnd = from + 1 + (int) ((bucket + 1) * bucketSize);
+            int nextStart = bucketEnd;
+            int nextEnd = Math.min(from + 1 + (int) ((bucket + 2) * bucketSize), to);
+            if (bucket == maxPoints - 3) {
+                // The last point is always kept, it is the next "bucket"
+                nextStart = to - 1;
+                nextEnd = to;
+            }
+            double meanX = 0;
+            double meanY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                meanX += series.getTime(i);
+                meanY += series.getValue(i);
+            }
+            meanX /= nextEnd - nextStart;
+            meanY /= nextEnd - nextStart;
+
+            double selectedX = series.getTime(selected);
+            double selectedY = series.getValue(selected);
+            double largestArea = -1;
+            int largest = bucketStart;
+            for (int i = bucketStart; i < bucketEnd; i++) {
+                // Twice the area, the comparison does not need the factor
+                double area =
+                        Math.abs(
+                                (selectedX - meanX) * (series.getValue(i) - selectedY)
+                                        - (selectedX - series.getTime(i)) * (meanY - selectedY));
+                if (area > largestArea) {
+                    largestArea = area;
+                    largest = i;
+                }
+            }
+            outCount = append(series, selected, largest, outX, outY, outCount);
+            selected = largest;
+        }
+        return append(series, selected, to - 1, outX, outY, outCount);
+    }
+
+    /**
+     * Keeps the smallest and the largest sample of each of {@code maxPoints / 2} buckets, in time
+     * order. Cheaper than {@link #largestTriangleThreeBuckets}, and no extreme value is lost.
+     *
+     * @return The number of points written
+     */
+    static int minMax(
+            TimeSeriesRing series, int from, int to, int maxPoints, double[] outX, double[] outY) {
+        int count = to - from;
+        int bucketCount = maxPoints / 2;
+        if (count <= maxPoints || bucketCount < 1) {
+            return copy(series, from, to, outX, outY);
+        }
+        double bucketSize = (double) count / bucketCount;
+        int outCount = 0;
+        int previous = -1;
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            int bucketStart = from + (int) (bucket * bucketSize);
+            int bucketEnd =
+                    bucket == bucketCount - 1 ? to : from + (int) ((bucket + 1) * bucketSize);
+            int smallest = bucketStart;
+            int largest = bucketStart;
+            for (int i = bucketStart + 1; i < bucketEnd; i++) {
+                double value = series.getValue(i);
+                if (value < series.getValue(smallest)) {
+                    smallest = i;
+                } else if (value > series.getValue(largest)) {
+                    largest = i;
+                }
+            }
+            int first = Math.min(smallest, largest);
+            int second = Math.max(smallest, largest);
+            outCount = append(series, previous, first, outX, outY, outCount);
+            previous = first;
+            if (second != first) {
+                outCount = append(series, previous, second, outX, outY, outCount);
+                previous = second;
+            }
+        }
+        return outCount;
+    }
+
+    private static int copy(TimeSeriesRing series, int from, int to, double[] outX, double[] outY) {
+        int outCount = 0;
+        for (int i = from; i < to; i++) {
+            // A gap before the range is not drawn
+            outCount = append(series, i == from ? -1 : i - 1, i, outX, outY, outCount);
+        }
+        return outCount;
+    }
+
+    /** Writes sample {@code index}, after a gap point if it does not follow {@code previous}. */
+    private static int append(
+            TimeSeriesRing series,
+            int previous,
+            int index,
+            double[] outX,
+            double[] outY,
+            int outCount) {
+        if (previous >= 0 && !series.isContinuous(previous, index)) {
+            outX[outCount] = series.getTime(previous);
+            outY[outCount] = Double.NaN;
+            outCount++;
+        }
+        outX[outCount] = series.getTime(index);
+        outY[outCount] = series.getValue(index);
+        return outCount + 1;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+/**
+ * The samples of a time series over a retention window, in preallocated primitive arrays: the
+ * memory used does not depend on how long the series is fed.
+ *
+ * <p>Each sample carries the number of the epoch it belongs to. Consecutive samples with
+ * non-consecutive epoch numbers have a gap between them, so a series that is not reported in an
+ * epoch does not need a sample to mark it.
+ *
+ * <p>Samples are indexed from the oldest, index 0, to the latest, index {@link #size()} - 1, and
+ * their times never decrease. The class is not thread safe.
+ */
+final class TimeSeriesRing {
+
+    private final double[] mTimes;
+    private final double[] mValues;
+    private final int[] mEpochs;
+    private final double mRetentionSeconds;
+    private int mStart;
+    private int mSize;
+
+    /**
+     * @param capacity The number of samples kept, older samples are overwritten
+     * @param retentionSeconds How long a sample is kept after a more recent one is added
+     */
+    TimeSeriesRing(int capacity, double retentionSeconds) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mTimes = new double[capacity];
+        mValues = new double[capacity];
+        mEpochs = new int[capacity];
+        mRetentionSeconds = retentionSeconds;
+    }
+
+    /**
+     * Adds a sample and drops the ones older than the retention window. A sample older than the
+     * latest one, e.g. after the clock is reset, starts the series over.
+     */
+    void add(double timeSeconds, double value, int epoch) {
+        if (mSize > 0 && timeSeconds < getTime(mSize - 1)) {
+            mSize = 0;
+        }
+        if (mSize == mTimes.length) {
+            mStart = (mStart + 1) % mTimes.length;
+            mSize--;
+        }
+        int slot = (mStart + mSize) % mTimes.length;
+        mTimes[slot] = timeSeconds;
+        mValues[slot] = value;
+        mEpochs[slot] = epoch;
+        mSize++;
+
+        double oldestTimeSeconds = timeSeconds - mRetentionSeconds;
+        while (mSize > 1 && mTimes[mStart] < oldestTimeSeconds) {
+            mStart = (mStart + 1) % mTimes.length;
+            mSize--;
+        }
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    double getTime(int index) {
+        return mTimes[(mStart + index) % mTimes.length];
+    }
+
+    double getValue(int index) {
+        return mValues[(mStart + index) % mTimes.length];
+    }
+
+    int getEpoch(int index) {
+        return mEpochs[(mStart + index) % mTimes.length];
+    }
+
+    /** Returns whether samples {@code from} and {@code to} have all the epochs between them. */
+    boolean isContinuous(int from, int to) {
+        return getEpoch(to) - getEpoch(from) == to - from;
+    }
+
+    /** Returns the index of the first sample at or after {@code timeSeconds}, or the size. */
+    int lowerBound(double timeSeconds) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getTime(middle) < timeSeconds) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -17,8 +17,6 @@
 package com.google.android.apps.location.gps.gnsslogger;
 
 import android.graphics.Color;
-import android.location.GnssClock;
-import android.location.GnssMeasurement;
 import android.location.GnssMeasurementsEvent;
 import android.location.GnssNavigationMessage;
 import android.location.GnssStatus;
@@ -28,6 +26,8 @@ import android.os.Bundle;
 import android.util.Log;
 
 import com.google.android.apps.location.gps.gnsslogger.LoggerFragment.UIFragmentComponent;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssEpochSnapshot;
+import com.google.location.lbs.gnss.gps.pseudorange.LoggedGnssMeasurement;
 
 import java.text.DecimalFormat;
 
@@ -81,159 +81,171 @@ public class UiLogger implements GnssListener {
 
     @Override
     public void onGnssMeasurementsReceived(GnssMeasurementsEvent event, boolean isGpsOnly) {
+    }
+
+    @Override
+    public void onGnssEpochReceived(GnssEpochSnapshot epoch, boolean isGpsOnly) {
+        // The snapshot is immutable, its dump is only formatted when it is shown
+        logMeasurementEvent(
+                () -> "onGnsssMeasurementsReceived: " + toStringEpoch(epoch, isGpsOnly));
+    }
+
+    private String toStringEpoch(GnssEpochSnapshot epoch, boolean isGpsOnly) {
         StringBuilder builder = new StringBuilder("[ GnssMeasurementsEvent:\n\n");
 
-        builder.append(toStringClock(event.getClock()));
+        builder.append(toStringClock(epoch));
         builder.append("\n");
 
-        for (GnssMeasurement measurement : event.getMeasurements()) {
-            if(isGpsOnly && measurement.getConstellationType() != GnssStatus.CONSTELLATION_GPS) {
+        LoggedGnssMeasurement measurement = new LoggedGnssMeasurement();
+        for (int i = 0; i < epoch.getMeasurementCount(); i++) {
+            if(isGpsOnly && epoch.getConstellationType(i) != GnssStatus.CONSTELLATION_GPS) {
                 continue;
             }
+            epoch.copyMeasurementTo(i, measurement);
             builder.append(toStringMeasurement(measurement));
             builder.append("\n");
         }
 
         builder.append("]");
-        logMeasurementEvent("onGnsssMeasurementsReceived: " + builder);
+        return builder.toString();
     }
 
-    private String toStringClock(GnssClock gnssClock) {
+    private String toStringClock(GnssEpochSnapshot gnssClock) {
         String format = "   %-4s = %s\n";
         StringBuilder builder = new StringBuilder("GnssClock:\n");
         DecimalFormat numberFormat = new DecimalFormat("#0.000");
-        if (gnssClock.hasLeapSecond()) {
-            builder.append(String.format(format, "LeapSecond", gnssClock.getLeapSecond()));
+        if (gnssClock.hasLeapSecond) {
+            builder.append(String.format(format, "LeapSecond", gnssClock.leapSecond));
         }
 
-        builder.append(String.format(format, "TimeNanos", gnssClock.getTimeNanos()));
-        if (gnssClock.hasTimeUncertaintyNanos()) {
+        builder.append(String.format(format, "TimeNanos", gnssClock.timeNanos));
+        if (gnssClock.hasTimeUncertaintyNanos) {
             builder.append(
-                    String.format(format, "TimeUncertaintyNanos", gnssClock.getTimeUncertaintyNanos()));
+                    String.format(format, "TimeUncertaintyNanos", gnssClock.timeUncertaintyNanos));
         }
 
-        if (gnssClock.hasFullBiasNanos()) {
-            builder.append(String.format(format, "FullBiasNanos", gnssClock.getFullBiasNanos()));
+        if (gnssClock.hasFullBiasNanos) {
+            builder.append(String.format(format, "FullBiasNanos", gnssClock.fullBiasNanos));
         }
 
-        if (gnssClock.hasBiasNanos()) {
-            builder.append(String.format(format, "BiasNanos", gnssClock.getBiasNanos()));
+        if (gnssClock.hasBiasNanos) {
+            builder.append(String.format(format, "BiasNanos", gnssClock.biasNanos));
         }
-        if (gnssClock.hasBiasUncertaintyNanos()) {
+        if (gnssClock.hasBiasUncertaintyNanos) {
             builder.append(
                     String.format(
                             format,
                             "BiasUncertaintyNanos",
-                            numberFormat.format(gnssClock.getBiasUncertaintyNanos())));
+                            numberFormat.format(gnssClock.biasUncertaintyNanos)));
         }
 
-        if (gnssClock.hasDriftNanosPerSecond()) {
+        if (gnssClock.hasDriftNanosPerSecond) {
             builder.append(
                     String.format(
                             format,
                             "DriftNanosPerSecond",
-                            numberFormat.format(gnssClock.getDriftNanosPerSecond())));
+                            numberFormat.format(gnssClock.driftNanosPerSecond)));
         }
 
-        if (gnssClock.hasDriftUncertaintyNanosPerSecond()) {
+        if (gnssClock.hasDriftUncertaintyNanosPerSecond) {
             builder.append(
                     String.format(
                             format,
                             "DriftUncertaintyNanosPerSecond",
-                            numberFormat.format(gnssClock.getDriftUncertaintyNanosPerSecond())));
+                            numberFormat.format(gnssClock.driftUncertaintyNanosPerSecond)));
         }
 
         builder.append(
                 String.format(
                         format,
                         "HardwareClockDiscontinuityCount",
-                        gnssClock.getHardwareClockDiscontinuityCount()));
+                        gnssClock.hardwareClockDiscontinuityCount));
 
         return builder.toString();
     }
 
-    private String toStringMeasurement(GnssMeasurement measurement) {
+    private String toStringMeasurement(LoggedGnssMeasurement measurement) {
         String format = "   %-4s = %s\n";
         StringBuilder builder = new StringBuilder("GnssMeasurement:\n");
         DecimalFormat numberFormat = new DecimalFormat("#0.000");
         DecimalFormat numberFormat1 = new DecimalFormat("#0.000E00");
-        builder.append(String.format(format, "Svid", measurement.getSvid()));
-        builder.append(String.format(format, "ConstellationType", measurement.getConstellationType()));
-        builder.append(String.format(format, "TimeOffsetNanos", measurement.getTimeOffsetNanos()));
+        builder.append(String.format(format, "Svid", measurement.svid));
+        builder.append(String.format(format, "ConstellationType", measurement.constellationType));
+        builder.append(String.format(format, "TimeOffsetNanos", measurement.timeOffsetNanos));
 
-        builder.append(String.format(format, "State", measurement.getState()));
+        builder.append(String.format(format, "State", measurement.state));
 
         builder.append(
-                String.format(format, "ReceivedSvTimeNanos", measurement.getReceivedSvTimeNanos()));
+                String.format(format, "ReceivedSvTimeNanos", measurement.receivedSvTimeNanos));
         builder.append(
                 String.format(
                         format,
                         "ReceivedSvTimeUncertaintyNanos",
-                        measurement.getReceivedSvTimeUncertaintyNanos()));
+                        measurement.receivedSvTimeUncertaintyNanos));
 
-        builder.append(String.format(format, "Cn0DbHz", numberFormat.format(measurement.getCn0DbHz())));
+        builder.append(String.format(format, "Cn0DbHz", numberFormat.format(measurement.cn0DbHz)));
 
         builder.append(
                 String.format(
                         format,
                         "PseudorangeRateMetersPerSecond",
-                        numberFormat.format(measurement.getPseudorangeRateMetersPerSecond())));
+                        numberFormat.format(measurement.pseudorangeRateMetersPerSecond)));
         builder.append(
                 String.format(
                         format,
                         "PseudorangeRateUncertaintyMetersPerSeconds",
-                        numberFormat.format(measurement.getPseudorangeRateUncertaintyMetersPerSecond())));
+                        numberFormat.format(measurement.pseudorangeRateUncertaintyMetersPerSecond)));
 
-        if (measurement.getAccumulatedDeltaRangeState() != 0) {
+        if (measurement.accumulatedDeltaRangeState != 0) {
             builder.append(
                     String.format(
-                            format, "AccumulatedDeltaRangeState", measurement.getAccumulatedDeltaRangeState()));
+                            format, "AccumulatedDeltaRangeState", measurement.accumulatedDeltaRangeState));
 
             builder.append(
                     String.format(
                             format,
                             "AccumulatedDeltaRangeMeters",
-                            numberFormat.format(measurement.getAccumulatedDeltaRangeMeters())));
+                            numberFormat.format(measurement.accumulatedDeltaRangeMeters)));
             builder.append(
                     String.format(
                             format,
                             "AccumulatedDeltaRangeUncertaintyMeters",
-                            numberFormat1.format(measurement.getAccumulatedDeltaRangeUncertaintyMeters())));
+                            numberFormat1.format(measurement.accumulatedDeltaRangeUncertaintyMeters)));
         }
 
-        if (measurement.hasCarrierFrequencyHz()) {
+        if (measurement.hasCarrierFrequencyHz) {
             builder.append(
-                    String.format(format, "CarrierFrequencyHz", measurement.getCarrierFrequencyHz()));
+                    String.format(format, "CarrierFrequencyHz", measurement.carrierFrequencyHz));
         }
 
-        if (measurement.hasCarrierCycles()) {
-            builder.append(String.format(format, "CarrierCycles", measurement.getCarrierCycles()));
+        if (measurement.hasCarrierCycles) {
+            builder.append(String.format(format, "CarrierCycles", measurement.carrierCycles));
         }
 
-        if (measurement.hasCarrierPhase()) {
-            builder.append(String.format(format, "CarrierPhase", measurement.getCarrierPhase()));
+        if (measurement.hasCarrierPhase) {
+            builder.append(String.format(format, "CarrierPhase", measurement.carrierPhase));
         }
 
-        if (measurement.hasCarrierPhaseUncertainty()) {
+        if (measurement.hasCarrierPhaseUncertainty) {
             builder.append(
                     String.format(
-                            format, "CarrierPhaseUncertainty", measurement.getCarrierPhaseUncertainty()));
+                            format, "CarrierPhaseUncertainty", measurement.carrierPhaseUncertainty));
         }
 
         builder.append(
-                String.format(format, "MultipathIndicator", measurement.getMultipathIndicator()));
+                String.format(format, "MultipathIndicator", measurement.multipathIndicator));
 
-        if (measurement.hasSnrInDb()) {
-            builder.append(String.format(format, "SnrInDb", measurement.getSnrInDb()));
+        if (measurement.hasSnrInDb) {
+            builder.append(String.format(format, "SnrInDb", measurement.snrInDb));
         }
 
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-            if (measurement.hasAutomaticGainControlLevelDb()) {
+            if (measurement.hasAutomaticGainControlLevelDb) {
                 builder.append(
-                        String.format(format, "AgcDb", measurement.getAutomaticGainControlLevelDb()));
+                        String.format(format, "AgcDb", measurement.automaticGainControlLevelDb));
             }
-            if (measurement.hasCarrierFrequencyHz()) {
-                builder.append(String.format(format, "CarrierFreqHz", measurement.getCarrierFrequencyHz()));
+            if (measurement.hasCarrierFrequencyHz) {
+                builder.append(String.format(format, "CarrierFreqHz", measurement.carrierFrequencyHz));
             }
         }
 
@@ -274,6 +286,10 @@ public class UiLogger implements GnssListener {
         logEvent("Measurement", event, USED_COLOR);
     }
 
+    private void logMeasurementEvent(LogConsole.Message event) {
+        logEvent("Measurement", event, USED_COLOR);
+    }
+
     private void logNavigationMessageEvent(String event) {
         logEvent("NavigationMsg", event, USED_COLOR);
     }
@@ -299,6 +315,17 @@ public class UiLogger implements GnssListener {
         }
     }
 
+    private void logEvent(String tag, LogConsole.Message message, int color) {
+        // Formatting the message for logcat would defeat deferring it, so only when enabled
+        if (Log.isLoggable(GnssContainer.TAG, Log.DEBUG)) {
+            Log.d(GnssContainer.TAG + tag, message.format());
+        }
+        UIFragmentComponent component = getUiFragmentComponent();
+        if (component != null) {
+            component.logTextFragment(tag, message, color);
+        }
+    }
+
     private String locationStatusToString(int status) {
         switch (status) {
             case LocationProvider.AVAILABLE:
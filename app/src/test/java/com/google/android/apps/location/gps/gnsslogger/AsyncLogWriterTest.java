@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.android.apps.location.gps.gnsslogger.AsyncLogWriter.OverflowPolicy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link AsyncLogWriter}: the reuse of the slots, the overflow policies and the records
+ * written when the writer is closed.
+ */
+public class AsyncLogWriterTest {
+
+    private static final String NAME = "AsyncLogWriterTest";
+    /** Rounded up to 4 slots */
+    private static final int CAPACITY = 3;
+    private static final int SLOT_COUNT = 4;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /** A log record, the slots are reused for the records of each turn of the ring */
+    private static final class Record {
+        int value;
+    }
+
+    /** Records the calls of the writer thread, and can hold it in its first write */
+    private static final class RecordingWriter implements AsyncLogWriter.RecordWriter<Record> {
+        final List<String> mCalls = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch mFirstWriteStarted = new CountDownLatch(1);
+        final CountDownLatch mWriteAllowed;
+        IOException mWriteError;
+
+        RecordingWriter(boolean held) {
+            mWriteAllowed = new CountDownLatch(held ? 1 : 0);
+        }
+
+        @Override
+        public void write(Record record) throws IOException {
+            mFirstWriteStarted.countDown();
+            try {
+                mWriteAllowed.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (mWriteError != null) {
+                throw mWriteError;
+            }
+            mCalls.add("write " + record.value);
+        }
+
+        @Override
+        public void onDrained() {}
+
+        @Override
+        public void flush() {
+            mCalls.add("flush");
+        }
+
+        @Override
+        public void close() {
+            mCalls.add("close");
+        }
+
+        List<String> getWrites() {
+            List<String> writes = new ArrayList<>();
+            synchronized (mCalls) {
+                for (String call : mCalls) {
+                    if (call.startsWith("write ")) {
+                        writes.add(call);
+                    }
+                }
+            }
+            return writes;
+        }
+    }
+
+    @Test
+    public void slotsAreReusedForEveryTurnOfTheRing() throws Exception {
+        AtomicInteger slotCount = new AtomicInteger();
+        List<Record> slots = new ArrayList<>();
+        RecordingWriter recordWriter = new RecordingWriter(false /* held */);
+        AsyncLogWriter<Record> logWriter =
+                new AsyncLogWriter<>(
+                        NAME,
+                        CAPACITY,
+                        OverflowPolicy.BLOCK,
+                        () -> {
+                            slotCount.incrementAndGet();
+                            return new Record();
+                        },
+                        recordWriter);
+
+        for (int i = 0; i < 10 * SLOT_COUNT; i++) {
+            Record record = logWriter.claim();
+            assertNotNull(record);
+            if (i < SLOT_COUNT) {
+                slots.add(record);
+            } else {
+                assertSame(slots.get(i % SLOT_COUNT), record);
+            }
+            record.value = i;
+            logWriter.publish();
+        }
+        logWriter.close();
+
+        assertEquals(SLOT_COUNT, slotCount.get());
+        assertEquals(10 * SLOT_COUNT, logWriter.getWrittenRecordCount());
+        assertEquals(0, logWriter.getDroppedRecordCount());
+        assertWrittenInOrder(recordWriter, 10 * SLOT_COUNT);
+    }
+
+    @Test
+    public void newestRecordsAreDroppedWhileTheSlotsAreFull() throws Exception {
+        RecordingWriter recordWriter = new RecordingWriter(true /* held */);
+        AsyncLogWriter<Record> logWriter =
+                new AsyncLogWriter<>(
+                        NAME, CAPACITY, OverflowPolicy.DROP_NEWEST, Record::new, recordWriter);
+
+        // The writer thread holds the first record, whose slot is not released until it is written
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            publish(logWriter, i);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertNull(logWriter.claim());
+        }
+        recordWriter.mWriteAllowed.countDown();
+        logWriter.close();
+
+        assertEquals(3, logWriter.getDroppedRecordCount());
+        assertEquals(SLOT_COUNT, logWriter.getMaxLag());
+        assertWrittenInOrder(recordWriter, SLOT_COUNT);
+    }
+
+    @Test
+    public void producerIsBlockedWhileTheSlotsAreFull() throws Exception {
+        RecordingWriter recordWriter = new RecordingWriter(true /* held */);
+        AsyncLogWriter<Record> logWriter =
+                new AsyncLogWriter<>(
+                        NAME, CAPACITY, OverflowPolicy.BLOCK, Record::new, recordWriter);
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            publish(logWriter, i);
+        }
+        assertTrue(recordWriter.mFirstWriteStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        CountDownLatch published = new CountDownLatch(1);
+        Thread producer =
+                new Thread(
+                        () -> {
+                            publish(logWriter, SLOT_COUNT);
+                            published.countDown();
+                        });
+
+        producer.start();
+        assertFalse(published.await(200, TimeUnit.MILLISECONDS));
+        recordWriter.mWriteAllowed.countDown();
+        assertTrue(published.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        producer.join();
+        logWriter.close();
+
+        assertEquals(0, logWriter.getDroppedRecordCount());
+        assertWrittenInOrder(recordWriter, SLOT_COUNT + 1);
+    }
+
+    @Test
+    public void closeWritesThePendingRecordsThenFlushes() throws Exception {
+        RecordingWriter recordWriter = new RecordingWriter(true /* held */);
+        AsyncLogWriter<Record> logWriter =
+                new AsyncLogWriter<>(
+                        NAME, CAPACITY, OverflowPolicy.DROP_NEWEST, Record::new, recordWriter);
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            publish(logWriter, i);
+        }
+
+        Thread closer =
+                new Thread(
+                        () -> {
+                            try {
+                                logWriter.close();
+                            } catch (IOException e) {
+                                throw new AssertionError(e);
+                            }
+                        });
+        closer.start();
+        recordWriter.mWriteAllowed.countDown();
+        closer.join();
+
+        assertEquals(SLOT_COUNT, logWriter.getWrittenRecordCount());
+        List<String> calls = new ArrayList<>(recordWriter.mCalls);
+        assertEquals(SLOT_COUNT + 2, calls.size());
+        assertEquals("flush", calls.get(SLOT_COUNT));
+        assertEquals("close", calls.get(SLOT_COUNT + 1));
+        assertWrittenInOrder(recordWriter, SLOT_COUNT);
+        assertNull(logWriter.claim());
+    }
+
+    @Test
+    public void closeThrowsTheFirstWriteError() throws Exception {
+        RecordingWriter recordWriter = new RecordingWriter(true /* held */);
+        IOException writeError = new IOException("No space left on device");
+        recordWriter.mWriteError = writeError;
+        AsyncLogWriter<Record> logWriter =
+                new AsyncLogWriter<>(
+                        NAME, CAPACITY, OverflowPolicy.DROP_NEWEST, Record::new, recordWriter);
+        publish(logWriter, 0);
+        publish(logWriter, 1);
+        recordWriter.mWriteAllowed.countDown();
+
+        try {
+            logWriter.close();
+            fail("The write error is thrown");
+        } catch (IOException e) {
+            assertSame(writeError, e);
+        }
+        // The writer is closed all the same
+        assertTrue(recordWriter.mCalls.contains("close"));
+    }
+
+    @Test
+    public void capacityMustBePositive() {
+        try {
+            new AsyncLogWriter<>(
+                    NAME,
+                    0,
+                    OverflowPolicy.DROP_NEWEST,
+                    Record::new,
+                    new RecordingWriter(false /* held */));
+            fail("A writer needs a slot");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void publish(AsyncLogWriter<Record> logWriter, int value) {
+        Record record = logWriter.claim();
+        assertNotNull(record);
+        record.value = value;
+        logWriter.publish();
+    }
+
+    private static void assertWrittenInOrder(RecordingWriter recordWriter, int count) {
+        List<String> writes = recordWriter.getWrites();
+        assertEquals(count, writes.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("write " + i, writes.get(i));
+        }
+    }
+}
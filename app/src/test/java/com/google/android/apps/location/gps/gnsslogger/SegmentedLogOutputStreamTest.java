@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link SegmentedLogOutputStream}: the segments of a closed log, the commit policy and
+ * the recovery of the logs of interrupted sessions, which are left open as a crash leaves them.
+ */
+public class SegmentedLogOutputStreamTest {
+
+    private static final int SEGMENT_SIZE = 16;
+    private static final long NEVER_MILLIS = 3_600_000L;
+    private static final long NEVER_BYTES = Long.MAX_VALUE;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mLogFile;
+
+    @Before
+    public void createLogFile() {
+        mLogFile = new File(mTemporaryFolder.getRoot(), "gnss_log_2017_01_01_00_00_00.txt");
+    }
+
+    @Test
+    public void segmentsRollOverAndJoinOnClose() throws IOException {
+        byte[] bytes = createBytes(3 * SEGMENT_SIZE + 5);
+        SegmentedLogOutputStream output = createOutputStream(NEVER_MILLIS, NEVER_BYTES);
+        File segmentDirectory = SegmentedLogOutputStream.getSegmentDirectory(mLogFile);
+
+        // Writes straddling the segments, and single bytes
+        output.write(bytes, 0, 10);
+        output.write(bytes, 10, 30);
+        for (int i = 40; i < bytes.length; i++) {
+            output.write(bytes[i]);
+        }
+
+        assertTrue(SegmentedLogOutputStream.isSegmentDirectory(segmentDirectory));
+        assertEquals(
+                Arrays.asList("journal", "segment_000000", "segment_000001", "segment_000002",
+                        "segment_000003"),
+                listNames(segmentDirectory));
+        assertEquals(SEGMENT_SIZE, new File(segmentDirectory, "segment_000000").length());
+        assertFalse(mLogFile.exists());
+
+        output.close();
+
+        assertArrayEquals(bytes, Files.readAllBytes(mLogFile.toPath()));
+        assertFalse(segmentDirectory.exists());
+    }
+
+    @Test
+    public void commitIsDueAfterTheCommitBytes() throws IOException {
+        SegmentedLogOutputStream output = createOutputStream(NEVER_MILLIS, 10);
+
+        output.write(createBytes(9));
+        assertFalse(output.isCommitDue());
+        output.write(1);
+        assertTrue(output.isCommitDue());
+        output.flush();
+        assertFalse(output.isCommitDue());
+
+        output.close();
+    }
+
+    @Test
+    public void commitIsDueAfterTheCommitInterval() throws IOException {
+        SegmentedLogOutputStream output = createOutputStream(0, NEVER_BYTES);
+
+        assertTrue(output.isCommitDue());
+
+        output.close();
+    }
+
+    @Test
+    public void interruptedLogIsRecoveredUpToTheLastCommit() throws IOException {
+        byte[] bytes = createBytes(2 * SEGMENT_SIZE + 8);
+        SegmentedLogOutputStream output = createOutputStream(NEVER_MILLIS, NEVER_BYTES);
+        output.write(bytes);
+        output.flush();
+        // Not committed, and in the segment committed last
+        output.write(createBytes(5));
+
+        File logFile =
+                SegmentedLogOutputStream.recover(
+                        SegmentedLogOutputStream.getSegmentDirectory(mLogFile));
+
+        assertEquals(mLogFile, logFile);
+        assertArrayEquals(bytes, Files.readAllBytes(mLogFile.toPath()));
+        assertFalse(SegmentedLogOutputStream.getSegmentDirectory(mLogFile).exists());
+    }
+
+    @Test
+    public void tornJournalEntryIsIgnored() throws IOException {
+        byte[] bytes = createBytes(SEGMENT_SIZE + 4);
+        SegmentedLogOutputStream output = createOutputStream(NEVER_MILLIS, NEVER_BYTES);
+        output.write(bytes);
+        output.flush();
+        File segmentDirectory = SegmentedLogOutputStream.getSegmentDirectory(mLogFile);
+        // A crash while the next commit was journaled, after its bytes reached the segment
+        output.write(createBytes(3));
+        try (FileOutputStream journal =
+                new FileOutputStream(new File(segmentDirectory, "journal"), true /* append */)) {
+            journal.write(new byte[] {0, 0, 0, 1, 0, 0, 0});
+        }
+
+        SegmentedLogOutputStream.recover(segmentDirectory);
+
+        assertArrayEquals(bytes, Files.readAllBytes(mLogFile.toPath()));
+    }
+
+    @Test
+    public void tornSegmentIsTruncatedToItsLastMatchingCommit() throws IOException {
+        byte[] bytes = createBytes(12);
+        SegmentedLogOutputStream output = createOutputStream(NEVER_MILLIS, NEVER_BYTES);
+        output.write(bytes, 0, 5);
+        output.flush();
+        output.write(bytes, 5, 7);
+        output.flush();
+        File segmentDirectory = SegmentedLogOutputStream.getSegmentDirectory(mLogFile);
+        // The storage lost the last bytes synced, the first commit still matches
+        try (RandomAccessFile segment =
+                new RandomAccessFile(new File(segmentDirectory, "segment_000000"), "rw")) {
+            segment.seek(8);
+            segment.write(~bytes[8]);
+        }
+
+        SegmentedLogOutputStream.recover(segmentDirectory);
+
+        assertArrayEquals(Arrays.copyOf(bytes, 5), Files.readAllBytes(mLogFile.toPath()));
+    }
+
+    @Test
+    public void segmentsAfterATornSegmentAreDropped() throws IOException {
+        byte[] bytes = createBytes(3 * SEGMENT_SIZE);
+        SegmentedLogOutputStream output = createOutputStream(NEVER_MILLIS, NEVER_BYTES);
+        output.write(bytes);
+        output.flush();
+        File segmentDirectory = SegmentedLogOutputStream.getSegmentDirectory(mLogFile);
+        try (RandomAccessFile segment =
+                new RandomAccessFile(new File(segmentDirectory, "segment_000001"), "rw")) {
+            segment.setLength(SEGMENT_SIZE / 2);
+        }
+
+        SegmentedLogOutputStream.recover(segmentDirectory);
+
+        assertArrayEquals(
+                Arrays.copyOf(bytes, SEGMENT_SIZE), Files.readAllBytes(mLogFile.toPath()));
+    }
+
+    @Test
+    public void interruptedLogsAreFoundButTheCurrentOne() throws IOException {
+        File directory = mTemporaryFolder.getRoot();
+        File interruptedLogFile = new File(directory, "gnss_log_2016_12_31_23_00_00.txt");
+        byte[] bytes = createBytes(SEGMENT_SIZE + 1);
+        SegmentedLogOutputStream interruptedOutput =
+                new SegmentedLogOutputStream(
+                        interruptedLogFile, SEGMENT_SIZE, NEVER_MILLIS, NEVER_BYTES);
+        interruptedOutput.write(bytes);
+        interruptedOutput.flush();
+        SegmentedLogOutputStream closedOutput =
+                new SegmentedLogOutputStream(
+                        new File(directory, "gnss_log_2016_12_31_22_00_00.txt"),
+                        SEGMENT_SIZE,
+                        NEVER_MILLIS,
+                        NEVER_BYTES);
+        closedOutput.write(bytes);
+        closedOutput.close();
+        assertTrue(new File(directory, "notes.segments").createNewFile());
+        SegmentedLogOutputStream currentOutput = createOutputStream(NEVER_MILLIS, NEVER_BYTES);
+
+        assertEquals(
+                Collections.singletonList(
+                        SegmentedLogOutputStream.getSegmentDirectory(interruptedLogFile)),
+                SegmentedLogOutputStream.findInterruptedLogs(directory, mLogFile));
+        SegmentedLogOutputStream.recover(
+                SegmentedLogOutputStream.getSegmentDirectory(interruptedLogFile));
+
+        assertArrayEquals(bytes, Files.readAllBytes(interruptedLogFile.toPath()));
+        assertTrue(SegmentedLogOutputStream.findInterruptedLogs(directory, mLogFile).isEmpty());
+        currentOutput.close();
+    }
+
+    private SegmentedLogOutputStream createOutputStream(long commitIntervalMillis, long commitBytes)
+            throws IOException {
+        return new SegmentedLogOutputStream(
+                mLogFile, SEGMENT_SIZE, commitIntervalMillis, commitBytes);
+    }
+
+    private static byte[] createBytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 7 + 1);
+        }
+        return bytes;
+    }
+
+    private static List<String> listNames(File directory) {
+        String[] names = directory.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+}
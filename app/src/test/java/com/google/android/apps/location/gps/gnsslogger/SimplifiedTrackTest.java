@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link SimplifiedTrack}: the number of vertices kept, their order, and the corners of
+ * a track kept through its simplifications.
+ */
+public class SimplifiedTrackTest {
+
+    private static final double LAT_DEG = 37.422;
+    private static final double LNG_DEG = -122.084;
+    private static final double METERS_PER_DEGREE_LATITUDE = Math.toRadians(6371000);
+    private static final double METERS_PER_DEGREE_LONGITUDE =
+            METERS_PER_DEGREE_LATITUDE * Math.cos(Math.toRadians(LAT_DEG));
+    private static final int CAPACITY = 16;
+    private static final int LEG_METERS = 500;
+    /** The corners of a track going east, north, west then south, in meters */
+    private static final double[][] CORNERS_METERS = {
+        {0, 0}, {LEG_METERS, 0}, {LEG_METERS, LEG_METERS}, {0, LEG_METERS}, {0, LEG_METERS / 2}
+    };
+
+    @Test
+    public void sizeIsBoundedByTheCapacity() {
+        SimplifiedTrack track = new SimplifiedTrack(CAPACITY);
+        Random random = new Random(44);
+        double[] latDeg = new double[CAPACITY];
+        double[] lngDeg = new double[CAPACITY];
+
+        // A random walk going east, whose vertices are in increasing longitude
+        double eastMeters = 0;
+        double northMeters = 0;
+        addMeters(track, eastMeters, northMeters);
+        for (int i = 1; i < 100 * CAPACITY; i++) {
+            eastMeters += 1 + random.nextDouble();
+            northMeters += random.nextGaussian();
+            addMeters(track, eastMeters, northMeters);
+            assertEquals(Math.min(i + 1, CAPACITY), track.size());
+        }
+
+        assertEquals(CAPACITY, track.simplify(0.0, latDeg, lngDeg));
+        assertEquals(LAT_DEG, latDeg[0], 0.0);
+        assertEquals(LNG_DEG, lngDeg[0], 0.0);
+        assertEquals(toLngDeg(eastMeters), lngDeg[CAPACITY - 1], 0.0);
+        assertEquals(toLatDeg(northMeters), latDeg[CAPACITY - 1], 0.0);
+        for (int i = 1; i < CAPACITY; i++) {
+            assertTrue(lngDeg[i] > lngDeg[i - 1]);
+        }
+    }
+
+    @Test
+    public void cornersAreKept() {
+        SimplifiedTrack track = new SimplifiedTrack(CAPACITY);
+        for (int corner = 1; corner < CORNERS_METERS.length; corner++) {
+            double[] from = CORNERS_METERS[corner - 1];
+            double[] to = CORNERS_METERS[corner];
+            int stepCount = (int) Math.round(Math.hypot(to[0] - from[0], to[1] - from[1]));
+            for (int step = corner == 1 ? 0 : 1; step <= stepCount; step++) {
+                double fraction = (double) step / stepCount;
+                addMeters(
+                        track,
+                        from[0] + fraction * (to[0] - from[0]),
+                        from[1] + fraction * (to[1] - from[1]));
+            }
+        }
+        double[] latDeg = new double[CAPACITY];
+        double[] lngDeg = new double[CAPACITY];
+
+        int count = track.simplify(1.0 /* toleranceMeters */, latDeg, lngDeg);
+
+        assertEquals(CAPACITY, track.size());
+        assertEquals(CORNERS_METERS.length, count);
+        double[] expectedLatDeg = new double[CORNERS_METERS.length];
+        double[] expectedLngDeg = new double[CORNERS_METERS.length];
+        for (int i = 0; i < CORNERS_METERS.length; i++) {
+            expectedLngDeg[i] = toLngDeg(CORNERS_METERS[i][0]);
+            expectedLatDeg[i] = toLatDeg(CORNERS_METERS[i][1]);
+        }
+        assertArrayEquals(expectedLatDeg, Arrays.copyOf(latDeg, count), 1e-9);
+        assertArrayEquals(expectedLngDeg, Arrays.copyOf(lngDeg, count), 1e-9);
+    }
+
+    @Test
+    public void straightTrackIsSimplifiedToItsEnds() {
+        SimplifiedTrack track = new SimplifiedTrack(3);
+        for (int i = 0; i <= 10; i++) {
+            addMeters(track, 10.0 * i, 0.0);
+        }
+        double[] latDeg = new double[3];
+        double[] lngDeg = new double[3];
+
+        assertEquals(3, track.size());
+        assertEquals(2, track.simplify(1.0 /* toleranceMeters */, latDeg, lngDeg));
+        assertEquals(toLngDeg(0.0), lngDeg[0], 0.0);
+        assertEquals(toLngDeg(100.0), lngDeg[1], 0.0);
+    }
+
+    @Test
+    public void clearedTrackStartsOver() {
+        SimplifiedTrack track = new SimplifiedTrack(CAPACITY);
+        for (int i = 0; i < 2 * CAPACITY; i++) {
+            addMeters(track, i, i % 2);
+        }
+
+        track.clear();
+        addMeters(track, 5.0, 5.0);
+        double[] latDeg = new double[CAPACITY];
+        double[] lngDeg = new double[CAPACITY];
+
+        assertEquals(1, track.size());
+        assertEquals(1, track.simplify(1.0 /* toleranceMeters */, latDeg, lngDeg));
+        assertEquals(toLatDeg(5.0), latDeg[0], 0.0);
+    }
+
+    @Test
+    public void capacityMustHoldThreeVertices() {
+        try {
+            new SimplifiedTrack(2);
+            fail("A track needs a vertex between its ends");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void addMeters(SimplifiedTrack track, double eastMeters, double northMeters) {
+        track.add(toLatDeg(northMeters), toLngDeg(eastMeters));
+    }
+
+    private static double toLatDeg(double northMeters) {
+        return LAT_DEG + northMeters / METERS_PER_DEGREE_LATITUDE;
+    }
+
+    private static double toLngDeg(double eastMeters) {
+        return LNG_DEG + eastMeters / METERS_PER_DEGREE_LONGITUDE;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TimeSeriesDownsampler}: the samples copied when they fit, with the points of
+ * their gaps, and the samples kept by each algorithm when they do not.
+ */
+public class TimeSeriesDownsamplerTest {
+
+    private static final int SAMPLE_COUNT = 1000;
+    private static final int MAX_POINTS = 50;
+    private static final int PEAK = 537;
+    private static final int TROUGH = 214;
+    private static final double PEAK_VALUE = 100.0;
+    private static final double TROUGH_VALUE = -100.0;
+
+    @Test
+    public void samplesThatFitAreCopiedWithAPointPerGap() {
+        // Epoch 3 is missing
+        TimeSeriesRing series = createSeries(new int[] {0, 1, 2, 4, 5});
+        double[] outX = new double[2 * MAX_POINTS];
+        double[] outY = new double[2 * MAX_POINTS];
+
+        int count = TimeSeriesDownsampler.largestTriangleThreeBuckets(
+                series, 0, series.size(), MAX_POINTS, outX, outY);
+
+        assertEquals(6, count);
+        assertArrayEquals(
+                new double[] {0.0, 1.0, 2.0, 2.0, 4.0, 5.0}, Arrays.copyOf(outX, count), 0.0);
+        assertTrue(Double.isNaN(outY[3]));
+        assertEquals(4.0, outY[4], 0.0);
+    }
+
+    @Test
+    public void gapBeforeACopiedRangeIsNotDrawn() {
+        TimeSeriesRing series = createSeries(new int[] {0, 1, 2, 4, 5});
+        double[] outX = new double[2 * MAX_POINTS];
+        double[] outY = new double[2 * MAX_POINTS];
+
+        int count = TimeSeriesDownsampler.minMax(series, 3, series.size(), MAX_POINTS, outX, outY);
+
+        assertEquals(2, count);
+        assertArrayEquals(new double[] {4.0, 5.0}, Arrays.copyOf(outX, count), 0.0);
+        assertArrayEquals(new double[] {4.0, 5.0}, Arrays.copyOf(outY, count), 0.0);
+    }
+
+    @Test
+    public void largestTrianglesKeepTheEndsAndThePeaks() {
+        TimeSeriesRing series = createSeriesWithPeaks();
+        double[] outX = new double[2 * MAX_POINTS];
+        double[] outY = new double[2 * MAX_POINTS];
+
+        int count = TimeSeriesDownsampler.largestTriangleThreeBuckets(
+                series, 0, series.size(), MAX_POINTS, outX, outY);
+
+        assertEquals(MAX_POINTS, count);
+        assertEquals(0.0, outX[0], 0.0);
+        assertEquals(SAMPLE_COUNT - 1, outX[count - 1], 0.0);
+        assertKept(PEAK, PEAK_VALUE, outX, outY, count);
+        assertKept(TROUGH, TROUGH_VALUE, outX, outY, count);
+        assertIncreasing(outX, count);
+    }
+
+    @Test
+    public void minMaxKeepsTheExtremesOfEachBucket() {
+        TimeSeriesRing series = createSeriesWithPeaks();
+        double[] outX = new double[2 * MAX_POINTS];
+        double[] outY = new double[2 * MAX_POINTS];
+
+        int count = TimeSeriesDownsampler.minMax(series, 0, series.size(), MAX_POINTS, outX, outY);
+
+        assertTrue(count <= MAX_POINTS);
+        assertKept(PEAK, PEAK_VALUE, outX, outY, count);
+        assertKept(TROUGH, TROUGH_VALUE, outX, outY, count);
+        assertIncreasing(outX, count);
+    }
+
+    @Test
+    public void gapsBetweenTheKeptSamplesAreDrawn() {
+        int[] epochs = new int[SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            // A single gap, in the middle
+            epochs[i] = i < SAMPLE_COUNT / 2 ? i : i + 10;
+        }
+        TimeSeriesRing series = createSeries(epochs);
+        double[] outX = new double[2 * MAX_POINTS];
+        double[] outY = new double[2 * MAX_POINTS];
+
+        int count = TimeSeriesDownsampler.largestTriangleThreeBuckets(
+                series, 0, series.size(), MAX_POINTS, outX, outY);
+
+        assertEquals(MAX_POINTS + 1, count);
+        int gapCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (Double.isNaN(outY[i])) {
+                gapCount++;
+                assertTrue(outX[i] < SAMPLE_COUNT / 2 + 10);
+                assertTrue(outX[i + 1] >= SAMPLE_COUNT / 2 + 10);
+            }
+        }
+        assertEquals(1, gapCount);
+    }
+
+    /** Returns samples at the times of their epochs, whose values are their times */
+    private static TimeSeriesRing createSeries(int[] epochs) {
+        TimeSeriesRing series = new TimeSeriesRing(epochs.length, Double.MAX_VALUE);
+        for (int epoch : epochs) {
+            series.add(epoch, epoch, epoch);
+        }
+        return series;
+    }
+
+    /** Returns a slowly varying series with a single peak and a single trough */
+    private static TimeSeriesRing createSeriesWithPeaks() {
+        TimeSeriesRing series = new TimeSeriesRing(SAMPLE_COUNT, Double.MAX_VALUE);
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            double value = i == PEAK ? PEAK_VALUE : i == TROUGH ? TROUGH_VALUE : Math.sin(i * 0.01);
+            series.add(i, value, i);
+        }
+        return series;
+    }
+
+    private static void assertKept(
+            int sample, double value, double[] outX, double[] outY, int count) {
+        for (int i = 0; i < count; i++) {
+            if (outX[i] == sample) {
+                assertEquals(value, outY[i], 0.0);
+                return;
+            }
+        }
+        throw new AssertionError("Sample " + sample + " was not kept");
+    }
+
+    private static void assertIncreasing(double[] outX, int count) {
+        for (int i = 1; i < count; i++) {
+            assertTrue(outX[i] > outX[i - 1]);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.location.gps.gnsslogger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TimeSeriesRing}: the samples kept when the ring wraps around or the retention
+ * window moves, and the gaps between epochs.
+ */
+public class TimeSeriesRingTest {
+
+    private static final int CAPACITY = 4;
+    private static final double LONG_RETENTION_SECONDS = 3600.0;
+
+    @Test
+    public void oldestSamplesAreOverwrittenWhenTheRingWrapsAround() {
+        TimeSeriesRing series = new TimeSeriesRing(CAPACITY, LONG_RETENTION_SECONDS);
+
+        for (int i = 0; i < 2 * CAPACITY + 1; i++) {
+            series.add(i, 10.0 * i, i);
+        }
+
+        assertEquals(CAPACITY, series.size());
+        for (int i = 0; i < CAPACITY; i++) {
+            int sample = CAPACITY + 1 + i;
+            assertEquals(sample, series.getTime(i), 0.0);
+            assertEquals(10.0 * sample, series.getValue(i), 0.0);
+            assertEquals(sample, series.getEpoch(i));
+        }
+    }
+
+    @Test
+    public void samplesOlderThanTheRetentionWindowAreDropped() {
+        TimeSeriesRing series = new TimeSeriesRing(CAPACITY, 1.5 /* retentionSeconds */);
+
+        series.add(0.0, 1.0, 0);
+        series.add(1.0, 2.0, 1);
+        series.add(2.0, 3.0, 2);
+
+        assertEquals(2, series.size());
+        assertEquals(1.0, series.getTime(0), 0.0);
+        // The latest sample is kept however far it is from the previous one
+        series.add(100.0, 4.0, 3);
+        assertEquals(1, series.size());
+        assertEquals(4.0, series.getValue(0), 0.0);
+    }
+
+    @Test
+    public void sampleBeforeTheLatestStartsTheSeriesOver() {
+        TimeSeriesRing series = new TimeSeriesRing(CAPACITY, LONG_RETENTION_SECONDS);
+        series.add(5.0, 1.0, 0);
+        series.add(6.0, 2.0, 1);
+
+        series.add(1.0, 3.0, 2);
+
+        assertEquals(1, series.size());
+        assertEquals(1.0, series.getTime(0), 0.0);
+    }
+
+    @Test
+    public void missingEpochsAreGaps() {
+        TimeSeriesRing series = new TimeSeriesRing(CAPACITY, LONG_RETENTION_SECONDS);
+        series.add(0.0, 1.0, 7);
+        series.add(1.0, 1.0, 8);
+        series.add(3.0, 1.0, 10);
+
+        assertTrue(series.isContinuous(0, 1));
+        assertFalse(series.isContinuous(1, 2));
+        assertFalse(series.isContinuous(0, 2));
+    }
+
+    @Test
+    public void lowerBoundFindsTheFirstSampleAtOrAfterATime() {
+        TimeSeriesRing series = new TimeSeriesRing(CAPACITY, LONG_RETENTION_SECONDS);
+        // Wrapped around, the oldest sample is not in the first slot
+        for (int i = 0; i < CAPACITY + 2; i++) {
+            series.add(i, 0.0, i);
+        }
+
+        assertEquals(0, series.lowerBound(0.0));
+        assertEquals(0, series.lowerBound(2.0));
+        assertEquals(1, series.lowerBound(2.5));
+        assertEquals(CAPACITY - 1, series.lowerBound(CAPACITY + 1));
+        assertEquals(CAPACITY, series.lowerBound(CAPACITY + 1.5));
+    }
+
+    @Test
+    public void capacityMustBePositive() {
+        try {
+            new TimeSeriesRing(0, LONG_RETENTION_SECONDS);
+            fail("A ring needs a sample");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.batchrunner;
+
+import com.google.location.lbs.gnss.gps.pseudorange.GnssLogReader;
+import com.google.location.lbs.gnss.gps.pseudorange.RawGnssEpoch;
+import com.google.location.lbs.gnss.gps.pseudorange.RawGnssMeasurement;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the {@code Raw} measurements of a log to a session file of a {@link ColumnarStore}, see
+ * there for the layout. The columns of a chunk are buffered in primitive arrays and written once
+ * the chunk is full; the header is written last. The class is not thread safe.
+ */
+final class ColumnarSessionWriter implements GnssLogReader.Callback, Closeable {
+  private static final MeasurementColumn[] COLUMNS = MeasurementColumn.values();
+  /** Columns are aligned to their largest value size, for the views of the mapped files */
+  private static final int ALIGNMENT = 8;
+
+  private final RandomAccessFile mFile;
+  private final FileChannel mChannel;
+  private final ByteBuffer mBuffer =
+      ByteBuffer.allocateDirect(ColumnarStore.CHUNK_ROW_COUNT * 8).order(ColumnarStore.BYTE_ORDER);
+  private final int[][] mInts = new int[COLUMNS.length][];
+  private final long[][] mLongs = new long[COLUMNS.length][];
+  private final double[][] mDoubles = new double[COLUMNS.length][];
+  private int mChunkRowCount;
+  private long mRowCount;
+  private int mChunkCount;
+  /** The chunk directory, written after the chunks */
+  private ByteBuffer mEntries =
+      ByteBuffer.allocate(16 * ColumnarStore.CHUNK_ENTRY_SIZE).order(ColumnarStore.BYTE_ORDER);
+
+  ColumnarSessionWriter(File sessionFile) throws IOException {
+    mFile = new RandomAccessFile(sessionFile, "rw");
+    mFile.setLength(0);
+    mChannel = mFile.getChannel();
+    mChannel.position(ColumnarStore.HEADER_SIZE);
+    for (MeasurementColumn column : COLUMNS) {
+      switch (column.type) {
+        case INT:
+          mInts[column.ordinal()] = new int[ColumnarStore.CHUNK_ROW_COUNT];
+          break;
+        case LONG:
+          mLongs[column.ordinal()] = new long[ColumnarStore.CHUNK_ROW_COUNT];
+          break;
+        case DOUBLE:
+          mDoubles[column.ordinal()] = new double[ColumnarStore.CHUNK_ROW_COUNT];
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown column type: " + column.type);
+      }
+    }
+  }
+
+  /**
+   * Imports the measurements of {@code logFile} into {@code sessionFile}, through a temporary
+   * file renamed once complete, and returns the number of measurements.
+   */
+  static long importLog(File logFile, File sessionFile) throws Exception {
+    File temporaryFile = new File(sessionFile.getPath() + ".tmp");
+    long rowCount;
+    try (BufferedReader logReader =
+            new BufferedReader(
+                new InputStreamReader(new FileInputStream(logFile), StandardCharsets.UTF_8));
+        ColumnarSessionWriter writer = new ColumnarSessionWriter(temporaryFile)) {
+      new GnssLogReader(logReader).read(writer);
+      rowCount = writer.mRowCount + writer.mChunkRowCount;
+    }
+    if (sessionFile.exists() && !sessionFile.delete()) {
+      throw new IOException("Unable to replace " + sessionFile);
+    }
+    if (!temporaryFile.renameTo(sessionFile)) {
+      throw new IOException("Unable to rename " + temporaryFile + " to " + sessionFile);
+    }
+    return rowCount;
+  }
+
+  @Override
+  public void onRawEpoch(RawGnssEpoch epoch) throws IOException {
+    long gpsTimeNanos = epoch.timeNanos - epoch.fullBiasNanos;
+    for (RawGnssMeasurement measurement : epoch.measurements) {
+      int row = mChunkRowCount;
+      mLongs[MeasurementColumn.GPS_TIME_NANOS.ordinal()][row] = gpsTimeNanos;
+      mLongs[MeasurementColumn.TIME_NANOS.ordinal()][row] = epoch.timeNanos;
+      mInts[MeasurementColumn.SVID.ordinal()][row] = measurement.svid;
+      mInts[MeasurementColumn.CONSTELLATION_TYPE.ordinal()][row] = measurement.constellationType;
+      mInts[MeasurementColumn.STATE.ordinal()][row] = measurement.state;
+      mLongs[MeasurementColumn.RECEIVED_SV_TIME_NANOS.ordinal()][row] =
+          measurement.receivedSvTimeNanos;
+      mDoubles[MeasurementColumn.CN0_DB_HZ.ordinal()][row] = measurement.cn0DbHz;
+      mDoubles[MeasurementColumn.PSEUDORANGE_RATE_MPS.ordinal()][row] =
+          measurement.pseudorangeRateMetersPerSecond;
+      mDoubles[MeasurementColumn.PSEUDORANGE_RATE_UNCERTAINTY_MPS.ordinal()][row] =
+          measurement.pseudorangeRateUncertaintyMetersPerSecond;
+      mInts[MeasurementColumn.ACCUMULATED_DELTA_RANGE_STATE.ordinal()][row] =
+          measurement.accumulatedDeltaRangeState;
+      mDoubles[MeasurementColumn.ACCUMULATED_DELTA_RANGE_METERS.ordinal()][row] =
+          measurement.accumulatedDeltaRangeMeters;
+      mDoubles[MeasurementColumn.ACCUMULATED_DELTA_RANGE_UNCERTAINTY_METERS.ordinal()][row] =
+          measurement.accumulatedDeltaRangeUncertaintyMeters;
+      mChunkRowCount++;
+      if (mChunkRowCount == ColumnarStore.CHUNK_ROW_COUNT) {
+        writeChunk();
+      }
+    }
+  }
+
+  @Override
+  public void onNavigationMessage(
+      int svid, int type, int status, int messageId, int subMessageId, byte[] data) {}
+
+  @Override
+  public void onFix(
+      String provider,
+      double latitudeDegrees,
+      double longitudeDegrees,
+      double altitudeMeters,
+      double speedMps,
+      double accuracyMeters,
+      long utcTimeMillis) {}
+
+  /** Writes the last chunk, the chunk directory and the header. */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (mChunkRowCount > 0) {
+        writeChunk();
+      }
+      long entriesOffset = mChannel.position();
+      mEntries.flip();
+      writeFully(mEntries, entriesOffset);
+      ByteBuffer header =
+          ByteBuffer.allocate(ColumnarStore.HEADER_SIZE).order(ColumnarStore.BYTE_ORDER);
+      header.putInt(ColumnarStore.MAGIC);
+      header.putInt(ColumnarStore.VERSION);
+      header.putInt(COLUMNS.length);
+      header.putInt(mChunkCount);
+      header.putLong(mRowCount);
+      header.putLong(entriesOffset);
+      header.flip();
+      writeFully(header, 0);
+    } finally {
+      mFile.close();
+    }
+  }
+
+  private void writeChunk() throws IOException {
+    if (mEntries.remaining() < ColumnarStore.CHUNK_ENTRY_SIZE) {
+      ByteBuffer entries =
+          ByteBuffer.allocate(2 * mEntries.capacity()).order(ColumnarStore.BYTE_ORDER);
+      mEntries.flip();
+      entries.put(mEntries);
+      mEntries = entries;
+    }
+    int rowCount = mChunkRowCount;
+    mEntries.putInt(rowCount);
+    mEntries.putInt(0);
+    for (MeasurementColumn column : COLUMNS) {
+      long offset = align(mChannel.position());
+      int ordinal = column.ordinal();
+      long minimum;
+      long maximum;
+      mBuffer.clear();
+      switch (column.type) {
+        case INT:
+          {
+            int[] values = mInts[ordinal];
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < rowCount; i++) {
+              mBuffer.putInt(values[i]);
+              min = Math.min(min, values[i]);
+              max = Math.max(max, values[i]);
+            }
+            minimum = min;
+            maximum = max;
+            break;
+          }
+        case LONG:
+          {
+            long[] values = mLongs[ordinal];
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < rowCount; i++) {
+              mBuffer.putLong(values[i]);
+              min = Math.min(min, values[i]);
+              max = Math.max(max, values[i]);
+            }
+            minimum = min;
+            maximum = max;
+            break;
+          }
+        case DOUBLE:
+          {
+            double[] values = mDoubles[ordinal];
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < rowCount; i++) {
+              mBuffer.putDouble(values[i]);
+              // NaN fails both comparisons, and is left out of the statistics
+              if (values[i] < min) {
+                min = values[i];
+              }
+              if (values[i] > max) {
+                max = values[i];
+              }
+            }
+            minimum = Double.doubleToLongBits(min);
+            maximum = Double.doubleToLongBits(max);
+            break;
+          }
+        default:
+          throw new IllegalArgumentException("Unknown column type: " + column.type);
+      }
+      mBuffer.flip();
+      writeFully(mBuffer, offset);
+      mEntries.putLong(offset);
+      mEntries.putLong(minimum);
+      mEntries.putLong(maximum);
+    }
+    mChunkCount++;
+    mRowCount += rowCount;
+    mChunkRowCount = 0;
+  }
+
+  /** Writes {@code buffer} at {@code offset} and moves the channel to its end. */
+  private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      position += mChannel.write(buffer, position);
+    }
+    if (position > mChannel.position()) {
+      mChannel.position(position);
+    }
+  }
+
+  private static long align(long offset) {
+    return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+}
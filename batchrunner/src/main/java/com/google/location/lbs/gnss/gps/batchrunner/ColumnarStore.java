@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.batchrunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * A directory of measurements imported from GnssLogger logs by {@link ColumnarSessionWriter}, one
+ * session file per log, stored by column for analytics over many sessions.
+ *
+ * <p>A session file holds chunks of up to {@link #CHUNK_ROW_COUNT} measurements, every
+ * {@link MeasurementColumn} of a chunk being a primitive array, and the minimum and maximum of
+ * every column of every chunk. The files are memory mapped. A {@link Query} is a conjunction of
+ * ranges of column values: the chunks whose statistics exclude a range are skipped without being
+ * read, the others are scanned in parallel, each by a {@link ChunkVisitor} with its own
+ * accumulator, and the accumulators are combined at the end.
+ *
+ * <p>For instance the C/N0 histogram of every GPS PRN, in 1 dB-Hz bins:
+ *
+ * <pre>
+ * long[][] histogram = store.scan(
+ *     new ColumnarStore.Query().where(MeasurementColumn.CONSTELLATION_TYPE, 1, 1),
+ *     () -&gt; new long[33][64],
+ *     (chunk, rows, rowCount, counts) -&gt; {
+ *       IntBuffer svids = chunk.getInts(MeasurementColumn.SVID);
+ *       DoubleBuffer cn0s = chunk.getDoubles(MeasurementColumn.CN0_DB_HZ);
+ *       for (int i = 0; i &lt; rowCount; i++) {
+ *         counts[svids.get(rows[i])][(int) cn0s.get(rows[i])]++;
+ *       }
+ *     },
+ *     ColumnarStore::addCounts);
+ * </pre>
+ *
+ * <p>Instances are immutable and can be shared between threads.
+ */
+public final class ColumnarStore {
+  static final String SESSION_FILE_EXTENSION = ".gcol";
+  static final int MAGIC = 0x47434f4c;
+  static final int VERSION = 1;
+  static final int CHUNK_ROW_COUNT = 1 << 16;
+  /** Magic, version, column count, chunk count, row count and offset of the chunk directory */
+  static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8;
+  /** Row count and padding, then the offset, minimum and maximum of every column */
+  static final int CHUNK_ENTRY_SIZE = 8 + MeasurementColumn.values().length * 3 * 8;
+  static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  private static final MeasurementColumn[] COLUMNS = MeasurementColumn.values();
+
+  /** Receives the rows of a chunk that match a query. */
+  public interface ChunkVisitor<A> {
+    /**
+     * Visits the matching rows of {@code chunk}, the first {@code rowCount} entries of
+     * {@code rows} in increasing order, adding them to {@code accumulator}.
+     */
+    void visit(Chunk chunk, int[] rows, int rowCount, A accumulator);
+  }
+
+  /** A conjunction of inclusive ranges of column values, matching every row when empty. */
+  public static final class Query {
+    private final List<MeasurementColumn> mColumns = new ArrayList<>();
+    private final List<long[]> mLongRanges = new ArrayList<>();
+    private final List<double[]> mDoubleRanges = new ArrayList<>();
+
+    /** Restricts an integer column to the values from {@code min} to {@code max} */
+    public Query where(MeasurementColumn column, long min, long max) {
+      if (column.type == MeasurementColumn.Type.DOUBLE) {
+        throw new IllegalArgumentException("Floating point column: " + column);
+      }
+      mColumns.add(column);
+      mLongRanges.add(new long[] {min, max});
+      mDoubleRanges.add(null);
+      return this;
+    }
+
+    /** Restricts a floating point column to the values from {@code min} to {@code max} */
+    public Query where(MeasurementColumn column, double min, double max) {
+      if (column.type != MeasurementColumn.Type.DOUBLE) {
+        throw new IllegalArgumentException("Integer column: " + column);
+      }
+      mColumns.add(column);
+      mLongRanges.add(null);
+      mDoubleRanges.add(new double[] {min, max});
+      return this;
+    }
+  }
+
+  /** Up to {@link #CHUNK_ROW_COUNT} rows of a session, with the statistics of their columns. */
+  public static final class Chunk {
+    private final int mSession;
+    private final int mRowCount;
+    private final ByteBuffer[] mColumns = new ByteBuffer[COLUMNS.length];
+    private final long[] mMinimums = new long[COLUMNS.length];
+    private final long[] mMaximums = new long[COLUMNS.length];
+
+    Chunk(int session, ByteBuffer file, ByteBuffer entry) {
+      mSession = session;
+      mRowCount = entry.getInt();
+      entry.getInt();
+      for (MeasurementColumn column : COLUMNS) {
+        int offset = (int) entry.getLong();
+        ByteBuffer columnBuffer = file.duplicate();
+        columnBuffer.position(offset);
+        columnBuffer.limit(offset + mRowCount * column.type.size);
+        mColumns[column.ordinal()] = columnBuffer.slice().order(BYTE_ORDER);
+        mMinimums[column.ordinal()] = entry.getLong();
+        mMaximums[column.ordinal()] = entry.getLong();
+      }
+    }
+
+    /** Returns the index of the session of the chunk in the store */
+    public int getSession() {
+      return mSession;
+    }
+
+    public int getRowCount() {
+      return mRowCount;
+    }
+
+    /** Returns the values of an {@link MeasurementColumn.Type#INT} column, indexed by row */
+    public IntBuffer getInts(MeasurementColumn column) {
+      checkType(column, MeasurementColumn.Type.INT);
+      return mColumns[column.ordinal()].asIntBuffer();
+    }
+
+    /** Returns the values of a {@link MeasurementColumn.Type#LONG} column, indexed by row */
+    public LongBuffer getLongs(MeasurementColumn column) {
+      checkType(column, MeasurementColumn.Type.LONG);
+      return mColumns[column.ordinal()].asLongBuffer();
+    }
+
+    /** Returns the values of a {@link MeasurementColumn.Type#DOUBLE} column, indexed by row */
+    public DoubleBuffer getDoubles(MeasurementColumn column) {
+      checkType(column, MeasurementColumn.Type.DOUBLE);
+      return mColumns[column.ordinal()].asDoubleBuffer();
+    }
+
+    /** Returns the rows matching {@code query}, or {@code null} if its statistics exclude all. */
+    private int[] select(Query query) {
+      int[] rows = null;
+      int rowCount = mRowCount;
+      for (int i = 0; i < query.mColumns.size(); i++) {
+        MeasurementColumn column = query.mColumns.get(i);
+        int ordinal = column.ordinal();
+        long[] longRange = query.mLongRanges.get(i);
+        double[] doubleRange = query.mDoubleRanges.get(i);
+        boolean excludesAll;
+        boolean includesAll;
+        if (longRange != null) {
+          excludesAll = mMaximums[ordinal] < longRange[0] || mMinimums[ordinal] > longRange[1];
+          includesAll = mMinimums[ordinal] >= longRange[0] && mMaximums[ordinal] <= longRange[1];
+        } else {
+          double minimum = Double.longBitsToDouble(mMinimums[ordinal]);
+          double maximum = Double.longBitsToDouble(mMaximums[ordinal]);
+          // The statistics ignore NaN, which no range matches
+          excludesAll = !(maximum >= doubleRange[0] && minimum <= doubleRange[1]);
+          includesAll = false;
+        }
+        if (excludesAll) {
+          return null;
+        }
+        if (includesAll) {
+          continue;
+        }
+        if (rows == null) {
+          rows = identity(mRowCount);
+        }
+        rowCount = filter(column, longRange, doubleRange, rows, rowCount);
+        if (rowCount == 0) {
+          return null;
+        }
+      }
+      if (rows == null) {
+        rows = identity(mRowCount);
+      }
+      return rowCount == rows.length ? rows : Arrays.copyOf(rows, rowCount);
+    }
+
+    /** Keeps the rows whose value is in the range, in place, and returns their number. */
+    private int filter(
+        MeasurementColumn column,
+        long[] longRange,
+        double[] doubleRange,
+        int[] rows,
+        int rowCount) {
+      int kept = 0;
+      switch (column.type) {
+        case INT:
+          IntBuffer ints = getInts(column);
+          for (int i = 0; i < rowCount; i++) {
+            int value = ints.get(rows[i]);
+            if (value >= longRange[0] && value <= longRange[1]) {
+              rows[kept++] = rows[i];
+            }
+          }
+          break;
+        case LONG:
+          LongBuffer longs = getLongs(column);
+          for (int i = 0; i < rowCount; i++) {
+            long value = longs.get(rows[i]);
+            if (value >= longRange[0] && value <= longRange[1]) {
+              rows[kept++] = rows[i];
+            }
+          }
+          break;
+        case DOUBLE:
+          DoubleBuffer doubles = getDoubles(column);
+          for (int i = 0; i < rowCount; i++) {
+            double value = doubles.get(rows[i]);
+            if (value >= doubleRange[0] && value <= doubleRange[1]) {
+              rows[kept++] = rows[i];
+            }
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown column type: " + column.type);
+      }
+      return kept;
+    }
+
+    private static int[] identity(int count) {
+      int[] rows = new int[count];
+      for (int i = 0; i < count; i++) {
+        rows[i] = i;
+      }
+      return rows;
+    }
+
+    private static void checkType(MeasurementColumn column, MeasurementColumn.Type type) {
+      if (column.type != type) {
+        throw new IllegalArgumentException(column + " is not of type " + type);
+      }
+    }
+  }
+
+  private final List<String> mSessionNames;
+  private final List<Chunk> mChunks;
+  private final long mRowCount;
+
+  private ColumnarStore(List<String> sessionNames, List<Chunk> chunks, long rowCount) {
+    mSessionNames = Collections.unmodifiableList(sessionNames);
+    mChunks = Collections.unmodifiableList(chunks);
+    mRowCount = rowCount;
+  }
+
+  /** Maps the session files of {@code directory}, in file name order. */
+  public static ColumnarStore open(File directory) throws IOException {
+    File[] sessionFiles =
+        directory.listFiles(
+            file -> file.isFile() && file.getName().endsWith(SESSION_FILE_EXTENSION));
+    if (sessionFiles == null) {
+      throw new IOException("Unable to list " + directory);
+    }
+    Arrays.sort(sessionFiles);
+    List<String> sessionNames = new ArrayList<>();
+    List<Chunk> chunks = new ArrayList<>();
+    long rowCount = 0;
+    for (File sessionFile : sessionFiles) {
+      ByteBuffer file;
+      try (RandomAccessFile input = new RandomAccessFile(sessionFile, "r")) {
+        if (input.length() > Integer.MAX_VALUE) {
+          throw new IOException("Session file too large: " + sessionFile);
+        }
+        file = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+      }
+      file.order(BYTE_ORDER);
+      if (file.capacity() < HEADER_SIZE
+          || file.getInt(0) != MAGIC
+          || file.getInt(4) != VERSION
+          || file.getInt(8) != COLUMNS.length) {
+        throw new IOException("Not a session file of this version: " + sessionFile);
+      }
+      int chunkCount = file.getInt(12);
+      rowCount += file.getLong(16);
+      ByteBuffer entries = file.duplicate().order(BYTE_ORDER);
+      entries.position((int) file.getLong(24));
+      String name = sessionFile.getName();
+      sessionNames.add(name.substring(0, name.length() - SESSION_FILE_EXTENSION.length()));
+      for (int i = 0; i < chunkCount; i++) {
+        chunks.add(new Chunk(sessionNames.size() - 1, file, entries));
+      }
+    }
+    return new ColumnarStore(sessionNames, chunks, rowCount);
+  }
+
+  public int getSessionCount() {
+    return mSessionNames.size();
+  }
+
+  /** Returns the name of the log a session was imported from, without its extension */
+  public String getSessionName(int session) {
+    return mSessionNames.get(session);
+  }
+
+  public int getChunkCount() {
+    return mChunks.size();
+  }
+
+  public long getRowCount() {
+    return mRowCount;
+  }
+
+  /**
+   * Visits the rows matching {@code query} of every chunk in parallel, and returns the combination
+   * of the accumulators of the chunks, or a new accumulator if no row matches.
+   */
+  public <A> A scan(
+      Query query,
+      Supplier<A> accumulatorFactory,
+      ChunkVisitor<A> visitor,
+      BinaryOperator<A> combiner) {
+    return mChunks
+        .parallelStream()
+        .map(
+            chunk -> {
+              int[] rows = chunk.select(query);
+              if (rows == null) {
+                return null;
+              }
+              A accumulator = accumulatorFactory.get();
+              visitor.visit(chunk, rows, rows.length, accumulator);
+              return accumulator;
+            })
+        .filter(accumulator -> accumulator != null)
+        .reduce(combiner)
+        .orElseGet(accumulatorFactory);
+  }
+
+  /** Adds {@code counts} to {@code total} element by element and returns {@code total}. */
+  public static long[][] addCounts(long[][] total, long[][] counts) {
+    for (int i = 0; i < total.length; i++) {
+      for (int j = 0; j < total[i].length; j++) {
+        total[i][j] += counts[i][j];
+      }
+    }
+    return total;
+  }
+}
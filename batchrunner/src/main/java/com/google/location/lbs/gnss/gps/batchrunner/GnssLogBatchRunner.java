@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.batchrunner;
+
+import com.google.location.lbs.gnss.gps.pseudorange.PseudorangePositionVelocityFromRealTimeEvents;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line post-processing of a directory of GnssLogger {@code gnss_log_*.txt} files.
+ *
+ * <p>Every log is replayed in its own solver session on a work-stealing pool of a bounded number
+ * of threads, writing per-file CSV outputs. Logs that already have their outputs from a previous,
+ * possibly interrupted run are skipped, unless their statistics were written with other columns by
+ * an older version, and a combined {@value #SUMMARY_FILE_NAME} is written at the end.
+ *
+ * <pre>
+ * Usage: GnssLogBatchRunner [--threads N] [--force] [--solver wls|ekf]
+ *     [--robust none|huber|tukey] [--smooth] [--coarse-time] [--mask-tow SECONDS]
+ *     &lt;log directory&gt; &lt;output directory&gt;
+ * </pre>
+ *
+ * <p>The solutions are computed with the weighted least square solver by default, or with the
+ * extended Kalman filter with {@code --solver ekf}. With {@code --robust huber} or {@code --robust
+ * tukey}, the least square down-weights the outliers instead of removing them, which can be
+ * compared with the default on the iterations of the statistics and the weights of the satellites
+ * written next to the residuals. With {@code --smooth}, every log is also
+ * post-processed with the Kalman filter and a fixed interval smoother into smoothed solutions.
+ *
+ * <p>With {@code --coarse-time}, the epochs whose times of week are not decoded are solved with the
+ * coarse time navigation. With {@code --mask-tow}, the decoded times of week of the first seconds
+ * of every log are masked, to compare the times to first fix of the statistics with and without
+ * coarse time navigation.
+ */
+public final class GnssLogBatchRunner {
+
+  private static final String USAGE =
+      "Usage: GnssLogBatchRunner [--threads N] [--force] [--solver wls|ekf]"
+          + " [--robust none|huber|tukey] [--smooth] [--coarse-time] [--mask-tow SECONDS]"
+          + " <log directory> <output directory>";
+  private static final String LOG_FILE_PREFIX = "gnss_log";
+  private static final String LOG_FILE_EXTENSION = ".txt";
+  private static final String SUMMARY_FILE_NAME = "summary.csv";
+
+  private final File mLogDirectory;
+  private final File mOutputDirectory;
+  private final int mThreadCount;
+  private final boolean mForce;
+  private final int mSolver;
+  private final int mRobustLoss;
+  private final boolean mSmooth;
+  private final boolean mCoarseTime;
+  private final long mTimeOfWeekMaskingMillis;
+
+  /**
+   * @param solver The solver of the sessions, one of the {@code SOLVER_*} constants of {@link
+   *     PseudorangePositionVelocityFromRealTimeEvents}
+   * @param robustLoss The outlier handling of the least square, one of the {@code ROBUST_LOSS_*}
+   *     constants of {@link PseudorangePositionVelocityFromRealTimeEvents}
+   * @param smooth Whether the smoothed solutions of every log are written as well
+   * @param coarseTime Whether the coarse time navigation of the sessions is enabled
+   * @param timeOfWeekMaskingMillis How long the decoded times of week are masked at the start of
+   *     every log
+   */
+  public GnssLogBatchRunner(
+      File logDirectory,
+      File outputDirectory,
+      int threadCount,
+      boolean force,
+      int solver,
+      int robustLoss,
+      boolean smooth,
+      boolean coarseTime,
+      long timeOfWeekMaskingMillis) {
+    mLogDirectory = logDirectory;
+    mOutputDirectory = outputDirectory;
+    mThreadCount = threadCount;
+    mForce = force;
+    mSolver = solver;
+    mRobustLoss = robustLoss;
+    mSmooth = smooth;
+    mCoarseTime = coarseTime;
+    mTimeOfWeekMaskingMillis = timeOfWeekMaskingMillis;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threadCount = Runtime.getRuntime().availableProcessors();
+    boolean force = false;
+    int solver = PseudorangePositionVelocityFromRealTimeEvents.SOLVER_WEIGHTED_LEAST_SQUARE;
+    String solverName = "wls";
+    String robustLossName = "none";
+    boolean smooth = false;
+    boolean coarseTime = false;
+    double timeOfWeekMaskingSeconds = 0;
+    List<String> paths = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--threads") && i + 1 < args.length) {
+        threadCount = parseThreadCount(args[++i]);
+      } else if (args[i].equals("--force")) {
+        force = true;
+      } else if (args[i].equals("--solver") && i + 1 < args.length) {
+        solverName = args[++i];
+      } else if (args[i].equals("--robust") && i + 1 < args.length) {
+        robustLossName = args[++i];
+      } else if (args[i].equals("--smooth")) {
+        smooth = true;
+      } else if (args[i].equals("--coarse-time")) {
+        coarseTime = true;
+      } else if (args[i].equals("--mask-tow") && i + 1 < args.length) {
+        timeOfWeekMaskingSeconds = parseSeconds(args[++i]);
+      } else {
+        paths.add(args[i]);
+      }
+    }
+    if (solverName.equals("ekf")) {
+      solver = PseudorangePositionVelocityFromRealTimeEvents.SOLVER_EXTENDED_KALMAN_FILTER;
+    }
+    int robustLoss = PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_NONE;
+    if (robustLossName.equals("huber")) {
+      robustLoss = PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_HUBER;
+    } else if (robustLossName.equals("tukey")) {
+      robustLoss = PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_TUKEY;
+    }
+    if (paths.size() != 2
+        || threadCount < 1
+        || timeOfWeekMaskingSeconds < 0
+        || !(solverName.equals("wls") || solverName.equals("ekf"))
+        || !(robustLossName.equals("none")
+            || robustLossName.equals("huber")
+            || robustLossName.equals("tukey"))) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    int failureCount =
+        new GnssLogBatchRunner(
+                new File(paths.get(0)),
+                new File(paths.get(1)),
+                threadCount,
+                force,
+                solver,
+                robustLoss,
+                smooth,
+                coarseTime,
+                Math.round(timeOfWeekMaskingSeconds * 1000))
+            .run();
+    if (failureCount > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Returns the number of threads of a {@code --threads} argument, or 0 if it is not a number so
+   * that the argument check prints the usage.
+   */
+  static int parseThreadCount(String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the duration of a {@code --mask-tow} argument, or -1 if it is not a number so that the
+   * argument check prints the usage.
+   */
+  private static double parseSeconds(String value) {
+    try {
+      double seconds = Double.parseDouble(value);
+      return Double.isNaN(seconds) ? -1 : seconds;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Processes the logs that have not been processed yet and returns the number of failures. */
+  public int run() throws IOException, InterruptedException {
+    if (!mOutputDirectory.isDirectory() && !mOutputDirectory.mkdirs()) {
+      throw new IOException("Unable to create " + mOutputDirectory);
+    }
+    List<File> logFiles = findLogFiles(mLogDirectory);
+    List<File> pendingLogFiles = new ArrayList<>();
+    for (File logFile : logFiles) {
+      if (mForce || !GnssLogFileProcessor.isProcessed(logFile, mOutputDirectory)) {
+        pendingLogFiles.add(logFile);
+      }
+    }
+    System.out.printf(
+        Locale.US,
+        "Found %d logs, %d already processed, using %d threads%n",
+        logFiles.size(),
+        logFiles.size() - pendingLogFiles.size(),
+        mThreadCount);
+
+    // Largest logs first, so that the last tasks running are short ones
+    pendingLogFiles.sort(Comparator.comparingLong(File::length).reversed());
+    ForkJoinPool pool = new ForkJoinPool(mThreadCount);
+    CompletionService<GnssLogFileProcessor.Result> completionService =
+        new ExecutorCompletionService<>(pool);
+    for (File logFile : pendingLogFiles) {
+      completionService.submit(
+          new GnssLogFileProcessor(
+              logFile,
+              mOutputDirectory,
+              mSolver,
+              mRobustLoss,
+              mSmooth,
+              mCoarseTime,
+              mTimeOfWeekMaskingMillis));
+    }
+
+    long startNanos = System.nanoTime();
+    long totalEpochCount = 0;
+    List<GnssLogFileProcessor.Result> failures = new ArrayList<>();
+    try {
+      for (int done = 1; done <= pendingLogFiles.size(); done++) {
+        GnssLogFileProcessor.Result result;
+        try {
+          result = completionService.take().get();
+        } catch (ExecutionException e) {
+          // The processor reports its failures in its result
+          throw new IllegalStateException(e);
+        }
+        totalEpochCount += result.epochCount;
+        double elapsedSeconds = (System.nanoTime() - startNanos) * 1.0e-9;
+        if (result.error != null) {
+          failures.add(result);
+        }
+        System.out.printf(
+            Locale.US,
+            "[%d/%d] %s %s, %.0f epochs/s overall%n",
+            done,
+            pendingLogFiles.size(),
+            result.logFile.getName(),
+            result.error == null ? "done" : "FAILED: " + result.error,
+            elapsedSeconds > 0 ? totalEpochCount / elapsedSeconds : 0.0);
+      }
+    } finally {
+      pool.shutdownNow();
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    writeSummary(logFiles);
+    return failures.size();
+  }
+
+  /** Returns the GnssLogger text logs of {@code logDirectory}, in file name order. */
+  static List<File> findLogFiles(File logDirectory) throws IOException {
+    File[] logFiles =
+        logDirectory.listFiles(
+            file ->
+                file.isFile()
+                    && file.getName().startsWith(LOG_FILE_PREFIX)
+                    && file.getName().endsWith(LOG_FILE_EXTENSION));
+    if (logFiles == null) {
+      throw new IOException("Unable to list " + logDirectory);
+    }
+    Arrays.sort(logFiles);
+    return new ArrayList<>(Arrays.asList(logFiles));
+  }
+
+  /**
+   * Concatenates the statistics of every processed log, in file name order. The statistics whose
+   * header differs from {@link GnssLogFileProcessor#STATS_HEADER}, left by an older version when
+   * processing the log again failed, are skipped so that the columns line up.
+   */
+  private void writeSummary(List<File> logFiles) throws IOException {
+    File summaryFile = new File(mOutputDirectory, SUMMARY_FILE_NAME);
+    try (Writer summaryWriter =
+        new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(summaryFile), StandardCharsets.UTF_8))) {
+      summaryWriter.write(GnssLogFileProcessor.STATS_HEADER);
+      summaryWriter.write('\n');
+      for (File logFile : logFiles) {
+        File statsFile = GnssLogFileProcessor.getStatsFile(logFile, mOutputDirectory);
+        if (!statsFile.exists()) {
+          continue;
+        }
+        try (BufferedReader statsReader =
+            new BufferedReader(
+                new InputStreamReader(new FileInputStream(statsFile), StandardCharsets.UTF_8))) {
+          if (!GnssLogFileProcessor.STATS_HEADER.equals(statsReader.readLine())) {
+            System.err.println("Skipping statistics with an older header " + statsFile);
+            continue;
+          }
+          String line;
+          while ((line = statsReader.readLine()) != null) {
+            summaryWriter.write(line);
+            summaryWriter.write('\n');
+          }
+        }
+      }
+    }
+    System.out.println("Summary written to " + summaryFile);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.batchrunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Command line import of a directory of GnssLogger {@code gnss_log_*.txt} files into a
+ * {@link ColumnarStore}, a session file per log. Logs that already have their session file are
+ * skipped, so that an archive is imported incrementally.
+ *
+ * <pre>
+ * Usage: GnssLogColumnarImporter [--threads N] [--force]
+ *     &lt;log directory&gt; &lt;store directory&gt;
+ * </pre>
+ */
+public final class GnssLogColumnarImporter {
+
+  private static final String USAGE =
+      "Usage: GnssLogColumnarImporter [--threads N] [--force] <log directory> <store directory>";
+
+  private GnssLogColumnarImporter() {}
+
+  public static void main(String[] args) throws Exception {
+    int threadCount = Runtime.getRuntime().availableProcessors();
+    boolean force = false;
+    List<String> paths = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--threads") && i + 1 < args.length) {
+        threadCount = GnssLogBatchRunner.parseThreadCount(args[++i]);
+      } else if (args[i].equals("--force")) {
+        force = true;
+      } else {
+        paths.add(args[i]);
+      }
+    }
+    if (paths.size() != 2 || threadCount < 1) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    File storeDirectory = new File(paths.get(1));
+    if (!storeDirectory.isDirectory() && !storeDirectory.mkdirs()) {
+      throw new IOException("Unable to create " + storeDirectory);
+    }
+
+    List<File> logFiles = GnssLogBatchRunner.findLogFiles(new File(paths.get(0)));
+    long startNanos = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    List<File> importedLogFiles = new ArrayList<>();
+    List<Future<Long>> rowCounts = new ArrayList<>();
+    for (File logFile : logFiles) {
+      File sessionFile = getSessionFile(logFile, storeDirectory);
+      if (!force && sessionFile.exists()) {
+        continue;
+      }
+      importedLogFiles.add(logFile);
+      rowCounts.add(executor.submit(() -> ColumnarSessionWriter.importLog(logFile, sessionFile)));
+    }
+    executor.shutdown();
+
+    int failureCount = 0;
+    for (int i = 0; i < importedLogFiles.size(); i++) {
+      try {
+        long rowCount = rowCounts.get(i).get();
+        System.out.printf(
+            Locale.US, "%s: %d measurements%n", importedLogFiles.get(i).getName(), rowCount);
+      } catch (ExecutionException e) {
+        failureCount++;
+        System.out.printf(
+            Locale.US, "%s: FAILED: %s%n", importedLogFiles.get(i).getName(), e.getCause());
+      }
+    }
+    ColumnarStore store = ColumnarStore.open(storeDirectory);
+    System.out.printf(
+        Locale.US,
+        "Imported %d of %d logs in %d ms, the store holds %d measurements of %d sessions%n",
+        importedLogFiles.size() - failureCount,
+        logFiles.size(),
+        (System.nanoTime() - startNanos) / 1000000,
+        store.getRowCount(),
+        store.getSessionCount());
+    System.exit(failureCount == 0 ? 0 : 1);
+  }
+
+  /** Returns the session file of {@code logFile} in {@code storeDirectory}. */
+  static File getSessionFile(File logFile, File storeDirectory) {
+    String name = logFile.getName();
+    int extension = name.lastIndexOf('.');
+    String baseName = extension > 0 ? name.substring(0, extension) : name;
+    return new File(storeDirectory, baseName + ColumnarStore.SESSION_FILE_EXTENSION);
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.batchrunner;
+
+import com.google.location.lbs.gnss.gps.pseudorange.GnssLogReplayEngine;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssLogReplayEngine.ReplayStatistics;
+import com.google.location.lbs.gnss.gps.pseudorange.MappedGnssLog;
+import com.google.location.lbs.gnss.gps.pseudorange.PositionVelocitySolution;
+import com.google.location.lbs.gnss.gps.pseudorange.PositionVelocitySolutionListener;
+import com.google.location.lbs.gnss.gps.pseudorange.PseudorangePositionVelocityFromRealTimeEvents;
+import com.google.location.lbs.gnss.gps.pseudorange.TrajectorySmoother;
+import com.google.location.lbs.gnss.gps.pseudorange.TrajectorySmoother.SmoothingStatistics;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+/**
+ * Replays a single GnssLogger log file through its own solver session and writes the solutions,
+ * the pseudorange residuals and weights and the statistics of the replay to CSV files. Optionally,
+ * the log is then smoothed with a {@link TrajectorySmoother} into a CSV file of smoothed solutions.
+ *
+ * <p>The solver only uses the {@code Nav} records of the log, no assistance data is requested, so
+ * the solutions of a log do not depend on when it is processed.
+ *
+ * <p>Every output is first written to a temporary file and renamed when complete. The statistics
+ * file is renamed last, so its presence marks the log as processed.
+ */
+class GnssLogFileProcessor implements Callable<GnssLogFileProcessor.Result> {
+
+  static final String SOLUTIONS_SUFFIX = "_solutions.csv";
+  static final String RESIDUALS_SUFFIX = "_residuals.csv";
+  static final String WEIGHTS_SUFFIX = "_weights.csv";
+  static final String SMOOTHED_SUFFIX = "_smoothed.csv";
+  static final String STATS_SUFFIX = "_stats.csv";
+  static final String STATS_HEADER =
+      "File,Epochs,Solutions,NavigationMessages,Fixes,MalformedLines,ElapsedMillis,EpochsPerSecond,"
+          + "SmoothedSolutions,SmoothingEpochsPerSecond,TimeToFirstCoarseTimeFixSeconds,"
+          + "TimeToFirstFixSeconds,MeanLeastSquareIterations";
+
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final int NUMBER_OF_RESIDUALS = 32;
+
+  /** Outcome of processing a log, {@code statsLine} being a row of the summary. */
+  static final class Result {
+    final File logFile;
+    final int epochCount;
+    final String statsLine;
+    final Exception error;
+
+    Result(File logFile, int epochCount, String statsLine, Exception error) {
+      this.logFile = logFile;
+      this.epochCount = epochCount;
+      this.statsLine = statsLine;
+      this.error = error;
+    }
+  }
+
+  private final File mLogFile;
+  private final File mOutputDirectory;
+  private final int mSolver;
+  private final int mRobustLoss;
+  private final boolean mSmooth;
+  private final boolean mCoarseTime;
+  private final long mTimeOfWeekMaskingMillis;
+
+  /**
+   * @param solver The solver of the session, see {@link
+   *     PseudorangePositionVelocityFromRealTimeEvents#setPositionVelocitySolver}
+   * @param robustLoss The outlier handling of the least square, see {@link
+   *     PseudorangePositionVelocityFromRealTimeEvents#setRobustLoss}
+   * @param smooth Whether the smoothed solutions are written as well
+   * @param coarseTime Whether the coarse time navigation of the session is enabled
+   * @param timeOfWeekMaskingMillis How long the decoded times of week are masked at the start of
+   *     the log, see {@link GnssLogReplayEngine#setTimeOfWeekMaskingMillis}
+   */
+  GnssLogFileProcessor(
+      File logFile,
+      File outputDirectory,
+      int solver,
+      int robustLoss,
+      boolean smooth,
+      boolean coarseTime,
+      long timeOfWeekMaskingMillis) {
+    mLogFile = logFile;
+    mOutputDirectory = outputDirectory;
+    mSolver = solver;
+    mRobustLoss = robustLoss;
+    mSmooth = smooth;
+    mCoarseTime = coarseTime;
+    mTimeOfWeekMaskingMillis = timeOfWeekMaskingMillis;
+  }
+
+  /** Returns the file marking {@code logFile} as processed into {@code outputDirectory}. */
+  static File getStatsFile(File logFile, File outputDirectory) {
+    return new File(outputDirectory, getBaseName(logFile) + STATS_SUFFIX);
+  }
+
+  /**
+   * Returns whether {@code logFile} was processed into {@code outputDirectory} with the current
+   * {@link #STATS_HEADER}. The outputs of an older version with other statistics columns are not
+   * considered processed, so that the summary rows keep lining up with its header.
+   */
+  static boolean isProcessed(File logFile, File outputDirectory) throws IOException {
+    File statsFile = getStatsFile(logFile, outputDirectory);
+    if (!statsFile.exists()) {
+      return false;
+    }
+    try (BufferedReader statsReader =
+        new BufferedReader(
+            new InputStreamReader(new FileInputStream(statsFile), StandardCharsets.UTF_8))) {
+      return STATS_HEADER.equals(statsReader.readLine());
+    }
+  }
+
+  @Override
+  public Result call() {
+    try {
+      return process();
+    } catch (Exception e) {
+      return new Result(mLogFile, 0, null, e);
+    }
+  }
+
+  private Result process() throws Exception {
+    String baseName = getBaseName(mLogFile);
+    File solutionsFile = new File(mOutputDirectory, baseName + SOLUTIONS_SUFFIX);
+    File residualsFile = new File(mOutputDirectory, baseName + RESIDUALS_SUFFIX);
+    File weightsFile = new File(mOutputDirectory, baseName + WEIGHTS_SUFFIX);
+    File statsFile = getStatsFile(mLogFile, mOutputDirectory);
+
+    ReplayStatistics statistics;
+    PseudorangePositionVelocityFromRealTimeEvents solver;
+    try (Writer solutionsWriter = openWriter(temporaryFile(solutionsFile));
+        Writer residualsWriter = openWriter(temporaryFile(residualsFile));
+        Writer weightsWriter = openWriter(temporaryFile(weightsFile));
+        BufferedReader logReader =
+            new BufferedReader(
+                new InputStreamReader(new FileInputStream(mLogFile), StandardCharsets.UTF_8))) {
+      CsvSolutionWriter csvSolutionWriter =
+          new CsvSolutionWriter(solutionsWriter, residualsWriter, weightsWriter);
+      // A session per file: the solver keeps state from one epoch to the next. It only uses the
+      // navigation messages logged with the measurements, so that the results are reproducible
+      solver = PseudorangePositionVelocityFromRealTimeEvents.createOffline();
+      solver.setPositionVelocitySolver(mSolver);
+      solver.setRobustLoss(mRobustLoss);
+      solver.setCoarseTimeNavigationEnabled(mCoarseTime);
+      solver.addPositionVelocitySolutionListener(csvSolutionWriter);
+      GnssLogReplayEngine replayEngine = new GnssLogReplayEngine(solver);
+      replayEngine.setTimeOfWeekMaskingMillis(mTimeOfWeekMaskingMillis);
+      try {
+        statistics = replayEngine.replay(logReader);
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+    commit(solutionsFile);
+    commit(residualsFile);
+    commit(weightsFile);
+
+    String smoothingStats = ",";
+    if (mSmooth) {
+      File smoothedFile = new File(mOutputDirectory, baseName + SMOOTHED_SUFFIX);
+      SmoothingStatistics smoothingStatistics;
+      try (Writer smoothedWriter = openWriter(temporaryFile(smoothedFile))) {
+        // The chunks of the log are smoothed in parallel, on the pool running this processor
+        TrajectorySmoother smoother = new TrajectorySmoother(MappedGnssLog.open(mLogFile));
+        try {
+          smoothingStatistics = smoother.smooth(new CsvSolutionWriter(smoothedWriter, null, null));
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+      }
+      commit(smoothedFile);
+      smoothingStats =
+          String.format(
+              Locale.US,
+              "%d,%.1f",
+              smoothingStatistics.solutionCount,
+              smoothingStatistics.getEpochsPerSecond());
+    }
+
+    String statsLine =
+        String.format(
+            Locale.US,
+            "%s,%d,%d,%d,%d,%d,%d,%.1f,%s,%s,%s,%.2f",
+            mLogFile.getName(),
+            statistics.epochCount,
+            statistics.solutionCount,
+            statistics.navigationMessageCount,
+            statistics.fixCount,
+            statistics.malformedLineCount,
+            statistics.elapsedNanos / 1000000,
+            statistics.getEpochsPerSecond(),
+            smoothingStats,
+            formatTimeToFirstFix(solver.getTimeToFirstCoarseTimeFixNanos()),
+            formatTimeToFirstFix(solver.getTimeToFirstFixNanos()),
+            solver.getMeanLeastSquareIterations());
+    try (Writer statsWriter = openWriter(temporaryFile(statsFile))) {
+      statsWriter.write(STATS_HEADER);
+      statsWriter.write('\n');
+      statsWriter.write(statsLine);
+      statsWriter.write('\n');
+    }
+    commit(statsFile);
+    return new Result(mLogFile, statistics.epochCount, statsLine, null);
+  }
+
+  /** Formats a time to first fix in seconds, or as an empty value if there is no fix. */
+  private static String formatTimeToFirstFix(long timeToFirstFixNanos) {
+    return timeToFirstFixNanos == PseudorangePositionVelocityFromRealTimeEvents.NO_TIME_TO_FIRST_FIX
+        ? ""
+        : String.format(Locale.US, "%.3f", timeToFirstFixNanos * 1.0e-9);
+  }
+
+  private static String getBaseName(File logFile) {
+    String name = logFile.getName();
+    int extension = name.lastIndexOf('.');
+    return extension > 0 ? name.substring(0, extension) : name;
+  }
+
+  private static File temporaryFile(File file) {
+    return new File(file.getPath() + TEMPORARY_SUFFIX);
+  }
+
+  private static Writer openWriter(File file) throws IOException {
+    return new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+  }
+
+  private static void commit(File file) throws IOException {
+    File temporaryFile = temporaryFile(file);
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Unable to replace " + file);
+    }
+    if (!temporaryFile.renameTo(file)) {
+      throw new IOException("Unable to rename " + temporaryFile + " to " + file);
+    }
+  }
+
+  /**
+   * Streams every solution with a position to the solutions, residuals and weights CSV files, or to
+   * the solutions file only if there are no residuals and weights writers.
+   */
+  private static class CsvSolutionWriter implements PositionVelocitySolutionListener {
+    private final Writer mSolutionsWriter;
+    private final Writer mResidualsWriter;
+    private final Writer mWeightsWriter;
+    private final StringBuilder mLine = new StringBuilder();
+
+    CsvSolutionWriter(Writer solutionsWriter, Writer residualsWriter, Writer weightsWriter)
+        throws IOException {
+      mSolutionsWriter = solutionsWriter;
+      mResidualsWriter = residualsWriter;
+      mWeightsWriter = weightsWriter;
+      mSolutionsWriter.write(
+          "ArrivalTimeSinceGpsEpochNanos,LatitudeDegrees,LongitudeDegrees,AltitudeMeters,"
+              + "VelocityEastMps,VelocityNorthMps,VelocityUpMps,"
+              + "PositionUncertaintyEastMeters,PositionUncertaintyNorthMeters,"
+              + "PositionUncertaintyUpMeters,VelocityUncertaintyEastMps,"
+              + "VelocityUncertaintyNorthMps,VelocityUncertaintyUpMps\n");
+      if (mResidualsWriter != null) {
+        mLine.append("ArrivalTimeSinceGpsEpochNanos");
+        for (int prn = 1; prn <= NUMBER_OF_RESIDUALS; prn++) {
+          mLine.append(",Prn").append(prn);
+        }
+        mLine.append('\n');
+        mResidualsWriter.write(mLine.toString());
+        mWeightsWriter.write(mLine.toString());
+      }
+    }
+
+    @Override
+    public void onPositionVelocitySolution(PositionVelocitySolution solution) {
+      if (!solution.hasPosition()) {
+        return;
+      }
+      try {
+        mLine.setLength(0);
+        mLine.append(solution.getArrivalTimeSinceGpsEpochNs());
+        appendValues(solution.getPositionSolutionLatLngDeg());
+        appendValues(solution.getVelocitySolutionEnuMps());
+        appendValues(solution.getPositionVelocityUncertaintyEnu());
+        mSolutionsWriter.write(mLine.append('\n').toString());
+        if (mResidualsWriter == null) {
+          return;
+        }
+
+        mLine.setLength(0);
+        mLine.append(solution.getArrivalTimeSinceGpsEpochNs());
+        appendValues(solution.getPseudorangeResidualsMeters());
+        mResidualsWriter.write(mLine.append('\n').toString());
+
+        mLine.setLength(0);
+        mLine.append(solution.getArrivalTimeSinceGpsEpochNs());
+        appendValues(solution.getPseudorangeWeights());
+        mWeightsWriter.write(mLine.append('\n').toString());
+      } catch (IOException e) {
+        // Rethrown as the IOException by the processor once the replay is interrupted
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void appendValues(double[] values) {
+      for (double value : values) {
+        mLine.append(',');
+        if (!Double.isNaN(value)) {
+          mLine.append(value);
+        }
+      }
+    }
+  }
+}
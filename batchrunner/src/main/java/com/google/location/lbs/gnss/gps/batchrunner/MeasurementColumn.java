@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.batchrunner;
+
+/**
+ * The columns of a {@link ColumnarStore}, one row per {@code Raw} measurement. The order of the
+ * constants is the order of the columns on disk.
+ */
+public enum MeasurementColumn {
+  /** {@code TimeNanos - FullBiasNanos} of the epoch, the GPS time used by the solver */
+  GPS_TIME_NANOS(Type.LONG),
+  TIME_NANOS(Type.LONG),
+  SVID(Type.INT),
+  CONSTELLATION_TYPE(Type.INT),
+  STATE(Type.INT),
+  RECEIVED_SV_TIME_NANOS(Type.LONG),
+  CN0_DB_HZ(Type.DOUBLE),
+  PSEUDORANGE_RATE_MPS(Type.DOUBLE),
+  PSEUDORANGE_RATE_UNCERTAINTY_MPS(Type.DOUBLE),
+  ACCUMULATED_DELTA_RANGE_STATE(Type.INT),
+  ACCUMULATED_DELTA_RANGE_METERS(Type.DOUBLE),
+  ACCUMULATED_DELTA_RANGE_UNCERTAINTY_METERS(Type.DOUBLE);
+
+  /** How the values of a column are stored. */
+  public enum Type {
+    INT(4),
+    LONG(8),
+    DOUBLE(8);
+
+    /** Size of a value, in bytes */
+    final int size;
+
+    Type(int size) {
+      this.size = size;
+    }
+  }
+
+  public final Type type;
+
+  MeasurementColumn(Type type) {
+    this.type = type;
+  }
+}
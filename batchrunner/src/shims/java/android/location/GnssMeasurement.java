@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.location;
+
+/** JVM shim of the Android class, never instantiated outside of Android. */
+public final class GnssMeasurement {
+  private GnssMeasurement() {}
+
+  public int getSvid() {
+    throw new UnsupportedOperationException();
+  }
+
+  public int getConstellationType() {
+    throw new UnsupportedOperationException();
+  }
+
+  public int getState() {
+    throw new UnsupportedOperationException();
+  }
+
+  public long getReceivedSvTimeNanos() {
+    throw new UnsupportedOperationException();
+  }
+
+  public double getCn0DbHz() {
+    throw new UnsupportedOperationException();
+  }
+
+  public double getPseudorangeRateMetersPerSecond() {
+    throw new UnsupportedOperationException();
+  }
+
+  public double getPseudorangeRateUncertaintyMetersPerSecond() {
+    throw new UnsupportedOperationException();
+  }
+
+  public int getAccumulatedDeltaRangeState() {
+    throw new UnsupportedOperationException();
+  }
+
+  public double getAccumulatedDeltaRangeMeters() {
+    throw new UnsupportedOperationException();
+  }
+
+  public double getAccumulatedDeltaRangeUncertaintyMeters() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.location;
+
+/** JVM shim of the Android class, never instantiated outside of Android. */
+public final class GnssNavigationMessage {
+  public static final int TYPE_GPS_L1CA = 0x0101;
+
+  private GnssNavigationMessage() {}
+
+  public int getSvid() {
+    throw new UnsupportedOperationException();
+  }
+
+  public int getType() {
+    throw new UnsupportedOperationException();
+  }
+
+  public int getSubmessageId() {
+    throw new UnsupportedOperationException();
+  }
+
+  public byte[] getData() {
+    throw new UnsupportedOperationException();
+  }
+}
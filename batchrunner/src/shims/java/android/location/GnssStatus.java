@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.location;
+
+/**
+ * JVM shim of the Android class, only the constants are used outside of Android. Epochs replayed
+ * from logs are passed to the solver as {@code RawGnssEpoch} instead.
+ */
+public final class GnssStatus {
+  public static final int CONSTELLATION_UNKNOWN = 0;
+  public static final int CONSTELLATION_GPS = 1;
+  public static final int CONSTELLATION_SBAS = 2;
+  public static final int CONSTELLATION_GLONASS = 3;
+  public static final int CONSTELLATION_QZSS = 4;
+  public static final int CONSTELLATION_BEIDOU = 5;
+  public static final int CONSTELLATION_GALILEO = 6;
+
+  private GnssStatus() {}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.batchrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.location.lbs.gnss.gps.pseudorange.GnssLogReader;
+import com.google.location.lbs.gnss.gps.pseudorange.RawGnssEpoch;
+import com.google.location.lbs.gnss.gps.pseudorange.RawGnssMeasurement;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ColumnarStore} and {@link ColumnarSessionWriter}: the measurements of the
+ * fixture log read back from the imported sessions, the rows matching the queries, and the chunks
+ * skipped on their statistics.
+ */
+public class ColumnarStoreTest {
+
+  private static final int GPS_CONSTELLATION_TYPE = 1;
+  private static final int MIN_SVID = 5;
+  private static final int MAX_SVID = 20;
+  private static final double MIN_CN0_DB_HZ = 30.0;
+  private static final double MAX_CN0_DB_HZ = 45.0;
+  private static final int MEASUREMENTS_PER_EPOCH = 8;
+  /** Enough epochs for a second chunk */
+  private static final int LARGE_SESSION_EPOCH_COUNT =
+      ColumnarStore.CHUNK_ROW_COUNT / MEASUREMENTS_PER_EPOCH + 2;
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  private static final long FULL_BIAS_NANOS = -1200000000000000000L;
+
+  @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+  private File mLogDirectory;
+  private File mStoreDirectory;
+
+  @Before
+  public void createDirectories() throws IOException {
+    mLogDirectory = mTemporaryFolder.newFolder("logs");
+    mStoreDirectory = mTemporaryFolder.newFolder("store");
+  }
+
+  @Test
+  public void importedSessionsHoldEveryMeasurementOfTheLogs() throws Exception {
+    for (String name : new String[] {"gnss_log_b.txt", "gnss_log_a.txt"}) {
+      File logFile = new File(mLogDirectory, name);
+      GnssLogBatchRunnerTest.copyFixtureLog(logFile);
+      long rowCount =
+          ColumnarSessionWriter.importLog(
+              logFile, GnssLogColumnarImporter.getSessionFile(logFile, mStoreDirectory));
+      assertEquals(readRows(logFile).size(), rowCount);
+    }
+    // In session order
+    List<String> expectedRows = new ArrayList<>();
+    for (String name : new String[] {"gnss_log_a", "gnss_log_b"}) {
+      expectedRows.addAll(prefix(name, readRows(new File(mLogDirectory, name + ".txt"))));
+    }
+
+    ColumnarStore store = ColumnarStore.open(mStoreDirectory);
+
+    assertEquals(2, store.getSessionCount());
+    assertEquals("gnss_log_a", store.getSessionName(0));
+    assertEquals("gnss_log_b", store.getSessionName(1));
+    assertEquals(2, store.getChunkCount());
+    assertEquals(expectedRows.size(), store.getRowCount());
+    assertEquals(expectedRows, scanRows(store, new ColumnarStore.Query()));
+  }
+
+  @Test
+  public void queriesMatchTheRowsInAllTheirRanges() throws Exception {
+    File logFile = new File(mLogDirectory, "gnss_log.txt");
+    GnssLogBatchRunnerTest.copyFixtureLog(logFile);
+    ColumnarSessionWriter.importLog(
+        logFile, GnssLogColumnarImporter.getSessionFile(logFile, mStoreDirectory));
+    List<String> expectedRows = new ArrayList<>();
+    for (String row : readRows(logFile)) {
+      String[] values = row.split(",");
+      int svid = Integer.parseInt(values[MeasurementColumn.SVID.ordinal()]);
+      double cn0DbHz = Double.parseDouble(values[MeasurementColumn.CN0_DB_HZ.ordinal()]);
+      if (svid >= MIN_SVID
+          && svid <= MAX_SVID
+          && cn0DbHz >= MIN_CN0_DB_HZ
+          && cn0DbHz <= MAX_CN0_DB_HZ) {
+        expectedRows.add("gnss_log," + row);
+      }
+    }
+    assertTrue(expectedRows.size() > 0);
+
+    List<String> rows =
+        scanRows(
+            ColumnarStore.open(mStoreDirectory),
+            new ColumnarStore.Query()
+                .where(MeasurementColumn.SVID, MIN_SVID, MAX_SVID)
+                .where(MeasurementColumn.CN0_DB_HZ, MIN_CN0_DB_HZ, MAX_CN0_DB_HZ));
+
+    assertEquals(expectedRows, rows);
+  }
+
+  @Test
+  public void chunksExcludedByTheirStatisticsAreNotVisited() throws Exception {
+    File sessionFile = new File(mStoreDirectory, "large" + ColumnarStore.SESSION_FILE_EXTENSION);
+    try (ColumnarSessionWriter writer = new ColumnarSessionWriter(sessionFile)) {
+      for (int k = 0; k < LARGE_SESSION_EPOCH_COUNT; k++) {
+        writer.onRawEpoch(createEpoch(k));
+      }
+    }
+    ColumnarStore store = ColumnarStore.open(mStoreDirectory);
+    assertEquals(2, store.getChunkCount());
+    assertEquals(
+        (long) LARGE_SESSION_EPOCH_COUNT * MEASUREMENTS_PER_EPOCH, store.getRowCount());
+    long lastGpsTimeNanos = getGpsTimeNanos(LARGE_SESSION_EPOCH_COUNT - 1);
+    AtomicInteger visitedChunkCount = new AtomicInteger();
+
+    long rowCount =
+        countRows(
+            store,
+            new ColumnarStore.Query()
+                .where(MeasurementColumn.GPS_TIME_NANOS, lastGpsTimeNanos, Long.MAX_VALUE),
+            visitedChunkCount);
+
+    assertEquals(1, visitedChunkCount.get());
+    assertEquals(MEASUREMENTS_PER_EPOCH, rowCount);
+    // No chunk holds another constellation
+    assertEquals(
+        0,
+        countRows(
+            store,
+            new ColumnarStore.Query().where(MeasurementColumn.CONSTELLATION_TYPE, 3, 3),
+            visitedChunkCount));
+    // The statistics ignore NaN, which no range matches
+    assertEquals(
+        0,
+        countRows(
+            store,
+            new ColumnarStore.Query()
+                .where(MeasurementColumn.PSEUDORANGE_RATE_MPS, -1.0e9, 1.0e9),
+            visitedChunkCount));
+    assertEquals(1, visitedChunkCount.get());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void floatingPointColumnsNeedFloatingPointRanges() {
+    new ColumnarStore.Query().where(MeasurementColumn.CN0_DB_HZ, 30L, 45L);
+  }
+
+  /** Returns the measurements of {@code logFile} as rows of the column values */
+  private static List<String> readRows(File logFile) throws Exception {
+    final List<String> rows = new ArrayList<>();
+    try (BufferedReader reader =
+        Files.newBufferedReader(logFile.toPath(), StandardCharsets.UTF_8)) {
+      new GnssLogReader(reader)
+          .read(
+              new GnssLogReader.Callback() {
+                @Override
+                public void onRawEpoch(RawGnssEpoch epoch) {
+                  for (RawGnssMeasurement measurement : epoch.measurements) {
+                    rows.add(
+                        joinValues(
+                            epoch.timeNanos - epoch.fullBiasNanos,
+                            epoch.timeNanos,
+                            measurement.svid,
+                            measurement.constellationType,
+                            measurement.state,
+                            measurement.receivedSvTimeNanos,
+                            measurement.cn0DbHz,
+                            measurement.pseudorangeRateMetersPerSecond,
+                            measurement.pseudorangeRateUncertaintyMetersPerSecond,
+                            measurement.accumulatedDeltaRangeState,
+                            measurement.accumulatedDeltaRangeMeters,
+                            measurement.accumulatedDeltaRangeUncertaintyMeters));
+                  }
+                }
+
+                @Override
+                public void onNavigationMessage(
+                    int svid, int type, int status, int messageId, int subMessageId, byte[] data) {}
+
+                @Override
+                public void onFix(
+                    String provider,
+                    double latitudeDegrees,
+                    double longitudeDegrees,
+                    double altitudeMeters,
+                    double speedMps,
+                    double accuracyMeters,
+                    long utcTimeMillis) {}
+              });
+    }
+    return rows;
+  }
+
+  /** Returns the rows of {@code store} matching {@code query}, prefixed by their session name */
+  private static List<String> scanRows(ColumnarStore store, ColumnarStore.Query query) {
+    return store.scan(
+        query,
+        ArrayList::new,
+        (chunk, rows, rowCount, accumulator) -> {
+          for (int i = 0; i < rowCount; i++) {
+            List<Object> values = new ArrayList<>();
+            values.add(store.getSessionName(chunk.getSession()));
+            for (MeasurementColumn column : MeasurementColumn.values()) {
+              switch (column.type) {
+                case INT:
+                  values.add(chunk.getInts(column).get(rows[i]));
+                  break;
+                case LONG:
+                  values.add(chunk.getLongs(column).get(rows[i]));
+                  break;
+                default:
+                  values.add(chunk.getDoubles(column).get(rows[i]));
+                  break;
+              }
+            }
+            accumulator.add(joinValues(values.toArray()));
+          }
+        },
+        (rows, otherRows) -> {
+          rows.addAll(otherRows);
+          return rows;
+        });
+  }
+
+  /** Returns the number of rows matching {@code query}, counting the chunks visited */
+  private static long countRows(
+      ColumnarStore store, ColumnarStore.Query query, final AtomicInteger visitedChunkCount) {
+    return store.scan(
+        query,
+        () -> new long[1],
+        (chunk, rows, rowCount, count) -> {
+          visitedChunkCount.incrementAndGet();
+          count[0] += rowCount;
+        },
+        (total, count) -> {
+          total[0] += count[0];
+          return total;
+        })[0];
+  }
+
+  private static List<String> prefix(String sessionName, List<String> rows) {
+    List<String> prefixedRows = new ArrayList<>();
+    for (String row : rows) {
+      prefixedRows.add(sessionName + "," + row);
+    }
+    return prefixedRows;
+  }
+
+  private static String joinValues(Object... values) {
+    StringBuilder builder = new StringBuilder();
+    for (Object value : values) {
+      if (builder.length() > 0) {
+        builder.append(',');
+      }
+      builder.append(value);
+    }
+    return builder.toString();
+  }
+
+  /** Returns an epoch a second after the previous one, with GPS measurements without rates */
+  private static RawGnssEpoch createEpoch(int epoch) {
+    List<RawGnssMeasurement> measurements = new ArrayList<>();
+    for (int i = 0; i < MEASUREMENTS_PER_EPOCH; i++) {
+      measurements.add(
+          new RawGnssMeasurement(
+              i + 1,
+              GPS_CONSTELLATION_TYPE,
+              0,
+              0L,
+              40.0,
+              Double.NaN,
+              Double.NaN,
+              0,
+              0.0,
+              0.0));
+    }
+    return new RawGnssEpoch(
+        1000L * epoch, epoch * NANOS_PER_SECOND, FULL_BIAS_NANOS, 0.0, measurements);
+  }
+
+  private static long getGpsTimeNanos(int epoch) {
+    return epoch * NANOS_PER_SECOND - FULL_BIAS_NANOS;
+  }
+}
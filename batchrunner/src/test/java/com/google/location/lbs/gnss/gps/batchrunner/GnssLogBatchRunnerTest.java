@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.batchrunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.location.lbs.gnss.gps.pseudorange.PseudorangePositionVelocityFromRealTimeEvents;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link GnssLogBatchRunner}: the discovery of the logs, the skipping of the logs already
+ * processed and the summary, on copies of a 20 epoch synthetic log.
+ */
+public class GnssLogBatchRunnerTest {
+
+  private static final String FIXTURE_LOG = "gnss_log_fixture.txt";
+  private static final int FIXTURE_EPOCH_COUNT = 20;
+  /** A modification time long before any run of the test */
+  private static final long OLD_MODIFIED_MILLIS = 1000000000000L;
+
+  @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+  private File mLogDirectory;
+  private File mOutputDirectory;
+
+  @Before
+  public void createLogDirectory() throws IOException {
+    mLogDirectory = mTemporaryFolder.newFolder("logs");
+    mOutputDirectory = new File(mTemporaryFolder.getRoot(), "out");
+    copyFixtureLog(new File(mLogDirectory, "gnss_log_b.txt"));
+    copyFixtureLog(new File(mLogDirectory, "gnss_log_a.txt"));
+  }
+
+  @Test
+  public void findsTheTextLogsInNameOrder() throws IOException {
+    assertTrue(new File(mLogDirectory, "gnss_log_c.csv").createNewFile());
+    assertTrue(new File(mLogDirectory, "notes.txt").createNewFile());
+    assertTrue(new File(mLogDirectory, "gnss_log_directory.txt").mkdir());
+
+    List<File> logFiles = GnssLogBatchRunner.findLogFiles(mLogDirectory);
+
+    assertEquals(
+        Arrays.asList(
+            new File(mLogDirectory, "gnss_log_a.txt"), new File(mLogDirectory, "gnss_log_b.txt")),
+        logFiles);
+  }
+
+  @Test
+  public void summaryHasARowPerLogUnderTheStatsHeader() throws Exception {
+    assertEquals(0, createRunner(false /* force */).run());
+
+    List<String> summary = readLines(new File(mOutputDirectory, "summary.csv"));
+    assertEquals(3, summary.size());
+    assertEquals(GnssLogFileProcessor.STATS_HEADER, summary.get(0));
+    int columnCount = GnssLogFileProcessor.STATS_HEADER.split(",").length;
+    for (int i = 1; i < summary.size(); i++) {
+      String[] columns = summary.get(i).split(",");
+      assertEquals(columnCount, columns.length);
+      assertEquals(FIXTURE_EPOCH_COUNT, Integer.parseInt(columns[1]));
+      assertTrue(Integer.parseInt(columns[2]) > 0);
+    }
+    assertTrue(summary.get(1).startsWith("gnss_log_a.txt,"));
+    assertTrue(summary.get(2).startsWith("gnss_log_b.txt,"));
+  }
+
+  @Test
+  public void processedLogsAreSkippedUnlessForced() throws Exception {
+    createRunner(false /* force */).run();
+    File statsFile = getStatsFile("gnss_log_a.txt");
+    assertTrue(statsFile.setLastModified(OLD_MODIFIED_MILLIS));
+
+    createRunner(false /* force */).run();
+    assertEquals(OLD_MODIFIED_MILLIS, statsFile.lastModified());
+    assertEquals(3, readLines(new File(mOutputDirectory, "summary.csv")).size());
+
+    createRunner(true /* force */).run();
+    assertNotEquals(OLD_MODIFIED_MILLIS, statsFile.lastModified());
+  }
+
+  @Test
+  public void logsWithAnOlderStatsHeaderAreProcessedAgain() throws Exception {
+    createRunner(false /* force */).run();
+    // The statistics of an older version, without the last column
+    File oldStatsFile = getStatsFile("gnss_log_a.txt");
+    List<String> stats = readLines(oldStatsFile);
+    Files.write(
+        oldStatsFile.toPath(),
+        (removeLastColumn(stats.get(0)) + "\n" + removeLastColumn(stats.get(1)) + "\n")
+            .getBytes(StandardCharsets.UTF_8));
+    File currentStatsFile = getStatsFile("gnss_log_b.txt");
+    assertTrue(currentStatsFile.setLastModified(OLD_MODIFIED_MILLIS));
+
+    assertEquals(0, createRunner(false /* force */).run());
+
+    assertEquals(GnssLogFileProcessor.STATS_HEADER, readLines(oldStatsFile).get(0));
+    assertEquals(OLD_MODIFIED_MILLIS, currentStatsFile.lastModified());
+    List<String> summary = readLines(new File(mOutputDirectory, "summary.csv"));
+    assertEquals(3, summary.size());
+    for (String row : summary) {
+      assertEquals(GnssLogFileProcessor.STATS_HEADER.split(",").length, row.split(",").length);
+    }
+  }
+
+  @Test
+  public void invalidThreadCountsAreRejected() {
+    assertEquals(4, GnssLogBatchRunner.parseThreadCount("4"));
+    assertEquals(0, GnssLogBatchRunner.parseThreadCount("four"));
+    assertEquals(0, GnssLogBatchRunner.parseThreadCount(""));
+  }
+
+  private GnssLogBatchRunner createRunner(boolean force) {
+    return new GnssLogBatchRunner(
+        mLogDirectory,
+        mOutputDirectory,
+        2 /* threadCount */,
+        force,
+        PseudorangePositionVelocityFromRealTimeEvents.SOLVER_WEIGHTED_LEAST_SQUARE,
+        PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_NONE,
+        false /* smooth */,
+        false /* coarseTime */,
+        0 /* timeOfWeekMaskingMillis */);
+  }
+
+  private File getStatsFile(String logFileName) {
+    return GnssLogFileProcessor.getStatsFile(new File(mLogDirectory, logFileName), mOutputDirectory);
+  }
+
+  private static String removeLastColumn(String line) {
+    return line.substring(0, line.lastIndexOf(','));
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+  }
+
+  /** Copies the fixture log of the test resources to {@code logFile} */
+  static void copyFixtureLog(File logFile) throws IOException {
+    try (InputStream inputStream = GnssLogBatchRunnerTest.class.getResourceAsStream(FIXTURE_LOG)) {
+      Files.copy(inputStream, logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+
+import com.google.location.lbs.gnss.gps.pseudorange.Ecef2LlaConverter.GeodeticLlaValues;
+import com.google.location.lbs.gnss.gps.pseudorange.SatellitePositionCalculator.PositionAndVelocity;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+
+/**
+ * Computes the receiver position of an epoch whose satellite times of week are not decoded, from
+ * the submillisecond part of the received satellite times, a reference position and a coarse
+ * receiver time: the coarse time navigation of van Diggelen.
+ *
+ * <p>The whole milliseconds of the pseudoranges are reconstructed from the ranges predicted at the
+ * reference position: the satellite of highest elevation gets the milliseconds bringing its
+ * pseudorange closest to its prediction, and every other satellite those bringing its pseudorange
+ * closest to its prediction shifted by the same common offset. This is correct as long as the
+ * differences between the prediction errors of the satellites stay below half a millisecond of
+ * range, 150 kilometers, i.e. for a reference position within tens of kilometers and a coarse time
+ * within seconds.
+ *
+ * <p>The position is then solved with a fifth unknown, the error of the coarse time, whose partial
+ * derivative is the range rate of each satellite, the clock bias only being known modulo a
+ * millisecond. A solution is rejected if it does not converge, if the coarse time error is too
+ * large or if a residual shows a wrong millisecond. The coarse time error of a solution is the
+ * initial guess of the next epoch.
+ *
+ * <p>Source: van Diggelen, F.: A-GPS: Assisted GPS, GNSS, and SBAS, chapter 4.
+ *
+ * <p>The class is not thread safe.
+ */
+final class CoarseTimeNavigationSolver {
+  /** The three position components, the clock bias and the coarse time error */
+  static final int MINIMUM_NUMBER_OF_SATELLITES = 5;
+
+  private static final double SPEED_OF_LIGHT_MPS = 299792458.0;
+  private static final int SECONDS_IN_WEEK = 604800;
+  private static final double SECONDS_PER_NANO = 1.0e-9;
+  private static final long NANOS_PER_MILLISECOND = 1000000L;
+  /** Range travelled by the signal in a millisecond, the ambiguity of the pseudoranges */
+  private static final double MILLISECOND_RANGE_METERS = SPEED_OF_LIGHT_MPS * 1.0e-3;
+  /** Average signal travel time from GPS satellite and earth */
+  private static final double AVERAGE_TRAVEL_TIME_SECONDS = 70.0e-3;
+  private static final int MAXIMUM_NUMBER_OF_ITERATIONS = 20;
+  private static final double POSITION_TOLERANCE_METERS = 1.0e-3;
+  /** Position correction threshold below which atmospheric correction will be applied */
+  private static final double ATMOSPHERIC_CORRECTIONS_THRESHOLD_METERS = 1000.0;
+  private static final double MAXIMUM_COARSE_TIME_ERROR_SECONDS = 60.0;
+  /** Residual above which a millisecond is assumed to be wrongly reconstructed */
+  private static final double MAXIMUM_RESIDUAL_METERS = 300.0;
+
+  private double mCoarseTimeErrorSeconds = 0.0;
+
+  // Per satellite values of the epoch being solved, in the order of mIndexes
+  private final int[] mIndexes = new int[MeasurementEpoch.CAPACITY];
+  private final GpsEphemerisProto[] mEphemerides = new GpsEphemerisProto[MeasurementEpoch.CAPACITY];
+  private final double[] mPseudorangesMeters = new double[MeasurementEpoch.CAPACITY];
+  private final double[] mPredictedPseudorangesMeters = new double[MeasurementEpoch.CAPACITY];
+  private final double[] mRangeRatesMps = new double[MeasurementEpoch.CAPACITY];
+  private final double[] mRangesMeters = new double[MeasurementEpoch.CAPACITY];
+  private final double[][] mSatellitePositionsMeters = new double[MeasurementEpoch.CAPACITY][3];
+  private int mNumberOfSatellites;
+
+  /**
+   * Computes the position solution of {@code measurementEpoch}.
+   *
+   * @param receiverGpsWeek Receiver estimate of GPS week (0-1024+), the coarse time of week being
+   *     the arrival time of {@code measurementEpoch}
+   * @param dayOfYear1To366 The day of the year between 1 and 366
+   * @param referencePositionEcefMeters A position within tens of kilometers of the receiver
+   * @param positionSolutionEcef The xyz position in ECEF meters followed by the clock bias in
+   *     meters, modulo a millisecond
+   * @param positionUncertaintyEnuMeters The east, north and up position uncertainty in meters
+   * @param pseudorangeResidualMeters The residual of each satellite indexed by PRN - 1, NaN for the
+   *     satellites not used
+   * @return {@code false} if no solution was found, in which case the output arrays are left as is
+   */
+  boolean solve(
+      GpsNavMessageProto navMessageProto,
+      MeasurementEpoch measurementEpoch,
+      int receiverGpsWeek,
+      int dayOfYear1To366,
+      double[] referencePositionEcefMeters,
+      double[] positionSolutionEcef,
+      double[] positionUncertaintyEnuMeters,
+      double[] pseudorangeResidualMeters)
+      throws Exception {
+    mNumberOfSatellites = 0;
+    for (int i = 0; i < MeasurementEpoch.CAPACITY; i++) {
+      if (!measurementEpoch.isValid(i)) {
+        continue;
+      }
+      GpsEphemerisProto ephemerisProto = getEphemerisForSatellite(navMessageProto, i + 1);
+      if (ephemerisProto != null) {
+        mIndexes[mNumberOfSatellites] = i;
+        mEphemerides[mNumberOfSatellites] = ephemerisProto;
+        mRangesMeters[mNumberOfSatellites] = AVERAGE_TRAVEL_TIME_SECONDS * SPEED_OF_LIGHT_MPS;
+        mNumberOfSatellites++;
+      }
+    }
+    if (mNumberOfSatellites < MINIMUM_NUMBER_OF_SATELLITES) {
+      return false;
+    }
+    double coarseGpsTimeSeconds =
+        (double) receiverGpsWeek * SECONDS_IN_WEEK
+            + measurementEpoch.arrivalTimeSinceGpsWeekNs * SECONDS_PER_NANO;
+    double[] alpha = navMessageProto.iono != null ? navMessageProto.iono.alpha : null;
+    double[] beta = navMessageProto.iono != null ? navMessageProto.iono.beta : null;
+
+    // Predict the pseudoranges at the reference position to reconstruct their milliseconds, twice
+    // so that the times of transmission use the predicted ranges
+    double[] solution = {
+      referencePositionEcefMeters[0],
+      referencePositionEcefMeters[1],
+      referencePositionEcefMeters[2],
+      0.0,
+      mCoarseTimeErrorSeconds
+    };
+    predictPseudoranges(
+        coarseGpsTimeSeconds + solution[4], solution, dayOfYear1To366, false, alpha, beta);
+    predictPseudoranges(
+        coarseGpsTimeSeconds + solution[4], solution, dayOfYear1To366, false, alpha, beta);
+    solution[3] = reconstructPseudoranges(measurementEpoch, referencePositionEcefMeters);
+
+    RealMatrix geometryMatrix = new Array2DRowRealMatrix(mNumberOfSatellites, 5);
+    RealVector weightedResiduals = new ArrayRealVector(mNumberOfSatellites);
+    double[] weights = new double[mNumberOfSatellites];
+    for (int k = 0; k < mNumberOfSatellites; k++) {
+      double sigmaMeters =
+          MeasurementEpoch.getPseudorangeSigmaMeters(measurementEpoch.cn0DbHz[mIndexes[k]]);
+      weights[k] = 1 / (sigmaMeters * sigmaMeters);
+    }
+    boolean doAtmosphericCorrections = false;
+    boolean converged = false;
+    RealMatrix normalMatrix = null;
+    for (int iteration = 0; iteration < MAXIMUM_NUMBER_OF_ITERATIONS && !converged; iteration++) {
+      predictPseudoranges(
+          coarseGpsTimeSeconds + solution[4],
+          solution,
+          dayOfYear1To366,
+          doAtmosphericCorrections,
+          alpha,
+          beta);
+      for (int k = 0; k < mNumberOfSatellites; k++) {
+        double[] satellitePosition = mSatellitePositionsMeters[k];
+        for (int j = 0; j < 3; j++) {
+          geometryMatrix.setEntry(
+              k, j, (solution[j] - satellitePosition[j]) / mRangesMeters[k]);
+        }
+        geometryMatrix.setEntry(k, 3, 1);
+        geometryMatrix.setEntry(k, 4, mRangeRatesMps[k]);
+        weightedResiduals.setEntry(
+            k,
+            weights[k]
+                * (mPseudorangesMeters[k] - mPredictedPseudorangesMeters[k] - solution[3]));
+      }
+      RealMatrix weightedGeometryTransposed = geometryMatrix.transpose();
+      for (int k = 0; k < mNumberOfSatellites; k++) {
+        for (int j = 0; j < 5; j++) {
+          weightedGeometryTransposed.multiplyEntry(j, k, weights[k]);
+        }
+      }
+      normalMatrix = weightedGeometryTransposed.multiply(geometryMatrix);
+      DecompositionSolver normalSolver = new LUDecomposition(normalMatrix).getSolver();
+      if (!normalSolver.isNonSingular()) {
+        break;
+      }
+      RealVector correction =
+          normalSolver.solve(geometryMatrix.transpose().operate(weightedResiduals));
+      for (int j = 0; j < 5; j++) {
+        solution[j] += correction.getEntry(j);
+      }
+      if (Math.abs(solution[4]) > MAXIMUM_COARSE_TIME_ERROR_SECONDS) {
+        break;
+      }
+      double positionCorrectionMeters =
+          Math.sqrt(
+              correction.getEntry(0) * correction.getEntry(0)
+                  + correction.getEntry(1) * correction.getEntry(1)
+                  + correction.getEntry(2) * correction.getEntry(2));
+      // The atmospheric corrections are applied once the position is close, then iterated on
+      if (positionCorrectionMeters < POSITION_TOLERANCE_METERS && doAtmosphericCorrections) {
+        converged = true;
+      } else if (positionCorrectionMeters < ATMOSPHERIC_CORRECTIONS_THRESHOLD_METERS) {
+        doAtmosphericCorrections = true;
+      }
+    }
+    if (!converged) {
+      mCoarseTimeErrorSeconds = 0.0;
+      return false;
+    }
+
+    // Residuals of the final solution, a wrong millisecond leaves one of hundreds of meters
+    predictPseudoranges(
+        coarseGpsTimeSeconds + solution[4], solution, dayOfYear1To366, true, alpha, beta);
+    double[] residualsMeters = new double[mNumberOfSatellites];
+    for (int k = 0; k < mNumberOfSatellites; k++) {
+      residualsMeters[k] = mPseudorangesMeters[k] - mPredictedPseudorangesMeters[k] - solution[3];
+      if (Math.abs(residualsMeters[k]) > MAXIMUM_RESIDUAL_METERS) {
+        mCoarseTimeErrorSeconds = 0.0;
+        return false;
+      }
+    }
+
+    mCoarseTimeErrorSeconds = solution[4];
+    System.arraycopy(solution, 0, positionSolutionEcef, 0, 4);
+    for (int i = 0; i < pseudorangeResidualMeters.length; i++) {
+      pseudorangeResidualMeters[i] = Double.NaN;
+    }
+    for (int k = 0; k < mNumberOfSatellites; k++) {
+      pseudorangeResidualMeters[mIndexes[k]] = residualsMeters[k];
+    }
+
+    // Position covariance rotated to the local ENU system
+    RealMatrix covariance =
+        new LUDecomposition(normalMatrix).getSolver().getInverse().getSubMatrix(0, 2, 0, 2);
+    GeodeticLlaValues latLngAlt =
+        Ecef2LlaConverter.convertECEFToLLACloseForm(solution[0], solution[1], solution[2]);
+    RealMatrix rotationMatrix =
+        Ecef2EnuConverter.getRotationMatrix(latLngAlt.latitudeRadians, latLngAlt.longitudeRadians);
+    RealMatrix covarianceEnu =
+        rotationMatrix.multiply(covariance).multiply(rotationMatrix.transpose());
+    for (int j = 0; j < 3; j++) {
+      positionUncertaintyEnuMeters[j] = Math.sqrt(covarianceEnu.getEntry(j, j));
+    }
+    return true;
+  }
+
+  /**
+   * Returns the error of the coarse receiver time found by the last successful {@link #solve}, in
+   * seconds to be added to the arrival time of the epoch.
+   */
+  double getCoarseTimeErrorSeconds() {
+    return mCoarseTimeErrorSeconds;
+  }
+
+  /**
+   * Reconstructs {@link #mPseudorangesMeters} from the submillisecond part of the received
+   * satellite times and the predicted pseudoranges, and returns their common offset, the initial
+   * clock bias.
+   */
+  private double reconstructPseudoranges(
+      MeasurementEpoch measurementEpoch, double[] referencePositionEcefMeters) {
+    // The satellite of highest elevation, whose prediction is the least sensitive to the errors of
+    // the reference position, sets the common offset
+    double norm = GpsMathOperations.vectorNorm(referencePositionEcefMeters);
+    int reference = 0;
+    double highestSinElevation = -1;
+    for (int k = 0; k < mNumberOfSatellites; k++) {
+      double sinElevation = 0;
+      for (int j = 0; j < 3; j++) {
+        sinElevation +=
+            referencePositionEcefMeters[j] / norm
+                * (mSatellitePositionsMeters[k][j] - referencePositionEcefMeters[j])
+                / mRangesMeters[k];
+      }
+      if (sinElevation > highestSinElevation) {
+        highestSinElevation = sinElevation;
+        reference = k;
+      }
+    }
+
+    for (int k = 0; k < mNumberOfSatellites; k++) {
+      // Pseudorange modulo a millisecond, at the coarse arrival time
+      long submillisecondNanos =
+          Math.floorMod(
+              measurementEpoch.arrivalTimeSinceGpsWeekNs
+                  - measurementEpoch.receivedSvTimeNs[mIndexes[k]],
+              NANOS_PER_MILLISECOND);
+      mPseudorangesMeters[k] = submillisecondNanos * SECONDS_PER_NANO * SPEED_OF_LIGHT_MPS;
+    }
+    double commonOffsetMeters =
+        MILLISECOND_RANGE_METERS
+                * Math.round(
+                    (mPredictedPseudorangesMeters[reference] - mPseudorangesMeters[reference])
+                        / MILLISECOND_RANGE_METERS)
+            + mPseudorangesMeters[reference]
+            - mPredictedPseudorangesMeters[reference];
+    for (int k = 0; k < mNumberOfSatellites; k++) {
+      mPseudorangesMeters[k] +=
+          MILLISECOND_RANGE_METERS
+              * Math.round(
+                  (mPredictedPseudorangesMeters[k] + commonOffsetMeters - mPseudorangesMeters[k])
+                      / MILLISECOND_RANGE_METERS);
+    }
+    return commonOffsetMeters;
+  }
+
+  /**
+   * Computes the satellite positions, ranges, range rates and the predicted pseudoranges without
+   * clock bias, for a receiver at {@code solution} receiving at {@code receptionGpsTimeSeconds}.
+   * The times of transmission use the ranges of the previous call.
+   */
+  private void predictPseudoranges(
+      double receptionGpsTimeSeconds,
+      double[] solution,
+      int dayOfYear1To366,
+      boolean doAtmosphericCorrections,
+      double[] alpha,
+      double[] beta)
+      throws Exception {
+    double[] userPositionEcefMeters = {solution[0], solution[1], solution[2]};
+    GeodeticLlaValues latLngAlt = null;
+    if (doAtmosphericCorrections) {
+      latLngAlt =
+          Ecef2LlaConverter.convertECEFToLLACloseForm(solution[0], solution[1], solution[2]);
+    }
+    for (int k = 0; k < mNumberOfSatellites; k++) {
+      GpsEphemerisProto ephemerisProto = mEphemerides[k];
+      double transmissionGpsTimeSeconds =
+          receptionGpsTimeSeconds - mRangesMeters[k] / SPEED_OF_LIGHT_MPS;
+      int week = (int) Math.floor(transmissionGpsTimeSeconds / SECONDS_IN_WEEK);
+      double tow = transmissionGpsTimeSeconds - (double) week * SECONDS_IN_WEEK;
+      double satelliteClockCorrectionMeters =
+          SatelliteClockCorrectionCalculator.calculateSatClockCorrAndEccAnomAndTkIteratively(
+                  ephemerisProto, tow, week)
+              .satelliteClockCorrectionMeters;
+      PositionAndVelocity satellite =
+          SatellitePositionCalculator.calculateSatellitePositionAndVelocityFromEphemeris(
+              ephemerisProto,
+              tow + satelliteClockCorrectionMeters / SPEED_OF_LIGHT_MPS,
+              week,
+              solution[0],
+              solution[1],
+              solution[2]);
+      double[] satellitePosition = mSatellitePositionsMeters[k];
+      satellitePosition[0] = satellite.positionXMeters;
+      satellitePosition[1] = satellite.positionYMeters;
+      satellitePosition[2] = satellite.positionZMeters;
+      double x = satellitePosition[0] - solution[0];
+      double y = satellitePosition[1] - solution[1];
+      double z = satellitePosition[2] - solution[2];
+      double rangeMeters = Math.sqrt(x * x + y * y + z * z);
+      mRangesMeters[k] = rangeMeters;
+      mRangeRatesMps[k] =
+          (x * satellite.velocityXMetersPerSec
+                  + y * satellite.velocityYMetersPerSec
+                  + z * satellite.velocityZMetersPerSec)
+              / rangeMeters;
+
+      double atmosphericCorrectionMeters = 0.0;
+      if (doAtmosphericCorrections) {
+        double elevationRadians =
+            EcefToTopocentricConverter.calculateElAzDistBetween2Points(
+                    userPositionEcefMeters, satellitePosition)
+                .elevationRadians;
+        atmosphericCorrectionMeters =
+            TroposphericModelEgnos.calculateTropoCorrectionMeters(
+                elevationRadians,
+                latLngAlt.latitudeRadians,
+                latLngAlt.altitudeMeters,
+                dayOfYear1To366);
+        if (alpha != null && beta != null) {
+          atmosphericCorrectionMeters +=
+              IonosphericModel.ionoKloboucharCorrectionSeconds(
+                      userPositionEcefMeters,
+                      satellitePosition,
+                      tow,
+                      alpha,
+                      beta,
+                      IonosphericModel.L1_FREQ_HZ)
+                  * SPEED_OF_LIGHT_MPS;
+        }
+      }
+      mPredictedPseudorangesMeters[k] =
+          rangeMeters - satelliteClockCorrectionMeters + atmosphericCorrectionMeters;
+    }
+  }
+
+  private static GpsEphemerisProto getEphemerisForSatellite(
+      GpsNavMessageProto navMessageProto, int prn) {
+    for (GpsEphemerisProto ephemerisProto : navMessageProto.ephemerids) {
+      if (ephemerisProto.prn == prn) {
+        return ephemerisProto;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+
+/**
+ * Converts a binary log written by {@link GnssBinaryLogWriter} to the text log that the GnssLogger
+ * would have written for the same session, byte for byte.
+ */
+public final class GnssBinaryLogConverter {
+  private static final char LINE_SEPARATOR = '\n';
+
+  private GnssBinaryLogConverter() {}
+
+  /** Reads the binary log from {@code inputStream} and writes the text log to {@code writer}. */
+  public static void convertToCsv(InputStream inputStream, Writer writer) throws IOException {
+    GnssBinaryLogReader reader = new GnssBinaryLogReader(inputStream);
+    writer.write(reader.getTextHeader());
+    GnssLogCsvFormat format = new GnssLogCsvFormat();
+    reader.read(
+        new GnssBinaryLogReader.Callback() {
+          @Override
+          public void onRawMeasurement(LoggedGnssClock clock, LoggedGnssMeasurement measurement)
+              throws IOException {
+            format.formatRawRecord(clock, measurement);
+            writeLine();
+          }
+
+          @Override
+          public void onNavigationMessage(
+              int svid, int type, int status, int messageId, int subMessageId, byte[] data)
+              throws IOException {
+            format.formatNavRecord(svid, type, status, messageId, subMessageId, data, data.length);
+            writeLine();
+          }
+
+          @Override
+          public void onFix(
+              String provider,
+              double latitudeDegrees,
+              double longitudeDegrees,
+              double altitudeMeters,
+              float speedMps,
+              float accuracyMeters,
+              long timeMillis)
+              throws IOException {
+            format.formatFixRecord(
+                provider,
+                latitudeDegrees,
+                longitudeDegrees,
+                altitudeMeters,
+                speedMps,
+                accuracyMeters,
+                timeMillis);
+            writeLine();
+          }
+
+          @Override
+          public void onNmea(String sentence, long timestamp) throws IOException {
+            format.formatNmeaRecord(sentence, timestamp);
+            writeLine();
+          }
+
+          private void writeLine() throws IOException {
+            format.writeTo(writer);
+            writer.write(LINE_SEPARATOR);
+          }
+        });
+    writer.flush();
+  }
+}
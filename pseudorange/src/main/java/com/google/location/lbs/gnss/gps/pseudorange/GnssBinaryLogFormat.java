@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+/**
+ * Layout of the binary GnssLogger log, shared by {@link GnssBinaryLogWriter} and
+ * {@link GnssBinaryLogReader}.
+ *
+ * <p>The file starts with {@link #MAGIC}, a version byte and the text header of the equivalent CSV
+ * log. It is followed by records, each starting with a tag byte:
+ *
+ * <ul>
+ *   <li>{@link #TAG_EPOCH}: the clock block of an epoch, followed by its measurements
+ *   <li>{@link #TAG_NAVIGATION_MESSAGE}: a navigation message, its payload stored raw
+ *   <li>{@link #TAG_FIX}: a location
+ *   <li>{@link #TAG_NMEA}: an NMEA sentence
+ * </ul>
+ *
+ * <p>Integers are stored as unsigned or zigzag varints, the clock and satellite times as deltas
+ * from the previous epoch and from the previous measurement of the same satellite. Floating point
+ * values are XORed with the previous value of the same field and only the bytes between the
+ * leading and trailing zero bytes of the result are stored, after a byte holding both counts. The
+ * optional fields are preceded by a presence bitmask. The encoding is lossless.
+ */
+final class GnssBinaryLogFormat {
+  static final int MAGIC = 0x474e5342; // "GNSB"
+  static final int VERSION = 1;
+
+  static final int TAG_EPOCH = 1;
+  static final int TAG_NAVIGATION_MESSAGE = 2;
+  static final int TAG_FIX = 3;
+  static final int TAG_NMEA = 4;
+
+  // Presence bits of the optional clock fields
+  static final int HAS_LEAP_SECOND = 1;
+  static final int HAS_TIME_UNCERTAINTY = 1 << 1;
+  static final int HAS_BIAS = 1 << 2;
+  static final int HAS_BIAS_UNCERTAINTY = 1 << 3;
+  static final int HAS_DRIFT = 1 << 4;
+  static final int HAS_DRIFT_UNCERTAINTY = 1 << 5;
+
+  // Presence bits of the optional measurement fields
+  static final int HAS_CARRIER_FREQUENCY = 1;
+  static final int HAS_CARRIER_CYCLES = 1 << 1;
+  static final int HAS_CARRIER_PHASE = 1 << 2;
+  static final int HAS_CARRIER_PHASE_UNCERTAINTY = 1 << 3;
+  static final int HAS_SNR = 1 << 4;
+  static final int HAS_AGC = 1 << 5;
+
+  // Indexes of the floating point clock fields in ClockState#previousBits
+  static final int CLOCK_TIME_UNCERTAINTY = 0;
+  static final int CLOCK_BIAS = 1;
+  static final int CLOCK_BIAS_UNCERTAINTY = 2;
+  static final int CLOCK_DRIFT = 3;
+  static final int CLOCK_DRIFT_UNCERTAINTY = 4;
+  static final int CLOCK_FIELD_COUNT = 5;
+
+  // Indexes of the floating point measurement fields in SatelliteState#previousBits
+  static final int MEASUREMENT_TIME_OFFSET = 0;
+  static final int MEASUREMENT_CN0 = 1;
+  static final int MEASUREMENT_PSEUDORANGE_RATE = 2;
+  static final int MEASUREMENT_PSEUDORANGE_RATE_UNCERTAINTY = 3;
+  static final int MEASUREMENT_ACCUMULATED_DELTA_RANGE = 4;
+  static final int MEASUREMENT_ACCUMULATED_DELTA_RANGE_UNCERTAINTY = 5;
+  static final int MEASUREMENT_CARRIER_FREQUENCY = 6;
+  static final int MEASUREMENT_CARRIER_PHASE = 7;
+  static final int MEASUREMENT_CARRIER_PHASE_UNCERTAINTY = 8;
+  static final int MEASUREMENT_SNR = 9;
+  static final int MEASUREMENT_AGC = 10;
+  static final int MEASUREMENT_FIELD_COUNT = 11;
+
+  /** Values of the previous epoch, the predictions of the next clock block */
+  static final class ClockState {
+    long timeNanos;
+    long fullBiasNanos;
+    long elapsedRealtimeMillis;
+    final long[] previousBits = new long[CLOCK_FIELD_COUNT];
+  }
+
+  /** Values of the previous measurement of a satellite, the predictions of its next one */
+  static final class SatelliteState {
+    long receivedSvTimeNanos;
+    long carrierCycles;
+    final long[] previousBits = new long[MEASUREMENT_FIELD_COUNT];
+  }
+
+  /** Returns the key identifying a satellite across epochs */
+  static int getSatelliteKey(int constellationType, int svid) {
+    return (constellationType << 16) | (svid & 0xffff);
+  }
+
+  static long encodeZigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static long decodeZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private GnssBinaryLogFormat() {}
+}
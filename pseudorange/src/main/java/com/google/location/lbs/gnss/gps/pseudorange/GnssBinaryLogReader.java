@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import com.google.location.lbs.gnss.gps.pseudorange.GnssBinaryLogFormat.ClockState;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssBinaryLogFormat.SatelliteState;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams the records of a binary log written by {@link GnssBinaryLogWriter}. The clock and
+ * measurement instances passed to the callback are reused from one record to the next.
+ */
+public class GnssBinaryLogReader implements Closeable {
+
+  /** Receives the records of a binary log in file order. */
+  public interface Callback {
+    void onRawMeasurement(LoggedGnssClock clock, LoggedGnssMeasurement measurement)
+        throws IOException;
+
+    void onNavigationMessage(
+        int svid, int type, int status, int messageId, int subMessageId, byte[] data)
+        throws IOException;
+
+    void onFix(
+        String provider,
+        double latitudeDegrees,
+        double longitudeDegrees,
+        double altitudeMeters,
+        float speedMps,
+        float accuracyMeters,
+        long timeMillis)
+        throws IOException;
+
+    void onNmea(String sentence, long timestamp) throws IOException;
+  }
+
+  private final InputStream mInputStream;
+  private final String mTextHeader;
+
+  private final ClockState mClockState = new ClockState();
+  private final Map<Integer, SatelliteState> mSatelliteStates = new HashMap<>();
+  private final LoggedGnssClock mClock = new LoggedGnssClock();
+  private final LoggedGnssMeasurement mMeasurement = new LoggedGnssMeasurement();
+
+  /** Reads the file header from {@code inputStream}. */
+  public GnssBinaryLogReader(InputStream inputStream) throws IOException {
+    mInputStream =
+        inputStream instanceof BufferedInputStream
+            ? inputStream
+            : new BufferedInputStream(inputStream);
+    if (readFixedInt() != GnssBinaryLogFormat.MAGIC) {
+      throw new IOException("Not a binary GnssLogger log");
+    }
+    int version = readByte();
+    if (version != GnssBinaryLogFormat.VERSION) {
+      throw new IOException("Unsupported binary log version: " + version);
+    }
+    mTextHeader = readString();
+  }
+
+  /** Returns the comment lines starting the equivalent text log, including their separators */
+  public String getTextHeader() {
+    return mTextHeader;
+  }
+
+  /** Reads the log until its end, reporting every record to {@code callback}. */
+  public void read(Callback callback) throws IOException {
+    int tag;
+    while ((tag = mInputStream.read()) != -1) {
+      switch (tag) {
+        case GnssBinaryLogFormat.TAG_EPOCH:
+          readEpoch(callback);
+          break;
+        case GnssBinaryLogFormat.TAG_NAVIGATION_MESSAGE:
+          readNavigationMessage(callback);
+          break;
+        case GnssBinaryLogFormat.TAG_FIX:
+          readFix(callback);
+          break;
+        case GnssBinaryLogFormat.TAG_NMEA:
+          callback.onNmea(readString(), readSignedVarint());
+          break;
+        default:
+          throw new IOException("Unknown record tag: " + tag);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    mInputStream.close();
+  }
+
+  private void readEpoch(Callback callback) throws IOException {
+    LoggedGnssClock clock = mClock;
+    long[] clockBits = mClockState.previousBits;
+    int presence = (int) readVarint();
+    clock.hasLeapSecond = (presence & GnssBinaryLogFormat.HAS_LEAP_SECOND) != 0;
+    clock.hasTimeUncertaintyNanos = (presence & GnssBinaryLogFormat.HAS_TIME_UNCERTAINTY) != 0;
+    clock.hasBiasNanos = (presence & GnssBinaryLogFormat.HAS_BIAS) != 0;
+    clock.hasBiasUncertaintyNanos = (presence & GnssBinaryLogFormat.HAS_BIAS_UNCERTAINTY) != 0;
+    clock.hasDriftNanosPerSecond = (presence & GnssBinaryLogFormat.HAS_DRIFT) != 0;
+    clock.hasDriftUncertaintyNanosPerSecond =
+        (presence & GnssBinaryLogFormat.HAS_DRIFT_UNCERTAINTY) != 0;
+
+    mClockState.timeNanos += readSignedVarint();
+    clock.timeNanos = mClockState.timeNanos;
+    if (clock.hasLeapSecond) {
+      clock.leapSecond = (int) readSignedVarint();
+    }
+    if (clock.hasTimeUncertaintyNanos) {
+      clock.timeUncertaintyNanos =
+          readDouble(clockBits, GnssBinaryLogFormat.CLOCK_TIME_UNCERTAINTY);
+    }
+    mClockState.fullBiasNanos += readSignedVarint();
+    clock.fullBiasNanos = mClockState.fullBiasNanos;
+    if (clock.hasBiasNanos) {
+      clock.biasNanos = readDouble(clockBits, GnssBinaryLogFormat.CLOCK_BIAS);
+    }
+    if (clock.hasBiasUncertaintyNanos) {
+      clock.biasUncertaintyNanos =
+          readDouble(clockBits, GnssBinaryLogFormat.CLOCK_BIAS_UNCERTAINTY);
+    }
+    if (clock.hasDriftNanosPerSecond) {
+      clock.driftNanosPerSecond = readDouble(clockBits, GnssBinaryLogFormat.CLOCK_DRIFT);
+    }
+    if (clock.hasDriftUncertaintyNanosPerSecond) {
+      clock.driftUncertaintyNanosPerSecond =
+          readDouble(clockBits, GnssBinaryLogFormat.CLOCK_DRIFT_UNCERTAINTY);
+    }
+    clock.hardwareClockDiscontinuityCount = (int) readVarint();
+
+    int measurementCount = (int) readVarint();
+    for (int i = 0; i < measurementCount; i++) {
+      readMeasurement();
+      callback.onRawMeasurement(clock, mMeasurement);
+    }
+  }
+
+  private void readMeasurement() throws IOException {
+    LoggedGnssMeasurement measurement = mMeasurement;
+    int presence = (int) readVarint();
+    measurement.hasCarrierFrequencyHz =
+        (presence & GnssBinaryLogFormat.HAS_CARRIER_FREQUENCY) != 0;
+    measurement.hasCarrierCycles = (presence & GnssBinaryLogFormat.HAS_CARRIER_CYCLES) != 0;
+    measurement.hasCarrierPhase = (presence & GnssBinaryLogFormat.HAS_CARRIER_PHASE) != 0;
+    measurement.hasCarrierPhaseUncertainty =
+        (presence & GnssBinaryLogFormat.HAS_CARRIER_PHASE_UNCERTAINTY) != 0;
+    measurement.hasSnrInDb = (presence & GnssBinaryLogFormat.HAS_SNR) != 0;
+    measurement.hasAutomaticGainControlLevelDb = (presence & GnssBinaryLogFormat.HAS_AGC) != 0;
+
+    mClockState.elapsedRealtimeMillis += readSignedVarint();
+    measurement.elapsedRealtimeMillis = mClockState.elapsedRealtimeMillis;
+    measurement.constellationType = (int) readVarint();
+    measurement.svid = (int) readVarint();
+    SatelliteState satellite = getSatelliteState(measurement.constellationType, measurement.svid);
+    long[] previousBits = satellite.previousBits;
+
+    measurement.timeOffsetNanos =
+        readDouble(previousBits, GnssBinaryLogFormat.MEASUREMENT_TIME_OFFSET);
+    measurement.state = (int) readVarint();
+    satellite.receivedSvTimeNanos += readSignedVarint();
+    measurement.receivedSvTimeNanos = satellite.receivedSvTimeNanos;
+    measurement.receivedSvTimeUncertaintyNanos = readSignedVarint();
+    measurement.cn0DbHz = readDouble(previousBits, GnssBinaryLogFormat.MEASUREMENT_CN0);
+    measurement.pseudorangeRateMetersPerSecond =
+        readDouble(previousBits, GnssBinaryLogFormat.MEASUREMENT_PSEUDORANGE_RATE);
+    measurement.pseudorangeRateUncertaintyMetersPerSecond =
+        readDouble(previousBits, GnssBinaryLogFormat.MEASUREMENT_PSEUDORANGE_RATE_UNCERTAINTY);
+    measurement.accumulatedDeltaRangeState = (int) readVarint();
+    measurement.accumulatedDeltaRangeMeters =
+        readDouble(previousBits, GnssBinaryLogFormat.MEASUREMENT_ACCUMULATED_DELTA_RANGE);
+    measurement.accumulatedDeltaRangeUncertaintyMeters =
+        readDouble(
+            previousBits, GnssBinaryLogFormat.MEASUREMENT_ACCUMULATED_DELTA_RANGE_UNCERTAINTY);
+    if (measurement.hasCarrierFrequencyHz) {
+      measurement.carrierFrequencyHz =
+          Float.intBitsToFloat(
+              (int)
+                  readXoredBits(previousBits, GnssBinaryLogFormat.MEASUREMENT_CARRIER_FREQUENCY));
+    }
+    if (measurement.hasCarrierCycles) {
+      satellite.carrierCycles += readSignedVarint();
+      measurement.carrierCycles = satellite.carrierCycles;
+    }
+    if (measurement.hasCarrierPhase) {
+      measurement.carrierPhase =
+          readDouble(previousBits, GnssBinaryLogFormat.MEASUREMENT_CARRIER_PHASE);
+    }
+    if (measurement.hasCarrierPhaseUncertainty) {
+      measurement.carrierPhaseUncertainty =
+          readDouble(previousBits, GnssBinaryLogFormat.MEASUREMENT_CARRIER_PHASE_UNCERTAINTY);
+    }
+    measurement.multipathIndicator = (int) readSignedVarint();
+    if (measurement.hasSnrInDb) {
+      measurement.snrInDb = readDouble(previousBits, GnssBinaryLogFormat.MEASUREMENT_SNR);
+    }
+    if (measurement.hasAutomaticGainControlLevelDb) {
+      measurement.automaticGainControlLevelDb =
+          readDouble(previousBits, GnssBinaryLogFormat.MEASUREMENT_AGC);
+    }
+  }
+
+  private void readNavigationMessage(Callback callback) throws IOException {
+    int svid = (int) readVarint();
+    int type = (int) readVarint();
+    int status = (int) readSignedVarint();
+    int messageId = (int) readSignedVarint();
+    int subMessageId = (int) readSignedVarint();
+    byte[] data = readBytes((int) readVarint());
+    callback.onNavigationMessage(svid, type, status, messageId, subMessageId, data);
+  }
+
+  private void readFix(Callback callback) throws IOException {
+    String provider = readString();
+    double latitudeDegrees = Double.longBitsToDouble(readFixedLong());
+    double longitudeDegrees = Double.longBitsToDouble(readFixedLong());
+    double altitudeMeters = Double.longBitsToDouble(readFixedLong());
+    float speedMps = Float.intBitsToFloat(readFixedInt());
+    float accuracyMeters = Float.intBitsToFloat(readFixedInt());
+    long timeMillis = readSignedVarint();
+    callback.onFix(
+        provider,
+        latitudeDegrees,
+        longitudeDegrees,
+        altitudeMeters,
+        speedMps,
+        accuracyMeters,
+        timeMillis);
+  }
+
+  private SatelliteState getSatelliteState(int constellationType, int svid) {
+    Integer key = GnssBinaryLogFormat.getSatelliteKey(constellationType, svid);
+    SatelliteState satellite = mSatelliteStates.get(key);
+    if (satellite == null) {
+      satellite = new SatelliteState();
+      mSatelliteStates.put(key, satellite);
+    }
+    return satellite;
+  }
+
+  private int readByte() throws IOException {
+    int value = mInputStream.read();
+    if (value == -1) {
+      throw new EOFException("Truncated binary log");
+    }
+    return value;
+  }
+
+  private byte[] readBytes(int length) throws IOException {
+    byte[] bytes = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      int count = mInputStream.read(bytes, offset, length - offset);
+      if (count == -1) {
+        throw new EOFException("Truncated binary log");
+      }
+      offset += count;
+    }
+    return bytes;
+  }
+
+  private long readVarint() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = readByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  private long readSignedVarint() throws IOException {
+    return GnssBinaryLogFormat.decodeZigZag(readVarint());
+  }
+
+  private int readFixedInt() throws IOException {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      value = (value << 8) | readByte();
+    }
+    return value;
+  }
+
+  private long readFixedLong() throws IOException {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = (value << 8) | readByte();
+    }
+    return value;
+  }
+
+  private double readDouble(long[] previousBits, int field) throws IOException {
+    return Double.longBitsToDouble(readXoredBits(previousBits, field));
+  }
+
+  /** Reads a value written by {@code GnssBinaryLogWriter#writeXoredBits} */
+  private long readXoredBits(long[] previousBits, int field) throws IOException {
+    int header = readByte();
+    int leadingZeroBytes = header >>> 4;
+    int trailingZeroBytes = header & 0x0f;
+    long xor = 0;
+    for (int i = 7 - leadingZeroBytes; i >= trailingZeroBytes; i--) {
+      xor |= (long) readByte() << (i * 8);
+    }
+    long bits = previousBits[field] ^ xor;
+    previousBits[field] = bits;
+    return bits;
+  }
+
+  private String readString() throws IOException {
+    return new String(readBytes((int) readVarint()), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import com.google.common.base.Preconditions;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssBinaryLogFormat.ClockState;
+import com.google.location.lbs.gnss.gps.pseudorange.GnssBinaryLogFormat.SatelliteState;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams GnssLogger records to a compact binary log, see {@link GnssBinaryLogFormat} for the
+ * layout. The log is converted back to the text format by {@link GnssBinaryLogConverter}.
+ *
+ * <p>An epoch is written with {@link #beginEpoch} followed by exactly as many calls to
+ * {@link #writeMeasurement} as announced. The class is not thread safe.
+ */
+public class GnssBinaryLogWriter implements Closeable, Flushable {
+  private static final int BUFFER_SIZE = 8192;
+  /** Longest encoding of a single value: a 64 bits varint, or a floating point header and value */
+  private static final int MAX_VALUE_SIZE = 10;
+
+  private final OutputStream mOutputStream;
+  private final byte[] mBuffer = new byte[BUFFER_SIZE];
+  private int mPosition;
+
+  private final ClockState mClockState = new ClockState();
+  private final Map<Integer, SatelliteState> mSatelliteStates = new HashMap<>();
+  private int mRemainingMeasurements;
+
+  /**
+   * Writes the file header to {@code outputStream}.
+   *
+   * @param textHeader The comment lines starting the equivalent text log, including their line
+   *     separators
+   */
+  public GnssBinaryLogWriter(OutputStream outputStream, String textHeader) throws IOException {
+    mOutputStream = outputStream;
+    writeFixedInt(GnssBinaryLogFormat.MAGIC);
+    writeByte(GnssBinaryLogFormat.VERSION);
+    writeString(textHeader);
+  }
+
+  /** Writes the clock block of an epoch of {@code measurementCount} measurements */
+  public void beginEpoch(LoggedGnssClock clock, int measurementCount) throws IOException {
+    Preconditions.checkState(
+        mRemainingMeasurements == 0, mRemainingMeasurements + " measurements missing");
+    int presence = 0;
+    presence |= clock.hasLeapSecond ? GnssBinaryLogFormat.HAS_LEAP_SECOND : 0;
+    presence |= clock.hasTimeUncertaintyNanos ? GnssBinaryLogFormat.HAS_TIME_UNCERTAINTY : 0;
+    presence |= clock.hasBiasNanos ? GnssBinaryLogFormat.HAS_BIAS : 0;
+    presence |= clock.hasBiasUncertaintyNanos ? GnssBinaryLogFormat.HAS_BIAS_UNCERTAINTY : 0;
+    presence |= clock.hasDriftNanosPerSecond ? GnssBinaryLogFormat.HAS_DRIFT : 0;
+    presence |=
+        clock.hasDriftUncertaintyNanosPerSecond ? GnssBinaryLogFormat.HAS_DRIFT_UNCERTAINTY : 0;
+
+    writeByte(GnssBinaryLogFormat.TAG_EPOCH);
+    writeVarint(presence);
+    writeSignedVarint(clock.timeNanos - mClockState.timeNanos);
+    mClockState.timeNanos = clock.timeNanos;
+    if (clock.hasLeapSecond) {
+      writeSignedVarint(clock.leapSecond);
+    }
+    if (clock.hasTimeUncertaintyNanos) {
+      writeDouble(
+          clock.timeUncertaintyNanos,
+          mClockState.previousBits,
+          GnssBinaryLogFormat.CLOCK_TIME_UNCERTAINTY);
+    }
+    writeSignedVarint(clock.fullBiasNanos - mClockState.fullBiasNanos);
+    mClockState.fullBiasNanos = clock.fullBiasNanos;
+    if (clock.hasBiasNanos) {
+      writeDouble(clock.biasNanos, mClockState.previousBits, GnssBinaryLogFormat.CLOCK_BIAS);
+    }
+    if (clock.hasBiasUncertaintyNanos) {
+      writeDouble(
+          clock.biasUncertaintyNanos,
+          mClockState.previousBits,
+          GnssBinaryLogFormat.CLOCK_BIAS_UNCERTAINTY);
+    }
+    if (clock.hasDriftNanosPerSecond) {
+      writeDouble(
+          clock.driftNanosPerSecond, mClockState.previousBits, GnssBinaryLogFormat.CLOCK_DRIFT);
+    }
+    if (clock.hasDriftUncertaintyNanosPerSecond) {
+      writeDouble(
+          clock.driftUncertaintyNanosPerSecond,
+          mClockState.previousBits,
+          GnssBinaryLogFormat.CLOCK_DRIFT_UNCERTAINTY);
+    }
+    writeVarint(clock.hardwareClockDiscontinuityCount);
+    writeVarint(measurementCount);
+    mRemainingMeasurements = measurementCount;
+  }
+
+  /** Writes a measurement of the epoch started by the last call to {@link #beginEpoch} */
+  public void writeMeasurement(LoggedGnssMeasurement measurement) throws IOException {
+    Preconditions.checkState(mRemainingMeasurements > 0, "No measurement expected");
+    mRemainingMeasurements--;
+    int presence = 0;
+    presence |= measurement.hasCarrierFrequencyHz ? GnssBinaryLogFormat.HAS_CARRIER_FREQUENCY : 0;
+    presence |= measurement.hasCarrierCycles ? GnssBinaryLogFormat.HAS_CARRIER_CYCLES : 0;
+    presence |= measurement.hasCarrierPhase ? GnssBinaryLogFormat.HAS_CARRIER_PHASE : 0;
+    presence |=
+        measurement.hasCarrierPhaseUncertainty
+            ? GnssBinaryLogFormat.HAS_CARRIER_PHASE_UNCERTAINTY
+            : 0;
+    presence |= measurement.hasSnrInDb ? GnssBinaryLogFormat.HAS_SNR : 0;
+    presence |= measurement.hasAutomaticGainControlLevelDb ? GnssBinaryLogFormat.HAS_AGC : 0;
+
+    writeVarint(presence);
+    writeSignedVarint(measurement.elapsedRealtimeMillis - mClockState.elapsedRealtimeMillis);
+    mClockState.elapsedRealtimeMillis = measurement.elapsedRealtimeMillis;
+    writeVarint(measurement.constellationType);
+    writeVarint(measurement.svid);
+    SatelliteState satellite = getSatelliteState(measurement.constellationType, measurement.svid);
+    long[] previousBits = satellite.previousBits;
+
+    writeDouble(
+        measurement.timeOffsetNanos, previousBits, GnssBinaryLogFormat.MEASUREMENT_TIME_OFFSET);
+    writeVarint(measurement.state);
+    writeSignedVarint(measurement.receivedSvTimeNanos - satellite.receivedSvTimeNanos);
+    satellite.receivedSvTimeNanos = measurement.receivedSvTimeNanos;
+    writeSignedVarint(measurement.receivedSvTimeUncertaintyNanos);
+    writeDouble(measurement.cn0DbHz, previousBits, GnssBinaryLogFormat.MEASUREMENT_CN0);
+    writeDouble(
+        measurement.pseudorangeRateMetersPerSecond,
+        previousBits,
+        GnssBinaryLogFormat.MEASUREMENT_PSEUDORANGE_RATE);
+    writeDouble(
+        measurement.pseudorangeRateUncertaintyMetersPerSecond,
+        previousBits,
+        GnssBinaryLogFormat.MEASUREMENT_PSEUDORANGE_RATE_UNCERTAINTY);
+    writeVarint(measurement.accumulatedDeltaRangeState);
+    writeDouble(
+        measurement.accumulatedDeltaRangeMeters,
+        previousBits,
+        GnssBinaryLogFormat.MEASUREMENT_ACCUMULATED_DELTA_RANGE);
+    writeDouble(
+        measurement.accumulatedDeltaRangeUncertaintyMeters,
+        previousBits,
+        GnssBinaryLogFormat.MEASUREMENT_ACCUMULATED_DELTA_RANGE_UNCERTAINTY);
+    if (measurement.hasCarrierFrequencyHz) {
+      writeXoredBits(
+          Float.floatToRawIntBits(measurement.carrierFrequencyHz) & 0xffffffffL,
+          previousBits,
+          GnssBinaryLogFormat.MEASUREMENT_CARRIER_FREQUENCY);
+    }
+    if (measurement.hasCarrierCycles) {
+      writeSignedVarint(measurement.carrierCycles - satellite.carrierCycles);
+      satellite.carrierCycles = measurement.carrierCycles;
+    }
+    if (measurement.hasCarrierPhase) {
+      writeDouble(
+          measurement.carrierPhase, previousBits, GnssBinaryLogFormat.MEASUREMENT_CARRIER_PHASE);
+    }
+    if (measurement.hasCarrierPhaseUncertainty) {
+      writeDouble(
+          measurement.carrierPhaseUncertainty,
+          previousBits,
+          GnssBinaryLogFormat.MEASUREMENT_CARRIER_PHASE_UNCERTAINTY);
+    }
+    writeSignedVarint(measurement.multipathIndicator);
+    if (measurement.hasSnrInDb) {
+      writeDouble(measurement.snrInDb, previousBits, GnssBinaryLogFormat.MEASUREMENT_SNR);
+    }
+    if (measurement.hasAutomaticGainControlLevelDb) {
+      writeDouble(
+          measurement.automaticGainControlLevelDb,
+          previousBits,
+          GnssBinaryLogFormat.MEASUREMENT_AGC);
+    }
+  }
+
+  /** Writes a navigation message, its payload being stored as is */
+  public void writeNavigationMessage(
+      int svid, int type, int status, int messageId, int subMessageId, byte[] data)
+      throws IOException {
+    writeNavigationMessage(svid, type, status, messageId, subMessageId, data, data.length);
+  }
+
+  /** Writes a navigation message of the first {@code length} bytes of {@code data} */
+  public void writeNavigationMessage(
+      int svid, int type, int status, int messageId, int subMessageId, byte[] data, int length)
+      throws IOException {
+    writeByte(GnssBinaryLogFormat.TAG_NAVIGATION_MESSAGE);
+    writeVarint(svid);
+    writeVarint(type);
+    writeSignedVarint(status);
+    writeSignedVarint(messageId);
+    writeSignedVarint(subMessageId);
+    writeVarint(length);
+    writeBytes(data, 0, length);
+  }
+
+  /** Writes a location */
+  public void writeFix(
+      String provider,
+      double latitudeDegrees,
+      double longitudeDegrees,
+      double altitudeMeters,
+      float speedMps,
+      float accuracyMeters,
+      long timeMillis)
+      throws IOException {
+    writeByte(GnssBinaryLogFormat.TAG_FIX);
+    writeString(provider);
+    writeFixedLong(Double.doubleToRawLongBits(latitudeDegrees));
+    writeFixedLong(Double.doubleToRawLongBits(longitudeDegrees));
+    writeFixedLong(Double.doubleToRawLongBits(altitudeMeters));
+    writeFixedInt(Float.floatToRawIntBits(speedMps));
+    writeFixedInt(Float.floatToRawIntBits(accuracyMeters));
+    writeSignedVarint(timeMillis);
+  }
+
+  /** Writes an NMEA sentence */
+  public void writeNmea(String sentence, long timestamp) throws IOException {
+    writeByte(GnssBinaryLogFormat.TAG_NMEA);
+    writeString(sentence);
+    writeSignedVarint(timestamp);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    mOutputStream.write(mBuffer, 0, mPosition);
+    mPosition = 0;
+    mOutputStream.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      mOutputStream.close();
+    }
+  }
+
+  private SatelliteState getSatelliteState(int constellationType, int svid) {
+    Integer key = GnssBinaryLogFormat.getSatelliteKey(constellationType, svid);
+    SatelliteState satellite = mSatelliteStates.get(key);
+    if (satellite == null) {
+      satellite = new SatelliteState();
+      mSatelliteStates.put(key, satellite);
+    }
+    return satellite;
+  }
+
+  private void ensureCapacity(int size) throws IOException {
+    if (mPosition + size > mBuffer.length) {
+      mOutputStream.write(mBuffer, 0, mPosition);
+      mPosition = 0;
+    }
+  }
+
+  private void writeByte(int value) throws IOException {
+    ensureCapacity(1);
+    mBuffer[mPosition++] = (byte) value;
+  }
+
+  private void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+    if (length > mBuffer.length) {
+      ensureCapacity(mBuffer.length);
+      mOutputStream.write(bytes, offset, length);
+      return;
+    }
+    ensureCapacity(length);
+    System.arraycopy(bytes, offset, mBuffer, mPosition, length);
+    mPosition += length;
+  }
+
+  private void writeVarint(long value) throws IOException {
+    ensureCapacity(MAX_VALUE_SIZE);
+    while ((value & ~0x7fL) != 0) {
+      mBuffer[mPosition++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    mBuffer[mPosition++] = (byte) value;
+  }
+
+  private void writeSignedVarint(long value) throws IOException {
+    writeVarint(GnssBinaryLogFormat.encodeZigZag(value));
+  }
+
+  private void writeFixedInt(int value) throws IOException {
+    ensureCapacity(4);
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      mBuffer[mPosition++] = (byte) (value >>> shift);
+    }
+  }
+
+  private void writeFixedLong(long value) throws IOException {
+    ensureCapacity(8);
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      mBuffer[mPosition++] = (byte) (value >>> shift);
+    }
+  }
+
+  private void writeDouble(double value, long[] previousBits, int field) throws IOException {
+    writeXoredBits(Double.doubleToRawLongBits(value), previousBits, field);
+  }
+
+  /**
+   * Writes {@code bits} XORed with the previous value of the field: a byte holding the number of
+   * leading zero bytes in its high nibble and of trailing zero bytes in its low nibble, followed by
+   * the remaining bytes.
+   */
+  private void writeXoredBits(long bits, long[] previousBits, int field) throws IOException {
+    long xor = bits ^ previousBits[field];
+    previousBits[field] = bits;
+    ensureCapacity(MAX_VALUE_SIZE);
+    if (xor == 0) {
+      mBuffer[mPosition++] = (byte) (8 << 4);
+      return;
+    }
+    int leadingZeroBytes = Long.numberOfLeadingZeros(xor) / 8;
+    int trailingZeroBytes = Long.numberOfTrailingZeros(xor) / 8;
+    mBuffer[mPosition++] = (byte) ((leadingZeroBytes << 4) | trailingZeroBytes);
+    for (int i = 7 - leadingZeroBytes; i >= trailingZeroBytes; i--) {
+      mBuffer[mPosition++] = (byte) (xor >>> (i * 8));
+    }
+  }
+
+  private void writeString(String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarint(bytes.length);
+    writeBytes(bytes, 0, bytes.length);
+  }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+
+/**
+ * An immutable copy of an {@code android.location.GnssMeasurementsEvent}, decoded once and shared
+ * by all the listeners of the event: the receiver clock, a primitive column per measurement field
+ * and the measurements of each constellation, by decreasing C/N0.
+ *
+ * <p>Measurements are addressed by their index in the event, from 0 to {@link
+ * #getMeasurementCount()} - 1. Instances are created by a {@link Builder}, and can be read from
+ * any thread.
+ */
+public final class GnssEpochSnapshot {
+  /** Largest constellation type with a mask bit, measurements of larger types are not grouped */
+  public static final int MAX_CONSTELLATION_TYPE = 31;
+
+  public final long timeNanos;
+  public final boolean hasLeapSecond;
+  public final int leapSecond;
+  public final boolean hasTimeUncertaintyNanos;
+  public final double timeUncertaintyNanos;
+  public final boolean hasFullBiasNanos;
+  public final long fullBiasNanos;
+  public final boolean hasBiasNanos;
+  public final double biasNanos;
+  public final boolean hasBiasUncertaintyNanos;
+  public final double biasUncertaintyNanos;
+  public final boolean hasDriftNanosPerSecond;
+  public final double driftNanosPerSecond;
+  public final boolean hasDriftUncertaintyNanosPerSecond;
+  public final double driftUncertaintyNanosPerSecond;
+  public final int hardwareClockDiscontinuityCount;
+
+  private final int mMeasurementCount;
+  private final long[] mElapsedRealtimeMillis;
+  private final int[] mSvid;
+  private final double[] mTimeOffsetNanos;
+  private final int[] mState;
+  private final long[] mReceivedSvTimeNanos;
+  private final long[] mReceivedSvTimeUncertaintyNanos;
+  private final double[] mCn0DbHz;
+  private final double[] mPseudorangeRateMetersPerSecond;
+  private final double[] mPseudorangeRateUncertaintyMetersPerSecond;
+  private final int[] mAccumulatedDeltaRangeState;
+  private final double[] mAccumulatedDeltaRangeMeters;
+  private final double[] mAccumulatedDeltaRangeUncertaintyMeters;
+  private final boolean[] mHasCarrierFrequencyHz;
+  private final float[] mCarrierFrequencyHz;
+  private final boolean[] mHasCarrierCycles;
+  private final long[] mCarrierCycles;
+  private final boolean[] mHasCarrierPhase;
+  private final double[] mCarrierPhase;
+  private final boolean[] mHasCarrierPhaseUncertainty;
+  private final double[] mCarrierPhaseUncertainty;
+  private final int[] mMultipathIndicator;
+  private final boolean[] mHasSnrInDb;
+  private final double[] mSnrInDb;
+  private final int[] mConstellationType;
+  private final boolean[] mHasAutomaticGainControlLevelDb;
+  private final double[] mAutomaticGainControlLevelDb;
+
+  /** Bit {@code 1 << type} is set for each constellation type with measurements */
+  private final int mConstellationMask;
+  /**
+   * Indexes of the measurements grouped by constellation type, by decreasing C/N0 in a group. The
+   * group of type t starts at {@code mGroupStart[t]} and ends at {@code mGroupStart[t + 1]}.
+   */
+  private final int[] mGroupedIndexes;
+  private final int[] mGroupStart;
+
+  private GnssEpochSnapshot(Builder builder) {
+    LoggedGnssClock clock = builder.mClock;
+    timeNanos = clock.timeNanos;
+    hasLeapSecond = clock.hasLeapSecond;
+    leapSecond = clock.leapSecond;
+    hasTimeUncertaintyNanos = clock.hasTimeUncertaintyNanos;
+    timeUncertaintyNanos = clock.timeUncertaintyNanos;
+    hasFullBiasNanos = builder.mHasFullBiasNanos;
+    fullBiasNanos = clock.fullBiasNanos;
+    hasBiasNanos = clock.hasBiasNanos;
+    biasNanos = clock.biasNanos;
+    hasBiasUncertaintyNanos = clock.hasBiasUncertaintyNanos;
+    biasUncertaintyNanos = clock.biasUncertaintyNanos;
+    hasDriftNanosPerSecond = clock.hasDriftNanosPerSecond;
+    driftNanosPerSecond = clock.driftNanosPerSecond;
+    hasDriftUncertaintyNanosPerSecond = clock.hasDriftUncertaintyNanosPerSecond;
+    driftUncertaintyNanosPerSecond = clock.driftUncertaintyNanosPerSecond;
+    hardwareClockDiscontinuityCount = clock.hardwareClockDiscontinuityCount;
+
+    int n = builder.mMeasurementCount;
+    mMeasurementCount = n;
+    mElapsedRealtimeMillis = new long[n];
+    mSvid = new int[n];
+    mTimeOffsetNanos = new double[n];
+    mState = new int[n];
+    mReceivedSvTimeNanos = new long[n];
+    mReceivedSvTimeUncertaintyNanos = new long[n];
+    mCn0DbHz = new double[n];
+    mPseudorangeRateMetersPerSecond = new double[n];
+    mPseudorangeRateUncertaintyMetersPerSecond = new double[n];
+    mAccumulatedDeltaRangeState = new int[n];
+    mAccumulatedDeltaRangeMeters = new double[n];
+    mAccumulatedDeltaRangeUncertaintyMeters = new double[n];
+    mHasCarrierFrequencyHz = new boolean[n];
+    mCarrierFrequencyHz = new float[n];
+    mHasCarrierCycles = new boolean[n];
+    mCarrierCycles = new long[n];
+    mHasCarrierPhase = new boolean[n];
+    mCarrierPhase = new double[n];
+    mHasCarrierPhaseUncertainty = new boolean[n];
+    mCarrierPhaseUncertainty = new double[n];
+    mMultipathIndicator = new int[n];
+    mHasSnrInDb = new boolean[n];
+    mSnrInDb = new double[n];
+    mConstellationType = new int[n];
+    mHasAutomaticGainControlLevelDb = new boolean[n];
+    mAutomaticGainControlLevelDb = new double[n];
+    for (int i = 0; i < n; i++) {
+      LoggedGnssMeasurement measurement = builder.mMeasurements[i];
+      mElapsedRealtimeMillis[i] = measurement.elapsedRealtimeMillis;
+      mSvid[i] = measurement.svid;
+      mTimeOffsetNanos[i] = measurement.timeOffsetNanos;
+      mState[i] = measurement.state;
+      mReceivedSvTimeNanos[i] = measurement.receivedSvTimeNanos;
+      mReceivedSvTimeUncertaintyNanos[i] = measurement.receivedSvTimeUncertaintyNanos;
+      mCn0DbHz[i] = measurement.cn0DbHz;
+      mPseudorangeRateMetersPerSecond[i] = measurement.pseudorangeRateMetersPerSecond;
+      mPseudorangeRateUncertaintyMetersPerSecond[i] =
+          measurement.pseudorangeRateUncertaintyMetersPerSecond;
+      mAccumulatedDeltaRangeState[i] = measurement.accumulatedDeltaRangeState;
+      mAccumulatedDeltaRangeMeters[i] = measurement.accumulatedDeltaRangeMeters;
+      mAccumulatedDeltaRangeUncertaintyMeters[i] =
+          measurement.accumulatedDeltaRangeUncertaintyMeters;
+      mHasCarrierFrequencyHz[i] = measurement.hasCarrierFrequencyHz;
+      mCarrierFrequencyHz[i] = measurement.carrierFrequencyHz;
+      mHasCarrierCycles[i] = measurement.hasCarrierCycles;
+      mCarrierCycles[i] = measurement.carrierCycles;
+      mHasCarrierPhase[i] = measurement.hasCarrierPhase;
+      mCarrierPhase[i] = measurement.carrierPhase;
+      mHasCarrierPhaseUncertainty[i] = measurement.hasCarrierPhaseUncertainty;
+      mCarrierPhaseUncertainty[i] = measurement.carrierPhaseUncertainty;
+      mMultipathIndicator[i] = measurement.multipathIndicator;
+      mHasSnrInDb[i] = measurement.hasSnrInDb;
+      mSnrInDb[i] = measurement.snrInDb;
+      mConstellationType[i] = measurement.constellationType;
+      mHasAutomaticGainControlLevelDb[i] = measurement.hasAutomaticGainControlLevelDb;
+      mAutomaticGainControlLevelDb[i] = measurement.automaticGainControlLevelDb;
+    }
+
+    // Counting sort on the constellation type, then insertion sort of each group on C/N0: an
+    // epoch holds a few tens of measurements
+    mGroupStart = new int[MAX_CONSTELLATION_TYPE + 2];
+    int constellationMask = 0;
+    for (int i = 0; i < n; i++) {
+      int type = mConstellationType[i];
+      if (type >= 0 && type <= MAX_CONSTELLATION_TYPE) {
+        constellationMask |= 1 << type;
+        mGroupStart[type + 1]++;
+      }
+    }
+    mConstellationMask = constellationMask;
+    for (int type = 0; type <= MAX_CONSTELLATION_TYPE; type++) {
+      mGroupStart[type + 1] += mGroupStart[type];
+    }
+    mGroupedIndexes = new int[mGroupStart[MAX_CONSTELLATION_TYPE + 1]];
+    int[] groupEnd = Arrays.copyOf(mGroupStart, MAX_CONSTELLATION_TYPE + 1);
+    for (int i = 0; i < n; i++) {
+      int type = mConstellationType[i];
+      if (type < 0 || type > MAX_CONSTELLATION_TYPE) {
+        continue;
+      }
+      int position = groupEnd[type]++;
+      while (position > mGroupStart[type]
+          && mCn0DbHz[mGroupedIndexes[position - 1]] < mCn0DbHz[i]) {
+        mGroupedIndexes[position] = mGroupedIndexes[position - 1];
+        position--;
+      }
+      mGroupedIndexes[position] = i;
+    }
+  }
+
+  /** Returns {@code timeNanos - fullBiasNanos}, the GPS time of the epoch used by the solver. */
+  public long getGpsTimeNanos() {
+    return timeNanos - fullBiasNanos;
+  }
+
+  public int getMeasurementCount() {
+    return mMeasurementCount;
+  }
+
+  /**
+   * Returns a mask with bit {@code 1 << type} set for each constellation type with measurements,
+   * up to {@link #MAX_CONSTELLATION_TYPE}.
+   */
+  public int getConstellationMask() {
+    return mConstellationMask;
+  }
+
+  /** Returns the number of measurements of {@code constellationType}. */
+  public int getMeasurementCount(int constellationType) {
+    if (constellationType < 0 || constellationType > MAX_CONSTELLATION_TYPE) {
+      return 0;
+    }
+    return mGroupStart[constellationType + 1] - mGroupStart[constellationType];
+  }
+
+  /**
+   * Returns the index of the {@code rank}-th measurement of {@code constellationType}, the
+   * measurements of a constellation being ranked by decreasing C/N0.
+   */
+  public int getMeasurementIndex(int constellationType, int rank) {
+    Preconditions.checkElementIndex(rank, getMeasurementCount(constellationType));
+    return mGroupedIndexes[mGroupStart[constellationType] + rank];
+  }
+
+  /** Copies the receiver clock to {@code clock}, e.g. to log it. */
+  public void copyClockTo(LoggedGnssClock clock) {
+    clock.timeNanos = timeNanos;
+    clock.hasLeapSecond = hasLeapSecond;
+    clock.leapSecond = leapSecond;
+    clock.hasTimeUncertaintyNanos = hasTimeUncertaintyNanos;
+    clock.timeUncertaintyNanos = timeUncertaintyNanos;
+    clock.fullBiasNanos = fullBiasNanos;
+    clock.hasBiasNanos = hasBiasNanos;
+    clock.biasNanos = biasNanos;
+    clock.hasBiasUncertaintyNanos = hasBiasUncertaintyNanos;
+    clock.biasUncertaintyNanos = biasUncertaintyNanos;
+    clock.hasDriftNanosPerSecond = hasDriftNanosPerSecond;
+    clock.driftNanosPerSecond = driftNanosPerSecond;
+    clock.hasDriftUncertaintyNanosPerSecond = hasDriftUncertaintyNanosPerSecond;
+    clock.driftUncertaintyNanosPerSecond = driftUncertaintyNanosPerSecond;
+    clock.hardwareClockDiscontinuityCount = hardwareClockDiscontinuityCount;
+  }
+
+  /** Copies all the fields of measurement {@code index} to {@code measurement}. */
+  public void copyMeasurementTo(int index, LoggedGnssMeasurement measurement) {
+    Preconditions.checkElementIndex(index, mMeasurementCount);
+    measurement.elapsedRealtimeMillis = mElapsedRealtimeMillis[index];
+    measurement.svid = mSvid[index];
+    measurement.timeOffsetNanos = mTimeOffsetNanos[index];
+    measurement.state = mState[index];
+    measurement.receivedSvTimeNanos = mReceivedSvTimeNanos[index];
+    measurement.receivedSvTimeUncertaintyNanos = mReceivedSvTimeUncertaintyNanos[index];
+    measurement.cn0DbHz = mCn0DbHz[index];
+    measurement.pseudorangeRateMetersPerSecond = mPseudorangeRateMetersPerSecond[index];
+    measurement.pseudorangeRateUncertaintyMetersPerSecond =
+        mPseudorangeRateUncertaintyMetersPerSecond[index];
+    measurement.accumulatedDeltaRangeState = mAccumulatedDeltaRangeState[index];
+    measurement.accumulatedDeltaRangeMeters = mAccumulatedDeltaRangeMeters[index];
+    measurement.accumulatedDeltaRangeUncertaintyMeters =
+        mAccumulatedDeltaRangeUncertaintyMeters[index];
+    measurement.hasCarrierFrequencyHz = mHasCarrierFrequencyHz[index];
+    measurement.carrierFrequencyHz = mCarrierFrequencyHz[index];
+    measurement.hasCarrierCycles = mHasCarrierCycles[index];
+    measurement.carrierCycles = mCarrierCycles[index];
+    measurement.hasCarrierPhase = mHasCarrierPhase[index];
+    measurement.carrierPhase = mCarrierPhase[index];
+    measurement.hasCarrierPhaseUncertainty = mHasCarrierPhaseUncertainty[index];
+    measurement.carrierPhaseUncertainty = mCarrierPhaseUncertainty[index];
+    measurement.multipathIndicator = mMultipathIndicator[index];
+    measurement.hasSnrInDb = mHasSnrInDb[index];
+    measurement.snrInDb = mSnrInDb[index];
+    measurement.constellationType = mConstellationType[index];
+    measurement.hasAutomaticGainControlLevelDb = mHasAutomaticGainControlLevelDb[index];
+    measurement.automaticGainControlLevelDb = mAutomaticGainControlLevelDb[index];
+  }
+
+  /** Value of {@code android.os.SystemClock.elapsedRealtime()} when the measurement was decoded */
+  public long getElapsedRealtimeMillis(int index) {
+    return mElapsedRealtimeMillis[index];
+  }
+
+  public int getSvid(int index) {
+    return mSvid[index];
+  }
+
+  public int getConstellationType(int index) {
+    return mConstellationType[index];
+  }
+
+  public int getState(int index) {
+    return mState[index];
+  }
+
+  public long getReceivedSvTimeNanos(int index) {
+    return mReceivedSvTimeNanos[index];
+  }
+
+  public double getCn0DbHz(int index) {
+    return mCn0DbHz[index];
+  }
+
+  public double getPseudorangeRateMetersPerSecond(int index) {
+    return mPseudorangeRateMetersPerSecond[index];
+  }
+
+  public double getPseudorangeRateUncertaintyMetersPerSecond(int index) {
+    return mPseudorangeRateUncertaintyMetersPerSecond[index];
+  }
+
+  public int getAccumulatedDeltaRangeState(int index) {
+    return mAccumulatedDeltaRangeState[index];
+  }
+
+  public double getAccumulatedDeltaRangeMeters(int index) {
+    return mAccumulatedDeltaRangeMeters[index];
+  }
+
+  public double getAccumulatedDeltaRangeUncertaintyMeters(int index) {
+    return mAccumulatedDeltaRangeUncertaintyMeters[index];
+  }
+
+  /**
+   * Collects the fields of an epoch and creates its {@link GnssEpochSnapshot}. The builder reuses
+   * its clock and measurement slots from one epoch to the next, it is not thread safe.
+   */
+  public static final class Builder {
+    private final LoggedGnssClock mClock = new LoggedGnssClock();
+    private boolean mHasFullBiasNanos;
+    private LoggedGnssMeasurement[] mMeasurements = new LoggedGnssMeasurement[0];
+    private int mMeasurementCount;
+
+    /** Returns the clock of the next epoch, to fill. */
+    public LoggedGnssClock getClock() {
+      return mClock;
+    }
+
+    /** The full bias is the only clock field without a flag in {@link LoggedGnssClock}. */
+    public void setHasFullBiasNanos(boolean hasFullBiasNanos) {
+      mHasFullBiasNanos = hasFullBiasNanos;
+    }
+
+    /**
+     * Returns the slot of the next measurement of the epoch, to fill. The slot still holds the
+     * fields of an older measurement.
+     */
+    public LoggedGnssMeasurement addMeasurement() {
+      if (mMeasurementCount == mMeasurements.length) {
+        int capacity = Math.max(16, 2 * mMeasurements.length);
+        mMeasurements = Arrays.copyOf(mMeasurements, capacity);
+        for (int i = mMeasurementCount; i < capacity; i++) {
+          mMeasurements[i] = new LoggedGnssMeasurement();
+        }
+      }
+      return mMeasurements[mMeasurementCount++];
+    }
+
+    /** Creates the snapshot of the epoch, and starts the next one. */
+    public GnssEpochSnapshot build() {
+      GnssEpochSnapshot snapshot = new GnssEpochSnapshot(this);
+      mMeasurementCount = 0;
+      return snapshot;
+    }
+  }
+}
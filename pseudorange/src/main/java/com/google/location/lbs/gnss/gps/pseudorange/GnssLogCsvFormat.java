@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Formats the records of the GnssLogger text log, character for character as written by its
+ * {@code DefaultFileLogger}, one line at a time and without allocating.
+ *
+ * <p>Integers and floating point values are appended with the {@link StringBuilder} primitive
+ * appends, which produce the text of {@link Double#toString(double)} and {@link
+ * Float#toString(float)} without creating a string. The {@code %f} fields of the {@code Fix}
+ * records are rounded from the same digits, the way {@link java.util.Formatter} does. A line is
+ * written through a reused {@code char[]}. Instances are not thread safe, each writer thread uses
+ * its own.
+ */
+public final class GnssLogCsvFormat {
+  private static final char RECORD_DELIMITER = ',';
+  private static final int INITIAL_LINE_CAPACITY = 512;
+  /** Number of decimals of the {@code %f} conversion */
+  private static final int FIXED_POINT_PRECISION = 6;
+  /** More than the 17 significant digits of a double */
+  private static final int MAX_DIGITS = 32;
+
+  private final StringBuilder mLine = new StringBuilder(INITIAL_LINE_CAPACITY);
+  private final StringBuilder mNumber = new StringBuilder(MAX_DIGITS);
+  private final char[] mDigits = new char[MAX_DIGITS];
+  private char[] mChars = new char[INITIAL_LINE_CAPACITY];
+
+  /**
+   * Replaces the line with the {@code Raw} record of {@code measurement} received at {@code clock}
+   */
+  public void formatRawRecord(LoggedGnssClock clock, LoggedGnssMeasurement measurement) {
+    StringBuilder line = mLine;
+    line.setLength(0);
+    line.append("Raw");
+    line.append(RECORD_DELIMITER).append(measurement.elapsedRealtimeMillis);
+    line.append(RECORD_DELIMITER).append(clock.timeNanos);
+    line.append(RECORD_DELIMITER);
+    if (clock.hasLeapSecond) {
+      line.append(clock.leapSecond);
+    }
+    line.append(RECORD_DELIMITER);
+    if (clock.hasTimeUncertaintyNanos) {
+      line.append(clock.timeUncertaintyNanos);
+    }
+    line.append(RECORD_DELIMITER).append(clock.fullBiasNanos);
+    line.append(RECORD_DELIMITER);
+    if (clock.hasBiasNanos) {
+      line.append(clock.biasNanos);
+    }
+    line.append(RECORD_DELIMITER);
+    if (clock.hasBiasUncertaintyNanos) {
+      line.append(clock.biasUncertaintyNanos);
+    }
+    line.append(RECORD_DELIMITER);
+    if (clock.hasDriftNanosPerSecond) {
+      line.append(clock.driftNanosPerSecond);
+    }
+    line.append(RECORD_DELIMITER);
+    if (clock.hasDriftUncertaintyNanosPerSecond) {
+      line.append(clock.driftUncertaintyNanosPerSecond);
+    }
+    line.append(RECORD_DELIMITER).append(clock.hardwareClockDiscontinuityCount);
+
+    line.append(RECORD_DELIMITER).append(measurement.svid);
+    line.append(RECORD_DELIMITER).append(measurement.timeOffsetNanos);
+    line.append(RECORD_DELIMITER).append(measurement.state);
+    line.append(RECORD_DELIMITER).append(measurement.receivedSvTimeNanos);
+    line.append(RECORD_DELIMITER).append(measurement.receivedSvTimeUncertaintyNanos);
+    line.append(RECORD_DELIMITER).append(measurement.cn0DbHz);
+    line.append(RECORD_DELIMITER).append(measurement.pseudorangeRateMetersPerSecond);
+    line.append(RECORD_DELIMITER).append(measurement.pseudorangeRateUncertaintyMetersPerSecond);
+    line.append(RECORD_DELIMITER).append(measurement.accumulatedDeltaRangeState);
+    line.append(RECORD_DELIMITER).append(measurement.accumulatedDeltaRangeMeters);
+    line.append(RECORD_DELIMITER).append(measurement.accumulatedDeltaRangeUncertaintyMeters);
+    line.append(RECORD_DELIMITER);
+    if (measurement.hasCarrierFrequencyHz) {
+      line.append(measurement.carrierFrequencyHz);
+    }
+    line.append(RECORD_DELIMITER);
+    if (measurement.hasCarrierCycles) {
+      line.append(measurement.carrierCycles);
+    }
+    line.append(RECORD_DELIMITER);
+    if (measurement.hasCarrierPhase) {
+      line.append(measurement.carrierPhase);
+    }
+    line.append(RECORD_DELIMITER);
+    if (measurement.hasCarrierPhaseUncertainty) {
+      line.append(measurement.carrierPhaseUncertainty);
+    }
+    line.append(RECORD_DELIMITER).append(measurement.multipathIndicator);
+    line.append(RECORD_DELIMITER);
+    if (measurement.hasSnrInDb) {
+      line.append(measurement.snrInDb);
+    }
+    line.append(RECORD_DELIMITER).append(measurement.constellationType);
+    line.append(RECORD_DELIMITER);
+    if (measurement.hasAutomaticGainControlLevelDb) {
+      line.append(measurement.automaticGainControlLevelDb);
+    }
+    // The carrier frequency is written a second time, as the last column of the header says
+    line.append(RECORD_DELIMITER);
+    if (measurement.hasCarrierFrequencyHz) {
+      line.append(measurement.carrierFrequencyHz);
+    }
+  }
+
+  /**
+   * Replaces the line with the {@code Nav} record of a navigation message of the first {@code
+   * length} bytes of {@code data}
+   */
+  public void formatNavRecord(
+      int svid, int type, int status, int messageId, int subMessageId, byte[] data, int length) {
+    StringBuilder line = mLine;
+    line.setLength(0);
+    line.append("Nav");
+    line.append(RECORD_DELIMITER).append(svid);
+    line.append(RECORD_DELIMITER).append(type);
+    line.append(RECORD_DELIMITER).append(status);
+    line.append(RECORD_DELIMITER).append(messageId);
+    line.append(RECORD_DELIMITER).append(subMessageId);
+    for (int i = 0; i < length; i++) {
+      line.append(RECORD_DELIMITER).append(data[i]);
+    }
+  }
+
+  /**
+   * Replaces the line with the {@code Fix} record of a location, the text of {@code
+   * String.format(Locale.US, "Fix,%s,%f,%f,%f,%f,%f,%d", ...)}
+   */
+  public void formatFixRecord(
+      String provider,
+      double latitudeDegrees,
+      double longitudeDegrees,
+      double altitudeMeters,
+      float speedMps,
+      float accuracyMeters,
+      long timeMillis) {
+    StringBuilder line = mLine;
+    line.setLength(0);
+    line.append("Fix");
+    line.append(RECORD_DELIMITER).append(provider);
+    line.append(RECORD_DELIMITER);
+    appendFixedPoint(latitudeDegrees);
+    line.append(RECORD_DELIMITER);
+    appendFixedPoint(longitudeDegrees);
+    line.append(RECORD_DELIMITER);
+    appendFixedPoint(altitudeMeters);
+    // The formatter widens the float arguments to double
+    line.append(RECORD_DELIMITER);
+    appendFixedPoint(speedMps);
+    line.append(RECORD_DELIMITER);
+    appendFixedPoint(accuracyMeters);
+    line.append(RECORD_DELIMITER).append(timeMillis);
+  }
+
+  /** Replaces the line with the {@code NMEA} record of a sentence */
+  public void formatNmeaRecord(String sentence, long timestamp) {
+    StringBuilder line = mLine;
+    line.setLength(0);
+    line.append("NMEA");
+    line.append(RECORD_DELIMITER).append(sentence);
+    line.append(RECORD_DELIMITER).append(timestamp);
+  }
+
+  /** Empties the line, to be built with the {@code appendValue} methods */
+  public void clear() {
+    mLine.setLength(0);
+  }
+
+  /** Appends a value to the line, after a delimiter unless it is the first one */
+  public void appendValue(long value) {
+    appendDelimiter();
+    mLine.append(value);
+  }
+
+  /** Appends a value to the line as {@link Double#toString(double)} does */
+  public void appendValue(double value) {
+    appendDelimiter();
+    mLine.append(value);
+  }
+
+  /** Appends a value to the line as {@link Float#toString(float)} does */
+  public void appendValue(float value) {
+    appendDelimiter();
+    mLine.append(value);
+  }
+
+  /** Returns the current line, without line separator. */
+  public CharSequence getLine() {
+    return mLine;
+  }
+
+  /** Writes the current line, without line separator, to {@code writer}. */
+  public void writeTo(Writer writer) throws IOException {
+    int length = mLine.length();
+    if (mChars.length < length) {
+      mChars = new char[Math.max(length, 2 * mChars.length)];
+    }
+    mLine.getChars(0, length, mChars, 0);
+    writer.write(mChars, 0, length);
+  }
+
+  private void appendDelimiter() {
+    if (mLine.length() > 0) {
+      mLine.append(RECORD_DELIMITER);
+    }
+  }
+
+  /**
+   * Appends {@code value} as the {@code %f} conversion of {@link java.util.Formatter} does: the
+   * shortest decimal digits of the value, rounded half up to {@link #FIXED_POINT_PRECISION}
+   * decimals.
+   */
+  private void appendFixedPoint(double value) {
+    StringBuilder line = mLine;
+    if (Double.isNaN(value)) {
+      line.append("NaN");
+      return;
+    }
+    if (Double.compare(value, 0.0) < 0) {
+      line.append('-');
+      value = -value;
+    }
+    if (Double.isInfinite(value)) {
+      line.append("Infinity");
+      return;
+    }
+
+    // The value is 0.d1d2d3... x 10^decimalExponent, d1 not being 0
+    StringBuilder number = mNumber;
+    number.setLength(0);
+    number.append(value);
+    char[] digits = mDigits;
+    int digitCount = 0;
+    int integerDigitCount = 0;
+    int leadingZeroCount = 0;
+    boolean fraction = false;
+    int exponent = 0;
+    for (int i = 0; i < number.length(); i++) {
+      char c = number.charAt(i);
+      if (c == 'E') {
+        exponent = parseExponent(number, i + 1);
+        break;
+      }
+      if (c == '.') {
+        fraction = true;
+        continue;
+      }
+      if (!fraction) {
+        integerDigitCount++;
+      }
+      if (digitCount == 0 && c == '0') {
+        leadingZeroCount++;
+      } else {
+        digits[digitCount++] = c;
+      }
+    }
+    int decimalExponent = integerDigitCount - leadingZeroCount + exponent;
+
+    // Rounds half up to the digits kept
+    int keptDigitCount = decimalExponent + FIXED_POINT_PRECISION;
+    if (keptDigitCount < 0 || digitCount == 0) {
+      digitCount = 0;
+    } else if (keptDigitCount < digitCount) {
+      boolean roundUp = digits[keptDigitCount] >= '5';
+      digitCount = keptDigitCount;
+      if (roundUp) {
+        int i = digitCount - 1;
+        while (i >= 0 && digits[i] == '9') {
+          i--;
+        }
+        if (i < 0) {
+          // Carry out of the first digit, 99.9 becoming 100
+          digits[0] = '1';
+          digitCount = 1;
+          decimalExponent++;
+        } else {
+          digits[i]++;
+          digitCount = i + 1;
+        }
+      }
+    }
+
+    if (digitCount == 0 || decimalExponent <= 0) {
+      line.append('0');
+    } else {
+      for (int i = 0; i < decimalExponent; i++) {
+        line.append(i < digitCount ? digits[i] : '0');
+      }
+    }
+    line.append('.');
+    for (int i = 0; i < FIXED_POINT_PRECISION; i++) {
+      int digitIndex = decimalExponent + i;
+      line.append(
+          digitCount > 0 && digitIndex >= 0 && digitIndex < digitCount ? digits[digitIndex] : '0');
+    }
+  }
+
+  private static int parseExponent(CharSequence text, int start) {
+    boolean negative = text.charAt(start) == '-';
+    int exponent = 0;
+    for (int i = negative ? start + 1 : start; i < text.length(); i++) {
+      exponent = 10 * exponent + (text.charAt(i) - '0');
+    }
+    return negative ? -exponent : exponent;
+  }
+}
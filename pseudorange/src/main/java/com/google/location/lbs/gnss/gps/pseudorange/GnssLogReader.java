@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams the {@code Raw}, {@code Nav} and {@code Fix} records of a log written by the GnssLogger
+ * {@code DefaultFileLogger}. The file is read line by line, only the measurements of the current
+ * epoch are kept in memory.
+ *
+ * <p>Consecutive {@code Raw} lines sharing the same {@code TimeNanos} are grouped into one
+ * {@link RawGnssEpoch}. Records are reported in file order, an epoch being reported as soon as a
+ * line that does not belong to it is read. Comments, {@code NMEA} lines and unknown records are
+ * skipped, malformed records are counted and skipped.
+ */
+public final class GnssLogReader {
+
+  /** Receives the records of a log in file order. */
+  public interface Callback {
+    void onRawEpoch(RawGnssEpoch epoch) throws Exception;
+
+    void onNavigationMessage(
+        int svid, int type, int status, int messageId, int subMessageId, byte[] data)
+        throws Exception;
+
+    void onFix(
+        String provider,
+        double latitudeDegrees,
+        double longitudeDegrees,
+        double altitudeMeters,
+        double speedMps,
+        double accuracyMeters,
+        long utcTimeMillis)
+        throws Exception;
+  }
+
+  private static final String COMMENT_START = "#";
+  private static final String RECORD_DELIMITER = ",";
+  private static final String RAW_RECORD = "Raw";
+  private static final String NAV_RECORD = "Nav";
+  private static final String FIX_RECORD = "Fix";
+
+  // Columns of the Raw records
+  private static final int RAW_ELAPSED_REALTIME_MILLIS = 1;
+  private static final int RAW_TIME_NANOS = 2;
+  private static final int RAW_FULL_BIAS_NANOS = 5;
+  private static final int RAW_BIAS_NANOS = 6;
+  private static final int RAW_SVID = 11;
+  private static final int RAW_STATE = 13;
+  private static final int RAW_RECEIVED_SV_TIME_NANOS = 14;
+  private static final int RAW_CN0_DB_HZ = 16;
+  private static final int RAW_PSEUDORANGE_RATE_MPS = 17;
+  private static final int RAW_PSEUDORANGE_RATE_UNCERTAINTY_MPS = 18;
+  private static final int RAW_ACCUMULATED_DELTA_RANGE_STATE = 19;
+  private static final int RAW_ACCUMULATED_DELTA_RANGE_METERS = 20;
+  private static final int RAW_ACCUMULATED_DELTA_RANGE_UNCERTAINTY_METERS = 21;
+  private static final int RAW_CONSTELLATION_TYPE = 28;
+  private static final int RAW_MINIMUM_FIELD_COUNT = RAW_CONSTELLATION_TYPE + 1;
+
+  // Columns of the Nav records, the data bytes follow the sub-message id
+  private static final int NAV_SVID = 1;
+  private static final int NAV_TYPE = 2;
+  private static final int NAV_STATUS = 3;
+  private static final int NAV_MESSAGE_ID = 4;
+  private static final int NAV_SUB_MESSAGE_ID = 5;
+  private static final int NAV_FIRST_DATA_BYTE = 6;
+
+  // Columns of the Fix records
+  private static final int FIX_PROVIDER = 1;
+  private static final int FIX_LATITUDE = 2;
+  private static final int FIX_LONGITUDE = 3;
+  private static final int FIX_ALTITUDE = 4;
+  private static final int FIX_SPEED = 5;
+  private static final int FIX_ACCURACY = 6;
+  private static final int FIX_TIME_MILLIS = 7;
+  private static final int FIX_FIELD_COUNT = FIX_TIME_MILLIS + 1;
+
+  private final BufferedReader mReader;
+  private final List<RawGnssMeasurement> mPendingMeasurements = new ArrayList<>();
+  private long mPendingElapsedRealtimeMillis;
+  private long mPendingTimeNanos;
+  private long mPendingFullBiasNanos;
+  private double mPendingBiasNanos;
+  private int mMalformedLineCount;
+
+  public GnssLogReader(Reader reader) {
+    mReader =
+        reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+  }
+
+  /** Reads the log until its end, reporting every record to {@code callback}. */
+  public void read(Callback callback) throws Exception {
+    String line;
+    while ((line = mReader.readLine()) != null) {
+      if (line.isEmpty() || line.startsWith(COMMENT_START)) {
+        continue;
+      }
+      String[] fields = line.split(RECORD_DELIMITER, -1);
+      try {
+        switch (fields[0]) {
+          case RAW_RECORD:
+            readRawRecord(fields, callback);
+            break;
+          case NAV_RECORD:
+            flushPendingEpoch(callback);
+            readNavRecord(fields, callback);
+            break;
+          case FIX_RECORD:
+            flushPendingEpoch(callback);
+            readFixRecord(fields, callback);
+            break;
+          default:
+            break;
+        }
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        mMalformedLineCount++;
+      }
+    }
+    flushPendingEpoch(callback);
+  }
+
+  /** Closes the underlying reader */
+  public void close() throws IOException {
+    mReader.close();
+  }
+
+  /** Returns the number of records skipped because they could not be parsed */
+  public int getMalformedLineCount() {
+    return mMalformedLineCount;
+  }
+
+  private void readRawRecord(String[] fields, Callback callback) throws Exception {
+    if (fields.length < RAW_MINIMUM_FIELD_COUNT) {
+      throw new ArrayIndexOutOfBoundsException(fields.length);
+    }
+    long timeNanos = Long.parseLong(fields[RAW_TIME_NANOS]);
+    RawGnssMeasurement measurement =
+        new RawGnssMeasurement(
+            Integer.parseInt(fields[RAW_SVID]),
+            Integer.parseInt(fields[RAW_CONSTELLATION_TYPE]),
+            Integer.parseInt(fields[RAW_STATE]),
+            Long.parseLong(fields[RAW_RECEIVED_SV_TIME_NANOS]),
+            Double.parseDouble(fields[RAW_CN0_DB_HZ]),
+            Double.parseDouble(fields[RAW_PSEUDORANGE_RATE_MPS]),
+            Double.parseDouble(fields[RAW_PSEUDORANGE_RATE_UNCERTAINTY_MPS]),
+            Integer.parseInt(fields[RAW_ACCUMULATED_DELTA_RANGE_STATE]),
+            Double.parseDouble(fields[RAW_ACCUMULATED_DELTA_RANGE_METERS]),
+            Double.parseDouble(fields[RAW_ACCUMULATED_DELTA_RANGE_UNCERTAINTY_METERS]));
+    long elapsedRealtimeMillis = Long.parseLong(fields[RAW_ELAPSED_REALTIME_MILLIS]);
+    long fullBiasNanos = Long.parseLong(fields[RAW_FULL_BIAS_NANOS]);
+    double biasNanos =
+        fields[RAW_BIAS_NANOS].isEmpty() ? 0.0 : Double.parseDouble(fields[RAW_BIAS_NANOS]);
+
+    if (!mPendingMeasurements.isEmpty() && timeNanos != mPendingTimeNanos) {
+      flushPendingEpoch(callback);
+    }
+    if (mPendingMeasurements.isEmpty()) {
+      mPendingElapsedRealtimeMillis = elapsedRealtimeMillis;
+      mPendingTimeNanos = timeNanos;
+      mPendingFullBiasNanos = fullBiasNanos;
+      mPendingBiasNanos = biasNanos;
+    }
+    mPendingMeasurements.add(measurement);
+  }
+
+  private void readNavRecord(String[] fields, Callback callback) throws Exception {
+    byte[] data = new byte[Math.max(0, fields.length - NAV_FIRST_DATA_BYTE)];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = Byte.parseByte(fields[NAV_FIRST_DATA_BYTE + i]);
+    }
+    callback.onNavigationMessage(
+        Integer.parseInt(fields[NAV_SVID]),
+        Integer.parseInt(fields[NAV_TYPE]),
+        Integer.parseInt(fields[NAV_STATUS]),
+        Integer.parseInt(fields[NAV_MESSAGE_ID]),
+        Integer.parseInt(fields[NAV_SUB_MESSAGE_ID]),
+        data);
+  }
+
+  private void readFixRecord(String[] fields, Callback callback) throws Exception {
+    if (fields.length < FIX_FIELD_COUNT) {
+      throw new ArrayIndexOutOfBoundsException(fields.length);
+    }
+    callback.onFix(
+        fields[FIX_PROVIDER],
+        Double.parseDouble(fields[FIX_LATITUDE]),
+        Double.parseDouble(fields[FIX_LONGITUDE]),
+        Double.parseDouble(fields[FIX_ALTITUDE]),
+        Double.parseDouble(fields[FIX_SPEED]),
+        Double.parseDouble(fields[FIX_ACCURACY]),
+        Long.parseLong(fields[FIX_TIME_MILLIS]));
+  }
+
+  private void flushPendingEpoch(Callback callback) throws Exception {
+    if (mPendingMeasurements.isEmpty()) {
+      return;
+    }
+    RawGnssEpoch epoch =
+        new RawGnssEpoch(
+            mPendingElapsedRealtimeMillis,
+            mPendingTimeNanos,
+            mPendingFullBiasNanos,
+            mPendingBiasNanos,
+            mPendingMeasurements);
+    mPendingMeasurements.clear();
+    callback.onRawEpoch(epoch);
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a log written by the GnssLogger {@code DefaultFileLogger} through a
+ * {@link PseudorangePositionVelocityFromRealTimeEvents}, without any dependency on the Android
+ * location APIs, so that recorded sessions can be processed on a plain JVM or in unit tests.
+ *
+ * <p>The navigation messages are passed to the solver as they are read, and the first fix of the
+ * log is used as the reference position, the same way the GnssLogger uses the network location.
+ * The solutions are obtained by registering a {@link PositionVelocitySolutionListener} on the
+ * solver. A solver created with {@link
+ * PseudorangePositionVelocityFromRealTimeEvents#createOffline()} only uses the {@code Nav} records
+ * of the log, so that a replay does not depend on the assistance data of the day it runs, and a
+ * solver built with a {@link SuplAssistanceManager} gets its missing navigation messages from that
+ * source instead.
+ *
+ * <p>Epochs are fed to the solver either at the rate they were recorded, at a multiple of that
+ * rate or as fast as possible. The decoded times of week of the first epochs can be masked, to
+ * replay the start of a session as if the receiver had not decoded them yet. The class is not
+ * thread safe.
+ */
+public class GnssLogReplayEngine {
+
+  /** How fast the epochs of a log are fed to the solver. */
+  public enum Pacing {
+    /** At the rate at which they were recorded */
+    REAL_TIME,
+    /** At the recorded rate multiplied by the speed factor of the engine */
+    ACCELERATED,
+    /** Without waiting between epochs */
+    AS_FAST_AS_POSSIBLE
+  }
+
+  /** Counters of a replay, available once it completed. */
+  public static final class ReplayStatistics {
+    public final int epochCount;
+    public final int solutionCount;
+    public final int navigationMessageCount;
+    public final int fixCount;
+    public final int malformedLineCount;
+    public final long elapsedNanos;
+
+    ReplayStatistics(
+        int epochCount,
+        int solutionCount,
+        int navigationMessageCount,
+        int fixCount,
+        int malformedLineCount,
+        long elapsedNanos) {
+      this.epochCount = epochCount;
+      this.solutionCount = solutionCount;
+      this.navigationMessageCount = navigationMessageCount;
+      this.fixCount = fixCount;
+      this.malformedLineCount = malformedLineCount;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /** Returns the number of epochs processed per second of wall clock time */
+    public double getEpochsPerSecond() {
+      return elapsedNanos == 0 ? 0.0 : epochCount / (elapsedNanos * 1.0e-9);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "ReplayStatistics[epochs=%d, solutions=%d, navigationMessages=%d, fixes=%d, "
+              + "malformedLines=%d, elapsedMillis=%d, epochsPerSecond=%.1f]",
+          epochCount,
+          solutionCount,
+          navigationMessageCount,
+          fixCount,
+          malformedLineCount,
+          TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+          getEpochsPerSecond());
+    }
+  }
+
+  private static final int GPS_L1CA_NAVIGATION_MESSAGE_TYPE = 0x0101;
+  /** The {@code android.location.GnssMeasurement#STATE_CODE_LOCK} state */
+  private static final int STATE_CODE_LOCK = 1;
+  private static final long NANOS_PER_MILLISECOND = 1000000L;
+
+  private final PseudorangePositionVelocityFromRealTimeEvents mSolver;
+  private final Pacing mPacing;
+  private final double mSpeedFactor;
+  private long mTimeOfWeekMaskingMillis = 0;
+
+  private final ReplayCallback mReplayCallback = new ReplayCallback();
+
+  /**
+   * Creates an engine feeding {@code solver}.
+   *
+   * @param speedFactor How many times faster than recorded the epochs are replayed, only used with
+   *     {@link Pacing#ACCELERATED}
+   */
+  public GnssLogReplayEngine(
+      PseudorangePositionVelocityFromRealTimeEvents solver, Pacing pacing, double speedFactor) {
+    Preconditions.checkArgument(
+        pacing != Pacing.ACCELERATED || speedFactor > 0, "Invalid speed factor: " + speedFactor);
+    mSolver = solver;
+    mPacing = pacing;
+    mSpeedFactor = pacing == Pacing.ACCELERATED ? speedFactor : 1.0;
+  }
+
+  /** Creates an engine feeding {@code solver} as fast as possible. */
+  public GnssLogReplayEngine(PseudorangePositionVelocityFromRealTimeEvents solver) {
+    this(solver, Pacing.AS_FAST_AS_POSSIBLE, 1.0);
+  }
+
+  /**
+   * Masks the decoded times of week of the epochs logged in the first {@code millis} milliseconds
+   * of a replay: their measurements only keep the code lock state and the submillisecond part of
+   * their received satellite time, as before the receiver decodes the times of week.
+   */
+  public void setTimeOfWeekMaskingMillis(long millis) {
+    Preconditions.checkArgument(millis >= 0, "Invalid masking duration: " + millis);
+    mTimeOfWeekMaskingMillis = millis;
+  }
+
+  /**
+   * Replays the whole log read from {@code logReader}, which is left open, and returns the
+   * statistics of the replay.
+   */
+  public ReplayStatistics replay(Reader logReader) throws Exception {
+    GnssLogReader gnssLogReader = new GnssLogReader(logReader);
+    mReplayCallback.reset();
+    mSolver.addPositionVelocitySolutionListener(mReplayCallback);
+    long startNanos = System.nanoTime();
+    try {
+      gnssLogReader.read(mReplayCallback);
+    } finally {
+      mSolver.removePositionVelocitySolutionListener(mReplayCallback);
+    }
+    return new ReplayStatistics(
+        mReplayCallback.mEpochCount,
+        mReplayCallback.mSolutionCount,
+        mReplayCallback.mNavigationMessageCount,
+        mReplayCallback.mFixCount,
+        gnssLogReader.getMalformedLineCount(),
+        System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Replays the epochs {@code fromEpoch} to {@code toEpoch}, excluded, of an indexed log, once the
+   * navigation messages logged before {@code fromEpoch} were fed to the solver. Those messages are
+   * not counted in the statistics.
+   */
+  public ReplayStatistics replay(MappedGnssLog log, int fromEpoch, int toEpoch)
+      throws Exception {
+    new GnssLogReader(log.openNavigationMessages(fromEpoch)).read(mReplayCallback);
+    return replay(log.openWindow(fromEpoch, toEpoch));
+  }
+
+  /** Feeds the records to the solver and counts them. */
+  private class ReplayCallback implements GnssLogReader.Callback, PositionVelocitySolutionListener {
+    private long mReplayStartNanos;
+    private long mFirstEpochElapsedRealtimeMillis;
+    private int mEpochCount;
+    private int mSolutionCount;
+    private int mNavigationMessageCount;
+    private int mFixCount;
+    private boolean mHasReferencePosition;
+
+    void reset() {
+      mEpochCount = 0;
+      mSolutionCount = 0;
+      mNavigationMessageCount = 0;
+      mFixCount = 0;
+      mHasReferencePosition = false;
+    }
+
+    @Override
+    public void onRawEpoch(RawGnssEpoch epoch) throws Exception {
+      if (mEpochCount == 0) {
+        mFirstEpochElapsedRealtimeMillis = epoch.elapsedRealtimeMillis;
+        mReplayStartNanos = System.nanoTime();
+      } else if (mPacing != Pacing.AS_FAST_AS_POSSIBLE) {
+        waitUntilReplayTime(epoch.elapsedRealtimeMillis);
+      }
+      mEpochCount++;
+      if (epoch.elapsedRealtimeMillis - mFirstEpochElapsedRealtimeMillis
+          < mTimeOfWeekMaskingMillis) {
+        epoch = maskTimesOfWeek(epoch);
+      }
+      mSolver.computePositionVelocitySolutionsFromRawMeas(epoch);
+    }
+
+    private RawGnssEpoch maskTimesOfWeek(RawGnssEpoch epoch) {
+      List<RawGnssMeasurement> measurements = new ArrayList<>(epoch.measurements.size());
+      for (RawGnssMeasurement measurement : epoch.measurements) {
+        measurements.add(
+            new RawGnssMeasurement(
+                measurement.svid,
+                measurement.constellationType,
+                measurement.state & STATE_CODE_LOCK,
+                measurement.receivedSvTimeNanos % NANOS_PER_MILLISECOND,
+                measurement.cn0DbHz,
+                measurement.pseudorangeRateMetersPerSecond,
+                measurement.pseudorangeRateUncertaintyMetersPerSecond,
+                measurement.accumulatedDeltaRangeState,
+                measurement.accumulatedDeltaRangeMeters,
+                measurement.accumulatedDeltaRangeUncertaintyMeters));
+      }
+      return new RawGnssEpoch(
+          epoch.elapsedRealtimeMillis,
+          epoch.timeNanos,
+          epoch.fullBiasNanos,
+          epoch.biasNanos,
+          measurements);
+    }
+
+    @Override
+    public void onNavigationMessage(
+        int svid, int type, int status, int messageId, int subMessageId, byte[] data) {
+      if (type == GPS_L1CA_NAVIGATION_MESSAGE_TYPE) {
+        mNavigationMessageCount++;
+        mSolver.parseHwNavigationMessageUpdates(svid, type, subMessageId, data);
+      }
+    }
+
+    @Override
+    public void onFix(
+        String provider,
+        double latitudeDegrees,
+        double longitudeDegrees,
+        double altitudeMeters,
+        double speedMps,
+        double accuracyMeters,
+        long utcTimeMillis) {
+      mFixCount++;
+      if (!mHasReferencePosition) {
+        mSolver.setReferencePosition(
+            (int) (latitudeDegrees * 1E7),
+            (int) (longitudeDegrees * 1E7),
+            (int) (altitudeMeters * 1E7));
+        mHasReferencePosition = true;
+      }
+    }
+
+    @Override
+    public void onPositionVelocitySolution(PositionVelocitySolution solution) {
+      if (solution.hasPosition()) {
+        mSolutionCount++;
+      }
+    }
+
+    /** Sleeps until the time at which an epoch recorded at {@code elapsedRealtimeMillis} is due */
+    private void waitUntilReplayTime(long elapsedRealtimeMillis) throws InterruptedException {
+      long recordedOffsetNanos =
+          TimeUnit.MILLISECONDS.toNanos(elapsedRealtimeMillis - mFirstEpochElapsedRealtimeMillis);
+      long dueNanos = mReplayStartNanos + (long) (recordedOffsetNanos / mSpeedFactor);
+      long waitNanos = dueNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+    }
+  }
+}
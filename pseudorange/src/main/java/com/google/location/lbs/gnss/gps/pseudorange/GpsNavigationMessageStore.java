@@ -22,6 +22,7 @@ import android.location.cts.nano.Ephemeris.IonosphericModelProto;
 import android.support.annotation.NonNull;
 
 import com.google.common.base.Preconditions;
+import com.google.location.lbs.gnss.gps.pseudorange.GpsTimeOperations.LeapSecondTable;
 
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
@@ -170,6 +171,31 @@ public class GpsNavigationMessageStore {
 
   private IonosphericModelProto decodedIonosphericObj;
 
+  /** Full GPS week of the last subframe 1 received, or -1 before the first one */
+  private int lastReceivedGpsWeek = -1;
+
+  /**
+   * GPS - UTC offset before the event, week number, day number and GPS - UTC offset after the
+   * event of the last leap second event received before any subframe 1, waiting for a full week to
+   * resolve the week number against, or null
+   */
+  private int[] pendingLeapSecondEvent = null;
+
+  /**
+   * The known leap seconds extended with the events decoded by this store only, replaced as a whole
+   * on every update so that readers never need to lock
+   */
+  private volatile LeapSecondTable leapSecondTable = GpsTimeOperations.getKnownLeapSecondTable();
+
+  /**
+   * Returns the leap second table of this store: the known leap seconds and the leap second event
+   * of the last UTC parameters decoded. Pass it to the {@link GpsTimeOperations} conversions so
+   * that the GPS - UTC offset depends on the navigation messages of this session only.
+   */
+  public LeapSecondTable getLeapSecondTable() {
+    return leapSecondTable;
+  }
+
   /**
    * Builds and returns the current {@link GpsNavMessageProto} filling the different ephemeris for
    * the different satellites and setting the ionospheric model parameters.
@@ -229,6 +255,16 @@ public class GpsNavigationMessageStore {
    * parameters, GPS date (week number) plus satellite status and health.
    */
   private void handleFirstSubframe(byte prn, byte[] rawData) {
+    // the full week of the message resolves the truncated week numbers of the UTC parameters
+    lastReceivedGpsWeek = getGpsWeekWithRollover(extractBits(WEEK_INDEX, WEEK_LENGTH, rawData));
+    if (pendingLeapSecondEvent != null) {
+      updateLeapSeconds(
+          pendingLeapSecondEvent[0],
+          pendingLeapSecondEvent[1],
+          pendingLeapSecondEvent[2],
+          pendingLeapSecondEvent[3]);
+    }
+
     int iodc = extractBits(IODC1_INDEX, IODC1_LENGTH, rawData) << 8;
     iodc |= extractBits(IODC2_INDEX, IODC2_LENGTH, rawData);
 
@@ -294,7 +330,7 @@ public class GpsNavigationMessageStore {
     gpsEphemerisProto.iode = iode;
 
     short crs = (short) extractBits(CRS_INDEX, CRS_LENGTH, rawData);
-    gpsEphemerisProto.crc = crs * POW_2_NEG_5;
+    gpsEphemerisProto.crs = crs * POW_2_NEG_5;
 
     short deltaN = (short) extractBits(DELTA_N_INDEX, DELTA_N_LENGTH, rawData);
     gpsEphemerisProto.deltaN = deltaN * POW_2_NEG_43 * Math.PI;
@@ -351,7 +387,7 @@ public class GpsNavigationMessageStore {
 
     int odot = extractBits(ODOT_INDEX, ODOT_LENGTH, rawData);
     odot = getTwoComplement(odot, ODOT_LENGTH);
-    gpsEphemerisProto.omegaDot = o * POW_2_NEG_43 * Math.PI;
+    gpsEphemerisProto.omegaDot = odot * POW_2_NEG_43 * Math.PI;
 
     short cis = (short) extractBits(CIS_INDEX, CIS_LENGTH, rawData);
     gpsEphemerisProto.cis = cis * POW_2_NEG_29;
@@ -419,17 +455,36 @@ public class GpsNavigationMessageStore {
 
     short wnt = (short) extractBits(WN_LS_INDEX, A_B_LENGTH, rawData);
 
-    short tls = (short) extractBits(DELTA_T_LS_INDEX, A_B_LENGTH, rawData);
+    // the leap second offsets are 8-bit two's complement numbers
+    byte tls = (byte) extractBits(DELTA_T_LS_INDEX, A_B_LENGTH, rawData);
 
     short wnlsf = (short) extractBits(WNF_LS_INDEX, A_B_LENGTH, rawData);
 
     short dn = (short) extractBits(DN_LS_INDEX, A_B_LENGTH, rawData);
 
-    short tlsf = (short) extractBits(DELTA_TF_LS_INDEX, A_B_LENGTH, rawData);
+    byte tlsf = (byte) extractBits(DELTA_TF_LS_INDEX, A_B_LENGTH, rawData);
+
+    // keep the leap second table used for the GPS to UTC time conversions up-to-date
+    updateLeapSeconds(tls, wnlsf, dn, tlsf);
 
     decodedIonosphericObj = ionosphericModelProto;
   }
 
+  /**
+   * Updates the leap second table of this store with a leap second event, its week number modulo
+   * 256 being resolved against the week of the navigation message. The event is kept pending until
+   * a subframe 1 is received if the week of the navigation message is not known yet, so that the
+   * decoding does not depend on the time the message is decoded at, e.g. when replaying a log.
+   */
+  private void updateLeapSeconds(int tls, int wnlsf, int dn, int tlsf) {
+    if (lastReceivedGpsWeek < 0) {
+      pendingLeapSecondEvent = new int[] {tls, wnlsf, dn, tlsf};
+      return;
+    }
+    pendingLeapSecondEvent = null;
+    leapSecondTable = leapSecondTable.withUtcParameters(lastReceivedGpsWeek, tls, wnlsf, dn, tlsf);
+  }
+
   /**
    * Updates the {@link IntermediateEphemeris} with the decoded status of the current subframe.
    * Moreover, update the {@code partiallyDecodedIntermediateEphemerides} list and
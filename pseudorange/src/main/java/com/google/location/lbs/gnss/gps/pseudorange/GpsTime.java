@@ -26,6 +26,9 @@ import org.joda.time.DateTimeZone;
 
 /**
  * A simple class to represent time unit used by GPS.
+ *
+ * <p>The computations are delegated to {@link GpsTimeOperations}, which should be used directly on
+ * hot paths to avoid allocating.
  */
 public class GpsTime implements Comparable<GpsTime> {
   public static final int MILLIS_IN_SECOND = 1000;
@@ -45,14 +48,6 @@ public class GpsTime implements Comparable<GpsTime> {
   public static final long GPS_UTC_EPOCH_OFFSET_NANOS =
       TimeUnit.SECONDS.toNanos(GPS_UTC_EPOCH_OFFSET_SECONDS);
   private static final DateTimeZone UTC_ZONE = DateTimeZone.UTC;
-  private static final DateTime LEAP_SECOND_DATE_1981 =
-      new DateTime(1981, 7, 1, 0, 0, UTC_ZONE);
-  private static final DateTime LEAP_SECOND_DATE_2012 =
-      new DateTime(2012, 7, 1, 0, 0, UTC_ZONE);
-  private static final DateTime LEAP_SECOND_DATE_2015 =
-      new DateTime(2015, 7, 1, 0, 0, UTC_ZONE);
-  private static final DateTime LEAP_SECOND_DATE_2017 =
-      new DateTime(2017, 1, 1, 0, 0, UTC_ZONE);
   // nanoseconds since GPS epoch (1980/1/6).
   private long gpsNanos;
 
@@ -93,20 +88,17 @@ public class GpsTime implements Comparable<GpsTime> {
 
   /**
    * Creates a GPS time using a UTC based date and time.
-   * @param dateTime represents the current time in UTC time, must be after 2009
+   * @param dateTime represents the current time in UTC time
    */
   public static GpsTime fromUtc(DateTime dateTime) {
-    return new GpsTime(
-        TimeUnit.MILLISECONDS.toNanos(dateTime.getMillis())
-            + TimeUnit.SECONDS.toNanos(
-            GpsTime.getLeapSecond(dateTime) - GPS_UTC_EPOCH_OFFSET_SECONDS));
+    return new GpsTime(GpsTimeOperations.utcMillisToGpsNanos(dateTime.getMillis()));
   }
 
   /**
    * Creates a GPS time based upon the current time.
    */
   public static GpsTime now() {
-    return fromUtc(DateTime.now(DateTimeZone.UTC));
+    return new GpsTime(GpsTimeOperations.utcMillisToGpsNanos(System.currentTimeMillis()));
   }
 
   /**
@@ -131,10 +123,9 @@ public class GpsTime implements Comparable<GpsTime> {
     Preconditions.checkArgument(yumaWeek < 1024);
 
     // Estimate the multiplier of current week.
-    DateTime currentTime = DateTime.now(UTC_ZONE);
-    GpsTime refTime = new GpsTime(currentTime);
-    Pair<Integer, Integer> refWeekSec = refTime.getGpsWeekSecond();
-    int weekMultiplier = refWeekSec.first / 1024;
+    int currentWeek = GpsTimeOperations.getGpsWeek(
+        GpsTimeOperations.utcMillisToGpsNanos(System.currentTimeMillis()));
+    int weekMultiplier = currentWeek / 1024;
 
     int gpsWeek = weekMultiplier * 1024 + yumaWeek;
     return fromWeekTow(gpsWeek, towSec);
@@ -145,23 +136,12 @@ public class GpsTime implements Comparable<GpsTime> {
   }
 
   /**
-   * Computes leap seconds. Only accurate after 2009.
+   * Computes leap seconds.
    * @param time
    * @return number of leap seconds since GPS epoch.
    */
   public static int getLeapSecond(DateTime time) {
-    if (LEAP_SECOND_DATE_2017.compareTo(time) <= 0) {
-      return 18;
-    } else if (LEAP_SECOND_DATE_2015.compareTo(time) <= 0) {
-      return 17;
-    } else if (LEAP_SECOND_DATE_2012.compareTo(time) <= 0) {
-      return 16;
-    } else if (LEAP_SECOND_DATE_1981.compareTo(time) <= 0) {
-      // Only correct between 2012/7/1 to 2008/12/31
-      return 15;
-    } else {
-      return 0;
-    }
+    return GpsTimeOperations.getLeapSecondsAtUtcMillis(time.getMillis());
   }
 
   /**
@@ -171,8 +151,7 @@ public class GpsTime implements Comparable<GpsTime> {
    * @return nanoseconds since GPS epoch, for the week epoch.
    */
   public static Long getGpsWeekEpochNano(GpsTime refTime) {
-    Pair<Integer, Integer> weekSecond = refTime.getGpsWeekSecond();
-    return weekSecond.first * NANOS_IN_WEEK;
+    return GpsTimeOperations.getGpsWeekEpochNanos(refTime.gpsNanos);
   }
 
   /**
@@ -180,11 +159,9 @@ public class GpsTime implements Comparable<GpsTime> {
    *         that week.
    */
   public Pair<Integer, Integer> getGpsWeekSecond() {
-    // JAVA/UNIX epoch: January 1, 1970 in msec
-    // GPS epoch: January 6, 1980 in second
-    int week = (int) (gpsNanos / NANOS_IN_WEEK);
-    int second = (int) TimeUnit.NANOSECONDS.toSeconds(gpsNanos % NANOS_IN_WEEK);
-    return Pair.create(week, second);
+    return Pair.create(
+        GpsTimeOperations.getGpsWeek(gpsNanos),
+        GpsTimeOperations.getSecondsSinceGpsWeekStart(gpsNanos));
   }
 
   /**
@@ -194,9 +171,10 @@ public class GpsTime implements Comparable<GpsTime> {
   public Pair<Integer, Integer> getGpsWeekTow23b() {
     // UNIX epoch: January 1, 1970 in msec
     // GPS epoch: January 6, 1980 in second
-    int week = (int) (gpsNanos / NANOS_IN_WEEK);
+    int week = GpsTimeOperations.getGpsWeek(gpsNanos);
     // 80 millis is 0.08 second.
-    int tow23b = (int) TimeUnit.NANOSECONDS.toMillis(gpsNanos % NANOS_IN_WEEK) / 80;
+    int tow23b = (int) TimeUnit.NANOSECONDS.toMillis(
+        GpsTimeOperations.getNanosSinceGpsWeekStart(gpsNanos)) / 80;
     return Pair.create(week, tow23b);
   }
 
@@ -216,11 +194,15 @@ public class GpsTime implements Comparable<GpsTime> {
    * @return Day of year in GPS time (GMT time)
    */
   public static int getCurrentDayOfYear() {
-    DateTime current = DateTime.now(DateTimeZone.UTC);
-    // Since current is derived from UTC time, we need to add leap second here.
-    long gpsTimeMillis = current.getMillis() + getLeapSecond(current);
-    DateTime gpsCurrent = new DateTime(gpsTimeMillis, UTC_ZONE);
-    return gpsCurrent.getDayOfYear();
+    return GpsTimeOperations.getDayOfYear1To366(
+        GpsTimeOperations.utcMillisToGpsNanos(System.currentTimeMillis()));
+  }
+
+  /**
+   * @return Day of year between 1 and 366 of this GPS time.
+   */
+  public int getDayOfYear() {
+    return GpsTimeOperations.getDayOfYear1To366(gpsNanos);
   }
 
   /**
@@ -262,9 +244,7 @@ public class GpsTime implements Comparable<GpsTime> {
    * @return a DateTime with leap seconds considered.
    */
   public DateTime getUtcDateTime() {
-    DateTime gpsDateTime = getGpsDateTime();
-    return new DateTime(
-        gpsDateTime.getMillis() - TimeUnit.SECONDS.toMillis(getLeapSecond(gpsDateTime)), UTC_ZONE);
+    return new DateTime(GpsTimeOperations.gpsNanosToUtcMillis(gpsNanos), UTC_ZONE);
   }
 
   /**
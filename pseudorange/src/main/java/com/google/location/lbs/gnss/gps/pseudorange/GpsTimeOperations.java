@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Static GPS time computations on {@code long} nanoseconds since the GPS epoch (1980/1/6) using
+ * integer arithmetic only, so that they can be called for every measurement event without
+ * allocating.
+ *
+ * <p>The offset between GPS and UTC time is looked up in an immutable, sorted table of leap
+ * seconds. The conversions use the leap seconds known when this class was written, or a table
+ * extended with the UTC parameters broadcast in the navigation message, see {@link
+ * LeapSecondTable#withUtcParameters}. Every {@link GpsNavigationMessageStore} keeps its own
+ * extended table, so that the sessions never share mutable state.
+ */
+public final class GpsTimeOperations {
+  public static final long NANOS_IN_DAY = TimeUnit.DAYS.toNanos(1);
+  public static final long NANOS_IN_WEEK = TimeUnit.DAYS.toNanos(7);
+  private static final long NANOS_IN_SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final long NANOS_IN_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long MILLIS_IN_SECOND = TimeUnit.SECONDS.toMillis(1);
+  private static final long SECONDS_IN_DAY = TimeUnit.DAYS.toSeconds(1);
+  /** GPS epoch 1980/1/6 in days since the JAVA/UNIX epoch */
+  private static final long GPS_DAYS_SINCE_JAVA_EPOCH = 3657;
+  private static final long GPS_EPOCH_AS_JAVA_EPOCH_MILLIS =
+      TimeUnit.DAYS.toMillis(GPS_DAYS_SINCE_JAVA_EPOCH);
+  /** Number of bits of the week number of the leap second event in the UTC parameters */
+  private static final int LEAP_SECOND_WEEK_NUMBER_BITS = 8;
+  /** Largest change of the GPS - UTC offset at a leap second event */
+  private static final int MAX_LEAP_SECOND_CHANGE = 1;
+
+  /**
+   * UTC dates (year, month, day) from which the GPS time is ahead of UTC by one more second, the
+   * GPS - UTC offset being the position in the table plus one.
+   */
+  private static final int[][] KNOWN_LEAP_SECOND_DATES = {
+    {1981, 7, 1}, {1982, 7, 1}, {1983, 7, 1}, {1985, 7, 1}, {1988, 1, 1}, {1990, 1, 1},
+    {1991, 1, 1}, {1992, 7, 1}, {1993, 7, 1}, {1994, 7, 1}, {1996, 1, 1}, {1997, 7, 1},
+    {1999, 1, 1}, {2006, 1, 1}, {2009, 1, 1}, {2012, 7, 1}, {2015, 7, 1}, {2017, 1, 1}
+  };
+
+  private static final LeapSecondTable KNOWN_LEAP_SECOND_TABLE = createKnownLeapSecondTable();
+
+  private GpsTimeOperations() {}
+
+  /** Returns the number of weeks since the GPS epoch */
+  public static int getGpsWeek(long gpsNanos) {
+    return (int) Math.floorDiv(gpsNanos, NANOS_IN_WEEK);
+  }
+
+  /** Returns the nanoseconds since the GPS epoch at the start of the GPS week */
+  public static long getGpsWeekEpochNanos(long gpsNanos) {
+    return gpsNanos - getNanosSinceGpsWeekStart(gpsNanos);
+  }
+
+  /** Returns the GPS time of week in nanoseconds */
+  public static long getNanosSinceGpsWeekStart(long gpsNanos) {
+    return Math.floorMod(gpsNanos, NANOS_IN_WEEK);
+  }
+
+  /** Returns the GPS time of week truncated to seconds */
+  public static int getSecondsSinceGpsWeekStart(long gpsNanos) {
+    return (int) (getNanosSinceGpsWeekStart(gpsNanos) / NANOS_IN_SECOND);
+  }
+
+  /** Returns the day of the year between 1 and 366 of the GPS time, not considering leap seconds */
+  public static int getDayOfYear1To366(long gpsNanos) {
+    long daysSinceJavaEpoch = Math.floorDiv(gpsNanos, NANOS_IN_DAY) + GPS_DAYS_SINCE_JAVA_EPOCH;
+    int year = getYearFromDaysSinceJavaEpoch(daysSinceJavaEpoch);
+    return (int) (daysSinceJavaEpoch - getDaysSinceJavaEpoch(year, 1, 1)) + 1;
+  }
+
+  /** Returns the table of the leap seconds known when this class was written */
+  public static LeapSecondTable getKnownLeapSecondTable() {
+    return KNOWN_LEAP_SECOND_TABLE;
+  }
+
+  /**
+   * Returns the number of seconds GPS time is ahead of UTC at the given GPS time, from the known
+   * leap seconds
+   */
+  public static int getLeapSecondsAtGpsNanos(long gpsNanos) {
+    return KNOWN_LEAP_SECOND_TABLE.getLeapSecondsAtGpsNanos(gpsNanos);
+  }
+
+  /**
+   * Returns the number of seconds GPS time is ahead of UTC at the given UTC time, from the known
+   * leap seconds
+   */
+  public static int getLeapSecondsAtUtcMillis(long utcMillisSinceJavaEpoch) {
+    return KNOWN_LEAP_SECOND_TABLE.getLeapSecondsAtUtcMillis(utcMillisSinceJavaEpoch);
+  }
+
+  /** Converts milliseconds since the JAVA/UNIX epoch in UTC to nanoseconds since the GPS epoch */
+  public static long utcMillisToGpsNanos(long utcMillisSinceJavaEpoch) {
+    return utcMillisToGpsNanos(utcMillisSinceJavaEpoch, KNOWN_LEAP_SECOND_TABLE);
+  }
+
+  /**
+   * Converts milliseconds since the JAVA/UNIX epoch in UTC to nanoseconds since the GPS epoch with
+   * the leap seconds of {@code table}
+   */
+  public static long utcMillisToGpsNanos(long utcMillisSinceJavaEpoch, LeapSecondTable table) {
+    long gpsMillis = utcMillisSinceJavaEpoch - GPS_EPOCH_AS_JAVA_EPOCH_MILLIS
+        + table.getLeapSecondsAtUtcMillis(utcMillisSinceJavaEpoch) * MILLIS_IN_SECOND;
+    return gpsMillis * NANOS_IN_MILLI;
+  }
+
+  /** Converts nanoseconds since the GPS epoch to milliseconds since the JAVA/UNIX epoch in UTC */
+  public static long gpsNanosToUtcMillis(long gpsNanos) {
+    return gpsNanosToUtcMillis(gpsNanos, KNOWN_LEAP_SECOND_TABLE);
+  }
+
+  /**
+   * Converts nanoseconds since the GPS epoch to milliseconds since the JAVA/UNIX epoch in UTC with
+   * the leap seconds of {@code table}
+   */
+  public static long gpsNanosToUtcMillis(long gpsNanos, LeapSecondTable table) {
+    return Math.floorDiv(gpsNanos, NANOS_IN_MILLI) + GPS_EPOCH_AS_JAVA_EPOCH_MILLIS
+        - table.getLeapSecondsAtGpsNanos(gpsNanos) * MILLIS_IN_SECOND;
+  }
+
+  private static LeapSecondTable createKnownLeapSecondTable() {
+    int numberOfLeapSeconds = KNOWN_LEAP_SECOND_DATES.length;
+    long[] transitionGpsNanos = new long[numberOfLeapSeconds];
+    int[] leapSeconds = new int[numberOfLeapSeconds];
+    for (int i = 0; i < numberOfLeapSeconds; i++) {
+      int[] date = KNOWN_LEAP_SECOND_DATES[i];
+      leapSeconds[i] = i + 1;
+      long gpsSeconds =
+          (getDaysSinceJavaEpoch(date[0], date[1], date[2]) - GPS_DAYS_SINCE_JAVA_EPOCH)
+              * SECONDS_IN_DAY + leapSeconds[i];
+      transitionGpsNanos[i] = gpsSeconds * NANOS_IN_SECOND;
+    }
+    return new LeapSecondTable(transitionGpsNanos, leapSeconds);
+  }
+
+  /**
+   * Returns the number of days from 1970/1/1 to the given date of the proleptic Gregorian
+   * calendar, from http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+   */
+  private static long getDaysSinceJavaEpoch(int year, int month, int day) {
+    long y = month <= 2 ? year - 1 : year;
+    long era = Math.floorDiv(y, 400);
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  /**
+   * Returns the year of the proleptic Gregorian calendar containing the given day since 1970/1/1,
+   * from http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+   */
+  private static int getYearFromDaysSinceJavaEpoch(long daysSinceJavaEpoch) {
+    long z = daysSinceJavaEpoch + 719468;
+    long era = Math.floorDiv(z, 146097);
+    long dayOfEra = z - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long monthIndex = (5 * dayOfYear + 2) / 153;
+    long year = yearOfEra + era * 400;
+    // monthIndex counts from March, January and February belong to the next year
+    return (int) (monthIndex >= 10 ? year + 1 : year);
+  }
+
+  /** An immutable leap second table sorted by transition time */
+  public static final class LeapSecondTable {
+    private final long[] transitionGpsNanos;
+    private final long[] transitionUtcMillis;
+    private final int[] leapSeconds;
+
+    private LeapSecondTable(long[] transitionGpsNanos, int[] leapSeconds) {
+      this.transitionGpsNanos = transitionGpsNanos;
+      this.leapSeconds = leapSeconds;
+      this.transitionUtcMillis = new long[leapSeconds.length];
+      for (int i = 0; i < leapSeconds.length; i++) {
+        transitionUtcMillis[i] = transitionGpsNanos[i] / NANOS_IN_MILLI
+            + GPS_EPOCH_AS_JAVA_EPOCH_MILLIS - leapSeconds[i] * MILLIS_IN_SECOND;
+      }
+    }
+
+    /** Returns the number of seconds GPS time is ahead of UTC at the given GPS time */
+    public int getLeapSecondsAtGpsNanos(long gpsNanos) {
+      for (int i = leapSeconds.length - 1; i >= 0; i--) {
+        if (gpsNanos >= transitionGpsNanos[i]) {
+          return leapSeconds[i];
+        }
+      }
+      return 0;
+    }
+
+    /** Returns the number of seconds GPS time is ahead of UTC at the given UTC time */
+    public int getLeapSecondsAtUtcMillis(long utcMillisSinceJavaEpoch) {
+      for (int i = leapSeconds.length - 1; i >= 0; i--) {
+        if (utcMillisSinceJavaEpoch >= transitionUtcMillis[i]) {
+          return leapSeconds[i];
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * Returns this table with the leap second event described by the UTC parameters of the
+     * navigation message (page 18 of subframe 4), or this table if the event is already known or
+     * the parameters are not consistent: a day number out of range, an offset change of more than
+     * one second, or an event before the last transition of the table.
+     *
+     * <p>Like the known transitions, the event takes effect at the GPS time of the UTC midnight
+     * ending day {@code dn}, which is ahead of the end of the GPS day by {@code deltaTlsf} seconds.
+     *
+     * @param referenceGpsWeek Full GPS week close to the time the message was received, used to
+     *     resolve the truncated week number {@code wnlsf}
+     * @param deltaTls GPS - UTC offset in seconds before the event
+     * @param wnlsf Week number of the leap second event modulo 256
+     * @param dn Day number (1 to 7) at the end of which the leap second event becomes effective
+     * @param deltaTlsf GPS - UTC offset in seconds after the event
+     */
+    public LeapSecondTable withUtcParameters(
+        int referenceGpsWeek, int deltaTls, int wnlsf, int dn, int deltaTlsf) {
+      if (dn < 1
+          || dn > 7
+          || deltaTlsf <= 0
+          || Math.abs(deltaTlsf - deltaTls) > MAX_LEAP_SECOND_CHANGE) {
+        return this;
+      }
+
+      // The event week is the closest week to the reference week with the same 8 least
+      // significant bits
+      int weekModulo = 1 << LEAP_SECOND_WEEK_NUMBER_BITS;
+      int weekDifference = Math.floorMod(wnlsf - referenceGpsWeek, weekModulo);
+      if (weekDifference >= weekModulo / 2) {
+        weekDifference -= weekModulo;
+      }
+      long eventGpsWeek = referenceGpsWeek + weekDifference;
+      long eventGpsNanos =
+          eventGpsWeek * NANOS_IN_WEEK + dn * NANOS_IN_DAY + deltaTlsf * NANOS_IN_SECOND;
+      int size = leapSeconds.length;
+      if (getLeapSecondsAtGpsNanos(eventGpsNanos) == deltaTlsf
+          || (size > 0 && eventGpsNanos <= transitionGpsNanos[size - 1])) {
+        return this;
+      }
+
+      long[] newTransitionGpsNanos = Arrays.copyOf(transitionGpsNanos, size + 1);
+      int[] newLeapSeconds = Arrays.copyOf(leapSeconds, size + 1);
+      newTransitionGpsNanos[size] = eventGpsNanos;
+      newLeapSeconds[size] = deltaTlsf;
+      return new LeapSecondTable(newTransitionGpsNanos, newLeapSeconds);
+    }
+  }
+}
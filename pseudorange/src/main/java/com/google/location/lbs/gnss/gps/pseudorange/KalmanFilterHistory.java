@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The predicted and filtered states and covariances of the epochs processed by a {@link
+ * UserPositionVelocityExtendedKalmanFilter}, for a {@link RauchTungStriebelSmoother} backward pass.
+ *
+ * <p>Each epoch is a record of primitive doubles: the filtered state and the upper triangle of its
+ * covariance, then the predicted state and covariance. The records are kept in a heap buffer, or in
+ * a memory mapped temporary file for long sessions, see {@link #fitsInHeap}, so that they are paged
+ * by the operating system. The file is deleted by {@link #close}.
+ *
+ * <p>An epoch at which the filter was initialized has no prediction, it starts a new interval which
+ * is smoothed independently of the previous one. The class is not thread safe.
+ */
+final class KalmanFilterHistory implements Closeable {
+  private static final int STATE_SIZE = UserPositionVelocityExtendedKalmanFilter.STATE_SIZE;
+  private static final int COVARIANCE_SIZE = STATE_SIZE * (STATE_SIZE + 1) / 2;
+  private static final int FILTERED_OFFSET = 0;
+  private static final int PREDICTED_OFFSET = STATE_SIZE + COVARIANCE_SIZE;
+  private static final int RECORD_SIZE = 2 * (STATE_SIZE + COVARIANCE_SIZE);
+  private static final long MAX_HEAP_BYTES = 16L << 20;
+
+  private final long[] mGpsTimeNanos;
+  private final boolean[] mInitialization;
+  private final DoubleBuffer mRecords;
+  private final File mMappedFile;
+  private int mSize;
+
+  /**
+   * Creates a history of at most {@code capacity} epochs.
+   *
+   * @param mapped Whether the records are kept in a memory mapped file rather than on the heap
+   */
+  KalmanFilterHistory(int capacity, boolean mapped) throws IOException {
+    Preconditions.checkArgument(capacity >= 0, "Invalid capacity: " + capacity);
+    mGpsTimeNanos = new long[capacity];
+    mInitialization = new boolean[capacity];
+    long bytes = (long) capacity * RECORD_SIZE * Double.BYTES;
+    if (!mapped) {
+      mMappedFile = null;
+      mRecords = DoubleBuffer.allocate(capacity * RECORD_SIZE);
+    } else {
+      Preconditions.checkArgument(bytes <= Integer.MAX_VALUE, "Capacity too large: " + capacity);
+      mMappedFile = File.createTempFile("kalman", ".history");
+      mMappedFile.deleteOnExit();
+      try (RandomAccessFile file = new RandomAccessFile(mMappedFile, "rw")) {
+        // The mapping stays valid once the channel is closed
+        ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        mRecords = buffer.asDoubleBuffer();
+      } catch (IOException e) {
+        mMappedFile.delete();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Returns whether the records of {@code epochCount} epochs, in all the histories of a session,
+   * fit in {@value #MAX_HEAP_BYTES} bytes of heap.
+   */
+  static boolean fitsInHeap(long epochCount) {
+    return epochCount * RECORD_SIZE * Double.BYTES <= MAX_HEAP_BYTES;
+  }
+
+  /** Returns the number of epochs recorded */
+  int size() {
+    return mSize;
+  }
+
+  /** Returns the GPS time of epoch {@code index}, in nanoseconds since the GPS epoch */
+  long getGpsTimeNanos(int index) {
+    Preconditions.checkElementIndex(index, mSize);
+    return mGpsTimeNanos[index];
+  }
+
+  /** Returns whether the filter was initialized at epoch {@code index} */
+  boolean isInitialization(int index) {
+    Preconditions.checkElementIndex(index, mSize);
+    return mInitialization[index];
+  }
+
+  /** Records an epoch processed by the filter. */
+  void add(
+      long gpsTimeNanos,
+      double[] predictedState,
+      double[][] predictedCovariance,
+      double[] filteredState,
+      double[][] filteredCovariance) {
+    int index = addEpoch(gpsTimeNanos, false);
+    write(index, PREDICTED_OFFSET, predictedState, predictedCovariance);
+    write(index, FILTERED_OFFSET, filteredState, filteredCovariance);
+  }
+
+  /** Records an epoch at which the filter was initialized with {@code state}. */
+  void addInitialization(long gpsTimeNanos, double[] state, double[][] covariance) {
+    int index = addEpoch(gpsTimeNanos, true);
+    write(index, FILTERED_OFFSET, state, covariance);
+  }
+
+  /** Reads the filtered state of epoch {@code index}, or the smoothed one once smoothed. */
+  void getFiltered(int index, double[] state, double[][] covariance) {
+    read(index, FILTERED_OFFSET, state, covariance);
+  }
+
+  /** Replaces the filtered state of epoch {@code index}, by the smoothed one. */
+  void setFiltered(int index, double[] state, double[][] covariance) {
+    Preconditions.checkElementIndex(index, mSize);
+    write(index, FILTERED_OFFSET, state, covariance);
+  }
+
+  /** Reads the predicted state of epoch {@code index}, which must not be an initialization. */
+  void getPredicted(int index, double[] state, double[][] covariance) {
+    Preconditions.checkArgument(!isInitialization(index), "No prediction at epoch " + index);
+    read(index, PREDICTED_OFFSET, state, covariance);
+  }
+
+  /** Deletes the memory mapped file, if any. The history must not be used afterwards. */
+  @Override
+  public void close() {
+    if (mMappedFile != null) {
+      mMappedFile.delete();
+    }
+  }
+
+  private int addEpoch(long gpsTimeNanos, boolean initialization) {
+    Preconditions.checkState(mSize < mGpsTimeNanos.length, "History full: " + mSize + " epochs");
+    mGpsTimeNanos[mSize] = gpsTimeNanos;
+    mInitialization[mSize] = initialization;
+    return mSize++;
+  }
+
+  private void write(int index, int offset, double[] state, double[][] covariance) {
+    int position = index * RECORD_SIZE + offset;
+    for (int i = 0; i < STATE_SIZE; i++) {
+      mRecords.put(position++, state[i]);
+    }
+    for (int i = 0; i < STATE_SIZE; i++) {
+      for (int k = i; k < STATE_SIZE; k++) {
+        mRecords.put(position++, covariance[i][k]);
+      }
+    }
+  }
+
+  private void read(int index, int offset, double[] state, double[][] covariance) {
+    Preconditions.checkElementIndex(index, mSize);
+    int position = index * RECORD_SIZE + offset;
+    for (int i = 0; i < STATE_SIZE; i++) {
+      state[i] = mRecords.get(position++);
+    }
+    for (int i = 0; i < STATE_SIZE; i++) {
+      for (int k = i; k < STATE_SIZE; k++) {
+        covariance[i][k] = mRecords.get(position++);
+        covariance[k][i] = covariance[i][k];
+      }
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+/**
+ * The receiver clock fields of an epoch as written to a GnssLogger {@code Raw} record, including
+ * whether each optional field was reported. Instances are reused from one epoch to the next.
+ */
+public final class LoggedGnssClock {
+  public long timeNanos;
+  public boolean hasLeapSecond;
+  public int leapSecond;
+  public boolean hasTimeUncertaintyNanos;
+  public double timeUncertaintyNanos;
+  public long fullBiasNanos;
+  public boolean hasBiasNanos;
+  public double biasNanos;
+  public boolean hasBiasUncertaintyNanos;
+  public double biasUncertaintyNanos;
+  public boolean hasDriftNanosPerSecond;
+  public double driftNanosPerSecond;
+  public boolean hasDriftUncertaintyNanosPerSecond;
+  public double driftUncertaintyNanosPerSecond;
+  public int hardwareClockDiscontinuityCount;
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+/**
+ * The measurement fields of a GnssLogger {@code Raw} record, including whether each optional field
+ * was reported. Instances are reused from one measurement to the next.
+ */
+public final class LoggedGnssMeasurement {
+  /** Value of {@code android.os.SystemClock.elapsedRealtime()} when the record was written */
+  public long elapsedRealtimeMillis;
+  public int svid;
+  public double timeOffsetNanos;
+  public int state;
+  public long receivedSvTimeNanos;
+  public long receivedSvTimeUncertaintyNanos;
+  public double cn0DbHz;
+  public double pseudorangeRateMetersPerSecond;
+  public double pseudorangeRateUncertaintyMetersPerSecond;
+  public int accumulatedDeltaRangeState;
+  public double accumulatedDeltaRangeMeters;
+  public double accumulatedDeltaRangeUncertaintyMeters;
+  public boolean hasCarrierFrequencyHz;
+  public float carrierFrequencyHz;
+  public boolean hasCarrierCycles;
+  public long carrierCycles;
+  public boolean hasCarrierPhase;
+  public double carrierPhase;
+  public boolean hasCarrierPhaseUncertainty;
+  public double carrierPhaseUncertainty;
+  public int multipathIndicator;
+  public boolean hasSnrInDb;
+  public double snrInDb;
+  public int constellationType;
+  public boolean hasAutomaticGainControlLevelDb;
+  public double automaticGainControlLevelDb;
+}
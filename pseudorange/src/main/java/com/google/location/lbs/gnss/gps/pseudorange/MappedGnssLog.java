@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Random access to the epochs of a text log written by the GnssLogger {@code DefaultFileLogger}.
+ *
+ * <p>The log is memory mapped, and indexed once: the byte offset of the first line of every epoch
+ * with its {@code TimeNanos} and GPS time, the offset of every {@code Nav} record and of the first
+ * {@code Fix} record. The index is kept in a sidecar file next to the log, and rebuilt when the log
+ * changes. Finding the epoch of a time is a binary search, and {@link #openWindow} reads the
+ * records of a range of epochs without touching the rest of the file.
+ *
+ * <p>Instances are immutable and can be shared between threads, every {@link Reader} they return
+ * reads the same mapping with its own position. The readers decode bytes as ISO-8859-1, which is
+ * exact for the ASCII records of the log.
+ */
+public final class MappedGnssLog {
+  private static final String INDEX_FILE_SUFFIX = ".index";
+  private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+  private static final int INDEX_MAGIC = 0x474c4958;
+  private static final int INDEX_VERSION = 2;
+
+  private static final byte LINE_SEPARATOR = '\n';
+  private static final byte RECORD_DELIMITER = ',';
+  private static final byte[] RAW_RECORD = {'R', 'a', 'w', ','};
+  private static final byte[] NAV_RECORD = {'N', 'a', 'v', ','};
+  private static final byte[] FIX_RECORD = {'F', 'i', 'x', ','};
+  private static final int RAW_TIME_NANOS = 2;
+  private static final int RAW_FULL_BIAS_NANOS = 5;
+
+  private final ByteBuffer mBuffer;
+  private final long[] mEpochOffsets;
+  private final long[] mEpochTimeNanos;
+  private final long[] mEpochGpsTimeNanos;
+  private final long[] mNavigationMessageOffsets;
+  private final int[] mNavigationMessageLengths;
+  /** Offset of the first {@code Fix} record, or -1 if the log has none */
+  private final long mFirstFixOffset;
+  private final int mFirstFixLength;
+
+  private MappedGnssLog(ByteBuffer buffer, Index index) {
+    mBuffer = buffer;
+    mEpochOffsets = Arrays.copyOf(index.epochOffsets, index.epochCount);
+    mEpochTimeNanos = Arrays.copyOf(index.epochTimeNanos, index.epochCount);
+    mEpochGpsTimeNanos = Arrays.copyOf(index.epochGpsTimeNanos, index.epochCount);
+    mNavigationMessageOffsets =
+        Arrays.copyOf(index.navigationMessageOffsets, index.navigationMessageCount);
+    mNavigationMessageLengths =
+        Arrays.copyOf(index.navigationMessageLengths, index.navigationMessageCount);
+    mFirstFixOffset = index.firstFixOffset;
+    mFirstFixLength = index.firstFixLength;
+  }
+
+  /** Maps {@code logFile}, reading its index from the sidecar file or building it. */
+  public static MappedGnssLog open(File logFile) throws IOException {
+    return open(logFile, new File(logFile.getPath() + INDEX_FILE_SUFFIX));
+  }
+
+  /**
+   * Maps {@code logFile}, reading its index from {@code indexFile}. The index is built and written
+   * to {@code indexFile} if that file is missing or was built for another version of the log; if
+   * it cannot be written, the index is only kept in memory.
+   */
+  public static MappedGnssLog open(File logFile, File indexFile) throws IOException {
+    MappedByteBuffer buffer;
+    try (RandomAccessFile file = new RandomAccessFile(logFile, "r")) {
+      long length = file.length();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Log too large to be mapped: " + length + " bytes");
+      }
+      // The mapping stays valid once the channel is closed
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+    long logLength = buffer.capacity();
+    long logLastModified = logFile.lastModified();
+    Index index = readIndex(indexFile, logLength, logLastModified);
+    if (index == null) {
+      index = buildIndex(buffer);
+      try {
+        writeIndex(index, indexFile, logLength, logLastModified);
+      } catch (IOException e) {
+        // Read only storage, the index is built again next time
+      }
+    }
+    return new MappedGnssLog(buffer, index);
+  }
+
+  /** Returns the number of epochs of the log */
+  public int getEpochCount() {
+    return mEpochOffsets.length;
+  }
+
+  /** Returns the number of {@code Nav} records of the log */
+  public int getNavigationMessageCount() {
+    return mNavigationMessageOffsets.length;
+  }
+
+  /** Returns the {@code TimeNanos} of the receiver clock at {@code epoch} */
+  public long getTimeNanos(int epoch) {
+    return mEpochTimeNanos[epoch];
+  }
+
+  /** Returns the GPS time of {@code epoch}, {@code TimeNanos - FullBiasNanos} as the solver uses */
+  public long getGpsTimeNanos(int epoch) {
+    return mEpochGpsTimeNanos[epoch];
+  }
+
+  /**
+   * Returns the first epoch whose {@code TimeNanos} is at or after {@code timeNanos}, or
+   * {@link #getEpochCount()} if there is none. The times of a session increase with the epochs.
+   */
+  public int findEpochByTimeNanos(long timeNanos) {
+    return lowerBound(mEpochTimeNanos, timeNanos);
+  }
+
+  /**
+   * Returns the first epoch whose GPS time is at or after {@code gpsTimeNanos}, or
+   * {@link #getEpochCount()} if there is none.
+   */
+  public int findEpochByGpsTimeNanos(long gpsTimeNanos) {
+    return lowerBound(mEpochGpsTimeNanos, gpsTimeNanos);
+  }
+
+  /**
+   * Returns a reader of the records from the first line of {@code fromEpoch} to the first line of
+   * {@code toEpoch}, excluded, to be read by a {@link GnssLogReader}. The {@code Nav} and
+   * {@code Fix} records logged between the epochs are included.
+   *
+   * @param toEpoch {@link #getEpochCount()} to read until the end of the log
+   */
+  public Reader openWindow(int fromEpoch, int toEpoch) {
+    Preconditions.checkPositionIndexes(fromEpoch, toEpoch, getEpochCount());
+    int start = fromEpoch == toEpoch ? 0 : (int) mEpochOffsets[fromEpoch];
+    int end =
+        fromEpoch == toEpoch
+            ? 0
+            : toEpoch == getEpochCount() ? mBuffer.capacity() : (int) mEpochOffsets[toEpoch];
+    return new RangeReader(mBuffer.duplicate(), new int[] {start}, new int[] {end}, 1);
+  }
+
+  /**
+   * Returns a reader of the {@code Nav} records logged before the first line of
+   * {@code beforeEpoch}, which brings a solver to the navigation state of that epoch before a
+   * window starting there is read. The first {@code Fix} record of the log is included, in order,
+   * if it was logged before that line, so that the solver has a reference position.
+   */
+  public Reader openNavigationMessages(int beforeEpoch) {
+    Preconditions.checkPositionIndex(beforeEpoch, getEpochCount());
+    long endOffset =
+        beforeEpoch == getEpochCount() ? mBuffer.capacity() : mEpochOffsets[beforeEpoch];
+    int navigationMessageCount = lowerBound(mNavigationMessageOffsets, endOffset);
+    boolean hasFix = mFirstFixOffset >= 0 && mFirstFixOffset < endOffset;
+    int count = hasFix ? navigationMessageCount + 1 : navigationMessageCount;
+    int[] starts = new int[count];
+    int[] ends = new int[count];
+    // The fix goes before the first message logged after it
+    int fixRange = hasFix ? lowerBound(mNavigationMessageOffsets, mFirstFixOffset) : count;
+    for (int i = 0; i < navigationMessageCount; i++) {
+      int range = i < fixRange ? i : i + 1;
+      starts[range] = (int) mNavigationMessageOffsets[i];
+      ends[range] = starts[range] + mNavigationMessageLengths[i];
+    }
+    if (hasFix) {
+      starts[fixRange] = (int) mFirstFixOffset;
+      ends[fixRange] = (int) mFirstFixOffset + mFirstFixLength;
+    }
+    return new RangeReader(mBuffer.duplicate(), starts, ends, count);
+  }
+
+  private static int lowerBound(long[] values, long key) {
+    int low = 0;
+    int high = values.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (values[middle] < key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Scans the lines of the log. An epoch starts at a {@code Raw} line unless the previous record
+   * is a {@code Raw} line of the same {@code TimeNanos}, the way {@link GnssLogReader} groups them.
+   */
+  private static Index buildIndex(ByteBuffer buffer) {
+    Index index = new Index();
+    int limit = buffer.limit();
+    boolean previousIsRaw = false;
+    long previousTimeNanos = 0;
+    int lineStart = 0;
+    while (lineStart < limit) {
+      int lineEnd = lineStart;
+      while (lineEnd < limit && buffer.get(lineEnd) != LINE_SEPARATOR) {
+        lineEnd++;
+      }
+      int nextLineStart = Math.min(lineEnd + 1, limit);
+      if (startsWith(buffer, lineStart, lineEnd, RAW_RECORD)) {
+        long timeNanos = parseLongField(buffer, lineStart, lineEnd, RAW_TIME_NANOS);
+        long fullBiasNanos = parseLongField(buffer, lineStart, lineEnd, RAW_FULL_BIAS_NANOS);
+        if (timeNanos != Long.MIN_VALUE && fullBiasNanos != Long.MIN_VALUE) {
+          if (!previousIsRaw || timeNanos != previousTimeNanos) {
+            index.addEpoch(lineStart, timeNanos, timeNanos - fullBiasNanos);
+          }
+          previousIsRaw = true;
+          previousTimeNanos = timeNanos;
+        }
+      } else if (startsWith(buffer, lineStart, lineEnd, NAV_RECORD)) {
+        index.addNavigationMessage(lineStart, nextLineStart - lineStart);
+        previousIsRaw = false;
+      } else if (startsWith(buffer, lineStart, lineEnd, FIX_RECORD)) {
+        if (index.firstFixOffset < 0) {
+          index.firstFixOffset = lineStart;
+          index.firstFixLength = nextLineStart - lineStart;
+        }
+        previousIsRaw = false;
+      }
+      lineStart = nextLineStart;
+    }
+    return index;
+  }
+
+  private static boolean startsWith(ByteBuffer buffer, int start, int end, byte[] prefix) {
+    if (end - start < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buffer.get(start + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the value of a decimal field of the line, or {@link Long#MIN_VALUE} if malformed */
+  private static long parseLongField(ByteBuffer buffer, int start, int end, int field) {
+    int position = start;
+    for (int i = 0; i < field; i++) {
+      while (position < end && buffer.get(position) != RECORD_DELIMITER) {
+        position++;
+      }
+      if (position == end) {
+        return Long.MIN_VALUE;
+      }
+      position++;
+    }
+    boolean negative = position < end && buffer.get(position) == '-';
+    if (negative) {
+      position++;
+    }
+    // Accumulated as a negative value, which has the larger range, like Long.parseLong
+    long value = 0;
+    int digitCount = 0;
+    for (; position < end && buffer.get(position) != RECORD_DELIMITER; position++) {
+      int digit = buffer.get(position) - '0';
+      if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+        return Long.MIN_VALUE;
+      }
+      value = 10 * value - digit;
+      digitCount++;
+    }
+    if (digitCount == 0) {
+      return Long.MIN_VALUE;
+    }
+    return negative ? value : -value;
+  }
+
+  /** Returns the index of the sidecar file, or {@code null} if missing or out of date. */
+  private static Index readIndex(File indexFile, long logLength, long logLastModified)
+      throws IOException {
+    if (!indexFile.isFile()) {
+      return null;
+    }
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+      if (input.readInt() != INDEX_MAGIC
+          || input.readInt() != INDEX_VERSION
+          || input.readLong() != logLength
+          || input.readLong() != logLastModified) {
+        return null;
+      }
+      Index index = new Index();
+      int epochCount = input.readInt();
+      for (int i = 0; i < epochCount; i++) {
+        index.addEpoch(input.readLong(), input.readLong(), input.readLong());
+      }
+      int navigationMessageCount = input.readInt();
+      for (int i = 0; i < navigationMessageCount; i++) {
+        index.addNavigationMessage(input.readLong(), input.readInt());
+      }
+      index.firstFixOffset = input.readLong();
+      index.firstFixLength = input.readInt();
+      return index;
+    } catch (IOException e) {
+      // A truncated sidecar is built again
+      return null;
+    }
+  }
+
+  /** Writes the sidecar file, renamed into place once complete. */
+  private static void writeIndex(
+      Index index, File indexFile, long logLength, long logLastModified) throws IOException {
+    File temporaryFile = new File(indexFile.getPath() + TEMPORARY_FILE_SUFFIX);
+    try (DataOutputStream output =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+      output.writeInt(INDEX_MAGIC);
+      output.writeInt(INDEX_VERSION);
+      output.writeLong(logLength);
+      output.writeLong(logLastModified);
+      output.writeInt(index.epochCount);
+      for (int i = 0; i < index.epochCount; i++) {
+        output.writeLong(index.epochOffsets[i]);
+        output.writeLong(index.epochTimeNanos[i]);
+        output.writeLong(index.epochGpsTimeNanos[i]);
+      }
+      output.writeInt(index.navigationMessageCount);
+      for (int i = 0; i < index.navigationMessageCount; i++) {
+        output.writeLong(index.navigationMessageOffsets[i]);
+        output.writeInt(index.navigationMessageLengths[i]);
+      }
+      output.writeLong(index.firstFixOffset);
+      output.writeInt(index.firstFixLength);
+    }
+    if (!temporaryFile.renameTo(indexFile)) {
+      temporaryFile.delete();
+      throw new IOException("Could not write " + indexFile.getAbsolutePath());
+    }
+  }
+
+  /** Growable arrays of the index, while it is built or read. */
+  private static final class Index {
+    int epochCount;
+    long[] epochOffsets = new long[64];
+    long[] epochTimeNanos = new long[64];
+    long[] epochGpsTimeNanos = new long[64];
+    int navigationMessageCount;
+    long[] navigationMessageOffsets = new long[64];
+    int[] navigationMessageLengths = new int[64];
+    long firstFixOffset = -1;
+    int firstFixLength;
+
+    void addEpoch(long offset, long timeNanos, long gpsTimeNanos) {
+      if (epochCount == epochOffsets.length) {
+        epochOffsets = Arrays.copyOf(epochOffsets, 2 * epochCount);
+        epochTimeNanos = Arrays.copyOf(epochTimeNanos, 2 * epochCount);
+        epochGpsTimeNanos = Arrays.copyOf(epochGpsTimeNanos, 2 * epochCount);
+      }
+      epochOffsets[epochCount] = offset;
+      epochTimeNanos[epochCount] = timeNanos;
+      epochGpsTimeNanos[epochCount] = gpsTimeNanos;
+      epochCount++;
+    }
+
+    void addNavigationMessage(long offset, int length) {
+      if (navigationMessageCount == navigationMessageOffsets.length) {
+        navigationMessageOffsets =
+            Arrays.copyOf(navigationMessageOffsets, 2 * navigationMessageCount);
+        navigationMessageLengths =
+            Arrays.copyOf(navigationMessageLengths, 2 * navigationMessageCount);
+      }
+      navigationMessageOffsets[navigationMessageCount] = offset;
+      navigationMessageLengths[navigationMessageCount] = length;
+      navigationMessageCount++;
+    }
+  }
+
+  /** Reads byte ranges of the mapping one after the other, as ISO-8859-1 characters. */
+  private static final class RangeReader extends Reader {
+    private final ByteBuffer mBuffer;
+    private final int[] mStarts;
+    private final int[] mEnds;
+    private final int mRangeCount;
+    private int mRange;
+    private int mPosition;
+
+    RangeReader(ByteBuffer buffer, int[] starts, int[] ends, int rangeCount) {
+      mBuffer = buffer;
+      mStarts = starts;
+      mEnds = ends;
+      mRangeCount = rangeCount;
+      mPosition = rangeCount > 0 ? starts[0] : 0;
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) {
+      int count = 0;
+      while (count < length && mRange < mRangeCount) {
+        if (mPosition == mEnds[mRange]) {
+          mRange++;
+          if (mRange < mRangeCount) {
+            mPosition = mStarts[mRange];
+          }
+          continue;
+        }
+        chars[offset + count++] = (char) (mBuffer.get(mPosition++) & 0xff);
+      }
+      return count == 0 && length > 0 ? -1 : count;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
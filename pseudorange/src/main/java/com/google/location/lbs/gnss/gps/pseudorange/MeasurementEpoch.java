@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+/**
+ * The GPS measurements of all satellites received in a single epoch, stored as one primitive array
+ * per measured quantity and indexed by satellite PRN - 1.
+ *
+ * <p>Which PRNs hold a measurement is tracked in the {@link #validSatellitesMask} bitmask, so that
+ * an instance can be reused for every epoch without allocating per satellite objects. Instances are
+ * obtained from a {@link MeasurementEpochPool}.
+ *
+ * <p>The class is not thread safe.
+ */
+final class MeasurementEpoch {
+  /** Number of satellites that fit in an epoch, one bit of the valid mask each */
+  static final int CAPACITY = GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES;
+
+  private static final double SPEED_OF_LIGHT_MPS = 299792458.0;
+  private static final double SECONDS_PER_NANO = 1.0e-9;
+  /** Average signal travel time from GPS satellite and earth */
+  private static final double AVERAGE_TRAVEL_TIME_SECONDS = 70.0e-3;
+  /** GPS C/A code chip width Tc = 1 microseconds */
+  private static final double GPS_CHIP_WIDTH_T_C_SEC = 1.0e-6;
+  /** Narrow correlator with spacing d = 0.1 chip */
+  private static final double GPS_CORRELATOR_SPACING_IN_CHIPS = 0.1;
+  /** Average time of DLL correlator T of 20 milliseconds */
+  private static final double GPS_DLL_AVERAGING_TIME_SEC = 20.0e-3;
+  /** Resolution and upper bound of the C/N0 to pseudorange sigma lookup table */
+  private static final double SIGMA_TABLE_STEP_DB_HZ = 0.1;
+  private static final double SIGMA_TABLE_MAX_DB_HZ = 70.0;
+  private static final double[] SIGMA_METERS_PER_CN0_STEP = createSigmaTable();
+
+  /** Time since GPS week start at which all the measurements were received (Nano seconds) */
+  long arrivalTimeSinceGpsWeekNs;
+  /** Bit {@code i} is set if index {@code i}, i.e. PRN {@code i + 1}, holds a measurement */
+  int validSatellitesMask;
+  /** Bit {@code i} is set if the accumulated delta range of index {@code i} is valid */
+  int validAccumulatedDeltaRangeMask;
+  /**
+   * Bit {@code i} is set if the time of week of index {@code i} is decoded, otherwise only the
+   * submillisecond part of its received satellite time is meaningful
+   */
+  int towDecodedMask;
+
+  final int[] svid = new int[CAPACITY];
+  final int[] constellationType = new int[CAPACITY];
+  /** Received satellite time of week (Nano seconds) */
+  final long[] receivedSvTimeNs = new long[CAPACITY];
+  /** Carrier to noise density (dB-Hz) */
+  final double[] cn0DbHz = new double[CAPACITY];
+  final double[] pseudorangeRateMps = new double[CAPACITY];
+  final double[] pseudorangeRateUncertaintyMps = new double[CAPACITY];
+  final double[] accumulatedDeltaRangeMeters = new double[CAPACITY];
+  final double[] accumulatedDeltaRangeUncertaintyMeters = new double[CAPACITY];
+  /** Pseudorange and its uncertainty, filled by {@link #computePseudorangesAndUncertainties} */
+  final double[] pseudorangeMeters = new double[CAPACITY];
+  final double[] pseudorangeUncertaintyMeters = new double[CAPACITY];
+
+  /** Removes all the measurements. The primitive columns are left as is and overwritten on use. */
+  void clear() {
+    arrivalTimeSinceGpsWeekNs = 0;
+    validSatellitesMask = 0;
+    validAccumulatedDeltaRangeMask = 0;
+    towDecodedMask = 0;
+  }
+
+  /** Stores the measurement of a GPS satellite and marks it as valid */
+  void setMeasurement(
+      int svid,
+      int constellationType,
+      long receivedSvTimeNs,
+      double cn0DbHz,
+      double pseudorangeRateMps,
+      double pseudorangeRateUncertaintyMps,
+      double accumulatedDeltaRangeMeters,
+      double accumulatedDeltaRangeUncertaintyMeters,
+      boolean validAccumulatedDeltaRange,
+      boolean towDecoded) {
+    int index = svid - 1;
+    this.svid[index] = svid;
+    this.constellationType[index] = constellationType;
+    this.receivedSvTimeNs[index] = receivedSvTimeNs;
+    this.cn0DbHz[index] = cn0DbHz;
+    this.pseudorangeRateMps[index] = pseudorangeRateMps;
+    this.pseudorangeRateUncertaintyMps[index] = pseudorangeRateUncertaintyMps;
+    this.accumulatedDeltaRangeMeters[index] = accumulatedDeltaRangeMeters;
+    this.accumulatedDeltaRangeUncertaintyMeters[index] = accumulatedDeltaRangeUncertaintyMeters;
+    validSatellitesMask |= 1 << index;
+    if (validAccumulatedDeltaRange) {
+      validAccumulatedDeltaRangeMask |= 1 << index;
+    } else {
+      validAccumulatedDeltaRangeMask &= ~(1 << index);
+    }
+    if (towDecoded) {
+      towDecodedMask |= 1 << index;
+    } else {
+      towDecodedMask &= ~(1 << index);
+    }
+  }
+
+  /** Returns true if index {@code index}, i.e. PRN {@code index + 1}, holds a measurement */
+  boolean isValid(int index) {
+    return isValid(validSatellitesMask, index);
+  }
+
+  /** Returns true if bit {@code index} is set in {@code satellitesMask} */
+  static boolean isValid(int satellitesMask, int index) {
+    return (satellitesMask & (1 << index)) != 0;
+  }
+
+  /** Removes the measurement at index {@code index} */
+  void invalidate(int index) {
+    validSatellitesMask &= ~(1 << index);
+  }
+
+  boolean hasValidAccumulatedDeltaRange(int index) {
+    return isValid(validAccumulatedDeltaRangeMask, index);
+  }
+
+  int getNumberOfValidSatellites() {
+    return Integer.bitCount(validSatellitesMask);
+  }
+
+  int getNumberOfTowDecodedSatellites() {
+    return Integer.bitCount(validSatellitesMask & towDecodedMask);
+  }
+
+  /** Removes the measurements whose time of week is not decoded */
+  void invalidateTowAmbiguousSatellites() {
+    validSatellitesMask &= towDecodedMask;
+  }
+
+  /** Copies all the measurements of {@code another} into this epoch */
+  void copyFrom(MeasurementEpoch another) {
+    arrivalTimeSinceGpsWeekNs = another.arrivalTimeSinceGpsWeekNs;
+    validSatellitesMask = another.validSatellitesMask;
+    validAccumulatedDeltaRangeMask = another.validAccumulatedDeltaRangeMask;
+    towDecodedMask = another.towDecodedMask;
+    System.arraycopy(another.svid, 0, svid, 0, CAPACITY);
+    System.arraycopy(another.constellationType, 0, constellationType, 0, CAPACITY);
+    System.arraycopy(another.receivedSvTimeNs, 0, receivedSvTimeNs, 0, CAPACITY);
+    System.arraycopy(another.cn0DbHz, 0, cn0DbHz, 0, CAPACITY);
+    System.arraycopy(another.pseudorangeRateMps, 0, pseudorangeRateMps, 0, CAPACITY);
+    System.arraycopy(
+        another.pseudorangeRateUncertaintyMps, 0, pseudorangeRateUncertaintyMps, 0, CAPACITY);
+    System.arraycopy(
+        another.accumulatedDeltaRangeMeters, 0, accumulatedDeltaRangeMeters, 0, CAPACITY);
+    System.arraycopy(
+        another.accumulatedDeltaRangeUncertaintyMeters, 0,
+        accumulatedDeltaRangeUncertaintyMeters, 0, CAPACITY);
+    System.arraycopy(another.pseudorangeMeters, 0, pseudorangeMeters, 0, CAPACITY);
+    System.arraycopy(
+        another.pseudorangeUncertaintyMeters, 0, pseudorangeUncertaintyMeters, 0, CAPACITY);
+  }
+
+  /**
+   * Uses the common reception time approach to calculate pseudoranges from the time of week
+   * measurements reported by the receiver according to http://cdn.intechopen.com/pdfs-wm/27712.pdf.
+   * As well computes the pseudoranges uncertainties for each valid satellite. The results are
+   * stored in {@link #pseudorangeMeters} and {@link #pseudorangeUncertaintyMeters}.
+   */
+  void computePseudorangesAndUncertainties(long largestTowNs) {
+    for (int i = 0; i < CAPACITY; i++) {
+      if (isValid(i)) {
+        double deltai = largestTowNs - receivedSvTimeNs[i];
+        pseudorangeMeters[i] =
+            (AVERAGE_TRAVEL_TIME_SECONDS + deltai * SECONDS_PER_NANO) * SPEED_OF_LIGHT_MPS;
+        pseudorangeUncertaintyMeters[i] = getPseudorangeSigmaMeters(cn0DbHz[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns the pseudorange uncertainty for the given C/N0, looked up in a table of
+   * {@value #SIGMA_TABLE_STEP_DB_HZ} dB-Hz resolution with linear interpolation.
+   */
+  static double getPseudorangeSigmaMeters(double cn0DbHz) {
+    double tablePosition = cn0DbHz / SIGMA_TABLE_STEP_DB_HZ;
+    int tableIndex = (int) tablePosition;
+    if (tablePosition < 0 || tableIndex >= SIGMA_METERS_PER_CN0_STEP.length - 1) {
+      return computePseudorangeSigmaMeters(cn0DbHz);
+    }
+    double fraction = tablePosition - tableIndex;
+    return SIGMA_METERS_PER_CN0_STEP[tableIndex]
+        + fraction * (SIGMA_METERS_PER_CN0_STEP[tableIndex + 1]
+            - SIGMA_METERS_PER_CN0_STEP[tableIndex]);
+  }
+
+  /**
+   * From Global Positoning System book, Misra and Enge, page 416, the uncertainty of the
+   * pseudorange measurement is calculated next. For GPS C/A code chip width Tc = 1 microseconds.
+   * Narrow correlator with spacing d = 0.1 chip and an average time of DLL correlator T of 20
+   * milliseconds are used.
+   */
+  private static double computePseudorangeSigmaMeters(double cn0DbHz) {
+    double signalToNoiseRatioLinear = Math.pow(10, cn0DbHz / 10.0);
+    return SPEED_OF_LIGHT_MPS
+        * GPS_CHIP_WIDTH_T_C_SEC
+        * Math.sqrt(
+            GPS_CORRELATOR_SPACING_IN_CHIPS
+                / (4 * GPS_DLL_AVERAGING_TIME_SEC * signalToNoiseRatioLinear));
+  }
+
+  private static double[] createSigmaTable() {
+    double[] sigmaTable =
+        new double[(int) Math.round(SIGMA_TABLE_MAX_DB_HZ / SIGMA_TABLE_STEP_DB_HZ) + 1];
+    for (int i = 0; i < sigmaTable.length; i++) {
+      sigmaTable[i] = computePseudorangeSigmaMeters(i * SIGMA_TABLE_STEP_DB_HZ);
+    }
+    return sigmaTable;
+  }
+}
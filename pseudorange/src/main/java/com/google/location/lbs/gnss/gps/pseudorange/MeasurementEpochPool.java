@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of {@link MeasurementEpoch} instances, so that processing an epoch does not allocate
+ * once the pool is warmed up. At most {@value #MAX_POOL_SIZE} released instances are kept.
+ *
+ * <p>The class is not thread safe, it is meant to be used from the thread computing the solutions.
+ */
+final class MeasurementEpochPool {
+  private static final int MAX_POOL_SIZE = 4;
+
+  private final ArrayDeque<MeasurementEpoch> mFreeEpochs = new ArrayDeque<>(MAX_POOL_SIZE);
+
+  /** Returns a cleared epoch, reused from the pool if possible */
+  MeasurementEpoch acquire() {
+    MeasurementEpoch epoch = mFreeEpochs.pollFirst();
+    if (epoch == null) {
+      epoch = new MeasurementEpoch();
+    }
+    epoch.clear();
+    return epoch;
+  }
+
+  /** Returns {@code epoch} to the pool, it must not be used by the caller anymore */
+  void release(MeasurementEpoch epoch) {
+    if (mFreeEpochs.size() < MAX_POOL_SIZE) {
+      mFreeEpochs.offerFirst(epoch);
+    }
+  }
+}
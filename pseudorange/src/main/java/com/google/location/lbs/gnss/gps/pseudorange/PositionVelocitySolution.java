@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+/**
+ * An immutable position and velocity solution computed from the measurements of one epoch.
+ *
+ * <p>Instances are published by the solver thread and can be read from any thread without locking.
+ * The array getters return copies.
+ */
+public final class PositionVelocitySolution {
+
+  /** A solution where no position could be computed, all the values being NaN */
+  public static final PositionVelocitySolution NO_SOLUTION =
+      new PositionVelocitySolution(
+          0,
+          GpsMathOperations.createAndFillArray(3, Double.NaN),
+          GpsMathOperations.createAndFillArray(3, Double.NaN),
+          GpsMathOperations.createAndFillArray(6, Double.NaN),
+          GpsMathOperations.createAndFillArray(
+              GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN));
+
+  private final long mArrivalTimeSinceGpsEpochNs;
+  private final double[] mPositionSolutionLatLngDeg;
+  private final double[] mVelocitySolutionEnuMps;
+  private final double[] mPositionVelocityUncertaintyEnu;
+  private final double[] mPseudorangeResidualsMeters;
+  private final double[] mPseudorangeWeights;
+
+  /**
+   * Constructor, the arrays are copied.
+   *
+   * @param arrivalTimeSinceGpsEpochNs Time of the measurements in nanoseconds since the GPS epoch
+   * @param positionSolutionLatLngDeg Latitude and longitude in degrees and altitude in meters
+   * @param velocitySolutionEnuMps East, north and up velocity in meters per second
+   * @param positionVelocityUncertaintyEnu East, north and up position uncertainty in meters
+   *     followed by the east, north and up velocity uncertainty in meters per second
+   * @param pseudorangeResidualsMeters Pseudorange residual of each satellite indexed by PRN - 1
+   * @param pseudorangeWeights Final weight of the pseudorange of each satellite in the solution
+   *     indexed by PRN - 1, between 0 and 1, NaN if unknown
+   */
+  public PositionVelocitySolution(
+      long arrivalTimeSinceGpsEpochNs,
+      double[] positionSolutionLatLngDeg,
+      double[] velocitySolutionEnuMps,
+      double[] positionVelocityUncertaintyEnu,
+      double[] pseudorangeResidualsMeters,
+      double[] pseudorangeWeights) {
+    mArrivalTimeSinceGpsEpochNs = arrivalTimeSinceGpsEpochNs;
+    mPositionSolutionLatLngDeg = positionSolutionLatLngDeg.clone();
+    mVelocitySolutionEnuMps = velocitySolutionEnuMps.clone();
+    mPositionVelocityUncertaintyEnu = positionVelocityUncertaintyEnu.clone();
+    mPseudorangeResidualsMeters = pseudorangeResidualsMeters.clone();
+    mPseudorangeWeights = pseudorangeWeights.clone();
+  }
+
+  /** Constructor of a solution whose pseudorange weights are unknown, the arrays are copied. */
+  public PositionVelocitySolution(
+      long arrivalTimeSinceGpsEpochNs,
+      double[] positionSolutionLatLngDeg,
+      double[] velocitySolutionEnuMps,
+      double[] positionVelocityUncertaintyEnu,
+      double[] pseudorangeResidualsMeters) {
+    this(
+        arrivalTimeSinceGpsEpochNs,
+        positionSolutionLatLngDeg,
+        velocitySolutionEnuMps,
+        positionVelocityUncertaintyEnu,
+        pseudorangeResidualsMeters,
+        GpsMathOperations.createAndFillArray(
+            GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN));
+  }
+
+  /** Returns true if a position was computed, i.e. the position is not NaN */
+  public boolean hasPosition() {
+    return !Double.isNaN(mPositionSolutionLatLngDeg[0]);
+  }
+
+  public long getArrivalTimeSinceGpsEpochNs() {
+    return mArrivalTimeSinceGpsEpochNs;
+  }
+
+  public double getLatitudeDegrees() {
+    return mPositionSolutionLatLngDeg[0];
+  }
+
+  public double getLongitudeDegrees() {
+    return mPositionSolutionLatLngDeg[1];
+  }
+
+  public double getAltitudeMeters() {
+    return mPositionSolutionLatLngDeg[2];
+  }
+
+  /** Returns a copy of the latitude and longitude in degrees and altitude in meters */
+  public double[] getPositionSolutionLatLngDeg() {
+    return mPositionSolutionLatLngDeg.clone();
+  }
+
+  /** Returns a copy of the east, north and up velocity in meters per second */
+  public double[] getVelocitySolutionEnuMps() {
+    return mVelocitySolutionEnuMps.clone();
+  }
+
+  /**
+   * Returns a copy of the east, north and up position uncertainty in meters followed by the east,
+   * north and up velocity uncertainty in meters per second
+   */
+  public double[] getPositionVelocityUncertaintyEnu() {
+    return mPositionVelocityUncertaintyEnu.clone();
+  }
+
+  /** Returns a copy of the pseudorange residuals in meters indexed by PRN - 1 */
+  public double[] getPseudorangeResidualsMeters() {
+    return mPseudorangeResidualsMeters.clone();
+  }
+
+  /** Returns a copy of the final pseudorange weights between 0 and 1 indexed by PRN - 1 */
+  public double[] getPseudorangeWeights() {
+    return mPseudorangeWeights.clone();
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+
+/**
+ * Computes the receiver position and velocity of an epoch from its pseudorange and pseudorange rate
+ * measurements. Implementations may keep state from one epoch to the next.
+ */
+interface PositionVelocitySolver {
+
+  /**
+   * Computes the position and velocity solution of {@code measurementEpoch}, whose pseudoranges
+   * and uncertainties are already computed, and fills the output arrays.
+   *
+   * @param navMessageProto parameters of the navigation message
+   * @param measurementEpoch {@link MeasurementEpoch} containing the receiver measurements and
+   *     pseudoranges of the useful satellites for computing the position solution. It is not
+   *     modified.
+   * @param receiverGPSTowAtReceptionSeconds Receiver estimate of GPS time of week (seconds)
+   * @param receiverGPSWeek Receiver estimate of GPS week (0-1024+)
+   * @param dayOfYear1To366 The day of the year between 1 and 366
+   * @param positionVelocitySolutionECEF Solution array of the following format:
+   *        [0-2] xyz solution of user.
+   *        [3] clock bias of user.
+   *        [4-6] velocity of user.
+   *        [7] clock bias rate of user.
+   * @param positionVelocityUncertaintyEnu Uncertainty of calculated position and velocity solution
+   *     in meters and mps local ENU system. Array has the following format:
+   *     [0-2] Enu uncertainty of position solution in meters
+   *     [3-5] Enu uncertainty of velocity solution in meters per second.
+   * @param pseudorangeResidualMeters The pseudorange residual corrected by subtracting expected
+   *     psudorange calculated with the use clock bias of the highest elevation satellites.
+   */
+  void calculateUserPositionVelocity(
+      GpsNavMessageProto navMessageProto,
+      MeasurementEpoch measurementEpoch,
+      double receiverGPSTowAtReceptionSeconds,
+      int receiverGPSWeek,
+      int dayOfYear1To366,
+      double[] positionVelocitySolutionECEF,
+      double[] positionVelocityUncertaintyEnu,
+      double[] pseudorangeResidualMeters)
+      throws Exception;
+
+  /**
+   * Sets the reference ground truth for pseudorange residual correction calculation. If no ground
+   * truth is set, no corrected pesudorange residual will be calculated.
+   */
+  void setTruthLocationForCorrectedResidualComputationEcef(
+      double[] groundTruthForResidualCorrectionEcef);
+}
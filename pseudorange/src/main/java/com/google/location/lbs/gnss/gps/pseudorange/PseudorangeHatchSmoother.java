@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+/**
+ * Smooths the pseudoranges with the accumulated delta ranges (carrier phase) using the Hatch
+ * filter: the smoothed pseudorange is the accumulated delta range plus the running mean of the
+ * code minus carrier difference over the last {@code n} epochs, which keeps the carrier precision
+ * and the code absolute level.
+ *
+ * <p>The state of each satellite is kept in primitive arrays indexed by PRN - 1, and is restarted
+ * when:
+ *
+ * <ul>
+ *   <li>the satellite or its accumulated delta range is missing in an epoch. The accumulated delta
+ *       range is not valid either when the receiver reports a reset or a cycle slip.
+ *   <li>the code minus carrier difference jumps by more than {@value #CYCLE_SLIP_SIGMAS}
+ *       pseudorange sigmas, i.e. a cycle slip the receiver did not report.
+ *   <li>the time between two epochs is not positive or larger than {@value #MAX_EPOCH_GAP_SECONDS}
+ *       seconds.
+ * </ul>
+ *
+ * <p>The window length {@code n} grows by one per epoch up to {@value #MAX_SMOOTHING_SECONDS}
+ * seconds of epochs, beyond which the ionospheric code carrier divergence dominates, and is halved
+ * when the code minus carrier difference moves by more than {@value #WINDOW_SHRINK_SIGMAS}
+ * pseudorange sigmas.
+ *
+ * <p>The pseudoranges are computed against a reference time common to all satellites which changes
+ * from epoch to epoch, see {@link MeasurementEpoch#computePseudorangesAndUncertainties}. This shift
+ * is common to the code minus carrier differences of all satellites, so its median over the
+ * satellites tracked since the last epoch is applied to all their states before the jumps are
+ * tested.
+ *
+ * <p>Sources: Principles of GNSS, Inertial, and Multisensor Integrated Navigation Systems, page
+ * 388, 389; Satellite Communications and Navigation Systems book, page 424.
+ *
+ * <p>Updating does not allocate. The class is not thread safe.
+ */
+class PseudorangeHatchSmoother implements PseudorangeSmoother {
+  private static final double SECONDS_PER_NANO = 1.0e-9;
+  private static final double MAX_SMOOTHING_SECONDS = 100.0;
+  private static final double MAX_EPOCH_GAP_SECONDS = 5.0;
+  private static final double CYCLE_SLIP_SIGMAS = 5.0;
+  private static final double WINDOW_SHRINK_SIGMAS = 3.0;
+
+  /** Mean code minus carrier difference of each satellite (meters) */
+  private final double[] mCodeMinusCarrierMeters = new double[MeasurementEpoch.CAPACITY];
+  /** Number of epochs averaged in {@link #mCodeMinusCarrierMeters} */
+  private final int[] mWindowLength = new int[MeasurementEpoch.CAPACITY];
+  /** Code minus carrier difference of each tracked satellite in the current epoch (meters) */
+  private final double[] mCurrentCodeMinusCarrierMeters = new double[MeasurementEpoch.CAPACITY];
+  private final double[] mSortedShiftsMeters = new double[MeasurementEpoch.CAPACITY];
+  private final MeasurementEpoch mSmoothedEpoch = new MeasurementEpoch();
+  /** Bit {@code i} is set if the satellite at index {@code i} has a smoothing state */
+  private int mTrackedSatellitesMask;
+  private long mLastArrivalTimeSinceGpsWeekNs;
+
+  @Override
+  public MeasurementEpoch updatePseudorangeSmoothingResult(MeasurementEpoch measurementEpoch) {
+    double epochIntervalSeconds =
+        (measurementEpoch.arrivalTimeSinceGpsWeekNs - mLastArrivalTimeSinceGpsWeekNs)
+            * SECONDS_PER_NANO;
+    mLastArrivalTimeSinceGpsWeekNs = measurementEpoch.arrivalTimeSinceGpsWeekNs;
+    if (epochIntervalSeconds <= 0 || epochIntervalSeconds > MAX_EPOCH_GAP_SECONDS) {
+      mTrackedSatellitesMask = 0;
+    }
+    int maxWindowLength = (int) Math.max(1, MAX_SMOOTHING_SECONDS / epochIntervalSeconds);
+
+    int smoothableMask =
+        measurementEpoch.validSatellitesMask & measurementEpoch.validAccumulatedDeltaRangeMask;
+    mTrackedSatellitesMask &= smoothableMask;
+    for (int i = 0; i < MeasurementEpoch.CAPACITY; i++) {
+      if (MeasurementEpoch.isValid(smoothableMask, i)) {
+        mCurrentCodeMinusCarrierMeters[i] =
+            measurementEpoch.pseudorangeMeters[i]
+                - measurementEpoch.accumulatedDeltaRangeMeters[i];
+      }
+    }
+    double commonShiftMeters = computeMedianShiftMeters();
+
+    mSmoothedEpoch.copyFrom(measurementEpoch);
+    for (int i = 0; i < MeasurementEpoch.CAPACITY; i++) {
+      if (!MeasurementEpoch.isValid(smoothableMask, i)) {
+        continue;
+      }
+      double sigmaMeters = measurementEpoch.pseudorangeUncertaintyMeters[i];
+      if (MeasurementEpoch.isValid(mTrackedSatellitesMask, i)) {
+        mCodeMinusCarrierMeters[i] += commonShiftMeters;
+        double jumpMeters =
+            Math.abs(mCurrentCodeMinusCarrierMeters[i] - mCodeMinusCarrierMeters[i]);
+        if (jumpMeters > CYCLE_SLIP_SIGMAS * sigmaMeters) {
+          mWindowLength[i] = 0;
+        } else if (jumpMeters > WINDOW_SHRINK_SIGMAS * sigmaMeters) {
+          mWindowLength[i] /= 2;
+        }
+      } else {
+        mWindowLength[i] = 0;
+      }
+      int windowLength = Math.min(mWindowLength[i] + 1, maxWindowLength);
+      mCodeMinusCarrierMeters[i] +=
+          (mCurrentCodeMinusCarrierMeters[i] - mCodeMinusCarrierMeters[i]) / windowLength;
+      mWindowLength[i] = windowLength;
+
+      double adrUncertaintyMeters = measurementEpoch.accumulatedDeltaRangeUncertaintyMeters[i];
+      mSmoothedEpoch.pseudorangeMeters[i] =
+          measurementEpoch.accumulatedDeltaRangeMeters[i] + mCodeMinusCarrierMeters[i];
+      mSmoothedEpoch.pseudorangeUncertaintyMeters[i] =
+          Math.sqrt(
+              sigmaMeters * sigmaMeters / windowLength
+                  + adrUncertaintyMeters * adrUncertaintyMeters);
+    }
+    mTrackedSatellitesMask = smoothableMask;
+    return mSmoothedEpoch;
+  }
+
+  /**
+   * Returns the median change of the code minus carrier differences of the satellites tracked
+   * since the last epoch, or 0 if none is.
+   */
+  private double computeMedianShiftMeters() {
+    int count = 0;
+    for (int i = 0; i < MeasurementEpoch.CAPACITY; i++) {
+      if (MeasurementEpoch.isValid(mTrackedSatellitesMask, i)) {
+        double shiftMeters = mCurrentCodeMinusCarrierMeters[i] - mCodeMinusCarrierMeters[i];
+        // insertion sort, there are at most a few tens of satellites
+        int j = count++;
+        while (j > 0 && mSortedShiftsMeters[j - 1] > shiftMeters) {
+          mSortedShiftsMeters[j] = mSortedShiftsMeters[j - 1];
+          j--;
+        }
+        mSortedShiftsMeters[j] = shiftMeters;
+      }
+    }
+    if (count == 0) {
+      return 0;
+    }
+    return count % 2 == 1
+        ? mSortedShiftsMeters[count / 2]
+        : (mSortedShiftsMeters[count / 2 - 1] + mSortedShiftsMeters[count / 2]) / 2;
+  }
+}
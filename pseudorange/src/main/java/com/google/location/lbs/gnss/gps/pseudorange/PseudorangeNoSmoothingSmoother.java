@@ -16,21 +16,16 @@
 
 package com.google.location.lbs.gnss.gps.pseudorange;
 
-import java.util.Collections;
-import java.util.List;
-
 /**
  * An implementation of {@link PseudorangeSmoother} that performs no smoothing.
  *
- * <p> A new list of {@link GpsMeasurementWithRangeAndUncertainty} instances is filled with a copy
- * of the input list.
+ * <p> The input {@link MeasurementEpoch} is returned as is.
  */
 class PseudorangeNoSmoothingSmoother implements PseudorangeSmoother {
 
   @Override
-  public List<GpsMeasurementWithRangeAndUncertainty> updatePseudorangeSmoothingResult(
-      List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToGPSReceiverMeasurements) {
-    return Collections.unmodifiableList(usefulSatellitesToGPSReceiverMeasurements);
+  public MeasurementEpoch updatePseudorangeSmoothingResult(MeasurementEpoch measurementEpoch) {
+    return measurementEpoch;
   }
 
 }
@@ -23,78 +23,134 @@ import android.location.GnssNavigationMessage;
 import android.location.GnssStatus;
 import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
 import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
-import android.location.cts.suplClient.SuplRrlpController;
 import android.util.Log;
 
+import com.google.common.base.Preconditions;
 import com.google.location.lbs.gnss.gps.pseudorange.Ecef2EnuConverter.EnuValues;
 import com.google.location.lbs.gnss.gps.pseudorange.Ecef2LlaConverter.GeodeticLlaValues;
 
 import java.io.BufferedReader;
-import java.io.IOException;
-import java.net.UnknownHostException;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Helper class for calculating Gps position and velocity solution using weighted least squares
- * where the raw Gps measurements are parsed as a {@link BufferedReader} with the option to apply
- * doppler smoothing, carrier phase smoothing or no smoothing.
+ * where the raw Gps measurements are parsed as a {@link BufferedReader}. The pseudoranges are
+ * smoothed with the carrier phase by a {@link PseudorangeHatchSmoother}.
+ *
+ * <p>The velocity of each epoch is also computed from the pseudorange rates alone, around the last
+ * position, and published to the {@link VelocitySolutionListener}s before the position solution, so
+ * that it is available even for the epochs whose position can not be computed.
+ *
+ * <p>With the coarse time navigation enabled, the measurements whose time of week is not decoded
+ * yet are kept as well, and the epochs with less than four decoded times of week are solved by a
+ * {@link CoarseTimeNavigationSolver} from the reference position, for a faster first fix.
  *
  */
 public class PseudorangePositionVelocityFromRealTimeEvents {
 
+  /** Solves each epoch independently with an iterative weighted least square (the default) */
+  public static final int SOLVER_WEIGHTED_LEAST_SQUARE = 0;
+  /** Solves the epochs with an extended Kalman filter, at a constant cost per epoch */
+  public static final int SOLVER_EXTENDED_KALMAN_FILTER = 1;
+  /** Time to first fix of a session without such a fix yet */
+  public static final long NO_TIME_TO_FIRST_FIX = -1;
+  /** Removes the satellites with high residuals and repeats the least square (the default) */
+  public static final int ROBUST_LOSS_NONE = 0;
+  /** Down-weights the high residuals of the least square with a Huber loss */
+  public static final int ROBUST_LOSS_HUBER = 1;
+  /** Down-weights the high residuals of the least square with a Tukey biweight loss */
+  public static final int ROBUST_LOSS_TUKEY = 2;
+
   private static final String TAG = "PseudorangePositionVelocityFromRealTimeEvents";
   private static final double SECONDS_PER_NANO = 1.0e-9;
+  private static final int CODE_LOCK_MEASUREMENT_STATE_BIT = 0;
   private static final int TOW_DECODED_MEASUREMENT_STATE_BIT = 3;
   /** Average signal travel time from GPS satellite and earth */
   private static final int VALID_ACCUMULATED_DELTA_RANGE_STATE = 1;
   private static final int MINIMUM_NUMBER_OF_USEFUL_SATELLITES = 4;
   private static final int C_TO_N0_THRESHOLD_DB_HZ = 18;
 
-  private static final String SUPL_SERVER_NAME = "supl.google.com";
-  private static final int SUPL_SERVER_PORT = 7276;
-
   private GpsNavMessageProto mHardwareGpsNavMessageProto = null;
 
   // navigation message parser
   private GpsNavigationMessageStore mGpsNavigationMessageStore = new GpsNavigationMessageStore();
-  private double[] mPositionSolutionLatLngDeg = GpsMathOperations.createAndFillArray(3, Double.NaN);
-  private double[] mVelocitySolutionEnuMps = GpsMathOperations.createAndFillArray(3, Double.NaN);
-  private final double[] mPositionVelocityUncertaintyEnu
-      = GpsMathOperations.createAndFillArray(6, Double.NaN);
-  private double[] mPseudorangeResidualsMeters =
-      GpsMathOperations.createAndFillArray(
-          GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN
-      );
+  private final AtomicReference<PositionVelocitySolution> mLatestSolution =
+      new AtomicReference<>(PositionVelocitySolution.NO_SOLUTION);
+  private final List<PositionVelocitySolutionListener> mSolutionListeners =
+      new CopyOnWriteArrayList<>();
+  private final List<VelocitySolutionListener> mVelocitySolutionListeners =
+      new CopyOnWriteArrayList<>();
   private boolean mFirstUsefulMeasurementSet = true;
   private int[] mReferenceLocation = null;
-  private long mLastReceivedSuplMessageTimeMillis = 0;
-  private long mDeltaTimeMillisToMakeSuplRequest = TimeUnit.MINUTES.toMillis(30);
-  private boolean mFirstSuplRequestNeeded = true;
+  // Null when only the navigation messages decoded from the receiver are used
+  private final SuplAssistanceManager mSuplAssistanceManager;
   private GpsNavMessageProto mGpsNavMessageProtoUsed = null;
 
-  // Only the interface of pseudorange smoother is provided. Please implement customized smoother.
-  PseudorangeSmoother mPseudorangeSmoother = new PseudorangeNoSmoothingSmoother();
+  // Smooths the pseudoranges with the accumulated delta ranges when they are valid
+  PseudorangeSmoother mPseudorangeSmoother = new PseudorangeHatchSmoother();
   private final UserPositionVelocityWeightedLeastSquare mUserPositionVelocityLeastSquareCalculator =
       new UserPositionVelocityWeightedLeastSquare(mPseudorangeSmoother);
-  private GpsMeasurement[] mUsefulSatellitesToReceiverMeasurements =
-      new GpsMeasurement[GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES];
-  private Long[] mUsefulSatellitesToTowNs =
-      new Long[GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES];
+  private final UserPositionVelocityExtendedKalmanFilter mUserPositionVelocityKalmanFilter =
+      new UserPositionVelocityExtendedKalmanFilter(mPseudorangeSmoother);
+  private volatile PositionVelocitySolver mPositionVelocitySolver =
+      mUserPositionVelocityLeastSquareCalculator;
+  private final MeasurementEpochPool mMeasurementEpochPool = new MeasurementEpochPool();
+  private final PseudorangeRateVelocitySolver mPseudorangeRateVelocitySolver =
+      new PseudorangeRateVelocitySolver();
+  // Last computed position, or the reference position until one is computed, in ECEF meters
+  private double[] mLastPositionEcefMeters = null;
+  private final CoarseTimeNavigationSolver mCoarseTimeNavigationSolver =
+      new CoarseTimeNavigationSolver();
+  private volatile boolean mCoarseTimeNavigationEnabled = false;
+  // Receiver clock of the first epoch, from which the times to first fix are counted
+  private long mFirstEpochTimeNanos = Long.MIN_VALUE;
+  private volatile long mTimeToFirstCoarseTimeFixNanos = NO_TIME_TO_FIRST_FIX;
+  private volatile long mTimeToFirstFixNanos = NO_TIME_TO_FIRST_FIX;
+  private volatile long mLeastSquareIterationCount = 0;
+  private volatile int mLeastSquareSolutionCount = 0;
   private long mLargestTowNs = Long.MIN_VALUE;
   private double mArrivalTimeSinceGPSWeekNs = 0.0;
   private int mDayOfYear1To366 = 0;
   private int mGpsWeekNumber = 0;
   private long mArrivalTimeSinceGpsEpochNs = 0;
 
+  /** Constructor keeping the SUPL assistance data cache in memory only */
+  public PseudorangePositionVelocityFromRealTimeEvents() {
+    this((File) null);
+  }
+
+  /**
+   * Constructor persisting the SUPL assistance data cache to {@code suplCacheFile}, so that it is
+   * reused across sessions. The cache is kept in memory only if {@code suplCacheFile} is null.
+   */
+  public PseudorangePositionVelocityFromRealTimeEvents(File suplCacheFile) {
+    this(new SuplAssistanceManager(new SuplNavMessageCache(suplCacheFile)));
+  }
+
+  /**
+   * Constructor taking the navigation messages that complete those decoded from the receiver from
+   * {@code suplAssistanceManager}. If it is null, no SUPL request is ever made and only the
+   * navigation messages of the receiver are used, e.g. to get reproducible solutions when replaying
+   * a log with its {@code Nav} records.
+   */
+  public PseudorangePositionVelocityFromRealTimeEvents(
+      SuplAssistanceManager suplAssistanceManager) {
+    mSuplAssistanceManager = suplAssistanceManager;
+  }
+
+  /** Creates a solver which only uses the navigation messages decoded from the receiver. */
+  public static PseudorangePositionVelocityFromRealTimeEvents createOffline() {
+    return new PseudorangePositionVelocityFromRealTimeEvents((SuplAssistanceManager) null);
+  }
+
   /**
    * Computes Weighted least square position and velocity solutions from a received {@link
-   * GnssMeasurementsEvent} and store the result in {@link
-   * PseudorangePositionVelocityFromRealTimeEvents#mPositionSolutionLatLngDeg} and {@link
-   * PseudorangePositionVelocityFromRealTimeEvents#mVelocitySolutionEnuMps}
+   * GnssMeasurementsEvent} and publish the result as a new {@link PositionVelocitySolution}
    */
   public void computePositionVelocitySolutionsFromRawMeas(GnssMeasurementsEvent event)
       throws Exception {
@@ -104,72 +160,186 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
       Log.d(TAG, " No reference Location ..... no position is calculated");
       return;
     }
-    for (int i = 0; i < GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
-      mUsefulSatellitesToReceiverMeasurements[i] = null;
-      mUsefulSatellitesToTowNs[i] = null;
+    MeasurementEpoch measurementEpoch = mMeasurementEpochPool.acquire();
+    try {
+      GnssClock gnssClock = event.getClock();
+      for (GnssMeasurement measurement : event.getMeasurements()) {
+        addMeasurementIfUseful(
+            measurementEpoch,
+            measurement.getSvid(),
+            measurement.getConstellationType(),
+            measurement.getState(),
+            measurement.getReceivedSvTimeNanos(),
+            measurement.getCn0DbHz(),
+            measurement.getPseudorangeRateMetersPerSecond(),
+            measurement.getPseudorangeRateUncertaintyMetersPerSecond(),
+            measurement.getAccumulatedDeltaRangeState(),
+            measurement.getAccumulatedDeltaRangeMeters(),
+            measurement.getAccumulatedDeltaRangeUncertaintyMeters());
+      }
+      computePositionVelocitySolutions(
+          gnssClock.getTimeNanos(),
+          gnssClock.getTimeNanos() - gnssClock.getFullBiasNanos(),
+          measurementEpoch);
+    } finally {
+      mMeasurementEpochPool.release(measurementEpoch);
     }
+  }
 
-    GnssClock gnssClock = event.getClock();
-    mArrivalTimeSinceGpsEpochNs = gnssClock.getTimeNanos() - gnssClock.getFullBiasNanos();
+  /**
+   * Same as {@link #computePositionVelocitySolutionsFromRawMeas(GnssMeasurementsEvent)} for an
+   * epoch that does not come from the Android location APIs, e.g. replayed from a log file.
+   */
+  public void computePositionVelocitySolutionsFromRawMeas(RawGnssEpoch epoch) throws Exception {
+    if (mReferenceLocation == null) {
+      Log.d(TAG, " No reference Location ..... no position is calculated");
+      return;
+    }
+    MeasurementEpoch measurementEpoch = mMeasurementEpochPool.acquire();
+    try {
+      for (RawGnssMeasurement measurement : epoch.measurements) {
+        addMeasurementIfUseful(
+            measurementEpoch,
+            measurement.svid,
+            measurement.constellationType,
+            measurement.state,
+            measurement.receivedSvTimeNanos,
+            measurement.cn0DbHz,
+            measurement.pseudorangeRateMetersPerSecond,
+            measurement.pseudorangeRateUncertaintyMetersPerSecond,
+            measurement.accumulatedDeltaRangeState,
+            measurement.accumulatedDeltaRangeMeters,
+            measurement.accumulatedDeltaRangeUncertaintyMeters);
+      }
+      computePositionVelocitySolutions(
+          epoch.timeNanos, epoch.timeNanos - epoch.fullBiasNanos, measurementEpoch);
+    } finally {
+      mMeasurementEpochPool.release(measurementEpoch);
+    }
+  }
 
-    for (GnssMeasurement measurement : event.getMeasurements()) {
-      // ignore any measurement if it is not from GPS constellation
-      if (measurement.getConstellationType() != GnssStatus.CONSTELLATION_GPS) {
-        continue;
+  /**
+   * Same as {@link #computePositionVelocitySolutionsFromRawMeas(GnssMeasurementsEvent)} for an
+   * epoch already decoded by the caller, only its GPS measurements are read.
+   */
+  public void computePositionVelocitySolutionsFromRawMeas(GnssEpochSnapshot epoch)
+      throws Exception {
+    if (mReferenceLocation == null) {
+      Log.d(TAG, " No reference Location ..... no position is calculated");
+      return;
+    }
+    MeasurementEpoch measurementEpoch = mMeasurementEpochPool.acquire();
+    try {
+      int gpsMeasurementCount = epoch.getMeasurementCount(GnssStatus.CONSTELLATION_GPS);
+      for (int rank = 0; rank < gpsMeasurementCount; rank++) {
+        int i = epoch.getMeasurementIndex(GnssStatus.CONSTELLATION_GPS, rank);
+        addMeasurementIfUseful(
+            measurementEpoch,
+            epoch.getSvid(i),
+            GnssStatus.CONSTELLATION_GPS,
+            epoch.getState(i),
+            epoch.getReceivedSvTimeNanos(i),
+            epoch.getCn0DbHz(i),
+            epoch.getPseudorangeRateMetersPerSecond(i),
+            epoch.getPseudorangeRateUncertaintyMetersPerSecond(i),
+            epoch.getAccumulatedDeltaRangeState(i),
+            epoch.getAccumulatedDeltaRangeMeters(i),
+            epoch.getAccumulatedDeltaRangeUncertaintyMeters(i));
       }
-      // ignore raw data if time is zero, if signal to noise ratio is below threshold or if
-      // TOW is not yet decoded
-      if (measurement.getCn0DbHz() >= C_TO_N0_THRESHOLD_DB_HZ
-          && (measurement.getState() & (1L << TOW_DECODED_MEASUREMENT_STATE_BIT)) != 0) {
-
-        // calculate day of year and Gps week number needed for the least square
-        GpsTime gpsTime = new GpsTime(mArrivalTimeSinceGpsEpochNs);
-        // Gps weekly epoch in Nanoseconds: defined as of every Sunday night at 00:00:000
-        long gpsWeekEpochNs = GpsTime.getGpsWeekEpochNano(gpsTime);
-        mArrivalTimeSinceGPSWeekNs = mArrivalTimeSinceGpsEpochNs - gpsWeekEpochNs;
-        mGpsWeekNumber = gpsTime.getGpsWeekSecond().first;
-        // calculate day of the year between 1 and 366
-        Calendar cal = gpsTime.getTimeInCalendar();
-        mDayOfYear1To366 = cal.get(Calendar.DAY_OF_YEAR);
-
-        long receivedGPSTowNs = measurement.getReceivedSvTimeNanos();
-        if (receivedGPSTowNs > mLargestTowNs) {
-          mLargestTowNs = receivedGPSTowNs;
-        }
-        mUsefulSatellitesToTowNs[measurement.getSvid() - 1] = receivedGPSTowNs;
-        GpsMeasurement gpsReceiverMeasurement =
-            new GpsMeasurement(
-                (long) mArrivalTimeSinceGPSWeekNs,
-                measurement.getAccumulatedDeltaRangeMeters(),
-                measurement.getAccumulatedDeltaRangeState() == VALID_ACCUMULATED_DELTA_RANGE_STATE,
-                measurement.getPseudorangeRateMetersPerSecond(),
-                measurement.getCn0DbHz(),
-                measurement.getAccumulatedDeltaRangeUncertaintyMeters(),
-                measurement.getPseudorangeRateUncertaintyMetersPerSecond());
-        mUsefulSatellitesToReceiverMeasurements[measurement.getSvid() - 1] = gpsReceiverMeasurement;
+      computePositionVelocitySolutions(
+          epoch.timeNanos, epoch.getGpsTimeNanos(), measurementEpoch);
+    } finally {
+      mMeasurementEpochPool.release(measurementEpoch);
+    }
+  }
+
+  /**
+   * Stores a measurement in {@code measurementEpoch} if it is a GPS measurement with a decoded time
+   * of week, or only a code lock in coarse time navigation, and a signal to noise ratio above the
+   * threshold.
+   */
+  private void addMeasurementIfUseful(
+      MeasurementEpoch measurementEpoch,
+      int svid,
+      int constellationType,
+      int state,
+      long receivedSvTimeNanos,
+      double cn0DbHz,
+      double pseudorangeRateMps,
+      double pseudorangeRateUncertaintyMps,
+      int accumulatedDeltaRangeState,
+      double accumulatedDeltaRangeMeters,
+      double accumulatedDeltaRangeUncertaintyMeters) {
+    // ignore any measurement if it is not from GPS constellation
+    if (constellationType != GnssStatus.CONSTELLATION_GPS) {
+      return;
+    }
+    // ignore raw data if time is zero, if signal to noise ratio is below threshold or if
+    // TOW is not yet decoded
+    boolean towDecoded = (state & (1L << TOW_DECODED_MEASUREMENT_STATE_BIT)) != 0;
+    boolean codeLocked = (state & (1L << CODE_LOCK_MEASUREMENT_STATE_BIT)) != 0;
+    if (cn0DbHz >= C_TO_N0_THRESHOLD_DB_HZ
+        && (towDecoded || (mCoarseTimeNavigationEnabled && codeLocked))) {
+      // the received satellite time of an ambiguous measurement is not a time of week
+      if (towDecoded && receivedSvTimeNanos > mLargestTowNs) {
+        mLargestTowNs = receivedSvTimeNanos;
       }
+      measurementEpoch.setMeasurement(
+          svid,
+          constellationType,
+          receivedSvTimeNanos,
+          cn0DbHz,
+          pseudorangeRateMps,
+          pseudorangeRateUncertaintyMps,
+          accumulatedDeltaRangeMeters,
+          accumulatedDeltaRangeUncertaintyMeters,
+          accumulatedDeltaRangeState == VALID_ACCUMULATED_DELTA_RANGE_STATE,
+          towDecoded);
     }
+  }
+
+  /**
+   * Computes the position and velocity solutions from the useful measurements of an epoch.
+   *
+   * @param timeNanos The receiver clock of the epoch, only used to count the times to first fix
+   */
+  private void computePositionVelocitySolutions(
+      long timeNanos, long arrivalTimeSinceGpsEpochNs, MeasurementEpoch measurementEpoch)
+      throws Exception {
+    if (mFirstEpochTimeNanos == Long.MIN_VALUE) {
+      mFirstEpochTimeNanos = timeNanos;
+    }
+    mArrivalTimeSinceGpsEpochNs = arrivalTimeSinceGpsEpochNs;
+    // calculate day of year and Gps week number needed for the least square, once per event
+    mArrivalTimeSinceGPSWeekNs =
+        GpsTimeOperations.getNanosSinceGpsWeekStart(mArrivalTimeSinceGpsEpochNs);
+    mGpsWeekNumber = GpsTimeOperations.getGpsWeek(mArrivalTimeSinceGpsEpochNs);
+    mDayOfYear1To366 = GpsTimeOperations.getDayOfYear1To366(mArrivalTimeSinceGpsEpochNs);
+    measurementEpoch.arrivalTimeSinceGpsWeekNs = (long) mArrivalTimeSinceGPSWeekNs;
 
     // check if we should continue using the navigation message from the SUPL server, or use the
     // navigation message from the device if we fully received it
     boolean useNavMessageFromSupl =
-        continueUsingNavMessageFromSupl(
-            mUsefulSatellitesToReceiverMeasurements, mHardwareGpsNavMessageProto);
-    if (useNavMessageFromSupl) {
+        continueUsingNavMessageFromSupl(measurementEpoch, mHardwareGpsNavMessageProto);
+    if (mSuplAssistanceManager == null) {
+      // Offline, skip this epoch until the receiver decoded ephemerides and ionospheric parameters
+      if (mHardwareGpsNavMessageProto == null || mHardwareGpsNavMessageProto.iono == null) {
+        return;
+      }
+      mGpsNavMessageProtoUsed = mHardwareGpsNavMessageProto;
+    } else if (useNavMessageFromSupl) {
       Log.d(TAG, "Using navigation message from SUPL server");
 
-      if (mFirstSuplRequestNeeded
-          || (System.currentTimeMillis() - mLastReceivedSuplMessageTimeMillis)
-              > mDeltaTimeMillisToMakeSuplRequest) {
-        // The following line is blocking call for SUPL connection and back. But it is fast enough
-        mGpsNavMessageProtoUsed = getSuplNavMessage(mReferenceLocation[0], mReferenceLocation[1]);
-        if (!isEmptyNavMessage(mGpsNavMessageProtoUsed)) {
-          mFirstSuplRequestNeeded = false;
-          mLastReceivedSuplMessageTimeMillis = System.currentTimeMillis();
-        } else {
-          return;
-        }
+      // The SUPL request runs in the background, skip this epoch until assistance data arrived
+      if (mReferenceLocation != null) {
+        mSuplAssistanceManager.requestRefreshIfNeeded(
+            mReferenceLocation[0], mReferenceLocation[1]);
       }
+      GpsNavMessageProto suplNavMessageProto = mSuplAssistanceManager.getLatestNavMessage();
+      if (suplNavMessageProto == null) {
+        return;
+      }
+      mGpsNavMessageProtoUsed = suplNavMessageProto;
 
     } else {
       Log.d(TAG, "Using navigation message from the GPS receiver");
@@ -179,19 +349,26 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
     // some times the SUPL server returns less satellites than the visible ones, so remove those
     // visible satellites that are not returned by SUPL
     for (int i = 0; i < GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
-      if (mUsefulSatellitesToReceiverMeasurements[i] != null
+      if (measurementEpoch.isValid(i)
           && !navMessageProtoContainsSvid(mGpsNavMessageProtoUsed, i + 1)) {
-        mUsefulSatellitesToReceiverMeasurements[i] = null;
-        mUsefulSatellitesToTowNs[i] = null;
+        measurementEpoch.invalidate(i);
       }
     }
 
     // calculate the number of useful satellites
-    int numberOfUsefulSatellites = 0;
-    for (GpsMeasurement element : mUsefulSatellitesToReceiverMeasurements) {
-      if (element != null) {
-        numberOfUsefulSatellites++;
+    int numberOfUsefulSatellites = measurementEpoch.getNumberOfValidSatellites();
+    if (numberOfUsefulSatellites >= MINIMUM_NUMBER_OF_USEFUL_SATELLITES) {
+      computeVelocitySolution(measurementEpoch);
+    }
+    if (mCoarseTimeNavigationEnabled) {
+      if (measurementEpoch.getNumberOfTowDecodedSatellites()
+          < MINIMUM_NUMBER_OF_USEFUL_SATELLITES) {
+        computeCoarseTimeSolution(timeNanos, measurementEpoch);
+        return;
       }
+      // the full solution only uses the satellites whose time of week is decoded
+      measurementEpoch.invalidateTowAmbiguousSatellites();
+      numberOfUsefulSatellites = measurementEpoch.getNumberOfValidSatellites();
     }
     if (numberOfUsefulSatellites >= MINIMUM_NUMBER_OF_USEFUL_SATELLITES) {
       // ignore first set of > 4 satellites as they often result in erroneous position
@@ -205,10 +382,10 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
             = GpsMathOperations.createAndFillArray(
                 GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN
         );
+        PositionVelocitySolver positionVelocitySolver = mPositionVelocitySolver;
         performPositionVelocityComputationEcef(
-            mUserPositionVelocityLeastSquareCalculator,
-            mUsefulSatellitesToReceiverMeasurements,
-            mUsefulSatellitesToTowNs,
+            positionVelocitySolver,
+            measurementEpoch,
             mLargestTowNs,
             mArrivalTimeSinceGPSWeekNs,
             mDayOfYear1To366,
@@ -216,40 +393,44 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
             positionVeloctySolutionEcef,
             positionVelocityUncertaintyEnu,
             pseudorangeResidualMeters);
+        if (!Double.isNaN(positionVeloctySolutionEcef[0])) {
+          System.arraycopy(positionVeloctySolutionEcef, 0, mLastPositionEcefMeters, 0, 3);
+        }
+        double[] pseudorangeWeights =
+            GpsMathOperations.createAndFillArray(
+                GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN);
+        if (positionVelocitySolver == mUserPositionVelocityLeastSquareCalculator) {
+          mUserPositionVelocityLeastSquareCalculator.getPseudorangeWeights(pseudorangeWeights);
+          mLeastSquareIterationCount +=
+              mUserPositionVelocityLeastSquareCalculator.getLeastSquareIterationCount();
+          mLeastSquareSolutionCount++;
+        }
         // convert the position solution from ECEF to latitude, longitude and altitude
         GeodeticLlaValues latLngAlt =
             Ecef2LlaConverter.convertECEFToLLACloseForm(
                 positionVeloctySolutionEcef[0],
                 positionVeloctySolutionEcef[1],
                 positionVeloctySolutionEcef[2]);
-        mPositionSolutionLatLngDeg[0] = Math.toDegrees(latLngAlt.latitudeRadians);
-        mPositionSolutionLatLngDeg[1] = Math.toDegrees(latLngAlt.longitudeRadians);
-        mPositionSolutionLatLngDeg[2] = latLngAlt.altitudeMeters;
-        mPositionVelocityUncertaintyEnu[0] = positionVelocityUncertaintyEnu[0];
-        mPositionVelocityUncertaintyEnu[1] = positionVelocityUncertaintyEnu[1];
-        mPositionVelocityUncertaintyEnu[2] = positionVelocityUncertaintyEnu[2];
-        System.arraycopy(
-            pseudorangeResidualMeters,
-            0 /*source starting pos*/,
-            mPseudorangeResidualsMeters,
-            0 /*destination starting pos*/,
-            GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES /*length of elements*/
-            );
+        double[] positionSolutionLatLngDeg = {
+          Math.toDegrees(latLngAlt.latitudeRadians),
+          Math.toDegrees(latLngAlt.longitudeRadians),
+          latLngAlt.altitudeMeters
+        };
         Log.d(TAG,
             "Position Uncertainty ENU Meters :"
-                + mPositionVelocityUncertaintyEnu[0]
+                + positionVelocityUncertaintyEnu[0]
                 + " "
-                + mPositionVelocityUncertaintyEnu[1]
+                + positionVelocityUncertaintyEnu[1]
                 + " "
-                + mPositionVelocityUncertaintyEnu[2]);
+                + positionVelocityUncertaintyEnu[2]);
         Log.d(
             TAG,
             "Latitude, Longitude, Altitude: "
-                + mPositionSolutionLatLngDeg[0]
+                + positionSolutionLatLngDeg[0]
                 + " "
-                + mPositionSolutionLatLngDeg[1]
+                + positionSolutionLatLngDeg[1]
                 + " "
-                + mPositionSolutionLatLngDeg[2]);
+                + positionSolutionLatLngDeg[2]);
         EnuValues velocityEnu = Ecef2EnuConverter.convertEcefToEnu(
             positionVeloctySolutionEcef[4],
             positionVeloctySolutionEcef[5],
@@ -258,27 +439,34 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
             latLngAlt.longitudeRadians
         );
 
-        mVelocitySolutionEnuMps[0] = velocityEnu.enuEast;
-        mVelocitySolutionEnuMps[1] = velocityEnu.enuNorth;
-        mVelocitySolutionEnuMps[2] = velocityEnu.enuUP;
+        double[] velocitySolutionEnuMps =
+            {velocityEnu.enuEast, velocityEnu.enuNorth, velocityEnu.enuUP};
         Log.d(
             TAG,
             "Velocity ENU Mps: "
-                + mVelocitySolutionEnuMps[0]
+                + velocitySolutionEnuMps[0]
                 + " "
-                + mVelocitySolutionEnuMps[1]
+                + velocitySolutionEnuMps[1]
                 + " "
-                + mVelocitySolutionEnuMps[2]);
-        mPositionVelocityUncertaintyEnu[3] = positionVelocityUncertaintyEnu[3];
-        mPositionVelocityUncertaintyEnu[4] = positionVelocityUncertaintyEnu[4];
-        mPositionVelocityUncertaintyEnu[5] = positionVelocityUncertaintyEnu[5];
+                + velocitySolutionEnuMps[2]);
         Log.d(TAG,
             "Velocity Uncertainty ENU Mps :"
-                + mPositionVelocityUncertaintyEnu[3]
+                + positionVelocityUncertaintyEnu[3]
                 + " "
-                + mPositionVelocityUncertaintyEnu[4]
+                + positionVelocityUncertaintyEnu[4]
                 + " "
-                + mPositionVelocityUncertaintyEnu[5]);
+                + positionVelocityUncertaintyEnu[5]);
+        publishSolution(
+            new PositionVelocitySolution(
+                mArrivalTimeSinceGpsEpochNs,
+                positionSolutionLatLngDeg,
+                velocitySolutionEnuMps,
+                positionVelocityUncertaintyEnu,
+                pseudorangeResidualMeters,
+                pseudorangeWeights));
+        if (mTimeToFirstFixNanos == NO_TIME_TO_FIRST_FIX) {
+          mTimeToFirstFixNanos = timeNanos - mFirstEpochTimeNanos;
+        }
       }
       mFirstUsefulMeasurementSet = false;
     } else {
@@ -287,18 +475,123 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
           "Less than four satellites with SNR above threshold visible ... "
               + "no position is calculated!");
 
-      mPositionSolutionLatLngDeg = GpsMathOperations.createAndFillArray(3, Double.NaN);
-      mVelocitySolutionEnuMps = GpsMathOperations.createAndFillArray(3, Double.NaN);
-      mPseudorangeResidualsMeters =
-          GpsMathOperations.createAndFillArray(
-              GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN
-          );
+      publishSolution(PositionVelocitySolution.NO_SOLUTION);
     }
   }
 
-  private boolean isEmptyNavMessage(GpsNavMessageProto navMessageProto) {
-    if(navMessageProto.iono == null)return true;
-      return navMessageProto.ephemerids.length == 0;
+  /**
+   * Computes the velocity of an epoch from its pseudorange rates around the last position, and
+   * publishes it to the velocity listeners if there are any.
+   */
+  private void computeVelocitySolution(MeasurementEpoch measurementEpoch) throws Exception {
+    if (mVelocitySolutionListeners.isEmpty() || mLastPositionEcefMeters == null) {
+      return;
+    }
+    double[] velocitySolutionEcef = new double[PseudorangeRateVelocitySolver.SOLUTION_SIZE];
+    double[] velocitySolutionEnuMps = new double[3];
+    double[] velocityUncertaintyEnuMps = new double[3];
+    boolean solved =
+        mPseudorangeRateVelocitySolver.solve(
+            mGpsNavMessageProtoUsed,
+            measurementEpoch,
+            mArrivalTimeSinceGPSWeekNs * SECONDS_PER_NANO,
+            mGpsWeekNumber,
+            mLastPositionEcefMeters,
+            velocitySolutionEcef,
+            velocitySolutionEnuMps,
+            velocityUncertaintyEnuMps);
+    if (!solved) {
+      Log.d(TAG, "Less than four pseudorange rates ... no velocity is calculated!");
+      return;
+    }
+    VelocitySolution solution =
+        new VelocitySolution(
+            mArrivalTimeSinceGpsEpochNs,
+            velocitySolutionEnuMps,
+            velocityUncertaintyEnuMps,
+            velocitySolutionEcef[3],
+            mPseudorangeRateVelocitySolver.getNumberOfSatellitesUsed());
+    for (VelocitySolutionListener listener : mVelocitySolutionListeners) {
+      listener.onVelocitySolution(solution);
+    }
+  }
+
+  /**
+   * Computes and publishes the coarse time navigation solution of an epoch whose times of week are
+   * not decoded, with the velocity computed from the pseudorange rates around its position.
+   */
+  private void computeCoarseTimeSolution(long timeNanos, MeasurementEpoch measurementEpoch)
+      throws Exception {
+    double[] positionVelocitySolutionEcef = GpsMathOperations.createAndFillArray(8, Double.NaN);
+    double[] positionVelocityUncertaintyEnu = GpsMathOperations.createAndFillArray(6, Double.NaN);
+    double[] pseudorangeResidualMeters =
+        GpsMathOperations.createAndFillArray(
+            GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN);
+    boolean solved =
+        mCoarseTimeNavigationSolver.solve(
+            mGpsNavMessageProtoUsed,
+            measurementEpoch,
+            mGpsWeekNumber,
+            mDayOfYear1To366,
+            mLastPositionEcefMeters,
+            positionVelocitySolutionEcef,
+            positionVelocityUncertaintyEnu,
+            pseudorangeResidualMeters);
+    if (!solved) {
+      Log.d(TAG, "No coarse time navigation solution ... no position is calculated!");
+      publishSolution(PositionVelocitySolution.NO_SOLUTION);
+      return;
+    }
+    double coarseTimeErrorSeconds = mCoarseTimeNavigationSolver.getCoarseTimeErrorSeconds();
+    Log.d(TAG, "Coarse time error in seconds: " + coarseTimeErrorSeconds);
+    System.arraycopy(positionVelocitySolutionEcef, 0, mLastPositionEcefMeters, 0, 3);
+
+    double[] velocitySolutionEcef = new double[PseudorangeRateVelocitySolver.SOLUTION_SIZE];
+    double[] velocitySolutionEnuMps = GpsMathOperations.createAndFillArray(3, Double.NaN);
+    double[] velocityUncertaintyEnuMps = new double[3];
+    if (mPseudorangeRateVelocitySolver.solve(
+        mGpsNavMessageProtoUsed,
+        measurementEpoch,
+        mArrivalTimeSinceGPSWeekNs * SECONDS_PER_NANO + coarseTimeErrorSeconds,
+        mGpsWeekNumber,
+        mLastPositionEcefMeters,
+        velocitySolutionEcef,
+        velocitySolutionEnuMps,
+        velocityUncertaintyEnuMps)) {
+      System.arraycopy(velocityUncertaintyEnuMps, 0, positionVelocityUncertaintyEnu, 3, 3);
+    }
+
+    GeodeticLlaValues latLngAlt =
+        Ecef2LlaConverter.convertECEFToLLACloseForm(
+            positionVelocitySolutionEcef[0],
+            positionVelocitySolutionEcef[1],
+            positionVelocitySolutionEcef[2]);
+    double[] positionSolutionLatLngDeg = {
+      Math.toDegrees(latLngAlt.latitudeRadians),
+      Math.toDegrees(latLngAlt.longitudeRadians),
+      latLngAlt.altitudeMeters
+    };
+    publishSolution(
+        new PositionVelocitySolution(
+            mArrivalTimeSinceGpsEpochNs,
+            positionSolutionLatLngDeg,
+            velocitySolutionEnuMps,
+            positionVelocityUncertaintyEnu,
+            pseudorangeResidualMeters));
+    if (mTimeToFirstCoarseTimeFixNanos == NO_TIME_TO_FIRST_FIX) {
+      mTimeToFirstCoarseTimeFixNanos = timeNanos - mFirstEpochTimeNanos;
+    }
+  }
+
+  /**
+   * Makes {@code solution} the latest solution and notifies the listeners. The solution is
+   * immutable, so readers on other threads never see a partially updated one.
+   */
+  private void publishSolution(PositionVelocitySolution solution) {
+    mLatestSolution.set(solution);
+    for (PositionVelocitySolutionListener listener : mSolutionListeners) {
+      listener.onPositionVelocitySolution(solution);
+    }
   }
 
   private boolean navMessageProtoContainsSvid(GpsNavMessageProto navMessageProto, int svid) {
@@ -313,14 +606,13 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
   }
 
   /**
-   * Calculates ECEF least square position and velocity solutions from an array of {@link
-   * GpsMeasurement} in meters and meters per second and store the result in {@code
-   * positionVelocitySolutionEcef}
+   * Calculates ECEF position and velocity solutions from a {@link MeasurementEpoch} in meters and
+   * meters per second and store the result in {@code positionVelocitySolutionEcef}. The
+   * pseudoranges and their uncertainties are computed in place in {@code measurementEpoch}.
    */
   private void performPositionVelocityComputationEcef(
-      UserPositionVelocityWeightedLeastSquare userPositionVelocityLeastSquare,
-      GpsMeasurement[] usefulSatellitesToReceiverMeasurements,
-      Long[] usefulSatellitesToTOWNs,
+      PositionVelocitySolver positionVelocitySolver,
+      MeasurementEpoch measurementEpoch,
       long largestTowNs,
       double arrivalTimeSinceGPSWeekNs,
       int dayOfYear1To366,
@@ -330,16 +622,12 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
       double[] pseudorangeResidualMeters)
       throws Exception {
 
-    List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToPseudorangeMeasurements =
-        UserPositionVelocityWeightedLeastSquare.computePseudorangeAndUncertainties(
-            Arrays.asList(usefulSatellitesToReceiverMeasurements),
-            usefulSatellitesToTOWNs,
-            largestTowNs);
+    measurementEpoch.computePseudorangesAndUncertainties(largestTowNs);
 
-    // calculate iterative least square position solution and velocity solutions
-    userPositionVelocityLeastSquare.calculateUserPositionVelocityLeastSquare(
+    // calculate position solution and velocity solutions
+    positionVelocitySolver.calculateUserPositionVelocity(
         mGpsNavMessageProtoUsed,
-        usefulSatellitesToPseudorangeMeasurements,
+        measurementEpoch,
         arrivalTimeSinceGPSWeekNs * SECONDS_PER_NANO,
         gpsWeekNumber,
         dayOfYear1To366,
@@ -349,7 +637,7 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
 
     Log.d(
         TAG,
-        "Least Square Position Solution in ECEF meters: "
+        "Position Solution in ECEF meters: "
             + positionVelocitySolutionEcef[0]
             + " "
             + positionVelocitySolutionEcef[1]
@@ -368,38 +656,20 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
     Log.d(TAG, "Estimated Reciever clock offset rate in mps: " + positionVelocitySolutionEcef[7]);
   }
 
-  /**
-   * Reads the navigation message from the SUPL server by creating a Stubby client to Stubby server
-   * that wraps the SUPL server. The input is the time in nanoseconds since the GPS epoch at which
-   * the navigation message is required and the output is a {@link GpsNavMessageProto}
-   *
-   * @throws IOException
-   * @throws UnknownHostException
-   */
-  private GpsNavMessageProto getSuplNavMessage(long latE7, long lngE7)
-      throws UnknownHostException, IOException {
-    SuplRrlpController suplRrlpController =
-        new SuplRrlpController(SUPL_SERVER_NAME, SUPL_SERVER_PORT);
-    GpsNavMessageProto navMessageProto = suplRrlpController.generateNavMessage(latE7, lngE7);
-
-    return navMessageProto;
-  }
-
   /**
    * Checks if we should continue using the navigation message from the SUPL server, or use the
    * navigation message from the device if we fully received it. If the navigation message read from
    * the receiver has all the visible satellite ephemerides, return false, otherwise, return true.
    */
   private static boolean continueUsingNavMessageFromSupl(
-          GpsMeasurement[] usefulSatellitesToReceiverMeasurements,
-          GpsNavMessageProto hardwareGpsNavMessageProto) {
+          MeasurementEpoch measurementEpoch, GpsNavMessageProto hardwareGpsNavMessageProto) {
     boolean useNavMessageFromSupl = true;
     if (hardwareGpsNavMessageProto != null) {
       ArrayList<GpsEphemerisProto> hardwareEphemeridesList=
               new ArrayList<GpsEphemerisProto>(Arrays.asList(hardwareGpsNavMessageProto.ephemerids));
       if (hardwareGpsNavMessageProto.iono != null) {
         for (int i = 0; i < GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
-          if (usefulSatellitesToReceiverMeasurements[i] != null) {
+          if (measurementEpoch.isValid(i)) {
             int prn = i + 1;
             for (GpsEphemerisProto hardwareEphProtoFromList : hardwareEphemeridesList) {
               if (hardwareEphProtoFromList.prn == prn) {
@@ -423,11 +693,21 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
    * recent {@link GpsNavMessageProto}.
    */
   public void parseHwNavigationMessageUpdates(GnssNavigationMessage navigationMessage) {
-    byte messagePrn = (byte) navigationMessage.getSvid();
-    byte messageType = (byte) (navigationMessage.getType() >> 8);
-    int subMessageId = navigationMessage.getSubmessageId();
+    parseHwNavigationMessageUpdates(
+        navigationMessage.getSvid(),
+        navigationMessage.getType(),
+        navigationMessage.getSubmessageId(),
+        navigationMessage.getData());
+  }
 
-    byte[] messageRawData = navigationMessage.getData();
+  /**
+   * Same as {@link #parseHwNavigationMessageUpdates(GnssNavigationMessage)} for the fields of a
+   * navigation message that does not come from the Android location APIs.
+   */
+  public void parseHwNavigationMessageUpdates(
+      int svid, int type, int subMessageId, byte[] messageRawData) {
+    byte messagePrn = (byte) svid;
+    byte messageType = (byte) (type >> 8);
     // parse only GPS navigation messages for now
     if (messageType == 1) {
       mGpsNavigationMessageStore.onNavMessageReported(
@@ -445,11 +725,21 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
     mReferenceLocation[0] = latE7;
     mReferenceLocation[1] = lngE7;
     mReferenceLocation[2] = altE7;
+    if (mLastPositionEcefMeters == null) {
+      mLastPositionEcefMeters =
+          Lla2EcefConverter.convertFromLlaToEcefMeters(
+              new GeodeticLlaValues(
+                  Math.toRadians(latE7 * 1E-7), Math.toRadians(lngE7 * 1E-7), altE7 * 1E-7));
+    }
+    // Prefetch the assistance data so that it is available by the time the first fix is computed
+    if (mSuplAssistanceManager != null) {
+      mSuplAssistanceManager.requestRefreshIfNeeded(latE7, lngE7);
+    }
   }
 
   /**
    * Converts the input from LLA coordinates to ECEF and set up the reference position of
-   * {@code mUserPositionVelocityLeastSquareCalculator} to calculate a corrected residual.
+   * the solvers to calculate a corrected residual.
    *
    * <p> Based on this input ground truth, true residuals can be computed. This is done by using
    * the high elevation satellites to compute the true user clock error and with the knowledge of
@@ -462,6 +752,7 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
     if (groundTruthLocationLla == null) {
       mUserPositionVelocityLeastSquareCalculator
           .setTruthLocationForCorrectedResidualComputationEcef(null);
+      mUserPositionVelocityKalmanFilter.setTruthLocationForCorrectedResidualComputationEcef(null);
       return;
     }
     GeodeticLlaValues llaValues =
@@ -469,33 +760,159 @@ public class PseudorangePositionVelocityFromRealTimeEvents {
             Math.toRadians(groundTruthLocationLla[0]),
             Math.toRadians(groundTruthLocationLla[1]),
             Math.toRadians(groundTruthLocationLla[2]));
+    double[] groundTruthLocationEcef = Lla2EcefConverter.convertFromLlaToEcefMeters(llaValues);
     mUserPositionVelocityLeastSquareCalculator.setTruthLocationForCorrectedResidualComputationEcef(
-        Lla2EcefConverter.convertFromLlaToEcefMeters(llaValues));
+        groundTruthLocationEcef);
+    mUserPositionVelocityKalmanFilter.setTruthLocationForCorrectedResidualComputationEcef(
+        groundTruthLocationEcef);
+  }
+
+  /**
+   * Selects the solver of the next epochs, {@link #SOLVER_WEIGHTED_LEAST_SQUARE} or {@link
+   * #SOLVER_EXTENDED_KALMAN_FILTER}. It can be called from any thread. The Kalman filter starts
+   * over from a least square solution if it was not used in the last seconds.
+   */
+  public void setPositionVelocitySolver(int solver) {
+    Preconditions.checkArgument(
+        solver == SOLVER_WEIGHTED_LEAST_SQUARE || solver == SOLVER_EXTENDED_KALMAN_FILTER,
+        "Unknown solver: %s", solver);
+    mPositionVelocitySolver =
+        solver == SOLVER_EXTENDED_KALMAN_FILTER
+            ? mUserPositionVelocityKalmanFilter
+            : mUserPositionVelocityLeastSquareCalculator;
+  }
+
+  /**
+   * Sets the process noise of the {@link #SOLVER_EXTENDED_KALMAN_FILTER} solver: the power spectral
+   * densities of the receiver acceleration along each axis and of the clock drift rate, in meters
+   * square per cubic second. To be called before the solutions are computed.
+   */
+  public void setKalmanFilterProcessNoise(double accelerationPsd, double clockDriftPsd) {
+    mUserPositionVelocityKalmanFilter.setProcessNoise(accelerationPsd, clockDriftPsd);
+  }
+
+  /**
+   * Sets the outlier handling of the {@link #SOLVER_WEIGHTED_LEAST_SQUARE} solver, one of the
+   * {@code ROBUST_LOSS_*} constants. With {@link #ROBUST_LOSS_HUBER} or {@link #ROBUST_LOSS_TUKEY},
+   * the measurements are down-weighted by an iteratively reweighted least square instead of being
+   * removed, and the final weights are reported by {@link
+   * PositionVelocitySolution#getPseudorangeWeights}. To be called before the solutions are
+   * computed.
+   */
+  public void setRobustLoss(int robustLoss) {
+    mUserPositionVelocityLeastSquareCalculator.setRobustLoss(robustLoss);
+  }
+
+  /**
+   * Returns the mean number of iterations of the {@link #SOLVER_WEIGHTED_LEAST_SQUARE} solutions
+   * computed so far, or 0 if there is none.
+   */
+  public double getMeanLeastSquareIterations() {
+    int solutionCount = mLeastSquareSolutionCount;
+    return solutionCount == 0 ? 0.0 : (double) mLeastSquareIterationCount / solutionCount;
+  }
+
+  /**
+   * Enables or disables the coarse time navigation of the epochs whose times of week are not
+   * decoded yet, for a first fix seconds earlier. It requires a reference position within tens of
+   * kilometers and a receiver time within seconds. It can be called from any thread.
+   */
+  public void setCoarseTimeNavigationEnabled(boolean enabled) {
+    mCoarseTimeNavigationEnabled = enabled;
+  }
+
+  /**
+   * Returns the receiver clock time from the first epoch with a reference position to the first
+   * coarse time navigation solution in nanoseconds, or {@link #NO_TIME_TO_FIRST_FIX}.
+   */
+  public long getTimeToFirstCoarseTimeFixNanos() {
+    return mTimeToFirstCoarseTimeFixNanos;
+  }
+
+  /**
+   * Returns the receiver clock time from the first epoch with a reference position to the first
+   * solution from decoded times of week in nanoseconds, or {@link #NO_TIME_TO_FIRST_FIX}.
+   */
+  public long getTimeToFirstFixNanos() {
+    return mTimeToFirstFixNanos;
+  }
+
+  /**
+   * Returns the leap seconds known to this session: the known leap seconds extended with the UTC
+   * parameters decoded from the navigation messages of this session only, to convert the GPS times
+   * of its solutions to UTC with {@link GpsTimeOperations#gpsNanosToUtcMillis(long,
+   * GpsTimeOperations.LeapSecondTable)}.
+   */
+  public GpsTimeOperations.LeapSecondTable getLeapSecondTable() {
+    return mGpsNavigationMessageStore.getLeapSecondTable();
+  }
+
+  /**
+   * Records the predicted and filtered states of the {@link #SOLVER_EXTENDED_KALMAN_FILTER} solver
+   * in {@code history}, or stops recording if {@code null}. To be called before the solutions are
+   * computed.
+   */
+  void setKalmanFilterHistory(KalmanFilterHistory history) {
+    mUserPositionVelocityKalmanFilter.setHistory(history);
+  }
+
+  /**
+   * Returns the last published solution. It can be called from any thread, the returned solution is
+   * immutable.
+   */
+  public PositionVelocitySolution getLatestSolution() {
+    return mLatestSolution.get();
+  }
+
+  /**
+   * Registers {@code listener} to be notified of every published solution, on the thread calling
+   * {@link #computePositionVelocitySolutionsFromRawMeas}.
+   */
+  public void addPositionVelocitySolutionListener(PositionVelocitySolutionListener listener) {
+    mSolutionListeners.add(listener);
+  }
+
+  public void removePositionVelocitySolutionListener(PositionVelocitySolutionListener listener) {
+    mSolutionListeners.remove(listener);
+  }
+
+  /**
+   * Registers {@code listener} to be notified of the velocity computed from the pseudorange rates
+   * of every epoch with enough satellites, on the thread calling {@link
+   * #computePositionVelocitySolutionsFromRawMeas}. The velocity is only computed while there are
+   * listeners.
+   */
+  public void addVelocitySolutionListener(VelocitySolutionListener listener) {
+    mVelocitySolutionListeners.add(listener);
+  }
+
+  public void removeVelocitySolutionListener(VelocitySolutionListener listener) {
+    mVelocitySolutionListeners.remove(listener);
   }
 
-  /** Returns the last computed weighted least square position solution */
+  /** Returns a copy of the last computed position solution */
   public double[] getPositionSolutionLatLngDeg() {
-    return mPositionSolutionLatLngDeg;
+    return mLatestSolution.get().getPositionSolutionLatLngDeg();
   }
 
-  /** Returns the last computed Velocity solution */
+  /** Returns a copy of the last computed Velocity solution */
   public double[] getVelocitySolutionEnuMps() {
-    return mVelocitySolutionEnuMps;
+    return mLatestSolution.get().getVelocitySolutionEnuMps();
   }
 
   /**
-   * Returns the last computed position and velocity uncertainties in meters and meter per seconds,
-   * respectively.
+   * Returns a copy of the last computed position and velocity uncertainties in meters and meter per
+   * seconds, respectively.
    */
   public double[] getPositionVelocityUncertaintyEnu() {
-    return mPositionVelocityUncertaintyEnu;
+    return mLatestSolution.get().getPositionVelocityUncertaintyEnu();
   }
 
   /**
-   * Returns the pseudorange residuals corrected by using clock bias computed from highest
+   * Returns a copy of the pseudorange residuals corrected by using clock bias computed from highest
    * elevationDegree satellites.
    */
   public double[] getPseudorangeResidualsMeters() {
-    return mPseudorangeResidualsMeters;
+    return mLatestSolution.get().getPseudorangeResidualsMeters();
   }
 }
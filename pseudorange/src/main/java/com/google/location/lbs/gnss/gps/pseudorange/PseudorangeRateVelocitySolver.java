@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+
+import com.google.location.lbs.gnss.gps.pseudorange.Ecef2LlaConverter.GeodeticLlaValues;
+import com.google.location.lbs.gnss.gps.pseudorange.SatellitePositionCalculator.PositionAndVelocity;
+
+/**
+ * Computes the receiver velocity and clock drift from the pseudorange rates of an epoch alone, with
+ * a single weighted least square step around a known receiver position, independently of the
+ * iterative position solution.
+ *
+ * <p>With {@code g} the unit vector from a satellite to the receiver, the pseudorange rate
+ * corrected by the satellite velocity and clock drift, {@code prr + g . vSat + satClockRate}, is
+ * {@code g . v + drift}. The position only sets the lines of sight: an error of a hundred meters,
+ * e.g. the last solution of a moving receiver, changes the velocity by about two centimeters per
+ * second, under the noise of the pseudorange rates.
+ *
+ * <p>The satellite positions, velocities and accelerations are computed from the ephemeris when it
+ * changes and every {@value #MAX_CACHE_AGE_SECONDS} seconds, and propagated in between to the time
+ * of transmission with a second order expansion. The acceleration is the difference of the
+ * velocities half a second before and after, so it includes the rotation of the ECEF frame. The
+ * propagation error stays below a centimeter per second, under the noise of the pseudorange rates.
+ *
+ * <p>Between two refreshes, solving an epoch does not allocate. The class is not thread safe.
+ */
+final class PseudorangeRateVelocitySolver {
+  /** Number of unknowns: the three ECEF velocity components and the receiver clock drift */
+  static final int SOLUTION_SIZE = 4;
+
+  private static final int MAX_NUMBER_OF_SATELLITES =
+      GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES;
+  private static final double SPEED_OF_LIGHT_MPS = 299792458.0;
+  private static final int SECONDS_IN_WEEK = 604800;
+  /** Average signal travel time from GPS satellite and earth */
+  private static final double AVERAGE_TRAVEL_TIME_SECONDS = 70.0e-3;
+  /** Age after which the state of a satellite is computed again from its ephemeris */
+  private static final double MAX_CACHE_AGE_SECONDS = 10.0;
+  /** Half the time between the two velocities differentiated into the satellite acceleration */
+  private static final double HALF_DIFFERENTIATION_STEP_SECONDS = 0.5;
+
+  /** The ephemerides of {@link #mNavMessageProto} indexed by PRN - 1 */
+  private final GpsEphemerisProto[] mEphemerides = new GpsEphemerisProto[MAX_NUMBER_OF_SATELLITES];
+  private GpsNavMessageProto mNavMessageProto;
+
+  // State of each satellite at the cache time, indexed by PRN - 1
+  private final GpsEphemerisProto[] mCachedEphemerides =
+      new GpsEphemerisProto[MAX_NUMBER_OF_SATELLITES];
+  private final double[] mCacheGpsTimeSeconds = new double[MAX_NUMBER_OF_SATELLITES];
+  private final double[][] mCachedPositionMeters = new double[MAX_NUMBER_OF_SATELLITES][3];
+  private final double[][] mCachedVelocityMps = new double[MAX_NUMBER_OF_SATELLITES][3];
+  private final double[][] mCachedAccelerationMps2 = new double[MAX_NUMBER_OF_SATELLITES][3];
+  private final double[] mCachedClockErrorRateMps = new double[MAX_NUMBER_OF_SATELLITES];
+
+  // Scratch state of the satellite being processed
+  private final double[] mSatellitePositionMeters = new double[3];
+  private final double[] mSatelliteVelocityMps = new double[3];
+
+  // Normal equations, factored in place
+  private final double[][] mNormalMatrix = new double[SOLUTION_SIZE][SOLUTION_SIZE];
+  private final double[] mNormalVector = new double[SOLUTION_SIZE];
+  private final double[][] mCovariance = new double[SOLUTION_SIZE][SOLUTION_SIZE];
+  private final double[] mRow = new double[SOLUTION_SIZE];
+
+  // Latitude and longitude of the last receiver position, for the ENU rotation
+  private final double[] mLastUserPositionEcefMeters = new double[3];
+  private double mSinLatitude;
+  private double mCosLatitude;
+  private double mSinLongitude;
+  private double mCosLongitude;
+  private boolean mHasEnuRotation;
+
+  private int mNumberOfSatellitesUsed;
+
+  /**
+   * Computes the receiver velocity and clock drift from the pseudorange rates of the valid
+   * satellites of {@code measurementEpoch} that have an ephemeris in {@code navMessageProto}.
+   *
+   * @param receiverGpsTowAtReceptionSeconds Receiver estimate of GPS time of week (seconds)
+   * @param receiverGpsWeek Receiver estimate of GPS week (0-1024+)
+   * @param userPositionEcefMeters A recent receiver position in ECEF meters
+   * @param velocitySolutionEcef The ECEF velocity in meters per second followed by the receiver
+   *     clock drift in meters per second
+   * @param velocitySolutionEnuMps The east, north and up velocity in meters per second
+   * @param velocityUncertaintyEnuMps The east, north and up velocity uncertainty in meters per
+   *     second
+   * @return {@code false} if less than {@value #SOLUTION_SIZE} satellites have a pseudorange rate,
+   *     in which case the solution arrays are left as is
+   */
+  boolean solve(
+      GpsNavMessageProto navMessageProto,
+      MeasurementEpoch measurementEpoch,
+      double receiverGpsTowAtReceptionSeconds,
+      int receiverGpsWeek,
+      double[] userPositionEcefMeters,
+      double[] velocitySolutionEcef,
+      double[] velocitySolutionEnuMps,
+      double[] velocityUncertaintyEnuMps)
+      throws Exception {
+    if (navMessageProto != mNavMessageProto) {
+      indexEphemerides(navMessageProto);
+    }
+    double receptionGpsTimeSeconds =
+        (double) receiverGpsWeek * SECONDS_IN_WEEK + receiverGpsTowAtReceptionSeconds;
+    for (int i = 0; i < SOLUTION_SIZE; i++) {
+      mNormalVector[i] = 0;
+      for (int k = 0; k < SOLUTION_SIZE; k++) {
+        mNormalMatrix[i][k] = 0;
+      }
+    }
+    mNumberOfSatellitesUsed = 0;
+
+    for (int i = 0; i < MAX_NUMBER_OF_SATELLITES; i++) {
+      GpsEphemerisProto ephemerisProto = mEphemerides[i];
+      double uncertaintyMps = measurementEpoch.pseudorangeRateUncertaintyMps[i];
+      double pseudorangeRateMps = measurementEpoch.pseudorangeRateMps[i];
+      if (!measurementEpoch.isValid(i)
+          || ephemerisProto == null
+          || !(uncertaintyMps > 0 && uncertaintyMps < Double.POSITIVE_INFINITY)
+          || Double.isNaN(pseudorangeRateMps)) {
+        continue;
+      }
+      double transmissionGpsTimeSeconds = receptionGpsTimeSeconds - AVERAGE_TRAVEL_TIME_SECONDS;
+      if (ephemerisProto != mCachedEphemerides[i]
+          || Math.abs(transmissionGpsTimeSeconds - mCacheGpsTimeSeconds[i])
+              > MAX_CACHE_AGE_SECONDS) {
+        refreshSatellite(i, ephemerisProto, transmissionGpsTimeSeconds, userPositionEcefMeters);
+      }
+      // Propagate once with the average travel time, then with the one of the propagated position
+      propagateSatellite(i, transmissionGpsTimeSeconds - mCacheGpsTimeSeconds[i]);
+      double rangeMeters = calculateLineOfSight(userPositionEcefMeters);
+      transmissionGpsTimeSeconds = receptionGpsTimeSeconds - rangeMeters / SPEED_OF_LIGHT_MPS;
+      propagateSatellite(i, transmissionGpsTimeSeconds - mCacheGpsTimeSeconds[i]);
+      calculateLineOfSight(userPositionEcefMeters);
+
+      double correctedPseudorangeRateMps =
+          pseudorangeRateMps
+              + mRow[0] * mSatelliteVelocityMps[0]
+              + mRow[1] * mSatelliteVelocityMps[1]
+              + mRow[2] * mSatelliteVelocityMps[2]
+              + mCachedClockErrorRateMps[i];
+      double weight = 1 / (uncertaintyMps * uncertaintyMps);
+      for (int m = 0; m < SOLUTION_SIZE; m++) {
+        mNormalVector[m] += weight * mRow[m] * correctedPseudorangeRateMps;
+        for (int k = m; k < SOLUTION_SIZE; k++) {
+          mNormalMatrix[m][k] += weight * mRow[m] * mRow[k];
+        }
+      }
+      mNumberOfSatellitesUsed++;
+    }
+    if (mNumberOfSatellitesUsed < SOLUTION_SIZE || !factorCholesky()) {
+      return false;
+    }
+
+    // The solution, then the covariance column by column from the identity
+    solveCholesky(mNormalVector);
+    for (int column = 0; column < SOLUTION_SIZE; column++) {
+      for (int m = 0; m < SOLUTION_SIZE; m++) {
+        mRow[m] = m == column ? 1 : 0;
+      }
+      solveCholesky(mRow);
+      for (int m = 0; m < SOLUTION_SIZE; m++) {
+        mCovariance[m][column] = mRow[m];
+      }
+    }
+    System.arraycopy(mNormalVector, 0, velocitySolutionEcef, 0, SOLUTION_SIZE);
+
+    updateEnuRotation(userPositionEcefMeters);
+    rotateToEnu(mNormalVector, velocitySolutionEnuMps);
+    velocityUncertaintyEnuMps[0] =
+        Math.sqrt(calculateVariance(-mSinLongitude, mCosLongitude, 0));
+    velocityUncertaintyEnuMps[1] =
+        Math.sqrt(
+            calculateVariance(
+                -mSinLatitude * mCosLongitude, -mSinLatitude * mSinLongitude, mCosLatitude));
+    velocityUncertaintyEnuMps[2] =
+        Math.sqrt(
+            calculateVariance(
+                mCosLatitude * mCosLongitude, mCosLatitude * mSinLongitude, mSinLatitude));
+    return true;
+  }
+
+  /** Returns the number of satellites used by the last successful {@link #solve} */
+  int getNumberOfSatellitesUsed() {
+    return mNumberOfSatellitesUsed;
+  }
+
+  private void indexEphemerides(GpsNavMessageProto navMessageProto) {
+    mNavMessageProto = navMessageProto;
+    for (int i = 0; i < MAX_NUMBER_OF_SATELLITES; i++) {
+      mEphemerides[i] = null;
+    }
+    for (GpsEphemerisProto ephemerisProto : navMessageProto.ephemerids) {
+      if (ephemerisProto.prn >= 1 && ephemerisProto.prn <= MAX_NUMBER_OF_SATELLITES) {
+        mEphemerides[ephemerisProto.prn - 1] = ephemerisProto;
+      }
+    }
+  }
+
+  /** Computes the cached state of satellite {@code index} at {@code gpsTimeSeconds}. */
+  private void refreshSatellite(
+      int index,
+      GpsEphemerisProto ephemerisProto,
+      double gpsTimeSeconds,
+      double[] userPositionEcefMeters)
+      throws Exception {
+    PositionAndVelocity before =
+        calculateSatellitePositionAndVelocity(
+            ephemerisProto, gpsTimeSeconds - HALF_DIFFERENTIATION_STEP_SECONDS,
+            userPositionEcefMeters);
+    PositionAndVelocity after =
+        calculateSatellitePositionAndVelocity(
+            ephemerisProto, gpsTimeSeconds + HALF_DIFFERENTIATION_STEP_SECONDS,
+            userPositionEcefMeters);
+    PositionAndVelocity now =
+        calculateSatellitePositionAndVelocity(
+            ephemerisProto, gpsTimeSeconds, userPositionEcefMeters);
+    double[] position = mCachedPositionMeters[index];
+    double[] velocity = mCachedVelocityMps[index];
+    double[] acceleration = mCachedAccelerationMps2[index];
+    position[0] = now.positionXMeters;
+    position[1] = now.positionYMeters;
+    position[2] = now.positionZMeters;
+    velocity[0] = now.velocityXMetersPerSec;
+    velocity[1] = now.velocityYMetersPerSec;
+    velocity[2] = now.velocityZMetersPerSec;
+    double step = 2 * HALF_DIFFERENTIATION_STEP_SECONDS;
+    acceleration[0] = (after.velocityXMetersPerSec - before.velocityXMetersPerSec) / step;
+    acceleration[1] = (after.velocityYMetersPerSec - before.velocityYMetersPerSec) / step;
+    acceleration[2] = (after.velocityZMetersPerSec - before.velocityZMetersPerSec) / step;
+
+    int week = (int) Math.floor(gpsTimeSeconds / SECONDS_IN_WEEK);
+    mCachedClockErrorRateMps[index] =
+        SatelliteClockCorrectionCalculator.calculateSatClockCorrErrorRate(
+            ephemerisProto, gpsTimeSeconds - (double) week * SECONDS_IN_WEEK, week);
+    mCachedEphemerides[index] = ephemerisProto;
+    mCacheGpsTimeSeconds[index] = gpsTimeSeconds;
+  }
+
+  private static PositionAndVelocity calculateSatellitePositionAndVelocity(
+      GpsEphemerisProto ephemerisProto, double gpsTimeSeconds, double[] userPositionEcefMeters)
+      throws Exception {
+    int week = (int) Math.floor(gpsTimeSeconds / SECONDS_IN_WEEK);
+    return SatellitePositionCalculator.calculateSatellitePositionAndVelocityFromEphemeris(
+        ephemerisProto,
+        gpsTimeSeconds - (double) week * SECONDS_IN_WEEK,
+        week,
+        userPositionEcefMeters[0],
+        userPositionEcefMeters[1],
+        userPositionEcefMeters[2]);
+  }
+
+  /** Propagates the cached state of satellite {@code index} by {@code deltaTimeSeconds}. */
+  private void propagateSatellite(int index, double deltaTimeSeconds) {
+    double[] position = mCachedPositionMeters[index];
+    double[] velocity = mCachedVelocityMps[index];
+    double[] acceleration = mCachedAccelerationMps2[index];
+    for (int k = 0; k < 3; k++) {
+      mSatellitePositionMeters[k] =
+          position[k]
+              + deltaTimeSeconds * (velocity[k] + 0.5 * deltaTimeSeconds * acceleration[k]);
+      mSatelliteVelocityMps[k] = velocity[k] + deltaTimeSeconds * acceleration[k];
+    }
+  }
+
+  /**
+   * Sets {@link #mRow} to the row of the propagated satellite in the geometry matrix, the unit
+   * vector from the satellite to the receiver followed by 1, and returns their distance.
+   */
+  private double calculateLineOfSight(double[] userPositionEcefMeters) {
+    double x = userPositionEcefMeters[0] - mSatellitePositionMeters[0];
+    double y = userPositionEcefMeters[1] - mSatellitePositionMeters[1];
+    double z = userPositionEcefMeters[2] - mSatellitePositionMeters[2];
+    double rangeMeters = Math.sqrt(x * x + y * y + z * z);
+    mRow[0] = x / rangeMeters;
+    mRow[1] = y / rangeMeters;
+    mRow[2] = z / rangeMeters;
+    mRow[3] = 1;
+    return rangeMeters;
+  }
+
+  /**
+   * Replaces the upper triangle of {@link #mNormalMatrix} by the transposed Cholesky factor, and
+   * returns {@code false} if the matrix is not positive definite.
+   */
+  private boolean factorCholesky() {
+    for (int i = 0; i < SOLUTION_SIZE; i++) {
+      for (int k = i; k < SOLUTION_SIZE; k++) {
+        double sum = mNormalMatrix[i][k];
+        for (int m = 0; m < i; m++) {
+          sum -= mNormalMatrix[m][i] * mNormalMatrix[m][k];
+        }
+        if (i == k) {
+          if (!(sum > 0)) {
+            return false;
+          }
+          mNormalMatrix[i][i] = Math.sqrt(sum);
+        } else {
+          mNormalMatrix[i][k] = sum / mNormalMatrix[i][i];
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Replaces {@code vector} by the solution of the factored normal equations */
+  private void solveCholesky(double[] vector) {
+    for (int i = 0; i < SOLUTION_SIZE; i++) {
+      double sum = vector[i];
+      for (int m = 0; m < i; m++) {
+        sum -= mNormalMatrix[m][i] * vector[m];
+      }
+      vector[i] = sum / mNormalMatrix[i][i];
+    }
+    for (int i = SOLUTION_SIZE - 1; i >= 0; i--) {
+      double sum = vector[i];
+      for (int m = i + 1; m < SOLUTION_SIZE; m++) {
+        sum -= mNormalMatrix[i][m] * vector[m];
+      }
+      vector[i] = sum / mNormalMatrix[i][i];
+    }
+  }
+
+  /** Computes the latitude and longitude of the receiver, if it moved since the last epoch. */
+  private void updateEnuRotation(double[] userPositionEcefMeters) {
+    if (userPositionEcefMeters[0] == mLastUserPositionEcefMeters[0]
+        && userPositionEcefMeters[1] == mLastUserPositionEcefMeters[1]
+        && userPositionEcefMeters[2] == mLastUserPositionEcefMeters[2]
+        && mHasEnuRotation) {
+      return;
+    }
+    mHasEnuRotation = true;
+    System.arraycopy(userPositionEcefMeters, 0, mLastUserPositionEcefMeters, 0, 3);
+    GeodeticLlaValues latLngAlt =
+        Ecef2LlaConverter.convertECEFToLLACloseForm(
+            userPositionEcefMeters[0], userPositionEcefMeters[1], userPositionEcefMeters[2]);
+    mSinLatitude = Math.sin(latLngAlt.latitudeRadians);
+    mCosLatitude = Math.cos(latLngAlt.latitudeRadians);
+    mSinLongitude = Math.sin(latLngAlt.longitudeRadians);
+    mCosLongitude = Math.cos(latLngAlt.longitudeRadians);
+  }
+
+  private void rotateToEnu(double[] ecef, double[] enu) {
+    enu[0] = -mSinLongitude * ecef[0] + mCosLongitude * ecef[1];
+    enu[1] =
+        -mSinLatitude * mCosLongitude * ecef[0]
+            - mSinLatitude * mSinLongitude * ecef[1]
+            + mCosLatitude * ecef[2];
+    enu[2] =
+        mCosLatitude * mCosLongitude * ecef[0]
+            + mCosLatitude * mSinLongitude * ecef[1]
+            + mSinLatitude * ecef[2];
+  }
+
+  /** Returns the variance of the velocity along the unit vector {@code (x, y, z)} */
+  private double calculateVariance(double x, double y, double z) {
+    return x * x * mCovariance[0][0]
+        + y * y * mCovariance[1][1]
+        + z * z * mCovariance[2][2]
+        + 2 * (x * y * mCovariance[0][1] + x * z * mCovariance[0][2] + y * z * mCovariance[1][2]);
+  }
+}
@@ -16,23 +16,20 @@
 
 package com.google.location.lbs.gnss.gps.pseudorange;
 
-import java.util.List;
-
 /**
- * Interface for smoothing a list of {@link GpsMeasurementWithRangeAndUncertainty} instances
- * received at a point of time.
+ * Interface for smoothing the pseudoranges of a {@link MeasurementEpoch} received at a point of
+ * time.
  */
 interface PseudorangeSmoother {
 
   /**
-   * Takes an input list of {@link GpsMeasurementWithRangeAndUncertainty} instances and returns a
-   * new list that contains smoothed pseudorange measurements.
-   *
-   * <p>The input list is of size {@link GpsNavigationMessageStore#MAX_NUMBER_OF_SATELLITES} with
-   * not visible GPS satellites having null entries, and the returned new list is of the same size.
+   * Takes an input {@link MeasurementEpoch} and returns an epoch that contains the smoothed
+   * pseudorange measurements in {@link MeasurementEpoch#pseudorangeMeters} and
+   * {@link MeasurementEpoch#pseudorangeUncertaintyMeters}.
    *
-   * <p>The method does not modify the input list.
+   * <p>The method does not modify the input epoch. The returned epoch may be the input epoch itself
+   * if nothing is smoothed, otherwise it is owned by the smoother and only valid until the next
+   * call.
    */
-  List<GpsMeasurementWithRangeAndUncertainty> updatePseudorangeSmoothingResult(
-          List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToGPSReceiverMeasurements);
+  MeasurementEpoch updatePseudorangeSmoothingResult(MeasurementEpoch measurementEpoch);
 }
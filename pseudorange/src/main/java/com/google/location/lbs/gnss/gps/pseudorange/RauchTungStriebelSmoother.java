@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+/**
+ * The backward pass of the fixed interval Rauch-Tung-Striebel smoother, over the epochs recorded
+ * in a {@link KalmanFilterHistory} by a forward {@link UserPositionVelocityExtendedKalmanFilter}.
+ *
+ * <p>From the last epoch back to the first, the smoothed state of an epoch is its filtered state
+ * corrected by the gain {@code C = Pf * F' * inverse(Pp)} times the difference between the smoothed
+ * and the predicted state of the next epoch, with {@code F} the transition of the filter between
+ * the two epochs. The covariance is corrected the same way: {@code Ps = Pf + C * (Ps' - Pp') *
+ * C'}. The smoothed states replace the filtered ones in the history.
+ *
+ * <p>The predicted covariance is factored with a Cholesky decomposition. An interval ends at an
+ * epoch followed by an initialization of the filter: its smoothed state is its filtered state.
+ *
+ * <p>Source: Rauch, H.E., Tung, F., Striebel, C.T.: Maximum likelihood estimates of linear dynamic
+ * systems, AIAA Journal, 1965; Groves, P.D.: Principles of GNSS, Inertial, and Multisensor
+ * Integrated Navigation Systems, section 3.4.2.
+ *
+ * <p>Smoothing does not allocate. The class is not thread safe.
+ */
+final class RauchTungStriebelSmoother {
+  private static final int STATE_SIZE = UserPositionVelocityExtendedKalmanFilter.STATE_SIZE;
+  private static final double SECONDS_PER_NANO = 1.0e-9;
+
+  private final double[][] mTransitionMatrix = new double[STATE_SIZE][STATE_SIZE];
+  private final double[] mFilteredState = new double[STATE_SIZE];
+  private final double[][] mFilteredCovariance = new double[STATE_SIZE][STATE_SIZE];
+  private final double[] mPredictedState = new double[STATE_SIZE];
+  private final double[][] mPredictedCovariance = new double[STATE_SIZE][STATE_SIZE];
+  private double[] mNextSmoothedState = new double[STATE_SIZE];
+  private double[][] mNextSmoothedCovariance = new double[STATE_SIZE][STATE_SIZE];
+  private double[] mSmoothedState = new double[STATE_SIZE];
+  private double[][] mSmoothedCovariance = new double[STATE_SIZE][STATE_SIZE];
+  /** {@code F * Pf}, then {@code inverse(Pp) * F * Pf} which is the transposed gain */
+  private final double[][] mGainTransposed = new double[STATE_SIZE][STATE_SIZE];
+  private final double[][] mCholeskyFactor = new double[STATE_SIZE][STATE_SIZE];
+  private final double[] mStateDifference = new double[STATE_SIZE];
+  private final double[][] mCovarianceDifference = new double[STATE_SIZE][STATE_SIZE];
+  private final double[][] mGainTimesDifference = new double[STATE_SIZE][STATE_SIZE];
+
+  /**
+   * Replaces the filtered states of {@code history} by the smoothed states.
+   *
+   * @return The number of epochs whose state changed, those that are not the last of an interval
+   */
+  int smooth(KalmanFilterHistory history) {
+    int size = history.size();
+    if (size == 0) {
+      return 0;
+    }
+    int smoothedCount = 0;
+    history.getFiltered(size - 1, mNextSmoothedState, mNextSmoothedCovariance);
+    for (int index = size - 2; index >= 0; index--) {
+      history.getFiltered(index, mSmoothedState, mSmoothedCovariance);
+      if (!history.isInitialization(index + 1)) {
+        history.getPredicted(index + 1, mPredictedState, mPredictedCovariance);
+        double deltaTimeSeconds =
+            (history.getGpsTimeNanos(index + 1) - history.getGpsTimeNanos(index))
+                * SECONDS_PER_NANO;
+        if (smoothEpoch(deltaTimeSeconds)) {
+          history.setFiltered(index, mSmoothedState, mSmoothedCovariance);
+          smoothedCount++;
+        }
+      }
+      double[] state = mNextSmoothedState;
+      mNextSmoothedState = mSmoothedState;
+      mSmoothedState = state;
+      double[][] covariance = mNextSmoothedCovariance;
+      mNextSmoothedCovariance = mSmoothedCovariance;
+      mSmoothedCovariance = covariance;
+    }
+    return smoothedCount;
+  }
+
+  /**
+   * Corrects the filtered state held in {@link #mSmoothedState} with the smoothed state of the next
+   * epoch.
+   *
+   * @return {@code false} if the predicted covariance is not positive definite, in which case the
+   *     filtered state is left as is
+   */
+  private boolean smoothEpoch(double deltaTimeSeconds) {
+    System.arraycopy(mSmoothedState, 0, mFilteredState, 0, STATE_SIZE);
+    for (int i = 0; i < STATE_SIZE; i++) {
+      System.arraycopy(mSmoothedCovariance[i], 0, mFilteredCovariance[i], 0, STATE_SIZE);
+    }
+    UserPositionVelocityExtendedKalmanFilter.fillTransitionMatrix(
+        deltaTimeSeconds, mTransitionMatrix);
+    multiply(mTransitionMatrix, mFilteredCovariance, mGainTransposed);
+    if (!factorCholesky(mPredictedCovariance)) {
+      return false;
+    }
+    for (int column = 0; column < STATE_SIZE; column++) {
+      solveCholeskyColumn(mGainTransposed, column);
+    }
+
+    for (int i = 0; i < STATE_SIZE; i++) {
+      mStateDifference[i] = mNextSmoothedState[i] - mPredictedState[i];
+      for (int k = 0; k < STATE_SIZE; k++) {
+        mCovarianceDifference[i][k] = mNextSmoothedCovariance[i][k] - mPredictedCovariance[i][k];
+      }
+    }
+    for (int i = 0; i < STATE_SIZE; i++) {
+      double correction = 0;
+      for (int k = 0; k < STATE_SIZE; k++) {
+        correction += mGainTransposed[k][i] * mStateDifference[k];
+      }
+      mSmoothedState[i] = mFilteredState[i] + correction;
+    }
+    // C * (Ps' - Pp'), then times C'
+    for (int i = 0; i < STATE_SIZE; i++) {
+      for (int k = 0; k < STATE_SIZE; k++) {
+        double sum = 0;
+        for (int m = 0; m < STATE_SIZE; m++) {
+          sum += mGainTransposed[m][i] * mCovarianceDifference[m][k];
+        }
+        mGainTimesDifference[i][k] = sum;
+      }
+    }
+    for (int i = 0; i < STATE_SIZE; i++) {
+      for (int k = i; k < STATE_SIZE; k++) {
+        double sum = 0;
+        for (int m = 0; m < STATE_SIZE; m++) {
+          sum += mGainTimesDifference[i][m] * mGainTransposed[m][k];
+        }
+        mSmoothedCovariance[i][k] = mFilteredCovariance[i][k] + sum;
+        mSmoothedCovariance[k][i] = mSmoothedCovariance[i][k];
+      }
+    }
+    return true;
+  }
+
+  private static void multiply(double[][] left, double[][] right, double[][] product) {
+    for (int i = 0; i < STATE_SIZE; i++) {
+      for (int k = 0; k < STATE_SIZE; k++) {
+        double sum = 0;
+        for (int m = 0; m < STATE_SIZE; m++) {
+          sum += left[i][m] * right[m][k];
+        }
+        product[i][k] = sum;
+      }
+    }
+  }
+
+  /**
+   * Computes the lower triangular {@code L} such that {@code L * L' = matrix} into {@link
+   * #mCholeskyFactor}, and returns {@code false} if the matrix is not positive definite.
+   */
+  private boolean factorCholesky(double[][] matrix) {
+    for (int i = 0; i < STATE_SIZE; i++) {
+      for (int k = 0; k <= i; k++) {
+        double sum = matrix[i][k];
+        for (int m = 0; m < k; m++) {
+          sum -= mCholeskyFactor[i][m] * mCholeskyFactor[k][m];
+        }
+        if (i == k) {
+          if (!(sum > 0)) {
+            return false;
+          }
+          mCholeskyFactor[i][i] = Math.sqrt(sum);
+        } else {
+          mCholeskyFactor[i][k] = sum / mCholeskyFactor[k][k];
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Replaces a column {@code b} of {@code matrix} by the solution of {@code L * L' * x = b} */
+  private void solveCholeskyColumn(double[][] matrix, int column) {
+    for (int i = 0; i < STATE_SIZE; i++) {
+      double sum = matrix[i][column];
+      for (int m = 0; m < i; m++) {
+        sum -= mCholeskyFactor[i][m] * matrix[m][column];
+      }
+      matrix[i][column] = sum / mCholeskyFactor[i][i];
+    }
+    for (int i = STATE_SIZE - 1; i >= 0; i--) {
+      double sum = matrix[i][column];
+      for (int m = i + 1; m < STATE_SIZE; m++) {
+        sum -= mCholeskyFactor[m][i] * matrix[m][column];
+      }
+      matrix[i][column] = sum / mCholeskyFactor[i][i];
+    }
+  }
+}
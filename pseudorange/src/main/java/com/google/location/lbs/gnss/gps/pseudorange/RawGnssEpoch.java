@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A platform independent copy of an {@code android.location.GnssMeasurementsEvent}: the receiver
+ * clock of an epoch and the {@link RawGnssMeasurement}s sharing it.
+ */
+public final class RawGnssEpoch {
+  /** Value of {@code android.os.SystemClock.elapsedRealtime()} when the epoch was logged */
+  public final long elapsedRealtimeMillis;
+  public final long timeNanos;
+  public final long fullBiasNanos;
+  /** Sub-nanosecond bias, zero if not reported */
+  public final double biasNanos;
+  public final List<RawGnssMeasurement> measurements;
+
+  public RawGnssEpoch(
+      long elapsedRealtimeMillis,
+      long timeNanos,
+      long fullBiasNanos,
+      double biasNanos,
+      List<RawGnssMeasurement> measurements) {
+    this.elapsedRealtimeMillis = elapsedRealtimeMillis;
+    this.timeNanos = timeNanos;
+    this.fullBiasNanos = fullBiasNanos;
+    this.biasNanos = biasNanos;
+    this.measurements = Collections.unmodifiableList(new ArrayList<>(measurements));
+  }
+}
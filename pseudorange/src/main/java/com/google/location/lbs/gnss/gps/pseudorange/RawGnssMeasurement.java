@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+/**
+ * A platform independent copy of the fields of {@code android.location.GnssMeasurement} used by
+ * the solver, so that measurements can be read from a log file and processed outside of Android.
+ */
+public final class RawGnssMeasurement {
+  public final int svid;
+  /** One of the {@code android.location.GnssStatus} constellation constants */
+  public final int constellationType;
+  /** Bitmask of the {@code android.location.GnssMeasurement} state constants */
+  public final int state;
+  public final long receivedSvTimeNanos;
+  public final double cn0DbHz;
+  public final double pseudorangeRateMetersPerSecond;
+  public final double pseudorangeRateUncertaintyMetersPerSecond;
+  public final int accumulatedDeltaRangeState;
+  public final double accumulatedDeltaRangeMeters;
+  public final double accumulatedDeltaRangeUncertaintyMeters;
+
+  public RawGnssMeasurement(
+      int svid,
+      int constellationType,
+      int state,
+      long receivedSvTimeNanos,
+      double cn0DbHz,
+      double pseudorangeRateMetersPerSecond,
+      double pseudorangeRateUncertaintyMetersPerSecond,
+      int accumulatedDeltaRangeState,
+      double accumulatedDeltaRangeMeters,
+      double accumulatedDeltaRangeUncertaintyMeters) {
+    this.svid = svid;
+    this.constellationType = constellationType;
+    this.state = state;
+    this.receivedSvTimeNanos = receivedSvTimeNanos;
+    this.cn0DbHz = cn0DbHz;
+    this.pseudorangeRateMetersPerSecond = pseudorangeRateMetersPerSecond;
+    this.pseudorangeRateUncertaintyMetersPerSecond = pseudorangeRateUncertaintyMetersPerSecond;
+    this.accumulatedDeltaRangeState = accumulatedDeltaRangeState;
+    this.accumulatedDeltaRangeMeters = accumulatedDeltaRangeMeters;
+    this.accumulatedDeltaRangeUncertaintyMeters = accumulatedDeltaRangeUncertaintyMeters;
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+import android.location.cts.suplClient.SuplRrlpController;
+import android.util.Log;
+
+import com.google.location.lbs.gnss.gps.pseudorange.SuplNavMessageCache.CachedNavMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fetches the GPS navigation message from a SUPL server on a background thread so that the position
+ * solver never blocks on the network.
+ *
+ * <p>The solver calls {@link #requestRefreshIfNeeded(int, int)} on every epoch, which returns
+ * immediately, and then uses whatever {@link #getLatestNavMessage()} returns. A refresh is started
+ * ahead of the expiry of the ephemerides of the current assistance data, or when the reference
+ * location moved far from the location the data was requested for. Failed or timed out requests are
+ * retried with an exponential backoff.
+ *
+ * <p>A refresh first looks up the {@link SuplNavMessageCache} and only contacts the SUPL server if
+ * the cache has no valid navigation message for the reference location.
+ *
+ * <p>The SUPL client of the library opens its socket without a connect timeout, and a connect is
+ * not interrupted by the cancellation of a timed out request. The server is therefore connected to
+ * first with a timeout of {@value #CONNECT_TIMEOUT_MILLIS} ms, and only handed to the client once
+ * it accepted a connection, so that an unreachable server does not hold the connection thread for
+ * the minutes of the system connect timeout.
+ */
+public class SuplAssistanceManager {
+
+  private static final String TAG = "SuplAssistanceManager";
+  private static final String DEFAULT_SUPL_SERVER_NAME = "supl.google.com";
+  private static final int DEFAULT_SUPL_SERVER_PORT = 7276;
+
+  /** How long before the expiry of the assistance data a new request is started */
+  private static final long REFRESH_AHEAD_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  /** Minimum age of the assistance data before it is refreshed for being about to expire */
+  private static final long MINIMUM_REFRESH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  /** Maximum time a single SUPL request is allowed to take */
+  private static final long FETCH_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+  /** Maximum time the connection to the SUPL server is allowed to take, within a request */
+  private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(5);
+  private static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(2);
+  private static final long MAXIMUM_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  /** Reference location change above which the assistance data is requested again */
+  private static final double REFERENCE_LOCATION_CHANGE_THRESHOLD_METERS = 100000.0;
+  private static final double EARTH_RADIUS_METERS = 6371000.0;
+  private static final double E7 = 1.0e7;
+  private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+  private final String mSuplServerName;
+  private final int mSuplServerPort;
+  private final SuplNavMessageCache mSuplNavMessageCache;
+  private final Executor mRequestExecutor;
+  // The requests are deduplicated, so a single connection thread is enough: a connection abandoned
+  // after a timeout only delays the next one until its socket read times out
+  private final ExecutorService mConnectionExecutor = newSingleThreadExecutor("SUPL connection");
+  private final AtomicReference<AssistanceData> mLatestAssistanceData = new AtomicReference<>();
+  private final AtomicBoolean mRequestInProgress = new AtomicBoolean(false);
+
+  /** Earliest time the next request can be made, pushed forward after every failure */
+  private volatile long mNextRequestAllowedTimeMillis = 0;
+  private volatile long mCurrentBackoffMillis = INITIAL_BACKOFF_MILLIS;
+
+  /** Constructor using the default Google SUPL server and an in-memory cache */
+  public SuplAssistanceManager() {
+    this(new SuplNavMessageCache());
+  }
+
+  /** Constructor using the default Google SUPL server and the given cache */
+  public SuplAssistanceManager(SuplNavMessageCache suplNavMessageCache) {
+    this(DEFAULT_SUPL_SERVER_NAME, DEFAULT_SUPL_SERVER_PORT, suplNavMessageCache);
+  }
+
+  /** Constructor using the SUPL server at {@code suplServerName}:{@code suplServerPort} */
+  public SuplAssistanceManager(
+      String suplServerName, int suplServerPort, SuplNavMessageCache suplNavMessageCache) {
+    this(
+        suplServerName,
+        suplServerPort,
+        suplNavMessageCache,
+        newSingleThreadExecutor("SUPL request"));
+  }
+
+  /**
+   * Constructor running the requests on {@code requestExecutor}, e.g. on the calling thread in the
+   * tests. The connections to the server still run on their own thread, bounded by the timeouts.
+   */
+  SuplAssistanceManager(
+      String suplServerName,
+      int suplServerPort,
+      SuplNavMessageCache suplNavMessageCache,
+      Executor requestExecutor) {
+    mSuplServerName = suplServerName;
+    mSuplServerPort = suplServerPort;
+    mSuplNavMessageCache = suplNavMessageCache;
+    mRequestExecutor = requestExecutor;
+  }
+
+  /**
+   * Starts a background SUPL request if there is no assistance data yet, if the current data is
+   * about to expire or if the reference location moved by more than
+   * {@value #REFERENCE_LOCATION_CHANGE_THRESHOLD_METERS} meters. Never blocks: at most one request
+   * is in flight at a time and requests are not repeated while backing off from a failure.
+   */
+  public void requestRefreshIfNeeded(int latE7, int lngE7) {
+    requestRefreshIfNeeded(latE7, lngE7, System.currentTimeMillis());
+  }
+
+  /** As {@link #requestRefreshIfNeeded(int, int)}, at the time {@code nowMillis} */
+  void requestRefreshIfNeeded(int latE7, int lngE7, long nowMillis) {
+    if (!isRefreshNeeded(mLatestAssistanceData.get(), latE7, lngE7, nowMillis)
+        || nowMillis < mNextRequestAllowedTimeMillis
+        || !mRequestInProgress.compareAndSet(false, true)) {
+      return;
+    }
+    mRequestExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              fetchAndPublish(latE7, lngE7);
+            } finally {
+              mRequestInProgress.set(false);
+            }
+          }
+        });
+  }
+
+  /**
+   * Returns the most recently received navigation message, or {@code null} if no SUPL request has
+   * succeeded yet.
+   */
+  public GpsNavMessageProto getLatestNavMessage() {
+    AssistanceData assistanceData = mLatestAssistanceData.get();
+    return assistanceData == null ? null : assistanceData.cachedNavMessage.navMessageProto;
+  }
+
+  /** Returns the cache of the navigation messages, e.g. to read its hit and miss counts */
+  public SuplNavMessageCache getSuplNavMessageCache() {
+    return mSuplNavMessageCache;
+  }
+
+  private static boolean isRefreshNeeded(
+      AssistanceData assistanceData, int latE7, int lngE7, long nowMillis) {
+    if (assistanceData == null) {
+      return true;
+    }
+    if (isAboutToExpire(assistanceData.cachedNavMessage, nowMillis)) {
+      return true;
+    }
+    return getDistanceMeters(assistanceData.latE7, assistanceData.lngE7, latE7, lngE7)
+        > REFERENCE_LOCATION_CHANGE_THRESHOLD_METERS;
+  }
+
+  private static boolean isAboutToExpire(CachedNavMessage cachedNavMessage, long nowMillis) {
+    long refreshTimeMillis =
+        Math.max(
+            cachedNavMessage.expiryTimeMillis - REFRESH_AHEAD_MILLIS,
+            cachedNavMessage.receivedTimeMillis + MINIMUM_REFRESH_INTERVAL_MILLIS);
+    return nowMillis >= refreshTimeMillis;
+  }
+
+  /**
+   * Publishes the cached navigation message for the given location if it is not about to expire.
+   * Otherwise performs one SUPL request bounded by {@value #FETCH_TIMEOUT_MILLIS} milliseconds and
+   * publishes and caches the result, or schedules the next allowed request time on failure.
+   */
+  private void fetchAndPublish(int latE7, int lngE7) {
+    CachedNavMessage cachedNavMessage =
+        mSuplNavMessageCache.get(latE7, lngE7, System.currentTimeMillis());
+    if (cachedNavMessage != null
+        && !isAboutToExpire(cachedNavMessage, System.currentTimeMillis())) {
+      mLatestAssistanceData.set(new AssistanceData(cachedNavMessage, latE7, lngE7));
+      Log.d(TAG, "Using cached SUPL assistance data, " + mSuplNavMessageCache);
+      return;
+    }
+
+    Future<GpsNavMessageProto> request =
+        mConnectionExecutor.submit(
+            new Callable<GpsNavMessageProto>() {
+              @Override
+              public GpsNavMessageProto call() throws Exception {
+                InetAddress suplServerAddress = connect();
+                return new SuplRrlpController(suplServerAddress.getHostAddress(), mSuplServerPort)
+                    .generateNavMessage(latE7, lngE7);
+              }
+            });
+    GpsNavMessageProto navMessageProto = null;
+    try {
+      navMessageProto = request.get(FETCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      request.cancel(true /* mayInterruptIfRunning */);
+      Log.w(TAG, "SUPL request timed out after " + FETCH_TIMEOUT_MILLIS + " ms");
+    } catch (Exception e) {
+      Log.w(TAG, "SUPL request failed", e);
+    }
+
+    if (isEmptyNavMessage(navMessageProto)) {
+      long backoffMillis = mCurrentBackoffMillis;
+      mNextRequestAllowedTimeMillis = System.currentTimeMillis() + backoffMillis;
+      mCurrentBackoffMillis = Math.min(backoffMillis * 2, MAXIMUM_BACKOFF_MILLIS);
+      Log.d(TAG, "No SUPL assistance data received, retrying in " + backoffMillis + " ms");
+      return;
+    }
+    mCurrentBackoffMillis = INITIAL_BACKOFF_MILLIS;
+    mNextRequestAllowedTimeMillis = 0;
+    mLatestAssistanceData.set(
+        new AssistanceData(
+            mSuplNavMessageCache.put(latE7, lngE7, navMessageProto, System.currentTimeMillis()),
+            latE7,
+            lngE7));
+    Log.d(TAG, "SUPL assistance data received with "
+        + navMessageProto.ephemerids.length + " ephemerides");
+  }
+
+  /**
+   * Connects to the SUPL server within {@value #CONNECT_TIMEOUT_MILLIS} ms and returns its address,
+   * to which the SUPL client connects again.
+   */
+  private InetAddress connect() throws IOException {
+    InetAddress suplServerAddress = InetAddress.getByName(mSuplServerName);
+    try (Socket socket = new Socket()) {
+      socket.connect(
+          new InetSocketAddress(suplServerAddress, mSuplServerPort), CONNECT_TIMEOUT_MILLIS);
+    }
+    return suplServerAddress;
+  }
+
+  private static boolean isEmptyNavMessage(GpsNavMessageProto navMessageProto) {
+    return navMessageProto == null
+        || navMessageProto.iono == null
+        || navMessageProto.ephemerids.length == 0;
+  }
+
+  /** Returns the approximate distance between two locations given in degrees * 1E7 */
+  private static double getDistanceMeters(long lat1E7, long lng1E7, long lat2E7, long lng2E7) {
+    double lat1Radians = Math.toRadians(lat1E7 / E7);
+    double lat2Radians = Math.toRadians(lat2E7 / E7);
+    double deltaLngRadians = Math.toRadians((lng2E7 - lng1E7) / E7);
+    double x = deltaLngRadians * Math.cos((lat1Radians + lat2Radians) / 2);
+    double y = lat2Radians - lat1Radians;
+    return Math.sqrt(x * x + y * y) * EARTH_RADIUS_METERS;
+  }
+
+  /**
+   * Creates a single threaded executor running its tasks one after the other. Its thread is
+   * released when idle, so that an unused manager does not keep threads alive.
+   */
+  private static ExecutorService newSingleThreadExecutor(String threadName) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            1, 1, IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), newDaemonThreadFactory(threadName));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static ThreadFactory newDaemonThreadFactory(String threadName) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, threadName);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /** The cached navigation message together with the location it was requested for */
+  private static class AssistanceData {
+    private final CachedNavMessage cachedNavMessage;
+    private final int latE7;
+    private final int lngE7;
+
+    private AssistanceData(CachedNavMessage cachedNavMessage, int latE7, int lngE7) {
+      this.cachedNavMessage = cachedNavMessage;
+      this.latE7 = latE7;
+      this.lngE7 = lngE7;
+    }
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+import android.util.Log;
+
+import com.google.protobuf.nano.MessageNano;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A least recently used cache of the navigation messages received from the SUPL server, keyed by a
+ * coarse position tile of {@value #TILE_SIZE_DEGREES} degrees and a time bucket of two hours, which
+ * is the interval at which new ephemerides are uploaded to the satellites.
+ *
+ * <p>An entry is only returned while all of its ephemerides are within their curve fit interval.
+ * If a cache file is given, the cache is read from it on first use and written back after every
+ * update, so that a new session in the same region does not need to contact the SUPL server.
+ *
+ * <p>All methods are thread safe, the file operations are expected to be called from a background
+ * thread.
+ */
+public class SuplNavMessageCache {
+
+  private static final String TAG = "SuplNavMessageCache";
+  private static final double TILE_SIZE_DEGREES = 1.0;
+  private static final long TIME_BUCKET_MILLIS = TimeUnit.HOURS.toMillis(2);
+  private static final int MAX_NUMBER_OF_ENTRIES = 32;
+  /** Curve fit interval assumed when the ephemeris does not specify one */
+  private static final double DEFAULT_FIT_INTERVAL_HOURS = 4.0;
+  private static final int FILE_MAGIC = 0x53555043; // "SUPC"
+  private static final int FILE_VERSION = 1;
+  /** Size of the magic number, the version and the number of entries */
+  private static final int FILE_HEADER_BYTES = 3 * 4;
+  /** Size of the key, the received time, the expiry time and the length of an entry */
+  private static final int ENTRY_HEADER_BYTES = 3 * 8 + 4;
+  private static final double E7 = 1.0e7;
+
+  private final File mCacheFile;
+  private final LinkedHashMap<Long, CachedNavMessage> mEntries =
+      new LinkedHashMap<Long, CachedNavMessage>(
+          MAX_NUMBER_OF_ENTRIES, 0.75f, true /* accessOrder */) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CachedNavMessage> eldest) {
+          return size() > MAX_NUMBER_OF_ENTRIES;
+        }
+      };
+  private boolean mCacheFileLoaded = false;
+  private long mHitCount = 0;
+  private long mMissCount = 0;
+  private long mStaleCount = 0;
+
+  /** Constructor of an in-memory cache that is not persisted */
+  public SuplNavMessageCache() {
+    this(null);
+  }
+
+  /** Constructor of a cache persisted to {@code cacheFile}, which may be {@code null} */
+  public SuplNavMessageCache(File cacheFile) {
+    mCacheFile = cacheFile;
+  }
+
+  /**
+   * Returns the cached navigation message for the tile containing the given location whose
+   * ephemerides are still valid at {@code nowMillis}, or {@code null} if there is none. Entries of
+   * the current and of the previous time bucket are looked up, expired entries are dropped.
+   */
+  public synchronized CachedNavMessage get(int latE7, int lngE7, long nowMillis) {
+    loadCacheFileIfNeeded();
+    long timeBucket = nowMillis / TIME_BUCKET_MILLIS;
+    boolean staleEntryFound = false;
+    for (long bucket = timeBucket; bucket >= timeBucket - 1; bucket--) {
+      long key = getKey(latE7, lngE7, bucket);
+      CachedNavMessage cachedNavMessage = mEntries.get(key);
+      if (cachedNavMessage == null) {
+        continue;
+      }
+      if (nowMillis < cachedNavMessage.expiryTimeMillis) {
+        mHitCount++;
+        return cachedNavMessage;
+      }
+      mEntries.remove(key);
+      staleEntryFound = true;
+    }
+    if (staleEntryFound) {
+      mStaleCount++;
+    } else {
+      mMissCount++;
+    }
+    return null;
+  }
+
+  /**
+   * Adds a navigation message received at {@code receivedTimeMillis} for the given location and
+   * writes the cache file if there is one. Returns the added entry.
+   */
+  public synchronized CachedNavMessage put(
+      int latE7, int lngE7, GpsNavMessageProto navMessageProto, long receivedTimeMillis) {
+    loadCacheFileIfNeeded();
+    CachedNavMessage cachedNavMessage =
+        new CachedNavMessage(
+            navMessageProto, receivedTimeMillis, computeExpiryTimeMillis(navMessageProto));
+    mEntries.put(
+        getKey(latE7, lngE7, receivedTimeMillis / TIME_BUCKET_MILLIS), cachedNavMessage);
+    if (mCacheFile != null) {
+      try {
+        writeCacheFile(receivedTimeMillis);
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to write SUPL cache file: " + mCacheFile, e);
+      }
+    }
+    return cachedNavMessage;
+  }
+
+  /** Returns the number of lookups that returned a valid entry */
+  public synchronized long getHitCount() {
+    return mHitCount;
+  }
+
+  /** Returns the number of lookups for which no entry existed */
+  public synchronized long getMissCount() {
+    return mMissCount;
+  }
+
+  /** Returns the number of lookups that only found entries with expired ephemerides */
+  public synchronized long getStaleCount() {
+    return mStaleCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "SuplNavMessageCache{entries=" + mEntries.size() + ", hits=" + mHitCount
+        + ", misses=" + mMissCount + ", stale=" + mStaleCount + "}";
+  }
+
+  /**
+   * Computes the time after which at least one of the ephemerides of {@code navMessageProto} is
+   * outside of its curve fit interval, centered on the time of ephemeris.
+   */
+  private static long computeExpiryTimeMillis(GpsNavMessageProto navMessageProto) {
+    long expiryTimeMillis = Long.MAX_VALUE;
+    for (GpsEphemerisProto ephemerisProto : navMessageProto.ephemerids) {
+      double fitIntervalHours = ephemerisProto.fitInterval > 0
+          ? ephemerisProto.fitInterval : DEFAULT_FIT_INTERVAL_HOURS;
+      // the time of ephemeris is a GPS time, the cache times are UTC
+      long toeMillis =
+          GpsTimeOperations.gpsNanosToUtcMillis(
+              GpsTime.fromWeekTow(ephemerisProto.week, (int) ephemerisProto.toe)
+                  .getNanosSinceGpsEpoch());
+      long ephemerisExpiryTimeMillis =
+          toeMillis + (long) (fitIntervalHours / 2 * TimeUnit.HOURS.toMillis(1));
+      expiryTimeMillis = Math.min(expiryTimeMillis, ephemerisExpiryTimeMillis);
+    }
+    return expiryTimeMillis;
+  }
+
+  /** Packs the tile indices and the time bucket in a single key */
+  private static long getKey(int latE7, int lngE7, long timeBucket) {
+    long latIndex = (long) Math.floor(latE7 / E7 / TILE_SIZE_DEGREES + 90 / TILE_SIZE_DEGREES);
+    long lngIndex = (long) Math.floor(lngE7 / E7 / TILE_SIZE_DEGREES + 180 / TILE_SIZE_DEGREES);
+    return (timeBucket << 20) | (latIndex << 10) | lngIndex;
+  }
+
+  private void loadCacheFileIfNeeded() {
+    if (mCacheFileLoaded) {
+      return;
+    }
+    mCacheFileLoaded = true;
+    if (mCacheFile == null || !mCacheFile.exists()) {
+      return;
+    }
+    try {
+      readCacheFile();
+    } catch (IOException | RuntimeException e) {
+      // A truncated or corrupt file is a cache miss, it is replaced on the next update
+      Log.w(TAG, "Discarding unreadable SUPL cache file: " + mCacheFile, e);
+      mEntries.clear();
+      if (!mCacheFile.delete()) {
+        Log.w(TAG, "Unable to delete SUPL cache file: " + mCacheFile);
+      }
+    }
+  }
+
+  /**
+   * Reads the cache file. The file contains a header made of a magic number, a version and the
+   * number of entries, followed by the key, the received time, the expiry time and the serialized
+   * {@link GpsNavMessageProto} of each entry, from the least to the most recently used.
+   *
+   * <p>The number of entries and the lengths are checked against the remaining size of the file
+   * before anything is allocated, and the entries are only added once the whole file is read.
+   */
+  private void readCacheFile() throws IOException {
+    long remainingBytes = mCacheFile.length() - FILE_HEADER_BYTES;
+    LinkedHashMap<Long, CachedNavMessage> entries = new LinkedHashMap<>();
+    DataInputStream inputStream =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(mCacheFile)));
+    try {
+      if (inputStream.readInt() != FILE_MAGIC || inputStream.readInt() != FILE_VERSION) {
+        throw new IOException("Unknown SUPL cache file format");
+      }
+      int numberOfEntries = inputStream.readInt();
+      if (numberOfEntries < 0
+          || numberOfEntries > MAX_NUMBER_OF_ENTRIES
+          || (long) numberOfEntries * ENTRY_HEADER_BYTES > remainingBytes) {
+        throw new IOException("Invalid number of entries: " + numberOfEntries);
+      }
+      for (int i = 0; i < numberOfEntries; i++) {
+        long key = inputStream.readLong();
+        long receivedTimeMillis = inputStream.readLong();
+        long expiryTimeMillis = inputStream.readLong();
+        int length = inputStream.readInt();
+        remainingBytes -= ENTRY_HEADER_BYTES;
+        if (length < 0 || length > remainingBytes) {
+          throw new IOException("Invalid entry length: " + length);
+        }
+        byte[] navMessageBytes = new byte[length];
+        inputStream.readFully(navMessageBytes);
+        remainingBytes -= length;
+        entries.put(
+            key,
+            new CachedNavMessage(
+                GpsNavMessageProto.parseFrom(navMessageBytes),
+                receivedTimeMillis,
+                expiryTimeMillis));
+      }
+    } finally {
+      inputStream.close();
+    }
+    mEntries.putAll(entries);
+  }
+
+  /**
+   * Writes the entries that are still valid at {@code nowMillis} to a temporary file that then
+   * replaces the cache file, so that a partially written file is never read back.
+   */
+  private void writeCacheFile(long nowMillis) throws IOException {
+    Iterator<CachedNavMessage> iterator = mEntries.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().expiryTimeMillis <= nowMillis) {
+        iterator.remove();
+      }
+    }
+
+    File temporaryFile = new File(mCacheFile.getPath() + ".tmp");
+    DataOutputStream outputStream =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+    try {
+      outputStream.writeInt(FILE_MAGIC);
+      outputStream.writeInt(FILE_VERSION);
+      outputStream.writeInt(mEntries.size());
+      for (Map.Entry<Long, CachedNavMessage> entry : mEntries.entrySet()) {
+        CachedNavMessage cachedNavMessage = entry.getValue();
+        byte[] navMessageBytes = MessageNano.toByteArray(cachedNavMessage.navMessageProto);
+        outputStream.writeLong(entry.getKey());
+        outputStream.writeLong(cachedNavMessage.receivedTimeMillis);
+        outputStream.writeLong(cachedNavMessage.expiryTimeMillis);
+        outputStream.writeInt(navMessageBytes.length);
+        outputStream.write(navMessageBytes);
+      }
+    } finally {
+      outputStream.close();
+    }
+    if (!temporaryFile.renameTo(mCacheFile)) {
+      temporaryFile.delete();
+      throw new IOException("Unable to replace " + mCacheFile);
+    }
+  }
+
+  /** A cached navigation message together with the time it was received and its expiry time */
+  public static class CachedNavMessage {
+    public final GpsNavMessageProto navMessageProto;
+    public final long receivedTimeMillis;
+    public final long expiryTimeMillis;
+
+    private CachedNavMessage(
+        GpsNavMessageProto navMessageProto, long receivedTimeMillis, long expiryTimeMillis) {
+      this.navMessageProto = navMessageProto;
+      this.receivedTimeMillis = receivedTimeMillis;
+      this.expiryTimeMillis = expiryTimeMillis;
+    }
+  }
+}
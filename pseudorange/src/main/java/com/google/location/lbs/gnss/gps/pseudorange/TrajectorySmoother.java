@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import com.google.common.base.Preconditions;
+import com.google.location.lbs.gnss.gps.pseudorange.Ecef2EnuConverter.EnuValues;
+import com.google.location.lbs.gnss.gps.pseudorange.Ecef2LlaConverter.GeodeticLlaValues;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Post-processes a whole recorded session with a fixed interval smoother: the epochs of an indexed
+ * log are replayed forward through the {@link
+ * PseudorangePositionVelocityFromRealTimeEvents#SOLVER_EXTENDED_KALMAN_FILTER} solver, which
+ * records its states in a {@link KalmanFilterHistory}, then a {@link RauchTungStriebelSmoother}
+ * backward pass makes every solution use the measurements of the epochs after it as well.
+ *
+ * <p>A long session is split into chunks of epochs, which are processed in parallel, each one
+ * replayed in its own solver session with a margin of epochs on both sides so that the filter
+ * converges before the chunk and the smoother before its end. The solutions of the chunks are then
+ * stitched in order, each chunk publishing those of its own epochs. The states of a long session
+ * are kept in memory mapped files rather than on the heap. The chunks run as {@link
+ * ForkJoinTask}s, in the pool of the calling thread if it is a {@link
+ * java.util.concurrent.ForkJoinPool} worker, in the common pool otherwise.
+ *
+ * <p>The smoothed solutions have no pseudorange residuals. The class is not thread safe.
+ */
+public final class TrajectorySmoother {
+  /** Epochs processed by default in a chunk, an hour of epochs at 1 Hz */
+  public static final int DEFAULT_CHUNK_EPOCHS = 3600;
+  /** Epochs replayed by default before and after a chunk, two minutes at 1 Hz */
+  public static final int DEFAULT_OVERLAP_EPOCHS = 120;
+
+  /** Margin on the epoch times, for the rounding of the times recorded by the filter */
+  private static final long TIME_MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final int STATE_SIZE = UserPositionVelocityExtendedKalmanFilter.STATE_SIZE;
+
+  /** Counters of a smoothing, available once it completed. */
+  public static final class SmoothingStatistics {
+    public final int epochCount;
+    public final int solutionCount;
+    public final int chunkCount;
+    public final long elapsedNanos;
+
+    SmoothingStatistics(int epochCount, int solutionCount, int chunkCount, long elapsedNanos) {
+      this.epochCount = epochCount;
+      this.solutionCount = solutionCount;
+      this.chunkCount = chunkCount;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /** Returns the number of epochs smoothed per second of wall clock time */
+    public double getEpochsPerSecond() {
+      return elapsedNanos == 0 ? 0.0 : epochCount / (elapsedNanos * 1.0e-9);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "SmoothingStatistics[epochs=%d, solutions=%d, chunks=%d, elapsedMillis=%d, "
+              + "epochsPerSecond=%.1f]",
+          epochCount,
+          solutionCount,
+          chunkCount,
+          TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+          getEpochsPerSecond());
+    }
+  }
+
+  private final MappedGnssLog mLog;
+  private final int mChunkEpochs;
+  private final int mOverlapEpochs;
+  private double mAccelerationPsd = Double.NaN;
+  private double mClockDriftPsd = Double.NaN;
+
+  /**
+   * Creates a smoother of {@code log}.
+   *
+   * @param chunkEpochs The number of epochs of a chunk
+   * @param overlapEpochs The number of epochs replayed before and after a chunk
+   */
+  public TrajectorySmoother(MappedGnssLog log, int chunkEpochs, int overlapEpochs) {
+    Preconditions.checkArgument(chunkEpochs > 0, "Invalid chunk epochs: " + chunkEpochs);
+    Preconditions.checkArgument(overlapEpochs >= 0, "Invalid overlap epochs: " + overlapEpochs);
+    mLog = log;
+    mChunkEpochs = chunkEpochs;
+    mOverlapEpochs = overlapEpochs;
+  }
+
+  /** Creates a smoother of {@code log} with the default chunks. */
+  public TrajectorySmoother(MappedGnssLog log) {
+    this(log, DEFAULT_CHUNK_EPOCHS, DEFAULT_OVERLAP_EPOCHS);
+  }
+
+  /**
+   * Sets the process noise of the filter, see {@link
+   * PseudorangePositionVelocityFromRealTimeEvents#setKalmanFilterProcessNoise}.
+   */
+  public void setProcessNoise(double accelerationPsd, double clockDriftPsd) {
+    Preconditions.checkArgument(
+        accelerationPsd >= 0 && clockDriftPsd >= 0, "Process noise must not be negative");
+    mAccelerationPsd = accelerationPsd;
+    mClockDriftPsd = clockDriftPsd;
+  }
+
+  /**
+   * Smooths the whole log and publishes the smoothed solutions to {@code listener} in order, on the
+   * calling thread, once all the chunks are processed.
+   */
+  public SmoothingStatistics smooth(PositionVelocitySolutionListener listener) throws Exception {
+    long startNanos = System.nanoTime();
+    int epochCount = mLog.getEpochCount();
+    List<ChunkTask> tasks = new ArrayList<>();
+    long replayedEpochCount = 0;
+    for (int fromEpoch = 0; fromEpoch < epochCount; fromEpoch += mChunkEpochs) {
+      ChunkTask task = new ChunkTask(fromEpoch, Math.min(fromEpoch + mChunkEpochs, epochCount));
+      replayedEpochCount += task.getReplayedToEpoch() - task.getReplayedFromEpoch();
+      tasks.add(task);
+    }
+    boolean mapped = !KalmanFilterHistory.fitsInHeap(replayedEpochCount);
+    for (ChunkTask task : tasks) {
+      task.mMapped = mapped;
+    }
+    try {
+      ForkJoinTask.invokeAll(tasks);
+      for (ChunkTask task : tasks) {
+        if (task.mError != null) {
+          throw task.mError;
+        }
+      }
+      int solutionCount = 0;
+      for (ChunkTask task : tasks) {
+        solutionCount += publishChunk(task, listener);
+      }
+      return new SmoothingStatistics(
+          epochCount, solutionCount, tasks.size(), System.nanoTime() - startNanos);
+    } finally {
+      for (ChunkTask task : tasks) {
+        if (task.mHistory != null) {
+          task.mHistory.close();
+        }
+      }
+    }
+  }
+
+  /** Publishes the smoothed solutions of the epochs of a chunk, and returns their number. */
+  private int publishChunk(ChunkTask task, PositionVelocitySolutionListener listener) {
+    long fromGpsTimeNanos = mLog.getGpsTimeNanos(task.mFromEpoch) - TIME_MARGIN_NANOS;
+    long toGpsTimeNanos =
+        task.mToEpoch == mLog.getEpochCount()
+            ? Long.MAX_VALUE
+            : mLog.getGpsTimeNanos(task.mToEpoch) - TIME_MARGIN_NANOS;
+    KalmanFilterHistory history = task.mHistory;
+    double[] state = new double[STATE_SIZE];
+    double[][] covariance = new double[STATE_SIZE][STATE_SIZE];
+    double[] positionVelocityUncertaintyEnu = new double[6];
+    double[] pseudorangeResidualsMeters =
+        GpsMathOperations.createAndFillArray(
+            GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN);
+    int solutionCount = 0;
+    for (int index = 0; index < history.size(); index++) {
+      long gpsTimeNanos = history.getGpsTimeNanos(index);
+      if (gpsTimeNanos < fromGpsTimeNanos || gpsTimeNanos >= toGpsTimeNanos) {
+        continue;
+      }
+      history.getFiltered(index, state, covariance);
+      UserPositionVelocityExtendedKalmanFilter.calculatePositionVelocityUncertaintyEnu(
+          state, covariance, positionVelocityUncertaintyEnu);
+      GeodeticLlaValues latLngAlt =
+          Ecef2LlaConverter.convertECEFToLLACloseForm(state[0], state[1], state[2]);
+      double[] positionSolutionLatLngDeg = {
+        Math.toDegrees(latLngAlt.latitudeRadians),
+        Math.toDegrees(latLngAlt.longitudeRadians),
+        latLngAlt.altitudeMeters
+      };
+      EnuValues velocityEnu =
+          Ecef2EnuConverter.convertEcefToEnu(
+              state[4], state[5], state[6], latLngAlt.latitudeRadians, latLngAlt.longitudeRadians);
+      double[] velocitySolutionEnuMps =
+          {velocityEnu.enuEast, velocityEnu.enuNorth, velocityEnu.enuUP};
+      listener.onPositionVelocitySolution(
+          new PositionVelocitySolution(
+              gpsTimeNanos,
+              positionSolutionLatLngDeg,
+              velocitySolutionEnuMps,
+              positionVelocityUncertaintyEnu,
+              pseudorangeResidualsMeters));
+      solutionCount++;
+    }
+    return solutionCount;
+  }
+
+  /** Replays and smooths a chunk with its margins, in its own solver session. */
+  private class ChunkTask extends RecursiveTask<Void> {
+    private static final long serialVersionUID = 1L;
+
+    final int mFromEpoch;
+    final int mToEpoch;
+    boolean mMapped;
+    KalmanFilterHistory mHistory;
+    Exception mError;
+
+    ChunkTask(int fromEpoch, int toEpoch) {
+      mFromEpoch = fromEpoch;
+      mToEpoch = toEpoch;
+    }
+
+    int getReplayedFromEpoch() {
+      return Math.max(mFromEpoch - mOverlapEpochs, 0);
+    }
+
+    int getReplayedToEpoch() {
+      return Math.min(mToEpoch + mOverlapEpochs, mLog.getEpochCount());
+    }
+
+    @Override
+    protected Void compute() {
+      int fromEpoch = getReplayedFromEpoch();
+      int toEpoch = getReplayedToEpoch();
+      try {
+        mHistory = new KalmanFilterHistory(toEpoch - fromEpoch, mMapped);
+        // Offline, so that the chunks only use the navigation messages of the log instead of each
+        // requesting its own from the SUPL server
+        PseudorangePositionVelocityFromRealTimeEvents solver =
+            PseudorangePositionVelocityFromRealTimeEvents.createOffline();
+        solver.setPositionVelocitySolver(
+            PseudorangePositionVelocityFromRealTimeEvents.SOLVER_EXTENDED_KALMAN_FILTER);
+        if (!Double.isNaN(mAccelerationPsd)) {
+          solver.setKalmanFilterProcessNoise(mAccelerationPsd, mClockDriftPsd);
+        }
+        solver.setKalmanFilterHistory(mHistory);
+        new GnssLogReplayEngine(solver).replay(mLog, fromEpoch, toEpoch);
+        new RauchTungStriebelSmoother().smooth(mHistory);
+      } catch (Exception e) {
+        // Rethrown by smooth(), on the calling thread
+        mError = e;
+      }
+      return null;
+    }
+  }
+}
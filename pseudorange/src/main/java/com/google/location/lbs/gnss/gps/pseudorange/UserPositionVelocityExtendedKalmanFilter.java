@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import com.google.common.base.Preconditions;
+import com.google.location.lbs.gnss.gps.pseudorange.Ecef2LlaConverter.GeodeticLlaValues;
+import com.google.location.lbs.gnss.gps.pseudorange.UserPositionVelocityWeightedLeastSquare.SatellitesPositionPseudorangesResidualAndCovarianceMatrix;
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+
+/**
+ * Computes the receiver position and velocity with an extended Kalman filter, as an alternative to
+ * the iterative {@link UserPositionVelocityWeightedLeastSquare} with a constant cost per epoch.
+ *
+ * <p>The state has the layout of the solution array: ECEF position, clock bias, ECEF velocity and
+ * clock drift. It is propagated with a constant velocity model and white acceleration noise, and
+ * the clock bias with the clock drift and white drift noise, see {@link #setProcessNoise}.
+ *
+ * <p>Each epoch the measurements are linearized once about the predicted state, then the
+ * pseudoranges and the pseudorange rates are processed one at a time as scalar updates, so no
+ * matrix is inverted. A measurement whose innovation is larger than
+ * {@value #INNOVATION_GATE_SIGMAS} sigmas of its predicted uncertainty is not used, instead of
+ * repeating the solution without the satellites of high residuals as the least square does.
+ *
+ * <p>The pseudoranges are computed against the latest satellite time of week received, see {@link
+ * MeasurementEpoch#computePseudorangesAndUncertainties}, which jumps from one epoch to the next.
+ * The clock bias is therefore acquired again every epoch from the median pseudorange residual,
+ * while the clock drift is tracked with the pseudorange rates.
+ *
+ * <p>The filter is initialized with a least square solution at the first epoch, after a gap of more
+ * than {@value #MAX_PREDICTION_SECONDS} seconds, or when fewer than {@value
+ * #MINIMUM_NUMBER_OF_PSEUDORANGES} pseudoranges pass the gate.
+ *
+ * <p>The predicted and filtered states of each epoch can be recorded in a {@link
+ * KalmanFilterHistory}, for a {@link RauchTungStriebelSmoother} backward pass over a whole log.
+ *
+ * <p>Source: Groves, P.D.: Principles of GNSS, Inertial, and Multisensor Integrated Navigation
+ * Systems, chapters 3 and 9.
+ */
+class UserPositionVelocityExtendedKalmanFilter implements PositionVelocitySolver {
+  private static final double SPEED_OF_LIGHT_MPS = 299792458.0;
+  private static final double NANOS_PER_SECOND = 1.0e9;
+  static final int STATE_SIZE = 8;
+  private static final int CLOCK_BIAS_INDEX = 3;
+  private static final int CLOCK_DRIFT_INDEX = 7;
+  /** Offset from a position or clock bias state to its rate state */
+  private static final int RATE_OFFSET = 4;
+  private static final double MAX_PREDICTION_SECONDS = 10.0;
+  private static final double INNOVATION_GATE_SIGMAS = 5.0;
+  private static final int MINIMUM_NUMBER_OF_PSEUDORANGES = 4;
+  /** Variance of the clock bias acquired from the median pseudorange residual (meters square) */
+  private static final double CLOCK_BIAS_VARIANCE_METERS_SQUARE = 1.0e6;
+  /** Defaults of the process noise power spectral densities (meters square per cubic second) */
+  private static final double DEFAULT_ACCELERATION_PSD = 1.0;
+  private static final double DEFAULT_CLOCK_DRIFT_PSD = 0.1;
+  /** Variances used at initialization when the least square uncertainties are not usable */
+  private static final double INITIAL_POSITION_VARIANCE_METERS_SQUARE = 100.0;
+  private static final double INITIAL_VELOCITY_VARIANCE_MPS_SQUARE = 1.0;
+
+  private final PseudorangeSmoother mPseudorangeSmoother;
+  /** Initializes the filter, and computes the satellite positions and pseudorange residuals */
+  private final UserPositionVelocityWeightedLeastSquare mLeastSquare =
+      new UserPositionVelocityWeightedLeastSquare(new PseudorangeNoSmoothingSmoother());
+
+  private final double[] mState = new double[STATE_SIZE];
+  private final double[][] mCovariance = new double[STATE_SIZE][STATE_SIZE];
+  private final double[] mLinearizationState = new double[STATE_SIZE];
+  private final double[] mMeasurementRow = new double[STATE_SIZE];
+  private final double[] mCovarianceTimesRow = new double[STATE_SIZE];
+  private final double[] mPseudorangeRateResidualsMps =
+      new double[GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES];
+  private final double[] mSortedResidualsMeters =
+      new double[GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES];
+  private final double[] mPredictedState = new double[STATE_SIZE];
+  private final double[][] mPredictedCovariance = new double[STATE_SIZE][STATE_SIZE];
+  private KalmanFilterHistory mHistory = null;
+  private boolean mInitialized = false;
+  private double mLastTowSeconds;
+  private double mAccelerationPsd = DEFAULT_ACCELERATION_PSD;
+  private double mClockDriftPsd = DEFAULT_CLOCK_DRIFT_PSD;
+  private double[] mTruthLocationForCorrectedResidualComputationEcef = null;
+
+  /** Constructor */
+  UserPositionVelocityExtendedKalmanFilter(PseudorangeSmoother pseudorangeSmoother) {
+    mPseudorangeSmoother = pseudorangeSmoother;
+  }
+
+  /**
+   * Sets the power spectral densities of the process noise: of the receiver acceleration along
+   * each ECEF axis and of the clock drift rate, in meters square per cubic second. Larger values
+   * follow the measurements more closely, smaller values give a smoother output.
+   */
+  void setProcessNoise(double accelerationPsd, double clockDriftPsd) {
+    Preconditions.checkArgument(
+        accelerationPsd >= 0 && clockDriftPsd >= 0, "Process noise must not be negative");
+    mAccelerationPsd = accelerationPsd;
+    mClockDriftPsd = clockDriftPsd;
+  }
+
+  /**
+   * Sets the history in which the predicted and filtered states of the following epochs are
+   * recorded, or {@code null} to stop recording.
+   */
+  void setHistory(KalmanFilterHistory history) {
+    mHistory = history;
+  }
+
+  @Override
+  public void setTruthLocationForCorrectedResidualComputationEcef(
+      double[] groundTruthForResidualCorrectionEcef) {
+    mTruthLocationForCorrectedResidualComputationEcef = groundTruthForResidualCorrectionEcef;
+    mLeastSquare.setTruthLocationForCorrectedResidualComputationEcef(
+        groundTruthForResidualCorrectionEcef);
+  }
+
+  @Override
+  public void calculateUserPositionVelocity(
+      GpsNavMessageProto navMessageProto,
+      MeasurementEpoch measurementEpoch,
+      double receiverGPSTowAtReceptionSeconds,
+      int receiverGPSWeek,
+      int dayOfYear1To366,
+      double[] positionVelocitySolutionECEF,
+      double[] positionVelocityUncertaintyEnu,
+      double[] pseudorangeResidualMeters)
+      throws Exception {
+    MeasurementEpoch smoothedMeasurementEpoch =
+        mPseudorangeSmoother.updatePseudorangeSmoothingResult(measurementEpoch);
+    long gpsTimeNanos =
+        receiverGPSWeek * GpsTimeOperations.NANOS_IN_WEEK
+            + Math.round(receiverGPSTowAtReceptionSeconds * NANOS_PER_SECOND);
+    double deltaTimeSeconds = receiverGPSTowAtReceptionSeconds - mLastTowSeconds;
+    mLastTowSeconds = receiverGPSTowAtReceptionSeconds;
+    if (!mInitialized || deltaTimeSeconds <= 0 || deltaTimeSeconds > MAX_PREDICTION_SECONDS) {
+      initialize(navMessageProto, smoothedMeasurementEpoch, receiverGPSTowAtReceptionSeconds,
+          receiverGPSWeek, dayOfYear1To366, positionVelocitySolutionECEF,
+          positionVelocityUncertaintyEnu, pseudorangeResidualMeters);
+      recordInitialization(gpsTimeNanos);
+      return;
+    }
+    predict(deltaTimeSeconds);
+    if (mHistory != null) {
+      System.arraycopy(mState, 0, mPredictedState, 0, STATE_SIZE);
+      for (int i = 0; i < STATE_SIZE; i++) {
+        System.arraycopy(mCovariance[i], 0, mPredictedCovariance[i], 0, STATE_SIZE);
+      }
+    }
+
+    // Single linearization about the predicted state, with the atmospheric corrections
+    int usefulSatellitesMask = smoothedMeasurementEpoch.validSatellitesMask;
+    SatellitesPositionPseudorangesResidualAndCovarianceMatrix satPosPseudorangeResidualAndWeight =
+        mLeastSquare.calculateSatPosAndPseudorangeResidual(
+            navMessageProto,
+            smoothedMeasurementEpoch,
+            usefulSatellitesMask,
+            receiverGPSTowAtReceptionSeconds,
+            receiverGPSWeek,
+            dayOfYear1To366,
+            mState,
+            true /* doAtmosphericCorrections */);
+    double[] pseudorangeResidualsMeters =
+        satPosPseudorangeResidualAndWeight.pseudorangeResidualsMeters;
+    int numberOfSatellites = pseudorangeResidualsMeters.length;
+    double[][] geometryMatrix =
+        UserPositionVelocityWeightedLeastSquare.calculateGeometryMatrix(
+            satPosPseudorangeResidualAndWeight.satellitesPositionsMeters, mState);
+
+    double clockBiasShiftMeters = median(pseudorangeResidualsMeters);
+    mState[CLOCK_BIAS_INDEX] += clockBiasShiftMeters;
+    for (int j = 0; j < numberOfSatellites; j++) {
+      pseudorangeResidualsMeters[j] -= clockBiasShiftMeters;
+    }
+    double correctedTowSeconds =
+        receiverGPSTowAtReceptionSeconds - mState[CLOCK_BIAS_INDEX] / SPEED_OF_LIGHT_MPS;
+    for (int j = 0; j < numberOfSatellites; j++) {
+      double[] geometryRow = geometryMatrix[j];
+      mPseudorangeRateResidualsMps[j] =
+          mLeastSquare.calculatePseudorangeRateResidualMps(
+                  navMessageProto,
+                  smoothedMeasurementEpoch,
+                  satPosPseudorangeResidualAndWeight.satellitePRNs[j] - 1,
+                  correctedTowSeconds,
+                  receiverGPSWeek,
+                  mState,
+                  geometryRow)
+              - (geometryRow[0] * mState[4] + geometryRow[1] * mState[5]
+                  + geometryRow[2] * mState[6]);
+    }
+    System.arraycopy(mState, 0, mLinearizationState, 0, STATE_SIZE);
+
+    // Gate the pseudoranges on the predicted state, then update with those accepted. The clock
+    // bias variance is left out of the gate, the bias was just acquired from all of them.
+    int acceptedSatellitesMask = 0;
+    for (int j = 0; j < numberOfSatellites; j++) {
+      setPseudorangeRow(geometryMatrix[j]);
+      double gateVarianceMeters2 =
+          computeRowCovarianceRow()
+              - mCovariance[CLOCK_BIAS_INDEX][CLOCK_BIAS_INDEX]
+              + satPosPseudorangeResidualAndWeight.covarianceMatrixMetersSquare[j][j];
+      if (isInsideGate(pseudorangeResidualsMeters[j], gateVarianceMeters2)) {
+        acceptedSatellitesMask |= 1 << j;
+      }
+    }
+    if (Integer.bitCount(acceptedSatellitesMask) < MINIMUM_NUMBER_OF_PSEUDORANGES) {
+      initialize(navMessageProto, smoothedMeasurementEpoch, receiverGPSTowAtReceptionSeconds,
+          receiverGPSWeek, dayOfYear1To366, positionVelocitySolutionECEF,
+          positionVelocityUncertaintyEnu, pseudorangeResidualMeters);
+      recordInitialization(gpsTimeNanos);
+      return;
+    }
+    for (int j = 0; j < numberOfSatellites; j++) {
+      if ((acceptedSatellitesMask & (1 << j)) != 0) {
+        setPseudorangeRow(geometryMatrix[j]);
+        update(pseudorangeResidualsMeters[j],
+            satPosPseudorangeResidualAndWeight.covarianceMatrixMetersSquare[j][j], false);
+      }
+    }
+    for (int j = 0; j < numberOfSatellites; j++) {
+      double uncertaintyMps = smoothedMeasurementEpoch.pseudorangeRateUncertaintyMps[
+          satPosPseudorangeResidualAndWeight.satellitePRNs[j] - 1];
+      if (uncertaintyMps > 0 && !Double.isNaN(mPseudorangeRateResidualsMps[j])) {
+        setPseudorangeRateRow(geometryMatrix[j]);
+        update(mPseudorangeRateResidualsMps[j], uncertaintyMps * uncertaintyMps, true);
+      }
+    }
+
+    if (mHistory != null) {
+      mHistory.add(gpsTimeNanos, mPredictedState, mPredictedCovariance, mState, mCovariance);
+    }
+    System.arraycopy(mState, 0, positionVelocitySolutionECEF, 0, STATE_SIZE);
+    calculatePositionVelocityUncertaintyEnu(mState, mCovariance, positionVelocityUncertaintyEnu);
+    if (mTruthLocationForCorrectedResidualComputationEcef != null) {
+      System.arraycopy(
+          ResidualCorrectionCalculator.calculateCorrectedResiduals(
+              satPosPseudorangeResidualAndWeight,
+              mState.clone(),
+              mTruthLocationForCorrectedResidualComputationEcef),
+          0 /*source starting pos*/,
+          pseudorangeResidualMeters,
+          0 /*destination starting pos*/,
+          GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES /*length of elements*/);
+    }
+  }
+
+  /** Initializes the state and its covariance with a least square solution of the epoch */
+  private void initialize(
+      GpsNavMessageProto navMessageProto,
+      MeasurementEpoch smoothedMeasurementEpoch,
+      double receiverGPSTowAtReceptionSeconds,
+      int receiverGPSWeek,
+      int dayOfYear1To366,
+      double[] positionVelocitySolutionECEF,
+      double[] positionVelocityUncertaintyEnu,
+      double[] pseudorangeResidualMeters)
+      throws Exception {
+    mInitialized = false;
+    mLeastSquare.calculateUserPositionVelocity(
+        navMessageProto,
+        smoothedMeasurementEpoch,
+        receiverGPSTowAtReceptionSeconds,
+        receiverGPSWeek,
+        dayOfYear1To366,
+        positionVelocitySolutionECEF,
+        positionVelocityUncertaintyEnu,
+        pseudorangeResidualMeters);
+    System.arraycopy(positionVelocitySolutionECEF, 0, mState, 0, STATE_SIZE);
+    for (int i = 0; i < STATE_SIZE; i++) {
+      for (int k = 0; k < STATE_SIZE; k++) {
+        mCovariance[i][k] = 0;
+      }
+    }
+    double positionVariance = largestVariance(positionVelocityUncertaintyEnu, 0,
+        INITIAL_POSITION_VARIANCE_METERS_SQUARE);
+    double velocityVariance = largestVariance(positionVelocityUncertaintyEnu, 3,
+        INITIAL_VELOCITY_VARIANCE_MPS_SQUARE);
+    for (int i = 0; i < 3; i++) {
+      mCovariance[i][i] = positionVariance;
+      mCovariance[i + RATE_OFFSET][i + RATE_OFFSET] = velocityVariance;
+    }
+    mCovariance[CLOCK_BIAS_INDEX][CLOCK_BIAS_INDEX] = CLOCK_BIAS_VARIANCE_METERS_SQUARE;
+    mCovariance[CLOCK_DRIFT_INDEX][CLOCK_DRIFT_INDEX] = velocityVariance;
+    mInitialized = true;
+  }
+
+  /** Records the state of the filter just initialized, which starts a new smoothing interval */
+  private void recordInitialization(long gpsTimeNanos) {
+    if (mHistory != null) {
+      mHistory.addInitialization(gpsTimeNanos, mState, mCovariance);
+    }
+  }
+
+  /**
+   * Returns the largest square of the three uncertainties starting at {@code offset}, or {@code
+   * defaultVariance} if one of them is not a number.
+   */
+  private static double largestVariance(
+      double[] uncertaintyEnu, int offset, double defaultVariance) {
+    double variance = 0;
+    for (int i = offset; i < offset + 3; i++) {
+      if (Double.isNaN(uncertaintyEnu[i])) {
+        return defaultVariance;
+      }
+      variance = Math.max(variance, uncertaintyEnu[i] * uncertaintyEnu[i]);
+    }
+    return variance;
+  }
+
+  /**
+   * Propagates the state and its covariance by {@code deltaTimeSeconds}. The transition adds
+   * {@code deltaTimeSeconds} times each rate state to its position or clock bias state. The clock
+   * bias is then decorrelated from the other states, it is acquired again from the pseudoranges.
+   */
+  private void predict(double deltaTimeSeconds) {
+    for (int i = 0; i < RATE_OFFSET; i++) {
+      mState[i] += deltaTimeSeconds * mState[i + RATE_OFFSET];
+    }
+    // Covariance F * P * F', the rows then the columns
+    for (int i = 0; i < RATE_OFFSET; i++) {
+      for (int k = 0; k < STATE_SIZE; k++) {
+        mCovariance[i][k] += deltaTimeSeconds * mCovariance[i + RATE_OFFSET][k];
+      }
+    }
+    for (int k = 0; k < RATE_OFFSET; k++) {
+      for (int i = 0; i < STATE_SIZE; i++) {
+        mCovariance[i][k] += deltaTimeSeconds * mCovariance[i][k + RATE_OFFSET];
+      }
+    }
+
+    // White noise on the rates, integrated over the interval
+    double dt2 = deltaTimeSeconds * deltaTimeSeconds;
+    double dt3 = dt2 * deltaTimeSeconds;
+    for (int i = 0; i < RATE_OFFSET; i++) {
+      double psd = i == CLOCK_BIAS_INDEX ? mClockDriftPsd : mAccelerationPsd;
+      mCovariance[i][i] += psd * dt3 / 3;
+      mCovariance[i][i + RATE_OFFSET] += psd * dt2 / 2;
+      mCovariance[i + RATE_OFFSET][i] += psd * dt2 / 2;
+      mCovariance[i + RATE_OFFSET][i + RATE_OFFSET] += psd * deltaTimeSeconds;
+    }
+
+    for (int i = 0; i < STATE_SIZE; i++) {
+      mCovariance[i][CLOCK_BIAS_INDEX] = 0;
+      mCovariance[CLOCK_BIAS_INDEX][i] = 0;
+    }
+    mCovariance[CLOCK_BIAS_INDEX][CLOCK_BIAS_INDEX] = CLOCK_BIAS_VARIANCE_METERS_SQUARE;
+  }
+
+  /**
+   * Fills the transition matrix of {@link #predict} over {@code deltaTimeSeconds}, as seen by the
+   * next epoch: each rate state is added to its position state, and the clock bias row is zero
+   * since the bias is acquired again from the pseudoranges.
+   */
+  static void fillTransitionMatrix(double deltaTimeSeconds, double[][] transitionMatrix) {
+    for (int i = 0; i < STATE_SIZE; i++) {
+      for (int k = 0; k < STATE_SIZE; k++) {
+        transitionMatrix[i][k] = i == k && i != CLOCK_BIAS_INDEX ? 1 : 0;
+      }
+    }
+    for (int i = 0; i < 3; i++) {
+      transitionMatrix[i][i + RATE_OFFSET] = deltaTimeSeconds;
+    }
+  }
+
+  /** Sets the measurement row of a pseudorange: the geometry row on the position and clock bias */
+  private void setPseudorangeRow(double[] geometryRow) {
+    for (int i = 0; i < RATE_OFFSET; i++) {
+      mMeasurementRow[i] = geometryRow[i];
+      mMeasurementRow[i + RATE_OFFSET] = 0;
+    }
+  }
+
+  /** Sets the measurement row of a pseudorange rate: the geometry row on the velocity and drift */
+  private void setPseudorangeRateRow(double[] geometryRow) {
+    for (int i = 0; i < RATE_OFFSET; i++) {
+      mMeasurementRow[i] = 0;
+      mMeasurementRow[i + RATE_OFFSET] = geometryRow[i];
+    }
+  }
+
+  /** Computes {@code P * h'} into {@link #mCovarianceTimesRow} and returns {@code h * P * h'} */
+  private double computeRowCovarianceRow() {
+    double rowCovarianceRow = 0;
+    for (int i = 0; i < STATE_SIZE; i++) {
+      double sum = 0;
+      for (int k = 0; k < STATE_SIZE; k++) {
+        sum += mCovariance[i][k] * mMeasurementRow[k];
+      }
+      mCovarianceTimesRow[i] = sum;
+      rowCovarianceRow += mMeasurementRow[i] * sum;
+    }
+    return rowCovarianceRow;
+  }
+
+  private static boolean isInsideGate(double innovation, double innovationVariance) {
+    return innovation * innovation
+        <= INNOVATION_GATE_SIGMAS * INNOVATION_GATE_SIGMAS * innovationVariance;
+  }
+
+  /**
+   * Applies the scalar measurement of row {@link #mMeasurementRow}, given its residual about the
+   * linearization state and its variance. The innovation is the residual minus the row times the
+   * correction already applied to the state this epoch.
+   *
+   * @param gated Whether the measurement is skipped if its innovation is outside the gate
+   */
+  private void update(double residual, double variance, boolean gated) {
+    double innovation = residual;
+    for (int i = 0; i < STATE_SIZE; i++) {
+      innovation -= mMeasurementRow[i] * (mState[i] - mLinearizationState[i]);
+    }
+    double innovationVariance = computeRowCovarianceRow() + variance;
+    if (gated && !isInsideGate(innovation, innovationVariance)) {
+      return;
+    }
+    // K = P * h' / s, x += K * innovation, P -= K * s * K'
+    for (int i = 0; i < STATE_SIZE; i++) {
+      mState[i] += mCovarianceTimesRow[i] * innovation / innovationVariance;
+    }
+    for (int i = 0; i < STATE_SIZE; i++) {
+      double gain = mCovarianceTimesRow[i] / innovationVariance;
+      for (int k = 0; k < STATE_SIZE; k++) {
+        mCovariance[i][k] -= gain * mCovarianceTimesRow[k];
+      }
+    }
+  }
+
+  /**
+   * Fills the uncertainties of the position and velocity in the local ENU system, in meters and
+   * meters per second, from a state and its covariance.
+   */
+  static void calculatePositionVelocityUncertaintyEnu(
+      double[] state, double[][] covariance, double[] positionVelocityUncertaintyEnu) {
+    GeodeticLlaValues llaValues =
+        Ecef2LlaConverter.convertECEFToLLACloseForm(state[0], state[1], state[2]);
+    double[][] rotationMatrix =
+        Ecef2EnuConverter.getRotationMatrix(llaValues.latitudeRadians, llaValues.longitudeRadians)
+            .getData();
+    for (int axis = 0; axis < 3; axis++) {
+      double positionVariance = 0;
+      double velocityVariance = 0;
+      for (int i = 0; i < 3; i++) {
+        for (int k = 0; k < 3; k++) {
+          double rotation = rotationMatrix[axis][i] * rotationMatrix[axis][k];
+          positionVariance += rotation * covariance[i][k];
+          velocityVariance += rotation * covariance[i + RATE_OFFSET][k + RATE_OFFSET];
+        }
+      }
+      positionVelocityUncertaintyEnu[axis] = Math.sqrt(positionVariance);
+      positionVelocityUncertaintyEnu[axis + 3] = Math.sqrt(velocityVariance);
+    }
+  }
+
+  /** Returns the median of {@code values}, which has at most as many values as satellites. */
+  private double median(double[] values) {
+    int count = values.length;
+    for (int j = 0; j < count; j++) {
+      // insertion sort, there are at most a few tens of satellites
+      int k = j;
+      while (k > 0 && mSortedResidualsMeters[k - 1] > values[j]) {
+        mSortedResidualsMeters[k] = mSortedResidualsMeters[k - 1];
+        k--;
+      }
+      mSortedResidualsMeters[k] = values[j];
+    }
+    return count % 2 == 1
+        ? mSortedResidualsMeters[count / 2]
+        : (mSortedResidualsMeters[count / 2 - 1] + mSortedResidualsMeters[count / 2]) / 2;
+  }
+}
@@ -16,19 +16,18 @@
 
 package com.google.location.lbs.gnss.gps.pseudorange;
 
-import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 import com.google.location.lbs.gnss.gps.pseudorange.Ecef2LlaConverter.GeodeticLlaValues;
 import com.google.location.lbs.gnss.gps.pseudorange.EcefToTopocentricConverter.TopocentricAEDValues;
 import com.google.location.lbs.gnss.gps.pseudorange.SatellitePositionCalculator.PositionAndVelocity;
 import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
 import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.LUDecomposition;
 import org.apache.commons.math3.linear.QRDecomposition;
@@ -38,26 +37,41 @@ import org.apache.commons.math3.linear.RealMatrix;
  * Computes an iterative least square receiver position solution given the pseudorange (meters) and
  * accumulated delta range (meters) measurements, receiver time of week, week number and the
  * navigation message.
+ *
+ * <p>By default, the satellites whose residuals are above {@value
+ * #RESIDUAL_TO_REPEAT_LEAST_SQUARE_METERS} are removed and the least square is repeated without
+ * them. With a robust loss, see {@link #setRobustLoss}, the iterations are instead reweighted: each
+ * measurement is down-weighted continuously according to its residual normalized by its
+ * uncertainty, and no satellite is removed.
  */
-class UserPositionVelocityWeightedLeastSquare {
+class UserPositionVelocityWeightedLeastSquare implements PositionVelocitySolver {
+  private static final String TAG = "UserPositionVelocityWLS";
   private static final double SPEED_OF_LIGHT_MPS = 299792458.0;
   private static final int SECONDS_IN_WEEK = 604800;
   private static final double LEAST_SQUARE_TOLERANCE_METERS = 4.0e-8;
+  /** Tolerance of the reweighted iterations, which only converge linearly */
+  private static final double ROBUST_LEAST_SQUARE_TOLERANCE_METERS = 1.0e-3;
+  /**
+   * Number of reweighted iterations after which the robust weights are frozen, since the Tukey
+   * weights of a measurement near its rejection threshold can oscillate from one to the next
+   */
+  private static final int MAXIMUM_NUMBER_OF_REWEIGHTED_ITERATIONS = 20;
   /** Position correction threshold below which atmospheric correction will be applied */
   private static final double ATMPOSPHERIC_CORRECTIONS_THRESHOLD_METERS = 1000.0;
   private static final int MINIMUM_NUMER_OF_SATELLITES = 4;
   private static final double RESIDUAL_TO_REPEAT_LEAST_SQUARE_METERS = 20.0;
   private static final int MAXIMUM_NUMBER_OF_LEAST_SQUARE_ITERATIONS = 100;
-  /** GPS C/A code chip width Tc = 1 microseconds */
-  private static final double GPS_CHIP_WIDTH_T_C_SEC = 1.0e-6;
-  /** Narrow correlator with spacing d = 0.1 chip */
-  private static final double GPS_CORRELATOR_SPACING_IN_CHIPS = 0.1;
-  /** Average time of DLL correlator T of 20 milliseconds */
-  private static final double GPS_DLL_AVERAGING_TIME_SEC = 20.0e-3;
-  /** Average signal travel time from GPS satellite and earth */
-  private static final double AVERAGE_TRAVEL_TIME_SECONDS = 70.0e-3;
-  private static final double SECONDS_PER_NANO = 1.0e-9;
   private static final double DOUBLE_ROUND_OFF_TOLERANCE = 0.0000000001;
+  /** Tuning constants of the robust losses, for a 95% efficiency with gaussian residuals */
+  private static final double HUBER_THRESHOLD = 1.345;
+  private static final double TUKEY_THRESHOLD = 4.685;
+  /** Consistency factor of the median absolute deviation with the gaussian standard deviation */
+  private static final double MEDIAN_ABSOLUTE_DEVIATION_TO_SIGMA = 1.4826;
+  /** Lowest robust weight, which keeps the normal equations of rejected measurements invertible */
+  private static final double MINIMUM_ROBUST_WEIGHT = 1.0e-6;
+
+  /** Whether the missing Google API key was logged, shared by all the sessions of the process */
+  private static final AtomicBoolean sMissingApiKeyLogged = new AtomicBoolean();
 
   private final PseudorangeSmoother pseudorangeSmoother;
   private double geoidHeightMeters;
@@ -65,6 +79,12 @@ class UserPositionVelocityWeightedLeastSquare {
   private boolean calculateGeoidMeters = true;
   private RealMatrix geometryMatrix;
   private double[] truthLocationForCorrectedResidualComputationEcef = null;
+  private int robustLoss = PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_NONE;
+  private double[] robustWeights = null;
+  private int leastSquareIterationCount = 0;
+  private final double[] pseudorangeWeights =
+      GpsMathOperations.createAndFillArray(
+          GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES, Double.NaN);
 
   /** Constructor */
   public UserPositionVelocityWeightedLeastSquare(PseudorangeSmoother pseudorangeSmoother) {
@@ -82,11 +102,44 @@ class UserPositionVelocityWeightedLeastSquare {
    * Sets the reference ground truth for pseudornage residual correction calculation. If no ground
    * truth is set, no corrected pesudorange residual will be calculated.
    */
+  @Override
   public void setTruthLocationForCorrectedResidualComputationEcef
   (double[] groundTruthForResidualCorrectionEcef) {
     this.truthLocationForCorrectedResidualComputationEcef = groundTruthForResidualCorrectionEcef;
   }
 
+  /**
+   * Sets the loss of the iteratively reweighted least square, one of the {@code ROBUST_LOSS_*}
+   * constants of {@link PseudorangePositionVelocityFromRealTimeEvents}. To be called before the
+   * solutions are computed.
+   */
+  void setRobustLoss(int robustLoss) {
+    Preconditions.checkArgument(
+        robustLoss == PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_NONE
+            || robustLoss == PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_HUBER
+            || robustLoss == PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_TUKEY,
+        "Unknown robust loss: %s", robustLoss);
+    this.robustLoss = robustLoss;
+  }
+
+  /**
+   * Returns the number of least square iterations of the last solution, including those of the
+   * repeated least squares.
+   */
+  int getLeastSquareIterationCount() {
+    return leastSquareIterationCount;
+  }
+
+  /**
+   * Copies the final weights of the satellites of the last solution, indexed by PRN - 1, into
+   * {@code weights}: the robust weights between 0 and 1 with a robust loss, otherwise 1 for the
+   * satellites used and 0 for those removed for their high residuals. The satellites not
+   * measured are NaN.
+   */
+  void getPseudorangeWeights(double[] weights) {
+    System.arraycopy(pseudorangeWeights, 0, weights, 0, pseudorangeWeights.length);
+  }
+
   /**
    * Least square solution to calculate the user position given the navigation message, pseudorange
    * and accumulated delta range measurements. Also calculates user velocity non-iteratively from
@@ -116,13 +169,12 @@ class UserPositionVelocityWeightedLeastSquare {
    *       389.
    * </ul>
    *
-   * <p>The function does not modify the smoothed measurement list {@code
-   * immutableSmoothedSatellitesToReceiverMeasurements}
+   * <p>The function does not modify {@code measurementEpoch}, satellites removed for their high
+   * residuals are only cleared from a local copy of its valid satellites mask.
    *
    * @param navMessageProto parameters of the navigation message
-   * @param usefulSatellitesToReceiverMeasurements Map of useful satellite PRN to {@link
-   *     GpsMeasurementWithRangeAndUncertainty} containing receiver measurements for computing the
-   *     position solution.
+   * @param measurementEpoch {@link MeasurementEpoch} containing the receiver measurements and
+   *     pseudoranges of the useful satellites for computing the position solution.
    * @param receiverGPSTowAtReceptionSeconds Receiver estimate of GPS time of week (seconds)
    * @param receiverGPSWeek Receiver estimate of GPS week (0-1024+)
    * @param dayOfYear1To366 The day of the year between 1 and 366
@@ -138,9 +190,10 @@ class UserPositionVelocityWeightedLeastSquare {
    * @param pseudorangeResidualMeters The pseudorange residual corrected by subtracting expected
    *     psudorange calculated with the use clock bias of the highest elevation satellites.
    */
-  public void calculateUserPositionVelocityLeastSquare(
+  @Override
+  public void calculateUserPositionVelocity(
       GpsNavMessageProto navMessageProto,
-      List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToReceiverMeasurements,
+      MeasurementEpoch measurementEpoch,
       double receiverGPSTowAtReceptionSeconds,
       int receiverGPSWeek,
       int dayOfYear1To366,
@@ -153,13 +206,10 @@ class UserPositionVelocityWeightedLeastSquare {
     // Navigation Systems book, page 424 and Principles of GNSS, Inertial, and Multisensor
     // Integrated Navigation Systems, page 388, 389.
     double[] deltaPositionMeters;
-    List<GpsMeasurementWithRangeAndUncertainty> immutableSmoothedSatellitesToReceiverMeasurements =
-        pseudorangeSmoother.updatePseudorangeSmoothingResult(
-            Collections.unmodifiableList(usefulSatellitesToReceiverMeasurements));
-    List<GpsMeasurementWithRangeAndUncertainty> mutableSmoothedSatellitesToReceiverMeasurements =
-        Lists.newArrayList(immutableSmoothedSatellitesToReceiverMeasurements);
-    int numberOfUsefulSatellites =
-        getNumberOfUsefulSatellites(mutableSmoothedSatellitesToReceiverMeasurements);
+    MeasurementEpoch smoothedMeasurementEpoch =
+        pseudorangeSmoother.updatePseudorangeSmoothingResult(measurementEpoch);
+    int usefulSatellitesMask = smoothedMeasurementEpoch.validSatellitesMask;
+    int numberOfUsefulSatellites = Integer.bitCount(usefulSatellitesMask);
     // Least square position solution is supported only if 4 or more satellites visible
     Preconditions.checkArgument(numberOfUsefulSatellites >= MINIMUM_NUMER_OF_SATELLITES,
         "At least 4 satellites have to be visible... Only 3D mode is supported...");
@@ -167,6 +217,8 @@ class UserPositionVelocityWeightedLeastSquare {
     SatellitesPositionPseudorangesResidualAndCovarianceMatrix satPosPseudorangeResidualAndWeight;
 
     boolean isFirstWLS = true;
+    leastSquareIterationCount = 0;
+    robustWeights = null;
 
     do {
       // Calculate satellites' positions, measurement residuals per visible satellite and
@@ -175,7 +227,8 @@ class UserPositionVelocityWeightedLeastSquare {
       satPosPseudorangeResidualAndWeight =
           calculateSatPosAndPseudorangeResidual(
               navMessageProto,
-              mutableSmoothedSatellitesToReceiverMeasurements,
+              smoothedMeasurementEpoch,
+              usefulSatellitesMask,
               receiverGPSTowAtReceptionSeconds,
               receiverGPSWeek,
               dayOfYear1To366,
@@ -219,11 +272,13 @@ class UserPositionVelocityWeightedLeastSquare {
       positionVelocitySolutionECEF[1] += deltaPositionMeters[1];
       positionVelocitySolutionECEF[2] += deltaPositionMeters[2];
       positionVelocitySolutionECEF[3] += deltaPositionMeters[3];
+      leastSquareIterationCount++;
       // Iterate applying corrections to the position solution until correction is below threshold
       satPosPseudorangeResidualAndWeight =
           applyWeightedLeastSquare(
               navMessageProto,
-              mutableSmoothedSatellitesToReceiverMeasurements,
+              smoothedMeasurementEpoch,
+              usefulSatellitesMask,
               receiverGPSTowAtReceptionSeconds,
               receiverGPSWeek,
               dayOfYear1To366,
@@ -249,21 +304,39 @@ class UserPositionVelocityWeightedLeastSquare {
             GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES /*length of elements*/);
         isFirstWLS = false;
       }
-      repeatLeastSquare = false;
+      if (robustLoss != PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_NONE) {
+        // The robust weights already down-weight the satellites with high residuals
+        break;
+      }
       int satsWithResidualBelowThreshold =
           satPosPseudorangeResidualAndWeight.pseudorangeResidualsMeters.length;
       // remove satellites that have residuals above RESIDUAL_TO_REPEAT_LEAST_SQUARE_METERS as they
       // worsen the position solution accuracy. If any satellite is removed, repeat the least square
-      repeatLeastSquare =
+      int remainingSatellitesMask =
           removeHighResidualSats(
-              mutableSmoothedSatellitesToReceiverMeasurements,
-              repeatLeastSquare,
+              usefulSatellitesMask,
               satPosPseudorangeResidualAndWeight,
               satsWithResidualBelowThreshold);
+      repeatLeastSquare = remainingSatellitesMask != usefulSatellitesMask;
+      usefulSatellitesMask = remainingSatellitesMask;
 
     } while (repeatLeastSquare);
     calculateGeoidMeters = false;
 
+    // Report the final weight of each measured satellite
+    for (int i = 0; i < GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
+      pseudorangeWeights[i] =
+          !smoothedMeasurementEpoch.isValid(i)
+              ? Double.NaN
+              : MeasurementEpoch.isValid(usefulSatellitesMask, i) ? 1.0 : 0.0;
+    }
+    if (robustWeights != null) {
+      for (int j = 0; j < robustWeights.length; j++) {
+        pseudorangeWeights[satPosPseudorangeResidualAndWeight.satellitePRNs[j] - 1] =
+            robustWeights[j];
+      }
+    }
+
     // The computed ECEF position will be used next to compute the user velocity.
     // we calculate and fill in the user velocity solutions based on following equation:
     // Weight Matrix * GeometryMatrix * User Velocity Vector
@@ -274,7 +347,6 @@ class UserPositionVelocityWeightedLeastSquare {
     // Get the number of satellite used in Geometry Matrix
     numberOfUsefulSatellites = geometryMatrix.getRowDimension();
 
-    RealMatrix rangeRateMps = new Array2DRowRealMatrix(numberOfUsefulSatellites, 1);
     RealMatrix deltaPseudoRangeRateMps =
         new Array2DRowRealMatrix(numberOfUsefulSatellites, 1);
     RealMatrix pseudorangeRateWeight
@@ -288,53 +360,22 @@ class UserPositionVelocityWeightedLeastSquare {
 
     // Calculate range rates
     for (int i = 0; i < GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
-      if (mutableSmoothedSatellitesToReceiverMeasurements.get(i) != null) {
-        GpsEphemerisProto ephemeridesProto = getEphemerisForSatellite(navMessageProto, i + 1);
-
-        double pseudorangeMeasurementMeters =
-            mutableSmoothedSatellitesToReceiverMeasurements.get(i).pseudorangeMeters;
-        GpsTimeOfWeekAndWeekNumber correctedTowAndWeek =
-            calculateCorrectedTransmitTowAndWeek(ephemeridesProto, receiverGPSTowAtReceptionSeconds,
-                receiverGPSWeek, pseudorangeMeasurementMeters);
-
-        // Calculate satellite velocity
-        PositionAndVelocity satPosECEFMetersVelocityMPS = SatellitePositionCalculator
-            .calculateSatellitePositionAndVelocityFromEphemeris(
-                ephemeridesProto,
-                correctedTowAndWeek.gpsTimeOfWeekSeconds,
-                correctedTowAndWeek.weekNumber,
-                positionVelocitySolutionECEF[0],
-                positionVelocitySolutionECEF[1],
-                positionVelocitySolutionECEF[2]);
-
-        // Calculate satellite clock error rate
-        double satelliteClockErrorRateMps = SatelliteClockCorrectionCalculator.
-            calculateSatClockCorrErrorRate(
-                ephemeridesProto,
-                correctedTowAndWeek.gpsTimeOfWeekSeconds,
-                correctedTowAndWeek.weekNumber);
-
-        // Fill in range rates. range rate = satellite velocity (dot product) line-of-sight vector
-        rangeRateMps.setEntry(measurementCount, 0,  -1 * (
-            satPosECEFMetersVelocityMPS.velocityXMetersPerSec
-                * geometryMatrix.getEntry(measurementCount, 0)
-                + satPosECEFMetersVelocityMPS.velocityYMetersPerSec
-                * geometryMatrix.getEntry(measurementCount, 1)
-                + satPosECEFMetersVelocityMPS.velocityZMetersPerSec
-                * geometryMatrix.getEntry(measurementCount, 2)));
-
+      if (MeasurementEpoch.isValid(usefulSatellitesMask, i)) {
         deltaPseudoRangeRateMps.setEntry(measurementCount, 0,
-            mutableSmoothedSatellitesToReceiverMeasurements.get(i).pseudorangeRateMps
-                - rangeRateMps.getEntry(measurementCount, 0) + satelliteClockErrorRateMps
-                - positionVelocitySolutionECEF[7]);
+            calculatePseudorangeRateResidualMps(
+                navMessageProto,
+                smoothedMeasurementEpoch,
+                i,
+                receiverGPSTowAtReceptionSeconds,
+                receiverGPSWeek,
+                positionVelocitySolutionECEF,
+                geometryMatrix.getRow(measurementCount)));
 
         // Calculate the velocity weight matrix by using 1 / square(Pseudorangerate Uncertainty)
         // along the diagonal
         pseudorangeRateWeight.setEntry(measurementCount, measurementCount,
-            1 / (mutableSmoothedSatellitesToReceiverMeasurements
-                .get(i).pseudorangeRateUncertaintyMps
-                * mutableSmoothedSatellitesToReceiverMeasurements
-                .get(i).pseudorangeRateUncertaintyMps));
+            1 / (smoothedMeasurementEpoch.pseudorangeRateUncertaintyMps[i]
+                * smoothedMeasurementEpoch.pseudorangeRateUncertaintyMps[i]));
         measurementCount++;
       }
     }
@@ -355,6 +396,12 @@ class UserPositionVelocityWeightedLeastSquare {
             new Array2DRowRealMatrix(satPosPseudorangeResidualAndWeight.covarianceMatrixMetersSquare
             )
     ).getSolver().getInverse();
+    if (robustWeights != null) {
+      // The down-weighted satellites contribute less to the position uncertainty
+      for (int j = 0; j < robustWeights.length; j++) {
+        pseudorangeWeight.multiplyEntry(j, j, robustWeights[j]);
+      }
+    }
 
     // Calculate and store the uncertainties of position and velocity in local ENU system in meters
     // and meters per second.
@@ -368,6 +415,60 @@ class UserPositionVelocityWeightedLeastSquare {
         6 /*length of elements*/);
   }
 
+  /**
+   * Calculates the pseudorange rate residual of the satellite at index {@code index} of {@code
+   * measurementEpoch}: the measured pseudorange rate corrected by the satellite velocity and clock
+   * drift, minus the receiver clock drift of {@code positionVelocitySolutionECEF}. The residual is
+   * the receiver velocity projected on the first three entries of {@code geometryRow}, the row of
+   * the satellite in the geometry matrix.
+   *
+   * @param receiverGPSTowAtReceptionSeconds Receiver estimate of GPS time of week (seconds),
+   *     corrected with the receiver clock bias
+   */
+  double calculatePseudorangeRateResidualMps(
+      GpsNavMessageProto navMessageProto,
+      MeasurementEpoch measurementEpoch,
+      int index,
+      double receiverGPSTowAtReceptionSeconds,
+      int receiverGPSWeek,
+      double[] positionVelocitySolutionECEF,
+      double[] geometryRow)
+      throws Exception {
+    GpsEphemerisProto ephemeridesProto = getEphemerisForSatellite(navMessageProto, index + 1);
+
+    double pseudorangeMeasurementMeters = measurementEpoch.pseudorangeMeters[index];
+    GpsTimeOfWeekAndWeekNumber correctedTowAndWeek =
+        calculateCorrectedTransmitTowAndWeek(ephemeridesProto, receiverGPSTowAtReceptionSeconds,
+            receiverGPSWeek, pseudorangeMeasurementMeters);
+
+    // Calculate satellite velocity
+    PositionAndVelocity satPosECEFMetersVelocityMPS = SatellitePositionCalculator
+        .calculateSatellitePositionAndVelocityFromEphemeris(
+            ephemeridesProto,
+            correctedTowAndWeek.gpsTimeOfWeekSeconds,
+            correctedTowAndWeek.weekNumber,
+            positionVelocitySolutionECEF[0],
+            positionVelocitySolutionECEF[1],
+            positionVelocitySolutionECEF[2]);
+
+    // Calculate satellite clock error rate
+    double satelliteClockErrorRateMps = SatelliteClockCorrectionCalculator.
+        calculateSatClockCorrErrorRate(
+            ephemeridesProto,
+            correctedTowAndWeek.gpsTimeOfWeekSeconds,
+            correctedTowAndWeek.weekNumber);
+
+    // range rate = satellite velocity (dot product) line-of-sight vector
+    double rangeRateMps = -1 * (
+        satPosECEFMetersVelocityMPS.velocityXMetersPerSec * geometryRow[0]
+            + satPosECEFMetersVelocityMPS.velocityYMetersPerSec * geometryRow[1]
+            + satPosECEFMetersVelocityMPS.velocityZMetersPerSec * geometryRow[2]);
+
+    return measurementEpoch.pseudorangeRateMps[index]
+        - rangeRateMps + satelliteClockErrorRateMps
+        - positionVelocitySolutionECEF[7];
+  }
+
   /**
    * Calculates the position uncertainty in meters and the velocity uncertainty
    * in meters per second solution in local ENU system.
@@ -437,7 +538,8 @@ class UserPositionVelocityWeightedLeastSquare {
    */
   private SatellitesPositionPseudorangesResidualAndCovarianceMatrix applyWeightedLeastSquare(
       GpsNavMessageProto navMessageProto,
-      List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToReceiverMeasurements,
+      MeasurementEpoch measurementEpoch,
+      int usefulSatellitesMask,
       double receiverGPSTowAtReceptionSeconds,
       int receiverGPSWeek,
       int dayOfYear1To366,
@@ -449,9 +551,11 @@ class UserPositionVelocityWeightedLeastSquare {
       throws Exception {
     RealMatrix weightedGeometryMatrix;
     int numberOfIterations = 0;
+    int numberOfReweightedIterations = 0;
+    double toleranceMeters = LEAST_SQUARE_TOLERANCE_METERS;
 
     while ((Math.abs(deltaPositionMeters[0]) + Math.abs(deltaPositionMeters[1])
-        + Math.abs(deltaPositionMeters[2])) >= LEAST_SQUARE_TOLERANCE_METERS) {
+        + Math.abs(deltaPositionMeters[2])) >= toleranceMeters) {
       // Apply ionospheric and tropospheric corrections only if the applied correction to
       // position is below a specific threshold
       if ((Math.abs(deltaPositionMeters[0]) + Math.abs(deltaPositionMeters[1])
@@ -463,7 +567,8 @@ class UserPositionVelocityWeightedLeastSquare {
       satPosPseudorangeResidualAndWeight =
           calculateSatPosAndPseudorangeResidual(
               navMessageProto,
-              usefulSatellitesToReceiverMeasurements,
+              measurementEpoch,
+              usefulSatellitesMask,
               receiverGPSTowAtReceptionSeconds,
               receiverGPSWeek,
               dayOfYear1To366,
@@ -474,17 +579,35 @@ class UserPositionVelocityWeightedLeastSquare {
       // Applications", Parkinson and Spilker page 413
       geometryMatrix = new Array2DRowRealMatrix(calculateGeometryMatrix(
           satPosPseudorangeResidualAndWeight.satellitesPositionsMeters, positionSolutionECEF));
+      // Reweight the measurements with their residuals once the solution is close enough for the
+      // residuals to reveal the outliers
+      RealMatrix iterationWeightMatrix = weightMatrixMetersMinus2;
+      if (robustLoss != PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_NONE
+          && doAtmosphericCorrections) {
+        if (numberOfReweightedIterations++ < MAXIMUM_NUMBER_OF_REWEIGHTED_ITERATIONS) {
+          robustWeights = calculateRobustWeights(satPosPseudorangeResidualAndWeight);
+        }
+        toleranceMeters = ROBUST_LEAST_SQUARE_TOLERANCE_METERS;
+        iterationWeightMatrix =
+            new Array2DRowRealMatrix(robustWeights.length, robustWeights.length);
+        for (int j = 0; j < robustWeights.length; j++) {
+          // The weight matrix is diagonal as the pseudoranges are uncorrelated
+          double weightMetersMinus2 =
+              weightMatrixMetersMinus2 == null ? 1.0 : weightMatrixMetersMinus2.getEntry(j, j);
+          iterationWeightMatrix.setEntry(j, j, robustWeights[j] * weightMetersMinus2);
+        }
+      }
       // Apply weighted least square only if the covariance matrix is
       // not singular (has a non-zero determinant), otherwise apply ordinary least square.
       // The reason is to ignore reported signal to noise ratios by the receiver that can
       // lead to such singularities
-      if (weightMatrixMetersMinus2 == null) {
+      if (iterationWeightMatrix == null) {
         weightedGeometryMatrix = geometryMatrix;
       } else {
         RealMatrix hMatrix =
-            calculateHMatrix(weightMatrixMetersMinus2, geometryMatrix);
+            calculateHMatrix(iterationWeightMatrix, geometryMatrix);
         weightedGeometryMatrix = hMatrix.multiply(geometryMatrix.transpose())
-            .multiply(weightMatrixMetersMinus2);
+            .multiply(iterationWeightMatrix);
       }
 
       // Equation 9 page 413 from "Global Positioning System: Theory and Applicaitons",
@@ -500,20 +623,66 @@ class UserPositionVelocityWeightedLeastSquare {
       positionSolutionECEF[2] += deltaPositionMeters[2];
       positionSolutionECEF[3] += deltaPositionMeters[3];
       numberOfIterations++;
+      leastSquareIterationCount++;
       Preconditions.checkArgument(numberOfIterations <= MAXIMUM_NUMBER_OF_LEAST_SQUARE_ITERATIONS,
           "Maximum number of least square iterations reached without convergance...");
     }
     return satPosPseudorangeResidualAndWeight;
   }
 
+  /**
+   * Calculates the weight of each measurement of the iteratively reweighted least square, between
+   * {@value #MINIMUM_ROBUST_WEIGHT} and 1, from its residual normalized by its uncertainty. The
+   * uncertainties are scaled up by the median absolute deviation of the normalized residuals if
+   * they are too optimistic.
+   *
+   * <p>The Huber loss weights the normalized residuals above {@value #HUBER_THRESHOLD} by their
+   * inverse, the Tukey biweight loss smoothly rejects those above {@value #TUKEY_THRESHOLD}.
+   *
+   * <p>Reference: Huber, P.J., Ronchetti, E.M.: ‘Robust Statistics’, second edition, page 175.
+   */
+  private double[] calculateRobustWeights(
+      SatellitesPositionPseudorangesResidualAndCovarianceMatrix
+          satPosPseudorangeResidualAndWeight) {
+    double[] residualsMeters = satPosPseudorangeResidualAndWeight.pseudorangeResidualsMeters;
+    double[][] covarianceMatrixMetersSquare =
+        satPosPseudorangeResidualAndWeight.covarianceMatrixMetersSquare;
+    double[] normalizedResiduals = new double[residualsMeters.length];
+    for (int j = 0; j < residualsMeters.length; j++) {
+      double variance = covarianceMatrixMetersSquare[j][j];
+      normalizedResiduals[j] =
+          Math.abs(variance > 0 ? residualsMeters[j] / Math.sqrt(variance) : residualsMeters[j]);
+    }
+    double[] sortedResiduals = normalizedResiduals.clone();
+    Arrays.sort(sortedResiduals);
+    int middle = sortedResiduals.length / 2;
+    double median =
+        sortedResiduals.length % 2 == 1
+            ? sortedResiduals[middle]
+            : (sortedResiduals[middle - 1] + sortedResiduals[middle]) / 2;
+    double scale = Math.max(MEDIAN_ABSOLUTE_DEVIATION_TO_SIGMA * median, 1.0);
+
+    double[] weights = new double[residualsMeters.length];
+    for (int j = 0; j < residualsMeters.length; j++) {
+      double u = normalizedResiduals[j] / scale;
+      double weight;
+      if (robustLoss == PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_HUBER) {
+        weight = u <= HUBER_THRESHOLD ? 1.0 : HUBER_THRESHOLD / u;
+      } else {
+        double ratio = u / TUKEY_THRESHOLD;
+        weight = ratio >= 1.0 ? 0.0 : (1 - ratio * ratio) * (1 - ratio * ratio);
+      }
+      weights[j] = Math.max(weight, MINIMUM_ROBUST_WEIGHT);
+    }
+    return weights;
+  }
+
   /**
    * Removes satellites that have residuals above {@value #RESIDUAL_TO_REPEAT_LEAST_SQUARE_METERS}
-   * from the {@code usefulSatellitesToReceiverMeasurements} list. Returns true if any satellite is
-   * removed.
+   * from the {@code usefulSatellitesMask} and returns the resulting mask.
    */
-  private boolean removeHighResidualSats(
-      List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToReceiverMeasurements,
-      boolean repeatLeastSquare,
+  private int removeHighResidualSats(
+      int usefulSatellitesMask,
       SatellitesPositionPseudorangesResidualAndCovarianceMatrix satPosPseudorangeResidualAndWeight,
       int satsWithResidualBelowThreshold) {
 
@@ -522,13 +691,12 @@ class UserPositionVelocityWeightedLeastSquare {
         if (Math.abs(satPosPseudorangeResidualAndWeight.pseudorangeResidualsMeters[i]) 
             > RESIDUAL_TO_REPEAT_LEAST_SQUARE_METERS) {
           int prn = satPosPseudorangeResidualAndWeight.satellitePRNs[i];
-          usefulSatellitesToReceiverMeasurements.set(prn - 1, null);
+          usefulSatellitesMask &= ~(1 << (prn - 1));
           satsWithResidualBelowThreshold--;
-          repeatLeastSquare = true;
         }
       }
     }
-    return repeatLeastSquare;
+    return usefulSatellitesMask;
   }
 
   /**
@@ -538,9 +706,9 @@ class UserPositionVelocityWeightedLeastSquare {
    * SatellitesPositionPseudorangesResidualAndCovarianceMatrix}
    *
    * @param navMeassageProto parameters of the navigation message
-   * @param usefulSatellitesToReceiverMeasurements Map of useful satellite PRN to {@link
-   *     GpsMeasurementWithRangeAndUncertainty} containing receiver measurements for computing the
-   *     position solution
+   * @param measurementEpoch {@link MeasurementEpoch} containing the receiver measurements and
+   *     pseudoranges for computing the position solution
+   * @param usefulSatellitesMask Mask of the satellites of {@code measurementEpoch} to use
    * @param receiverGPSTowAtReceptionSeconds Receiver estimate of GPS time of week (seconds)
    * @param receiverGpsWeek Receiver estimate of GPS week (0-1024+)
    * @param dayOfYear1To366 The day of the year between 1 and 366
@@ -553,15 +721,15 @@ class UserPositionVelocityWeightedLeastSquare {
   public SatellitesPositionPseudorangesResidualAndCovarianceMatrix
       calculateSatPosAndPseudorangeResidual(
           GpsNavMessageProto navMeassageProto,
-          List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToReceiverMeasurements,
+          MeasurementEpoch measurementEpoch,
+          int usefulSatellitesMask,
           double receiverGPSTowAtReceptionSeconds,
           int receiverGpsWeek,
           int dayOfYear1To366,
           double[] userPositionECEFMeters,
           boolean doAtmosphericCorrections)
           throws Exception {
-    int numberOfUsefulSatellites =
-        getNumberOfUsefulSatellites(usefulSatellitesToReceiverMeasurements);
+    int numberOfUsefulSatellites = Integer.bitCount(usefulSatellitesMask);
     // deltaPseudorange is the pseudorange measurement residual
     double[] deltaPseudorangesMeters = new double[numberOfUsefulSatellites];
     double[][] satellitesPositionsECEFMeters = new double[numberOfUsefulSatellites][3];
@@ -580,7 +748,8 @@ class UserPositionVelocityWeightedLeastSquare {
         new Array2DRowRealMatrix(numberOfUsefulSatellites, numberOfUsefulSatellites);
     calculateSatPosAndResiduals(
         navMeassageProto,
-        usefulSatellitesToReceiverMeasurements,
+        measurementEpoch,
+        usefulSatellitesMask,
         receiverGPSTowAtReceptionSeconds,
         receiverGpsWeek,
         dayOfYear1To366,
@@ -607,7 +776,8 @@ class UserPositionVelocityWeightedLeastSquare {
    */
   private void calculateSatPosAndResiduals(
       GpsNavMessageProto navMeassageProto,
-      List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToReceiverMeasurements,
+      MeasurementEpoch measurementEpoch,
+      int usefulSatellitesMask,
       double receiverGPSTowAtReceptionSeconds,
       int receiverGpsWeek,
       int dayOfYear1To366,
@@ -623,18 +793,17 @@ class UserPositionVelocityWeightedLeastSquare {
     // user position without the clock estimate
     double[] userPositionTempECEFMeters =
         {userPositionECEFMeters[0], userPositionECEFMeters[1], userPositionECEFMeters[2]};
+    // Correct the receiver time of week with the estimated receiver clock bias, once for all the
+    // satellites
+    receiverGPSTowAtReceptionSeconds =
+        receiverGPSTowAtReceptionSeconds - userPositionECEFMeters[3] / SPEED_OF_LIGHT_MPS;
     int satsCounter = 0;
     for (int i = 0; i < GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
-      if (usefulSatellitesToReceiverMeasurements.get(i) != null) {
+      if (MeasurementEpoch.isValid(usefulSatellitesMask, i)) {
         GpsEphemerisProto ephemeridesProto = getEphemerisForSatellite(navMeassageProto, i + 1);
-        // Correct the receiver time of week with the estimated receiver clock bias
-        receiverGPSTowAtReceptionSeconds =
-            receiverGPSTowAtReceptionSeconds - userPositionECEFMeters[3] / SPEED_OF_LIGHT_MPS;
 
-        double pseudorangeMeasurementMeters =
-            usefulSatellitesToReceiverMeasurements.get(i).pseudorangeMeters;
-        double pseudorangeUncertaintyMeters =
-            usefulSatellitesToReceiverMeasurements.get(i).pseudorangeUncertaintyMeters;
+        double pseudorangeMeasurementMeters = measurementEpoch.pseudorangeMeters[i];
+        double pseudorangeUncertaintyMeters = measurementEpoch.pseudorangeUncertaintyMeters[i];
 
         // Assuming uncorrelated pseudorange measurements, the covariance matrix will be diagonal as
         // follows
@@ -763,9 +932,12 @@ class UserPositionVelocityWeightedLeastSquare {
     // longitude
     if (calculateGeoidMeters) {
       double elevationAboveSeaLevelMeters = 0;
-      if (elevationApiHelper == null){
-        System.out.println("No Google API key is set. Elevation above sea level is set to "
-            + "default 0 meters. This may cause inaccuracy in tropospheric correction.");
+      if (elevationApiHelper == null) {
+        // Logged once per process, the sessions of a batch run all compute without a key
+        if (sMissingApiKeyLogged.compareAndSet(false, true)) {
+          Log.w(TAG, "No Google API key is set. Elevation above sea level is set to "
+              + "default 0 meters. This may cause inaccuracy in tropospheric correction.");
+        }
       } else {
         try {
           elevationAboveSeaLevelMeters = elevationApiHelper
@@ -795,22 +967,6 @@ class UserPositionVelocityWeightedLeastSquare {
     return troposphericCorrectionMeters;
   }
 
-  /**
-   * Gets the number of useful satellites from a list of
-   * {@link GpsMeasurementWithRangeAndUncertainty}.
-   */
-  private int getNumberOfUsefulSatellites(
-      List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToReceiverMeasurements) {
-    // calculate the number of useful satellites
-    int numberOfUsefulSatellites = 0;
-    for (int i = 0; i < usefulSatellitesToReceiverMeasurements.size(); i++) {
-      if (usefulSatellitesToReceiverMeasurements.get(i) != null) {
-        numberOfUsefulSatellites++;
-      }
-    }
-    return numberOfUsefulSatellites;
-  }
-
   /**
    * Computes the GPS time of week at the time of transmission and as well the corrected GPS week
    * taking into consideration week rollover. The returned GPS time of week is corrected by the
@@ -875,7 +1031,7 @@ class UserPositionVelocityWeightedLeastSquare {
    * <p>Source: Parkinson, B.W., Spilker Jr., J.J.: ‘Global positioning system: theory and
    * applications’ page 413
    */
-  private static double[][] calculateGeometryMatrix(double[][] satellitePositionsECEFMeters,
+  static double[][] calculateGeometryMatrix(double[][] satellitePositionsECEFMeters,
       double[] userPositionECEFMeters) {
 
     double[][] geometeryMatrix = new double[satellitePositionsECEFMeters.length][4];
@@ -943,47 +1099,5 @@ class UserPositionVelocityWeightedLeastSquare {
       this.weekNumber = weekNumber;
     }
   }
-  
-  /**
-   * Uses the common reception time approach to calculate pseudoranges from the time of week
-   * measurements reported by the receiver according to http://cdn.intechopen.com/pdfs-wm/27712.pdf.
-   * As well computes the pseudoranges uncertainties for each input satellite
-   */
-  @VisibleForTesting
-  static List<GpsMeasurementWithRangeAndUncertainty> computePseudorangeAndUncertainties(
-      List<GpsMeasurement> usefulSatellitesToReceiverMeasurements,
-      Long[] usefulSatellitesToTOWNs,
-      long largestTowNs) {
-
-    List<GpsMeasurementWithRangeAndUncertainty> usefulSatellitesToPseudorangeMeasurements =
-        Arrays.asList(
-            new GpsMeasurementWithRangeAndUncertainty
-                [GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES]);
-    for (int i = 0; i < GpsNavigationMessageStore.MAX_NUMBER_OF_SATELLITES; i++) {
-      if (usefulSatellitesToTOWNs[i] != null) {
-        double deltai = largestTowNs - usefulSatellitesToTOWNs[i];
-        double pseudorangeMeters =
-            (AVERAGE_TRAVEL_TIME_SECONDS + deltai * SECONDS_PER_NANO) * SPEED_OF_LIGHT_MPS;
-
-        double signalToNoiseRatioLinear =
-            Math.pow(10, usefulSatellitesToReceiverMeasurements.get(i).signalToNoiseRatioDb / 10.0);
-        // From Global Positoning System book, Misra and Enge, page 416, the uncertainty of the
-        // pseudorange measurement is calculated next.
-        // For GPS C/A code chip width Tc = 1 microseconds. Narrow correlator with spacing d = 0.1
-        // chip and an average time of DLL correlator T of 20 milliseconds are used.
-        double sigmaMeters =
-            SPEED_OF_LIGHT_MPS
-                * GPS_CHIP_WIDTH_T_C_SEC
-                * Math.sqrt(
-                    GPS_CORRELATOR_SPACING_IN_CHIPS
-                        / (4 * GPS_DLL_AVERAGING_TIME_SEC * signalToNoiseRatioLinear));
-        usefulSatellitesToPseudorangeMeasurements.set(
-            i,
-            new GpsMeasurementWithRangeAndUncertainty(
-                usefulSatellitesToReceiverMeasurements.get(i), pseudorangeMeters, sigmaMeters));
-      }
-    }
-    return usefulSatellitesToPseudorangeMeasurements;
-  }
 
 }
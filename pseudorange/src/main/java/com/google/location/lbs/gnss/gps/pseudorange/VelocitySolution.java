@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+/**
+ * An immutable velocity and clock drift solution computed from the pseudorange rates of one epoch,
+ * independently of the position solution of the epoch.
+ *
+ * <p>Instances are published by the solver thread and can be read from any thread without locking.
+ * The array getters return copies.
+ */
+public final class VelocitySolution {
+  private final long mArrivalTimeSinceGpsEpochNs;
+  private final double[] mVelocitySolutionEnuMps;
+  private final double[] mVelocityUncertaintyEnuMps;
+  private final double mReceiverClockDriftMps;
+  private final int mNumberOfSatellitesUsed;
+
+  /**
+   * Constructor, the arrays are copied.
+   *
+   * @param arrivalTimeSinceGpsEpochNs Time of the measurements in nanoseconds since the GPS epoch
+   * @param velocitySolutionEnuMps East, north and up velocity in meters per second
+   * @param velocityUncertaintyEnuMps East, north and up velocity uncertainty in meters per second
+   * @param receiverClockDriftMps Receiver clock drift in meters per second
+   * @param numberOfSatellitesUsed Number of satellites whose pseudorange rate was used
+   */
+  public VelocitySolution(
+      long arrivalTimeSinceGpsEpochNs,
+      double[] velocitySolutionEnuMps,
+      double[] velocityUncertaintyEnuMps,
+      double receiverClockDriftMps,
+      int numberOfSatellitesUsed) {
+    mArrivalTimeSinceGpsEpochNs = arrivalTimeSinceGpsEpochNs;
+    mVelocitySolutionEnuMps = velocitySolutionEnuMps.clone();
+    mVelocityUncertaintyEnuMps = velocityUncertaintyEnuMps.clone();
+    mReceiverClockDriftMps = receiverClockDriftMps;
+    mNumberOfSatellitesUsed = numberOfSatellitesUsed;
+  }
+
+  public long getArrivalTimeSinceGpsEpochNs() {
+    return mArrivalTimeSinceGpsEpochNs;
+  }
+
+  /** Returns a copy of the east, north and up velocity in meters per second */
+  public double[] getVelocitySolutionEnuMps() {
+    return mVelocitySolutionEnuMps.clone();
+  }
+
+  /** Returns a copy of the east, north and up velocity uncertainty in meters per second */
+  public double[] getVelocityUncertaintyEnuMps() {
+    return mVelocityUncertaintyEnuMps.clone();
+  }
+
+  public double getReceiverClockDriftMps() {
+    return mReceiverClockDriftMps;
+  }
+
+  public int getNumberOfSatellitesUsed() {
+    return mNumberOfSatellitesUsed;
+  }
+}
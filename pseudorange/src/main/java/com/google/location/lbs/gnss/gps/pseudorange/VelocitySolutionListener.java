@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+/** A listener notified of every {@link VelocitySolution} published by the solver. */
+public interface VelocitySolutionListener {
+
+  /**
+   * Called on the thread computing the solutions, before the position solution of the same epoch,
+   * implementations should only hand the solution over to their own thread.
+   */
+  void onVelocitySolution(VelocitySolution solution);
+}
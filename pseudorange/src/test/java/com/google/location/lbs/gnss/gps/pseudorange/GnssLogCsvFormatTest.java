@@ -0,0 +1,545 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests for {@link GnssLogCsvFormat} and {@link GnssBinaryLogConverter} against the text written
+ * by the {@code String.format} code that the GnssLogger used before.
+ */
+public class GnssLogCsvFormatTest {
+
+  /** Written by the {@code String.format} code of {@link ReferenceRecordSink} */
+  static final String GOLDEN_LOG_RESOURCE = "gnss_log_golden.txt";
+  static final String TEXT_HEADER =
+      "#\n# Header Description:\n#\n# Version: v2.0.0.1 Platform: 8.0.0 Manufacturer: Google"
+          + " Model: Pixel\n#\n";
+
+  private static final long GOLDEN_LOG_SEED = 35L;
+  private static final int GOLDEN_LOG_EPOCHS = 12;
+  private static final long RANDOMIZED_SEED = 350L;
+  private static final int RANDOMIZED_EPOCHS = 2000;
+  private static final int MAX_MEASUREMENTS_PER_EPOCH = 12;
+  private static final int NAVIGATION_MESSAGE_LENGTH_BYTES = 40;
+  private static final int SYNTHETIC_LOG_EPOCHS = 60;
+
+  /** Significant bits of the doubles of the golden log */
+  private static final int PORTABLE_DOUBLE_BITS = 12;
+  /** Significant bits of the floats of the golden log */
+  private static final int PORTABLE_FLOAT_BITS = 8;
+  /** Largest exponent of the floats of the golden log, so that they have few decimal digits */
+  private static final int PORTABLE_FLOAT_MAX_EXPONENT = 16;
+
+  /** Edge cases of the conversions, written the same by every JVM */
+  private static final double[] SPECIAL_DOUBLES = {
+    0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+    Double.MIN_VALUE, Double.MAX_VALUE, 1.0e-7, 5.0e-7, 4.9999999e-7, 0.0000005, 0.1, 1.0e7,
+    9.9999995, 99.9999995, 999999.9999995, -0.0000004, 123456789.123456789, 1.0e20, 2.0e-3
+  };
+
+  private static final float[] SPECIAL_FLOATS = {
+    0.0f, -0.0f, Float.NaN, Float.POSITIVE_INFINITY, Float.MIN_VALUE, Float.MAX_VALUE, 0.1f,
+    1.0e-7f, 9.9999995f, 1.0e10f
+  };
+
+  @Test
+  public void formatsTheGoldenLogByteForByte() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+      writer.write(TEXT_HEADER);
+      generateRecords(
+          new CsvFormatRecordSink(writer), GOLDEN_LOG_SEED, GOLDEN_LOG_EPOCHS, true);
+    }
+
+    assertArrayEquals(readGoldenLog(), output.toByteArray());
+  }
+
+  @Test
+  public void binaryLogConvertsBackToTheGoldenLog() throws Exception {
+    ByteArrayOutputStream binaryOutput = new ByteArrayOutputStream();
+    try (GnssBinaryLogWriter binaryWriter = new GnssBinaryLogWriter(binaryOutput, TEXT_HEADER)) {
+      generateRecords(
+          new BinaryRecordSink(binaryWriter), GOLDEN_LOG_SEED, GOLDEN_LOG_EPOCHS, true);
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+      GnssBinaryLogConverter.convertToCsv(
+          new ByteArrayInputStream(binaryOutput.toByteArray()), writer);
+    }
+
+    assertArrayEquals(readGoldenLog(), output.toByteArray());
+  }
+
+  @Test
+  public void formatsRandomizedRecordsAsStringFormat() throws Exception {
+    // Compared on the running JVM, whose Double.toString may differ from that of the golden log
+    StringWriter expected = new StringWriter();
+    generateRecords(
+        new ReferenceRecordSink(expected), RANDOMIZED_SEED, RANDOMIZED_EPOCHS, false);
+    StringWriter actual = new StringWriter();
+    generateRecords(
+        new CsvFormatRecordSink(actual), RANDOMIZED_SEED, RANDOMIZED_EPOCHS, false);
+
+    String[] expectedLines = expected.toString().split("\n", -1);
+    String[] actualLines = actual.toString().split("\n", -1);
+    assertEquals(expectedLines.length, actualLines.length);
+    for (int i = 0; i < expectedLines.length; i++) {
+      assertEquals(expectedLines[i], actualLines[i]);
+    }
+  }
+
+  @Test
+  public void binaryLogIsLessThanHalfTheTextLog() throws Exception {
+    SyntheticGnssLog log =
+        new SyntheticGnssLog(SYNTHETIC_LOG_EPOCHS, 10.0 /* eastSpeedMps */, 1.0, GOLDEN_LOG_SEED);
+    ByteArrayOutputStream textOutput = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(textOutput, StandardCharsets.UTF_8)) {
+      replay(log, new CsvFormatRecordSink(writer));
+    }
+    ByteArrayOutputStream binaryOutput = new ByteArrayOutputStream();
+    try (GnssBinaryLogWriter writer = new GnssBinaryLogWriter(binaryOutput, "")) {
+      replay(log, new BinaryRecordSink(writer));
+    }
+
+    assertTrue(
+        "Text log: " + textOutput.size() + " bytes, binary log: " + binaryOutput.size() + " bytes",
+        2 * binaryOutput.size() < textOutput.size());
+  }
+
+  /** Passes the measurements of {@code log} to {@code sink}, without allocating iterators */
+  static void replay(SyntheticGnssLog log, RecordSink sink) throws IOException {
+    List<SyntheticGnssLog.Epoch> epochs = log.getEpochs();
+    for (int k = 0; k < epochs.size(); k++) {
+      SyntheticGnssLog.Epoch epoch = epochs.get(k);
+      sink.onEpoch(epoch.clock, epoch.measurements.size());
+      for (int i = 0; i < epoch.measurements.size(); i++) {
+        sink.onMeasurement(epoch.clock, epoch.measurements.get(i));
+      }
+    }
+  }
+
+  private static byte[] readGoldenLog() throws IOException {
+    try (InputStream inputStream =
+        GnssLogCsvFormatTest.class.getResourceAsStream(GOLDEN_LOG_RESOURCE)) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int length;
+      while ((length = inputStream.read(buffer)) > 0) {
+        output.write(buffer, 0, length);
+      }
+      return output.toByteArray();
+    }
+  }
+
+  /**
+   * Generates {@code epochCount} epochs of measurements with the navigation messages, fixes and
+   * NMEA sentences logged between them, the same for the same {@code seed}.
+   *
+   * @param portable Whether the floating point values are written the same by every JVM. The
+   *     shortest digits of {@link Double#toString(double)} changed in JDK 19, so the other values
+   *     can only be compared with the text of the running JVM.
+   */
+  static void generateRecords(RecordSink sink, long seed, int epochCount, boolean portable)
+      throws IOException {
+    ValueGenerator random = new ValueGenerator(seed, portable);
+    LoggedGnssClock clock = new LoggedGnssClock();
+    LoggedGnssMeasurement measurement = new LoggedGnssMeasurement();
+    byte[] data = new byte[NAVIGATION_MESSAGE_LENGTH_BYTES];
+    long timeNanos = 1000000000L + random.nextInt(1000000000);
+    long elapsedRealtimeMillis = 5000L;
+    // The rounding of the fixes, on every edge case
+    for (int i = 0; i < SPECIAL_DOUBLES.length; i++) {
+      sink.onFix(
+          "gps",
+          SPECIAL_DOUBLES[i],
+          -SPECIAL_DOUBLES[i],
+          SPECIAL_DOUBLES[SPECIAL_DOUBLES.length - 1 - i],
+          SPECIAL_FLOATS[i % SPECIAL_FLOATS.length],
+          -SPECIAL_FLOATS[i % SPECIAL_FLOATS.length],
+          1500000000000L + i);
+    }
+    for (int k = 0; k < epochCount; k++) {
+      timeNanos += 1000000000L + random.nextInt(1000);
+      elapsedRealtimeMillis += 1000L + random.nextInt(3);
+      clock.timeNanos = timeNanos;
+      clock.hasLeapSecond = random.nextBoolean();
+      clock.leapSecond = 18;
+      clock.hasTimeUncertaintyNanos = random.nextBoolean();
+      clock.timeUncertaintyNanos = random.nextSignedDouble(1.0e3);
+      clock.fullBiasNanos = -1180000000000000000L - random.nextInt(1000000);
+      clock.hasBiasNanos = random.nextBoolean();
+      clock.biasNanos = random.nextSignedDouble(1.0);
+      clock.hasBiasUncertaintyNanos = random.nextBoolean();
+      clock.biasUncertaintyNanos = random.nextSignedDouble(100.0);
+      clock.hasDriftNanosPerSecond = random.nextBoolean();
+      clock.driftNanosPerSecond = random.nextSignedDouble(1.0e3);
+      clock.hasDriftUncertaintyNanosPerSecond = random.nextBoolean();
+      clock.driftUncertaintyNanosPerSecond = random.nextSignedDouble(10.0);
+      clock.hardwareClockDiscontinuityCount = random.nextInt(3);
+
+      int measurementCount = 1 + random.nextInt(MAX_MEASUREMENTS_PER_EPOCH);
+      sink.onEpoch(clock, measurementCount);
+      for (int i = 0; i < measurementCount; i++) {
+        measurement.elapsedRealtimeMillis = elapsedRealtimeMillis;
+        measurement.svid = 1 + random.nextInt(32);
+        measurement.timeOffsetNanos = random.nextSignedDouble(1.0);
+        measurement.state = random.nextInt(1 << 14);
+        measurement.receivedSvTimeNanos = random.nextLong() >>> 14;
+        measurement.receivedSvTimeUncertaintyNanos = random.nextInt(1000);
+        measurement.cn0DbHz = random.nextSignedDouble(50.0);
+        measurement.pseudorangeRateMetersPerSecond = random.nextSignedDouble(800.0);
+        measurement.pseudorangeRateUncertaintyMetersPerSecond = random.nextSignedDouble(1.0);
+        measurement.accumulatedDeltaRangeState = random.nextInt(8);
+        measurement.accumulatedDeltaRangeMeters = random.nextSignedDouble(1.0e6);
+        measurement.accumulatedDeltaRangeUncertaintyMeters = random.nextSignedDouble(0.1);
+        measurement.hasCarrierFrequencyHz = random.nextBoolean();
+        measurement.carrierFrequencyHz = random.nextSignedFloat(1.6e9f);
+        measurement.hasCarrierCycles = random.nextBoolean();
+        measurement.carrierCycles = random.nextLong() >> random.nextInt(64);
+        measurement.hasCarrierPhase = random.nextBoolean();
+        measurement.carrierPhase = random.nextSignedDouble(1.0);
+        measurement.hasCarrierPhaseUncertainty = random.nextBoolean();
+        measurement.carrierPhaseUncertainty = random.nextSignedDouble(0.1);
+        measurement.multipathIndicator = random.nextInt(3);
+        measurement.hasSnrInDb = random.nextBoolean();
+        measurement.snrInDb = random.nextSignedDouble(40.0);
+        measurement.constellationType = 1 + random.nextInt(6);
+        measurement.hasAutomaticGainControlLevelDb = random.nextBoolean();
+        measurement.automaticGainControlLevelDb = random.nextSignedDouble(10.0);
+        sink.onMeasurement(clock, measurement);
+      }
+
+      if (random.nextInt(4) == 0) {
+        random.nextBytes(data);
+        sink.onNavigationMessage(
+            1 + random.nextInt(32),
+            GpsNavigationMessageEncoder.GPS_L1CA_TYPE,
+            random.nextInt(4),
+            random.nextInt(26),
+            1 + random.nextInt(5),
+            data);
+      }
+      if (random.nextInt(3) == 0) {
+        sink.onFix(
+            random.nextBoolean() ? "gps" : "network",
+            random.nextSignedDouble(90.0),
+            random.nextSignedDouble(180.0),
+            random.nextSignedDouble(1.0e3),
+            random.nextSignedFloat(50.0f),
+            random.nextSignedFloat(100.0f),
+            1500000000000L + elapsedRealtimeMillis);
+      }
+      if (random.nextInt(3) == 0) {
+        sink.onNmea(
+            String.format(
+                Locale.US, "$GPGGA,%06d.00,3725.320,N,12205.040,W,1,08,0.9,10.0,M,,,,*%02X",
+                random.nextInt(240000), random.nextInt(256)),
+            1500000000000L + elapsedRealtimeMillis);
+      }
+    }
+  }
+
+  /** Random record values, with edge cases of the conversions */
+  private static class ValueGenerator extends Random {
+    private final boolean mPortable;
+
+    ValueGenerator(long seed, boolean portable) {
+      super(seed);
+      mPortable = portable;
+    }
+
+    /** Returns a value in +-{@code scale}, or sometimes one of {@link #SPECIAL_DOUBLES} */
+    double nextSignedDouble(double scale) {
+      if (nextInt(8) == 0) {
+        return SPECIAL_DOUBLES[nextInt(SPECIAL_DOUBLES.length)];
+      }
+      if (mPortable) {
+        // A few significant bits, whose exact decimal expansion is the shortest
+        return Math.scalb(
+            (double) nextSignedInt(PORTABLE_DOUBLE_BITS),
+            Math.getExponent(scale) - PORTABLE_DOUBLE_BITS);
+      }
+      return (2.0 * nextDouble() - 1.0) * scale;
+    }
+
+    /** Returns a value in +-{@code scale}, or sometimes one of {@link #SPECIAL_FLOATS} */
+    float nextSignedFloat(float scale) {
+      if (nextInt(8) == 0) {
+        return SPECIAL_FLOATS[nextInt(SPECIAL_FLOATS.length)];
+      }
+      if (mPortable) {
+        return Math.scalb(
+            (float) nextSignedInt(PORTABLE_FLOAT_BITS),
+            Math.min(Math.getExponent(scale), PORTABLE_FLOAT_MAX_EXPONENT) - PORTABLE_FLOAT_BITS);
+      }
+      return (2.0f * nextFloat() - 1.0f) * scale;
+    }
+
+    private int nextSignedInt(int bits) {
+      return nextInt(1 << bits) - (1 << (bits - 1));
+    }
+  }
+
+  /** Receives the records of {@link #generateRecords} */
+  abstract static class RecordSink {
+    void onEpoch(LoggedGnssClock clock, int measurementCount) throws IOException {}
+
+    abstract void onMeasurement(LoggedGnssClock clock, LoggedGnssMeasurement measurement)
+        throws IOException;
+
+    abstract void onNavigationMessage(
+        int svid, int type, int status, int messageId, int subMessageId, byte[] data)
+        throws IOException;
+
+    abstract void onFix(
+        String provider,
+        double latitudeDegrees,
+        double longitudeDegrees,
+        double altitudeMeters,
+        float speedMps,
+        float accuracyMeters,
+        long timeMillis)
+        throws IOException;
+
+    abstract void onNmea(String sentence, long timestamp) throws IOException;
+  }
+
+  /** Writes the records with {@link GnssLogCsvFormat} */
+  static class CsvFormatRecordSink extends RecordSink {
+    private final GnssLogCsvFormat mFormat = new GnssLogCsvFormat();
+    private final Writer mWriter;
+
+    CsvFormatRecordSink(Writer writer) {
+      mWriter = writer;
+    }
+
+    @Override
+    void onMeasurement(LoggedGnssClock clock, LoggedGnssMeasurement measurement)
+        throws IOException {
+      mFormat.formatRawRecord(clock, measurement);
+      writeLine();
+    }
+
+    @Override
+    void onNavigationMessage(
+        int svid, int type, int status, int messageId, int subMessageId, byte[] data)
+        throws IOException {
+      mFormat.formatNavRecord(svid, type, status, messageId, subMessageId, data, data.length);
+      writeLine();
+    }
+
+    @Override
+    void onFix(
+        String provider,
+        double latitudeDegrees,
+        double longitudeDegrees,
+        double altitudeMeters,
+        float speedMps,
+        float accuracyMeters,
+        long timeMillis)
+        throws IOException {
+      mFormat.formatFixRecord(
+          provider,
+          latitudeDegrees,
+          longitudeDegrees,
+          altitudeMeters,
+          speedMps,
+          accuracyMeters,
+          timeMillis);
+      writeLine();
+    }
+
+    @Override
+    void onNmea(String sentence, long timestamp) throws IOException {
+      mFormat.formatNmeaRecord(sentence, timestamp);
+      writeLine();
+    }
+
+    private void writeLine() throws IOException {
+      mFormat.writeTo(mWriter);
+      mWriter.write('\n');
+    }
+  }
+
+  /** Writes the records to a binary log */
+  static class BinaryRecordSink extends RecordSink {
+    private final GnssBinaryLogWriter mWriter;
+
+    BinaryRecordSink(GnssBinaryLogWriter writer) {
+      mWriter = writer;
+    }
+
+    @Override
+    void onEpoch(LoggedGnssClock clock, int measurementCount) throws IOException {
+      mWriter.beginEpoch(clock, measurementCount);
+    }
+
+    @Override
+    void onMeasurement(LoggedGnssClock clock, LoggedGnssMeasurement measurement)
+        throws IOException {
+      mWriter.writeMeasurement(measurement);
+    }
+
+    @Override
+    void onNavigationMessage(
+        int svid, int type, int status, int messageId, int subMessageId, byte[] data)
+        throws IOException {
+      mWriter.writeNavigationMessage(svid, type, status, messageId, subMessageId, data);
+    }
+
+    @Override
+    void onFix(
+        String provider,
+        double latitudeDegrees,
+        double longitudeDegrees,
+        double altitudeMeters,
+        float speedMps,
+        float accuracyMeters,
+        long timeMillis)
+        throws IOException {
+      mWriter.writeFix(
+          provider,
+          latitudeDegrees,
+          longitudeDegrees,
+          altitudeMeters,
+          speedMps,
+          accuracyMeters,
+          timeMillis);
+    }
+
+    @Override
+    void onNmea(String sentence, long timestamp) throws IOException {
+      mWriter.writeNmea(sentence, timestamp);
+    }
+  }
+
+  /** Writes the records with the {@code String.format} code of the GnssLogger file logger */
+  static class ReferenceRecordSink extends RecordSink {
+    private final Writer mWriter;
+
+    ReferenceRecordSink(Writer writer) {
+      mWriter = writer;
+    }
+
+    @Override
+    void onMeasurement(LoggedGnssClock clock, LoggedGnssMeasurement measurement)
+        throws IOException {
+      mWriter.write(
+          String.format(
+              "Raw,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
+              measurement.elapsedRealtimeMillis,
+              clock.timeNanos,
+              clock.hasLeapSecond ? clock.leapSecond : "",
+              clock.hasTimeUncertaintyNanos ? clock.timeUncertaintyNanos : "",
+              clock.fullBiasNanos,
+              clock.hasBiasNanos ? clock.biasNanos : "",
+              clock.hasBiasUncertaintyNanos ? clock.biasUncertaintyNanos : "",
+              clock.hasDriftNanosPerSecond ? clock.driftNanosPerSecond : "",
+              clock.hasDriftUncertaintyNanosPerSecond ? clock.driftUncertaintyNanosPerSecond : "",
+              clock.hardwareClockDiscontinuityCount + ","));
+      mWriter.write(
+          String.format(
+              "%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s",
+              measurement.svid,
+              measurement.timeOffsetNanos,
+              measurement.state,
+              measurement.receivedSvTimeNanos,
+              measurement.receivedSvTimeUncertaintyNanos,
+              measurement.cn0DbHz,
+              measurement.pseudorangeRateMetersPerSecond,
+              measurement.pseudorangeRateUncertaintyMetersPerSecond,
+              measurement.accumulatedDeltaRangeState,
+              measurement.accumulatedDeltaRangeMeters,
+              measurement.accumulatedDeltaRangeUncertaintyMeters,
+              measurement.hasCarrierFrequencyHz ? measurement.carrierFrequencyHz : "",
+              measurement.hasCarrierCycles ? measurement.carrierCycles : "",
+              measurement.hasCarrierPhase ? measurement.carrierPhase : "",
+              measurement.hasCarrierPhaseUncertainty ? measurement.carrierPhaseUncertainty : "",
+              measurement.multipathIndicator,
+              measurement.hasSnrInDb ? measurement.snrInDb : "",
+              measurement.constellationType,
+              measurement.hasAutomaticGainControlLevelDb
+                  ? measurement.automaticGainControlLevelDb
+                  : "",
+              measurement.hasCarrierFrequencyHz ? measurement.carrierFrequencyHz : ""));
+      mWriter.write('\n');
+    }
+
+    @Override
+    void onNavigationMessage(
+        int svid, int type, int status, int messageId, int subMessageId, byte[] data)
+        throws IOException {
+      StringBuilder builder = new StringBuilder("Nav");
+      builder.append(',').append(svid);
+      builder.append(',').append(type);
+      builder.append(',').append(status);
+      builder.append(',').append(messageId);
+      builder.append(',').append(subMessageId);
+      for (byte word : data) {
+        builder.append(',').append(word);
+      }
+      mWriter.write(builder.toString());
+      mWriter.write('\n');
+    }
+
+    @Override
+    void onFix(
+        String provider,
+        double latitudeDegrees,
+        double longitudeDegrees,
+        double altitudeMeters,
+        float speedMps,
+        float accuracyMeters,
+        long timeMillis)
+        throws IOException {
+      mWriter.write(
+          String.format(
+              Locale.US,
+              "Fix,%s,%f,%f,%f,%f,%f,%d",
+              provider,
+              latitudeDegrees,
+              longitudeDegrees,
+              altitudeMeters,
+              speedMps,
+              accuracyMeters,
+              timeMillis));
+      mWriter.write('\n');
+    }
+
+    @Override
+    void onNmea(String sentence, long timestamp) throws IOException {
+      mWriter.write(String.format(Locale.US, "NMEA,%s,%d", sentence, timestamp));
+      mWriter.write('\n');
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Measures the records per second and the allocated bytes per record of {@link GnssLogCsvFormat}
+ * against the {@code String.format} code it replaced, on a synthetic session. The allocations
+ * counted depend on the JVM, so the benchmark is not part of the test suite: remove the
+ * {@link Ignore} annotation to run it, the measurements are in the message of its assertion.
+ */
+@Ignore("Benchmark, depends on the allocations of the JVM")
+public class GnssLogFormatBenchmarkTest {
+
+  private static final int EPOCH_COUNT = 600;
+  private static final int WARM_UP_ITERATIONS = 5;
+  private static final int MEASURED_ITERATIONS = 10;
+  /**
+   * Minimum ratio of the allocations of {@code String.format} to those of {@link
+   * GnssLogCsvFormat}. The formatter allocates nothing itself, but the {@code StringBuilder}
+   * appends of floating point values allocate from JDK 19.
+   */
+  private static final double MIN_ALLOCATION_RATIO = 5.0;
+
+  private static SyntheticGnssLog sLog;
+  private static int sRecordCount;
+
+  @BeforeClass
+  public static void generateLog() throws Exception {
+    sLog = new SyntheticGnssLog(EPOCH_COUNT, 10.0 /* eastSpeedMps */, 1.0, 35L);
+    for (SyntheticGnssLog.Epoch epoch : sLog.getEpochs()) {
+      sRecordCount += epoch.measurements.size();
+    }
+  }
+
+  @Test
+  public void csvFormatAllocatesLessThanStringFormat() throws Exception {
+    Writer nullWriter = new NullWriter();
+    GnssLogCsvFormatTest.RecordSink csvFormatSink =
+        new GnssLogCsvFormatTest.CsvFormatRecordSink(nullWriter);
+    GnssLogCsvFormatTest.RecordSink referenceSink =
+        new GnssLogCsvFormatTest.ReferenceRecordSink(nullWriter);
+
+    Measurement csvFormat = measure(csvFormatSink);
+    Measurement reference = measure(referenceSink);
+    String measurements =
+        String.format(
+            Locale.US,
+            "GnssLogCsvFormat: %.0f records/s, %.1f allocated bytes/record; "
+                + "String.format: %.0f records/s, %.1f allocated bytes/record",
+            csvFormat.recordsPerSecond,
+            csvFormat.allocatedBytesPerRecord,
+            reference.recordsPerSecond,
+            reference.allocatedBytesPerRecord);
+
+    assertTrue(measurements, csvFormat.allocatedBytesPerRecord >= 0);
+    assertTrue(
+        measurements,
+        MIN_ALLOCATION_RATIO * csvFormat.allocatedBytesPerRecord
+            < reference.allocatedBytesPerRecord);
+  }
+
+  /** Formats the log with {@code sink} and returns the cost of a record after warming up */
+  private static Measurement measure(GnssLogCsvFormatTest.RecordSink sink) throws IOException {
+    for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+      GnssLogCsvFormatTest.replay(sLog, sink);
+    }
+    long startAllocatedBytes = getAllocatedBytes();
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      GnssLogCsvFormatTest.replay(sLog, sink);
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    long allocatedBytes = getAllocatedBytes() - startAllocatedBytes;
+    long recordCount = (long) MEASURED_ITERATIONS * sRecordCount;
+    return new Measurement(
+        recordCount * 1.0e9 / elapsedNanos,
+        startAllocatedBytes < 0 || allocatedBytes < 0
+            ? -1.0
+            : (double) allocatedBytes / recordCount);
+  }
+
+  /**
+   * Returns the bytes allocated by the current thread, or -1 if the JVM does not count them. The
+   * management classes are not part of the Android API the tests are compiled against, so they are
+   * looked up by reflection.
+   */
+  private static long getAllocatedBytes() {
+    try {
+      Object threadMXBean =
+          Class.forName("java.lang.management.ManagementFactory")
+              .getMethod("getThreadMXBean")
+              .invoke(null);
+      Class<?> allocationMXBeanClass = Class.forName("com.sun.management.ThreadMXBean");
+      if (!allocationMXBeanClass.isInstance(threadMXBean)) {
+        return -1;
+      }
+      return (Long)
+          allocationMXBeanClass
+              .getMethod("getThreadAllocatedBytes", long.class)
+              .invoke(threadMXBean, Thread.currentThread().getId());
+    } catch (ReflectiveOperationException e) {
+      return -1;
+    }
+  }
+
+  private static class Measurement {
+    final double recordsPerSecond;
+    /** Negative if the JVM does not count the allocations */
+    final double allocatedBytesPerRecord;
+
+    Measurement(double recordsPerSecond, double allocatedBytesPerRecord) {
+      this.recordsPerSecond = recordsPerSecond;
+      this.allocatedBytesPerRecord = allocatedBytesPerRecord;
+    }
+  }
+
+  /** Discards the formatted lines */
+  private static class NullWriter extends Writer {
+    @Override
+    public void write(char[] buffer, int offset, int length) {}
+
+    @Override
+    public void write(int c) {}
+
+    @Override
+    public void write(String string) {}
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Tests for {@link GnssLogReplayEngine} on synthetic logs */
+public class GnssLogReplayEngineTest {
+
+  private static final int EPOCH_COUNT = 60;
+  private static final int NAVIGATION_MESSAGE_EPOCH = 30;
+  /** The reference position of the logs is about 140 m away from the receiver */
+  private static final double MAX_POSITION_ERROR_METERS = 30.0;
+  /** The receiver decodes the times of week after 20 s */
+  private static final long TIME_OF_WEEK_MASKING_MILLIS = 20000;
+  private static final long NANOS_PER_MILLISECOND = 1000000L;
+
+  private static SyntheticGnssLog sLog;
+
+  @BeforeClass
+  public static void generateLog() throws Exception {
+    sLog = new SyntheticGnssLog(EPOCH_COUNT, 10.0 /* eastSpeedMps */, 1.0, 31L);
+  }
+
+  @Test
+  public void offlineReplayUsesTheLoggedNavigationMessages() throws Exception {
+    List<PositionVelocitySolution> solutions =
+        replay(PseudorangePositionVelocityFromRealTimeEvents.createOffline(), 0);
+
+    // the first epoch with enough satellites is skipped
+    assertEquals(EPOCH_COUNT - 1, solutions.size());
+    for (PositionVelocitySolution solution : solutions) {
+      assertTrue(sLog.getPositionErrorMeters(solution) < MAX_POSITION_ERROR_METERS);
+    }
+  }
+
+  @Test
+  public void offlineReplayWaitsForTheLoggedNavigationMessages() throws Exception {
+    List<PositionVelocitySolution> solutions =
+        replay(
+            PseudorangePositionVelocityFromRealTimeEvents.createOffline(),
+            NAVIGATION_MESSAGE_EPOCH);
+
+    assertEquals(EPOCH_COUNT - NAVIGATION_MESSAGE_EPOCH - 1, solutions.size());
+    long navigationMessageGpsTimeNanos =
+        sLog.getEpochs().get(NAVIGATION_MESSAGE_EPOCH).gpsTimeNanos;
+    for (PositionVelocitySolution solution : solutions) {
+      assertTrue(solution.getArrivalTimeSinceGpsEpochNs() > navigationMessageGpsTimeNanos);
+      assertTrue(sLog.getPositionErrorMeters(solution) < MAX_POSITION_ERROR_METERS);
+    }
+  }
+
+  @Test
+  public void offlineReplayWithoutNavigationMessagesHasNoSolution() throws Exception {
+    List<PositionVelocitySolution> solutions =
+        replay(
+            PseudorangePositionVelocityFromRealTimeEvents.createOffline(),
+            SyntheticGnssLog.NO_NAVIGATION_MESSAGES);
+
+    assertTrue(solutions.isEmpty());
+  }
+
+  @Test
+  public void replayUsesTheInjectedNavigationMessageSource() throws Exception {
+    FixedSuplAssistanceManager suplAssistanceManager =
+        new FixedSuplAssistanceManager(sLog.getNavMessage());
+    List<PositionVelocitySolution> solutions =
+        replay(
+            new PseudorangePositionVelocityFromRealTimeEvents(suplAssistanceManager),
+            SyntheticGnssLog.NO_NAVIGATION_MESSAGES);
+
+    assertEquals(EPOCH_COUNT - 1, solutions.size());
+    for (PositionVelocitySolution solution : solutions) {
+      assertTrue(sLog.getPositionErrorMeters(solution) < MAX_POSITION_ERROR_METERS);
+    }
+    // the prefetch with the reference position, then a request per epoch
+    assertEquals(EPOCH_COUNT + 1, suplAssistanceManager.mRefreshRequestCount);
+  }
+
+  @Test
+  public void offlineReplayIsReproducible() throws Exception {
+    List<PositionVelocitySolution> solutions =
+        replay(PseudorangePositionVelocityFromRealTimeEvents.createOffline(), 0);
+    List<PositionVelocitySolution> replayedSolutions =
+        replay(PseudorangePositionVelocityFromRealTimeEvents.createOffline(), 0);
+
+    assertEquals(solutions.size(), replayedSolutions.size());
+    for (int i = 0; i < solutions.size(); i++) {
+      assertArrayEquals(
+          solutions.get(i).getPositionSolutionLatLngDeg(),
+          replayedSolutions.get(i).getPositionSolutionLatLngDeg(),
+          0.0);
+    }
+  }
+
+  @Test
+  public void coarseTimeFixArrivesBeforeTheTimesOfWeekAreDecoded() throws Exception {
+    PseudorangePositionVelocityFromRealTimeEvents solver =
+        PseudorangePositionVelocityFromRealTimeEvents.createOffline();
+    solver.setCoarseTimeNavigationEnabled(true);
+    List<PositionVelocitySolution> solutions = replay(solver, 0, TIME_OF_WEEK_MASKING_MILLIS);
+
+    long timeToFirstCoarseTimeFixNanos = solver.getTimeToFirstCoarseTimeFixNanos();
+    long timeToFirstFixNanos = solver.getTimeToFirstFixNanos();
+    assertTrue(
+        timeToFirstCoarseTimeFixNanos
+            != PseudorangePositionVelocityFromRealTimeEvents.NO_TIME_TO_FIRST_FIX);
+    assertTrue(timeToFirstCoarseTimeFixNanos < timeToFirstFixNanos);
+    assertTrue(timeToFirstFixNanos >= TIME_OF_WEEK_MASKING_MILLIS * NANOS_PER_MILLISECOND);
+    for (PositionVelocitySolution solution : solutions) {
+      assertTrue(sLog.getPositionErrorMeters(solution) < MAX_POSITION_ERROR_METERS);
+    }
+  }
+
+  @Test
+  public void maskedTimesOfWeekDelayTheFixWithoutCoarseTime() throws Exception {
+    PseudorangePositionVelocityFromRealTimeEvents solver =
+        PseudorangePositionVelocityFromRealTimeEvents.createOffline();
+    List<PositionVelocitySolution> solutions = replay(solver, 0, TIME_OF_WEEK_MASKING_MILLIS);
+
+    assertEquals(
+        PseudorangePositionVelocityFromRealTimeEvents.NO_TIME_TO_FIRST_FIX,
+        solver.getTimeToFirstCoarseTimeFixNanos());
+    assertTrue(
+        solver.getTimeToFirstFixNanos() >= TIME_OF_WEEK_MASKING_MILLIS * NANOS_PER_MILLISECOND);
+    assertTrue(solutions.size() < EPOCH_COUNT - TIME_OF_WEEK_MASKING_MILLIS / 1000);
+  }
+
+  /** Replays the log with its navigation messages before {@code navigationMessageEpoch} */
+  private static List<PositionVelocitySolution> replay(
+      PseudorangePositionVelocityFromRealTimeEvents solver, int navigationMessageEpoch)
+      throws Exception {
+    return replay(solver, navigationMessageEpoch, 0);
+  }
+
+  /**
+   * Replays the log with its navigation messages before {@code navigationMessageEpoch} and the
+   * times of week masked during the first {@code timeOfWeekMaskingMillis} milliseconds
+   */
+  private static List<PositionVelocitySolution> replay(
+      PseudorangePositionVelocityFromRealTimeEvents solver,
+      int navigationMessageEpoch,
+      long timeOfWeekMaskingMillis)
+      throws Exception {
+    final List<PositionVelocitySolution> solutions = new ArrayList<>();
+    solver.addPositionVelocitySolutionListener(
+        new PositionVelocitySolutionListener() {
+          @Override
+          public void onPositionVelocitySolution(PositionVelocitySolution solution) {
+            if (solution.hasPosition()) {
+              solutions.add(solution);
+            }
+          }
+        });
+    GnssLogReplayEngine replayEngine = new GnssLogReplayEngine(solver);
+    replayEngine.setTimeOfWeekMaskingMillis(timeOfWeekMaskingMillis);
+    GnssLogReplayEngine.ReplayStatistics statistics =
+        replayEngine.replay(new StringReader(sLog.toLog(navigationMessageEpoch)));
+    assertEquals(EPOCH_COUNT, statistics.epochCount);
+    assertEquals(solutions.size(), statistics.solutionCount);
+    return solutions;
+  }
+
+  /** Serves a fixed navigation message without connecting to any server */
+  private static class FixedSuplAssistanceManager extends SuplAssistanceManager {
+    private final GpsNavMessageProto mNavMessage;
+    private int mRefreshRequestCount;
+
+    FixedSuplAssistanceManager(GpsNavMessageProto navMessage) {
+      mNavMessage = navMessage;
+    }
+
+    @Override
+    public void requestRefreshIfNeeded(int latE7, int lngE7) {
+      mRefreshRequestCount++;
+    }
+
+    @Override
+    public GpsNavMessageProto getLatestNavMessage() {
+      return mNavMessage;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
+import android.location.cts.nano.Ephemeris.IonosphericModelProto;
+
+/**
+ * Encodes the GPS L1 C/A subframes read by {@link GpsNavigationMessageStore}, following
+ * IS-GPS-200, so that tests can write navigation messages to logs. The parity bits are left zero,
+ * they are not checked by the store.
+ */
+final class GpsNavigationMessageEncoder {
+  /** The {@code GnssNavigationMessage#TYPE_GPS_L1CA} type */
+  static final int GPS_L1CA_TYPE = 0x0101;
+
+  private static final int L1_CA_MESSAGE_LENGTH_BYTES = 40;
+  private static final int WORD_SIZE_BITS = 30;
+  private static final int WORD_PADDING_BITS = 2;
+  private static final int BYTE_AS_BITS = 8;
+  private static final int GPS_CYCLE_WEEKS = 1024;
+  private static final int UTC_PARAMETERS_PAGE_SV_ID = 56;
+
+  private GpsNavigationMessageEncoder() {}
+
+  /** Encodes the clock parameters and the week of {@code ephemeris}, with a nominal accuracy */
+  static byte[] encodeFirstSubframe(GpsEphemerisProto ephemeris) {
+    byte[] rawData = new byte[L1_CA_MESSAGE_LENGTH_BYTES];
+    setBits(60, 10, ephemeris.week % GPS_CYCLE_WEEKS, rawData);
+    setBits(76, 6, ephemeris.svHealth, rawData);
+    setBits(82, 2, ephemeris.iodc >> 8, rawData);
+    setBits(196, 8, scale(ephemeris.tgd, -31), rawData);
+    setBits(210, 8, ephemeris.iodc, rawData);
+    setBits(218, 16, scale(ephemeris.toc, 4), rawData);
+    setBits(240, 8, scale(ephemeris.af2, -55), rawData);
+    setBits(248, 16, scale(ephemeris.af1, -43), rawData);
+    setBits(270, 22, scale(ephemeris.af0, -31), rawData);
+    return rawData;
+  }
+
+  /** Encodes the first half of the orbit parameters of {@code ephemeris} */
+  static byte[] encodeSecondSubframe(GpsEphemerisProto ephemeris) {
+    byte[] rawData = new byte[L1_CA_MESSAGE_LENGTH_BYTES];
+    setBits(60, 8, ephemeris.iode, rawData);
+    setBits(68, 16, scale(ephemeris.crs, -5), rawData);
+    setBits(90, 16, scale(ephemeris.deltaN / Math.PI, -43), rawData);
+    set32Bits(106, 120, scale(ephemeris.m0 / Math.PI, -31), rawData);
+    setBits(150, 16, scale(ephemeris.cuc, -29), rawData);
+    set32Bits(166, 180, scale(ephemeris.e, -33), rawData);
+    setBits(210, 16, scale(ephemeris.cus, -29), rawData);
+    set32Bits(226, 240, scale(ephemeris.rootOfA, -19), rawData);
+    setBits(270, 16, scale(ephemeris.toe, 4), rawData);
+    return rawData;
+  }
+
+  /** Encodes the second half of the orbit parameters of {@code ephemeris} */
+  static byte[] encodeThirdSubframe(GpsEphemerisProto ephemeris) {
+    byte[] rawData = new byte[L1_CA_MESSAGE_LENGTH_BYTES];
+    setBits(60, 16, scale(ephemeris.cic, -29), rawData);
+    set32Bits(76, 90, scale(ephemeris.omega0 / Math.PI, -31), rawData);
+    setBits(120, 16, scale(ephemeris.cis, -29), rawData);
+    set32Bits(136, 150, scale(ephemeris.i0 / Math.PI, -31), rawData);
+    setBits(180, 16, scale(ephemeris.crc, -5), rawData);
+    set32Bits(196, 210, scale(ephemeris.omega / Math.PI, -31), rawData);
+    setBits(240, 24, scale(ephemeris.omegaDot / Math.PI, -43), rawData);
+    setBits(270, 8, ephemeris.iode, rawData);
+    setBits(278, 14, scale(ephemeris.iDot / Math.PI, -43), rawData);
+    return rawData;
+  }
+
+  /**
+   * Encodes the page 18 of subframe 4 with the ionospheric parameters {@code iono} and the UTC
+   * parameters of a leap second event.
+   *
+   * @param leapSeconds GPS - UTC offset in seconds before the event
+   * @param eventGpsWeek Full GPS week of the event
+   * @param eventDay Day number (1 to 7) at the end of which the event becomes effective
+   * @param leapSecondsAfterEvent GPS - UTC offset in seconds after the event
+   */
+  static byte[] encodeUtcParametersPage(
+      IonosphericModelProto iono,
+      int leapSeconds,
+      int eventGpsWeek,
+      int eventDay,
+      int leapSecondsAfterEvent) {
+    byte[] rawData = new byte[L1_CA_MESSAGE_LENGTH_BYTES];
+    setBits(62, 6, UTC_PARAMETERS_PAGE_SV_ID, rawData);
+    setBits(68, 8, scale(iono.alpha[0], -30), rawData);
+    setBits(76, 8, scale(iono.alpha[1], -27), rawData);
+    setBits(90, 8, scale(iono.alpha[2], -24), rawData);
+    setBits(98, 8, scale(iono.alpha[3], -24), rawData);
+    setBits(106, 8, scale(iono.beta[0], 11), rawData);
+    setBits(120, 8, scale(iono.beta[1], 14), rawData);
+    setBits(128, 8, scale(iono.beta[2], 16), rawData);
+    setBits(136, 8, scale(iono.beta[3], 16), rawData);
+    setBits(240, 8, leapSeconds, rawData);
+    setBits(248, 8, eventGpsWeek, rawData);
+    setBits(256, 8, eventDay, rawData);
+    setBits(270, 8, leapSecondsAfterEvent, rawData);
+    return rawData;
+  }
+
+  /** Returns {@code value} in units of 2 to the power of {@code exponent}, rounded */
+  private static long scale(double value, int exponent) {
+    return Math.round(value * Math.pow(2, -exponent));
+  }
+
+  /** Writes the 32 bits of {@code value}, its 8 most significant bits at {@code index8} */
+  private static void set32Bits(int index8, int index24, long value, byte[] rawData) {
+    setBits(index8, 8, value >> 24, rawData);
+    setBits(index24, 24, value, rawData);
+  }
+
+  /**
+   * Writes the {@code length} least significant bits of {@code value} at {@code index}, the inverse
+   * of the extraction of the store: each 30 bit word is followed by 2 padding bits.
+   */
+  private static void setBits(int index, int length, long value, byte[] rawData) {
+    for (int i = 0; i < length; ++i) {
+      int workingIndex = index + i;
+      workingIndex += (workingIndex / WORD_SIZE_BITS + 1) * WORD_PADDING_BITS;
+      int bit = (int) (value >> (length - 1 - i)) & 1;
+      int shiftOffset = BYTE_AS_BITS - 1 - workingIndex % BYTE_AS_BITS;
+      rawData[workingIndex / BYTE_AS_BITS] |= bit << shiftOffset;
+    }
+  }
+}
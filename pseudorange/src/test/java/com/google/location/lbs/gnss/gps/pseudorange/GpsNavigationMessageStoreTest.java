@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+import android.location.cts.nano.Ephemeris.IonosphericModelProto;
+import com.google.location.lbs.gnss.gps.pseudorange.GpsTimeOperations.LeapSecondTable;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link GpsNavigationMessageStore} */
+public class GpsNavigationMessageStoreTest {
+
+  private static final byte PRN = 5;
+  private static final byte L1_CA_TYPE = 1;
+  private static final int GPS_CYCLE_WEEKS = 1024;
+  private static final int KNOWN_LEAP_SECONDS = 18;
+  private static final int NEW_LEAP_SECONDS = 19;
+  private static final int EVENT_DAY = 3;
+  private static final long NANOS_IN_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private GpsNavigationMessageStore mStore;
+  private IonosphericModelProto mIono;
+
+  @Before
+  public void createStore() {
+    mStore = new GpsNavigationMessageStore();
+    mIono = new IonosphericModelProto();
+    mIono.alpha = new double[4];
+    mIono.beta = new double[4];
+  }
+
+  /** The leap seconds decoded by a store must never leak into the tables of other sessions */
+  @After
+  public void checkKnownLeapSecondTableUnchanged() {
+    mStore = null;
+    assertSame(
+        GpsTimeOperations.getKnownLeapSecondTable(),
+        new GpsNavigationMessageStore().getLeapSecondTable());
+    long gpsNanos = GpsTimeOperations.utcMillisToGpsNanos(System.currentTimeMillis());
+    assertEquals(KNOWN_LEAP_SECONDS, GpsTimeOperations.getLeapSecondsAtGpsNanos(
+        gpsNanos + 1000 * GpsTimeOperations.NANOS_IN_WEEK));
+  }
+
+  @Test
+  public void decodesTheEncodedEphemeris() {
+    int currentGpsWeek = GpsTimeOperations.getGpsWeek(
+        GpsTimeOperations.utcMillisToGpsNanos(System.currentTimeMillis()));
+    GpsEphemerisProto ephemeris = new GpsEphemerisProto();
+    ephemeris.prn = PRN;
+    ephemeris.week = currentGpsWeek;
+    ephemeris.iodc = 0x2A5;
+    ephemeris.iode = 0xA5;
+    ephemeris.tgd = -4.0 * Math.pow(2, -31);
+    ephemeris.toc = 302400.0;
+    ephemeris.toe = 302400.0;
+    ephemeris.af0 = -123456.0 * Math.pow(2, -31);
+    ephemeris.af1 = -42.0 * Math.pow(2, -43);
+    ephemeris.af2 = 0.0;
+    ephemeris.crs = 321.0 * Math.pow(2, -5);
+    ephemeris.crc = 6543.0 * Math.pow(2, -5);
+    ephemeris.cuc = -1234.0 * Math.pow(2, -29);
+    ephemeris.cus = 2345.0 * Math.pow(2, -29);
+    ephemeris.cic = -34.0 * Math.pow(2, -29);
+    ephemeris.cis = 45.0 * Math.pow(2, -29);
+    ephemeris.deltaN = 11111.0 * Math.pow(2, -43) * Math.PI;
+    ephemeris.m0 = -987654321.0 * Math.pow(2, -31) * Math.PI;
+    ephemeris.e = 42949673.0 * Math.pow(2, -33);
+    ephemeris.rootOfA = 2702000000.0 * Math.pow(2, -19);
+    ephemeris.omega0 = 1234567890.0 * Math.pow(2, -31) * Math.PI;
+    ephemeris.i0 = 654321987.0 * Math.pow(2, -31) * Math.PI;
+    ephemeris.omega = -456789123.0 * Math.pow(2, -31) * Math.PI;
+    ephemeris.omegaDot = -22392.0 * Math.pow(2, -43) * Math.PI;
+    ephemeris.iDot = -321.0 * Math.pow(2, -43) * Math.PI;
+    IonosphericModelProto iono = new IonosphericModelProto();
+    iono.alpha = new double[] {11.0 * Math.pow(2, -30), -1.0 * Math.pow(2, -27), 0.0, 0.0};
+    iono.beta = new double[] {44.0 * Math.pow(2, 11), 0.0, -2.0 * Math.pow(2, 16), 0.0};
+
+    GpsNavigationMessageStore store = mStore;
+    store.onNavMessageReported(
+        PRN, L1_CA_TYPE, (short) 1, GpsNavigationMessageEncoder.encodeFirstSubframe(ephemeris));
+    store.onNavMessageReported(
+        PRN, L1_CA_TYPE, (short) 2, GpsNavigationMessageEncoder.encodeSecondSubframe(ephemeris));
+    store.onNavMessageReported(
+        PRN, L1_CA_TYPE, (short) 3, GpsNavigationMessageEncoder.encodeThirdSubframe(ephemeris));
+    store.onNavMessageReported(
+        PRN,
+        L1_CA_TYPE,
+        (short) 4,
+        GpsNavigationMessageEncoder.encodeUtcParametersPage(
+            iono, KNOWN_LEAP_SECONDS, 0, 0, KNOWN_LEAP_SECONDS));
+    GpsNavMessageProto navMessage = store.createDecodedNavMessage();
+
+    assertEquals(1, navMessage.ephemerids.length);
+    GpsEphemerisProto decoded = navMessage.ephemerids[0];
+    assertEquals(PRN, decoded.prn);
+    assertEquals(ephemeris.week, decoded.week);
+    assertEquals(ephemeris.iodc, decoded.iodc);
+    assertEquals(ephemeris.iode, decoded.iode);
+    assertEquals(ephemeris.tgd, decoded.tgd, 0.0);
+    assertEquals(ephemeris.toc, decoded.toc, 0.0);
+    assertEquals(ephemeris.toe, decoded.toe, 0.0);
+    assertEquals(ephemeris.af0, decoded.af0, 0.0);
+    assertEquals(ephemeris.af1, decoded.af1, 0.0);
+    assertEquals(ephemeris.crs, decoded.crs, 0.0);
+    assertEquals(ephemeris.crc, decoded.crc, 0.0);
+    assertEquals(ephemeris.cuc, decoded.cuc, 0.0);
+    assertEquals(ephemeris.cus, decoded.cus, 0.0);
+    assertEquals(ephemeris.cic, decoded.cic, 0.0);
+    assertEquals(ephemeris.cis, decoded.cis, 0.0);
+    assertEquals(ephemeris.deltaN, decoded.deltaN, 1e-20);
+    assertEquals(ephemeris.m0, decoded.m0, 1e-15);
+    assertEquals(ephemeris.e, decoded.e, 0.0);
+    assertEquals(ephemeris.rootOfA, decoded.rootOfA, 0.0);
+    assertEquals(ephemeris.omega0, decoded.omega0, 1e-15);
+    assertEquals(ephemeris.i0, decoded.i0, 1e-15);
+    assertEquals(ephemeris.omega, decoded.omega, 1e-15);
+    assertEquals(ephemeris.omegaDot, decoded.omegaDot, 1e-20);
+    assertEquals(ephemeris.iDot, decoded.iDot, 1e-20);
+    assertNotNull(navMessage.iono);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(iono.alpha[i], navMessage.iono.alpha[i], 0.0);
+      assertEquals(iono.beta[i], navMessage.iono.beta[i], 0.0);
+    }
+  }
+
+  @Test
+  public void leapSecondWeekIsResolvedAgainstTheWeekOfTheMessage() {
+    // half a rollover cycle away from today, so that the week number modulo 256 of the leap second
+    // event resolves to a different week against today than against the week of the message
+    int currentGpsWeek = GpsTimeOperations.getGpsWeek(
+        GpsTimeOperations.utcMillisToGpsNanos(System.currentTimeMillis()));
+    int messageWeekInCycle = (currentGpsWeek % GPS_CYCLE_WEEKS + GPS_CYCLE_WEEKS / 2)
+        % GPS_CYCLE_WEEKS;
+    int messageGpsWeek = currentGpsWeek - currentGpsWeek % GPS_CYCLE_WEEKS + messageWeekInCycle;
+    int eventGpsWeek = messageGpsWeek + 10;
+    long eventGpsNanos = getEventGpsNanos(eventGpsWeek);
+
+    reportUtcParameters(KNOWN_LEAP_SECONDS, eventGpsWeek, NEW_LEAP_SECONDS);
+    assertNotNull(mStore.createDecodedNavMessage().iono);
+    // the week of the message is not known yet, the event is kept pending
+    assertSame(GpsTimeOperations.getKnownLeapSecondTable(), mStore.getLeapSecondTable());
+
+    reportFirstSubframe(messageGpsWeek);
+    LeapSecondTable table = mStore.getLeapSecondTable();
+    assertEquals(KNOWN_LEAP_SECONDS, table.getLeapSecondsAtGpsNanos(
+        eventGpsNanos - GpsTimeOperations.NANOS_IN_DAY));
+    assertEquals(NEW_LEAP_SECONDS, table.getLeapSecondsAtGpsNanos(
+        eventGpsNanos + GpsTimeOperations.NANOS_IN_DAY));
+  }
+
+  @Test
+  public void leapSecondEventTakesEffectAtTheUtcMidnight() {
+    int messageGpsWeek = GpsTimeOperations.getGpsWeek(
+        GpsTimeOperations.utcMillisToGpsNanos(System.currentTimeMillis()));
+    int eventGpsWeek = messageGpsWeek + 10;
+    long eventGpsNanos = getEventGpsNanos(eventGpsWeek);
+
+    reportFirstSubframe(messageGpsWeek);
+    reportUtcParameters(KNOWN_LEAP_SECONDS, eventGpsWeek, NEW_LEAP_SECONDS);
+    LeapSecondTable table = mStore.getLeapSecondTable();
+
+    // the UTC midnight ending the day of the event is NEW_LEAP_SECONDS after the GPS midnight
+    long utcMidnightGpsNanos = eventGpsNanos + NEW_LEAP_SECONDS * NANOS_IN_SECOND;
+    assertEquals(KNOWN_LEAP_SECONDS, table.getLeapSecondsAtGpsNanos(utcMidnightGpsNanos - 1));
+    assertEquals(NEW_LEAP_SECONDS, table.getLeapSecondsAtGpsNanos(utcMidnightGpsNanos));
+    long utcMidnightMillis = GpsTimeOperations.gpsNanosToUtcMillis(utcMidnightGpsNanos, table);
+    assertEquals(0, utcMidnightMillis % TimeUnit.DAYS.toMillis(1));
+    assertEquals(
+        utcMidnightGpsNanos, GpsTimeOperations.utcMillisToGpsNanos(utcMidnightMillis, table));
+  }
+
+  @Test
+  public void inconsistentLeapSecondEventsAreRejected() {
+    int messageGpsWeek = GpsTimeOperations.getGpsWeek(
+        GpsTimeOperations.utcMillisToGpsNanos(System.currentTimeMillis()));
+    int eventGpsWeek = messageGpsWeek + 10;
+    reportFirstSubframe(messageGpsWeek);
+
+    // GPS - UTC offsets changing by more than a second
+    reportUtcParameters(KNOWN_LEAP_SECONDS, eventGpsWeek, KNOWN_LEAP_SECONDS + 2);
+    reportUtcParameters(KNOWN_LEAP_SECONDS, eventGpsWeek, KNOWN_LEAP_SECONDS - 2);
+    // the current offset, no event
+    reportUtcParameters(KNOWN_LEAP_SECONDS, eventGpsWeek, KNOWN_LEAP_SECONDS);
+    assertSame(GpsTimeOperations.getKnownLeapSecondTable(), mStore.getLeapSecondTable());
+
+    // an event in 2016, before the last known leap second, received in June 2017. The store
+    // resolves the weeks of subframe 1 against today, so the table is updated directly.
+    LeapSecondTable knownTable = GpsTimeOperations.getKnownLeapSecondTable();
+    assertSame(
+        knownTable,
+        knownTable.withUtcParameters(
+            1950, KNOWN_LEAP_SECONDS, 1900 % 256, EVENT_DAY, NEW_LEAP_SECONDS));
+  }
+
+  private void reportFirstSubframe(int gpsWeek) {
+    GpsEphemerisProto ephemeris = new GpsEphemerisProto();
+    ephemeris.week = gpsWeek;
+    mStore.onNavMessageReported(
+        PRN, L1_CA_TYPE, (short) 1, GpsNavigationMessageEncoder.encodeFirstSubframe(ephemeris));
+  }
+
+  private void reportUtcParameters(int leapSeconds, int eventGpsWeek, int leapSecondsAfterEvent) {
+    mStore.onNavMessageReported(
+        PRN,
+        L1_CA_TYPE,
+        (short) 4,
+        GpsNavigationMessageEncoder.encodeUtcParametersPage(
+            mIono, leapSeconds, eventGpsWeek, EVENT_DAY, leapSecondsAfterEvent));
+  }
+
+  /** Returns the GPS time of the end of the GPS day {@link #EVENT_DAY} of {@code eventGpsWeek} */
+  private static long getEventGpsNanos(int eventGpsWeek) {
+    return eventGpsWeek * GpsTimeOperations.NANOS_IN_WEEK
+        + EVENT_DAY * GpsTimeOperations.NANOS_IN_DAY;
+  }
+}
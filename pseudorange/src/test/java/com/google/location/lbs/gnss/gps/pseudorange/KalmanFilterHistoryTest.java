@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests for {@link KalmanFilterHistory}: the records read back are those written, on the heap and
+ * in a memory mapped file.
+ */
+public class KalmanFilterHistoryTest {
+
+  private static final int STATE_SIZE = UserPositionVelocityExtendedKalmanFilter.STATE_SIZE;
+  private static final int CAPACITY = 50;
+  private static final long FIRST_GPS_TIME_NANOS = 1330862400000000000L;
+  private static final long EPOCH_NANOS = 1000000000L;
+  /** Epochs at which the filter was initialized */
+  private static final int[] INITIALIZATIONS = {0, 20};
+
+  @Test
+  public void heapHistoryReadsBackTheRecords() throws Exception {
+    try (KalmanFilterHistory history = new KalmanFilterHistory(CAPACITY, false /* mapped */)) {
+      assertRecordsReadBack(history);
+    }
+  }
+
+  @Test
+  public void mappedHistoryReadsBackTheRecords() throws Exception {
+    try (KalmanFilterHistory history = new KalmanFilterHistory(CAPACITY, true /* mapped */)) {
+      assertRecordsReadBack(history);
+    }
+  }
+
+  @Test
+  public void smoothedStateReplacesTheFilteredOne() throws Exception {
+    try (KalmanFilterHistory history = new KalmanFilterHistory(CAPACITY, true /* mapped */)) {
+      fill(history, new Random(1));
+      Random random = new Random(2);
+      double[] smoothedState = createState(random);
+      double[][] smoothedCovariance = createCovariance(random);
+      double[] predictedState = new double[STATE_SIZE];
+      double[][] predictedCovariance = new double[STATE_SIZE][STATE_SIZE];
+      history.getPredicted(10, predictedState, predictedCovariance);
+
+      history.setFiltered(10, smoothedState, smoothedCovariance);
+
+      assertRecord(history, 10, smoothedState, smoothedCovariance, false);
+      double[] state = new double[STATE_SIZE];
+      double[][] covariance = new double[STATE_SIZE][STATE_SIZE];
+      history.getPredicted(10, state, covariance);
+      assertArrayEquals(predictedState, state, 0.0);
+      assertCovarianceEquals(predictedCovariance, covariance);
+    }
+  }
+
+  @Test
+  public void initializationsHaveNoPrediction() throws Exception {
+    try (KalmanFilterHistory history = new KalmanFilterHistory(CAPACITY, false /* mapped */)) {
+      fill(history, new Random(1));
+      try {
+        history.getPredicted(INITIALIZATIONS[1], new double[STATE_SIZE],
+            new double[STATE_SIZE][STATE_SIZE]);
+        fail("An initialization has no prediction");
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void historyIsBounded() throws Exception {
+    try (KalmanFilterHistory history = new KalmanFilterHistory(CAPACITY, false /* mapped */)) {
+      fill(history, new Random(1));
+      try {
+        history.addInitialization(0L, new double[STATE_SIZE], new double[STATE_SIZE][STATE_SIZE]);
+        fail("The history is full");
+      } catch (IllegalStateException expected) {
+      }
+      try {
+        history.getGpsTimeNanos(CAPACITY);
+        fail("No epoch past the size");
+      } catch (IndexOutOfBoundsException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void historiesOfLongSessionsDoNotFitInHeap() {
+    assertTrue(KalmanFilterHistory.fitsInHeap(3600));
+    assertFalse(KalmanFilterHistory.fitsInHeap(24 * 3600));
+  }
+
+  /** Fills {@code history} with random records and asserts that they read back, in any order */
+  private static void assertRecordsReadBack(KalmanFilterHistory history) {
+    Random random = new Random(1);
+    double[][] filteredStates = new double[CAPACITY][];
+    double[][][] filteredCovariances = new double[CAPACITY][][];
+    for (int index = 0; index < CAPACITY; index++) {
+      filteredStates[index] = createState(random);
+      filteredCovariances[index] = createCovariance(random);
+      long gpsTimeNanos = FIRST_GPS_TIME_NANOS + index * EPOCH_NANOS;
+      if (isInitialization(index)) {
+        history.addInitialization(gpsTimeNanos, filteredStates[index], filteredCovariances[index]);
+      } else {
+        history.add(
+            gpsTimeNanos,
+            createState(random),
+            createCovariance(random),
+            filteredStates[index],
+            filteredCovariances[index]);
+      }
+    }
+
+    assertEquals(CAPACITY, history.size());
+    for (int index = CAPACITY - 1; index >= 0; index--) {
+      assertEquals(FIRST_GPS_TIME_NANOS + index * EPOCH_NANOS, history.getGpsTimeNanos(index));
+      assertRecord(
+          history, index, filteredStates[index], filteredCovariances[index],
+          isInitialization(index));
+    }
+  }
+
+  private static void assertRecord(
+      KalmanFilterHistory history,
+      int index,
+      double[] expectedState,
+      double[][] expectedCovariance,
+      boolean initialization) {
+    assertEquals(initialization, history.isInitialization(index));
+    double[] state = new double[STATE_SIZE];
+    double[][] covariance = new double[STATE_SIZE][STATE_SIZE];
+    history.getFiltered(index, state, covariance);
+    assertArrayEquals(expectedState, state, 0.0);
+    assertCovarianceEquals(expectedCovariance, covariance);
+  }
+
+  private static void assertCovarianceEquals(double[][] expected, double[][] actual) {
+    for (int i = 0; i < STATE_SIZE; i++) {
+      assertArrayEquals(expected[i], actual[i], 0.0);
+    }
+  }
+
+  private static void fill(KalmanFilterHistory history, Random random) {
+    for (int index = 0; index < CAPACITY; index++) {
+      long gpsTimeNanos = FIRST_GPS_TIME_NANOS + index * EPOCH_NANOS;
+      if (isInitialization(index)) {
+        history.addInitialization(gpsTimeNanos, createState(random), createCovariance(random));
+      } else {
+        history.add(gpsTimeNanos, createState(random), createCovariance(random),
+            createState(random), createCovariance(random));
+      }
+    }
+  }
+
+  private static boolean isInitialization(int index) {
+    for (int initialization : INITIALIZATIONS) {
+      if (index == initialization) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static double[] createState(Random random) {
+    double[] state = new double[STATE_SIZE];
+    for (int i = 0; i < STATE_SIZE; i++) {
+      state[i] = 1.0e6 * random.nextGaussian();
+    }
+    return state;
+  }
+
+  /** Returns a random symmetric matrix, the history only keeps the upper triangle */
+  private static double[][] createCovariance(Random random) {
+    double[][] covariance = new double[STATE_SIZE][STATE_SIZE];
+    for (int i = 0; i < STATE_SIZE; i++) {
+      for (int k = i; k < STATE_SIZE; k++) {
+        covariance[i][k] = random.nextGaussian();
+        covariance[k][i] = covariance[i][k];
+      }
+    }
+    return covariance;
+  }
+}
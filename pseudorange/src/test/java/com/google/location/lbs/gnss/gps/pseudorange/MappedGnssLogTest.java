@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link MappedGnssLog} on a small synthetic log: the epochs found, the sidecar index
+ * reused while the log is unchanged and built again when its length or modification time changes,
+ * and the records read by the windows and the navigation messages.
+ */
+public class MappedGnssLogTest {
+
+  private static final int EPOCH_COUNT = 8;
+  private static final int NAVIGATION_MESSAGE_EPOCH = 2;
+  private static final int OTHER_NAVIGATION_MESSAGE_EPOCH = 5;
+  /** Navigation messages logged before the first fix, when it is moved between them */
+  private static final int NAVIGATION_MESSAGES_BEFORE_FIX = 3;
+  /** A modification time of the sidecar that a rebuilt index does not have */
+  private static final long OLD_LAST_MODIFIED_MILLIS = 1000000000000L;
+  /** The ephemeris subframes and the page of the UTC parameters */
+  private static final int SUBFRAMES_PER_SATELLITE = 4;
+  private static final int TIME_NANOS_FIELD = 2;
+
+  @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+  private SyntheticGnssLog mSyntheticLog;
+  private File mLogFile;
+  private File mIndexFile;
+
+  @Before
+  public void createLog() throws Exception {
+    mSyntheticLog = new SyntheticGnssLog(EPOCH_COUNT, 10.0 /* eastSpeedMps */, 3.0, 37L);
+    mLogFile = new File(mTemporaryFolder.getRoot(), "gnss_log.txt");
+    mIndexFile = new File(mTemporaryFolder.getRoot(), "gnss_log.txt.index");
+  }
+
+  @Test
+  public void epochsAreFoundByTheirTimes() throws Exception {
+    writeLog(mSyntheticLog.toLog(NAVIGATION_MESSAGE_EPOCH));
+
+    MappedGnssLog log = MappedGnssLog.open(mLogFile);
+
+    assertEquals(EPOCH_COUNT, log.getEpochCount());
+    assertEquals(
+        SUBFRAMES_PER_SATELLITE * mSyntheticLog.getVisiblePrns().length,
+        log.getNavigationMessageCount());
+    for (int k = 0; k < EPOCH_COUNT; k++) {
+      long gpsTimeNanos = mSyntheticLog.getEpochs().get(k).gpsTimeNanos;
+      assertEquals(gpsTimeNanos, log.getGpsTimeNanos(k));
+      assertEquals(k, log.findEpochByGpsTimeNanos(gpsTimeNanos));
+      assertEquals(k + 1, log.findEpochByGpsTimeNanos(gpsTimeNanos + 1));
+      assertEquals(k, log.findEpochByTimeNanos(log.getTimeNanos(k)));
+    }
+  }
+
+  @Test
+  public void indexIsWrittenThenReused() throws Exception {
+    writeLog(mSyntheticLog.toLog(NAVIGATION_MESSAGE_EPOCH));
+    MappedGnssLog.open(mLogFile);
+    assertTrue(mIndexFile.isFile());
+    assertTrue(mIndexFile.setLastModified(OLD_LAST_MODIFIED_MILLIS));
+
+    MappedGnssLog log = MappedGnssLog.open(mLogFile);
+
+    assertEquals(OLD_LAST_MODIFIED_MILLIS, mIndexFile.lastModified());
+    assertEquals(EPOCH_COUNT, log.getEpochCount());
+  }
+
+  @Test
+  public void indexIsBuiltAgainWhenTheLogIsModified() throws Exception {
+    writeLog(mSyntheticLog.toLog(NAVIGATION_MESSAGE_EPOCH));
+    MappedGnssLog.open(mLogFile);
+    long lastModifiedMillis = mLogFile.lastModified();
+    // Same length, the navigation messages moved
+    writeLog(mSyntheticLog.toLog(OTHER_NAVIGATION_MESSAGE_EPOCH));
+    assertTrue(mLogFile.setLastModified(lastModifiedMillis - 10000));
+    assertTrue(mIndexFile.setLastModified(OLD_LAST_MODIFIED_MILLIS));
+
+    MappedGnssLog log = MappedGnssLog.open(mLogFile);
+
+    assertNotEquals(OLD_LAST_MODIFIED_MILLIS, mIndexFile.lastModified());
+    assertNavigationMessages(log, OTHER_NAVIGATION_MESSAGE_EPOCH);
+  }
+
+  @Test
+  public void indexIsBuiltAgainWhenTheLogLengthChanges() throws Exception {
+    writeLog(mSyntheticLog.toLog(NAVIGATION_MESSAGE_EPOCH));
+    MappedGnssLog.open(mLogFile);
+    long lastModifiedMillis = mLogFile.lastModified();
+    writeLog(mSyntheticLog.toLog(SyntheticGnssLog.NO_NAVIGATION_MESSAGES));
+    assertTrue(mLogFile.setLastModified(lastModifiedMillis));
+    assertTrue(mIndexFile.setLastModified(OLD_LAST_MODIFIED_MILLIS));
+
+    MappedGnssLog log = MappedGnssLog.open(mLogFile);
+
+    assertNotEquals(OLD_LAST_MODIFIED_MILLIS, mIndexFile.lastModified());
+    assertEquals(EPOCH_COUNT, log.getEpochCount());
+    assertEquals(0, log.getNavigationMessageCount());
+  }
+
+  @Test
+  public void truncatedIndexIsBuiltAgain() throws Exception {
+    writeLog(mSyntheticLog.toLog(NAVIGATION_MESSAGE_EPOCH));
+    MappedGnssLog.open(mLogFile);
+    try (RandomAccessFile indexFile = new RandomAccessFile(mIndexFile, "rw")) {
+      indexFile.setLength(indexFile.length() / 2);
+    }
+
+    MappedGnssLog log = MappedGnssLog.open(mLogFile);
+
+    assertEquals(EPOCH_COUNT, log.getEpochCount());
+    assertNavigationMessages(log, NAVIGATION_MESSAGE_EPOCH);
+  }
+
+  @Test
+  public void windowsReadTheRecordsBetweenTheirEpochs() throws Exception {
+    String text = mSyntheticLog.toLog(NAVIGATION_MESSAGE_EPOCH);
+    writeLog(text);
+    List<String> lines = Arrays.asList(text.split("\n"));
+    List<Integer> epochLines = findEpochLines(lines);
+
+    MappedGnssLog log = MappedGnssLog.open(mLogFile);
+
+    assertEquals(
+        joinLines(lines.subList(epochLines.get(1), epochLines.get(4))),
+        read(log.openWindow(1, 4)));
+    assertEquals(
+        joinLines(lines.subList(epochLines.get(EPOCH_COUNT - 1), lines.size())),
+        read(log.openWindow(EPOCH_COUNT - 1, EPOCH_COUNT)));
+    assertEquals("", read(log.openWindow(3, 3)));
+  }
+
+  @Test
+  public void navigationMessagesFollowAFixLoggedFirst() throws Exception {
+    writeLog(mSyntheticLog.toLog(NAVIGATION_MESSAGE_EPOCH));
+
+    MappedGnssLog log = MappedGnssLog.open(mLogFile);
+
+    assertNavigationMessages(log, NAVIGATION_MESSAGE_EPOCH);
+    // Only the fix is logged before the epochs preceding the navigation messages
+    String fix = read(log.openNavigationMessages(1));
+    assertTrue(fix.startsWith("Fix,"));
+    assertEquals(1, fix.split("\n").length);
+  }
+
+  @Test
+  public void fixIsReadBeforeTheNavigationMessagesLoggedAfterIt() throws Exception {
+    List<String> lines =
+        new ArrayList<>(
+            Arrays.asList(mSyntheticLog.toLog(NAVIGATION_MESSAGE_EPOCH).split("\n")));
+    // The first fix between the navigation messages, and a second fix after them
+    String fixLine = lines.remove(0);
+    int firstNavigationLine = findFirstNavigationLine(lines);
+    lines.add(firstNavigationLine + NAVIGATION_MESSAGES_BEFORE_FIX, fixLine);
+    int lastNavigationLine = firstNavigationLine;
+    while (lines.get(lastNavigationLine + 1).startsWith("Nav,")
+        || lines.get(lastNavigationLine + 1).equals(fixLine)) {
+      lastNavigationLine++;
+    }
+    lines.add(lastNavigationLine + 1, fixLine.replace("network", "gps"));
+    writeLog(joinLines(lines));
+
+    MappedGnssLog log = MappedGnssLog.open(mLogFile);
+
+    assertEquals("", read(log.openNavigationMessages(0)));
+    for (int k = NAVIGATION_MESSAGE_EPOCH; k <= EPOCH_COUNT; k++) {
+      String navigationMessages = read(log.openNavigationMessages(k));
+      assertEquals(expectNavigationMessages(lines, k), navigationMessages);
+      List<String> navigationLines = Arrays.asList(navigationMessages.split("\n"));
+      assertEquals(NAVIGATION_MESSAGES_BEFORE_FIX, navigationLines.indexOf(fixLine));
+      assertEquals(log.getNavigationMessageCount() + 1, navigationLines.size());
+    }
+  }
+
+  /** Asserts the navigation messages of each epoch of a log written by the synthetic log */
+  private void assertNavigationMessages(MappedGnssLog log, int navigationMessageEpoch)
+      throws IOException {
+    List<String> lines =
+        Arrays.asList(mSyntheticLog.toLog(navigationMessageEpoch).split("\n"));
+    for (int k = 0; k <= EPOCH_COUNT; k++) {
+      assertEquals(
+          "Epoch " + k, expectNavigationMessages(lines, k), read(log.openNavigationMessages(k)));
+    }
+  }
+
+  /**
+   * Returns the {@code Nav} lines and the first {@code Fix} line before the first line of {@code
+   * beforeEpoch}, in the order of the log.
+   */
+  private static String expectNavigationMessages(List<String> lines, int beforeEpoch) {
+    List<Integer> epochLines = findEpochLines(lines);
+    int endLine = beforeEpoch == epochLines.size() ? lines.size() : epochLines.get(beforeEpoch);
+    List<String> navigationLines = new ArrayList<>();
+    boolean hasFix = false;
+    for (String line : lines.subList(0, endLine)) {
+      if (line.startsWith("Nav,")) {
+        navigationLines.add(line);
+      } else if (line.startsWith("Fix,") && !hasFix) {
+        navigationLines.add(line);
+        hasFix = true;
+      }
+    }
+    return joinLines(navigationLines);
+  }
+
+  /** Returns the first line of each epoch, a {@code Raw} line of a new {@code TimeNanos} */
+  private static List<Integer> findEpochLines(List<String> lines) {
+    List<Integer> epochLines = new ArrayList<>();
+    String previousTimeNanos = null;
+    for (int i = 0; i < lines.size(); i++) {
+      if (!lines.get(i).startsWith("Raw,")) {
+        previousTimeNanos = null;
+        continue;
+      }
+      String timeNanos = lines.get(i).split(",")[TIME_NANOS_FIELD];
+      if (!timeNanos.equals(previousTimeNanos)) {
+        epochLines.add(i);
+      }
+      previousTimeNanos = timeNanos;
+    }
+    return epochLines;
+  }
+
+  private static int findFirstNavigationLine(List<String> lines) {
+    for (int i = 0; i < lines.size(); i++) {
+      if (lines.get(i).startsWith("Nav,")) {
+        return i;
+      }
+    }
+    throw new AssertionError("No navigation message");
+  }
+
+  private static String joinLines(List<String> lines) {
+    StringBuilder builder = new StringBuilder();
+    for (String line : lines) {
+      builder.append(line).append('\n');
+    }
+    return builder.toString();
+  }
+
+  private void writeLog(String text) throws IOException {
+    Files.write(mLogFile.toPath(), text.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static String read(Reader reader) throws IOException {
+    StringBuilder builder = new StringBuilder();
+    char[] chars = new char[256];
+    int count;
+    while ((count = reader.read(chars, 0, chars.length)) >= 0) {
+      builder.append(chars, 0, count);
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.location.lbs.gnss.gps.pseudorange.Ecef2LlaConverter.GeodeticLlaValues;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PseudorangeHatchSmoother} by replaying synthetic logs with carrier phase faults
+ * through the least square solver. The positions are compared with those of the same log without
+ * the faults, and the solver drops the satellites whose pseudorange is off by more than 20 m.
+ */
+public class PseudorangeHatchSmootherTest {
+
+  private static final int EPOCH_COUNT = 120;
+  private static final int FAULT_EPOCH = 60;
+  private static final double PSEUDORANGE_SIGMA_METERS = 1.0;
+  /** Larger than the 15 m jump detected as a cycle slip, 5 times the pseudorange uncertainty */
+  private static final double CYCLE_SLIP_METERS = 50.0;
+  /** Longer than the 5 s gap after which the smoothing restarts */
+  private static final int GAP_EPOCHS = 10;
+  /**
+   * Largest accumulated delta range change over the gap, smaller than the 9 m jump which shrinks
+   * the smoothing window, 3 times the pseudorange uncertainty
+   */
+  private static final double MAX_GAP_DRIFT_METERS = 8.0;
+  /** Without the restarts, the faults move the positions by 7 to 35 m */
+  private static final double MAX_POSITION_CHANGE_METERS = 3.0;
+
+  private static List<PositionVelocitySolution> sFaultlessSolutions;
+
+  @BeforeClass
+  public static void replayFaultlessLog() throws Exception {
+    sFaultlessSolutions = replay(createLog());
+  }
+
+  @Test
+  public void smoothingRestartsAfterAnUnreportedCycleSlip() throws Exception {
+    SyntheticGnssLog log = createLog();
+    int prn = log.getVisiblePrns()[0];
+    for (int k = FAULT_EPOCH; k < EPOCH_COUNT; k++) {
+      log.getEpochs().get(k).getMeasurement(prn).accumulatedDeltaRangeMeters += CYCLE_SLIP_METERS;
+    }
+
+    List<PositionVelocitySolution> solutions = replay(log);
+
+    assertEquals(EPOCH_COUNT - 1, solutions.size());
+    assertSatelliteUsed(solutions, prn);
+    assertPositionsUnchanged(solutions);
+  }
+
+  @Test
+  public void smoothingRestartsAfterAnAccumulatedDeltaRangeReset() throws Exception {
+    SyntheticGnssLog log = createLog();
+    int prn = log.getVisiblePrns()[0];
+    double resetAccumulatedDeltaRangeMeters =
+        log.getEpochs().get(FAULT_EPOCH).getMeasurement(prn).accumulatedDeltaRangeMeters;
+    for (int k = FAULT_EPOCH; k < EPOCH_COUNT; k++) {
+      LoggedGnssMeasurement measurement = log.getEpochs().get(k).getMeasurement(prn);
+      measurement.accumulatedDeltaRangeMeters -= resetAccumulatedDeltaRangeMeters;
+      if (k == FAULT_EPOCH) {
+        measurement.accumulatedDeltaRangeState = SyntheticGnssLog.ADR_STATE_RESET;
+      }
+    }
+
+    List<PositionVelocitySolution> solutions = replay(log);
+
+    assertEquals(EPOCH_COUNT - 1, solutions.size());
+    assertSatelliteUsed(solutions, prn);
+    assertPositionsUnchanged(solutions);
+  }
+
+  @Test
+  public void smoothingRestartsAfterAGapLongerThanFiveSeconds() throws Exception {
+    SyntheticGnssLog log = createLog();
+    int[] prns = log.getVisiblePrns();
+    // The carrier phases drift apart over the gap by less than a cycle slip, in opposite
+    // directions so that they do not shift the pseudoranges of all satellites together
+    for (int k = FAULT_EPOCH + GAP_EPOCHS; k < EPOCH_COUNT; k++) {
+      SyntheticGnssLog.Epoch epoch = log.getEpochs().get(k);
+      for (int i = 0; i < prns.length; i++) {
+        epoch.getMeasurement(prns[i]).accumulatedDeltaRangeMeters +=
+            MAX_GAP_DRIFT_METERS * (2.0 * i / (prns.length - 1) - 1.0);
+      }
+    }
+    log.getEpochs().subList(FAULT_EPOCH, FAULT_EPOCH + GAP_EPOCHS).clear();
+
+    List<PositionVelocitySolution> solutions = replay(log);
+
+    assertEquals(EPOCH_COUNT - GAP_EPOCHS - 1, solutions.size());
+    for (int prn : prns) {
+      assertSatelliteUsed(solutions, prn);
+    }
+    assertPositionsUnchanged(solutions);
+  }
+
+  /** Returns the same log for every test, with noisy pseudoranges */
+  private static SyntheticGnssLog createLog() throws Exception {
+    return new SyntheticGnssLog(
+        EPOCH_COUNT, 10.0 /* eastSpeedMps */, PSEUDORANGE_SIGMA_METERS, 45L);
+  }
+
+  /** Replays the log offline with the navigation messages logged before the first epoch */
+  private static List<PositionVelocitySolution> replay(SyntheticGnssLog log) throws Exception {
+    final List<PositionVelocitySolution> solutions = new ArrayList<>();
+    PseudorangePositionVelocityFromRealTimeEvents solver =
+        PseudorangePositionVelocityFromRealTimeEvents.createOffline();
+    solver.addPositionVelocitySolutionListener(
+        new PositionVelocitySolutionListener() {
+          @Override
+          public void onPositionVelocitySolution(PositionVelocitySolution solution) {
+            if (solution.hasPosition()) {
+              solutions.add(solution);
+            }
+          }
+        });
+    new GnssLogReplayEngine(solver).replay(new StringReader(log.toLog(0)));
+    return solutions;
+  }
+
+  /** Asserts that the least square solver never dropped satellite {@code prn} as an outlier */
+  private static void assertSatelliteUsed(List<PositionVelocitySolution> solutions, int prn) {
+    for (PositionVelocitySolution solution : solutions) {
+      assertEquals(
+          "Satellite " + prn + " dropped at " + solution.getArrivalTimeSinceGpsEpochNs(),
+          1.0,
+          solution.getPseudorangeWeights()[prn - 1],
+          0.0);
+    }
+  }
+
+  /** Asserts that the positions are close to those of the log without faults at the same time */
+  private static void assertPositionsUnchanged(List<PositionVelocitySolution> solutions) {
+    for (PositionVelocitySolution solution : solutions) {
+      PositionVelocitySolution faultlessSolution = null;
+      for (PositionVelocitySolution candidate : sFaultlessSolutions) {
+        if (candidate.getArrivalTimeSinceGpsEpochNs()
+            == solution.getArrivalTimeSinceGpsEpochNs()) {
+          faultlessSolution = candidate;
+        }
+      }
+      double[] positionEcefMeters = toEcefMeters(solution);
+      double[] faultlessPositionEcefMeters = toEcefMeters(faultlessSolution);
+      double changeMeters = 0.0;
+      for (int i = 0; i < 3; i++) {
+        double deltaMeters = positionEcefMeters[i] - faultlessPositionEcefMeters[i];
+        changeMeters += deltaMeters * deltaMeters;
+      }
+      changeMeters = Math.sqrt(changeMeters);
+      assertTrue(
+          "Position moved by " + changeMeters + " m at " + solution.getArrivalTimeSinceGpsEpochNs(),
+          changeMeters < MAX_POSITION_CHANGE_METERS);
+    }
+  }
+
+  private static double[] toEcefMeters(PositionVelocitySolution solution) {
+    return Lla2EcefConverter.convertFromLlaToEcefMeters(
+        new GeodeticLlaValues(
+            Math.toRadians(solution.getLatitudeDegrees()),
+            Math.toRadians(solution.getLongitudeDegrees()),
+            solution.getAltitudeMeters()));
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.location.GnssStatus;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PseudorangeRateVelocitySolver} on a synthetic log: the velocity against the
+ * velocity of the least square, the velocity of the epochs without a position solution, and the
+ * propagation of the cached satellite states.
+ */
+public class PseudorangeRateVelocitySolverTest {
+
+  private static final int EPOCH_COUNT = 30;
+  private static final double EAST_SPEED_MPS = 10.0;
+  /** Clock drift added to all the pseudorange rates of the log, which have none */
+  private static final double CLOCK_DRIFT_MPS = 50.0;
+  /** The pseudorange rates of the log are noise free */
+  private static final double MAX_VELOCITY_ERROR_MPS = 0.01;
+  /** Largest velocity change due to the propagation of the satellite states, a millimeter */
+  private static final double MAX_PROPAGATION_ERROR_MPS = 1.0e-3;
+  /** The error of a stale position, e.g. the last solution of a moving receiver */
+  private static final double POSITION_OFFSET_METERS = 300.0;
+  /**
+   * The lines of sight from a stale position turn the satellite velocities, of about 4 km/s, by up
+   * to 300 m over 20000 km
+   */
+  private static final double MAX_STALE_POSITION_VELOCITY_ERROR_MPS = 0.1;
+  private static final double SECONDS_PER_NANO = 1.0e-9;
+
+  private static SyntheticGnssLog sLog;
+
+  @BeforeClass
+  public static void generateLog() throws Exception {
+    sLog = new SyntheticGnssLog(EPOCH_COUNT, EAST_SPEED_MPS, 3.0, 48L);
+    for (SyntheticGnssLog.Epoch epoch : sLog.getEpochs()) {
+      for (LoggedGnssMeasurement measurement : epoch.measurements) {
+        measurement.pseudorangeRateMetersPerSecond += CLOCK_DRIFT_MPS;
+      }
+    }
+  }
+
+  @Test
+  public void velocityAndDriftMatchTheLeastSquare() throws Exception {
+    PseudorangePositionVelocityFromRealTimeEvents solver =
+        PseudorangePositionVelocityFromRealTimeEvents.createOffline();
+    List<PositionVelocitySolution> solutions = new ArrayList<>();
+    Map<Long, VelocitySolution> velocitySolutions = new HashMap<>();
+
+    replay(solver, solutions, velocitySolutions);
+
+    // the first epoch with enough satellites has no position
+    assertEquals(EPOCH_COUNT - 1, solutions.size());
+    assertEquals(EPOCH_COUNT, velocitySolutions.size());
+    for (PositionVelocitySolution solution : solutions) {
+      VelocitySolution velocitySolution =
+          velocitySolutions.get(solution.getArrivalTimeSinceGpsEpochNs());
+      assertArrayEquals(
+          solution.getVelocitySolutionEnuMps(),
+          velocitySolution.getVelocitySolutionEnuMps(),
+          MAX_VELOCITY_ERROR_MPS);
+      assertEquals(
+          CLOCK_DRIFT_MPS, velocitySolution.getReceiverClockDriftMps(), MAX_VELOCITY_ERROR_MPS);
+      assertEquals(sLog.getVisiblePrns().length, velocitySolution.getNumberOfSatellitesUsed());
+    }
+  }
+
+  @Test
+  public void velocityIsSolvedWithoutAPositionSolution() throws Exception {
+    PseudorangePositionVelocityFromRealTimeEvents solver =
+        PseudorangePositionVelocityFromRealTimeEvents.createOffline();
+    List<PositionVelocitySolution> solutions = new ArrayList<>();
+    Map<Long, VelocitySolution> velocitySolutions = new HashMap<>();
+
+    replay(solver, solutions, velocitySolutions);
+
+    // the first epoch is solved around the reference position of the log, about 140 m away
+    long firstGpsTimeNanos = sLog.getEpochs().get(0).gpsTimeNanos;
+    assertTrue(firstGpsTimeNanos < solutions.get(0).getArrivalTimeSinceGpsEpochNs());
+    assertTruthVelocity(velocitySolutions.get(firstGpsTimeNanos).getVelocitySolutionEnuMps());
+  }
+
+  @Test
+  public void velocityIsSolvedWithoutPseudoranges() throws Exception {
+    SyntheticGnssLog.Epoch epoch = sLog.getEpochs().get(EPOCH_COUNT / 2);
+    MeasurementEpoch measurementEpoch = createMeasurementEpoch(epoch);
+    double[] velocitySolutionEcef = new double[PseudorangeRateVelocitySolver.SOLUTION_SIZE];
+    double[] velocitySolutionEnuMps = new double[3];
+    double[] velocityUncertaintyEnuMps = new double[3];
+
+    assertTrue(
+        new PseudorangeRateVelocitySolver()
+            .solve(
+                sLog.getNavMessage(),
+                measurementEpoch,
+                getTimeOfWeekSeconds(epoch),
+                GpsTimeOperations.getGpsWeek(epoch.gpsTimeNanos),
+                offsetPosition(epoch.truthEcefMeters),
+                velocitySolutionEcef,
+                velocitySolutionEnuMps,
+                velocityUncertaintyEnuMps));
+
+    assertTruthVelocity(velocitySolutionEnuMps);
+    assertEquals(
+        CLOCK_DRIFT_MPS, velocitySolutionEcef[3], MAX_STALE_POSITION_VELOCITY_ERROR_MPS);
+    for (double uncertaintyMps : velocityUncertaintyEnuMps) {
+      assertTrue(uncertaintyMps > 0 && uncertaintyMps < 1.0);
+    }
+  }
+
+  @Test
+  public void velocityNeedsFourPseudorangeRates() throws Exception {
+    SyntheticGnssLog.Epoch epoch = sLog.getEpochs().get(0);
+    MeasurementEpoch measurementEpoch = createMeasurementEpoch(epoch);
+    int[] prns = sLog.getVisiblePrns();
+    for (int i = 3; i < prns.length; i++) {
+      measurementEpoch.pseudorangeRateMps[prns[i] - 1] = Double.NaN;
+    }
+    double[] velocitySolutionEnuMps = {1.0, 2.0, 3.0};
+
+    assertFalse(
+        new PseudorangeRateVelocitySolver()
+            .solve(
+                sLog.getNavMessage(),
+                measurementEpoch,
+                getTimeOfWeekSeconds(epoch),
+                GpsTimeOperations.getGpsWeek(epoch.gpsTimeNanos),
+                epoch.truthEcefMeters,
+                new double[PseudorangeRateVelocitySolver.SOLUTION_SIZE],
+                velocitySolutionEnuMps,
+                new double[3]));
+
+    assertArrayEquals(new double[] {1.0, 2.0, 3.0}, velocitySolutionEnuMps, 0.0);
+  }
+
+  @Test
+  public void propagatedSatelliteStatesMatchTheEphemeris() throws Exception {
+    // The satellite states are computed at the first epoch, then propagated up to 9 s later
+    PseudorangeRateVelocitySolver propagatingSolver = new PseudorangeRateVelocitySolver();
+    for (int k = 0; k < 10; k++) {
+      SyntheticGnssLog.Epoch epoch = sLog.getEpochs().get(k);
+      double[] propagatedSolutionEcef = solve(propagatingSolver, epoch);
+      double[] freshSolutionEcef = solve(new PseudorangeRateVelocitySolver(), epoch);
+      assertArrayEquals(
+          "Epoch " + k, freshSolutionEcef, propagatedSolutionEcef, MAX_PROPAGATION_ERROR_MPS);
+    }
+  }
+
+  private static void replay(
+      PseudorangePositionVelocityFromRealTimeEvents solver,
+      final List<PositionVelocitySolution> solutions,
+      final Map<Long, VelocitySolution> velocitySolutions)
+      throws Exception {
+    solver.addPositionVelocitySolutionListener(
+        new PositionVelocitySolutionListener() {
+          @Override
+          public void onPositionVelocitySolution(PositionVelocitySolution solution) {
+            if (solution.hasPosition()) {
+              solutions.add(solution);
+            }
+          }
+        });
+    solver.addVelocitySolutionListener(
+        new VelocitySolutionListener() {
+          @Override
+          public void onVelocitySolution(VelocitySolution solution) {
+            velocitySolutions.put(solution.getArrivalTimeSinceGpsEpochNs(), solution);
+          }
+        });
+    new GnssLogReplayEngine(solver).replay(new StringReader(sLog.toLog(0)));
+  }
+
+  /** Returns the velocity and clock drift of {@code epoch} solved around the offset truth */
+  private static double[] solve(PseudorangeRateVelocitySolver solver, SyntheticGnssLog.Epoch epoch)
+      throws Exception {
+    double[] velocitySolutionEcef = new double[PseudorangeRateVelocitySolver.SOLUTION_SIZE];
+    assertTrue(
+        solver.solve(
+            sLog.getNavMessage(),
+            createMeasurementEpoch(epoch),
+            getTimeOfWeekSeconds(epoch),
+            GpsTimeOperations.getGpsWeek(epoch.gpsTimeNanos),
+            offsetPosition(epoch.truthEcefMeters),
+            velocitySolutionEcef,
+            new double[3],
+            new double[3]));
+    return velocitySolutionEcef;
+  }
+
+  /** Returns the measurements of {@code epoch} with pseudorange rates but no pseudoranges */
+  private static MeasurementEpoch createMeasurementEpoch(SyntheticGnssLog.Epoch epoch) {
+    MeasurementEpoch measurementEpoch = new MeasurementEpoch();
+    measurementEpoch.clear();
+    for (LoggedGnssMeasurement measurement : epoch.measurements) {
+      measurementEpoch.setMeasurement(
+          measurement.svid,
+          GnssStatus.CONSTELLATION_GPS,
+          measurement.receivedSvTimeNanos,
+          measurement.cn0DbHz,
+          measurement.pseudorangeRateMetersPerSecond,
+          measurement.pseudorangeRateUncertaintyMetersPerSecond,
+          measurement.accumulatedDeltaRangeMeters,
+          measurement.accumulatedDeltaRangeUncertaintyMeters,
+          true /* validAccumulatedDeltaRange */,
+          true /* towDecoded */);
+      measurementEpoch.pseudorangeMeters[measurement.svid - 1] = Double.NaN;
+    }
+    return measurementEpoch;
+  }
+
+  private static double getTimeOfWeekSeconds(SyntheticGnssLog.Epoch epoch) {
+    return GpsTimeOperations.getNanosSinceGpsWeekStart(epoch.gpsTimeNanos) * SECONDS_PER_NANO;
+  }
+
+  private static double[] offsetPosition(double[] positionEcefMeters) {
+    return new double[] {
+      positionEcefMeters[0] + POSITION_OFFSET_METERS,
+      positionEcefMeters[1],
+      positionEcefMeters[2]
+    };
+  }
+
+  /** Asserts that a velocity solved around a stale position is the velocity of the receiver */
+  private static void assertTruthVelocity(double[] velocitySolutionEnuMps) {
+    assertArrayEquals(
+        new double[] {EAST_SPEED_MPS, 0.0, 0.0},
+        velocitySolutionEnuMps,
+        MAX_STALE_POSITION_VELOCITY_ERROR_MPS);
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RauchTungStriebelSmoother} on histories written as the {@link
+ * UserPositionVelocityExtendedKalmanFilter} writes them, against the smoother equations computed
+ * with matrix inverses.
+ */
+public class RauchTungStriebelSmootherTest {
+
+  private static final int STATE_SIZE = UserPositionVelocityExtendedKalmanFilter.STATE_SIZE;
+  private static final int CLOCK_BIAS_INDEX = 3;
+  private static final long FIRST_GPS_TIME_NANOS = 1330862400000000000L;
+  private static final long EPOCH_NANOS = 1000000000L;
+  private static final double DELTA_TIME_SECONDS = 1.0;
+  private static final double CLOCK_BIAS_VARIANCE_METERS_SQUARE = 1.0e6;
+  private static final double PROCESS_NOISE = 0.5;
+
+  @Test
+  public void smoothedStatesFollowTheSmootherEquations() throws Exception {
+    Random random = new Random(3);
+    double[][] filteredStates = new double[3][];
+    double[][][] filteredCovariances = new double[3][][];
+    double[][] predictedStates = new double[3][];
+    double[][][] predictedCovariances = new double[3][][];
+    try (KalmanFilterHistory history = new KalmanFilterHistory(3, false /* mapped */)) {
+      for (int index = 0; index < 3; index++) {
+        filteredStates[index] = createState(random);
+        filteredCovariances[index] = createCovariance(random);
+        if (index == 0) {
+          history.addInitialization(
+              FIRST_GPS_TIME_NANOS, filteredStates[index], filteredCovariances[index]);
+          continue;
+        }
+        // A prediction of the previous state, off by a few meters as after a measurement update
+        predictedStates[index] = predictState(filteredStates[index - 1]);
+        for (int i = 0; i < STATE_SIZE; i++) {
+          predictedStates[index][i] += random.nextGaussian();
+        }
+        predictedCovariances[index] = predictCovariance(filteredCovariances[index - 1]);
+        history.add(
+            FIRST_GPS_TIME_NANOS + index * EPOCH_NANOS,
+            predictedStates[index],
+            predictedCovariances[index],
+            filteredStates[index],
+            filteredCovariances[index]);
+      }
+
+      assertEquals(2, new RauchTungStriebelSmoother().smooth(history));
+
+      // Backward from the last epoch, whose smoothed state is its filtered state
+      RealVector nextSmoothedState = new ArrayRealVector(filteredStates[2]);
+      RealMatrix nextSmoothedCovariance = new Array2DRowRealMatrix(filteredCovariances[2]);
+      assertSmoothed(history, 2, nextSmoothedState, nextSmoothedCovariance);
+      for (int index = 1; index >= 0; index--) {
+        RealMatrix filteredCovariance = new Array2DRowRealMatrix(filteredCovariances[index]);
+        RealMatrix gain =
+            filteredCovariance
+                .multiply(createTransitionMatrix().transpose())
+                .multiply(
+                    new LUDecomposition(new Array2DRowRealMatrix(predictedCovariances[index + 1]))
+                        .getSolver()
+                        .getInverse());
+        RealVector smoothedState =
+            new ArrayRealVector(filteredStates[index])
+                .add(
+                    gain.operate(
+                        nextSmoothedState.subtract(
+                            new ArrayRealVector(predictedStates[index + 1]))));
+        RealMatrix smoothedCovariance =
+            filteredCovariance.add(
+                gain.multiply(
+                        nextSmoothedCovariance.subtract(
+                            new Array2DRowRealMatrix(predictedCovariances[index + 1])))
+                    .multiply(gain.transpose()));
+        assertSmoothed(history, index, smoothedState, smoothedCovariance);
+        nextSmoothedState = smoothedState;
+        nextSmoothedCovariance = smoothedCovariance;
+      }
+    }
+  }
+
+  @Test
+  public void statesOfAConsistentTrajectoryAreUnchanged() throws Exception {
+    int epochCount = 10;
+    double[] state = {-2700000.0, -4300000.0, 3850000.0, 500.0, 8.0, -5.0, 0.0, 0.3};
+    try (KalmanFilterHistory history = new KalmanFilterHistory(epochCount, true /* mapped */)) {
+      double[][] filteredStates = new double[epochCount][];
+      double[][][] filteredCovariances = new double[epochCount][][];
+      filteredStates[0] = state;
+      filteredCovariances[0] = createCovariance(new Random(4));
+      history.addInitialization(FIRST_GPS_TIME_NANOS, state, filteredCovariances[0]);
+      for (int index = 1; index < epochCount; index++) {
+        // Exactly as predicted, but for the clock bias which is acquired again every epoch, and
+        // better known than predicted
+        double[] predictedState = predictState(filteredStates[index - 1]);
+        double[][] predictedCovariance = predictCovariance(filteredCovariances[index - 1]);
+        filteredStates[index] = predictedState.clone();
+        filteredStates[index][CLOCK_BIAS_INDEX] = 500.0 + index;
+        filteredCovariances[index] = new double[STATE_SIZE][STATE_SIZE];
+        for (int i = 0; i < STATE_SIZE; i++) {
+          for (int k = 0; k < STATE_SIZE; k++) {
+            filteredCovariances[index][i][k] = 0.5 * predictedCovariance[i][k];
+          }
+        }
+        history.add(
+            FIRST_GPS_TIME_NANOS + index * EPOCH_NANOS,
+            predictedState,
+            predictedCovariance,
+            filteredStates[index],
+            filteredCovariances[index]);
+      }
+
+      assertEquals(epochCount - 1, new RauchTungStriebelSmoother().smooth(history));
+
+      double[] smoothedState = new double[STATE_SIZE];
+      double[][] smoothedCovariance = new double[STATE_SIZE][STATE_SIZE];
+      for (int index = 0; index < epochCount; index++) {
+        history.getFiltered(index, smoothedState, smoothedCovariance);
+        assertArrayEquals(filteredStates[index], smoothedState, 1.0e-6);
+        // The measurements after an epoch can only make its state better known
+        for (int i = 0; i < STATE_SIZE; i++) {
+          assertTrue(smoothedCovariance[i][i] <= filteredCovariances[index][i][i] + 1.0e-9);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void intervalsAreSmoothedIndependently() throws Exception {
+    Random random = new Random(5);
+    int epochCount = 6;
+    int initialization = 3;
+    double[][] filteredStates = new double[epochCount][];
+    try (KalmanFilterHistory history = new KalmanFilterHistory(epochCount, false /* mapped */)) {
+      for (int index = 0; index < epochCount; index++) {
+        filteredStates[index] = createState(random);
+        double[][] covariance = createCovariance(random);
+        long gpsTimeNanos = FIRST_GPS_TIME_NANOS + index * EPOCH_NANOS;
+        if (index == 0 || index == initialization) {
+          history.addInitialization(gpsTimeNanos, filteredStates[index], covariance);
+        } else {
+          double[] predictedState = predictState(filteredStates[index - 1]);
+          predictedState[0] += 10.0;
+          history.add(gpsTimeNanos, predictedState, predictCovariance(covariance),
+              filteredStates[index], covariance);
+        }
+      }
+
+      // All but the last epoch of each interval
+      assertEquals(epochCount - 2, new RauchTungStriebelSmoother().smooth(history));
+
+      double[] state = new double[STATE_SIZE];
+      double[][] covariance = new double[STATE_SIZE][STATE_SIZE];
+      for (int index = 0; index < epochCount; index++) {
+        history.getFiltered(index, state, covariance);
+        boolean lastOfInterval = index == initialization - 1 || index == epochCount - 1;
+        assertEquals(
+            "Epoch " + index, lastOfInterval, filteredStates[index][0] == state[0]);
+      }
+    }
+  }
+
+  private static void assertSmoothed(
+      KalmanFilterHistory history,
+      int index,
+      RealVector expectedState,
+      RealMatrix expectedCovariance) {
+    double[] state = new double[STATE_SIZE];
+    double[][] covariance = new double[STATE_SIZE][STATE_SIZE];
+    history.getFiltered(index, state, covariance);
+    assertArrayEquals(expectedState.toArray(), state, 1.0e-6);
+    for (int i = 0; i < STATE_SIZE; i++) {
+      assertArrayEquals(expectedCovariance.getRow(i), covariance[i], 1.0e-6);
+    }
+  }
+
+  private static RealMatrix createTransitionMatrix() {
+    double[][] transitionMatrix = new double[STATE_SIZE][STATE_SIZE];
+    UserPositionVelocityExtendedKalmanFilter.fillTransitionMatrix(
+        DELTA_TIME_SECONDS, transitionMatrix);
+    return new Array2DRowRealMatrix(transitionMatrix);
+  }
+
+  /** Propagates a state over an epoch, with no clock bias as the filter does */
+  private static double[] predictState(double[] state) {
+    return createTransitionMatrix().operate(state);
+  }
+
+  /**
+   * Propagates a covariance over an epoch with some process noise, with the clock bias decorrelated
+   * from the other states as the filter does
+   */
+  private static double[][] predictCovariance(double[][] covariance) {
+    RealMatrix transitionMatrix = createTransitionMatrix();
+    double[][] predictedCovariance =
+        transitionMatrix
+            .multiply(new Array2DRowRealMatrix(covariance))
+            .multiply(transitionMatrix.transpose())
+            .getData();
+    for (int i = 0; i < STATE_SIZE; i++) {
+      predictedCovariance[i][i] += PROCESS_NOISE;
+    }
+    predictedCovariance[CLOCK_BIAS_INDEX][CLOCK_BIAS_INDEX] = CLOCK_BIAS_VARIANCE_METERS_SQUARE;
+    return predictedCovariance;
+  }
+
+  private static double[] createState(Random random) {
+    double[] state = new double[STATE_SIZE];
+    for (int i = 0; i < STATE_SIZE; i++) {
+      state[i] = 100.0 * random.nextGaussian();
+    }
+    return state;
+  }
+
+  /** Returns a random symmetric positive definite matrix */
+  private static double[][] createCovariance(Random random) {
+    RealMatrix factor = new Array2DRowRealMatrix(STATE_SIZE, STATE_SIZE);
+    for (int i = 0; i < STATE_SIZE; i++) {
+      for (int k = 0; k < STATE_SIZE; k++) {
+        factor.setEntry(i, k, random.nextGaussian());
+      }
+    }
+    RealMatrix covariance = factor.multiply(factor.transpose());
+    for (int i = 0; i < STATE_SIZE; i++) {
+      covariance.addToEntry(i, i, 1.0);
+    }
+    return covariance.getData();
+  }
+}
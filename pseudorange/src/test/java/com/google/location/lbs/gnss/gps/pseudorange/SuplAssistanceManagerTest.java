@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+import android.location.cts.nano.Ephemeris.IonosphericModelProto;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SuplAssistanceManager} against a fake SUPL server on the loopback interface,
+ * which reads the framed SUPL requests and either answers them with a message that carries no
+ * assistance data or never answers.
+ *
+ * <p>The requests run on the calling thread, so that the tests see their outcome when {@link
+ * SuplAssistanceManager#requestRefreshIfNeeded} returns, but for the stalled server whose
+ * requests must not block the caller.
+ */
+public class SuplAssistanceManagerTest {
+
+  private static final int LAT_E7 = 374220000;
+  private static final int LNG_E7 = -1220840000;
+  /** Two degrees of latitude, well beyond the distance at which the data is requested again */
+  private static final int FAR_LAT_E7 = LAT_E7 + 20000000;
+  /** The connection with a timeout, then the connection of the SUPL client */
+  private static final int CONNECTIONS_PER_REQUEST = 2;
+  private static final long AWAIT_TIMEOUT_SECONDS = 5;
+  /** Longer than the initial backoff of 2 s */
+  private static final long BACKOFF_ELAPSED_MILLIS = TimeUnit.SECONDS.toMillis(3);
+  private static final long MAX_REQUEST_CALL_MILLIS = 1000;
+  private static final int REQUEST_CALL_COUNT = 100;
+
+  private FakeSuplServer mServer;
+  private ExecutorService mBackgroundExecutor;
+
+  @After
+  public void stopServer() throws IOException {
+    if (mServer != null) {
+      mServer.close();
+    }
+    if (mBackgroundExecutor != null) {
+      mBackgroundExecutor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void cachedNavigationMessageIsPublishedWithoutContactingTheServer() throws Exception {
+    mServer = new FakeSuplServer(true /* answers */);
+    SuplNavMessageCache cache = new SuplNavMessageCache();
+    GpsNavMessageProto navMessage = createCurrentNavMessage();
+    cache.put(LAT_E7, LNG_E7, navMessage, System.currentTimeMillis());
+    CountingExecutor executor = new CountingExecutor(Runnable::run);
+    SuplAssistanceManager manager = createManager(cache, executor);
+
+    for (int i = 0; i < REQUEST_CALL_COUNT; i++) {
+      manager.requestRefreshIfNeeded(LAT_E7, LNG_E7);
+    }
+
+    assertSame(navMessage, manager.getLatestNavMessage());
+    assertEquals(1, executor.getTaskCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(0, mServer.getConnectionCount());
+  }
+
+  @Test
+  public void movingFarAwayRequestsTheServerAgain() throws Exception {
+    mServer = new FakeSuplServer(true /* answers */);
+    SuplNavMessageCache cache = new SuplNavMessageCache();
+    GpsNavMessageProto navMessage = createCurrentNavMessage();
+    cache.put(LAT_E7, LNG_E7, navMessage, System.currentTimeMillis());
+    CountingExecutor executor = new CountingExecutor(Runnable::run);
+    SuplAssistanceManager manager = createManager(cache, executor);
+    manager.requestRefreshIfNeeded(LAT_E7, LNG_E7);
+
+    manager.requestRefreshIfNeeded(FAR_LAT_E7, LNG_E7);
+
+    // The failed request keeps the previous data
+    assertSame(navMessage, manager.getLatestNavMessage());
+    assertEquals(2, executor.getTaskCount());
+    assertEquals(1, cache.getMissCount());
+    mServer.awaitConnectionCount(CONNECTIONS_PER_REQUEST);
+  }
+
+  @Test
+  public void failedRequestIsRetriedAfterTheBackoff() throws Exception {
+    mServer = new FakeSuplServer(true /* answers */);
+    CountingExecutor executor = new CountingExecutor(Runnable::run);
+    SuplAssistanceManager manager = createManager(new SuplNavMessageCache(), executor);
+    long nowMillis = System.currentTimeMillis();
+
+    for (int i = 0; i < REQUEST_CALL_COUNT; i++) {
+      manager.requestRefreshIfNeeded(LAT_E7, LNG_E7, nowMillis);
+    }
+    assertEquals(1, executor.getTaskCount());
+    assertNull(manager.getLatestNavMessage());
+
+    manager.requestRefreshIfNeeded(LAT_E7, LNG_E7, nowMillis + BACKOFF_ELAPSED_MILLIS);
+    assertEquals(2, executor.getTaskCount());
+    assertNull(manager.getLatestNavMessage());
+    mServer.awaitConnectionCount(2 * CONNECTIONS_PER_REQUEST);
+  }
+
+  @Test
+  public void requestsNeverBlockOnAStalledServer() throws Exception {
+    mServer = new FakeSuplServer(false /* answers */);
+    mBackgroundExecutor = Executors.newSingleThreadExecutor();
+    CountingExecutor executor = new CountingExecutor(mBackgroundExecutor);
+    SuplAssistanceManager manager = createManager(new SuplNavMessageCache(), executor);
+
+    long startMillis = System.currentTimeMillis();
+    for (int i = 0; i < REQUEST_CALL_COUNT; i++) {
+      manager.requestRefreshIfNeeded(LAT_E7, LNG_E7);
+    }
+    long elapsedMillis = System.currentTimeMillis() - startMillis;
+    mServer.awaitConnectionCount(CONNECTIONS_PER_REQUEST);
+    // The request in flight is not repeated
+    for (int i = 0; i < REQUEST_CALL_COUNT; i++) {
+      manager.requestRefreshIfNeeded(LAT_E7, LNG_E7);
+    }
+
+    assertTrue(elapsedMillis < MAX_REQUEST_CALL_MILLIS);
+    assertEquals(1, executor.getTaskCount());
+    assertNull(manager.getLatestNavMessage());
+  }
+
+  private SuplAssistanceManager createManager(SuplNavMessageCache cache, Executor executor) {
+    return new SuplAssistanceManager("localhost", mServer.getPort(), cache, executor);
+  }
+
+  /** Returns a navigation message whose ephemeris is valid for the next hours */
+  private static GpsNavMessageProto createCurrentNavMessage() {
+    long gpsNanos = GpsTimeOperations.utcMillisToGpsNanos(System.currentTimeMillis());
+    GpsEphemerisProto ephemeris = new GpsEphemerisProto();
+    ephemeris.prn = 1;
+    ephemeris.week = GpsTimeOperations.getGpsWeek(gpsNanos);
+    ephemeris.toe = GpsTimeOperations.getSecondsSinceGpsWeekStart(gpsNanos);
+    GpsNavMessageProto navMessage = new GpsNavMessageProto();
+    navMessage.ephemerids = new GpsEphemerisProto[] {ephemeris};
+    navMessage.iono = new IonosphericModelProto();
+    return navMessage;
+  }
+
+  /** Runs the tasks on another executor and counts them */
+  private static class CountingExecutor implements Executor {
+    private final Executor mExecutor;
+    private final AtomicInteger mTaskCount = new AtomicInteger();
+
+    CountingExecutor(Executor executor) {
+      mExecutor = executor;
+    }
+
+    int getTaskCount() {
+      return mTaskCount.get();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+      mTaskCount.incrementAndGet();
+      mExecutor.execute(task);
+    }
+  }
+
+  /**
+   * Accepts the SUPL connections on a free port of the loopback interface, and reads the SUPL
+   * messages sent on each, framed by their length on two bytes. A server that answers sends every
+   * message back, which the client reads as a message other than the SUPL RESPONSE it waits for,
+   * a server that does not answer keeps the connection open.
+   */
+  private static class FakeSuplServer implements Runnable {
+    private final ServerSocket mServerSocket;
+    private final boolean mAnswers;
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final Semaphore mConnections = new Semaphore(0);
+    private final List<Socket> mOpenSockets = new ArrayList<>();
+    private final CountDownLatch mClosed = new CountDownLatch(1);
+
+    FakeSuplServer(boolean answers) throws IOException {
+      mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+      mAnswers = answers;
+      Thread thread = new Thread(this, "Fake SUPL server");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    int getPort() {
+      return mServerSocket.getLocalPort();
+    }
+
+    int getConnectionCount() {
+      return mConnectionCount.get();
+    }
+
+    void awaitConnectionCount(int connectionCount) throws InterruptedException {
+      assertTrue(
+          "Expected " + connectionCount + " connections, got " + mConnectionCount.get(),
+          mConnections.tryAcquire(connectionCount, AWAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Override
+    public void run() {
+      while (!mServerSocket.isClosed()) {
+        try {
+          final Socket socket = mServerSocket.accept();
+          synchronized (mOpenSockets) {
+            mOpenSockets.add(socket);
+          }
+          mConnectionCount.incrementAndGet();
+          mConnections.release();
+          Thread thread =
+              new Thread("Fake SUPL connection") {
+                @Override
+                public void run() {
+                  exchange(socket);
+                }
+              };
+          thread.setDaemon(true);
+          thread.start();
+        } catch (IOException e) {
+          // The server socket was closed
+        }
+      }
+    }
+
+    /** Reads the SUPL messages of a connection and answers them until it is closed. */
+    private void exchange(Socket socket) {
+      try {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        OutputStream output = socket.getOutputStream();
+        while (true) {
+          int length = input.readUnsignedShort();
+          byte[] message = new byte[length];
+          message[0] = (byte) (length >> 8);
+          message[1] = (byte) length;
+          input.readFully(message, 2, length - 2);
+          if (!mAnswers) {
+            mClosed.await();
+            return;
+          }
+          output.write(message);
+          output.flush();
+        }
+      } catch (EOFException e) {
+        // The client closed the connection
+      } catch (IOException | InterruptedException e) {
+        // The server was closed
+      }
+    }
+
+    void close() throws IOException {
+      mClosed.countDown();
+      mServerSocket.close();
+      synchronized (mOpenSockets) {
+        for (Socket socket : mOpenSockets) {
+          socket.close();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+import android.location.cts.nano.Ephemeris.IonosphericModelProto;
+import com.google.protobuf.nano.MessageNano;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link SuplNavMessageCache}: the persistence of the entries to the cache file, their
+ * expiry with the curve fit interval of the ephemerides, and the recovery from corrupt files.
+ */
+public class SuplNavMessageCacheTest {
+
+  private static final int LAT_E7 = 374220000;
+  private static final int LNG_E7 = -1220840000;
+  private static final long TIME_BUCKET_MILLIS = TimeUnit.HOURS.toMillis(2);
+  /** Ten minutes into a time bucket in November 2023 */
+  private static final long RECEIVED_TIME_MILLIS =
+      1700000000000L / TIME_BUCKET_MILLIS * TIME_BUCKET_MILLIS + TimeUnit.MINUTES.toMillis(10);
+  /** Half of the default curve fit interval of 4 hours after the time of ephemeris */
+  private static final long EXPIRY_TIME_MILLIS = RECEIVED_TIME_MILLIS + TimeUnit.HOURS.toMillis(2);
+  private static final int FILE_MAGIC = 0x53555043;
+  private static final int FILE_VERSION = 1;
+
+  @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+  private File mCacheFile;
+
+  @Before
+  public void createCacheFile() {
+    mCacheFile = new File(mTemporaryFolder.getRoot(), "supl_cache");
+  }
+
+  @Test
+  public void entriesAreReloadedFromTheCacheFile() {
+    GpsNavMessageProto navMessage = createNavMessage(RECEIVED_TIME_MILLIS);
+    new SuplNavMessageCache(mCacheFile).put(LAT_E7, LNG_E7, navMessage, RECEIVED_TIME_MILLIS);
+    assertTrue(mCacheFile.exists());
+
+    SuplNavMessageCache cache = new SuplNavMessageCache(mCacheFile);
+    SuplNavMessageCache.CachedNavMessage cached =
+        cache.get(LAT_E7, LNG_E7, RECEIVED_TIME_MILLIS + TimeUnit.MINUTES.toMillis(1));
+
+    assertNotNull(cached);
+    assertTrue(MessageNano.messageNanoEquals(navMessage, cached.navMessageProto));
+    assertEquals(RECEIVED_TIME_MILLIS, cached.receivedTimeMillis);
+    assertEquals(EXPIRY_TIME_MILLIS, cached.expiryTimeMillis);
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void expiredEntriesAreNotReturned() {
+    SuplNavMessageCache cache = new SuplNavMessageCache(mCacheFile);
+    cache.put(LAT_E7, LNG_E7, createNavMessage(RECEIVED_TIME_MILLIS), RECEIVED_TIME_MILLIS);
+
+    assertNotNull(cache.get(LAT_E7, LNG_E7, EXPIRY_TIME_MILLIS - 1));
+    assertNull(cache.get(LAT_E7, LNG_E7, EXPIRY_TIME_MILLIS));
+    assertEquals(1, cache.getStaleCount());
+    // the expired entry was dropped
+    assertNull(cache.get(LAT_E7, LNG_E7, EXPIRY_TIME_MILLIS));
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void expiredEntriesAreNotWrittenToTheCacheFile() {
+    SuplNavMessageCache cache = new SuplNavMessageCache(mCacheFile);
+    cache.put(LAT_E7, LNG_E7, createNavMessage(RECEIVED_TIME_MILLIS), RECEIVED_TIME_MILLIS);
+    long laterMillis = EXPIRY_TIME_MILLIS + TimeUnit.MINUTES.toMillis(10);
+    int farLatE7 = LAT_E7 + 20000000;
+    cache.put(farLatE7, LNG_E7, createNavMessage(laterMillis), laterMillis);
+
+    SuplNavMessageCache reloaded = new SuplNavMessageCache(mCacheFile);
+    assertNull(reloaded.get(LAT_E7, LNG_E7, RECEIVED_TIME_MILLIS));
+    assertNotNull(reloaded.get(farLatE7, LNG_E7, laterMillis));
+  }
+
+  @Test
+  public void truncatedCacheFileIsAMiss() throws IOException {
+    new SuplNavMessageCache(mCacheFile)
+        .put(LAT_E7, LNG_E7, createNavMessage(RECEIVED_TIME_MILLIS), RECEIVED_TIME_MILLIS);
+    byte[] bytes = Files.readAllBytes(mCacheFile.toPath());
+    writeCacheFile(Arrays.copyOf(bytes, bytes.length - 5));
+
+    assertCacheFileDiscarded();
+  }
+
+  @Test
+  public void cacheFileWithANegativeNumberOfEntriesIsAMiss() throws IOException {
+    writeCacheFile(createHeader(-1));
+
+    assertCacheFileDiscarded();
+  }
+
+  @Test
+  public void cacheFileWithAHugeNumberOfEntriesIsAMiss() throws IOException {
+    writeCacheFile(createHeader(Integer.MAX_VALUE));
+
+    assertCacheFileDiscarded();
+  }
+
+  @Test
+  public void cacheFileWithInvalidEntryLengthsIsAMiss() throws IOException {
+    for (int length : new int[] {-1, Integer.MAX_VALUE}) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream outputStream = new DataOutputStream(bytes);
+      outputStream.write(createHeader(1));
+      outputStream.writeLong(0L);
+      outputStream.writeLong(RECEIVED_TIME_MILLIS);
+      outputStream.writeLong(EXPIRY_TIME_MILLIS);
+      outputStream.writeInt(length);
+      outputStream.write(new byte[16]);
+      outputStream.close();
+      writeCacheFile(bytes.toByteArray());
+
+      assertCacheFileDiscarded();
+    }
+  }
+
+  @Test
+  public void cacheFileWithAnUnparsableMessageIsAMiss() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream outputStream = new DataOutputStream(bytes);
+    outputStream.write(createHeader(1));
+    outputStream.writeLong(0L);
+    outputStream.writeLong(RECEIVED_TIME_MILLIS);
+    outputStream.writeLong(EXPIRY_TIME_MILLIS);
+    byte[] garbage = new byte[32];
+    Arrays.fill(garbage, (byte) 0xFF);
+    outputStream.writeInt(garbage.length);
+    outputStream.write(garbage);
+    outputStream.close();
+    writeCacheFile(bytes.toByteArray());
+
+    assertCacheFileDiscarded();
+  }
+
+  /**
+   * Asserts that a lookup in a cache reading the corrupt file is a miss, that the file is deleted
+   * and that the next update writes a valid file again.
+   */
+  private void assertCacheFileDiscarded() {
+    SuplNavMessageCache cache = new SuplNavMessageCache(mCacheFile);
+    assertNull(cache.get(LAT_E7, LNG_E7, RECEIVED_TIME_MILLIS));
+    assertEquals(1, cache.getMissCount());
+    assertFalse(mCacheFile.exists());
+
+    cache.put(LAT_E7, LNG_E7, createNavMessage(RECEIVED_TIME_MILLIS), RECEIVED_TIME_MILLIS);
+    assertNotNull(new SuplNavMessageCache(mCacheFile).get(LAT_E7, LNG_E7, RECEIVED_TIME_MILLIS));
+    assertTrue(mCacheFile.delete());
+  }
+
+  private static byte[] createHeader(int numberOfEntries) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream outputStream = new DataOutputStream(bytes);
+    outputStream.writeInt(FILE_MAGIC);
+    outputStream.writeInt(FILE_VERSION);
+    outputStream.writeInt(numberOfEntries);
+    outputStream.close();
+    return bytes.toByteArray();
+  }
+
+  private void writeCacheFile(byte[] bytes) throws IOException {
+    try (FileOutputStream outputStream = new FileOutputStream(mCacheFile)) {
+      outputStream.write(bytes);
+    }
+  }
+
+  /** Returns a navigation message whose time of ephemeris is {@code toeUtcMillis} */
+  private static GpsNavMessageProto createNavMessage(long toeUtcMillis) {
+    long gpsNanos = GpsTimeOperations.utcMillisToGpsNanos(toeUtcMillis);
+    GpsEphemerisProto ephemeris = new GpsEphemerisProto();
+    ephemeris.prn = 1;
+    ephemeris.week = GpsTimeOperations.getGpsWeek(gpsNanos);
+    ephemeris.toe = GpsTimeOperations.getSecondsSinceGpsWeekStart(gpsNanos);
+    GpsNavMessageProto navMessage = new GpsNavMessageProto();
+    navMessage.ephemerids = new GpsEphemerisProto[] {ephemeris};
+    navMessage.iono = new IonosphericModelProto();
+    return navMessage;
+  }
+}
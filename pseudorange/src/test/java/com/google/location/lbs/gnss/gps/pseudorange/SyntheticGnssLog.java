@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import android.location.GnssStatus;
+import android.location.cts.nano.Ephemeris.GpsEphemerisProto;
+import android.location.cts.nano.Ephemeris.GpsNavMessageProto;
+import android.location.cts.nano.Ephemeris.IonosphericModelProto;
+import com.google.location.lbs.gnss.gps.pseudorange.Ecef2LlaConverter.GeodeticLlaValues;
+import com.google.location.lbs.gnss.gps.pseudorange.SatellitePositionCalculator.PositionAndVelocity;
+import com.google.location.lbs.gnss.gps.pseudorange.UserPositionVelocityWeightedLeastSquare.SatellitesPositionPseudorangesResidualAndCovarianceMatrix;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the GnssLogger text log of a receiver moving east at a constant speed under a synthetic
+ * GPS constellation, one epoch per second, for the tests of the replay and of the solvers.
+ *
+ * <p>The measurements are computed with the satellite, clock and atmospheric models of {@link
+ * UserPositionVelocityWeightedLeastSquare} from the ephemerides decoded out of the {@code Nav}
+ * records of the log, so that the solvers see the same orbits whether they come from the log or
+ * from an injected navigation message. The pseudoranges have a white noise, the accumulated delta
+ * ranges and the pseudorange rates are noise free. The epochs can be altered before the log is
+ * written, e.g. to add faults.
+ */
+final class SyntheticGnssLog {
+  /** Epoch of a log without navigation messages, see {@link #toLog(int)} */
+  static final int NO_NAVIGATION_MESSAGES = -1;
+  /** The {@code GnssMeasurement} code lock and time of week decoded states */
+  static final int STATE_CODE_LOCK_TOW_DECODED = 1 | 8;
+  /** The {@code GnssMeasurement} valid accumulated delta range state */
+  static final int ADR_STATE_VALID = 1;
+  /** The {@code GnssMeasurement} reset accumulated delta range state */
+  static final int ADR_STATE_RESET = 2;
+
+  // Within the current GPS week rollover cycle, which the navigation message decoding assumes
+  private static final int GPS_WEEK = 2200;
+  private static final double START_TIME_OF_WEEK_SECONDS = 302400.0;
+  private static final double LATITUDE_DEGREES = 37.422;
+  private static final double LONGITUDE_DEGREES = -122.084;
+  private static final double ALTITUDE_METERS = 10.0;
+  /** Offset of the reference position of the {@code Fix} record, about 100 m */
+  private static final double REFERENCE_OFFSET_DEGREES = 1.0e-3;
+  private static final double ELEVATION_MASK_RADIANS = Math.toRadians(15.0);
+  private static final double CN0_DB_HZ = 40.0;
+  private static final int ORBITAL_PLANES = 6;
+  private static final int SATELLITES_PER_PLANE = 5;
+  private static final int LEAP_SECONDS = 18;
+  private static final double SPEED_OF_LIGHT_MPS = 299792458.0;
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  private static final long FIRST_HARDWARE_CLOCK_NANOS = 10 * NANOS_PER_SECOND;
+  private static final long FIRST_ELAPSED_REALTIME_MILLIS = 5000;
+
+  /** The records of an epoch, which can be modified before the log is written. */
+  static final class Epoch {
+    final LoggedGnssClock clock = new LoggedGnssClock();
+    final List<LoggedGnssMeasurement> measurements = new ArrayList<>();
+    final long gpsTimeNanos;
+    final double[] truthEcefMeters;
+
+    Epoch(long gpsTimeNanos, double[] truthEcefMeters) {
+      this.gpsTimeNanos = gpsTimeNanos;
+      this.truthEcefMeters = truthEcefMeters;
+    }
+
+    /** Returns the measurement of satellite {@code prn}, or null if it is not tracked */
+    LoggedGnssMeasurement getMeasurement(int prn) {
+      for (LoggedGnssMeasurement measurement : measurements) {
+        if (measurement.svid == prn) {
+          return measurement;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final List<Epoch> mEpochs = new ArrayList<>();
+  private final List<GpsEphemerisProto> mVisibleEphemerides = new ArrayList<>();
+  private final IonosphericModelProto mIono = new IonosphericModelProto();
+  private final GpsNavMessageProto mNavMessage;
+  private final double[] mStartEcefMeters;
+  private final double[] mEastUnitVector;
+  private final double mEastSpeedMps;
+  private final UserPositionVelocityWeightedLeastSquare mModel =
+      new UserPositionVelocityWeightedLeastSquare(new PseudorangeNoSmoothingSmoother());
+  private final MeasurementEpoch mModelEpoch = new MeasurementEpoch();
+
+  /**
+   * Generates {@code epochCount} epochs.
+   *
+   * @param eastSpeedMps Speed of the receiver to the east
+   * @param pseudorangeSigmaMeters Standard deviation of the pseudorange noise
+   * @param seed Seed of the satellite clocks and of the noise
+   */
+  SyntheticGnssLog(int epochCount, double eastSpeedMps, double pseudorangeSigmaMeters, long seed)
+      throws Exception {
+    Random random = new Random(seed);
+    mEastSpeedMps = eastSpeedMps;
+    mStartEcefMeters =
+        Lla2EcefConverter.convertFromLlaToEcefMeters(
+            new GeodeticLlaValues(
+                Math.toRadians(LATITUDE_DEGREES),
+                Math.toRadians(LONGITUDE_DEGREES),
+                ALTITUDE_METERS));
+    double longitudeRadians = Math.toRadians(LONGITUDE_DEGREES);
+    mEastUnitVector = new double[] {-Math.sin(longitudeRadians), Math.cos(longitudeRadians), 0.0};
+    mIono.alpha =
+        new double[] {12 * Math.pow(2, -30), Math.pow(2, -27), -4 * Math.pow(2, -24), 0.0};
+    mIono.beta = new double[] {45 * Math.pow(2, 11), 0.0, -3 * Math.pow(2, 16), Math.pow(2, 16)};
+    mNavMessage = decodeNavigationMessages(createConstellation(random));
+    for (GpsEphemerisProto ephemeris : mNavMessage.ephemerids) {
+      if (getElevationRadians(ephemeris) > ELEVATION_MASK_RADIANS) {
+        mVisibleEphemerides.add(ephemeris);
+      }
+    }
+
+    double[] firstRangesMeters = new double[mVisibleEphemerides.size()];
+    for (int k = 0; k < epochCount; k++) {
+      double timeOfWeekSeconds = START_TIME_OF_WEEK_SECONDS + k;
+      long gpsTimeNanos =
+          GPS_WEEK * GpsTimeOperations.NANOS_IN_WEEK
+              + (long) timeOfWeekSeconds * NANOS_PER_SECOND;
+      Epoch epoch = new Epoch(gpsTimeNanos, getReceiverEcefMeters(timeOfWeekSeconds));
+      epoch.clock.timeNanos = FIRST_HARDWARE_CLOCK_NANOS + k * NANOS_PER_SECOND;
+      epoch.clock.fullBiasNanos = epoch.clock.timeNanos - gpsTimeNanos;
+      epoch.clock.hasLeapSecond = true;
+      epoch.clock.leapSecond = LEAP_SECONDS;
+      for (int i = 0; i < mVisibleEphemerides.size(); i++) {
+        GpsEphemerisProto ephemeris = mVisibleEphemerides.get(i);
+        double rangeMeters = computePseudorangeMeters(ephemeris, timeOfWeekSeconds);
+        if (k == 0) {
+          firstRangesMeters[i] = rangeMeters;
+        }
+        double rangeRateMps =
+            computePseudorangeMeters(ephemeris, timeOfWeekSeconds + 0.5)
+                - computePseudorangeMeters(ephemeris, timeOfWeekSeconds - 0.5);
+        double noisyRangeMeters = rangeMeters + pseudorangeSigmaMeters * random.nextGaussian();
+
+        LoggedGnssMeasurement measurement = new LoggedGnssMeasurement();
+        measurement.elapsedRealtimeMillis = FIRST_ELAPSED_REALTIME_MILLIS + 1000L * k;
+        measurement.svid = ephemeris.prn;
+        measurement.constellationType = GnssStatus.CONSTELLATION_GPS;
+        measurement.state = STATE_CODE_LOCK_TOW_DECODED;
+        measurement.receivedSvTimeNanos =
+            (long) timeOfWeekSeconds * NANOS_PER_SECOND
+                - Math.round(noisyRangeMeters / SPEED_OF_LIGHT_MPS * NANOS_PER_SECOND);
+        measurement.receivedSvTimeUncertaintyNanos = 10;
+        measurement.cn0DbHz = CN0_DB_HZ;
+        measurement.pseudorangeRateMetersPerSecond = rangeRateMps;
+        measurement.pseudorangeRateUncertaintyMetersPerSecond = 0.1;
+        measurement.accumulatedDeltaRangeState = ADR_STATE_VALID;
+        measurement.accumulatedDeltaRangeMeters = rangeMeters - firstRangesMeters[i];
+        measurement.accumulatedDeltaRangeUncertaintyMeters = 0.01;
+        epoch.measurements.add(measurement);
+      }
+      mEpochs.add(epoch);
+    }
+  }
+
+  /** Returns the navigation message decoded from the {@code Nav} records of the log */
+  GpsNavMessageProto getNavMessage() {
+    return mNavMessage;
+  }
+
+  /** Returns the epochs of the log, in order, which can be modified or removed */
+  List<Epoch> getEpochs() {
+    return mEpochs;
+  }
+
+  /** Returns the PRNs of the satellites tracked in the epochs, in increasing order */
+  int[] getVisiblePrns() {
+    int[] prns = new int[mVisibleEphemerides.size()];
+    for (int i = 0; i < prns.length; i++) {
+      prns[i] = mVisibleEphemerides.get(i).prn;
+    }
+    return prns;
+  }
+
+  /**
+   * Returns the distance between the position of {@code solution} and the position of the receiver
+   * at its time, or NaN if the log has no epoch at that time.
+   */
+  double getPositionErrorMeters(PositionVelocitySolution solution) {
+    for (Epoch epoch : mEpochs) {
+      if (epoch.gpsTimeNanos == solution.getArrivalTimeSinceGpsEpochNs()) {
+        double[] positionEcefMeters =
+            Lla2EcefConverter.convertFromLlaToEcefMeters(
+                new GeodeticLlaValues(
+                    Math.toRadians(solution.getLatitudeDegrees()),
+                    Math.toRadians(solution.getLongitudeDegrees()),
+                    solution.getAltitudeMeters()));
+        return distanceMeters(positionEcefMeters, epoch.truthEcefMeters);
+      }
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * Returns the text of the log: a network {@code Fix} about 100 m from the receiver, then the
+   * epochs, with the {@code Nav} records of the visible satellites written before epoch {@code
+   * navigationMessageEpoch}, if it is not {@link #NO_NAVIGATION_MESSAGES}.
+   */
+  String toLog(int navigationMessageEpoch) throws IOException {
+    StringWriter writer = new StringWriter();
+    GnssLogCsvFormat format = new GnssLogCsvFormat();
+    format.formatFixRecord(
+        "network",
+        LATITUDE_DEGREES + REFERENCE_OFFSET_DEGREES,
+        LONGITUDE_DEGREES + REFERENCE_OFFSET_DEGREES,
+        ALTITUDE_METERS,
+        0.0f,
+        100.0f,
+        GpsTimeOperations.gpsNanosToUtcMillis(mEpochs.get(0).gpsTimeNanos));
+    writeLine(format, writer);
+    for (int k = 0; k < mEpochs.size(); k++) {
+      if (k == navigationMessageEpoch) {
+        writeNavigationMessages(format, writer);
+      }
+      Epoch epoch = mEpochs.get(k);
+      for (LoggedGnssMeasurement measurement : epoch.measurements) {
+        format.formatRawRecord(epoch.clock, measurement);
+        writeLine(format, writer);
+      }
+    }
+    return writer.toString();
+  }
+
+  private void writeNavigationMessages(GnssLogCsvFormat format, Writer writer)
+      throws IOException {
+    for (GpsEphemerisProto ephemeris : mVisibleEphemerides) {
+      byte[][] subframes = {
+        GpsNavigationMessageEncoder.encodeFirstSubframe(ephemeris),
+        GpsNavigationMessageEncoder.encodeSecondSubframe(ephemeris),
+        GpsNavigationMessageEncoder.encodeThirdSubframe(ephemeris),
+        GpsNavigationMessageEncoder.encodeUtcParametersPage(
+            mIono, LEAP_SECONDS, GPS_WEEK, 1, LEAP_SECONDS)
+      };
+      for (int i = 0; i < subframes.length; i++) {
+        format.formatNavRecord(
+            ephemeris.prn,
+            GpsNavigationMessageEncoder.GPS_L1CA_TYPE,
+            1 /* status */,
+            1 /* frame */,
+            i + 1,
+            subframes[i],
+            subframes[i].length);
+        writeLine(format, writer);
+      }
+    }
+  }
+
+  private static void writeLine(GnssLogCsvFormat format, Writer writer) throws IOException {
+    format.writeTo(writer);
+    writer.write('\n');
+  }
+
+  /** Returns a constellation of 6 planes of 5 satellites with slightly different clocks */
+  private static List<GpsEphemerisProto> createConstellation(Random random) {
+    List<GpsEphemerisProto> ephemerides = new ArrayList<>();
+    int prn = 1;
+    for (int plane = 0; plane < ORBITAL_PLANES; plane++) {
+      for (int slot = 0; slot < SATELLITES_PER_PLANE; slot++) {
+        GpsEphemerisProto ephemeris = new GpsEphemerisProto();
+        ephemeris.prn = prn;
+        ephemeris.week = GPS_WEEK;
+        ephemeris.iodc = prn;
+        ephemeris.iode = prn;
+        ephemeris.toe = START_TIME_OF_WEEK_SECONDS;
+        ephemeris.toc = START_TIME_OF_WEEK_SECONDS;
+        ephemeris.rootOfA = 5153.6;
+        ephemeris.e = 0.005;
+        ephemeris.i0 = 0.96;
+        ephemeris.omega0 = normalizeAngleRadians(plane * Math.PI / 3);
+        ephemeris.m0 = normalizeAngleRadians(slot * 2 * Math.PI / 5 + plane * 0.3);
+        ephemeris.omega = 0.5;
+        ephemeris.omegaDot = -8.0e-9;
+        ephemeris.deltaN = 4.5e-9;
+        ephemeris.crs = 20.0;
+        ephemeris.crc = 250.0;
+        ephemeris.af0 = 1.0e-5 * random.nextGaussian();
+        ephemeris.af1 = 1.0e-12;
+        ephemerides.add(ephemeris);
+        prn++;
+      }
+    }
+    return ephemerides;
+  }
+
+  /** Encodes the ephemerides and decodes them back, as they are read from the log */
+  private GpsNavMessageProto decodeNavigationMessages(List<GpsEphemerisProto> ephemerides) {
+    GpsNavigationMessageStore store = new GpsNavigationMessageStore();
+    for (GpsEphemerisProto ephemeris : ephemerides) {
+      byte prn = (byte) ephemeris.prn;
+      store.onNavMessageReported(
+          prn, (byte) 1, (short) 1, GpsNavigationMessageEncoder.encodeFirstSubframe(ephemeris));
+      store.onNavMessageReported(
+          prn, (byte) 1, (short) 2, GpsNavigationMessageEncoder.encodeSecondSubframe(ephemeris));
+      store.onNavMessageReported(
+          prn, (byte) 1, (short) 3, GpsNavigationMessageEncoder.encodeThirdSubframe(ephemeris));
+    }
+    store.onNavMessageReported(
+        (byte) 1,
+        (byte) 1,
+        (short) 4,
+        GpsNavigationMessageEncoder.encodeUtcParametersPage(
+            mIono, LEAP_SECONDS, GPS_WEEK, 1, LEAP_SECONDS));
+    return store.createDecodedNavMessage();
+  }
+
+  private double[] getReceiverEcefMeters(double timeOfWeekSeconds) {
+    double distanceMeters = mEastSpeedMps * (timeOfWeekSeconds - START_TIME_OF_WEEK_SECONDS);
+    return new double[] {
+      mStartEcefMeters[0] + distanceMeters * mEastUnitVector[0],
+      mStartEcefMeters[1] + distanceMeters * mEastUnitVector[1],
+      mStartEcefMeters[2] + distanceMeters * mEastUnitVector[2]
+    };
+  }
+
+  private double getElevationRadians(GpsEphemerisProto ephemeris) throws Exception {
+    PositionAndVelocity satellite =
+        SatellitePositionCalculator.calculateSatellitePositionAndVelocityFromEphemeris(
+            ephemeris,
+            START_TIME_OF_WEEK_SECONDS,
+            GPS_WEEK,
+            mStartEcefMeters[0],
+            mStartEcefMeters[1],
+            mStartEcefMeters[2]);
+    double[] lineOfSight = {
+      satellite.positionXMeters - mStartEcefMeters[0],
+      satellite.positionYMeters - mStartEcefMeters[1],
+      satellite.positionZMeters - mStartEcefMeters[2]
+    };
+    double startRadius = distanceMeters(mStartEcefMeters, new double[3]);
+    double sinElevation = 0.0;
+    for (int i = 0; i < 3; i++) {
+      sinElevation += lineOfSight[i] * mStartEcefMeters[i] / startRadius;
+    }
+    return Math.asin(sinElevation / distanceMeters(lineOfSight, new double[3]));
+  }
+
+  /**
+   * Returns the pseudorange of a satellite predicted by the least square model for a receiver
+   * without clock bias, iterating on the time of transmission.
+   */
+  private double computePseudorangeMeters(GpsEphemerisProto ephemeris, double timeOfWeekSeconds)
+      throws Exception {
+    int index = ephemeris.prn - 1;
+    double[] receiverState = new double[4];
+    System.arraycopy(getReceiverEcefMeters(timeOfWeekSeconds), 0, receiverState, 0, 3);
+    int dayOfYear1To366 =
+        GpsTimeOperations.getDayOfYear1To366(
+            GPS_WEEK * GpsTimeOperations.NANOS_IN_WEEK
+                + (long) (timeOfWeekSeconds * NANOS_PER_SECOND));
+    mModelEpoch.clear();
+    mModelEpoch.setMeasurement(
+        ephemeris.prn, GnssStatus.CONSTELLATION_GPS, 0, CN0_DB_HZ, 0, 0, 0, 0, false, true);
+    mModelEpoch.pseudorangeMeters[index] = 0.07 * SPEED_OF_LIGHT_MPS;
+    mModelEpoch.pseudorangeUncertaintyMeters[index] = 1.0;
+    for (int i = 0; i < 4; i++) {
+      SatellitesPositionPseudorangesResidualAndCovarianceMatrix residual =
+          mModel.calculateSatPosAndPseudorangeResidual(
+              mNavMessage,
+              mModelEpoch,
+              1 << index,
+              timeOfWeekSeconds,
+              GPS_WEEK,
+              dayOfYear1To366,
+              receiverState,
+              true /* doAtmosphericCorrections */);
+      mModelEpoch.pseudorangeMeters[index] -= residual.pseudorangeResidualsMeters[0];
+    }
+    return mModelEpoch.pseudorangeMeters[index];
+  }
+
+  private static double normalizeAngleRadians(double angleRadians) {
+    return Math.atan2(Math.sin(angleRadians), Math.cos(angleRadians));
+  }
+
+  private static double distanceMeters(double[] a, double[] b) {
+    double dx = a[0] - b[0];
+    double dy = a[1] - b[1];
+    double dz = a[2] - b[2];
+    return Math.sqrt(dx * dx + dy * dy + dz * dz);
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.location.lbs.gnss.gps.pseudorange.Ecef2LlaConverter.GeodeticLlaValues;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link TrajectorySmoother} on a synthetic log: the smoothed solutions against the
+ * solutions of the forward Kalman filter, and the solutions of a log smoothed in chunks against
+ * those of the same log smoothed at once.
+ */
+public class TrajectorySmootherTest {
+
+  private static final int EPOCH_COUNT = 120;
+  private static final double PSEUDORANGE_SIGMA_METERS = 3.0;
+  private static final int SINGLE_CHUNK_EPOCHS = EPOCH_COUNT;
+  private static final int CHUNK_EPOCHS = 40;
+  private static final int OVERLAP_EPOCHS = 40;
+  /**
+   * Largest distance between the solutions of a chunk and those of the whole log: the filter and
+   * the carrier smoothing of the pseudoranges start over at the first overlapping epoch, a third of
+   * the pseudorange noise
+   */
+  private static final double MAX_CHUNK_DISTANCE_METERS = 1.0;
+
+  @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+  private SyntheticGnssLog mSyntheticLog;
+  private MappedGnssLog mLog;
+
+  @Before
+  public void writeLog() throws Exception {
+    mSyntheticLog = new SyntheticGnssLog(EPOCH_COUNT, 10.0 /* eastSpeedMps */,
+        PSEUDORANGE_SIGMA_METERS, 7L);
+    File logFile = mTemporaryFolder.newFile("gnss_log.txt");
+    Files.write(logFile.toPath(), mSyntheticLog.toLog(0).getBytes(StandardCharsets.US_ASCII));
+    mLog = MappedGnssLog.open(logFile);
+  }
+
+  @Test
+  public void smoothedSolutionsAreCloserToTheTruthThanFiltered() throws Exception {
+    List<PositionVelocitySolution> filteredSolutions = replayKalmanFilter();
+    List<PositionVelocitySolution> smoothedSolutions = new ArrayList<>();
+
+    TrajectorySmoother.SmoothingStatistics statistics =
+        new TrajectorySmoother(mLog, SINGLE_CHUNK_EPOCHS, 0 /* overlapEpochs */)
+            .smooth(createListener(smoothedSolutions));
+
+    assertEquals(EPOCH_COUNT, statistics.epochCount);
+    assertEquals(1, statistics.chunkCount);
+    assertEquals(filteredSolutions.size(), smoothedSolutions.size());
+    double filteredSquareErrors = 0.0;
+    double smoothedSquareErrors = 0.0;
+    for (int i = 0; i < smoothedSolutions.size(); i++) {
+      PositionVelocitySolution filteredSolution = filteredSolutions.get(i);
+      PositionVelocitySolution smoothedSolution = smoothedSolutions.get(i);
+      assertEquals(
+          filteredSolution.getArrivalTimeSinceGpsEpochNs(),
+          smoothedSolution.getArrivalTimeSinceGpsEpochNs());
+      filteredSquareErrors += square(mSyntheticLog.getPositionErrorMeters(filteredSolution));
+      smoothedSquareErrors += square(mSyntheticLog.getPositionErrorMeters(smoothedSolution));
+    }
+    double filteredRmsErrorMeters = Math.sqrt(filteredSquareErrors / filteredSolutions.size());
+    double smoothedRmsErrorMeters = Math.sqrt(smoothedSquareErrors / smoothedSolutions.size());
+    assertTrue(
+        "Smoothed RMS error " + smoothedRmsErrorMeters + " m, filtered " + filteredRmsErrorMeters
+            + " m",
+        smoothedRmsErrorMeters < filteredRmsErrorMeters);
+  }
+
+  @Test
+  public void chunksPublishEachEpochOnceAsASingleChunk() throws Exception {
+    List<PositionVelocitySolution> singleChunkSolutions = new ArrayList<>();
+    new TrajectorySmoother(mLog, SINGLE_CHUNK_EPOCHS, 0 /* overlapEpochs */)
+        .smooth(createListener(singleChunkSolutions));
+    List<PositionVelocitySolution> solutions = new ArrayList<>();
+
+    TrajectorySmoother.SmoothingStatistics statistics =
+        new TrajectorySmoother(mLog, CHUNK_EPOCHS, OVERLAP_EPOCHS)
+            .smooth(createListener(solutions));
+
+    assertEquals(EPOCH_COUNT / CHUNK_EPOCHS, statistics.chunkCount);
+    assertEquals(singleChunkSolutions.size(), statistics.solutionCount);
+    assertEquals(singleChunkSolutions.size(), solutions.size());
+    for (int i = 0; i < solutions.size(); i++) {
+      PositionVelocitySolution solution = solutions.get(i);
+      assertEquals(
+          singleChunkSolutions.get(i).getArrivalTimeSinceGpsEpochNs(),
+          solution.getArrivalTimeSinceGpsEpochNs());
+      double distanceMeters = distanceMeters(solution, singleChunkSolutions.get(i));
+      assertTrue(
+          "Distance " + distanceMeters + " m at " + solution.getArrivalTimeSinceGpsEpochNs(),
+          distanceMeters < MAX_CHUNK_DISTANCE_METERS);
+    }
+  }
+
+  @Test
+  public void chunksReplayingTheWholeLogMatchASingleChunk() throws Exception {
+    List<PositionVelocitySolution> singleChunkSolutions = new ArrayList<>();
+    new TrajectorySmoother(mLog, SINGLE_CHUNK_EPOCHS, 0 /* overlapEpochs */)
+        .smooth(createListener(singleChunkSolutions));
+    List<PositionVelocitySolution> solutions = new ArrayList<>();
+
+    // Every chunk replays all the epochs, and publishes its own
+    new TrajectorySmoother(mLog, CHUNK_EPOCHS, EPOCH_COUNT).smooth(createListener(solutions));
+
+    assertEquals(singleChunkSolutions.size(), solutions.size());
+    for (int i = 0; i < solutions.size(); i++) {
+      assertEquals(
+          singleChunkSolutions.get(i).getArrivalTimeSinceGpsEpochNs(),
+          solutions.get(i).getArrivalTimeSinceGpsEpochNs());
+      assertEquals(0.0, distanceMeters(solutions.get(i), singleChunkSolutions.get(i)), 0.0);
+    }
+  }
+
+  /** Returns the solutions of the forward Kalman filter, those the smoother starts from */
+  private List<PositionVelocitySolution> replayKalmanFilter() throws Exception {
+    List<PositionVelocitySolution> solutions = new ArrayList<>();
+    PseudorangePositionVelocityFromRealTimeEvents solver =
+        PseudorangePositionVelocityFromRealTimeEvents.createOffline();
+    solver.setPositionVelocitySolver(
+        PseudorangePositionVelocityFromRealTimeEvents.SOLVER_EXTENDED_KALMAN_FILTER);
+    solver.addPositionVelocitySolutionListener(createListener(solutions));
+    new GnssLogReplayEngine(solver).replay(new StringReader(mSyntheticLog.toLog(0)));
+    return solutions;
+  }
+
+  /**
+   * Returns a listener adding the solutions with a position to {@code solutions}, and checking that
+   * their times increase.
+   */
+  private static PositionVelocitySolutionListener createListener(
+      final List<PositionVelocitySolution> solutions) {
+    return new PositionVelocitySolutionListener() {
+      @Override
+      public void onPositionVelocitySolution(PositionVelocitySolution solution) {
+        if (!solution.hasPosition()) {
+          return;
+        }
+        if (!solutions.isEmpty()) {
+          assertTrue(
+              solution.getArrivalTimeSinceGpsEpochNs()
+                  > solutions.get(solutions.size() - 1).getArrivalTimeSinceGpsEpochNs());
+        }
+        solutions.add(solution);
+      }
+    };
+  }
+
+  private static double square(double value) {
+    return value * value;
+  }
+
+  private static double distanceMeters(
+      PositionVelocitySolution solution, PositionVelocitySolution otherSolution) {
+    double[] positionEcefMeters = toEcefMeters(solution);
+    double[] otherPositionEcefMeters = toEcefMeters(otherSolution);
+    double distanceMeters = 0.0;
+    for (int i = 0; i < 3; i++) {
+      distanceMeters += square(positionEcefMeters[i] - otherPositionEcefMeters[i]);
+    }
+    return Math.sqrt(distanceMeters);
+  }
+
+  private static double[] toEcefMeters(PositionVelocitySolution solution) {
+    return Lla2EcefConverter.convertFromLlaToEcefMeters(
+        new GeodeticLlaValues(
+            Math.toRadians(solution.getLatitudeDegrees()),
+            Math.toRadians(solution.getLongitudeDegrees()),
+            solution.getAltitudeMeters()));
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.location.lbs.gnss.gps.pseudorange.Ecef2LlaConverter.GeodeticLlaValues;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests for {@link UserPositionVelocityExtendedKalmanFilter} by replaying synthetic logs through
+ * {@link PseudorangePositionVelocityFromRealTimeEvents}, alone or alternating with the least square
+ * solver. The solutions of the Kalman filter are told apart by their unknown pseudorange weights.
+ */
+public class UserPositionVelocityExtendedKalmanFilterTest {
+
+  private static final int EPOCH_COUNT = 90;
+  private static final double EAST_SPEED_MPS = 10.0;
+  private static final double PSEUDORANGE_SIGMA_METERS = 3.0;
+  private static final long SEED = 46L;
+  /** Epochs after which the filter has converged from its least square initialization */
+  private static final int CONVERGENCE_EPOCHS = 20;
+  /**
+   * Largest position error after convergence: both solvers are about 4 m off the truth on the
+   * synthetic logs, even without noise
+   */
+  private static final double MAX_POSITION_ERROR_METERS = 6.0;
+  private static final double MAX_VELOCITY_ERROR_MPS = 0.05;
+  /** Largest distance to the least square positions of a noise free log after convergence */
+  private static final double MAX_NOISE_FREE_DISTANCE_METERS = 0.1;
+  private static final int FAULT_EPOCH = 60;
+  /** Longer than the 10 s over which the filter predicts its state */
+  private static final int GAP_EPOCHS = 12;
+  private static final double OUTLIER_METERS = 100.0;
+  private static final double SPEED_OF_LIGHT_METERS_PER_NANOSECOND = 0.299792458;
+  /** A pseudorange outlier that is not gated moves the position by tens of meters */
+  private static final double MAX_OUTLIER_POSITION_CHANGE_METERS = 1.0;
+  /** Distance between two least square solutions of the same epoch from different first guesses */
+  private static final double SAME_POSITION_METERS = 0.05;
+  private static final int SWITCH_TO_LEAST_SQUARE_SOLUTION = 30;
+  private static final int SWITCH_TO_KALMAN_FILTER_SOLUTION = 60;
+
+  @Test
+  public void filterConvergesToTheTruth() throws Exception {
+    SyntheticGnssLog log = createLog(PSEUDORANGE_SIGMA_METERS);
+
+    List<PositionVelocitySolution> solutions =
+        replay(log, PseudorangePositionVelocityFromRealTimeEvents.SOLVER_EXTENDED_KALMAN_FILTER);
+
+    assertEquals(EPOCH_COUNT - 1, solutions.size());
+    for (PositionVelocitySolution solution :
+        solutions.subList(CONVERGENCE_EPOCHS, solutions.size())) {
+      assertKalmanFilterSolution(solution);
+      double errorMeters = log.getPositionErrorMeters(solution);
+      assertTrue(
+          "Position error " + errorMeters + " m at " + solution.getArrivalTimeSinceGpsEpochNs(),
+          errorMeters < MAX_POSITION_ERROR_METERS);
+      double[] velocityEnuMps = solution.getVelocitySolutionEnuMps();
+      assertEquals(EAST_SPEED_MPS, velocityEnuMps[0], MAX_VELOCITY_ERROR_MPS);
+      assertEquals(0.0, velocityEnuMps[1], MAX_VELOCITY_ERROR_MPS);
+      assertEquals(0.0, velocityEnuMps[2], MAX_VELOCITY_ERROR_MPS);
+    }
+  }
+
+  @Test
+  public void filterFollowsTheLeastSquareOnANoiseFreeLog() throws Exception {
+    SyntheticGnssLog log = createLog(0.0 /* pseudorangeSigmaMeters */);
+
+    List<PositionVelocitySolution> solutions =
+        replay(log, PseudorangePositionVelocityFromRealTimeEvents.SOLVER_EXTENDED_KALMAN_FILTER);
+    List<PositionVelocitySolution> leastSquareSolutions =
+        replay(log, PseudorangePositionVelocityFromRealTimeEvents.SOLVER_WEIGHTED_LEAST_SQUARE);
+
+    assertEquals(leastSquareSolutions.size(), solutions.size());
+    for (int i = CONVERGENCE_EPOCHS; i < solutions.size(); i++) {
+      PositionVelocitySolution solution = solutions.get(i);
+      double distanceMeters = distanceMeters(solution, leastSquareSolutions.get(i));
+      assertTrue(
+          "Distance " + distanceMeters + " m at " + solution.getArrivalTimeSinceGpsEpochNs(),
+          distanceMeters < MAX_NOISE_FREE_DISTANCE_METERS);
+    }
+  }
+
+  @Test
+  public void filterStartsOverFromTheLeastSquareAfterAGap() throws Exception {
+    SyntheticGnssLog log = createLog(PSEUDORANGE_SIGMA_METERS);
+    long firstEpochAfterGapNanos = log.getEpochs().get(FAULT_EPOCH + GAP_EPOCHS).gpsTimeNanos;
+    log.getEpochs().subList(FAULT_EPOCH, FAULT_EPOCH + GAP_EPOCHS).clear();
+
+    List<PositionVelocitySolution> solutions =
+        replay(log, PseudorangePositionVelocityFromRealTimeEvents.SOLVER_EXTENDED_KALMAN_FILTER);
+    List<PositionVelocitySolution> leastSquareSolutions =
+        replay(log, PseudorangePositionVelocityFromRealTimeEvents.SOLVER_WEIGHTED_LEAST_SQUARE);
+
+    assertEquals(EPOCH_COUNT - GAP_EPOCHS - 1, solutions.size());
+    int gapIndex = FAULT_EPOCH - 1;
+    PositionVelocitySolution solutionAfterGap = solutions.get(gapIndex);
+    assertEquals(firstEpochAfterGapNanos, solutionAfterGap.getArrivalTimeSinceGpsEpochNs());
+    assertKalmanFilterSolution(solutionAfterGap);
+    // The filtered solution before the gap has its own position and uncertainty, the first one
+    // after the gap is that of the least square
+    assertFalse(
+        distanceMeters(solutions.get(gapIndex - 1), leastSquareSolutions.get(gapIndex - 1))
+            < SAME_POSITION_METERS);
+    assertTrue(
+        distanceMeters(solutionAfterGap, leastSquareSolutions.get(gapIndex))
+            < SAME_POSITION_METERS);
+    assertEquals(
+        leastSquareSolutions.get(gapIndex).getPositionVelocityUncertaintyEnu()[0],
+        solutionAfterGap.getPositionVelocityUncertaintyEnu()[0],
+        1.0e-3);
+    for (PositionVelocitySolution solution : solutions.subList(gapIndex, solutions.size())) {
+      assertTrue(log.getPositionErrorMeters(solution) < MAX_POSITION_ERROR_METERS);
+    }
+  }
+
+  @Test
+  public void pseudorangeOutlierIsGated() throws Exception {
+    SyntheticGnssLog log = createLog(PSEUDORANGE_SIGMA_METERS);
+    List<PositionVelocitySolution> faultlessSolutions =
+        replay(log, PseudorangePositionVelocityFromRealTimeEvents.SOLVER_EXTENDED_KALMAN_FILTER);
+    int prn = log.getVisiblePrns()[2];
+    log.getEpochs().get(FAULT_EPOCH).getMeasurement(prn).receivedSvTimeNanos -=
+        Math.round(OUTLIER_METERS / SPEED_OF_LIGHT_METERS_PER_NANOSECOND);
+
+    List<PositionVelocitySolution> solutions =
+        replay(log, PseudorangePositionVelocityFromRealTimeEvents.SOLVER_EXTENDED_KALMAN_FILTER);
+
+    assertEquals(faultlessSolutions.size(), solutions.size());
+    for (int i = FAULT_EPOCH - 1; i < solutions.size(); i++) {
+      double changeMeters = distanceMeters(solutions.get(i), faultlessSolutions.get(i));
+      assertTrue(
+          "Position moved by " + changeMeters + " m at "
+              + solutions.get(i).getArrivalTimeSinceGpsEpochNs(),
+          changeMeters < MAX_OUTLIER_POSITION_CHANGE_METERS);
+    }
+  }
+
+  @Test
+  public void solverCanBeSwitchedBetweenEpochs() throws Exception {
+    SyntheticGnssLog log = createLog(PSEUDORANGE_SIGMA_METERS);
+    List<PositionVelocitySolution> leastSquareSolutions =
+        replay(log, PseudorangePositionVelocityFromRealTimeEvents.SOLVER_WEIGHTED_LEAST_SQUARE);
+    final List<PositionVelocitySolution> solutions = new ArrayList<>();
+    final PseudorangePositionVelocityFromRealTimeEvents solver =
+        PseudorangePositionVelocityFromRealTimeEvents.createOffline();
+    solver.setPositionVelocitySolver(
+        PseudorangePositionVelocityFromRealTimeEvents.SOLVER_EXTENDED_KALMAN_FILTER);
+    solver.addPositionVelocitySolutionListener(
+        new PositionVelocitySolutionListener() {
+          @Override
+          public void onPositionVelocitySolution(PositionVelocitySolution solution) {
+            if (!solution.hasPosition()) {
+              return;
+            }
+            solutions.add(solution);
+            // Selects the solver of the next epoch, from the thread of the replay
+            if (solutions.size() == SWITCH_TO_LEAST_SQUARE_SOLUTION) {
+              solver.setPositionVelocitySolver(
+                  PseudorangePositionVelocityFromRealTimeEvents.SOLVER_WEIGHTED_LEAST_SQUARE);
+            } else if (solutions.size() == SWITCH_TO_KALMAN_FILTER_SOLUTION) {
+              solver.setPositionVelocitySolver(
+                  PseudorangePositionVelocityFromRealTimeEvents.SOLVER_EXTENDED_KALMAN_FILTER);
+            }
+          }
+        });
+
+    new GnssLogReplayEngine(solver).replay(new StringReader(log.toLog(0)));
+
+    assertEquals(EPOCH_COUNT - 1, solutions.size());
+    for (int i = 0; i < solutions.size(); i++) {
+      PositionVelocitySolution solution = solutions.get(i);
+      boolean leastSquare =
+          i >= SWITCH_TO_LEAST_SQUARE_SOLUTION && i < SWITCH_TO_KALMAN_FILTER_SOLUTION;
+      if (leastSquare) {
+        assertEquals(1.0, solution.getPseudorangeWeights()[log.getVisiblePrns()[0] - 1], 0.0);
+        assertTrue(distanceMeters(solution, leastSquareSolutions.get(i)) < SAME_POSITION_METERS);
+      } else {
+        assertKalmanFilterSolution(solution);
+      }
+      if (i >= CONVERGENCE_EPOCHS) {
+        assertTrue(log.getPositionErrorMeters(solution) < MAX_POSITION_ERROR_METERS);
+      }
+    }
+    // The Kalman filter was not used for 30 s, it starts over from the least square
+    assertTrue(
+        distanceMeters(
+                solutions.get(SWITCH_TO_KALMAN_FILTER_SOLUTION),
+                leastSquareSolutions.get(SWITCH_TO_KALMAN_FILTER_SOLUTION))
+            < SAME_POSITION_METERS);
+  }
+
+  private static SyntheticGnssLog createLog(double pseudorangeSigmaMeters) throws Exception {
+    return new SyntheticGnssLog(EPOCH_COUNT, EAST_SPEED_MPS, pseudorangeSigmaMeters, SEED);
+  }
+
+  /** Replays the log offline with {@code positionVelocitySolver} for all the epochs */
+  private static List<PositionVelocitySolution> replay(
+      SyntheticGnssLog log, int positionVelocitySolver) throws Exception {
+    final List<PositionVelocitySolution> solutions = new ArrayList<>();
+    PseudorangePositionVelocityFromRealTimeEvents solver =
+        PseudorangePositionVelocityFromRealTimeEvents.createOffline();
+    solver.setPositionVelocitySolver(positionVelocitySolver);
+    solver.addPositionVelocitySolutionListener(
+        new PositionVelocitySolutionListener() {
+          @Override
+          public void onPositionVelocitySolution(PositionVelocitySolution solution) {
+            if (solution.hasPosition()) {
+              solutions.add(solution);
+            }
+          }
+        });
+    new GnssLogReplayEngine(solver).replay(new StringReader(log.toLog(0)));
+    return solutions;
+  }
+
+  /** Asserts that the solution comes from the Kalman filter, which reports no weight */
+  private static void assertKalmanFilterSolution(PositionVelocitySolution solution) {
+    for (double weight : solution.getPseudorangeWeights()) {
+      assertTrue(Double.isNaN(weight));
+    }
+  }
+
+  private static double distanceMeters(
+      PositionVelocitySolution solution, PositionVelocitySolution otherSolution) {
+    double[] positionEcefMeters = toEcefMeters(solution);
+    double[] otherPositionEcefMeters = toEcefMeters(otherSolution);
+    double distanceMeters = 0.0;
+    for (int i = 0; i < 3; i++) {
+      double deltaMeters = positionEcefMeters[i] - otherPositionEcefMeters[i];
+      distanceMeters += deltaMeters * deltaMeters;
+    }
+    return Math.sqrt(distanceMeters);
+  }
+
+  private static double[] toEcefMeters(PositionVelocitySolution solution) {
+    return Lla2EcefConverter.convertFromLlaToEcefMeters(
+        new GeodeticLlaValues(
+            Math.toRadians(solution.getLatitudeDegrees()),
+            Math.toRadians(solution.getLongitudeDegrees()),
+            solution.getAltitudeMeters()));
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.location.lbs.gnss.gps.pseudorange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.location.lbs.gnss.gps.pseudorange.Ecef2LlaConverter.GeodeticLlaValues;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Compares the robust losses of {@link UserPositionVelocityWeightedLeastSquare} with the removal of
+ * the satellites whose residuals are above 20 m, by replaying a synthetic log with and without
+ * large pseudorange errors. The positions are compared with those of the log without errors
+ * solved with the removal, and the comparison is printed.
+ */
+public class UserPositionVelocityWeightedLeastSquareTest {
+
+  private static final int EPOCH_COUNT = 200;
+  private static final double PSEUDORANGE_SIGMA_METERS = 1.0;
+  /** Probability that an epoch has a pseudorange with a large error */
+  private static final double OUTLIER_PROBABILITY = 0.3;
+  private static final double MIN_OUTLIER_METERS = 15.0;
+  private static final double MAX_OUTLIER_METERS = 75.0;
+  private static final double SPEED_OF_LIGHT_MPS = 299792458.0;
+  private static final double NANOS_PER_SECOND = 1.0e9;
+  private static final int[] ROBUST_LOSSES = {
+    PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_HUBER,
+    PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_TUKEY
+  };
+  private static final double MAX_POSITION_CHANGE_WITHOUT_OUTLIERS_METERS = 1.0;
+
+  private static List<PositionVelocitySolution> sFaultlessSolutions;
+  private static SyntheticGnssLog sLogWithOutliers;
+  /** PRN of the pseudorange with a large error, by GPS time of the epoch */
+  private static final Map<Long, Integer> sOutlierPrns = new HashMap<>();
+
+  @BeforeClass
+  public static void replayFaultlessLog() throws Exception {
+    sFaultlessSolutions =
+        replay(createLog(), PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_NONE)
+            .solutions;
+
+    sLogWithOutliers = createLog();
+    Random random = new Random(50L);
+    int[] prns = sLogWithOutliers.getVisiblePrns();
+    for (SyntheticGnssLog.Epoch epoch : sLogWithOutliers.getEpochs()) {
+      if (random.nextDouble() >= OUTLIER_PROBABILITY) {
+        continue;
+      }
+      // The pseudoranges are measured against the latest received satellite time, see
+      // MeasurementEpoch#computePseudorangesAndUncertainties, so an error on that satellite would
+      // move the reference time of all the others
+      LoggedGnssMeasurement reference = epoch.measurements.get(0);
+      for (LoggedGnssMeasurement measurement : epoch.measurements) {
+        if (measurement.receivedSvTimeNanos > reference.receivedSvTimeNanos) {
+          reference = measurement;
+        }
+      }
+      LoggedGnssMeasurement outlier;
+      do {
+        outlier = epoch.getMeasurement(prns[random.nextInt(prns.length)]);
+      } while (outlier == reference);
+      double outlierMeters =
+          MIN_OUTLIER_METERS + (MAX_OUTLIER_METERS - MIN_OUTLIER_METERS) * random.nextDouble();
+      outlier.receivedSvTimeNanos -=
+          Math.round(outlierMeters / SPEED_OF_LIGHT_MPS * NANOS_PER_SECOND);
+      sOutlierPrns.put(epoch.gpsTimeNanos, outlier.svid);
+    }
+  }
+
+  @Test
+  public void robustLossesMatchTheRemovalWithoutOutliers() throws Exception {
+    for (int robustLoss : ROBUST_LOSSES) {
+      Replay replay = replay(createLog(), robustLoss);
+
+      assertEquals(sFaultlessSolutions.size(), replay.solutions.size());
+      for (PositionVelocitySolution solution : replay.solutions) {
+        assertTrue(
+            getPositionChangeMeters(solution) < MAX_POSITION_CHANGE_WITHOUT_OUTLIERS_METERS);
+      }
+    }
+  }
+
+  @Test
+  public void robustLossesConvergeWithOutliers() throws Exception {
+    Replay removal =
+        replay(sLogWithOutliers, PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_NONE);
+    printComparison("Removal", removal);
+    for (int robustLoss : ROBUST_LOSSES) {
+      Replay replay = replay(sLogWithOutliers, robustLoss);
+      printComparison(
+          robustLoss == PseudorangePositionVelocityFromRealTimeEvents.ROBUST_LOSS_HUBER
+              ? "Huber"
+              : "Tukey",
+          replay);
+
+      // Every epoch is solved, none gives up after the maximum number of iterations
+      assertEquals(removal.solutions.size(), replay.solutions.size());
+    }
+  }
+
+  @Test
+  public void robustLossesDownWeightTheOutliers() throws Exception {
+    for (int robustLoss : ROBUST_LOSSES) {
+      Replay replay = replay(sLogWithOutliers, robustLoss);
+
+      double outlierWeightSum = 0.0;
+      int outlierCount = 0;
+      double inlierWeightSum = 0.0;
+      int inlierCount = 0;
+      for (PositionVelocitySolution solution : replay.solutions) {
+        Integer outlierPrn = sOutlierPrns.get(solution.getArrivalTimeSinceGpsEpochNs());
+        double[] weights = solution.getPseudorangeWeights();
+        for (int prn : sLogWithOutliers.getVisiblePrns()) {
+          double weight = weights[prn - 1];
+          assertTrue(weight >= 0.0 && weight <= 1.0);
+          if (outlierPrn != null && outlierPrn == prn) {
+            outlierWeightSum += weight;
+            outlierCount++;
+          } else {
+            inlierWeightSum += weight;
+            inlierCount++;
+          }
+        }
+      }
+      assertTrue(outlierWeightSum / outlierCount < 0.5 * inlierWeightSum / inlierCount);
+    }
+  }
+
+  private static SyntheticGnssLog createLog() throws Exception {
+    return new SyntheticGnssLog(
+        EPOCH_COUNT, 10.0 /* eastSpeedMps */, PSEUDORANGE_SIGMA_METERS, 50L);
+  }
+
+  /** Replays the log offline with the navigation messages logged before the first epoch */
+  private static Replay replay(SyntheticGnssLog log, int robustLoss) throws Exception {
+    final Replay replay = new Replay();
+    PseudorangePositionVelocityFromRealTimeEvents solver =
+        PseudorangePositionVelocityFromRealTimeEvents.createOffline();
+    solver.setRobustLoss(robustLoss);
+    solver.addPositionVelocitySolutionListener(
+        new PositionVelocitySolutionListener() {
+          @Override
+          public void onPositionVelocitySolution(PositionVelocitySolution solution) {
+            if (solution.hasPosition()) {
+              replay.solutions.add(solution);
+            }
+          }
+        });
+    new GnssLogReplayEngine(solver).replay(new StringReader(log.toLog(0)));
+    replay.meanIterations = solver.getMeanLeastSquareIterations();
+    return replay;
+  }
+
+  private static void printComparison(String name, Replay replay) {
+    double squaredChangeSum = 0.0;
+    double maxChangeMeters = 0.0;
+    for (PositionVelocitySolution solution : replay.solutions) {
+      double changeMeters = getPositionChangeMeters(solution);
+      squaredChangeSum += changeMeters * changeMeters;
+      maxChangeMeters = Math.max(maxChangeMeters, changeMeters);
+    }
+    System.out.printf(
+        Locale.US,
+        "%s: RMS position change %.2f m, max %.2f m, %.1f iterations%n",
+        name,
+        Math.sqrt(squaredChangeSum / replay.solutions.size()),
+        maxChangeMeters,
+        replay.meanIterations);
+  }
+
+  /**
+   * Returns the distance between the position of {@code solution} and the position of the log
+   * without outliers at the same time, solved with the removal
+   */
+  private static double getPositionChangeMeters(PositionVelocitySolution solution) {
+    for (PositionVelocitySolution faultlessSolution : sFaultlessSolutions) {
+      if (faultlessSolution.getArrivalTimeSinceGpsEpochNs()
+          == solution.getArrivalTimeSinceGpsEpochNs()) {
+        double[] positionEcefMeters = toEcefMeters(solution);
+        double[] faultlessPositionEcefMeters = toEcefMeters(faultlessSolution);
+        double squaredChangeMeters = 0.0;
+        for (int i = 0; i < 3; i++) {
+          double deltaMeters = positionEcefMeters[i] - faultlessPositionEcefMeters[i];
+          squaredChangeMeters += deltaMeters * deltaMeters;
+        }
+        return Math.sqrt(squaredChangeMeters);
+      }
+    }
+    return Double.NaN;
+  }
+
+  private static double[] toEcefMeters(PositionVelocitySolution solution) {
+    return Lla2EcefConverter.convertFromLlaToEcefMeters(
+        new GeodeticLlaValues(
+            Math.toRadians(solution.getLatitudeDegrees()),
+            Math.toRadians(solution.getLongitudeDegrees()),
+            solution.getAltitudeMeters()));
+  }
+
+  private static class Replay {
+    final List<PositionVelocitySolution> solutions = new ArrayList<>();
+    double meanIterations;
+  }
+}